@@ -0,0 +1,212 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.benchmarks.jmh;
+
+
+import java.io.File;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.core.DefaultDirectoryService;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.factory.AvlPartitionFactory;
+import org.apache.directory.server.core.factory.DefaultDirectoryServiceFactory;
+import org.apache.directory.server.core.factory.JdbmPartitionFactory;
+import org.apache.directory.server.core.factory.MavibotPartitionFactory;
+import org.apache.directory.server.core.factory.PartitionFactory;
+
+
+/**
+ * An in-process DirectoryService, with a partition holding a given number of person entries,
+ * used by the benchmarks. The entries are named cn=user&lt;n&gt;,dc=benchmark,dc=com.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+final class BenchmarkDirectory
+{
+    /** The benchmark partition suffix */
+    static final String SUFFIX = "dc=benchmark,dc=com";
+
+    /** The benchmark partition ID */
+    static final String PARTITION_ID = "benchmark";
+
+    /** The backends the benchmarks can use */
+    static final String AVL = "avl";
+    static final String JDBM = "jdbm";
+    static final String MAVIBOT = "mavibot";
+
+    /** The started service */
+    private final DirectoryService directoryService;
+
+    /** The benchmark partition */
+    private final Partition partition;
+
+    /** The number of entries added at startup */
+    private final int entryCount;
+
+
+    /**
+     * Starts a DirectoryService and populates the benchmark partition.
+     *
+     * @param backend The backend to use, one of avl, jdbm and mavibot
+     * @param entryCount The number of entries to add
+     * @throws Exception If the service can't be started
+     */
+    BenchmarkDirectory( String backend, int entryCount ) throws Exception
+    {
+        this.entryCount = entryCount;
+
+        PartitionFactory partitionFactory = createPartitionFactory( backend );
+        DirectoryService service = new DefaultDirectoryService();
+        service.setShutdownHookEnabled( false );
+
+        DefaultDirectoryServiceFactory factory = new DefaultDirectoryServiceFactory( service, partitionFactory );
+        factory.init( "benchmark-" + backend );
+        directoryService = factory.getDirectoryService();
+
+        SchemaManager schemaManager = directoryService.getSchemaManager();
+        partition = partitionFactory.createPartition( schemaManager, directoryService.getDnFactory(),
+            PARTITION_ID, SUFFIX, 1000,
+            new File( directoryService.getInstanceLayout().getPartitionsDirectory(), PARTITION_ID ) );
+        partitionFactory.addIndex( partition, "objectClass", 100 );
+        partitionFactory.addIndex( partition, "cn", 100 );
+        partitionFactory.addIndex( partition, "sn", 100 );
+        partitionFactory.addIndex( partition, "description", 100 );
+        directoryService.addPartition( partition );
+
+        CoreSession session = directoryService.getAdminSession();
+        session.add( new DefaultEntry( schemaManager, SUFFIX,
+            "objectClass: top",
+            "objectClass: domain",
+            "dc: benchmark" ) );
+
+        for ( int i = 0; i < entryCount; i++ )
+        {
+            session.add( createEntry( schemaManager, "user" + i, i ) );
+        }
+    }
+
+
+    /**
+     * Creates the partition factory for a backend
+     */
+    private static PartitionFactory createPartitionFactory( String backend )
+    {
+        switch ( backend )
+        {
+            case AVL:
+                return new AvlPartitionFactory();
+
+            case JDBM:
+                return new JdbmPartitionFactory();
+
+            case MAVIBOT:
+                return new MavibotPartitionFactory();
+
+            default:
+                throw new IllegalArgumentException( "Unknown backend " + backend );
+        }
+    }
+
+
+    /**
+     * Creates a person entry below the benchmark suffix.
+     *
+     * @param schemaManager The SchemaManager
+     * @param cn The entry's common name
+     * @param n A number used to build the attribute values
+     * @return The entry
+     * @throws LdapException If the entry can't be created
+     */
+    static Entry createEntry( SchemaManager schemaManager, String cn, int n ) throws LdapException
+    {
+        return new DefaultEntry( schemaManager, "cn=" + cn + "," + SUFFIX,
+            "objectClass: top",
+            "objectClass: person",
+            "objectClass: organizationalPerson",
+            "cn", cn,
+            "sn", "Surname" + ( n % 100 ),
+            "description", "Benchmark entry number " + n,
+            "telephoneNumber", "+1 408 555 " + String.format( "%04d", n % 10000 ) );
+    }
+
+
+    /**
+     * @param n The entry number
+     * @return The Dn of the n-th entry added at startup
+     * @throws LdapException If the Dn is invalid
+     */
+    Dn entryDn( int n ) throws LdapException
+    {
+        return new Dn( getSchemaManager(), "cn=user" + n + "," + SUFFIX );
+    }
+
+
+    /**
+     * @return The started DirectoryService
+     */
+    DirectoryService getDirectoryService()
+    {
+        return directoryService;
+    }
+
+
+    /**
+     * @return The benchmark partition
+     */
+    Partition getPartition()
+    {
+        return partition;
+    }
+
+
+    /**
+     * @return The SchemaManager
+     */
+    SchemaManager getSchemaManager()
+    {
+        return directoryService.getSchemaManager();
+    }
+
+
+    /**
+     * @return The number of entries added at startup
+     */
+    int getEntryCount()
+    {
+        return entryCount;
+    }
+
+
+    /**
+     * Stops the service
+     *
+     * @throws Exception If the service can't be stopped
+     */
+    void shutdown() throws Exception
+    {
+        directoryService.shutdown();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.benchmarks.jmh;
+
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.server.core.shared.DefaultDnFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Measures the parsing of schema aware DNs, through the DefaultDnFactory cache and
+ * without any cache.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DnFactoryBenchmark
+{
+    /** The number of distinct DNs which are parsed */
+    @Param({ "100", "100000" })
+    private int distinctDns;
+
+    /** The DnFactory cache size */
+    @Param({ "10000" })
+    private int cacheSize;
+
+    /** The SchemaManager */
+    private SchemaManager schemaManager;
+
+    /** The factory */
+    private DefaultDnFactory dnFactory;
+
+    /** The parsed DNs */
+    private String[] dns;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        schemaManager = new DefaultSchemaManager();
+        dnFactory = new DefaultDnFactory( schemaManager, cacheSize );
+        dns = new String[distinctDns];
+
+        for ( int i = 0; i < distinctDns; i++ )
+        {
+            dns[i] = "cn=User " + i + ",ou=People,dc=Benchmark,dc=com";
+        }
+    }
+
+
+    private String randomDn()
+    {
+        return dns[ThreadLocalRandom.current().nextInt( distinctDns )];
+    }
+
+
+    /**
+     * Parses a DN through the factory : the cache is used
+     */
+    @Benchmark
+    public Dn factoryCreate() throws Exception
+    {
+        return dnFactory.create( randomDn() );
+    }
+
+
+    /**
+     * Parses a DN without any cache
+     */
+    @Benchmark
+    public Dn parse() throws Exception
+    {
+        return new Dn( schemaManager, randomDn() );
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.benchmarks.jmh;
+
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.server.core.partition.impl.btree.jdbm.EntrySerializer;
+import org.apache.directory.server.core.partition.impl.btree.mavibot.MavibotEntrySerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Measures the serialization and the deserialization of the entries by the JDBM
+ * and the Mavibot partitions.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EntrySerializerBenchmark
+{
+    /** The size of a binary value added to the entry, 0 for no binary value */
+    @Param({ "0", "4096" })
+    private int binarySize;
+
+    /** The JDBM serializer */
+    private EntrySerializer jdbmSerializer;
+
+    /** The Mavibot serializer */
+    private MavibotEntrySerializer mavibotSerializer;
+
+    /** The serialized entry */
+    private Entry entry;
+
+    /** The entry serialized by the JDBM serializer */
+    private byte[] jdbmBytes;
+
+    /** The entry serialized by the Mavibot serializer */
+    private byte[] mavibotBytes;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        SchemaManager schemaManager = new DefaultSchemaManager();
+
+        entry = BenchmarkDirectory.createEntry( schemaManager, "user42", 42 );
+
+        if ( binarySize > 0 )
+        {
+            entry.add( "userPassword", new byte[binarySize] );
+        }
+
+        jdbmSerializer = new EntrySerializer( schemaManager );
+        MavibotEntrySerializer.setSchemaManager( schemaManager );
+        mavibotSerializer = new MavibotEntrySerializer();
+
+        jdbmBytes = jdbmSerializer.serialize( entry );
+        mavibotBytes = mavibotSerializer.serialize( entry );
+    }
+
+
+    @Benchmark
+    public byte[] jdbmSerialize() throws Exception
+    {
+        return jdbmSerializer.serialize( entry );
+    }
+
+
+    @Benchmark
+    public Object jdbmDeserialize() throws Exception
+    {
+        return jdbmSerializer.deserialize( jdbmBytes );
+    }
+
+
+    @Benchmark
+    public byte[] mavibotSerialize() throws Exception
+    {
+        return mavibotSerializer.serialize( entry );
+    }
+
+
+    @Benchmark
+    public Entry mavibotDeserialize() throws Exception
+    {
+        return mavibotSerializer.fromBytes( mavibotBytes );
+    }
+}
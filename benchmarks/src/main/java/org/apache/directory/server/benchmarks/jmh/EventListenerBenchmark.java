@@ -0,0 +1,165 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.benchmarks.jmh;
+
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.event.DirectoryListenerAdapter;
+import org.apache.directory.server.core.api.event.EventService;
+import org.apache.directory.server.core.api.event.NotificationCriteria;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Measures the cost of the listener selection done by the EventInterceptor on each write,
+ * with no listener and with many registered listeners. Each listener watches one entry of
+ * the partition, so a modification notifies one listener while an added entry notifies none :
+ * the difference with the run without listener is the cost of finding the candidates.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class EventListenerBenchmark
+{
+    /** The number of registered listeners */
+    @Param({ "0", "10000" })
+    private int listeners;
+
+    /** The number of entries in the partition */
+    @Param({ "10000" })
+    private int entries;
+
+    /** The started directory */
+    private BenchmarkDirectory directory;
+
+    /** The admin session */
+    private CoreSession session;
+
+    /** The number of notifications received by the listeners */
+    private final LongAdder notifications = new LongAdder();
+
+    /** A counter used to create new entry names */
+    private final AtomicLong counter = new AtomicLong();
+
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        directory = new BenchmarkDirectory( BenchmarkDirectory.AVL, entries );
+        session = directory.getDirectoryService().getAdminSession();
+        EventService eventService = directory.getDirectoryService().getEventService();
+
+        for ( int i = 0; i < listeners; i++ )
+        {
+            NotificationCriteria criteria = new NotificationCriteria( directory.getSchemaManager() );
+            criteria.setBase( directory.entryDn( i % entries ) );
+            criteria.setScope( SearchScope.OBJECT );
+            criteria.setFilter( "(objectClass=person)" );
+
+            eventService.addListener( new CountingListener(), criteria );
+        }
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        directory.shutdown();
+    }
+
+
+    /**
+     * Replaces an attribute of a random entry, which is watched by a listener when there
+     * are as many listeners as entries.
+     */
+    @Benchmark
+    public long modifyWatchedEntry() throws Exception
+    {
+        session.modify( directory.entryDn( ThreadLocalRandom.current().nextInt( entries ) ),
+            new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE,
+                "description", "Modified " + counter.incrementAndGet() ) );
+
+        return notifications.sum();
+    }
+
+
+    /**
+     * Adds an entry no listener is watching.
+     */
+    @Benchmark
+    public void addUnwatchedEntry() throws Exception
+    {
+        long n = counter.incrementAndGet();
+        session.add( BenchmarkDirectory.createEntry( directory.getSchemaManager(), "added" + n, ( int ) n ) );
+    }
+
+
+    /**
+     * A synchronous listener counting the modifications, so that the notifications are
+     * delivered in the measured operation.
+     */
+    private final class CountingListener extends DirectoryListenerAdapter
+    {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void entryModified( ModifyOperationContext modifyContext )
+        {
+            notifications.increment();
+        }
+
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isSynchronous()
+        {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.benchmarks.jmh;
+
+
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.FilterParser;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.model.schema.normalizers.ConcreteNameComponentNormalizer;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.server.core.api.normalization.FilterNormalizingVisitor;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.partition.impl.avl.AvlPartition;
+import org.apache.directory.server.core.shared.DefaultDnFactory;
+import org.apache.directory.server.xdbm.search.Evaluator;
+import org.apache.directory.server.xdbm.search.impl.EvaluatorBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Measures the evaluation of a filter against an entry, using the evaluators created by
+ * the EvaluatorBuilder. This is what is done for each candidate of a search.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilterEvaluationBenchmark
+{
+    /** The evaluated filter */
+    @Param({
+        "(cn=user42)",
+        "(sn=surname*)",
+        "(description=*number 42)",
+        "(createTimestamp>=20200101000000Z)",
+        "(&(objectClass=person)(|(cn=user41)(cn=user42))(!(sn=Surname0)))" })
+    private String filter;
+
+    /** The store the evaluators are built for */
+    private AvlPartition store;
+
+    /** The evaluator */
+    private Evaluator<? extends ExprNode> evaluator;
+
+    /** The evaluated entry */
+    private Entry entry;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        SchemaManager schemaManager = new DefaultSchemaManager();
+
+        store = new AvlPartition( schemaManager, new DefaultDnFactory( schemaManager, 100 ) );
+        store.setId( "benchmark" );
+        store.setSuffixDn( new Dn( schemaManager, BenchmarkDirectory.SUFFIX ) );
+        store.setPartitionPath( Files.createTempDirectory( "filter-benchmark" ).toUri() );
+        store.initialize();
+
+        ExprNode node = FilterParser.parse( schemaManager, filter );
+        node = ( ExprNode ) node.accept( new FilterNormalizingVisitor(
+            new ConcreteNameComponentNormalizer( schemaManager ), schemaManager ) );
+
+        try ( PartitionTxn partitionTxn = store.beginReadTransaction() )
+        {
+            evaluator = new EvaluatorBuilder( store, schemaManager ).build( partitionTxn, node );
+        }
+
+        // The stored entries have a createTimestamp, which can be compared with an ordering filter
+        entry = BenchmarkDirectory.createEntry( schemaManager, "user42", 42 );
+        entry.add( "createTimestamp", "20240101000000Z" );
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        store.destroy( null );
+    }
+
+
+    @Benchmark
+    public boolean evaluate() throws Exception
+    {
+        return evaluator.evaluate( entry );
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.benchmarks.jmh;
+
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.filter.FilterParser;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.CoreSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * Measures the operations going through the DefaultOperationManager and the whole
+ * interceptor chain, using the admin session : no network, no LDAP codec.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class OperationManagerBenchmark
+{
+    /** The backend storing the benchmark partition */
+    @Param({ BenchmarkDirectory.AVL, BenchmarkDirectory.JDBM, BenchmarkDirectory.MAVIBOT })
+    private String backend;
+
+    /** The number of entries in the partition */
+    @Param({ "10000" })
+    private int entries;
+
+    /** The started directory */
+    private BenchmarkDirectory directory;
+
+    /** The admin session */
+    private CoreSession session;
+
+    /** The base of the searches */
+    private Dn suffixDn;
+
+    /** A counter used to create new entry names */
+    private final AtomicLong counter = new AtomicLong();
+
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        directory = new BenchmarkDirectory( backend, entries );
+        session = directory.getDirectoryService().getAdminSession();
+        suffixDn = new Dn( directory.getSchemaManager(), BenchmarkDirectory.SUFFIX );
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        directory.shutdown();
+    }
+
+
+    /**
+     * @return A random entry added at startup
+     */
+    private Dn randomDn() throws Exception
+    {
+        return directory.entryDn( ThreadLocalRandom.current().nextInt( entries ) );
+    }
+
+
+    /**
+     * Adds new entries : the partition grows during the measurement.
+     */
+    @Benchmark
+    public void add() throws Exception
+    {
+        long n = counter.incrementAndGet();
+        session.add( BenchmarkDirectory.createEntry( directory.getSchemaManager(), "added" + n, ( int ) n ) );
+    }
+
+
+    /**
+     * Adds an entry, then deletes it : the partition size remains stable.
+     */
+    @Benchmark
+    public void addThenDelete() throws Exception
+    {
+        long n = counter.incrementAndGet();
+        Entry entry = BenchmarkDirectory.createEntry( directory.getSchemaManager(), "deleted" + n, ( int ) n );
+        session.add( entry );
+        session.delete( entry.getDn() );
+    }
+
+
+    /**
+     * Replaces an indexed attribute of a random entry.
+     */
+    @Benchmark
+    public void modify() throws Exception
+    {
+        session.modify( randomDn(), new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE,
+            "description", "Modified " + counter.incrementAndGet() ) );
+    }
+
+
+    /**
+     * Looks up a random entry.
+     */
+    @Benchmark
+    public Entry lookup() throws Exception
+    {
+        return session.lookup( randomDn() );
+    }
+
+
+    /**
+     * Searches a random entry using an equality filter on an indexed attribute.
+     */
+    @Benchmark
+    public void searchEquality( Blackhole blackhole ) throws Exception
+    {
+        String filter = "(cn=user" + ThreadLocalRandom.current().nextInt( entries ) + ")";
+
+        consume( blackhole, session.search( suffixDn, SearchScope.SUBTREE,
+            FilterParser.parse( directory.getSchemaManager(), filter ), AliasDerefMode.NEVER_DEREF_ALIASES ) );
+    }
+
+
+    /**
+     * Searches about 1% of the entries.
+     */
+    @Benchmark
+    public void searchRange( Blackhole blackhole ) throws Exception
+    {
+        String filter = "(&(objectClass=person)(sn=Surname" + ThreadLocalRandom.current().nextInt( 100 ) + "))";
+
+        consume( blackhole, session.search( suffixDn, SearchScope.ONELEVEL,
+            FilterParser.parse( directory.getSchemaManager(), filter ), AliasDerefMode.NEVER_DEREF_ALIASES ) );
+    }
+
+
+    /**
+     * Reads all the entries returned by a cursor, and closes it
+     */
+    static void consume( Blackhole blackhole, Cursor<Entry> cursor ) throws Exception
+    {
+        try
+        {
+            while ( cursor.next() )
+            {
+                blackhole.consume( cursor.get() );
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.benchmarks.jmh;
+
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.FilterParser;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * Measures the lookup and search operations of a partition, called directly : the
+ * interceptor chain and the operation manager are bypassed.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PartitionBenchmark
+{
+    /** The backend storing the benchmark partition */
+    @Param({ BenchmarkDirectory.AVL, BenchmarkDirectory.JDBM, BenchmarkDirectory.MAVIBOT })
+    private String backend;
+
+    /** The number of entries in the partition */
+    @Param({ "10000" })
+    private int entries;
+
+    /** The started directory */
+    private BenchmarkDirectory directory;
+
+    /** The benchmarked partition */
+    private Partition partition;
+
+    /** The admin session */
+    private CoreSession session;
+
+    /** The base of the searches */
+    private Dn suffixDn;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        directory = new BenchmarkDirectory( backend, entries );
+        partition = directory.getPartition();
+        session = directory.getDirectoryService().getAdminSession();
+        suffixDn = new Dn( directory.getSchemaManager(), BenchmarkDirectory.SUFFIX );
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        directory.shutdown();
+    }
+
+
+    /**
+     * Looks up a random entry.
+     */
+    @Benchmark
+    public Entry lookup() throws Exception
+    {
+        Dn dn = directory.entryDn( ThreadLocalRandom.current().nextInt( entries ) );
+        LookupOperationContext lookupContext = new LookupOperationContext( session, dn );
+        lookupContext.setPartition( partition );
+
+        try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
+        {
+            lookupContext.setTransaction( partitionTxn );
+
+            return partition.lookup( lookupContext );
+        }
+    }
+
+
+    /**
+     * Searches a random entry using an equality filter on an indexed attribute.
+     */
+    @Benchmark
+    public void searchEquality( Blackhole blackhole ) throws Exception
+    {
+        search( blackhole, SearchScope.SUBTREE,
+            "(cn=user" + ThreadLocalRandom.current().nextInt( entries ) + ")" );
+    }
+
+
+    /**
+     * Searches about 1% of the entries.
+     */
+    @Benchmark
+    public void searchRange( Blackhole blackhole ) throws Exception
+    {
+        search( blackhole, SearchScope.ONELEVEL,
+            "(&(objectClass=person)(sn=Surname" + ThreadLocalRandom.current().nextInt( 100 ) + "))" );
+    }
+
+
+    /**
+     * Searches the entries using a filter on an attribute which is not indexed.
+     */
+    @Benchmark
+    public void searchUnindexed( Blackhole blackhole ) throws Exception
+    {
+        search( blackhole, SearchScope.ONELEVEL,
+            "(telephoneNumber=+1 408 555 " + String.format( "%04d", ThreadLocalRandom.current().nextInt( entries ) )
+                + ")" );
+    }
+
+
+    private void search( Blackhole blackhole, SearchScope scope, String filter ) throws Exception
+    {
+        ExprNode node = FilterParser.parse( directory.getSchemaManager(), filter );
+        SearchOperationContext searchContext = new SearchOperationContext( session, suffixDn, scope, node );
+        searchContext.setPartition( partition );
+
+        try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
+        {
+            searchContext.setTransaction( partitionTxn );
+            OperationManagerBenchmark.consume( blackhole, partition.search( searchContext ) );
+        }
+    }
+}
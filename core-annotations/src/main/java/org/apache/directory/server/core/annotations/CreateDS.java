@@ -57,6 +57,10 @@ public @interface CreateDS
     boolean enableChangeLog() default true;
 
 
+    /** @return flag to enable/disable per-partition locking, default is false */
+    boolean enablePartitionLocking() default false;
+
+
     /** @return The list of partitions to create */
     CreatePartition[] partitions() default
         {};
@@ -100,6 +100,7 @@ public final class DSAnnotationProcessor
         service.setAccessControlEnabled( dsBuilder.enableAccessControl() );
         service.setAllowAnonymousAccess( dsBuilder.allowAnonAccess() );
         service.getChangeLog().setEnabled( dsBuilder.enableChangeLog() );
+        service.setPartitionLockingEnabled( dsBuilder.enablePartitionLocking() );
 
         dsf.init( dsBuilder.name() );
 
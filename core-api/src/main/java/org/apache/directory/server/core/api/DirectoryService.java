@@ -42,6 +42,7 @@ import org.apache.directory.server.core.api.entry.ServerEntryFactory;
 import org.apache.directory.server.core.api.event.EventService;
 import org.apache.directory.server.core.api.interceptor.Interceptor;
 import org.apache.directory.server.core.api.journal.Journal;
+import org.apache.directory.server.core.api.partition.CacheMemoryBudget;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionNexus;
 import org.apache.directory.server.core.api.schema.SchemaPartition;
@@ -530,6 +531,64 @@ public interface DirectoryService extends ServerEntryFactory
     void setMaxPDUSize( int maxPDUSize );
 
 
+    /**
+     * @return The maximum number of entries sorted in memory for a server side sort request
+     */
+    int getMaxSortedEntriesInMemory();
+
+
+    /**
+     * Set the maximum number of entries sorted in memory for a server side sort request.
+     * Above this number, the entries are sorted using temporary files.
+     * @param maxSortedEntriesInMemory A positive number of entries
+     */
+    void setMaxSortedEntriesInMemory( int maxSortedEntriesInMemory );
+
+
+    /**
+     * @return The maximum estimated size of the entries sorted in memory for a server side sort request
+     */
+    long getMaxSortedBytesInMemory();
+
+
+    /**
+     * Set the maximum estimated size of the entries sorted in memory for a server side sort
+     * request. Above this size, the entries are sorted using temporary files.
+     * @param maxSortedBytesInMemory A positive number of bytes
+     */
+    void setMaxSortedBytesInMemory( long maxSortedBytesInMemory );
+
+
+    /**
+     * @return The memory shared by the partitions caches, or null if each partition cache
+     * is bounded by its number of elements
+     */
+    CacheMemoryBudget getCacheMemoryBudget();
+
+
+    /**
+     * Sets the memory shared by the caches of the partitions. It is given to the partitions
+     * which are not yet initialized when they are added.
+     * @param cacheMemoryBudget The shared memory budget, or null
+     */
+    void setCacheMemoryBudget( CacheMemoryBudget cacheMemoryBudget );
+
+
+    /**
+     * @return <code>true</code> if each partition is protected by its own lock
+     */
+    boolean isPartitionLockingEnabled();
+
+
+    /**
+     * Enables or disables per-partition locking. When enabled, writes on independent
+     * partitions can proceed in parallel, instead of all being serialized by a global lock.
+     * This must be set before the server is started.
+     * @param partitionLockingEnabled <code>true</code> if each partition has its own lock
+     */
+    void setPartitionLockingEnabled( boolean partitionLockingEnabled );
+
+
     /**
      * Get an Interceptor instance from its name
      * @param interceptorName The interceptor's name for which we want the instance
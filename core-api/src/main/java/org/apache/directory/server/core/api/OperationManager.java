@@ -38,6 +38,7 @@ import org.apache.directory.server.core.api.interceptor.context.MoveOperationCon
 import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.UnbindOperationContext;
+import org.apache.directory.server.core.api.partition.Partition;
 
 
 /**
@@ -194,8 +195,55 @@ public interface OperationManager
     void unlockRead();
 
 
+    /**
+     * Acquires a ReadLock on a partition, like the operations reading it do. The
+     * operations ran by the current thread while it holds the lock don't wait for it.
+     *
+     * @param partition The partition to lock
+     * @throws LdapException If the lock can't be acquired without risking a deadlock
+     */
+    void lockRead( Partition partition ) throws LdapException;
+
+
+    /**
+     * Releases a ReadLock acquired with {@link #lockRead(Partition)}
+     *
+     * @param partition The locked partition
+     */
+    void unlockRead( Partition partition );
+
+
+    /**
+     * Acquires a WriteLock on a partition, like the operations updating it do. The
+     * operations ran by the current thread while it holds the lock don't wait for it,
+     * so that several operations can be applied atomically.
+     *
+     * @param partition The partition to lock
+     * @throws LdapException If the lock can't be acquired without risking a deadlock
+     */
+    void lockWrite( Partition partition ) throws LdapException;
+
+
+    /**
+     * Releases a WriteLock acquired with {@link #lockWrite(Partition)}
+     *
+     * @param partition The locked partition
+     */
+    void unlockWrite( Partition partition );
+
+
     /**
      * @return the OperationManager R/W lock
      */
     ReadWriteLock getRWLock();
+
+
+    /**
+     * Gets the R/W lock protecting a given partition. When per-partition locking
+     * is disabled, this is the global OperationManager R/W lock.
+     *
+     * @param partition The partition we want the lock for
+     * @return the R/W lock protecting the partition
+     */
+    ReadWriteLock getRWLock( Partition partition );
 }
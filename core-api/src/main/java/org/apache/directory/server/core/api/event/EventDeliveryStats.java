@@ -0,0 +1,136 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.api.event;
+
+
+/**
+ * A snapshot of the statistics of the events delivered to an asynchronous
+ * {@link DirectoryListener}.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class EventDeliveryStats
+{
+    /** The listener */
+    private final DirectoryListener listener;
+
+    /** The number of events waiting to be delivered */
+    private final int queueDepth;
+
+    /** The number of delivered events */
+    private final long deliveredEvents;
+
+    /** The number of dropped events */
+    private final long droppedEvents;
+
+    /** The total time the delivered events have waited in the queue, in nanoseconds */
+    private final long totalDispatchLatency;
+
+    /** The longest time a delivered event has waited in the queue, in nanoseconds */
+    private final long maxDispatchLatency;
+
+
+    /**
+     * Creates a new instance of EventDeliveryStats.
+     *
+     * @param listener The listener
+     * @param queueDepth The number of events waiting to be delivered
+     * @param deliveredEvents The number of delivered events
+     * @param droppedEvents The number of dropped events
+     * @param totalDispatchLatency The total time the delivered events have waited in the queue, in nanoseconds
+     * @param maxDispatchLatency The longest time a delivered event has waited in the queue, in nanoseconds
+     */
+    public EventDeliveryStats( DirectoryListener listener, int queueDepth, long deliveredEvents, long droppedEvents,
+        long totalDispatchLatency, long maxDispatchLatency )
+    {
+        this.listener = listener;
+        this.queueDepth = queueDepth;
+        this.deliveredEvents = deliveredEvents;
+        this.droppedEvents = droppedEvents;
+        this.totalDispatchLatency = totalDispatchLatency;
+        this.maxDispatchLatency = maxDispatchLatency;
+    }
+
+
+    /**
+     * @return The listener
+     */
+    public DirectoryListener getListener()
+    {
+        return listener;
+    }
+
+
+    /**
+     * @return The number of events waiting to be delivered
+     */
+    public int getQueueDepth()
+    {
+        return queueDepth;
+    }
+
+
+    /**
+     * @return The number of delivered events
+     */
+    public long getDeliveredEvents()
+    {
+        return deliveredEvents;
+    }
+
+
+    /**
+     * @return The number of dropped events
+     */
+    public long getDroppedEvents()
+    {
+        return droppedEvents;
+    }
+
+
+    /**
+     * @return The average time the delivered events have waited in the queue, in nanoseconds
+     */
+    public long getAverageDispatchLatency()
+    {
+        return deliveredEvents == 0L ? 0L : totalDispatchLatency / deliveredEvents;
+    }
+
+
+    /**
+     * @return The longest time a delivered event has waited in the queue, in nanoseconds
+     */
+    public long getMaxDispatchLatency()
+    {
+        return maxDispatchLatency;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return listener + " : queue depth " + queueDepth + ", delivered " + deliveredEvents + ", dropped "
+            + droppedEvents + ", average latency " + getAverageDispatchLatency() + "ns, max latency "
+            + maxDispatchLatency + "ns";
+    }
+}
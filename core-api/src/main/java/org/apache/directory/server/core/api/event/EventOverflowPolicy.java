@@ -0,0 +1,47 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.api.event;
+
+
+/**
+ * What to do when the queue of events waiting to be delivered to an asynchronous
+ * {@link DirectoryListener} is full.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public enum EventOverflowPolicy
+{
+    /**
+     * The operation generating the event waits until there is room in the queue. If the
+     * listener does not make room in time, it is disconnected as with {@link #DISCONNECT} :
+     * the operation holds its locks while waiting, so a stalled listener must not block it
+     * forever.
+     */
+    BLOCK,
+
+    /** The oldest event in the queue is dropped */
+    DROP_OLDEST,
+
+    /**
+     * The listener is removed from the event service, and its pending events are dropped.
+     * A {@link DisconnectableListener} is told about it.
+     */
+    DISCONNECT
+}
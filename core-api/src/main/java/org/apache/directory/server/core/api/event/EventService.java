@@ -57,4 +57,14 @@ public interface EventService
      * @return The list of registration entries
      */
     List<RegistrationEntry> getRegistrationEntries();
+
+
+    /**
+     * Gets the delivery statistics of the asynchronous listeners : the number of events
+     * waiting to be delivered, the number of delivered and dropped events, and the time
+     * the events wait before being delivered.
+     *
+     * @return The statistics of each asynchronous listener
+     */
+    List<EventDeliveryStats> getDeliveryStats();
 }
@@ -69,6 +69,9 @@ public abstract class AbstractPartition implements Partition
     /** a flag to detect the change in context CSN */
     protected volatile boolean ctxCsnChanged = false;
 
+    /** The memory shared with the other partitions caches, if any */
+    protected CacheMemoryBudget cacheMemoryBudget;
+
     /**
      * {@inheritDoc}
      */
@@ -266,6 +269,29 @@ public abstract class AbstractPartition implements Partition
     }
 
 
+    /**
+     * @return The memory shared with the other partitions caches, or null if the caches are
+     * bounded by their number of elements
+     */
+    public CacheMemoryBudget getCacheMemoryBudget()
+    {
+        return cacheMemoryBudget;
+    }
+
+
+    /**
+     * Sets the memory the partition caches share with the other partitions caches. Partitions
+     * which don't use it just ignore it.
+     *
+     * @param cacheMemoryBudget The shared memory budget
+     */
+    public void setCacheMemoryBudget( CacheMemoryBudget cacheMemoryBudget )
+    {
+        checkInitialized( "cacheMemoryBudget" );
+        this.cacheMemoryBudget = cacheMemoryBudget;
+    }
+
+
     /**
      * @return the contextEntry
      */
@@ -0,0 +1,362 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.api.partition;
+
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Policy;
+import com.github.benmanes.caffeine.cache.Weigher;
+
+
+/**
+ * An amount of memory shared by the caches of many partitions. Each cache is bounded
+ * by the weight of its elements, and gets at least its floor. The rest of the budget
+ * is periodically distributed among the caches, proportionally to their demand : the
+ * weight of the elements they hold, plus the weight of the elements they had to load
+ * since the previous distribution. A partition whose working set does not fit into its
+ * cache thus gets more memory than a partition which is entirely cached.
+ * <p>
+ * The caches are created by the budget, and must be released when the partition is
+ * destroyed.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CacheMemoryBudget
+{
+    /** A logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( CacheMemoryBudget.class );
+
+    /** The default minimal amount of memory given to a cache : 1 MB */
+    public static final long DEFAULT_FLOOR = 1024L * 1024L;
+
+    /** The default delay between two distributions of the budget, in milliseconds */
+    public static final long DEFAULT_REBALANCE_INTERVAL = 10000L;
+
+    /** The total amount of memory, in bytes */
+    private final long totalBytes;
+
+    /** The delay between two distributions of the budget, in nanoseconds */
+    private final long rebalanceInterval;
+
+    /** The caches sharing the budget, protected by the rebalanceLock */
+    private final List<Member> members = new ArrayList<>();
+
+    /** The lock protecting the list of caches and the distribution */
+    private final ReentrantLock rebalanceLock = new ReentrantLock();
+
+    /** Tells if a distribution has been scheduled */
+    private final AtomicBoolean rebalanceScheduled = new AtomicBoolean( false );
+
+    /** The last time the budget has been distributed */
+    private volatile long lastRebalance = System.nanoTime();
+
+
+    /**
+     * A cache sharing the budget
+     */
+    private static final class Member
+    {
+        /** The cache name */
+        private final String name;
+
+        /** The minimal amount of memory given to the cache */
+        private final long floor;
+
+        /** The weight of the elements added to the cache since the last distribution */
+        private final AtomicLong loaded = new AtomicLong();
+
+        /** The cache */
+        private Cache<?, ?> cache;
+
+
+        private Member( String name, long floor )
+        {
+            this.name = name;
+            this.floor = floor;
+        }
+
+
+        private Policy.Eviction<?, ?> eviction()
+        {
+            return cache.policy().eviction().orElseThrow( IllegalStateException::new );
+        }
+    }
+
+
+    /**
+     * Creates a new instance of CacheMemoryBudget.
+     *
+     * @param totalBytes The total amount of memory shared by the caches, in bytes
+     */
+    public CacheMemoryBudget( long totalBytes )
+    {
+        this( totalBytes, DEFAULT_REBALANCE_INTERVAL );
+    }
+
+
+    /**
+     * Creates a new instance of CacheMemoryBudget.
+     *
+     * @param totalBytes The total amount of memory shared by the caches, in bytes
+     * @param rebalanceInterval The delay between two distributions of the budget, in milliseconds
+     */
+    public CacheMemoryBudget( long totalBytes, long rebalanceInterval )
+    {
+        if ( totalBytes <= 0L )
+        {
+            throw new IllegalArgumentException( "The cache memory budget must be positive" );
+        }
+
+        this.totalBytes = totalBytes;
+        this.rebalanceInterval = TimeUnit.MILLISECONDS.toNanos( Math.max( rebalanceInterval, 1L ) );
+    }
+
+
+    /**
+     * Creates a cache bounded by the weight of its elements, and sharing this budget.
+     *
+     * @param name The cache name, used for the logs
+     * @param floor The minimal amount of memory given to the cache, in bytes
+     * @param weigher The weigher giving the size of the elements, in bytes
+     * @return The new cache
+     */
+    public <K, V> Cache<K, V> createCache( String name, long floor, Weigher<? super K, ? super V> weigher )
+    {
+        Member member = new Member( name, Math.max( floor, 0L ) );
+
+        Cache<K, V> cache = Caffeine.newBuilder()
+            .maximumWeight( Math.max( member.floor, 1L ) )
+            .weigher( ( K key, V value ) ->
+            {
+                int weight = weigher.weigh( key, value );
+                member.loaded.addAndGet( weight );
+                checkRebalance();
+
+                return weight;
+            } )
+            .recordStats()
+            .build();
+
+        member.cache = cache;
+        rebalanceLock.lock();
+
+        try
+        {
+            members.add( member );
+            rebalance();
+        }
+        finally
+        {
+            rebalanceLock.unlock();
+        }
+
+        return cache;
+    }
+
+
+    /**
+     * Releases a cache created by this budget. Its memory is given back to the other caches.
+     *
+     * @param cache The cache to release
+     */
+    public void release( Cache<?, ?> cache )
+    {
+        rebalanceLock.lock();
+
+        try
+        {
+            Iterator<Member> iterator = members.iterator();
+
+            while ( iterator.hasNext() )
+            {
+                if ( iterator.next().cache == cache )
+                {
+                    iterator.remove();
+                }
+            }
+
+            rebalance();
+        }
+        finally
+        {
+            rebalanceLock.unlock();
+        }
+
+        cache.invalidateAll();
+    }
+
+
+    /**
+     * Schedules a distribution of the budget if the previous one is too old
+     */
+    private void checkRebalance()
+    {
+        if ( ( System.nanoTime() - lastRebalance > rebalanceInterval )
+            && rebalanceScheduled.compareAndSet( false, true ) )
+        {
+            // Don't resize the caches while one of them is adding an element
+            ForkJoinPool.commonPool().execute( () ->
+            {
+                try
+                {
+                    rebalance();
+                }
+                finally
+                {
+                    rebalanceScheduled.set( false );
+                }
+            } );
+        }
+    }
+
+
+    /**
+     * Distributes the budget among the caches. Each cache gets its floor, and a share of the
+     * remaining memory proportional to its demand. If the floors exceed the budget, each cache
+     * gets its floor.
+     */
+    public void rebalance()
+    {
+        rebalanceLock.lock();
+
+        try
+        {
+            lastRebalance = System.nanoTime();
+            List<Member> snapshot = new ArrayList<>( members );
+
+            if ( snapshot.isEmpty() )
+            {
+                return;
+            }
+
+            long floors = 0L;
+            long totalDemand = 0L;
+            long[] demands = new long[snapshot.size()];
+            int pos = 0;
+
+            for ( Member member : snapshot )
+            {
+                floors += member.floor;
+                long demand = member.eviction().weightedSize().orElse( 0L ) + member.loaded.getAndSet( 0L );
+                demands[pos++] = demand;
+                totalDemand += demand;
+            }
+
+            long remaining = Math.max( totalBytes - floors, 0L );
+
+            if ( remaining == 0L )
+            {
+                LOG.warn( "The cache floors ({} bytes) exceed the cache memory budget ({} bytes)", floors,
+                    totalBytes );
+            }
+
+            pos = 0;
+
+            for ( Member member : snapshot )
+            {
+                long share;
+
+                if ( totalDemand == 0L )
+                {
+                    share = remaining / snapshot.size();
+                }
+                else
+                {
+                    share = ( long ) ( remaining * ( ( double ) demands[pos] / totalDemand ) );
+                }
+
+                long maximum = Math.max( member.floor + share, 1L );
+                member.eviction().setMaximum( maximum );
+                pos++;
+
+                LOG.debug( "The {} cache can now hold {} bytes", member.name, maximum );
+            }
+        }
+        finally
+        {
+            rebalanceLock.unlock();
+        }
+    }
+
+
+    /**
+     * @return The total amount of memory shared by the caches, in bytes
+     */
+    public long getTotalBytes()
+    {
+        return totalBytes;
+    }
+
+
+    /**
+     * @return The amount of memory used by the caches, in bytes
+     */
+    public long getUsedBytes()
+    {
+        long used = 0L;
+
+        for ( Member member : getMembers() )
+        {
+            used += member.eviction().weightedSize().orElse( 0L );
+        }
+
+        return used;
+    }
+
+
+    /**
+     * @return The number of caches sharing the budget
+     */
+    public int getCacheCount()
+    {
+        return getMembers().size();
+    }
+
+
+    /**
+     * @return A copy of the list of caches sharing the budget
+     */
+    private List<Member> getMembers()
+    {
+        rebalanceLock.lock();
+
+        try
+        {
+            return new ArrayList<>( members );
+        }
+        finally
+        {
+            rebalanceLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.api.partition;
+
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.name.Dn;
+
+import com.github.benmanes.caffeine.cache.Weigher;
+
+
+/**
+ * Gives the weight of a cached entry : an estimation of its serialized size, in bytes.
+ * The entry is not serialized, we add the size of its Dn and of its values, counting
+ * both the user provided and the normalized forms of the String values, plus a fixed
+ * overhead per entry, attribute and value.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class EntryWeigher implements Weigher<String, Entry>
+{
+    /** The overhead of an entry */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    /** The overhead of an attribute */
+    private static final int ATTRIBUTE_OVERHEAD = 32;
+
+    /** The overhead of a value */
+    private static final int VALUE_OVERHEAD = 16;
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int weigh( String id, Entry entry )
+    {
+        long weight = ENTRY_OVERHEAD + ( ( id == null ) ? 0 : id.length() );
+        Dn dn = entry.getDn();
+
+        if ( dn != null )
+        {
+            weight += dn.getName().length() + dn.getNormName().length();
+        }
+
+        for ( Attribute attribute : entry )
+        {
+            weight += ATTRIBUTE_OVERHEAD + attribute.getUpId().length();
+
+            for ( Value value : attribute )
+            {
+                weight += VALUE_OVERHEAD;
+
+                if ( value.isHumanReadable() )
+                {
+                    weight += 2L * value.length();
+                }
+                else
+                {
+                    weight += value.length();
+                }
+            }
+        }
+
+        return ( int ) Math.min( weight, Integer.MAX_VALUE );
+    }
+}
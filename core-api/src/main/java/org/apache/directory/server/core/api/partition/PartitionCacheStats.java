@@ -0,0 +1,184 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.api.partition;
+
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Policy;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+
+/**
+ * A snapshot of the statistics of a partition cache.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PartitionCacheStats
+{
+    /** The cache name */
+    private final String name;
+
+    /** The number of cached elements */
+    private final long size;
+
+    /** The weight of the cached elements, or the number of elements if the cache is not weighted */
+    private final long weight;
+
+    /** The maximum weight, or the maximum number of elements, of the cache */
+    private final long maximum;
+
+    /** Tells if the cache is bounded by the weight of its elements */
+    private final boolean weighted;
+
+    /** The cache statistics */
+    private final CacheStats stats;
+
+
+    /**
+     * Creates a new instance of PartitionCacheStats.
+     *
+     * @param name The cache name
+     * @param cache The cache
+     */
+    public PartitionCacheStats( String name, Cache<?, ?> cache )
+    {
+        this.name = name;
+        size = cache.estimatedSize();
+        stats = cache.stats();
+
+        Policy.Eviction<?, ?> eviction = cache.policy().eviction().orElse( null );
+
+        if ( eviction == null )
+        {
+            weighted = false;
+            weight = size;
+            maximum = Long.MAX_VALUE;
+        }
+        else
+        {
+            weighted = eviction.isWeighted();
+            weight = eviction.weightedSize().orElse( size );
+            maximum = eviction.getMaximum();
+        }
+    }
+
+
+    /**
+     * @return The cache name
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+
+    /**
+     * @return The approximate number of cached elements
+     */
+    public long getSize()
+    {
+        return size;
+    }
+
+
+    /**
+     * @return The weight of the cached elements, in bytes, or the number of elements if
+     * the cache is not weighted
+     */
+    public long getWeight()
+    {
+        return weight;
+    }
+
+
+    /**
+     * @return The maximum weight, in bytes, or the maximum number of elements if the cache
+     * is not weighted
+     */
+    public long getMaximum()
+    {
+        return maximum;
+    }
+
+
+    /**
+     * @return <code>true</code> if the cache is bounded by the weight of its elements
+     */
+    public boolean isWeighted()
+    {
+        return weighted;
+    }
+
+
+    /**
+     * @return The number of lookups which have found an element
+     */
+    public long getHitCount()
+    {
+        return stats.hitCount();
+    }
+
+
+    /**
+     * @return The number of lookups which have not found an element
+     */
+    public long getMissCount()
+    {
+        return stats.missCount();
+    }
+
+
+    /**
+     * @return The ratio of lookups which have found an element, 1.0 if there was no lookup
+     */
+    public double getHitRate()
+    {
+        return stats.hitRate();
+    }
+
+
+    /**
+     * @return The number of evicted elements
+     */
+    public long getEvictionCount()
+    {
+        return stats.evictionCount();
+    }
+
+
+    /**
+     * @return The weight of the evicted elements
+     */
+    public long getEvictionWeight()
+    {
+        return stats.evictionWeight();
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return name + " : " + size + " elements, weight " + weight + "/" + maximum + ", hit rate "
+            + getHitRate() + ", " + getEvictionCount() + " evictions";
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.api.partition;
+
+
+/**
+ * Thrown when a partition lock requested out of the lock order can't be acquired in
+ * time. The operation has to be given up, as waiting longer could deadlock.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PartitionLockTimeoutException extends RuntimeException
+{
+    private static final long serialVersionUID = 1L;
+
+
+    /**
+     * Creates a new instance of PartitionLockTimeoutException.
+     *
+     * @param partitionId The ID of the partition which lock can't be acquired
+     */
+    public PartitionLockTimeoutException( String partitionId )
+    {
+        super( "Cannot lock the partition " + partitionId + " out of the lock order" );
+    }
+}
@@ -20,6 +20,8 @@
 package org.apache.directory.server.core.api.partition;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 /**
  * The Write Transaction interface
@@ -28,12 +30,17 @@ import java.io.IOException;
  */
 public class PartitionWriteTxn implements PartitionTxn
 {
+    /** The actions undoing the changes done in memory by this transaction, the last one first */
+    private Deque<Runnable> undoActions;
+
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void commit() throws IOException
     {
+        committed();
     }
 
 
@@ -42,6 +49,66 @@ public class PartitionWriteTxn implements PartitionTxn
      */
     @Override
     public void abort() throws IOException
+    {
+        aborted();
+    }
+
+
+    /**
+     * Registers an action which undoes a change this transaction has done outside of the
+     * partition storage, for instance in an in-memory index. The actions are run, the last
+     * registered first, if the transaction is aborted, and forgotten when it's committed.
+     *
+     * @param undoAction The action to run if the transaction is aborted
+     */
+    public void addUndoAction( Runnable undoAction )
+    {
+        if ( undoActions == null )
+        {
+            undoActions = new ArrayDeque<>();
+        }
+
+        undoActions.push( undoAction );
+    }
+
+
+    /**
+     * Forgets the undo actions. Must be called by the subclasses once the changes are committed.
+     */
+    protected void committed()
+    {
+        undoActions = null;
+    }
+
+
+    /**
+     * Runs the undo actions. Must be called by the subclasses when the transaction is aborted.
+     */
+    protected void aborted()
+    {
+        if ( undoActions == null )
+        {
+            return;
+        }
+
+        Deque<Runnable> actions = undoActions;
+        undoActions = null;
+
+        for ( Runnable action : actions )
+        {
+            action.run();
+        }
+    }
+
+
+    /**
+     * Waits until the committed changes are safely stored on disk. A partition which
+     * synchronizes its commits in the background makes the writers wait here, once
+     * the operation locks have been released. It does nothing by default.
+     *
+     * @throws IOException If the changes could not be stored
+     */
+    public void awaitDurability() throws IOException
     {
     }
 
@@ -45,6 +45,7 @@ import org.apache.directory.server.core.api.changelog.ChangeLog;
 import org.apache.directory.server.core.api.event.EventService;
 import org.apache.directory.server.core.api.interceptor.Interceptor;
 import org.apache.directory.server.core.api.journal.Journal;
+import org.apache.directory.server.core.api.partition.CacheMemoryBudget;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionNexus;
 import org.apache.directory.server.core.api.schema.SchemaPartition;
@@ -438,6 +439,54 @@ public class MockDirectoryService implements DirectoryService
     }
 
 
+    public int getMaxSortedEntriesInMemory()
+    {
+        return 10000;
+    }
+
+
+    public void setMaxSortedEntriesInMemory( int maxSortedEntriesInMemory )
+    {
+        // Do nothing
+    }
+
+
+    public long getMaxSortedBytesInMemory()
+    {
+        return 64L * 1024L * 1024L;
+    }
+
+
+    public void setMaxSortedBytesInMemory( long maxSortedBytesInMemory )
+    {
+        // Do nothing
+    }
+
+
+    public CacheMemoryBudget getCacheMemoryBudget()
+    {
+        return null;
+    }
+
+
+    public void setCacheMemoryBudget( CacheMemoryBudget cacheMemoryBudget )
+    {
+        // Do nothing
+    }
+
+
+    public boolean isPartitionLockingEnabled()
+    {
+        return false;
+    }
+
+
+    public void setPartitionLockingEnabled( boolean partitionLockingEnabled )
+    {
+        // Do nothing
+    }
+
+
     public Interceptor getInterceptor( String interceptorName )
     {
         return null;
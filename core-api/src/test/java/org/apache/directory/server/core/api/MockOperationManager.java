@@ -149,6 +149,30 @@ public class MockOperationManager implements OperationManager
     }
 
 
+    @Override
+    public void lockRead( Partition partition )
+    {
+    }
+
+
+    @Override
+    public void unlockRead( Partition partition )
+    {
+    }
+
+
+    @Override
+    public void lockWrite( Partition partition )
+    {
+    }
+
+
+    @Override
+    public void unlockWrite( Partition partition )
+    {
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -156,4 +180,13 @@ public class MockOperationManager implements OperationManager
     {
         return new ReentrantReadWriteLock();
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public ReadWriteLock getRWLock( Partition partition )
+    {
+        return new ReentrantReadWriteLock();
+    }
 }
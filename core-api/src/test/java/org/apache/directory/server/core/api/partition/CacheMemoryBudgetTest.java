@@ -0,0 +1,201 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.api.partition;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.junit.jupiter.api.Test;
+
+import com.github.benmanes.caffeine.cache.Cache;
+
+
+/**
+ * Tests the CacheMemoryBudget and the EntryWeigher classes.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CacheMemoryBudgetTest
+{
+    private static final long MB = 1024L * 1024L;
+
+
+    private static long maximum( Cache<?, ?> cache )
+    {
+        return cache.policy().eviction().get().getMaximum();
+    }
+
+
+    @Test
+    public void testEntryWeight() throws Exception
+    {
+        Entry small = new DefaultEntry( "cn=small,dc=example,dc=com",
+            "objectClass: person",
+            "cn: small",
+            "sn: small" );
+
+        Entry large = new DefaultEntry( "cn=large,dc=example,dc=com",
+            "objectClass: person",
+            "cn: large",
+            "sn: large" );
+        large.add( "jpegPhoto", new byte[100000] );
+
+        EntryWeigher weigher = new EntryWeigher();
+        int smallWeight = weigher.weigh( "1", small );
+        int largeWeight = weigher.weigh( "2", large );
+
+        assertTrue( smallWeight > 0 );
+        assertTrue( smallWeight < 1000 );
+        assertTrue( largeWeight > 100000 );
+    }
+
+
+    @Test
+    public void testDistribution() throws Exception
+    {
+        CacheMemoryBudget budget = new CacheMemoryBudget( 10L * MB, Long.MAX_VALUE );
+        Cache<String, byte[]> busy = budget.createCache( "busy", MB, ( String key, byte[] value ) -> value.length );
+        Cache<String, byte[]> idle = budget.createCache( "idle", MB, ( String key, byte[] value ) -> value.length );
+
+        // Without any activity, the budget is equally shared
+        assertEquals( 2, budget.getCacheCount() );
+        assertEquals( 5L * MB, maximum( busy ) );
+        assertEquals( 5L * MB, maximum( idle ) );
+
+        for ( int i = 0; i < 800; i++ )
+        {
+            busy.put( Integer.toString( i ), new byte[10 * 1024] );
+        }
+
+        idle.put( "0", new byte[10 * 1024] );
+
+        busy.cleanUp();
+        budget.rebalance();
+
+        // The busy cache gets most of the memory, the idle one keeps its floor
+        assertTrue( maximum( busy ) > 8L * MB );
+        assertTrue( maximum( idle ) >= MB );
+        assertTrue( maximum( busy ) + maximum( idle ) <= 10L * MB );
+
+        // Now, the busy cache must evict some entries
+        for ( int i = 800; i < 1200; i++ )
+        {
+            busy.put( Integer.toString( i ), new byte[10 * 1024] );
+        }
+
+        busy.cleanUp();
+        assertTrue( busy.policy().eviction().get().weightedSize().getAsLong() <= maximum( busy ) );
+        assertTrue( busy.stats().evictionCount() > 0 );
+        assertTrue( budget.getUsedBytes() <= budget.getTotalBytes() );
+
+        // Releasing a cache gives its memory back
+        budget.release( idle );
+        assertEquals( 1, budget.getCacheCount() );
+        assertEquals( 10L * MB, maximum( busy ) );
+    }
+
+
+    /**
+     * Caches created and released while the budget is distributed
+     */
+    @Test
+    public void testConcurrentCreateAndRelease() throws Exception
+    {
+        CacheMemoryBudget budget = new CacheMemoryBudget( 10L * MB, Long.MAX_VALUE );
+        Cache<String, byte[]> shared = budget.createCache( "shared", MB, ( String key, byte[] value ) -> value.length );
+        ExecutorService executor = Executors.newFixedThreadPool( 4 );
+
+        try
+        {
+            List<Future<?>> futures = new ArrayList<>();
+
+            for ( int t = 0; t < 3; t++ )
+            {
+                futures.add( executor.submit( () ->
+                {
+                    for ( int i = 0; i < 500; i++ )
+                    {
+                        Cache<String, byte[]> cache = budget.createCache( "cache" + i, MB,
+                            ( String key, byte[] value ) -> value.length );
+                        budget.release( cache );
+                    }
+                } ) );
+            }
+
+            futures.add( executor.submit( () ->
+            {
+                for ( int i = 0; i < 2000; i++ )
+                {
+                    budget.rebalance();
+                }
+            } ) );
+
+            for ( Future<?> future : futures )
+            {
+                future.get();
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        budget.rebalance();
+
+        assertEquals( 1, budget.getCacheCount() );
+        assertEquals( 10L * MB, maximum( shared ) );
+    }
+
+
+    @Test
+    public void testStats() throws Exception
+    {
+        CacheMemoryBudget budget = new CacheMemoryBudget( 10L * MB );
+        Cache<String, Entry> cache = budget.createCache( "entries", MB, new EntryWeigher() );
+        Entry entry = new DefaultEntry( "cn=test,dc=example,dc=com",
+            "objectClass: person",
+            "cn: test",
+            "sn: test" );
+
+        cache.put( "1", entry );
+        cache.getIfPresent( "1" );
+        cache.getIfPresent( "2" );
+        cache.cleanUp();
+
+        PartitionCacheStats stats = new PartitionCacheStats( "entries", cache );
+
+        assertTrue( stats.isWeighted() );
+        assertEquals( 1L, stats.getSize() );
+        assertEquals( new EntryWeigher().weigh( "1", entry ), stats.getWeight() );
+        assertEquals( 10L * MB, stats.getMaximum() );
+        assertEquals( 1L, stats.getHitCount() );
+        assertEquals( 1L, stats.getMissCount() );
+        assertEquals( 0.5d, stats.getHitRate() );
+    }
+}
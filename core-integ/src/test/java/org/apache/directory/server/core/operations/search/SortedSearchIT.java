@@ -283,6 +283,114 @@ public class SortedSearchIT extends AbstractLdapTestUnit
     }
 
 
+    @Test
+    public void testSortByMultipleKeys() throws Exception
+    {
+        // user0 and user2 have the same givenName, the tie is broken by the reversed sn
+        sk.setAttributeTypeDesc( "givenName" );
+        SortKey snKey = new SortKey( "sn" );
+        snKey.setReverseOrder( true );
+        ctrl.addSortKey( snKey );
+
+        SearchCursor cursor = connection.search( req );
+
+        List<String> expectedOrder = new ArrayList<String>();
+        expectedOrder.add( "uid=person1,ou=parent,ou=system" );
+        expectedOrder.add( "uid=person2,ou=parent,ou=system" );
+        expectedOrder.add( "uid=person3,ou=parent,ou=system" );
+        expectedOrder.add( "uid=user2,ou=children,ou=parent,ou=system" );
+        expectedOrder.add( "uid=user0,ou=parent,ou=system" );
+        expectedOrder.add( "uid=user1,ou=parent,ou=system" );
+        expectedOrder.add( "uid=user3,ou=children,ou=parent,ou=system" );
+        expectedOrder.add( "uid=user4,ou=grandchildren,ou=children,ou=parent,ou=system" );
+        expectedOrder.add( "uid=user5,ou=grandchildren,ou=children,ou=parent,ou=system" );
+        expectedOrder.add( "uid=user6,ou=parent,ou=system" );
+        expectedOrder.add( "uid=user7,ou=parent,ou=system" );
+
+        List<String> actualOrder = new ArrayList<String>();
+
+        while ( cursor.next() )
+        {
+            SearchResultEntry se = ( SearchResultEntry ) cursor.get();
+            actualOrder.add( se.getEntry().getDn().getName() );
+        }
+
+        SearchResultDone sd = cursor.getSearchResultDone();
+        cursor.close();
+
+        SortResponse resp = ( SortResponse ) sd.getControl( SortResponse.OID );
+        assertNotNull( resp );
+        assertEquals( SortResultCode.SUCCESS, resp.getSortResult() );
+
+        // The 3 entries without givenName are at the end
+        assertEquals( expectedOrder.size() + 3, actualOrder.size() );
+        assertEquals( expectedOrder, actualOrder.subList( 0, expectedOrder.size() ) );
+    }
+
+
+    @Test
+    public void testSortUsingTemporaryFiles() throws Exception
+    {
+        // Force the entries to be sorted in runs of 3 entries, merged from temporary files
+        int maxSortedEntries = getService().getMaxSortedEntriesInMemory();
+        getService().setMaxSortedEntriesInMemory( 3 );
+
+        try
+        {
+            sk.setAttributeTypeDesc( "sn" );
+            SearchCursor cursor = connection.search( req );
+
+            List<String> actualOrder = new ArrayList<String>();
+
+            while ( cursor.next() )
+            {
+                SearchResultEntry se = ( SearchResultEntry ) cursor.get();
+                actualOrder.add( se.getEntry().getDn().getName() );
+            }
+
+            cursor.close();
+
+            assertEquals( 14, actualOrder.size() );
+            assertEquals( "uid=person1,ou=parent,ou=system", actualOrder.get( 0 ) );
+            assertEquals( "uid=user0,ou=parent,ou=system", actualOrder.get( 3 ) );
+            assertEquals( "uid=user7,ou=parent,ou=system", actualOrder.get( 10 ) );
+        }
+        finally
+        {
+            getService().setMaxSortedEntriesInMemory( maxSortedEntries );
+        }
+    }
+
+
+    @Test
+    public void testSortWithSizeLimit() throws Exception
+    {
+        sk.setAttributeTypeDesc( "sn" );
+        req.setSizeLimit( 3 );
+
+        SearchCursor cursor = connection.search( req );
+
+        List<String> actualOrder = new ArrayList<String>();
+
+        while ( cursor.next() )
+        {
+            SearchResultEntry se = ( SearchResultEntry ) cursor.get();
+            actualOrder.add( se.getEntry().getDn().getName() );
+        }
+
+        cursor.close();
+
+        // Only the first entries of the whole sorted result set are kept. The size limit
+        // is enforced by the LDAP protocol layer, so one more entry is kept to let it know
+        // that the limit has been exceeded
+        assertEquals( 4, actualOrder.size() );
+        assertEquals( "uid=person1,ou=parent,ou=system", actualOrder.get( 0 ) );
+        assertEquals( "uid=person2,ou=parent,ou=system", actualOrder.get( 1 ) );
+        assertEquals( "uid=person3,ou=parent,ou=system", actualOrder.get( 2 ) );
+        assertEquals( "uid=user0,ou=parent,ou=system", actualOrder.get( 3 ) );
+    }
+
+
     // though "sn" is also multi-valued, the test data has only one value for "sn" in each entry
     // so using "cn" for this test
     @Test
@@ -0,0 +1,389 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.subtree;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.EnumSet;
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.exception.LdapServiceUnavailableException;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.model.subtree.AdministrativeRole;
+import org.apache.directory.api.ldap.model.subtree.Subentry;
+import org.apache.directory.api.ldap.model.subtree.SubtreeSpecificationParser;
+import org.apache.directory.server.core.annotations.ApplyLdifs;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.InterceptorEnum;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.ApacheDSTestExtension;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+
+/**
+ * Test the background propagation of the subentry operational attributes.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@ExtendWith( ApacheDSTestExtension.class )
+@CreateDS(name = "SubentryPropagatorIT-class")
+@ApplyLdifs(
+    {
+        // A test branch
+        "dn: dc=test,ou=system",
+        "objectClass: top",
+        "objectClass: domain",
+        "dc: test",
+        "",
+        // The AP
+        "dn: dc=AP,dc=test,ou=system",
+        "objectClass: top",
+        "objectClass: domain",
+        "administrativeRole: collectiveAttributeSpecificArea",
+        "administrativeRole: accessControlSpecificArea",
+        "dc: AP",
+        "",
+        "dn: cn=A1,dc=AP,dc=test,ou=system",
+        "objectClass: top",
+        "objectClass: person",
+        "cn: A1",
+        "sn: a1",
+        "",
+        "dn: cn=A1-1,cn=A1,dc=AP,dc=test,ou=system",
+        "objectClass: top",
+        "objectClass: person",
+        "cn: A1-1",
+        "sn: a1-1",
+        "",
+        "dn: cn=A2,dc=AP,dc=test,ou=system",
+        "objectClass: top",
+        "objectClass: person",
+        "cn: A2",
+        "sn: a2",
+        "",
+        "dn: cn=A3,dc=AP,dc=test,ou=system",
+        "objectClass: top",
+        "objectClass: person",
+        "cn: A3",
+        "sn: a3",
+        ""
+    })
+public class SubentryPropagatorIT extends AbstractLdapTestUnit
+{
+    /** The entries selected by the subentries */
+    private static final String[] ENTRIES =
+        {
+            "cn=A1,dc=AP,dc=test,ou=system",
+            "cn=A1-1,cn=A1,dc=AP,dc=test,ou=system",
+            "cn=A2,dc=AP,dc=test,ou=system",
+            "cn=A3,dc=AP,dc=test,ou=system"
+    };
+
+    private static final String COLLECTIVE_SUBENTRY = "cn=collective,dc=AP,dc=test,ou=system";
+
+    private static final String ACI_SUBENTRY = "cn=aci,dc=AP,dc=test,ou=system";
+
+    private SchemaManager schemaManager;
+
+    private CoreSession session;
+
+    private SubentryInterceptor interceptor;
+
+    private File checkpointFile;
+
+    private SubentryPropagator propagator;
+
+
+    @BeforeEach
+    public void setUp() throws Exception
+    {
+        schemaManager = getService().getSchemaManager();
+        session = getService().getAdminSession();
+        interceptor = ( SubentryInterceptor ) getService().getInterceptor(
+            InterceptorEnum.SUBENTRY_INTERCEPTOR.getName() );
+        checkpointFile = new File( Files.createTempDirectory( "subentry-propagation" ).toFile(),
+            SubentryPropagator.CHECKPOINT_FILE );
+    }
+
+
+    @AfterEach
+    public void tearDown()
+    {
+        if ( propagator != null )
+        {
+            propagator.stop();
+        }
+
+        interceptor.setPropagator( null );
+        checkpointFile.delete();
+        checkpointFile.getParentFile().delete();
+    }
+
+
+    /**
+     * Creates a propagator using the test checkpoint file, updating 2 entries per
+     * transaction, and gives it to the interceptor. It is not started.
+     */
+    private SubentryPropagator newPropagator() throws Exception
+    {
+        propagator = new SubentryPropagator( interceptor, getService(), checkpointFile, 2 );
+        interceptor.setPropagator( propagator );
+
+        return propagator;
+    }
+
+
+    private void waitForPropagation() throws Exception
+    {
+        long end = System.currentTimeMillis() + 10000L;
+
+        while ( propagator.isBusy() && ( System.currentTimeMillis() < end ) )
+        {
+            Thread.sleep( 10L );
+        }
+
+        assertFalse( propagator.isBusy() );
+        assertFalse( checkpointFile.exists() );
+    }
+
+
+    private Dn addCollectiveSubentry() throws Exception
+    {
+        session.add( new DefaultEntry( schemaManager, COLLECTIVE_SUBENTRY,
+            "objectClass: top",
+            "objectClass: subentry",
+            "objectClass: collectiveAttributeSubentry",
+            "subtreeSpecification: { }",
+            "c-o: Test Org",
+            "cn: collective" ) );
+
+        return new Dn( schemaManager, COLLECTIVE_SUBENTRY );
+    }
+
+
+    /**
+     * Tells if all the test entries reference a subentry
+     */
+    private boolean allSelected( String attributeType, Dn subentryDn ) throws Exception
+    {
+        for ( String dn : ENTRIES )
+        {
+            Entry entry = session.lookup( new Dn( schemaManager, dn ), "*", "+" );
+            Attribute attribute = entry.get( attributeType );
+
+            if ( ( attribute == null ) || !attribute.contains( subentryDn.getName() ) )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Tells if none of the test entries reference a subentry
+     */
+    private boolean noneSelected( String attributeType, Dn subentryDn ) throws Exception
+    {
+        for ( String dn : ENTRIES )
+        {
+            Entry entry = session.lookup( new Dn( schemaManager, dn ), "*", "+" );
+            Attribute attribute = entry.get( attributeType );
+
+            if ( ( attribute != null ) && attribute.contains( subentryDn.getName() ) )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    @Test
+    public void testAddAndDeletePropagation() throws Exception
+    {
+        newPropagator().start();
+
+        Dn subentryDn = addCollectiveSubentry();
+        waitForPropagation();
+
+        assertTrue( allSelected( "collectiveAttributeSubentries", subentryDn ) );
+
+        session.delete( subentryDn );
+        waitForPropagation();
+
+        assertTrue( noneSelected( "collectiveAttributeSubentries", subentryDn ) );
+    }
+
+
+    /**
+     * A propagation not completed when the server is stopped is resumed from the checkpoint
+     */
+    @Test
+    public void testResumeFromCheckpoint() throws Exception
+    {
+        // Not started : the propagation stays pending
+        newPropagator();
+
+        Dn subentryDn = addCollectiveSubentry();
+
+        assertTrue( interceptor.isPropagating( subentryDn ) );
+        assertTrue( checkpointFile.exists() );
+        assertTrue( noneSelected( "collectiveAttributeSubentries", subentryDn ) );
+
+        propagator.stop();
+
+        // A new propagator reads the pending propagation
+        newPropagator();
+
+        assertEquals( Collections.singletonList( subentryDn ), propagator.getPropagatingSubentries() );
+
+        propagator.start();
+        waitForPropagation();
+
+        assertTrue( allSelected( "collectiveAttributeSubentries", subentryDn ) );
+    }
+
+
+    /**
+     * The operations on a subentry being propagated are rejected with BUSY
+     */
+    @Test
+    public void testBusyWhilePropagating() throws Exception
+    {
+        newPropagator();
+
+        Dn subentryDn = addCollectiveSubentry();
+
+        LdapServiceUnavailableException busy = assertThrows( LdapServiceUnavailableException.class,
+            () -> session.delete( subentryDn ) );
+        assertEquals( ResultCodeEnum.BUSY, busy.getResultCode() );
+
+        busy = assertThrows( LdapServiceUnavailableException.class,
+            () -> session.modify( subentryDn, new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE,
+                schemaManager.getAttributeType( "subtreeSpecification" ), "{ base \"cn=A1\" }" ) ) );
+        assertEquals( ResultCodeEnum.BUSY, busy.getResultCode() );
+
+        // Once propagated, the subentry can be deleted
+        propagator.start();
+        waitForPropagation();
+
+        session.delete( subentryDn );
+        waitForPropagation();
+
+        assertFalse( session.exists( subentryDn ) );
+    }
+
+
+    /**
+     * The propagation of a subentry which has not been added is dropped
+     */
+    @Test
+    public void testFailedAddIsDropped() throws Exception
+    {
+        // The subentry is known, as before its addition, but not in the DIT
+        Dn subentryDn = new Dn( schemaManager, COLLECTIVE_SUBENTRY );
+        Subentry subentry = new Subentry();
+        subentry.setAdministrativeRoles( EnumSet.of( AdministrativeRole.CollectiveAttributeSpecificArea ) );
+        subentry.setSubtreeSpecification( new SubtreeSpecificationParser( schemaManager ).parse( "{ }" ) );
+        getService().getSubentryCache().addSubentry( subentryDn, subentry );
+
+        try
+        {
+            newPropagator().propagate( SubentryPropagator.Operation.ADD, subentryDn );
+            propagator.start();
+            waitForPropagation();
+
+            assertTrue( noneSelected( "collectiveAttributeSubentries", subentryDn ) );
+        }
+        finally
+        {
+            getService().getSubentryCache().removeSubentry( subentryDn );
+        }
+    }
+
+
+    /**
+     * The propagation of a subentry which has not been deleted is dropped
+     */
+    @Test
+    public void testFailedDeleteIsDropped() throws Exception
+    {
+        // Propagated in the operation
+        Dn subentryDn = addCollectiveSubentry();
+        assertTrue( allSelected( "collectiveAttributeSubentries", subentryDn ) );
+
+        newPropagator().propagate( SubentryPropagator.Operation.REMOVE, subentryDn );
+        propagator.start();
+        waitForPropagation();
+
+        assertTrue( allSelected( "collectiveAttributeSubentries", subentryDn ) );
+    }
+
+
+    /**
+     * An access control subentry is propagated in the operation, so that the entries
+     * it selects are protected as soon as it is added
+     */
+    @Test
+    public void testAccessControlSubentryIsNotDeferred() throws Exception
+    {
+        newPropagator();
+
+        session.add( new DefaultEntry( schemaManager, ACI_SUBENTRY,
+            "objectClass: top",
+            "objectClass: subentry",
+            "objectClass: accessControlSubentry",
+            "subtreeSpecification: { }",
+            "prescriptiveACI: { identificationTag \"denyAllUsers\", precedence 14, authenticationLevel none, "
+                + "itemOrUserFirst userFirst: { userClasses { allUsers }, userPermissions { { protectedItems "
+                + "{ entry, allUserAttributeTypesAndValues }, grantsAndDenials { denyRead, denyBrowse } } } } }",
+            "cn: aci" ) );
+
+        Dn subentryDn = new Dn( schemaManager, ACI_SUBENTRY );
+
+        assertFalse( propagator.isBusy() );
+        assertTrue( allSelected( "accessControlSubentries", subentryDn ) );
+
+        session.delete( subentryDn );
+
+        assertFalse( propagator.isBusy() );
+        assertTrue( noneSelected( "accessControlSubentries", subentryDn ) );
+    }
+}
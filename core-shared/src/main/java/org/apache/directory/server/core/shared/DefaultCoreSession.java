@@ -20,10 +20,8 @@
 package org.apache.directory.server.core.shared;
 
 
-import java.io.File;
 import java.io.IOException;
 import java.net.SocketAddress;
-import java.nio.file.Files;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -98,8 +96,6 @@ import org.apache.mina.core.session.IoSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import jdbm.recman.BaseRecordManager;
-
 
 /**
  * The default CoreSession implementation.
@@ -1220,7 +1216,8 @@ public class DefaultCoreSession implements CoreSession
 
             if ( ( sortRespCtrl != null ) && ( sortRespCtrl.getSortResult() == SortResultCode.SUCCESS ) )
             {
-                cursor = sortResults( cursor, sortControl, getDirectoryService().getSchemaManager() );
+                cursor = sortResults( cursor, sortControl, searchRequest.getSizeLimit(),
+                    getDirectoryService().getSchemaManager() );
             }
 
             // the below condition is to satisfy the scenario 6 in section 2 of rfc2891
@@ -1304,18 +1301,32 @@ public class DefaultCoreSession implements CoreSession
     {
         SortResponse resp = new SortResponseImpl();
 
-        List<SortKey> keys = sortControl.getSortKeys();
-
-        // only ONE key is supported by the server for now
-        if ( keys.size() > 1 )
+        // All the keys must be usable
+        for ( SortKey sk : sortControl.getSortKeys() )
         {
-            ldapResult.setDiagnosticMessage( "Cannot sort results based on more than one attribute" );
-            resp.setSortResult( SortResultCode.UNWILLINGTOPERFORM );
-            return resp;
+            if ( !canSort( sk, resp, ldapResult, schemaManager ) )
+            {
+                return resp;
+            }
         }
 
-        SortKey sk = keys.get( 0 );
+        resp.setSortResult( SortResultCode.SUCCESS );
+
+        return resp;
+    }
+
 
+    /**
+     * Checks if the search results can be sorted using the given sort key
+     * 
+     * @param sk the sort key
+     * @param resp the sort response control, updated if the key can't be used
+     * @param ldapResult the refrence to the LDAP result of the ongoing search operation
+     * @param schemaManager schema manager
+     * @return <code>true</code> if the key can be used
+     */
+    private boolean canSort( SortKey sk, SortResponse resp, LdapResult ldapResult, SchemaManager schemaManager )
+    {
         AttributeType at = schemaManager.getAttributeType( sk.getAttributeTypeDesc() );
 
         if ( at == null )
@@ -1324,7 +1335,7 @@ public class DefaultCoreSession implements CoreSession
                 + " exists in the server's schema" );
             resp.setSortResult( SortResultCode.NOSUCHATTRIBUTE );
             resp.setAttributeName( sk.getAttributeTypeDesc() );
-            return resp;
+            return false;
         }
 
         String mrOid = sk.getMatchingRuleId();
@@ -1339,7 +1350,7 @@ public class DefaultCoreSession implements CoreSession
                     + " is not applicable for the attribute " + sk.getAttributeTypeDesc() );
                 resp.setSortResult( SortResultCode.INAPPROPRIATEMATCHING );
                 resp.setAttributeName( sk.getAttributeTypeDesc() );
-                return resp;
+                return false;
             }
 
             try
@@ -1351,7 +1362,7 @@ public class DefaultCoreSession implements CoreSession
                 ldapResult.setDiagnosticMessage( "Given matchingrule " + mrOid + " is not supported" );
                 resp.setSortResult( SortResultCode.INAPPROPRIATEMATCHING );
                 resp.setAttributeName( sk.getAttributeTypeDesc() );
-                return resp;
+                return false;
             }
         }
         else
@@ -1370,7 +1381,7 @@ public class DefaultCoreSession implements CoreSession
 
             if ( mr == null )
             {
-                return resp;
+                return false;
             }
 
             try
@@ -1379,90 +1390,46 @@ public class DefaultCoreSession implements CoreSession
             }
             catch ( LdapException e )
             {
-                return resp;
+                return false;
             }
         }
 
-        resp.setSortResult( SortResultCode.SUCCESS );
-
-        return resp;
+        return true;
     }
 
 
     /**
-     * Sorts the entries based on the given sortkey and returns the cursor
+     * Sorts the entries based on the given sort keys and returns the cursor. When the search
+     * has a size limit, only the entries which can be returned are kept.
      * 
      * @param unsortedEntries the cursor containing un-sorted entries
      * @param control the sort control
+     * @param sizeLimit the search size limit
      * @param schemaManager schema manager
      * @return a cursor containing sorted entries
      * @throws CursorException
      * @throws LdapException
      * @throws IOException
-     * @throws KeyNotFoundException 
      */
-    private Cursor<Entry> sortResults( Cursor<Entry> unsortedEntries, SortRequest control, SchemaManager schemaManager )
-        throws CursorException, LdapException, IOException
+    private Cursor<Entry> sortResults( Cursor<Entry> unsortedEntries, SortRequest control, long sizeLimit,
+        SchemaManager schemaManager ) throws CursorException, LdapException, IOException
     {
         unsortedEntries.beforeFirst();
 
-        Entry first = null;
-
-        if ( unsortedEntries.next() )
-        {
-            first = unsortedEntries.get();
-        }
-
-        if ( !unsortedEntries.next() )
+        // No need to sort less than 2 entries
+        if ( !unsortedEntries.next() || !unsortedEntries.next() )
         {
             unsortedEntries.beforeFirst();
 
             return unsortedEntries;
         }
 
-        SortKey sk = control.getSortKeys().get( 0 );
-
-        AttributeType at = schemaManager.getAttributeType( sk.getAttributeTypeDesc() );
-
-        SortedEntryComparator comparator = new SortedEntryComparator( at, sk.getMatchingRuleId(), sk.isReverseOrder(),
-            schemaManager );
-
-        SortedEntrySerializer keySerializer = new SortedEntrySerializer();
-        SortedEntrySerializer.setSchemaManager( schemaManager );
-        
-        File file = null;
-        
-        try 
-        {
-            file = Files.createTempFile( "replica", ".sorted-data" ).toFile();    // see DIRSERVER-2007
-        } 
-        catch ( IOException e ) 
-        {
-            // see DIRSERVER-2091
-            LOG.error( "Error creating temp file in directory {} for sorting: {}",  
-                System.getProperty( "java.io.tmpdir" ),  e.getMessage(), e );
-            throw e;
-        }
-
-        BaseRecordManager recMan = new BaseRecordManager( file.getAbsolutePath() );
-
-        jdbm.btree.BTree<Entry, String> btree = new jdbm.btree.BTree<>( recMan, comparator, keySerializer, NullStringSerializer.INSTANCE );
-        
-
-        btree.insert( first, "", false );
-
-        // at this stage the cursor will be _on_ the next element, so read it
-        btree.insert( unsortedEntries.get(), "", false );
-
-        while ( unsortedEntries.next() )
-        {
-            Entry entry = unsortedEntries.get();
-            btree.insert( entry, "", false );
-        }
+        unsortedEntries.beforeFirst();
 
-        unsortedEntries.close();
+        EntrySorter sorter = new EntrySorter( control.getSortKeys(), schemaManager,
+            directoryService.getMaxSortedEntriesInMemory(), directoryService.getMaxSortedBytesInMemory() );
 
-        return new SortedEntryCursor( btree, recMan, file );
+        return sorter.sort( unsortedEntries, sizeLimit );
     }
 
 
@@ -0,0 +1,502 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.shared;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.cursor.ListCursor;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.message.controls.SortKey;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Sorts the entries returned by a search, as per <a href="http://tools.ietf.org/html/rfc2891">RFC 2891</a>.
+ * All the sort keys are used, in the order they have been given.
+ * <p>
+ * Depending on the number of entries to sort, we use one of those strategies :
+ * <ul>
+ *   <li>if only the N first entries are needed (there is a size limit), a bounded heap
+ *   is used to keep only those entries in memory</li>
+ *   <li>if the entries fit in memory (below a number of entries and an estimated size), they
+ *   are sorted in memory</li>
+ *   <li>otherwise, the entries are sorted by chunks that are written in temporary files,
+ *   which are merged into one single sorted file the returned cursor reads from</li>
+ * </ul>
+ * The sort values of each entry are computed only once, before sorting, and the sort is stable.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class EntrySorter
+{
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( EntrySorter.class );
+
+    /** The comparators, one per sort key */
+    private final SortedEntryComparator[] comparators;
+
+    /** The schema manager */
+    private final SchemaManager schemaManager;
+
+    /** The maximum number of entries sorted in memory */
+    private final int maxEntriesInMemory;
+
+    /** The maximum estimated size of the entries sorted in memory */
+    private final long maxBytesInMemory;
+
+    /** The comparator used to order the records */
+    private final Comparator<SortRecord> recordComparator = this::compareRecords;
+
+
+    /**
+     * An entry, with its precomputed sort values, and its position in the unsorted
+     * results to keep the sort stable.
+     */
+    private static final class SortRecord
+    {
+        private final Entry entry;
+        private final Object[] values;
+        private final long position;
+
+
+        private SortRecord( Entry entry, Object[] values, long position )
+        {
+            this.entry = entry;
+            this.values = values;
+            this.position = position;
+        }
+    }
+
+
+    /**
+     * Creates a new instance of EntrySorter.
+     *
+     * @param sortKeys The sort keys, which must have been checked before
+     * @param schemaManager The schema manager
+     * @param maxEntriesInMemory The maximum number of entries sorted in memory
+     * @param maxBytesInMemory The maximum estimated size of the entries sorted in memory
+     * @throws LdapException If the comparator of one sort key can't be found
+     */
+    EntrySorter( List<SortKey> sortKeys, SchemaManager schemaManager, int maxEntriesInMemory, long maxBytesInMemory )
+        throws LdapException
+    {
+        this.schemaManager = schemaManager;
+        SortedEntrySerializer.setSchemaManager( schemaManager );
+        this.maxEntriesInMemory = Math.max( maxEntriesInMemory, 1 );
+        this.maxBytesInMemory = Math.max( maxBytesInMemory, 1L );
+        comparators = new SortedEntryComparator[sortKeys.size()];
+
+        for ( int i = 0; i < comparators.length; i++ )
+        {
+            SortKey sortKey = sortKeys.get( i );
+            AttributeType attributeType = schemaManager.getAttributeType( sortKey.getAttributeTypeDesc() );
+
+            comparators[i] = new SortedEntryComparator( attributeType, sortKey.getMatchingRuleId(),
+                sortKey.isReverseOrder(), schemaManager );
+        }
+    }
+
+
+    /**
+     * Sorts the entries. The given cursor is read from its current position, and is closed.
+     *
+     * @param unsortedEntries The entries to sort
+     * @param limit The maximum number of entries that will be read from the returned cursor, or
+     * a negative or null value if there is no limit
+     * @return A cursor on the sorted entries
+     * @throws LdapException If the entries can't be read
+     * @throws CursorException If the entries can't be read
+     * @throws IOException If the temporary files can't be written
+     */
+    Cursor<Entry> sort( Cursor<Entry> unsortedEntries, long limit )
+        throws LdapException, CursorException, IOException
+    {
+        try
+        {
+            // We keep one more entry than the limit, so that the caller knows it has been reached
+            if ( ( limit > 0 ) && ( limit < maxEntriesInMemory ) )
+            {
+                return new ListCursor<>( topEntries( unsortedEntries, ( int ) limit + 1 ) );
+            }
+
+            return sortAll( unsortedEntries );
+        }
+        finally
+        {
+            unsortedEntries.close();
+        }
+    }
+
+
+    /**
+     * Keeps only the N first entries, using a bounded heap where the root is the
+     * greatest kept entry.
+     */
+    private List<Entry> topEntries( Cursor<Entry> unsortedEntries, int nbEntries )
+        throws LdapException, CursorException
+    {
+        PriorityQueue<SortRecord> heap = new PriorityQueue<>( nbEntries + 1, recordComparator.reversed() );
+        long position = 0L;
+
+        while ( unsortedEntries.next() )
+        {
+            SortRecord sortRecord = createRecord( unsortedEntries.get(), position++ );
+
+            if ( heap.size() < nbEntries )
+            {
+                heap.add( sortRecord );
+            }
+            else if ( compareRecords( sortRecord, heap.peek() ) < 0 )
+            {
+                heap.poll();
+                heap.add( sortRecord );
+            }
+        }
+
+        List<SortRecord> records = new ArrayList<>( heap );
+        records.sort( recordComparator );
+
+        return toEntries( records );
+    }
+
+
+    /**
+     * Sorts all the entries, in memory if they fit, otherwise using temporary files.
+     */
+    private Cursor<Entry> sortAll( Cursor<Entry> unsortedEntries ) throws LdapException, CursorException, IOException
+    {
+        List<SortRecord> chunk = new ArrayList<>();
+        List<File> runs = new ArrayList<>();
+        long chunkSize = 0L;
+        long position = 0L;
+
+        try
+        {
+            while ( unsortedEntries.next() )
+            {
+                Entry entry = unsortedEntries.get();
+                chunk.add( createRecord( entry, position++ ) );
+                chunkSize += estimateSize( entry );
+
+                if ( ( chunk.size() >= maxEntriesInMemory ) || ( chunkSize >= maxBytesInMemory ) )
+                {
+                    runs.add( writeRun( chunk ) );
+                    chunk.clear();
+                    chunkSize = 0L;
+                }
+            }
+
+            if ( runs.isEmpty() )
+            {
+                // Everything fits in memory
+                chunk.sort( recordComparator );
+
+                return new ListCursor<>( toEntries( chunk ) );
+            }
+
+            if ( !chunk.isEmpty() )
+            {
+                runs.add( writeRun( chunk ) );
+                chunk.clear();
+            }
+
+            return mergeRuns( runs );
+        }
+        finally
+        {
+            for ( File run : runs )
+            {
+                Files.deleteIfExists( run.toPath() );
+            }
+        }
+    }
+
+
+    /**
+     * Sorts a chunk of entries, and writes them in a temporary file
+     */
+    private File writeRun( List<SortRecord> chunk ) throws IOException
+    {
+        chunk.sort( recordComparator );
+        File file = createTempFile();
+
+        if ( LOG.isDebugEnabled() )
+        {
+            LOG.debug( "Writing {} sorted entries in {}", chunk.size(), file );
+        }
+
+        SortedEntrySerializer serializer = new SortedEntrySerializer();
+
+        try ( DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream( Files.newOutputStream( file.toPath() ) ) ) )
+        {
+            for ( SortRecord sortRecord : chunk )
+            {
+                byte[] data = serializer.serialize( sortRecord.entry );
+                out.writeInt( data.length );
+                out.write( data );
+            }
+        }
+
+        return file;
+    }
+
+
+    /**
+     * Merges the sorted runs into one single file, and returns a cursor on this file.
+     */
+    private Cursor<Entry> mergeRuns( List<File> runs ) throws IOException
+    {
+        List<RunReader> readers = new ArrayList<>( runs.size() );
+        PriorityQueue<RunReader> queue = new PriorityQueue<>( runs.size(),
+            ( reader1, reader2 ) -> compareRecords( reader1.current, reader2.current ) );
+        File merged = createTempFile();
+        long[] offsets = new long[16];
+        int nbEntries = 0;
+
+        try
+        {
+            for ( int i = 0; i < runs.size(); i++ )
+            {
+                RunReader reader = new RunReader( runs.get( i ), i );
+                readers.add( reader );
+
+                if ( reader.next() )
+                {
+                    queue.add( reader );
+                }
+            }
+
+            try ( DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream( Files.newOutputStream( merged.toPath() ) ) ) )
+            {
+                while ( !queue.isEmpty() )
+                {
+                    RunReader reader = queue.poll();
+
+                    if ( nbEntries == offsets.length )
+                    {
+                        long[] newOffsets = new long[offsets.length * 2];
+                        System.arraycopy( offsets, 0, newOffsets, 0, offsets.length );
+                        offsets = newOffsets;
+                    }
+
+                    offsets[nbEntries++] = out.size();
+                    out.writeInt( reader.currentData.length );
+                    out.write( reader.currentData );
+
+                    if ( reader.next() )
+                    {
+                        queue.add( reader );
+                    }
+                }
+            }
+
+            if ( LOG.isDebugEnabled() )
+            {
+                LOG.debug( "Merged {} sorted runs containing {} entries in {}", runs.size(), nbEntries, merged );
+            }
+
+            long[] entryOffsets = new long[nbEntries];
+            System.arraycopy( offsets, 0, entryOffsets, 0, nbEntries );
+
+            return new SortedEntryCursor( merged, entryOffsets, schemaManager );
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            Files.deleteIfExists( merged.toPath() );
+
+            throw e;
+        }
+        finally
+        {
+            for ( RunReader reader : readers )
+            {
+                reader.close();
+            }
+        }
+    }
+
+
+    /**
+     * Reads the entries of a sorted run, one by one.
+     */
+    private final class RunReader implements Closeable
+    {
+        private final DataInputStream in;
+        private final int run;
+        private final SortedEntrySerializer serializer = new SortedEntrySerializer();
+        private SortRecord current;
+        private byte[] currentData;
+
+
+        private RunReader( File file, int run ) throws IOException
+        {
+            this.in = new DataInputStream( new BufferedInputStream( Files.newInputStream( file.toPath() ) ) );
+            this.run = run;
+        }
+
+
+        private boolean next() throws IOException
+        {
+            int length;
+
+            try
+            {
+                length = in.readInt();
+            }
+            catch ( EOFException eofe )
+            {
+                current = null;
+                currentData = null;
+
+                return false;
+            }
+
+            currentData = new byte[length];
+            in.readFully( currentData );
+
+            // The runs are read in the order of the unsorted entries, so using the run
+            // number as the position keeps the merge stable
+            current = createRecord( ( Entry ) serializer.deserialize( currentData ), run );
+
+            return true;
+        }
+
+
+        @Override
+        public void close() throws IOException
+        {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Creates the record for an entry, computing its sort values
+     */
+    private SortRecord createRecord( Entry entry, long position )
+    {
+        Object[] values = new Object[comparators.length];
+
+        for ( int i = 0; i < comparators.length; i++ )
+        {
+            values[i] = comparators[i].getSortValue( entry );
+        }
+
+        return new SortRecord( entry, values, position );
+    }
+
+
+    /**
+     * Compares two records, using all the sort keys in order, then their position
+     */
+    private int compareRecords( SortRecord record1, SortRecord record2 )
+    {
+        for ( int i = 0; i < comparators.length; i++ )
+        {
+            int c = comparators[i].compareSortValues( record1.values[i], record2.values[i] );
+
+            if ( c != 0 )
+            {
+                return c;
+            }
+        }
+
+        return Long.compare( record1.position, record2.position );
+    }
+
+
+    private static List<Entry> toEntries( List<SortRecord> records )
+    {
+        if ( records.isEmpty() )
+        {
+            return Collections.emptyList();
+        }
+
+        List<Entry> entries = new ArrayList<>( records.size() );
+
+        for ( SortRecord sortRecord : records )
+        {
+            entries.add( sortRecord.entry );
+        }
+
+        return entries;
+    }
+
+
+    /**
+     * Estimates the memory used by an entry, based on the size of its values
+     */
+    private static long estimateSize( Entry entry )
+    {
+        long size = entry.getDn().getName().length();
+
+        for ( Attribute attribute : entry )
+        {
+            for ( Value value : attribute )
+            {
+                size += value.length();
+            }
+        }
+
+        return size;
+    }
+
+
+    private static File createTempFile() throws IOException
+    {
+        try
+        {
+            // see DIRSERVER-2007
+            return Files.createTempFile( "sort", ".sorted-data" ).toFile();
+        }
+        catch ( IOException e )
+        {
+            // see DIRSERVER-2091
+            LOG.error( "Error creating temp file in directory {} for sorting: {}",
+                System.getProperty( "java.io.tmpdir" ), e.getMessage(), e );
+
+            throw e;
+        }
+    }
+}
@@ -22,7 +22,6 @@ package org.apache.directory.server.core.shared;
 
 import java.io.Serializable;
 import java.util.Comparator;
-import java.util.TreeSet;
 
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Attribute;
@@ -110,100 +109,115 @@ class SortedEntryComparator implements Comparator<Entry>, Serializable
     }
 
 
-    @Override
-    public int compare( Entry entry1, Entry entry2 )
+    /**
+     * Gets the value used to sort an entry : the normalized value of the attribute,
+     * or its lowest normalized value if the attribute is multi-valued. The value is
+     * computed once per entry, so that sorting does not look it up on each comparison.
+     *
+     * @param entry The entry
+     * @return The sort value, or null if the entry does not have the attribute
+     */
+    Object getSortValue( Entry entry )
     {
-        Attribute at1 = entry1.get( type );
-
-        Attribute at2 = entry2.get( type );
+        Attribute attribute = entry.get( type );
 
-        // as per section 2.2 of the spec null values are considered larger
-        if ( at1 == null )
-        {
-            return reverse ? -1 : 1;
-        }
-        else if ( at2 == null )
+        if ( ( attribute == null ) || ( attribute.size() == 0 ) )
         {
-            return reverse ? 1 : -1;
+            return null;
         }
 
-        Object o1;
-        Object o2;
-
-        if ( multivalued )
+        if ( !multivalued )
         {
-            TreeSet ts = new TreeSet( comparator );
+            return getValue( attribute.get() );
+        }
 
-            o1 = sortAndGetFirst( at1, ts );
+        Object least = null;
 
-            ts.clear();
-            o2 = sortAndGetFirst( at2, ts );
-        }
-        else
+        for ( Value value : attribute )
         {
-            Value v1 = at1.get();
-            Value v2 = at2.get();
+            Object current = getValue( value );
 
-            if ( hr )
+            if ( ( least == null ) || ( compareValues( current, least ) < 0 ) )
             {
-                o1 = v1.getString();
-                o2 = v2.getString();
-            }
-            else
-            {
-                o1 = v1.getBytes();
-                o2 = v2.getBytes();
+                least = current;
             }
         }
 
-        int c;
+        return least;
+    }
+
 
-        try
+    /**
+     * Compares two sort values, as returned by {@link #getSortValue(Entry)}, taking
+     * the sort order into account.
+     *
+     * @param value1 The first value
+     * @param value2 The second value
+     * @return a negative value if the first value comes first, 0 if they are equal, a
+     * positive value if the second value comes first
+     */
+    int compareSortValues( Object value1, Object value2 )
+    {
+        // as per section 2.2 of the spec null values are considered larger
+        if ( value1 == null )
         {
-            if ( reverse )
-            {
-                c = comparator.compare( comparator.getNormalizer().normalize( ( String ) o2 ), o1 );
-            }
-            else
-            {
-                c = comparator.compare( comparator.getNormalizer().normalize( ( String ) o1 ), o2 );
-            }
-    
-            if ( c == 0 )
+            if ( value2 == null )
             {
-                return 1;
+                return 0;
             }
 
-            return c;
+            return reverse ? -1 : 1;
+        }
+        else if ( value2 == null )
+        {
+            return reverse ? 1 : -1;
         }
-        catch ( LdapException le )
+
+        if ( reverse )
+        {
+            return compareValues( value2, value1 );
+        }
+        else
         {
-            return 0;
+            return compareValues( value1, value2 );
         }
     }
 
 
+    @Override
+    public int compare( Entry entry1, Entry entry2 )
+    {
+        return compareSortValues( getSortValue( entry1 ), getSortValue( entry2 ) );
+    }
+
+
     /**
-     * sorts the values of an attribute and picks the least value
-     * 
-     * @param at the attribute
-     * @param ts the TreeSet for sorting 
-     * @return the least value among the values of the attribute
+     * Compares two values using the matching rule comparator, in the natural order
      */
-    private Object sortAndGetFirst( Attribute at, TreeSet ts )
+    @SuppressWarnings("unchecked")
+    private int compareValues( Object value1, Object value2 )
     {
-        for ( Value v : at )
+        return comparator.compare( value1, value2 );
+    }
+
+
+    /**
+     * Gets the value normalized by its attribute type, or the bytes for a binary attribute
+     */
+    private Object getValue( Value value )
+    {
+        if ( !hr )
         {
-            if ( hr )
-            {
-                ts.add( v.getNormalized() );
-            }
-            else
-            {
-                ts.add( v.getBytes() );
-            }
+            return value.getBytes();
+        }
+
+        String normalized = value.getNormalized();
+
+        if ( normalized == null )
+        {
+            return value.getString();
         }
 
-        return ts.first();
+        return normalized;
     }
 }
\ No newline at end of file
@@ -22,19 +22,16 @@ package org.apache.directory.server.core.shared;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
 import java.util.List;
-import java.util.NoSuchElementException;
-
-import jdbm.RecordManager;
-import jdbm.btree.BTree;
-import jdbm.helper.Tuple;
-import jdbm.helper.TupleBrowser;
 
 import org.apache.directory.api.ldap.model.cursor.AbstractCursor;
 import org.apache.directory.api.ldap.model.cursor.CursorException;
 import org.apache.directory.api.ldap.model.cursor.InvalidCursorPositionException;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.server.core.api.filtering.EntryFilter;
 import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
 import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
@@ -43,42 +40,57 @@ import org.slf4j.LoggerFactory;
 
 
 /**
- * Cursor for sorted entries.
- * 
- * Note: This currently uses JDBM, but will be migrated to use Mavibot
- *       when ready.
+ * Cursor for sorted entries stored in a file. Each entry is stored as its length followed
+ * by the entry serialized using a {@link SortedEntrySerializer}, and the offsets of the
+ * entries in the file are kept in memory so that the cursor can move in both directions.
+ * The file is deleted when the cursor is closed.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
 public class SortedEntryCursor extends AbstractCursor<Entry> implements EntryFilteringCursor
 {
-
     private static final Logger LOG = LoggerFactory.getLogger( SortedEntryCursor.class );
-    
-    private TupleBrowser browser;
 
-    private final Tuple tuple = new Tuple();
+    /** The file containing the sorted entries */
+    private final File dataFile;
+
+    /** The file, opened for reading */
+    private RandomAccessFile data;
+
+    /** The offset of each entry in the file */
+    private final long[] offsets;
 
-    private RecordManager recMan;
+    /** The serializer used to read the entries */
+    private final SortedEntrySerializer serializer = new SortedEntrySerializer();
 
-    private File dataFile;
-    
-    private BTree<Entry, String> btree;
-    
+    /** The current position : -1 before the first entry, offsets.length after the last one */
+    private int position = -1;
 
-    public SortedEntryCursor( BTree<Entry, String> btree, RecordManager recMan, File dataFile ) throws IOException
+    /** The entry at the current position, if it has been read */
+    private Entry current;
+
+
+    /**
+     * Creates a new instance of SortedEntryCursor.
+     *
+     * @param dataFile The file containing the sorted entries
+     * @param offsets The offset of each entry in the file
+     * @param schemaManager The schema manager used to read the entries
+     * @throws IOException If the file can't be opened
+     */
+    public SortedEntryCursor( File dataFile, long[] offsets, SchemaManager schemaManager ) throws IOException
     {
-        this.recMan = recMan;
         this.dataFile = dataFile;
-        this.btree = btree;
-        browser = btree.browse();
+        this.offsets = offsets;
+        SortedEntrySerializer.setSchemaManager( schemaManager );
+        data = new RandomAccessFile( dataFile, "r" );
     }
 
 
     @Override
     public boolean available()
     {
-        return tuple.getKey() != null;
+        return ( position >= 0 ) && ( position < offsets.length );
     }
 
 
@@ -99,31 +111,18 @@ public class SortedEntryCursor extends AbstractCursor<Entry> implements EntryFil
     @Override
     public void beforeFirst() throws LdapException, CursorException
     {
-        try
-        {
-            clearValue();
-            browser = btree.browse();
-        }
-        catch ( IOException e )
-        {
-            throw new CursorException( e );
-        }
+        checkNotClosed();
+        position = -1;
+        current = null;
     }
 
 
     @Override
     public void afterLast() throws LdapException, CursorException
     {
-        try
-        {
-            clearValue();
-            browser = btree.browse( null );
-        }
-        catch ( IOException e )
-        {
-            throw new CursorException( e );
-        }
-
+        checkNotClosed();
+        position = offsets.length;
+        current = null;
     }
 
 
@@ -146,73 +145,57 @@ public class SortedEntryCursor extends AbstractCursor<Entry> implements EntryFil
     @Override
     public boolean previous() throws LdapException, CursorException
     {
-        try
-        {
+        checkNotClosed();
+        current = null;
 
-            if ( browser == null )
-            {
-                browser = btree.browse( null );
-            }
-            
-            if ( browser.getPrevious( tuple ) )
-            {
-                return true;
-            }
-        }
-        catch ( IOException e )
-        {
-            throw new CursorException( e );
-        }
-        catch ( NoSuchElementException e )
+        if ( position >= 0 )
         {
-            // ignore this is due to the call wrapped.prev()
-            // instead of doing a check like if(wrapped.hasPrev())
+            position--;
         }
 
-        clearValue();
-        return false;
+        return position >= 0;
     }
 
 
     @Override
     public boolean next() throws LdapException, CursorException
     {
-        try
-        {
-            if ( browser == null )
-            {
-                browser = btree.browse();
-            }
-            
-            if ( browser.getNext( tuple ) )
-            {
-                return true;
-            }
-        }
-        catch ( IOException e )
-        {
-            throw new CursorException( e );
-        }
-        catch ( NoSuchElementException e )
+        checkNotClosed();
+        current = null;
+
+        if ( position < offsets.length )
         {
-            // ignore, this is due to the call wrapped.prev()
-            // instead of doing a check like if(wrapped.hasNext())
+            position++;
         }
 
-        clearValue();
-        return false;
+        return position < offsets.length;
     }
 
 
     @Override
     public Entry get() throws CursorException
     {
-        if ( tuple.getKey() == null )
+        if ( !available() )
         {
             throw new InvalidCursorPositionException();
         }
 
-        return ( Entry ) tuple.getKey();
+        if ( current == null )
+        {
+            try
+            {
+                data.seek( offsets[position] );
+                byte[] serialized = new byte[data.readInt()];
+                data.readFully( serialized );
+                current = ( Entry ) serializer.deserialize( serialized );
+            }
+            catch ( IOException e )
+            {
+                throw new CursorException( e );
+            }
+        }
+
+        return current;
     }
 
 
@@ -252,25 +235,19 @@ public class SortedEntryCursor extends AbstractCursor<Entry> implements EntryFil
         return null;
     }
 
-    
-    private void clearValue()
-    {
-        tuple.setKey( null );
-        tuple.setValue( null );
-    }
 
-    
     private void deleteFile()
     {
-        if ( recMan == null )
+        if ( data == null )
         {
             return;
         }
 
         try
         {
-            recMan.close();
-            dataFile.delete();
+            data.close();
+            data = null;
+            Files.deleteIfExists( dataFile.toPath() );
         }
         catch ( IOException e )
         {
@@ -79,6 +79,7 @@ import org.apache.directory.server.core.api.interceptor.context.RenameOperationC
 import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.UnbindOperationContext;
 import org.apache.directory.server.core.api.partition.AbstractPartition;
+import org.apache.directory.server.core.api.partition.CacheMemoryBudget;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionNexus;
 import org.apache.directory.server.core.api.partition.PartitionReadTxn;
@@ -831,6 +832,16 @@ public class DefaultPartitionNexus extends AbstractPartition implements Partitio
 
         if ( !partition.isInitialized() )
         {
+            // Share the memory dedicated to the caches with the other partitions
+            CacheMemoryBudget cacheMemoryBudget = ( directoryService == null ) ? null
+                : directoryService.getCacheMemoryBudget();
+
+            if ( ( cacheMemoryBudget != null ) && ( partition instanceof AbstractPartition )
+                && ( ( ( AbstractPartition ) partition ).getCacheMemoryBudget() == null ) )
+            {
+                ( ( AbstractPartition ) partition ).setCacheMemoryBudget( cacheMemoryBudget );
+            }
+
             partition.initialize();
         }
 
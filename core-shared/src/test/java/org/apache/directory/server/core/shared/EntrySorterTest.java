@@ -0,0 +1,172 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.shared;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.ListCursor;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.message.controls.SortKey;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Tests the EntrySorter.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class EntrySorterTest
+{
+    private static SchemaManager schemaManager;
+
+
+    @BeforeAll
+    public static void init() throws Exception
+    {
+        schemaManager = new DefaultSchemaManager();
+    }
+
+
+    /**
+     * Creates the entries cn=0 to cn=nbEntries - 1, in a random order. The sn of an entry is
+     * its number on 4 digits, upper cased when the number is odd.
+     */
+    private List<Entry> createEntries( int nbEntries ) throws Exception
+    {
+        List<Entry> entries = new ArrayList<>();
+
+        for ( int i = 0; i < nbEntries; i++ )
+        {
+            String sn = String.format( Locale.ROOT, "sn%04d", i );
+
+            if ( ( i % 2 ) == 1 )
+            {
+                sn = sn.toUpperCase( Locale.ROOT );
+            }
+
+            entries.add( new DefaultEntry( schemaManager, "cn=" + i + ",ou=system",
+                "objectClass: person",
+                "cn: " + i,
+                "sn: " + sn ) );
+        }
+
+        Collections.shuffle( entries, new Random( 42L ) );
+
+        return entries;
+    }
+
+
+    private List<Entry> sort( List<Entry> entries, long limit, int maxEntriesInMemory, boolean reverse )
+        throws Exception
+    {
+        List<SortKey> sortKeys = Collections.singletonList( new SortKey( "sn", null, reverse ) );
+        EntrySorter sorter = new EntrySorter( sortKeys, schemaManager, maxEntriesInMemory, Long.MAX_VALUE );
+        List<Entry> sorted = new ArrayList<>();
+
+        try ( Cursor<Entry> cursor = sorter.sort( new ListCursor<>( entries ), limit ) )
+        {
+            while ( cursor.next() )
+            {
+                sorted.add( cursor.get() );
+            }
+        }
+
+        return sorted;
+    }
+
+
+    @Test
+    public void testSortAll() throws Exception
+    {
+        List<Entry> sorted = sort( createEntries( 100 ), 0L, 10000, false );
+
+        assertEquals( 100, sorted.size() );
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            assertEquals( Integer.toString( i ), sorted.get( i ).get( "cn" ).getString() );
+        }
+    }
+
+
+    @Test
+    public void testTopEntriesKeepOneMoreThanTheLimit() throws Exception
+    {
+        List<Entry> sorted = sort( createEntries( 1000 ), 10L, 10000, false );
+
+        // The entry after the limit is kept, so that the caller knows the limit has been exceeded
+        assertEquals( 11, sorted.size() );
+
+        for ( int i = 0; i < 11; i++ )
+        {
+            assertEquals( Integer.toString( i ), sorted.get( i ).get( "cn" ).getString() );
+        }
+    }
+
+
+    @Test
+    public void testTopEntriesReverse() throws Exception
+    {
+        List<Entry> sorted = sort( createEntries( 1000 ), 5L, 10000, true );
+
+        assertEquals( 6, sorted.size() );
+
+        for ( int i = 0; i < 6; i++ )
+        {
+            assertEquals( Integer.toString( 999 - i ), sorted.get( i ).get( "cn" ).getString() );
+        }
+    }
+
+
+    @Test
+    public void testTopEntriesWithFewerEntriesThanTheLimit() throws Exception
+    {
+        List<Entry> sorted = sort( createEntries( 5 ), 10L, 10000, false );
+
+        assertEquals( 5, sorted.size() );
+    }
+
+
+    @Test
+    public void testSortInRuns() throws Exception
+    {
+        // The limit is above the number of entries kept in memory, so the entries are sorted in runs
+        List<Entry> sorted = sort( createEntries( 100 ), 50L, 16, false );
+
+        assertEquals( 100, sorted.size() );
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            assertEquals( Integer.toString( i ), sorted.get( i ).get( "cn" ).getString() );
+        }
+    }
+}
@@ -100,6 +100,7 @@ import org.apache.directory.server.core.api.interceptor.context.HasEntryOperatio
 import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.OperationContext;
 import org.apache.directory.server.core.api.journal.Journal;
+import org.apache.directory.server.core.api.partition.CacheMemoryBudget;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionNexus;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
@@ -261,6 +262,15 @@ public class DefaultDirectoryService implements DirectoryService
     /** The maximum size for an incoming PDU */
     private int maxPDUSize = Integer.MAX_VALUE;
 
+    /** The maximum number of entries sorted in memory for a server side sort request */
+    private int maxSortedEntriesInMemory = 10000;
+
+    /** The maximum estimated size of the entries sorted in memory for a server side sort request */
+    private long maxSortedBytesInMemory = 64L * 1024L * 1024L;
+
+    /** The memory shared by the partitions caches */
+    private CacheMemoryBudget cacheMemoryBudget;
+
     /** lock file for directory service's working directory */
     private RandomAccessFile lockFile = null;
 
@@ -880,6 +890,12 @@ public class DefaultDirectoryService implements DirectoryService
 
         // And update the set of managed partitions
         partitions.remove( partition );
+
+        // The partition lock is not needed anymore
+        if ( operationManager instanceof DefaultOperationManager )
+        {
+            ( ( DefaultOperationManager ) operationManager ).getLockManager().removePartition( partition );
+        }
     }
 
 
@@ -2193,6 +2209,90 @@ public class DefaultDirectoryService implements DirectoryService
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getMaxSortedEntriesInMemory()
+    {
+        return maxSortedEntriesInMemory;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setMaxSortedEntriesInMemory( int maxSortedEntriesInMemory )
+    {
+        this.maxSortedEntriesInMemory = Math.max( maxSortedEntriesInMemory, 1 );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getMaxSortedBytesInMemory()
+    {
+        return maxSortedBytesInMemory;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setMaxSortedBytesInMemory( long maxSortedBytesInMemory )
+    {
+        this.maxSortedBytesInMemory = Math.max( maxSortedBytesInMemory, 1L );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CacheMemoryBudget getCacheMemoryBudget()
+    {
+        return cacheMemoryBudget;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setCacheMemoryBudget( CacheMemoryBudget cacheMemoryBudget )
+    {
+        this.cacheMemoryBudget = cacheMemoryBudget;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isPartitionLockingEnabled()
+    {
+        return ( operationManager instanceof DefaultOperationManager )
+            && ( ( DefaultOperationManager ) operationManager ).isPartitionLockingEnabled();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setPartitionLockingEnabled( boolean partitionLockingEnabled )
+    {
+        if ( operationManager instanceof DefaultOperationManager )
+        {
+            ( ( DefaultOperationManager ) operationManager ).setPartitionLockingEnabled( partitionLockingEnabled );
+        }
+    }
+
+
     /**
      * {@inheritDoc}
      */
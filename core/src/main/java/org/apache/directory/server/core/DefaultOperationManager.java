@@ -24,7 +24,6 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.directory.api.ldap.extras.controls.ad.TreeDelete;
 import org.apache.directory.api.ldap.model.constants.Loggers;
@@ -71,7 +70,9 @@ import org.apache.directory.server.core.api.interceptor.context.RenameOperationC
 import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.UnbindOperationContext;
 import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionLockTimeoutException;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.api.partition.PartitionWriteTxn;
 import org.apache.directory.server.i18n.I18n;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -101,8 +102,8 @@ public class DefaultOperationManager implements OperationManager
     /** The directory service instance */
     private final DirectoryService directoryService;
 
-    /** A lock used to protect against concurrent operations */
-    private ReadWriteLock rwLock = new ReentrantReadWriteLock( true );
+    /** The locks used to protect the partitions against concurrent operations */
+    private final PartitionLockManager lockManager = new PartitionLockManager();
 
     /** A reference to the ObjectClass AT */
     protected AttributeType objectClassAT;
@@ -121,43 +122,211 @@ public class DefaultOperationManager implements OperationManager
      */
     public ReadWriteLock getRWLock()
     {
-        return rwLock;
+        return lockManager.getGlobalLock();
     }
 
 
     /**
-     * Acquires a ReadLock
+     * {@inheritDoc}
+     */
+    public ReadWriteLock getRWLock( Partition partition )
+    {
+        return lockManager.getLock( partition );
+    }
+
+
+    /**
+     * @return The manager handling the partition locks
+     */
+    public PartitionLockManager getLockManager()
+    {
+        return lockManager;
+    }
+
+
+    /**
+     * @return <code>true</code> if each partition is protected by its own lock
+     */
+    public boolean isPartitionLockingEnabled()
+    {
+        return lockManager.isPartitionLockingEnabled();
+    }
+
+
+    /**
+     * Enables or disables per-partition locking. When enabled, writes on independent
+     * partitions can proceed in parallel. This must be set before the server is started.
+     *
+     * @param partitionLockingEnabled <code>true</code> if each partition has its own lock
+     */
+    public void setPartitionLockingEnabled( boolean partitionLockingEnabled )
+    {
+        lockManager.setPartitionLockingEnabled( partitionLockingEnabled );
+    }
+
+
+    /**
+     * Acquires a ReadLock on all the partitions
      */
     public void lockRead()
     {
-        rwLock.readLock().lock();
+        lockManager.getGlobalLock().readLock().lock();
     }
 
 
     /**
-     * Acquires a WriteLock
+     * Acquires a WriteLock on all the partitions
      */
     public void lockWrite()
     {
-        rwLock.writeLock().lock();
+        lockManager.lockWrite();
     }
 
 
     /**
-     * Releases a WriteLock
+     * Releases a WriteLock on all the partitions
      */
     public void unlockWrite()
     {
-        rwLock.writeLock().unlock();
+        lockManager.unlockWrite();
     }
 
 
     /**
-     * Releases a ReadLock
+     * Releases a ReadLock on all the partitions
      */
     public void unlockRead()
     {
-        rwLock.readLock().unlock();
+        lockManager.getGlobalLock().readLock().unlock();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void lockRead( Partition partition ) throws LdapServiceUnavailableException
+    {
+        lockPartitionsRead( partition );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void unlockRead( Partition partition )
+    {
+        lockManager.unlockRead( partition );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void lockWrite( Partition partition ) throws LdapServiceUnavailableException
+    {
+        lockPartitionsWrite( partition );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void unlockWrite( Partition partition )
+    {
+        lockManager.unlockWrite( partition );
+    }
+
+
+    /**
+     * Acquires a ReadLock on some partitions, in the lock order
+     *
+     * @param partitions The partitions to lock
+     * @throws LdapServiceUnavailableException If a nested operation can't lock a partition
+     * out of the lock order
+     */
+    private void lockPartitionsRead( Partition... partitions ) throws LdapServiceUnavailableException
+    {
+        try
+        {
+            lockManager.lockRead( partitions );
+        }
+        catch ( PartitionLockTimeoutException plte )
+        {
+            throw new LdapServiceUnavailableException( ResultCodeEnum.BUSY, plte.getMessage() );
+        }
+    }
+
+
+    /**
+     * Acquires a WriteLock on some partitions, in the lock order
+     *
+     * @param partitions The partitions to lock
+     * @throws LdapServiceUnavailableException If a nested operation can't lock a partition
+     * out of the lock order
+     */
+    private void lockPartitionsWrite( Partition... partitions ) throws LdapServiceUnavailableException
+    {
+        try
+        {
+            lockManager.lockWrite( partitions );
+        }
+        catch ( PartitionLockTimeoutException plte )
+        {
+            throw new LdapServiceUnavailableException( ResultCodeEnum.BUSY, plte.getMessage() );
+        }
+    }
+
+
+    /**
+     * Gets the partitions a search has to lock : a search from the RootDSE which is not
+     * limited to the RootDSE itself reads all the context entries, or all the partitions.
+     * The RootDSE partition is virtual, and does not need to be locked.
+     */
+    private Partition[] getSearchedPartitions( SearchOperationContext searchContext, Partition partition )
+        throws LdapException
+    {
+        if ( !searchContext.getDn().isRootDse() || ( searchContext.getScope() == SearchScope.OBJECT ) )
+        {
+            return new Partition[]
+                { partition };
+        }
+
+        List<Partition> partitions = new ArrayList<>();
+
+        for ( String suffix : directoryService.getPartitionNexus().listSuffixes() )
+        {
+            partitions.add( directoryService.getPartitionNexus().getPartition(
+                directoryService.getDnFactory().create( suffix ) ) );
+        }
+
+        return partitions.toArray( new Partition[0] );
+    }
+
+
+    /**
+     * Waits until the changes committed by an operation are on disk, for the partitions
+     * which synchronize their commits in the background. This is done once the partitions
+     * have been unlocked, so that the other writers can be processed meanwhile.
+     */
+    private void awaitDurability( OperationContext opContext, PartitionTxn transaction ) throws LdapException
+    {
+        if ( !( transaction instanceof PartitionWriteTxn ) || opContext.getSession().hasSessionTransaction() )
+        {
+            return;
+        }
+
+        try
+        {
+            ( ( PartitionWriteTxn ) transaction ).awaitDurability();
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
     }
 
 
@@ -409,7 +578,7 @@ public class DefaultOperationManager implements OperationManager
         // Call the Add method
         Interceptor head = directoryService.getInterceptor( addContext.getNextInterceptor() );
 
-        lockWrite();
+        lockPartitionsWrite( partition );
 
         // Start a Write transaction right away
         PartitionTxn transaction = addContext.getSession().getTransaction( partition ); 
@@ -466,9 +635,11 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            lockManager.unlockWrite( partition );
         }
 
+        awaitDurability( addContext, transaction );
+
         if ( IS_DEBUG )
         {
             OPERATION_LOG.debug( "<< AddOperation successful" );
@@ -512,12 +683,12 @@ public class DefaultOperationManager implements OperationManager
             bindContext.setDn( dn );
         }
 
-        lockRead();
+        Partition partition = directoryService.getPartitionNexus().getPartition( dn );
+
+        lockPartitionsRead( partition );
 
         try
         {
-            Partition partition = directoryService.getPartitionNexus().getPartition( dn );
-            
             try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
             {
                 bindContext.setPartition( partition );
@@ -532,7 +703,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockRead();
+            lockManager.unlockRead( partition );
         }
 
         if ( IS_DEBUG )
@@ -627,12 +798,12 @@ public class DefaultOperationManager implements OperationManager
 
         boolean result = false;
 
-        lockRead();
+        Partition partition = directoryService.getPartitionNexus().getPartition( dn );
+
+        lockPartitionsRead( partition );
 
         try
         {
-            Partition partition = directoryService.getPartitionNexus().getPartition( dn );
-            
             try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
             {
                 compareContext.setPartition( partition );
@@ -647,7 +818,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockRead();
+            lockManager.unlockRead( partition );
         }
 
         if ( IS_DEBUG )
@@ -795,7 +966,7 @@ public class DefaultOperationManager implements OperationManager
         }
 
         // populate the context with the old entry
-        lockWrite();
+        lockPartitionsWrite( partition );
 
         // Start a Write transaction right away
         PartitionTxn transaction = deleteContext.getSession().getTransaction( partition ); 
@@ -889,9 +1060,11 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            lockManager.unlockWrite( partition );
         }
 
+        awaitDurability( deleteContext, transaction );
+
         if ( IS_DEBUG )
         {
             OPERATION_LOG.debug( "<< DeleteOperation successful" );
@@ -925,13 +1098,12 @@ public class DefaultOperationManager implements OperationManager
 
         Interceptor head = directoryService.getInterceptor( getRootDseContext.getNextInterceptor() );
         Entry root;
+        Partition partition = directoryService.getPartitionNexus().getPartition( Dn.ROOT_DSE );
+
+        lockPartitionsRead( partition );
 
         try
         {
-            lockRead();
-            
-            Partition partition = directoryService.getPartitionNexus().getPartition( Dn.ROOT_DSE );
-            
             try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
             {
                 getRootDseContext.setPartition( partition );
@@ -946,7 +1118,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockRead();
+            lockManager.unlockRead( partition );
         }
 
         if ( IS_DEBUG )
@@ -986,8 +1158,6 @@ public class DefaultOperationManager implements OperationManager
 
         boolean result = false;
 
-        lockRead();
-
         // Normalize the addContext Dn
         Dn dn = hasEntryContext.getDn();
         
@@ -997,10 +1167,12 @@ public class DefaultOperationManager implements OperationManager
             hasEntryContext.setDn( dn );
         }
 
+        Partition partition = directoryService.getPartitionNexus().getPartition( dn );
+
+        lockPartitionsRead( partition );
+
         try
         {
-            Partition partition = directoryService.getPartitionNexus().getPartition( dn );
-
             try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
             {
                 hasEntryContext.setPartition( partition );
@@ -1015,7 +1187,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockRead();
+            lockManager.unlockRead( partition );
         }
 
         if ( IS_DEBUG )
@@ -1072,7 +1244,7 @@ public class DefaultOperationManager implements OperationManager
         {
             lookupContext.setTransaction( transaction );
 
-            lockRead();
+            lockPartitionsRead( partition );
     
             try
             {
@@ -1080,7 +1252,7 @@ public class DefaultOperationManager implements OperationManager
             }
             finally
             {
-                unlockRead();
+                lockManager.unlockRead( partition );
             }
         }
         catch ( IOException ioe )
@@ -1187,7 +1359,7 @@ public class DefaultOperationManager implements OperationManager
         Partition partition = directoryService.getPartitionNexus().getPartition( dn );
         modifyContext.setPartition( partition );
         
-        lockWrite();
+        lockPartitionsWrite( partition );
         
         // Start a Write transaction right away
         PartitionTxn transaction = modifyContext.getSession().getTransaction( partition ); 
@@ -1250,9 +1422,11 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            lockManager.unlockWrite( partition );
         }
 
+        awaitDurability( modifyContext, transaction );
+
         if ( IS_DEBUG )
         {
             OPERATION_LOG.debug( "<< ModifyOperation successful" );
@@ -1358,12 +1532,15 @@ public class DefaultOperationManager implements OperationManager
             directoryService.getReferralManager().unlock();
         }
 
-        lockWrite();
-        
         // Find the working partition
         Partition partition = directoryService.getPartitionNexus().getPartition( dn );
         moveContext.setPartition( partition );
 
+        // The new superior may be in another partition : lock both
+        Partition newSuperiorPartition = directoryService.getPartitionNexus().getPartition( newSuperiorDn );
+
+        lockPartitionsWrite( partition, newSuperiorPartition );
+
         // Start a Write transaction right away
         PartitionTxn transaction = moveContext.getSession().getTransaction( partition ); 
         
@@ -1428,9 +1605,11 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            lockManager.unlockWrite( partition, newSuperiorPartition );
         }
 
+        awaitDurability( moveContext, transaction );
+
         if ( IS_DEBUG )
         {
             OPERATION_LOG.debug( "<< MoveOperation successful" );
@@ -1541,7 +1720,11 @@ public class DefaultOperationManager implements OperationManager
         Partition partition = directoryService.getPartitionNexus().getPartition( dn );
         moveAndRenameContext.setPartition( partition );
 
-        lockWrite();
+        // The new superior may be in another partition : lock both
+        Partition newSuperiorPartition = directoryService.getPartitionNexus().getPartition(
+            moveAndRenameContext.getNewSuperiorDn() );
+
+        lockPartitionsWrite( partition, newSuperiorPartition );
         
         // Start a Write transaction right away
         PartitionTxn transaction = moveAndRenameContext.getSession().getTransaction( partition ); 
@@ -1603,9 +1786,11 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            lockManager.unlockWrite( partition, newSuperiorPartition );
         }
 
+        awaitDurability( moveAndRenameContext, transaction );
+
         if ( IS_DEBUG )
         {
             OPERATION_LOG.debug( "<< MoveAndRenameOperation successful" );
@@ -1709,10 +1894,10 @@ public class DefaultOperationManager implements OperationManager
             directoryService.getReferralManager().unlock();
         }
 
-        lockWrite();
-
         Partition partition = directoryService.getPartitionNexus().getPartition( dn );
 
+        lockPartitionsWrite( partition );
+
         // Start a Write transaction right away
         PartitionTxn transaction = renameContext.getSession().getTransaction( partition ); 
         
@@ -1823,9 +2008,11 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            lockManager.unlockWrite( partition );
         }
 
+        awaitDurability( renameContext, transaction );
+
         if ( IS_DEBUG )
         {
             OPERATION_LOG.debug( "<< RenameOperation successful" );
@@ -1917,12 +2104,15 @@ public class DefaultOperationManager implements OperationManager
 
         EntryFilteringCursor cursor = null;
         Partition partition = directoryService.getPartitionNexus().getPartition( dn );
+
+        // A search from the RootDSE may read all the partitions
+        Partition[] searchedPartitions = getSearchedPartitions( searchContext, partition );
         
         try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
         {
             searchContext.setPartition( partition );
             searchContext.setTransaction( partitionTxn );
-            lockRead();
+            lockPartitionsRead( searchedPartitions );
     
             try
             {
@@ -1930,7 +2120,7 @@ public class DefaultOperationManager implements OperationManager
             }
             finally
             {
-                unlockRead();
+                lockManager.unlockRead( searchedPartitions );
             }
         }
         catch ( IOException ioe )
@@ -0,0 +1,528 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core;
+
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionLockTimeoutException;
+
+
+/**
+ * Manages the locks protecting the partitions against concurrent operations.
+ * <p>
+ * By default, a single global ReadWriteLock is shared by all the partitions, so
+ * a write on any partition blocks every other operation. When per-partition locking
+ * is enabled, each partition gets its own ReadWriteLock, and the global lock is only
+ * taken in read mode by operations, so that writes on independent partitions can
+ * proceed in parallel. Acquiring the global lock in write mode still excludes every
+ * other operation, which is what is needed when the whole server has to be flushed.
+ * <p>
+ * When an operation has to lock more than one partition (for instance a move across
+ * partitions, or a subtree search from the RootDSE), the partition locks are always
+ * acquired in the order of the partition IDs, to avoid deadlocks between concurrent
+ * cross-partition operations. The locks held by each thread are tracked, so that nested
+ * operations (an interceptor looking up an entry in another partition while the current
+ * operation holds its partition lock) follow the same order : a lock requested out of
+ * order is only waited for during a limited time, after which a
+ * {@link PartitionLockTimeoutException} is thrown instead of risking a deadlock. The
+ * operation manager and the partitions turn it into a BUSY LdapServiceUnavailableException,
+ * so that the operation, and its transaction, are aborted and can be retried by the client.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PartitionLockManager
+{
+    /** The order in which partition locks are acquired */
+    private static final Comparator<Partition> LOCK_ORDER = Comparator.comparing( Partition::getId );
+
+    /** The default time a lock requested out of order is waited for, in milliseconds */
+    public static final long DEFAULT_OUT_OF_ORDER_TIMEOUT = 1000L;
+
+    /** The global lock, used for all the partitions when per-partition locking is disabled */
+    private final ReadWriteLock globalLock = new ReentrantReadWriteLock( true );
+
+    /** The per-partition locks, keyed by partition ID */
+    private final ConcurrentMap<String, ReadWriteLock> partitionLocks = new ConcurrentHashMap<>();
+
+    /** The partition locks held by the current thread, with their hold count, in the lock order */
+    private final ThreadLocal<TreeMap<String, Integer>> heldLocks = ThreadLocal.withInitial( TreeMap::new );
+
+    /** Tells if we use one lock per partition */
+    private volatile boolean partitionLockingEnabled;
+
+    /** The time a lock requested out of order is waited for, in milliseconds */
+    private volatile long outOfOrderTimeout = DEFAULT_OUT_OF_ORDER_TIMEOUT;
+
+
+    /**
+     * Creates a new instance of PartitionLockManager, using a single global lock.
+     */
+    public PartitionLockManager()
+    {
+        this( false );
+    }
+
+
+    /**
+     * Creates a new instance of PartitionLockManager.
+     *
+     * @param partitionLockingEnabled <code>true</code> if each partition has its own lock
+     */
+    public PartitionLockManager( boolean partitionLockingEnabled )
+    {
+        this.partitionLockingEnabled = partitionLockingEnabled;
+    }
+
+
+    /**
+     * @return <code>true</code> if each partition has its own lock
+     */
+    public boolean isPartitionLockingEnabled()
+    {
+        return partitionLockingEnabled;
+    }
+
+
+    /**
+     * Enables or disables per-partition locking. This must be set before the server
+     * is started, as the partitions keep a reference on their lock.
+     *
+     * @param partitionLockingEnabled <code>true</code> if each partition has its own lock
+     */
+    public void setPartitionLockingEnabled( boolean partitionLockingEnabled )
+    {
+        this.partitionLockingEnabled = partitionLockingEnabled;
+    }
+
+
+    /**
+     * @return The time a partition lock requested out of order is waited for, in milliseconds
+     */
+    public long getOutOfOrderTimeout()
+    {
+        return outOfOrderTimeout;
+    }
+
+
+    /**
+     * Sets the time a partition lock requested out of order is waited for. Such a request
+     * comes from a thread which already holds the lock of a partition ordered after the
+     * requested one : waiting without limit could deadlock with another thread doing the
+     * opposite.
+     *
+     * @param outOfOrderTimeout The timeout, in milliseconds
+     */
+    public void setOutOfOrderTimeout( long outOfOrderTimeout )
+    {
+        this.outOfOrderTimeout = outOfOrderTimeout;
+    }
+
+
+    /**
+     * @return The global lock
+     */
+    public ReadWriteLock getGlobalLock()
+    {
+        return globalLock;
+    }
+
+
+    /**
+     * Gets the lock protecting a given partition. If per-partition locking is disabled,
+     * or if the partition is null, the global lock is returned.
+     *
+     * @param partition The partition we want the lock for
+     * @return The ReadWriteLock protecting the partition
+     */
+    public ReadWriteLock getLock( Partition partition )
+    {
+        if ( !partitionLockingEnabled || ( partition == null ) || ( partition.getId() == null ) )
+        {
+            return globalLock;
+        }
+
+        return getPartitionLock( partition.getId() );
+    }
+
+
+    private ReadWriteLock getPartitionLock( String partitionId )
+    {
+        return partitionLocks.computeIfAbsent( partitionId, PartitionLock::new );
+    }
+
+
+    /**
+     * Acquires a read lock on one or more partitions. The partition locks are acquired
+     * in a consistent order, whatever the order of the given partitions.
+     *
+     * @param partitions The partitions to lock
+     * @throws PartitionLockTimeoutException If a lock requested out of order can't be acquired
+     */
+    public void lockRead( Partition... partitions )
+    {
+        ReadWriteLock[] locks = getOrderedLocks( partitions );
+
+        globalLock.readLock().lock();
+        int acquired = 0;
+
+        try
+        {
+            for ( ReadWriteLock lock : locks )
+            {
+                lock.readLock().lock();
+                acquired++;
+            }
+        }
+        catch ( RuntimeException re )
+        {
+            for ( int i = acquired - 1; i >= 0; i-- )
+            {
+                locks[i].readLock().unlock();
+            }
+
+            globalLock.readLock().unlock();
+
+            throw re;
+        }
+    }
+
+
+    /**
+     * Releases the read locks previously acquired on one or more partitions.
+     *
+     * @param partitions The partitions to unlock
+     */
+    public void unlockRead( Partition... partitions )
+    {
+        ReadWriteLock[] locks = getOrderedLocks( partitions );
+
+        // Release in the reverse order
+        for ( int i = locks.length - 1; i >= 0; i-- )
+        {
+            locks[i].readLock().unlock();
+        }
+
+        globalLock.readLock().unlock();
+    }
+
+
+    /**
+     * Acquires a write lock on one or more partitions. The partition locks are acquired
+     * in a consistent order, whatever the order of the given partitions.
+     *
+     * @param partitions The partitions to lock
+     * @throws PartitionLockTimeoutException If a lock requested out of order can't be acquired
+     */
+    public void lockWrite( Partition... partitions )
+    {
+        ReadWriteLock[] locks = getOrderedLocks( partitions );
+
+        if ( locks.length == 0 )
+        {
+            globalLock.writeLock().lock();
+
+            return;
+        }
+
+        globalLock.readLock().lock();
+        int acquired = 0;
+
+        try
+        {
+            for ( ReadWriteLock lock : locks )
+            {
+                lock.writeLock().lock();
+                acquired++;
+            }
+        }
+        catch ( RuntimeException re )
+        {
+            for ( int i = acquired - 1; i >= 0; i-- )
+            {
+                locks[i].writeLock().unlock();
+            }
+
+            globalLock.readLock().unlock();
+
+            throw re;
+        }
+    }
+
+
+    /**
+     * Releases the write locks previously acquired on one or more partitions.
+     *
+     * @param partitions The partitions to unlock
+     */
+    public void unlockWrite( Partition... partitions )
+    {
+        ReadWriteLock[] locks = getOrderedLocks( partitions );
+
+        if ( locks.length == 0 )
+        {
+            globalLock.writeLock().unlock();
+
+            return;
+        }
+
+        // Release in the reverse order
+        for ( int i = locks.length - 1; i >= 0; i-- )
+        {
+            locks[i].writeLock().unlock();
+        }
+
+        globalLock.readLock().unlock();
+    }
+
+
+    /**
+     * Removes the lock associated with a partition, when it is removed from the server.
+     *
+     * @param partition The removed partition
+     */
+    public void removePartition( Partition partition )
+    {
+        if ( ( partition != null ) && ( partition.getId() != null ) )
+        {
+            partitionLocks.remove( partition.getId() );
+        }
+    }
+
+
+    /**
+     * Gets the distinct per-partition locks to acquire, in the lock order. An empty
+     * array means the global lock has to be used in write mode.
+     */
+    private ReadWriteLock[] getOrderedLocks( Partition... partitions )
+    {
+        if ( !partitionLockingEnabled || ( partitions == null ) || ( partitions.length == 0 ) )
+        {
+            return new ReadWriteLock[0];
+        }
+
+        for ( Partition partition : partitions )
+        {
+            if ( ( partition == null ) || ( partition.getId() == null ) )
+            {
+                // We can't order an unknown partition, use the global lock
+                return new ReadWriteLock[0];
+            }
+        }
+
+        return Arrays.stream( partitions )
+            .sorted( LOCK_ORDER )
+            .map( Partition::getId )
+            .distinct()
+            .map( this::getPartitionLock )
+            .toArray( ReadWriteLock[]::new );
+    }
+
+
+    /**
+     * The lock of a partition. It keeps track of the partitions locked by each thread,
+     * so that a lock requested out of order never waits forever.
+     */
+    private final class PartitionLock implements ReadWriteLock
+    {
+        /** The locked partition ID */
+        private final String partitionId;
+
+        /** The underlying lock */
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock( true );
+
+        /** The read lock */
+        private final Lock readLock;
+
+        /** The write lock */
+        private final Lock writeLock;
+
+
+        private PartitionLock( String partitionId )
+        {
+            this.partitionId = partitionId;
+            readLock = new OrderedLock( partitionId, lock.readLock() );
+            writeLock = new OrderedLock( partitionId, lock.writeLock() );
+        }
+
+
+        @Override
+        public Lock readLock()
+        {
+            return readLock;
+        }
+
+
+        @Override
+        public Lock writeLock()
+        {
+            return writeLock;
+        }
+
+
+        @Override
+        public String toString()
+        {
+            return "PartitionLock[" + partitionId + "]";
+        }
+    }
+
+
+    /**
+     * A read or write partition lock, which keeps track of the current thread locks.
+     */
+    private final class OrderedLock implements Lock
+    {
+        /** The locked partition ID */
+        private final String partitionId;
+
+        /** The underlying read or write lock */
+        private final Lock lock;
+
+
+        private OrderedLock( String partitionId, Lock lock )
+        {
+            this.partitionId = partitionId;
+            this.lock = lock;
+        }
+
+
+        /**
+         * Tells if the current thread can wait for this lock without risking a deadlock :
+         * it holds no partition lock, it already holds this one, or all the ones it holds
+         * come before this one in the lock order.
+         */
+        private boolean isInOrder()
+        {
+            TreeMap<String, Integer> held = heldLocks.get();
+
+            return held.isEmpty() || held.containsKey( partitionId ) || ( partitionId.compareTo( held.lastKey() ) > 0 );
+        }
+
+
+        private void acquired()
+        {
+            heldLocks.get().merge( partitionId, 1, Integer::sum );
+        }
+
+
+        @Override
+        public void lock()
+        {
+            if ( isInOrder() )
+            {
+                lock.lock();
+            }
+            else
+            {
+                try
+                {
+                    if ( !lock.tryLock( outOfOrderTimeout, TimeUnit.MILLISECONDS ) )
+                    {
+                        throw new PartitionLockTimeoutException( partitionId );
+                    }
+                }
+                catch ( InterruptedException ie )
+                {
+                    Thread.currentThread().interrupt();
+
+                    throw new PartitionLockTimeoutException( partitionId );
+                }
+            }
+
+            acquired();
+        }
+
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException
+        {
+            if ( isInOrder() )
+            {
+                lock.lockInterruptibly();
+            }
+            else if ( !lock.tryLock( outOfOrderTimeout, TimeUnit.MILLISECONDS ) )
+            {
+                throw new PartitionLockTimeoutException( partitionId );
+            }
+
+            acquired();
+        }
+
+
+        @Override
+        public boolean tryLock()
+        {
+            if ( lock.tryLock() )
+            {
+                acquired();
+
+                return true;
+            }
+
+            return false;
+        }
+
+
+        @Override
+        public boolean tryLock( long time, TimeUnit unit ) throws InterruptedException
+        {
+            if ( lock.tryLock( time, unit ) )
+            {
+                acquired();
+
+                return true;
+            }
+
+            return false;
+        }
+
+
+        @Override
+        public void unlock()
+        {
+            lock.unlock();
+
+            TreeMap<String, Integer> held = heldLocks.get();
+
+            if ( held.merge( partitionId, -1, Integer::sum ) <= 0 )
+            {
+                held.remove( partitionId );
+            }
+        }
+
+
+        @Override
+        public Condition newCondition()
+        {
+            return lock.newCondition();
+        }
+    }
+}
@@ -0,0 +1,434 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core;
+
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionLockTimeoutException;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Tests for the PartitionLockManager.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PartitionLockManagerTest
+{
+    /**
+     * Creates a Partition which only knows about its ID
+     */
+    private static Partition partition( String id )
+    {
+        return ( Partition ) Proxy.newProxyInstance( Partition.class.getClassLoader(),
+            new Class<?>[]
+                { Partition.class }, ( proxy, method, args ) ->
+                {
+                    switch ( method.getName() )
+                    {
+                        case "getId":
+                            return id;
+
+                        case "hashCode":
+                            return id.hashCode();
+
+                        case "equals":
+                            return proxy == args[0];
+
+                        case "toString":
+                            return id;
+
+                        default:
+                            throw new UnsupportedOperationException( method.getName() );
+                    }
+                } );
+    }
+
+
+    /**
+     * Runs a task in another thread and tells if it completed in a reasonable time
+     */
+    private static boolean completesInOtherThread( Runnable task ) throws InterruptedException
+    {
+        CountDownLatch done = new CountDownLatch( 1 );
+
+        Thread thread = new Thread( () ->
+        {
+            task.run();
+            done.countDown();
+        } );
+
+        thread.setDaemon( true );
+        thread.start();
+
+        return done.await( 500, TimeUnit.MILLISECONDS );
+    }
+
+
+    @Test
+    public void testGlobalLockWhenDisabled()
+    {
+        PartitionLockManager lockManager = new PartitionLockManager();
+        Partition example = partition( "example" );
+
+        assertFalse( lockManager.isPartitionLockingEnabled() );
+        assertSame( lockManager.getGlobalLock(), lockManager.getLock( example ) );
+    }
+
+
+    @Test
+    public void testOneLockPerPartition()
+    {
+        PartitionLockManager lockManager = new PartitionLockManager( true );
+        Partition example = partition( "example" );
+        Partition config = partition( "config" );
+
+        assertNotSame( lockManager.getGlobalLock(), lockManager.getLock( example ) );
+        assertNotSame( lockManager.getLock( config ), lockManager.getLock( example ) );
+        assertSame( lockManager.getLock( example ), lockManager.getLock( partition( "example" ) ) );
+        assertSame( lockManager.getGlobalLock(), lockManager.getLock( null ) );
+    }
+
+
+    @Test
+    public void testIndependentPartitionWrites() throws InterruptedException
+    {
+        PartitionLockManager lockManager = new PartitionLockManager( true );
+        Partition example = partition( "example" );
+        Partition config = partition( "config" );
+
+        lockManager.lockWrite( example );
+
+        try
+        {
+            // A write or a read on another partition must not be blocked
+            assertTrue( completesInOtherThread( () ->
+            {
+                lockManager.lockWrite( config );
+                lockManager.unlockWrite( config );
+                lockManager.lockRead( config );
+                lockManager.unlockRead( config );
+            } ) );
+
+            // A read on the same partition must be blocked
+            assertFalse( completesInOtherThread( () ->
+            {
+                lockManager.lockRead( example );
+                lockManager.unlockRead( example );
+            } ) );
+        }
+        finally
+        {
+            lockManager.unlockWrite( example );
+        }
+    }
+
+
+    @Test
+    public void testSerializedWritesWhenDisabled() throws InterruptedException
+    {
+        PartitionLockManager lockManager = new PartitionLockManager();
+        Partition example = partition( "example" );
+        Partition config = partition( "config" );
+
+        lockManager.lockWrite( example );
+
+        try
+        {
+            assertFalse( completesInOtherThread( () ->
+            {
+                lockManager.lockWrite( config );
+                lockManager.unlockWrite( config );
+            } ) );
+        }
+        finally
+        {
+            lockManager.unlockWrite( example );
+        }
+    }
+
+
+    @Test
+    public void testGlobalWriteLockExcludesPartitionOperations() throws InterruptedException
+    {
+        PartitionLockManager lockManager = new PartitionLockManager( true );
+        Partition example = partition( "example" );
+
+        lockManager.lockWrite();
+
+        try
+        {
+            assertFalse( completesInOtherThread( () ->
+            {
+                lockManager.lockRead( example );
+                lockManager.unlockRead( example );
+            } ) );
+        }
+        finally
+        {
+            lockManager.unlockWrite();
+        }
+    }
+
+
+    @Test
+    public void testCrossPartitionLockOrdering() throws InterruptedException
+    {
+        PartitionLockManager lockManager = new PartitionLockManager( true );
+        Partition example = partition( "example" );
+        Partition config = partition( "config" );
+
+        // Locking the same partitions in opposite orders from two threads must never deadlock
+        CountDownLatch done = new CountDownLatch( 1 );
+
+        Thread thread = new Thread( () ->
+        {
+            for ( int i = 0; i < 1000; i++ )
+            {
+                lockManager.lockWrite( example, config );
+                lockManager.unlockWrite( example, config );
+            }
+
+            done.countDown();
+        } );
+
+        thread.setDaemon( true );
+        thread.start();
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            lockManager.lockWrite( config, example );
+            lockManager.unlockWrite( config, example );
+        }
+
+        assertTrue( done.await( 5, TimeUnit.SECONDS ) );
+
+        // The same partition given twice is only locked once
+        lockManager.lockWrite( example, example );
+        lockManager.unlockWrite( example, example );
+
+        assertTrue( completesInOtherThread( () ->
+        {
+            lockManager.lockWrite( example );
+            lockManager.unlockWrite( example );
+        } ) );
+    }
+
+
+    @Test
+    public void testNestedLocksOutOfOrderDoNotDeadlock() throws InterruptedException
+    {
+        PartitionLockManager lockManager = new PartitionLockManager( true );
+        lockManager.setOutOfOrderTimeout( 100L );
+        Partition example = partition( "example" );
+        Partition config = partition( "config" );
+
+        // Each thread writes in a partition, then does a nested read in the other one
+        CountDownLatch locked = new CountDownLatch( 2 );
+        CountDownLatch done = new CountDownLatch( 2 );
+        AtomicBoolean timedOut = new AtomicBoolean();
+
+        for ( Partition[] partitions : new Partition[][]
+            { { config, example }, { example, config } } )
+        {
+            Thread thread = new Thread( () ->
+            {
+                lockManager.lockWrite( partitions[0] );
+
+                try
+                {
+                    locked.countDown();
+                    locked.await();
+                    lockManager.lockRead( partitions[1] );
+                    lockManager.unlockRead( partitions[1] );
+                }
+                catch ( PartitionLockTimeoutException plte )
+                {
+                    timedOut.set( true );
+                }
+                catch ( InterruptedException ie )
+                {
+                    Thread.currentThread().interrupt();
+                }
+                finally
+                {
+                    lockManager.unlockWrite( partitions[0] );
+                    done.countDown();
+                }
+            } );
+
+            thread.setDaemon( true );
+            thread.start();
+        }
+
+        // Only the thread requesting its nested lock out of order gives up
+        assertTrue( done.await( 5, TimeUnit.SECONDS ) );
+        assertTrue( timedOut.get() );
+    }
+
+
+    @Test
+    public void testNestedLocks() throws InterruptedException
+    {
+        PartitionLockManager lockManager = new PartitionLockManager( true );
+        lockManager.setOutOfOrderTimeout( 100L );
+        Partition example = partition( "example" );
+        Partition config = partition( "config" );
+
+        // The same partition, or a free partition ordered before the held one
+        lockManager.lockWrite( example );
+        lockManager.lockRead( example );
+        lockManager.unlockRead( example );
+        lockManager.lockRead( config );
+        lockManager.unlockRead( config );
+        lockManager.unlockWrite( example );
+
+        // A busy partition ordered before the held one
+        CountDownLatch locked = new CountDownLatch( 1 );
+        CountDownLatch release = new CountDownLatch( 1 );
+
+        Thread thread = new Thread( () ->
+        {
+            lockManager.lockWrite( config );
+
+            try
+            {
+                locked.countDown();
+                release.await();
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+            }
+            finally
+            {
+                lockManager.unlockWrite( config );
+            }
+        } );
+
+        thread.setDaemon( true );
+        thread.start();
+        locked.await();
+
+        lockManager.lockWrite( example );
+
+        try
+        {
+            assertThrows( PartitionLockTimeoutException.class, () -> lockManager.lockRead( config ) );
+        }
+        finally
+        {
+            lockManager.unlockWrite( example );
+            release.countDown();
+        }
+
+        // The failed attempt must not be recorded as a held lock
+        assertTrue( completesInOtherThread( () ->
+        {
+            lockManager.lockWrite( config );
+            lockManager.unlockWrite( config );
+        } ) );
+        lockManager.lockRead( config );
+        lockManager.unlockRead( config );
+    }
+
+
+    @Test
+    public void testLockReadSeveralPartitions() throws InterruptedException
+    {
+        PartitionLockManager lockManager = new PartitionLockManager( true );
+        Partition example = partition( "example" );
+        Partition config = partition( "config" );
+
+        lockManager.lockRead( example, config );
+
+        try
+        {
+            assertFalse( completesInOtherThread( () ->
+            {
+                lockManager.lockWrite( config );
+                lockManager.unlockWrite( config );
+            } ) );
+        }
+        finally
+        {
+            lockManager.unlockRead( example, config );
+        }
+    }
+
+
+    @Test
+    public void testOperationManagerPartitionLocks() throws Exception
+    {
+        DefaultOperationManager operationManager = new DefaultOperationManager( null );
+        operationManager.setPartitionLockingEnabled( true );
+        Partition example = partition( "example" );
+
+        operationManager.lockWrite( example );
+
+        try
+        {
+            // The operations ran while the lock is held don't wait for it
+            operationManager.lockWrite( example );
+            operationManager.unlockWrite( example );
+
+            assertFalse( completesInOtherThread( () ->
+            {
+                operationManager.getLockManager().lockRead( example );
+                operationManager.getLockManager().unlockRead( example );
+            } ) );
+        }
+        finally
+        {
+            operationManager.unlockWrite( example );
+        }
+
+        assertTrue( completesInOtherThread( () ->
+        {
+            operationManager.getLockManager().lockWrite( example );
+            operationManager.getLockManager().unlockWrite( example );
+        } ) );
+    }
+
+
+    @Test
+    public void testRemovePartition()
+    {
+        PartitionLockManager lockManager = new PartitionLockManager( true );
+        Partition example = partition( "example" );
+
+        ReadWriteLock lock = lockManager.getLock( example );
+        lockManager.removePartition( example );
+
+        assertNotSame( lock, lockManager.getLock( example ) );
+    }
+}
@@ -723,6 +723,9 @@ public class AuthenticationInterceptor extends BaseInterceptor
                     bindModCtx.setPushToEvtInterceptor( true );
 
                     internalModify( bindContext, bindModCtx );
+
+                    // The account may have been locked
+                    invalidateAuthenticatorCaches( bindDn );
                 }
             }
 
@@ -961,17 +964,36 @@ public class AuthenticationInterceptor extends BaseInterceptor
     {
         next( modifyContext );
 
-        List<Modification> modifications = modifyContext.getModItems();
+        if ( isCredentialStateModified( modifyContext.getModItems() ) )
+        {
+            invalidateAuthenticatorCaches( modifyContext.getDn() );
+        }
+    }
+
 
+    /**
+     * Tells if some modifications change the password of an entry, or the password policy
+     * state which tells if the user can bind. The cached credentials of the entry must then
+     * be invalidated.
+     */
+    private boolean isCredentialStateModified( List<Modification> modifications )
+    {
         for ( Modification modification : modifications )
         {
-            if ( directoryService.getAtProvider().getUserPassword()
-                .equals( modification.getAttribute().getAttributeType() ) )
+            AttributeType attributeType = modification.getAttribute().getAttributeType();
+
+            if ( directoryService.getAtProvider().getUserPassword().equals( attributeType )
+                || ( attributeType.equals( pwdAccountLockedTimeAT ) )
+                || ( attributeType.equals( pwdResetAT ) )
+                || ( attributeType.equals( pwdPolicySubentryAT ) )
+                || ( attributeType.equals( pwdStartTimeAT ) )
+                || ( attributeType.equals( pwdEndTimeAT ) ) )
             {
-                invalidateAuthenticatorCaches( modifyContext.getDn() );
-                break;
+                return true;
             }
         }
+
+        return false;
     }
 
     
@@ -989,6 +1011,11 @@ public class AuthenticationInterceptor extends BaseInterceptor
         {
             // We can going on, the password attribute is not present in the Modifications.
             next( modifyContext );
+
+            if ( isCredentialStateModified( modifyContext.getModItems() ) )
+            {
+                invalidateAuthenticatorCaches( modifyContext.getDn() );
+            }
         }
         else
         {
@@ -0,0 +1,474 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authn;
+
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.util.Strings;
+
+
+/**
+ * A cache of the credentials which have been successfully verified, used to avoid the
+ * lookup of the user entry and the comparison with a (slow) hashed password when a
+ * user binds again with the same password.
+ * <p>
+ * We never store the password : we keep a HMAC-SHA256 digest of the Dn and the verified
+ * credentials, computed with a random key generated when the cache is created, along with
+ * the stored passwords the credentials have been verified against, so that the principal
+ * created on a cache hit is the same as the one created after a lookup. The cache is bounded,
+ * both in size and in time, and it can be safely accessed by many threads.
+ * <p>
+ * An entry must be invalidated when the password, or the password policy state, of the user
+ * is modified. As a bind may verify the old password while the entry is being invalidated,
+ * each Dn has a generation which is incremented when it is invalidated : the generation is
+ * read before the verification, and the credentials are only stored if it has not changed.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CredentialCache
+{
+    /** The default maximum number of cached credentials */
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    /** The default time a credential stays in the cache, in milliseconds : 10 minutes */
+    public static final long DEFAULT_TIME_TO_LIVE = 600000L;
+
+    /** The algorithm used to compute the digests */
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    /** The size of the random key */
+    private static final int KEY_LENGTH = 32;
+
+    /** The number of generations, the Dns being spread over them by hash. Must be a power of 2 */
+    private static final int NB_GENERATIONS = 256;
+
+    /** The cached digests, by normalized Dn */
+    private final ConcurrentMap<String, CachedCredentials> entries = new ConcurrentHashMap<>();
+
+    /** The maximum number of cached credentials */
+    private final int maxSize;
+
+    /** The time a credential stays in the cache, in nanoseconds */
+    private final long timeToLive;
+
+    /** The key used to compute the digests */
+    private final SecretKeySpec key;
+
+    /** The Mac instances, which are not thread safe */
+    private final ThreadLocal<Mac> macs;
+
+    /** The generations, incremented when a Dn is invalidated */
+    private final AtomicLongArray generations = new AtomicLongArray( NB_GENERATIONS );
+
+    /** Tells if a thread is evicting some entries */
+    private final AtomicBoolean evicting = new AtomicBoolean( false );
+
+    /** The number of successful verifications */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** The number of failed verifications */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** The number of entries removed because the cache was full */
+    private final AtomicLong evictions = new AtomicLong();
+
+
+    /**
+     * A cached digest
+     */
+    private static final class CachedCredentials
+    {
+        /** The digest of the Dn and the credentials */
+        private final byte[] digest;
+
+        /** The stored passwords the credentials have been verified against */
+        private final byte[][] storedPasswords;
+
+        /** The time after which the entry is not valid anymore */
+        private final long expiration;
+
+        /** The last time the entry has been used */
+        private volatile long lastAccess;
+
+
+        private CachedCredentials( byte[] digest, byte[][] storedPasswords, long now, long timeToLive )
+        {
+            this.digest = digest;
+            this.storedPasswords = storedPasswords == null ? new byte[0][] : storedPasswords;
+            expiration = now + timeToLive;
+            lastAccess = now;
+        }
+
+
+        private boolean isExpired( long now )
+        {
+            return now - expiration >= 0;
+        }
+    }
+
+
+    /**
+     * An entry which may be evicted. The last access time is copied, as it may change
+     * while we sort the candidates.
+     */
+    private static final class EvictionCandidate
+    {
+        private final String normName;
+        private final CachedCredentials credentials;
+        private final long lastAccess;
+
+
+        private EvictionCandidate( String normName, CachedCredentials credentials )
+        {
+            this.normName = normName;
+            this.credentials = credentials;
+            lastAccess = credentials.lastAccess;
+        }
+    }
+
+
+    /**
+     * Creates a new instance of CredentialCache, with the default size and time to live.
+     */
+    public CredentialCache()
+    {
+        this( DEFAULT_MAX_SIZE, DEFAULT_TIME_TO_LIVE );
+    }
+
+
+    /**
+     * Creates a new instance of CredentialCache.
+     *
+     * @param maxSize The maximum number of cached credentials. The default size is used if not positive
+     * @param timeToLive The time a credential stays in the cache, in milliseconds. The default time to live
+     * is used if not positive
+     */
+    public CredentialCache( int maxSize, long timeToLive )
+    {
+        this.maxSize = maxSize > 0 ? maxSize : DEFAULT_MAX_SIZE;
+        this.timeToLive = TimeUnit.MILLISECONDS.toNanos( timeToLive > 0 ? timeToLive : DEFAULT_TIME_TO_LIVE );
+
+        byte[] keyBytes = new byte[KEY_LENGTH];
+        new SecureRandom().nextBytes( keyBytes );
+        key = new SecretKeySpec( keyBytes, HMAC_ALGORITHM );
+
+        macs = ThreadLocal.withInitial( () ->
+        {
+            try
+            {
+                Mac mac = Mac.getInstance( HMAC_ALGORITHM );
+                mac.init( key );
+
+                return mac;
+            }
+            catch ( GeneralSecurityException gse )
+            {
+                throw new IllegalStateException( gse.getMessage(), gse );
+            }
+        } );
+    }
+
+
+    /**
+     * Computes the digest of a Dn and some credentials
+     */
+    private byte[] digest( String normName, byte[] credentials )
+    {
+        Mac mac = macs.get();
+        mac.update( Strings.getBytesUtf8( normName ) );
+
+        // A separator, which can't be found in a normalized Dn
+        mac.update( ( byte ) 0 );
+
+        if ( credentials != null )
+        {
+            mac.update( credentials );
+        }
+
+        return mac.doFinal();
+    }
+
+
+    /**
+     * Gets the index of the generation of a normalized Dn
+     */
+    private static int generationIndex( String normName )
+    {
+        int hash = normName.hashCode();
+
+        return ( hash ^ ( hash >>> 16 ) ) & ( NB_GENERATIONS - 1 );
+    }
+
+
+    /**
+     * Gets the current generation of a Dn. It must be read before the credentials are
+     * verified, and given back to {@link #put(Dn, byte[], byte[][], long)}.
+     *
+     * @param dn The user Dn
+     * @return The generation of this Dn
+     */
+    public long getGeneration( Dn dn )
+    {
+        return generations.get( generationIndex( dn.getNormName() ) );
+    }
+
+
+    /**
+     * Tells if the given credentials have already been verified for this Dn.
+     *
+     * @param dn The user Dn
+     * @param credentials The credentials to check
+     * @return <code>true</code> if the credentials are the ones stored in the cache
+     */
+    public boolean verify( Dn dn, byte[] credentials )
+    {
+        return getStoredPasswords( dn, credentials ) != null;
+    }
+
+
+    /**
+     * Gets the stored passwords the given credentials have been verified against, if they
+     * have already been verified for this Dn.
+     *
+     * @param dn The user Dn
+     * @param credentials The credentials to check
+     * @return The stored passwords, or null if the credentials are not the ones stored in the cache
+     */
+    public byte[][] getStoredPasswords( Dn dn, byte[] credentials )
+    {
+        String normName = dn.getNormName();
+        CachedCredentials cached = entries.get( normName );
+        long now = System.nanoTime();
+
+        if ( cached != null )
+        {
+            if ( cached.isExpired( now ) )
+            {
+                entries.remove( normName, cached );
+            }
+            else if ( MessageDigest.isEqual( cached.digest, digest( normName, credentials ) ) )
+            {
+                cached.lastAccess = now;
+                hits.incrementAndGet();
+
+                return cached.storedPasswords;
+            }
+        }
+
+        misses.incrementAndGet();
+
+        return null;
+    }
+
+
+    /**
+     * Stores some credentials which have been verified, unless the Dn has been invalidated
+     * since the given generation has been read.
+     *
+     * @param dn The user Dn
+     * @param credentials The verified credentials
+     * @param storedPasswords The stored passwords the credentials have been verified against, if known
+     * @param generation The generation of the Dn, read before the credentials were verified
+     * @return <code>true</code> if the credentials have been stored
+     */
+    public boolean put( Dn dn, byte[] credentials, byte[][] storedPasswords, long generation )
+    {
+        String normName = dn.getNormName();
+        int index = generationIndex( normName );
+        CachedCredentials added = new CachedCredentials( digest( normName, credentials ), storedPasswords,
+            System.nanoTime(), timeToLive );
+
+        // The generation is checked while the entry is locked : an invalidation increments
+        // the generation before removing the entry, so either it removes the entry we add,
+        // or we see the new generation
+        CachedCredentials current = entries.compute( normName,
+            ( name, cached ) -> generations.get( index ) == generation ? added : cached );
+
+        if ( current != added )
+        {
+            return false;
+        }
+
+        // The thread evicting the entries checks the size again when it's done, so that
+        // the entries added meanwhile by the other threads are taken into account
+        while ( ( entries.size() > maxSize ) && evict() )
+        {
+            continue;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Removes the expired entries, then the least recently used ones, so that the cache is
+     * 10% below its maximum size. This is done by one thread at a time, the others don't wait.
+     *
+     * @return <code>false</code> if another thread is evicting the entries
+     */
+    private boolean evict()
+    {
+        if ( !evicting.compareAndSet( false, true ) )
+        {
+            return false;
+        }
+
+        try
+        {
+            long now = System.nanoTime();
+            List<EvictionCandidate> candidates = new ArrayList<>( entries.size() );
+
+            for ( Map.Entry<String, CachedCredentials> entry : entries.entrySet() )
+            {
+                if ( entry.getValue().isExpired( now ) )
+                {
+                    entries.remove( entry.getKey(), entry.getValue() );
+                }
+                else
+                {
+                    candidates.add( new EvictionCandidate( entry.getKey(), entry.getValue() ) );
+                }
+            }
+
+            int target = maxSize - maxSize / 10;
+            int toRemove = entries.size() - target;
+
+            if ( toRemove <= 0 )
+            {
+                return true;
+            }
+
+            candidates.sort( ( c1, c2 ) -> Long.compare( c1.lastAccess, c2.lastAccess ) );
+
+            for ( int i = 0; ( i < toRemove ) && ( i < candidates.size() ); i++ )
+            {
+                EvictionCandidate candidate = candidates.get( i );
+
+                if ( entries.remove( candidate.normName, candidate.credentials ) )
+                {
+                    evictions.incrementAndGet();
+                }
+            }
+
+            return true;
+        }
+        finally
+        {
+            evicting.set( false );
+        }
+    }
+
+
+    /**
+     * Removes the credentials of a user.
+     *
+     * @param dn The user Dn
+     */
+    public void invalidate( Dn dn )
+    {
+        String normName = dn.getNormName();
+        generations.incrementAndGet( generationIndex( normName ) );
+        entries.remove( normName );
+    }
+
+
+    /**
+     * Removes all the credentials.
+     */
+    public void clear()
+    {
+        for ( int i = 0; i < NB_GENERATIONS; i++ )
+        {
+            generations.incrementAndGet( i );
+        }
+
+        entries.clear();
+    }
+
+
+    /**
+     * @return The number of cached credentials
+     */
+    public int size()
+    {
+        return entries.size();
+    }
+
+
+    /**
+     * @return The maximum number of cached credentials
+     */
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+
+    /**
+     * @return The time a credential stays in the cache, in milliseconds
+     */
+    public long getTimeToLive()
+    {
+        return TimeUnit.NANOSECONDS.toMillis( timeToLive );
+    }
+
+
+    /**
+     * @return The number of credentials found in the cache
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+
+    /**
+     * @return The number of credentials not found in the cache
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+
+    /**
+     * @return The number of credentials removed because the cache was full
+     */
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+}
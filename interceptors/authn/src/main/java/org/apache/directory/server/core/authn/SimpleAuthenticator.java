@@ -24,7 +24,6 @@ import java.net.SocketAddress;
 
 import javax.naming.Context;
 
-import org.apache.commons.collections4.map.LRUMap;
 import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Attribute;
@@ -52,7 +51,8 @@ import org.apache.mina.core.session.IoSession;
  * password is stored with a one-way encryption applied (e.g. SHA), the password
  * is hashed the same way before comparison.
  *
- * We use a cache to speedup authentication, where the Dn/password are stored.
+ * We use a cache to speedup authentication, where a digest of the Dn and of the
+ * verified password is stored.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -62,7 +62,8 @@ public class SimpleAuthenticator extends AbstractAuthenticator
     private static final boolean IS_DEBUG = LOG.isDebugEnabled();
 
     /**
-     * A cache to store passwords. It's a speedup, we will be able to avoid backend lookups.
+     * A cache of the verified credentials. It's a speedup, we will be able to avoid backend
+     * lookups, and the comparison with hashed passwords.
      *
      * Note that the backend also use a cache mechanism, but for performance gain, it's good
      * to manage a cache here. The main problem is that when a user modify his password, we will
@@ -73,14 +74,8 @@ public class SimpleAuthenticator extends AbstractAuthenticator
      *
      * The update of the backend and partition cache is already correctly handled, so we will
      * just have to offer an access to refresh the local cache.
-     *
-     * We need to be sure that frequently used passwords be always in cache, and not discarded.
-     * We will use a LRU cache for this purpose.
      */
-    private final LRUMap credentialCache;
-
-    /** Declare a default for this cache. 100 entries seems to be enough */
-    private static final int DEFAULT_CACHE_SIZE = 100;
+    private final CredentialCache credentialCache;
 
 
     /**
@@ -89,7 +84,7 @@ public class SimpleAuthenticator extends AbstractAuthenticator
     public SimpleAuthenticator()
     {
         super( AuthenticationLevel.SIMPLE );
-        credentialCache = new LRUMap( DEFAULT_CACHE_SIZE );
+        credentialCache = new CredentialCache();
     }
 
 
@@ -102,7 +97,7 @@ public class SimpleAuthenticator extends AbstractAuthenticator
     public SimpleAuthenticator( Dn baseDn )
     {
         super( AuthenticationLevel.SIMPLE, baseDn );
-        credentialCache = new LRUMap( DEFAULT_CACHE_SIZE );
+        credentialCache = new CredentialCache();
     }
 
 
@@ -112,9 +107,7 @@ public class SimpleAuthenticator extends AbstractAuthenticator
      */
     public SimpleAuthenticator( int cacheSize )
     {
-        super( AuthenticationLevel.SIMPLE, Dn.ROOT_DSE );
-
-        credentialCache = new LRUMap( cacheSize > 0 ? cacheSize : DEFAULT_CACHE_SIZE );
+        this( cacheSize, CredentialCache.DEFAULT_TIME_TO_LIVE, Dn.ROOT_DSE );
     }
 
 
@@ -125,63 +118,53 @@ public class SimpleAuthenticator extends AbstractAuthenticator
      * @param baseDn The base Dn
      */
     public SimpleAuthenticator( int cacheSize, Dn baseDn )
+    {
+        this( cacheSize, CredentialCache.DEFAULT_TIME_TO_LIVE, baseDn );
+    }
+
+
+    /**
+     * Creates a new instance, with a cache size and the time the credentials stay in the cache
+     *
+     * @param cacheSize the size of the credential cache
+     * @param cacheTimeToLive the time the credentials stay in the cache, in milliseconds
+     * @param baseDn The base Dn
+     */
+    public SimpleAuthenticator( int cacheSize, long cacheTimeToLive, Dn baseDn )
     {
         super( AuthenticationLevel.SIMPLE, baseDn );
 
-        credentialCache = new LRUMap( cacheSize > 0 ? cacheSize : DEFAULT_CACHE_SIZE );
+        credentialCache = new CredentialCache( cacheSize, cacheTimeToLive );
     }
 
 
     /**
-     * Get the password either from cache or from backend.
-     * @param principalDN The Dn from which we want the password
-     * @return A byte array which can be empty if the password was not found
-     * @throws Exception If we have a problem during the lookup operation
+     * @return The cache of the verified credentials, which exposes the hit and miss counts
      */
-    private LdapPrincipal getStoredPassword( BindOperationContext bindContext ) throws LdapException
+    public CredentialCache getCredentialCache()
     {
-        LdapPrincipal principal = null;
+        return credentialCache;
+    }
 
-        // use cache only if pwdpolicy is not enabled
-        if ( !getDirectoryService().isPwdPolicyEnabled() )
-        {
-            synchronized ( credentialCache )
-            {
-                principal = ( LdapPrincipal ) credentialCache.get( bindContext.getDn() );
-            }
-        }
 
-        byte[][] storedPasswords;
+    /**
+     * Creates the principal of an authenticated user
+     */
+    private LdapPrincipal createPrincipal( BindOperationContext bindContext, byte[][] storedPasswords )
+    {
+        LdapPrincipal principal = new LdapPrincipal( getDirectoryService().getSchemaManager(), bindContext.getDn(),
+            AuthenticationLevel.SIMPLE );
 
-        if ( principal == null )
-        {
-            // Not found in the cache
-            // Get the user password from the backend
-            storedPasswords = lookupUserPassword( bindContext );
-
-            // Deal with the special case where the user didn't enter a password
-            // We will compare the empty array with the credentials. Sometime,
-            // a user does not set a password. This is bad, but there is nothing
-            // we can do against that, except education ...
-            if ( storedPasswords == null )
-            {
-                storedPasswords = new byte[][]
-                    {};
-            }
+        principal.setUserPassword( storedPasswords );
 
-            // Create the new principal before storing it in the cache
-            principal = new LdapPrincipal( getDirectoryService().getSchemaManager(), bindContext.getDn(),
-                AuthenticationLevel.SIMPLE );
-            principal.setUserPassword( storedPasswords );
+        IoSession session = bindContext.getIoSession();
 
-            // Now, update the local cache ONLY if pwdpolicy is not enabled.
-            if ( !getDirectoryService().isPwdPolicyEnabled() )
-            {
-                synchronized ( credentialCache )
-                {
-                    credentialCache.put( bindContext.getDn().getNormName(), principal );
-                }
-            }
+        if ( session != null )
+        {
+            SocketAddress clientAddress = session.getRemoteAddress();
+            principal.setClientAddress( clientAddress );
+            SocketAddress serverAddress = session.getServiceAddress();
+            principal.setServerAddress( serverAddress );
         }
 
         return principal;
@@ -194,34 +177,49 @@ public class SimpleAuthenticator extends AbstractAuthenticator
      * value of {@link Context#SECURITY_PRINCIPAL} environment variable, and
      * authenticates a user with the plain-text password.
      * </p>
+     * When the password policy is disabled, a user binding with credentials which
+     * are in the cache is authenticated without any lookup. Otherwise, the entry is
+     * always read to check the password policy state, and the cache only saves the
+     * comparison with the stored password.
      */
     @Override
     public LdapPrincipal authenticate( BindOperationContext bindContext ) throws LdapException
     {
+        Dn dn = bindContext.getDn();
+
         if ( IS_DEBUG )
         {
-            LOG.debug( "Authenticating {}", bindContext.getDn() );
+            LOG.debug( "Authenticating {}", dn );
         }
 
         // ---- extract password from JNDI environment
         byte[] credentials = bindContext.getCredentials();
+        boolean pwdPolicyEnabled = getDirectoryService().isPwdPolicyEnabled();
 
-        LdapPrincipal principal = getStoredPassword( bindContext );
+        if ( !pwdPolicyEnabled )
+        {
+            byte[][] cachedPasswords = credentialCache.getStoredPasswords( dn, credentials );
 
-        IoSession session = bindContext.getIoSession();
+            if ( cachedPasswords != null )
+            {
+                if ( IS_DEBUG )
+                {
+                    LOG.debug( "{} Authenticated using the cache", dn );
+                }
 
-        if ( session != null )
-        {
-            SocketAddress clientAddress = session.getRemoteAddress();
-            principal.setClientAddress( clientAddress );
-            SocketAddress serverAddress = session.getServiceAddress();
-            principal.setServerAddress( serverAddress );
+                return createPrincipal( bindContext, cachedPasswords );
+            }
         }
 
-        // Get the stored password, either from cache or from backend
-        byte[][] storedPasswords = principal.getUserPasswords();
+        // Not found in the cache : get the user password from the backend.
+        // It's an empty array if the user has no password. The generation is read
+        // first, so that we don't cache a password modified meanwhile
+        long generation = credentialCache.getGeneration( dn );
+        byte[][] storedPasswords = lookupUserPassword( bindContext );
+        LdapPrincipal principal = createPrincipal( bindContext, storedPasswords );
 
         PasswordPolicyException ppe = null;
+
         try
         {
             checkPwdPolicy( bindContext.getEntry() );
@@ -231,28 +229,39 @@ public class SimpleAuthenticator extends AbstractAuthenticator
             ppe = e;
         }
 
-        // Now, compare the passwords.
-        for ( byte[] storedPassword : storedPasswords )
+        // Now, compare the passwords, unless they have already been verified
+        boolean cached = pwdPolicyEnabled && ( storedPasswords.length > 0 )
+            && credentialCache.verify( dn, credentials );
+        boolean verified = cached;
+
+        for ( int i = 0; !verified && ( i < storedPasswords.length ); i++ )
+        {
+            verified = PasswordUtil.compareCredentials( credentials, storedPasswords[i] );
+        }
+
+        if ( verified )
         {
-            if ( PasswordUtil.compareCredentials( credentials, storedPassword ) )
+            if ( ppe != null )
             {
-                if ( ppe != null )
-                {
-                    LOG.debug( "{} Authentication failed: {}", bindContext.getDn(), ppe.getMessage() );
-                    throw ppe;
-                }
+                LOG.debug( "{} Authentication failed: {}", dn, ppe.getMessage() );
+                throw ppe;
+            }
 
-                if ( IS_DEBUG )
-                {
-                    LOG.debug( "{} Authenticated", bindContext.getDn() );
-                }
+            if ( !cached )
+            {
+                credentialCache.put( dn, credentials, storedPasswords, generation );
+            }
 
-                return principal;
+            if ( IS_DEBUG )
+            {
+                LOG.debug( "{} Authenticated", dn );
             }
+
+            return principal;
         }
 
         // Bad password ...
-        String message = I18n.err( I18n.ERR_230, bindContext.getDn().getName() );
+        String message = I18n.err( I18n.ERR_230, dn.getName() );
         LOG.info( message );
         throw new LdapAuthenticationException( message );
     }
@@ -348,15 +357,12 @@ public class SimpleAuthenticator extends AbstractAuthenticator
 
 
     /**
-     * Remove the principal form the cache. This is used when the user changes
-     * his password.
+     * Remove the credentials from the cache. This is used when the user changes
+     * his password, or when his password policy state is modified.
      */
     @Override
     public void invalidateCache( Dn bindDn )
     {
-        synchronized ( credentialCache )
-        {
-            credentialCache.remove( bindDn.getNormName() );
-        }
+        credentialCache.invalidate( bindDn );
     }
 }
@@ -0,0 +1,289 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authn;
+
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.Strings;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Test the CredentialCache class
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CredentialCacheTest
+{
+    /** The schema manager instance */
+    private static SchemaManager schemaManager;
+
+
+    @BeforeAll
+    public static void setUp() throws Exception
+    {
+        schemaManager = new DefaultSchemaManager();
+    }
+
+
+    private static void put( CredentialCache cache, Dn dn, byte[] credentials )
+    {
+        assertTrue( cache.put( dn, credentials, new byte[][] { credentials }, cache.getGeneration( dn ) ) );
+    }
+
+
+    @Test
+    public void testVerify() throws Exception
+    {
+        CredentialCache cache = new CredentialCache();
+        Dn dn = new Dn( schemaManager, "uid=admin,ou=system" );
+        byte[] secret = Strings.getBytesUtf8( "secret" );
+
+        assertFalse( cache.verify( dn, secret ) );
+
+        put( cache, dn, secret );
+
+        // The Dn is normalized
+        assertTrue( cache.verify( new Dn( schemaManager, "UID=Admin, OU=System" ), secret ) );
+        assertFalse( cache.verify( dn, Strings.getBytesUtf8( "Secret" ) ) );
+        assertFalse( cache.verify( dn, null ) );
+        assertFalse( cache.verify( new Dn( schemaManager, "uid=other,ou=system" ), secret ) );
+
+        assertEquals( 1L, cache.getHits() );
+        assertEquals( 4L, cache.getMisses() );
+
+        cache.invalidate( dn );
+        assertFalse( cache.verify( dn, secret ) );
+        assertEquals( 0, cache.size() );
+    }
+
+
+    @Test
+    public void testTimeToLive() throws Exception
+    {
+        CredentialCache cache = new CredentialCache( 10, 50L );
+        Dn dn = new Dn( schemaManager, "uid=admin,ou=system" );
+        byte[] secret = Strings.getBytesUtf8( "secret" );
+
+        put( cache, dn, secret );
+        assertTrue( cache.verify( dn, secret ) );
+
+        Thread.sleep( 100L );
+
+        assertFalse( cache.verify( dn, secret ) );
+        assertEquals( 0, cache.size() );
+    }
+
+
+    @Test
+    public void testEviction() throws Exception
+    {
+        CredentialCache cache = new CredentialCache( 100, 0L );
+        byte[] secret = Strings.getBytesUtf8( "secret" );
+        Dn first = new Dn( schemaManager, "uid=user0,ou=system" );
+        put( cache, first, secret );
+
+        for ( int i = 1; i <= 100; i++ )
+        {
+            // Keep the first user in use
+            assertTrue( cache.verify( first, secret ) );
+            put( cache, new Dn( schemaManager, "uid=user" + i + ",ou=system" ), secret );
+        }
+
+        // The cache has been reduced to 90% of its size
+        assertEquals( 90, cache.size() );
+        assertEquals( 11L, cache.getEvictions() );
+        assertTrue( cache.verify( first, secret ) );
+        assertFalse( cache.verify( new Dn( schemaManager, "uid=user1,ou=system" ), secret ) );
+        assertTrue( cache.verify( new Dn( schemaManager, "uid=user100,ou=system" ), secret ) );
+    }
+
+
+    @Test
+    public void testConcurrentAccess() throws Exception
+    {
+        CredentialCache cache = new CredentialCache( 500, 0L );
+        byte[] secret = Strings.getBytesUtf8( "secret" );
+        AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        Dn[] dns = new Dn[1000];
+
+        for ( int i = 0; i < dns.length; i++ )
+        {
+            dns[i] = new Dn( schemaManager, "uid=user" + i + ",ou=system" );
+        }
+
+        for ( int t = 0; t < 8; t++ )
+        {
+            int thread = t;
+
+            threads.add( new Thread( () ->
+            {
+                try
+                {
+                    for ( int i = 0; i < 2000; i++ )
+                    {
+                        Dn dn = dns[( thread * 2000 + i ) % dns.length];
+
+                        if ( !cache.verify( dn, secret ) )
+                        {
+                            put( cache, dn, secret );
+                        }
+                    }
+                }
+                catch ( RuntimeException re )
+                {
+                    failures.incrementAndGet();
+                }
+            } ) );
+        }
+
+        for ( Thread thread : threads )
+        {
+            thread.start();
+        }
+
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+
+        assertEquals( 0, failures.get() );
+        assertTrue( cache.size() <= 500 );
+        assertEquals( 16000L, cache.getHits() + cache.getMisses() );
+    }
+
+
+    @Test
+    public void testStoredPasswords() throws Exception
+    {
+        CredentialCache cache = new CredentialCache();
+        Dn dn = new Dn( schemaManager, "uid=admin,ou=system" );
+        byte[] secret = Strings.getBytesUtf8( "secret" );
+        byte[][] storedPasswords = new byte[][] { Strings.getBytesUtf8( "{SSHA}stored" ) };
+
+        assertNull( cache.getStoredPasswords( dn, secret ) );
+
+        cache.put( dn, secret, storedPasswords, cache.getGeneration( dn ) );
+
+        assertArrayEquals( storedPasswords, cache.getStoredPasswords( dn, secret ) );
+        assertNull( cache.getStoredPasswords( dn, Strings.getBytesUtf8( "other" ) ) );
+    }
+
+
+    @Test
+    public void testPutAfterInvalidate() throws Exception
+    {
+        CredentialCache cache = new CredentialCache();
+        Dn dn = new Dn( schemaManager, "uid=admin,ou=system" );
+        byte[] oldSecret = Strings.getBytesUtf8( "old" );
+
+        // A bind reads the generation, then verifies the old password, while the
+        // password is modified
+        long generation = cache.getGeneration( dn );
+        cache.invalidate( dn );
+
+        assertFalse( cache.put( dn, oldSecret, null, generation ) );
+        assertFalse( cache.verify( dn, oldSecret ) );
+
+        // The next bind can cache the credentials again
+        assertTrue( cache.put( dn, oldSecret, null, cache.getGeneration( dn ) ) );
+        assertTrue( cache.verify( dn, oldSecret ) );
+    }
+
+
+    @Test
+    public void testConcurrentInvalidate() throws Exception
+    {
+        CredentialCache cache = new CredentialCache();
+        Dn dn = new Dn( schemaManager, "uid=admin,ou=system" );
+        AtomicReference<byte[]> password = new AtomicReference<>( Strings.getBytesUtf8( "password0" ) );
+        AtomicBoolean running = new AtomicBoolean( true );
+        List<Thread> threads = new ArrayList<>();
+
+        for ( int t = 0; t < 4; t++ )
+        {
+            // The binds : read the generation, verify the current password, and cache it
+            threads.add( new Thread( () ->
+            {
+                try
+                {
+                    while ( running.get() )
+                    {
+                        long generation = cache.getGeneration( dn );
+                        byte[] verified = password.get();
+                        Thread.sleep( 1L );
+                        cache.put( dn, verified, null, generation );
+                    }
+                }
+                catch ( InterruptedException ie )
+                {
+                    Thread.currentThread().interrupt();
+                }
+            } ) );
+        }
+
+        for ( Thread thread : threads )
+        {
+            thread.start();
+        }
+
+        try
+        {
+            for ( int i = 1; i <= 100; i++ )
+            {
+                // The modification : change the password, then invalidate the cache
+                byte[] oldPassword = password.get();
+                password.set( Strings.getBytesUtf8( "password" + i ) );
+                cache.invalidate( dn );
+
+                // Let the binds which have verified the old password try to cache it : they
+                // have read the generation before the invalidation, so they can't
+                Thread.sleep( 2L );
+
+                assertFalse( cache.verify( dn, oldPassword ), "password" + ( i - 1 ) );
+            }
+        }
+        finally
+        {
+            running.set( false );
+
+            for ( Thread thread : threads )
+            {
+                thread.join();
+            }
+        }
+    }
+}
@@ -20,7 +20,7 @@
 package org.apache.directory.server.core.authz;
 
 
-import java.io.IOException;
+import java.io.File;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -44,12 +44,6 @@ import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapNoPermissionException;
 import org.apache.directory.api.ldap.model.exception.LdapOperationErrorException;
-import org.apache.directory.api.ldap.model.exception.LdapOperationException;
-import org.apache.directory.api.ldap.model.exception.LdapOtherException;
-import org.apache.directory.api.ldap.model.filter.EqualityNode;
-import org.apache.directory.api.ldap.model.filter.ExprNode;
-import org.apache.directory.api.ldap.model.filter.OrNode;
-import org.apache.directory.api.ldap.model.message.AliasDerefMode;
 import org.apache.directory.api.ldap.model.message.SearchScope;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.schema.AttributeType;
@@ -75,9 +69,7 @@ import org.apache.directory.server.core.api.interceptor.context.MoveOperationCon
 import org.apache.directory.server.core.api.interceptor.context.OperationContext;
 import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
-import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionNexus;
-import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.core.api.subtree.SubentryUtils;
 import org.apache.directory.server.core.authz.support.ACDFEngine;
 import org.apache.directory.server.core.authz.support.AciContext;
@@ -152,6 +144,9 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
     /** a groupCache that responds to add, delete, and modify attempts */
     private GroupCache groupCache;
 
+    /** the decisions taken when filtering the search results */
+    private AciDecisionCache decisionCache;
+
     /** a normalizing ACIItem parser */
     private ACIItemParser aciParser;
 
@@ -169,6 +164,13 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
     /** The SubentryUtils instance */
     private static SubentryUtils subentryUtils;
 
+    /** The names of the cache snapshot files */
+    private static final String TUPLE_CACHE_SNAPSHOT = "aci-tuples.snapshot";
+    private static final String GROUP_CACHE_SNAPSHOT = "aci-groups.snapshot";
+
+    /** Tells if the caches are saved when the server is stopped */
+    private boolean cacheSnapshotEnabled;
+
 
     /**
      * Create a AciAuthorizationInterceptor instance
@@ -180,98 +182,24 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
 
 
     /**
-     * Load the Tuples into the cache
+     * Tells if the tuple and group caches are saved into snapshots when the server is
+     * stopped, to be reloaded on startup if no partition has changed since. Defaults
+     * to false.
+     *
+     * @param cacheSnapshotEnabled true to save and reload the caches
      */
-    private void initTupleCache() throws LdapException
+    public void setCacheSnapshotEnabled( boolean cacheSnapshotEnabled )
     {
-        // Load all the prescriptiveACI : they are stored in AccessControlSubentry entries
-        SearchControls controls = new SearchControls();
-        controls.setSearchScope( SearchControls.SUBTREE_SCOPE );
-        controls.setReturningAttributes( new String[]
-            { SchemaConstants.PRESCRIPTIVE_ACI_AT } );
-
-        AttributeType ocAt = directoryService.getAtProvider().getObjectClass();
-        ExprNode filter = new EqualityNode<String>( ocAt, 
-            new Value( ocAt, SchemaConstants.ACCESS_CONTROL_SUBENTRY_OC ) );
-
-        CoreSession adminSession = directoryService.getAdminSession();
-
-        SearchOperationContext searchOperationContext = new SearchOperationContext( adminSession, Dn.ROOT_DSE, filter, controls );
-
-        searchOperationContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
-        Partition partition = nexus.getPartition( Dn.ROOT_DSE );
-        searchOperationContext.setPartition( partition );
-        
-        try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
-        {
-            searchOperationContext.setTransaction( partitionTxn );
-
-            EntryFilteringCursor results = nexus.search( searchOperationContext );
-    
-            try
-            {
-                while ( results.next() )
-                {
-                    Entry entry = results.get();
-    
-                    tupleCache.subentryAdded( entry.getDn(), entry );
-                }
-    
-                results.close();
-            }
-            catch ( Exception e )
-            {
-                throw new LdapOperationException( e.getMessage(), e );
-            }
-        }
-        catch ( IOException ioe )
-        {
-            throw new LdapOtherException( ioe.getMessage(), ioe );
-        }
+        this.cacheSnapshotEnabled = cacheSnapshotEnabled;
     }
 
 
     /**
-     * Load the Groups into the cache
+     * @return true if the tuple and group caches are saved into snapshots
      */
-    private void initGroupCache() throws LdapException
+    public boolean isCacheSnapshotEnabled()
     {
-        // Load all the member/uniqueMember : they are stored in groupOfNames/groupOfUniqueName
-        SearchControls controls = new SearchControls();
-        controls.setSearchScope( SearchControls.SUBTREE_SCOPE );
-        controls.setReturningAttributes( new String[]
-            { SchemaConstants.MEMBER_AT, SchemaConstants.UNIQUE_MEMBER_AT } );
-        AttributeType ocAt = directoryService.getAtProvider().getObjectClass();
-
-        ExprNode filter =
-            new OrNode(
-                new EqualityNode<String>( ocAt, new Value( ocAt, SchemaConstants.GROUP_OF_NAMES_OC ) ),
-                new EqualityNode<String>( ocAt, new Value( ocAt, SchemaConstants.GROUP_OF_UNIQUE_NAMES_OC ) ) );
-
-        CoreSession adminSession = directoryService.getAdminSession();
-        
-        SearchOperationContext searchOperationContext = new SearchOperationContext( adminSession, Dn.ROOT_DSE, filter,
-            controls );
-
-        searchOperationContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
-
-        EntryFilteringCursor results = nexus.search( searchOperationContext );
-
-        try
-        {
-            while ( results.next() )
-            {
-                Entry entry = results.get();
-
-                groupCache.groupAdded( entry.getDn().getNormName(), entry );
-            }
-
-            results.close();
-        }
-        catch ( Exception e )
-        {
-            throw new LdapOperationException( e.getMessage(), e );
-        }
+        return cacheSnapshotEnabled;
     }
 
 
@@ -293,9 +221,20 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
 
         CoreSession adminSession = directoryService.getAdminSession();
 
-        // Create the caches
-        tupleCache = new TupleCache( adminSession );
-        groupCache = new GroupCache( directoryService );
+        // Create the caches : they are loaded when first used
+        if ( cacheSnapshotEnabled )
+        {
+            File cacheDirectory = directoryService.getInstanceLayout().getCacheDirectory();
+            tupleCache = new TupleCache( adminSession, new File( cacheDirectory, TUPLE_CACHE_SNAPSHOT ) );
+            groupCache = new GroupCache( directoryService, new File( cacheDirectory, GROUP_CACHE_SNAPSHOT ) );
+        }
+        else
+        {
+            tupleCache = new TupleCache( adminSession );
+            groupCache = new GroupCache( directoryService );
+        }
+
+        decisionCache = new AciDecisionCache( tupleCache, AciDecisionCache.DEFAULT_MAX_PLANS );
 
         // Iitialize the ACI PARSER and ACDF engine
         aciParser = new ACIItemParser( new ConcreteNameComponentNormalizer( schemaManager ), schemaManager );
@@ -306,15 +245,34 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
             directoryService.getAtProvider().getSubschemaSubentry() );
         subschemaSubentryDn = dnFactory.create( subschemaSubentry.getString() );
 
-        // Init the caches now
-        initTupleCache();
-        initGroupCache();
-
         // Init the SubentryUtils instance
         subentryUtils = new SubentryUtils( directoryService );
     }
 
 
+    /**
+     * Saves the tuple and group caches, if the snapshots are enabled
+     */
+    @Override
+    public void destroy()
+    {
+        if ( !cacheSnapshotEnabled || ( tupleCache == null ) )
+        {
+            return;
+        }
+
+        try
+        {
+            tupleCache.saveSnapshot();
+            groupCache.saveSnapshot();
+        }
+        catch ( LdapException le )
+        {
+            LOG.warn( "Cannot save the access control caches", le );
+        }
+    }
+
+
     private void protectCriticalEntries( OperationContext opCtx, Dn dn ) throws LdapException
     {
         Dn principalDn = getPrincipal( opCtx ).getDn();
@@ -1343,32 +1301,128 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
     }
 
 
-    private boolean filter( OperationContext opContext, Dn normName, Entry clonedEntry ) throws LdapException
+    /**
+     * Gets the decision plan for an entry returned by a search. The plans are shared by
+     * the entries having the same access control subentries and entryACI, except for the
+     * subentries, which get their ACI from their administrative entry.
+     */
+    private AciDecisionCache.Plan getDecisionPlan( OperationContext opContext, LdapPrincipal principal,
+        Set<String> userGroups, Dn normName, Entry clonedEntry ) throws LdapException
     {
-        /*
-         * First call hasPermission() for entry level "Browse" and "ReturnDN" perm
-         * tests.  If we hasPermission() returns false we immediately short the
-         * process and return false.
-         */
+        Entry originalEntry = ( ( ClonedServerEntry ) clonedEntry ).getOriginalEntry();
+
+        if ( originalEntry.contains( directoryService.getAtProvider().getObjectClass(), SchemaConstants.SUBENTRY_OC ) )
+        {
+            Collection<ACITuple> tuples = new HashSet<>();
+            addPerscriptiveAciTuples( opContext, tuples, normName, clonedEntry );
+            addEntryAciTuples( tuples, originalEntry );
+            addSubentryAciTuples( opContext, tuples, normName, originalEntry );
+
+            return AciDecisionCache.uncompiledPlan( tuples );
+        }
 
-        LdapPrincipal principal = opContext.getSession().getEffectivePrincipal();
         Dn userDn = principal.getDn();
-        Set<String> userGroups = groupCache.getGroups( userDn.getNormName() );
-        Collection<ACITuple> tuples = new HashSet<>();
-        addPerscriptiveAciTuples( opContext, tuples, normName, clonedEntry );
-        addEntryAciTuples( tuples, ( ( ClonedServerEntry ) clonedEntry ).getOriginalEntry() );
-        addSubentryAciTuples( opContext, tuples, normName, ( ( ClonedServerEntry ) clonedEntry ).getOriginalEntry() );
+        AciDecisionCache.Key key = new AciDecisionCache.Key( userDn.getNormName(), userGroups,
+            principal.getAuthenticationLevel(), userDn.equals( normName ), normName.isDescendantOf( userDn ),
+            getStrings( originalEntry.get( directoryService.getAtProvider().getAccessControlSubentries() ) ),
+            getStrings( originalEntry.get( directoryService.getAtProvider().getEntryACI() ) ) );
+
+        AciDecisionCache.Plan plan = decisionCache.get( key );
+
+        if ( plan == null )
+        {
+            // Read the version first : a plan built while the tuples change will be discarded
+            long version = tupleCache.getVersion();
+            Collection<ACITuple> tuples = new HashSet<>();
+            addPerscriptiveAciTuples( opContext, tuples, normName, clonedEntry );
+            addEntryAciTuples( tuples, originalEntry );
+
+            plan = decisionCache.put( key, version, tuples );
+        }
+
+        return plan;
+    }
+
+
+    /**
+     * @return the values of an attribute, or an empty list if the attribute is null
+     */
+    private List<String> getStrings( Attribute attribute )
+    {
+        if ( attribute == null )
+        {
+            return Collections.emptyList();
+        }
+
+        List<String> strings = new ArrayList<>( attribute.size() );
+
+        for ( Value value : attribute )
+        {
+            strings.add( value.getString() );
+        }
+
+        return strings;
+    }
 
+
+    /**
+     * Creates the AciContext used for all the permission checks on a returned entry
+     */
+    private AciContext createAciContext( OperationContext opContext, LdapPrincipal principal, Set<String> userGroups,
+        Dn normName )
+    {
         AciContext aciContext = new AciContext( schemaManager, opContext );
         aciContext.setUserGroupNames( userGroups );
-        aciContext.setUserDn( userDn );
+        aciContext.setUserDn( principal.getDn() );
         aciContext.setAuthenticationLevel( principal.getAuthenticationLevel() );
         aciContext.setEntryDn( normName );
-        aciContext.setMicroOperations( SEARCH_ENTRY_PERMS );
+
+        return aciContext;
+    }
+
+
+    /**
+     * Checks a permission on an entry, an attribute type or a value. The tuples are set
+     * for each check, as the engine replaces them with the ones it has filtered.
+     */
+    private boolean hasPermission( AciContext aciContext, Entry entry, AttributeType attributeType, Value value,
+        Collection<MicroOperation> microOperations, Collection<ACITuple> tuples ) throws LdapException
+    {
+        aciContext.setAttributeType( attributeType );
+        aciContext.setAttrValue( value );
+        aciContext.setMicroOperations( microOperations );
         aciContext.setAciTuples( tuples );
-        aciContext.setEntry( ( ( ClonedServerEntry ) clonedEntry ).getOriginalEntry() );
+        aciContext.setEntry( entry );
+
+        return engine.hasPermission( aciContext );
+    }
 
-        if ( !engine.hasPermission( aciContext ) )
+
+    private boolean filter( OperationContext opContext, Dn normName, Entry clonedEntry ) throws LdapException
+    {
+        /*
+         * First call hasPermission() for entry level "Browse" and "ReturnDN" perm
+         * tests.  If we hasPermission() returns false we immediately short the
+         * process and return false. The verdicts which don't depend on the entry
+         * content are taken once, and stored in the decision plan.
+         */
+
+        LdapPrincipal principal = opContext.getSession().getEffectivePrincipal();
+        Set<String> userGroups = groupCache.getGroups( principal.getDn().getNormName() );
+        AciDecisionCache.Plan plan = getDecisionPlan( opContext, principal, userGroups, normName, clonedEntry );
+        Collection<ACITuple> tuples = plan.getTuples();
+        AciContext aciContext = createAciContext( opContext, principal, userGroups, normName );
+
+        Boolean entryVerdict = plan.getEntryVerdict();
+
+        if ( entryVerdict == null )
+        {
+            entryVerdict = hasPermission( aciContext, ( ( ClonedServerEntry ) clonedEntry ).getOriginalEntry(), null,
+                null, SEARCH_ENTRY_PERMS, tuples );
+            plan.setEntryVerdict( entryVerdict );
+        }
+
+        if ( !entryVerdict )
         {
             return false;
         }
@@ -1378,7 +1432,8 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
          * the attribute is yanked out of the entry to be returned.  If permission is
          * allowed we move on to check if the values are allowed.  Values that are
          * not allowed are removed from the attribute.  If the attribute has no more
-         * values remaining then the entire attribute is removed.
+         * values remaining then the entire attribute is removed. When no tuple depends
+         * on the values, the verdict for the first value applies to all of them.
          */
         List<AttributeType> attributeToRemove = new ArrayList<>();
 
@@ -1388,40 +1443,48 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
             AttributeType attributeType = attribute.getAttributeType();
             Attribute attr = clonedEntry.get( attributeType );
 
-            aciContext = new AciContext( schemaManager, opContext );
-            aciContext.setUserGroupNames( userGroups );
-            aciContext.setUserDn( userDn );
-            aciContext.setAuthenticationLevel( principal.getAuthenticationLevel() );
-            aciContext.setEntryDn( normName );
-            aciContext.setAttributeType( attributeType );
-            aciContext.setMicroOperations( SEARCH_ATTRVAL_PERMS );
-            aciContext.setAciTuples( tuples );
-            aciContext.setEntry( clonedEntry );
-
-            if ( !engine.hasPermission( aciContext ) )
+            Boolean attributeTypeVerdict = plan.getAttributeTypeVerdict( attributeType );
+
+            if ( attributeTypeVerdict == null )
+            {
+                attributeTypeVerdict = hasPermission( aciContext, clonedEntry, attributeType, null,
+                    SEARCH_ATTRVAL_PERMS, tuples );
+                plan.setAttributeTypeVerdict( attributeType, attributeTypeVerdict );
+            }
+
+            if ( !attributeTypeVerdict )
             {
                 attributeToRemove.add( attributeType );
 
                 continue;
             }
 
+            if ( plan.isCompiled() )
+            {
+                Boolean valueVerdict = plan.getValueVerdict( attributeType );
+
+                if ( ( valueVerdict == null ) && ( attr.size() > 0 ) )
+                {
+                    valueVerdict = hasPermission( aciContext, clonedEntry, attr.getAttributeType(), attr.get(),
+                        SEARCH_ATTRVAL_PERMS, tuples );
+                    plan.setValueVerdict( attributeType, valueVerdict );
+                }
+
+                if ( ( valueVerdict == null ) || !valueVerdict )
+                {
+                    attributeToRemove.add( attributeType );
+                }
+
+                continue;
+            }
+
             List<Value> valueToRemove = new ArrayList<>();
 
             // attribute type scope is ok now let's determine value level scope
             for ( Value value : attr )
             {
-                aciContext = new AciContext( schemaManager, opContext );
-                aciContext.setUserGroupNames( userGroups );
-                aciContext.setUserDn( userDn );
-                aciContext.setAuthenticationLevel( principal.getAuthenticationLevel() );
-                aciContext.setEntryDn( normName );
-                aciContext.setAttributeType( attr.getAttributeType() );
-                aciContext.setAttrValue( value );
-                aciContext.setMicroOperations( SEARCH_ATTRVAL_PERMS );
-                aciContext.setAciTuples( tuples );
-                aciContext.setEntry( clonedEntry );
-
-                if ( !engine.hasPermission( aciContext ) )
+                if ( !hasPermission( aciContext, clonedEntry, attr.getAttributeType(), value,
+                    SEARCH_ATTRVAL_PERMS, tuples ) )
                 {
                     valueToRemove.add( value );
                 }
@@ -0,0 +1,291 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authz;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.DnFactory;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionNexus;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A snapshot of the content of the {@link GroupCache} or of the {@link TupleCache}, saved
+ * when the server is stopped, and used to avoid searching the whole DIT when it restarts.
+ * A snapshot is only used if the contextCSN of every partition is the one it was saved
+ * with, and it is deleted as soon as it is read : after a crash, the caches are always
+ * rebuilt from the DIT.
+ * <p>
+ * The snapshot has this format :
+ * <ul>
+ * <li>int : the format version</li>
+ * <li>int : the number of partitions, followed by their suffix and contextCSN</li>
+ * <li>int : the number of keys, followed by each key, its number of values and the values</li>
+ * </ul>
+ * The strings are written as an int length followed by their UTF-8 bytes, -1 standing for null.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+final class AciCacheSnapshot
+{
+    /** the logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( AciCacheSnapshot.class );
+
+    /** The snapshot format version */
+    private static final int FORMAT_VERSION = 1;
+
+
+    private AciCacheSnapshot()
+    {
+    }
+
+
+    /**
+     * Gets all the partitions. The partitions are removed from the nexus before the
+     * interceptors are destroyed : they must be kept to read their contextCSN when a
+     * snapshot is saved.
+     *
+     * @param nexus The partition nexus
+     * @param dnFactory The Dn factory
+     * @return The partitions, sorted by normalized suffix
+     * @throws LdapException If a suffix can't be parsed
+     */
+    static Map<String, Partition> getPartitions( PartitionNexus nexus, DnFactory dnFactory ) throws LdapException
+    {
+        Map<String, Partition> partitions = new TreeMap<>();
+
+        for ( String suffix : nexus.listSuffixes() )
+        {
+            Dn suffixDn = dnFactory.create( suffix );
+            partitions.put( suffixDn.getNormName(), nexus.getPartition( suffixDn ) );
+        }
+
+        return partitions;
+    }
+
+
+    /**
+     * Reads the contextCSN of some partitions
+     *
+     * @param partitions The partitions, sorted by normalized suffix
+     * @return The contextCSN of each partition, sorted by normalized suffix
+     * @throws LdapException If a contextCSN can't be read
+     */
+    static Map<String, String> getContextCsns( Map<String, Partition> partitions ) throws LdapException
+    {
+        Map<String, String> contextCsns = new TreeMap<>();
+
+        for ( Map.Entry<String, Partition> partition : partitions.entrySet() )
+        {
+            try ( PartitionTxn partitionTxn = partition.getValue().beginReadTransaction() )
+            {
+                contextCsns.put( partition.getKey(), partition.getValue().getContextCsn( partitionTxn ) );
+            }
+            catch ( IOException ioe )
+            {
+                throw new LdapOtherException( ioe.getMessage(), ioe );
+            }
+        }
+
+        return contextCsns;
+    }
+
+
+    /**
+     * Reads and deletes a snapshot.
+     *
+     * @param file The snapshot file
+     * @param contextCsns The current contextCSN of all the partitions
+     * @return The cache content, or null if there is no snapshot, or if it's not valid anymore
+     */
+    static Map<String, List<String>> read( File file, Map<String, String> contextCsns )
+    {
+        if ( ( file == null ) || !file.exists() )
+        {
+            return null;
+        }
+
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ) )
+        {
+            if ( in.readInt() != FORMAT_VERSION )
+            {
+                LOG.info( "Ignoring the ACI cache snapshot {} : unknown format", file );
+
+                return null;
+            }
+
+            int nbPartitions = in.readInt();
+            Map<String, String> savedCsns = new TreeMap<>();
+
+            for ( int i = 0; i < nbPartitions; i++ )
+            {
+                String suffix = readString( in );
+                savedCsns.put( suffix, readString( in ) );
+            }
+
+            if ( !savedCsns.equals( contextCsns ) )
+            {
+                LOG.info( "Ignoring the ACI cache snapshot {} : the partitions have changed", file );
+
+                return null;
+            }
+
+            int nbKeys = in.readInt();
+            Map<String, List<String>> content = new HashMap<>( nbKeys );
+
+            for ( int i = 0; i < nbKeys; i++ )
+            {
+                String key = readString( in );
+                int nbValues = in.readInt();
+                List<String> values = new ArrayList<>( nbValues );
+
+                for ( int j = 0; j < nbValues; j++ )
+                {
+                    values.add( readString( in ) );
+                }
+
+                content.put( key, values );
+            }
+
+            return content;
+        }
+        catch ( IOException ioe )
+        {
+            LOG.warn( "Cannot read the ACI cache snapshot {}", file, ioe );
+
+            return null;
+        }
+        finally
+        {
+            if ( !file.delete() )
+            {
+                LOG.warn( "Cannot delete the ACI cache snapshot {}", file );
+            }
+        }
+    }
+
+
+    /**
+     * Writes a snapshot
+     *
+     * @param file The snapshot file
+     * @param contextCsns The contextCSN of all the partitions
+     * @param content The cache content
+     * @throws IOException If the snapshot can't be written
+     */
+    static void write( File file, Map<String, String> contextCsns, Map<String, ? extends Collection<String>> content )
+        throws IOException
+    {
+        File tmpFile = new File( file.getParentFile(), file.getName() + ".tmp" );
+
+        if ( !file.getParentFile().exists() && !file.getParentFile().mkdirs() )
+        {
+            throw new IOException( "Cannot create the directory " + file.getParentFile() );
+        }
+
+        try ( DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream( new FileOutputStream( tmpFile ) ) ) )
+        {
+            out.writeInt( FORMAT_VERSION );
+            out.writeInt( contextCsns.size() );
+
+            for ( Map.Entry<String, String> contextCsn : contextCsns.entrySet() )
+            {
+                writeString( out, contextCsn.getKey() );
+                writeString( out, contextCsn.getValue() );
+            }
+
+            out.writeInt( content.size() );
+
+            for ( Map.Entry<String, ? extends Collection<String>> entry : content.entrySet() )
+            {
+                writeString( out, entry.getKey() );
+                out.writeInt( entry.getValue().size() );
+
+                for ( String value : entry.getValue() )
+                {
+                    writeString( out, value );
+                }
+            }
+        }
+
+        if ( file.exists() && !file.delete() )
+        {
+            throw new IOException( "Cannot delete " + file );
+        }
+
+        if ( !tmpFile.renameTo( file ) )
+        {
+            throw new IOException( "Cannot rename " + tmpFile + " to " + file );
+        }
+    }
+
+
+    private static void writeString( DataOutputStream out, String value ) throws IOException
+    {
+        if ( value == null )
+        {
+            out.writeInt( -1 );
+
+            return;
+        }
+
+        byte[] bytes = value.getBytes( StandardCharsets.UTF_8 );
+        out.writeInt( bytes.length );
+        out.write( bytes );
+    }
+
+
+    private static String readString( DataInputStream in ) throws IOException
+    {
+        int length = in.readInt();
+
+        if ( length < 0 )
+        {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully( bytes );
+
+        return new String( bytes, StandardCharsets.UTF_8 );
+    }
+}
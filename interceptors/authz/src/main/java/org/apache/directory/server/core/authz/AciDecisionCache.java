@@ -0,0 +1,393 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authz;
+
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.directory.api.ldap.aci.ACITuple;
+import org.apache.directory.api.ldap.aci.ProtectedItem;
+import org.apache.directory.api.ldap.aci.UserClass;
+import org.apache.directory.api.ldap.aci.protectedItem.AllAttributeValuesItem;
+import org.apache.directory.api.ldap.aci.protectedItem.AttributeTypeItem;
+import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.subtree.SubtreeSpecification;
+
+
+/**
+ * A cache for the access control decisions taken when filtering search results. The
+ * decisions are stored in a {@link Plan}, which is shared by all the entries having the
+ * same {@link Key} : the same user, the same access control subentries and the same
+ * entryACI. A plan always holds the ACI tuples, so they are not built again for each entry.
+ * When none of its tuples depends on the entry content or on the attribute values, the
+ * plan also holds the verdicts for the entry and for each attribute type, which are then
+ * computed only once.
+ * <p>
+ * A plan is discarded as soon as the {@link TupleCache} has changed since it was built.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class AciDecisionCache
+{
+    /** The default maximum number of plans */
+    public static final int DEFAULT_MAX_PLANS = 10000;
+
+    /** The plans */
+    private final Map<Key, Plan> plans = new ConcurrentHashMap<>();
+
+    /** The cache of the perscriptiveACI tuples */
+    private final TupleCache tupleCache;
+
+    /** The maximum number of plans */
+    private final int maxPlans;
+
+
+    /**
+     * Creates a decision cache.
+     *
+     * @param tupleCache the cache of the perscriptiveACI tuples
+     * @param maxPlans the maximum number of plans
+     */
+    public AciDecisionCache( TupleCache tupleCache, int maxPlans )
+    {
+        this.tupleCache = tupleCache;
+        this.maxPlans = maxPlans;
+    }
+
+
+    /**
+     * Gets the plan for a key
+     *
+     * @param key the key
+     * @return the plan, or null if there is no valid plan for this key
+     */
+    public Plan get( Key key )
+    {
+        Plan plan = plans.get( key );
+
+        if ( ( plan != null ) && ( plan.version != tupleCache.getVersion() ) )
+        {
+            plans.remove( key, plan );
+
+            return null;
+        }
+
+        return plan;
+    }
+
+
+    /**
+     * Creates and stores the plan for a key.
+     *
+     * @param key the key
+     * @param version the version of the TupleCache when the tuples have been gathered
+     * @param tuples the ACI tuples to evaluate for the entries matching the key
+     * @return the plan
+     */
+    public Plan put( Key key, long version, Collection<ACITuple> tuples )
+    {
+        Plan plan = new Plan( version, tuples, isCompilable( tuples ) );
+
+        if ( plans.size() >= maxPlans )
+        {
+            plans.clear();
+        }
+
+        plans.put( key, plan );
+
+        return plan;
+    }
+
+
+    /**
+     * Creates a plan which is not stored, and which does not store any verdict.
+     *
+     * @param tuples the ACI tuples to evaluate
+     * @return the plan
+     */
+    public static Plan uncompiledPlan( Collection<ACITuple> tuples )
+    {
+        return new Plan( 0L, tuples, false );
+    }
+
+
+    /**
+     * @return the number of plans in the cache
+     */
+    public int size()
+    {
+        return plans.size();
+    }
+
+
+    /**
+     * Tells if the decisions taken with some tuples only depend on the user, and on the
+     * attribute type : the tuples must not refer to the entry content or to the attribute
+     * values, and the user subtrees must not be refined with the user entry content.
+     *
+     * @param tuples the ACI tuples
+     * @return true if the verdicts can be computed once for all the entries and values
+     */
+    public static boolean isCompilable( Collection<ACITuple> tuples )
+    {
+        for ( ACITuple tuple : tuples )
+        {
+            for ( ProtectedItem item : tuple.getProtectedItems() )
+            {
+                if ( ( item != ProtectedItem.ENTRY )
+                    && ( item != ProtectedItem.ALL_USER_ATTRIBUTE_TYPES )
+                    && ( item != ProtectedItem.ALL_USER_ATTRIBUTE_TYPES_AND_VALUES )
+                    && !( item instanceof AttributeTypeItem )
+                    && !( item instanceof AllAttributeValuesItem ) )
+                {
+                    return false;
+                }
+            }
+
+            for ( UserClass userClass : tuple.getUserClasses() )
+            {
+                if ( userClass instanceof UserClass.Subtree )
+                {
+                    for ( SubtreeSpecification subtreeSpec : ( ( UserClass.Subtree ) userClass )
+                        .getSubtreeSpecifications() )
+                    {
+                        if ( subtreeSpec.getRefinement() != null )
+                        {
+                            return false;
+                        }
+                    }
+                }
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * What a decision depends on, apart from the entry content and the attribute values.
+     */
+    public static final class Key
+    {
+        private final String userDn;
+        private final Set<String> userGroups;
+        private final AuthenticationLevel authenticationLevel;
+        private final boolean thisEntry;
+        private final boolean parentOfEntry;
+        private final List<String> subentries;
+        private final List<String> entryAcis;
+        private final int hashCode;
+
+
+        /**
+         * Creates a key
+         *
+         * @param userDn the normalized user DN
+         * @param userGroups the groups the user belongs to
+         * @param authenticationLevel the user authentication level
+         * @param thisEntry tells if the user is the entry
+         * @param parentOfEntry tells if the user is a superior of the entry
+         * @param subentries the access control subentries of the entry
+         * @param entryAcis the entryACI values of the entry
+         */
+        public Key( String userDn, Set<String> userGroups, AuthenticationLevel authenticationLevel,
+            boolean thisEntry, boolean parentOfEntry, List<String> subentries, List<String> entryAcis )
+        {
+            this.userDn = userDn;
+            this.userGroups = userGroups;
+            this.authenticationLevel = authenticationLevel;
+            this.thisEntry = thisEntry;
+            this.parentOfEntry = parentOfEntry;
+            this.subentries = subentries;
+            this.entryAcis = entryAcis;
+            hashCode = Objects.hash( userDn, userGroups, authenticationLevel, thisEntry, parentOfEntry, subentries,
+                entryAcis );
+        }
+
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode()
+        {
+            return hashCode;
+        }
+
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals( Object obj )
+        {
+            if ( this == obj )
+            {
+                return true;
+            }
+
+            if ( !( obj instanceof Key ) )
+            {
+                return false;
+            }
+
+            Key other = ( Key ) obj;
+
+            return ( hashCode == other.hashCode )
+                && ( thisEntry == other.thisEntry )
+                && ( parentOfEntry == other.parentOfEntry )
+                && ( authenticationLevel == other.authenticationLevel )
+                && userDn.equals( other.userDn )
+                && userGroups.equals( other.userGroups )
+                && subentries.equals( other.subentries )
+                && entryAcis.equals( other.entryAcis );
+        }
+    }
+
+
+    /**
+     * The tuples, and the decisions already taken, for the entries matching a key.
+     */
+    public static final class Plan
+    {
+        /** The version of the TupleCache when the tuples have been gathered */
+        private final long version;
+
+        /** The tuples */
+        private final Collection<ACITuple> tuples;
+
+        /** Tells if the verdicts can be stored */
+        private final boolean compiled;
+
+        /** The entry verdict, or null if not known yet */
+        private volatile Boolean entryVerdict;
+
+        /** The attribute type verdicts */
+        private final Map<AttributeType, Boolean> attributeTypeVerdicts = new ConcurrentHashMap<>();
+
+        /** The verdicts for the values of an attribute type */
+        private final Map<AttributeType, Boolean> valueVerdicts = new ConcurrentHashMap<>();
+
+
+        private Plan( long version, Collection<ACITuple> tuples, boolean compiled )
+        {
+            this.version = version;
+            this.tuples = tuples;
+            this.compiled = compiled;
+        }
+
+
+        /**
+         * @return the ACI tuples to evaluate
+         */
+        public Collection<ACITuple> getTuples()
+        {
+            return tuples;
+        }
+
+
+        /**
+         * @return true if the verdicts don't depend on the entry content or on the values, and are stored
+         */
+        public boolean isCompiled()
+        {
+            return compiled;
+        }
+
+
+        /**
+         * @return the entry verdict, or null if it is not known
+         */
+        public Boolean getEntryVerdict()
+        {
+            return entryVerdict;
+        }
+
+
+        /**
+         * Stores the entry verdict, if the plan is compiled
+         *
+         * @param verdict the verdict
+         */
+        public void setEntryVerdict( boolean verdict )
+        {
+            if ( compiled )
+            {
+                entryVerdict = verdict;
+            }
+        }
+
+
+        /**
+         * @param attributeType the attribute type
+         * @return the verdict for the attribute type, or null if it is not known
+         */
+        public Boolean getAttributeTypeVerdict( AttributeType attributeType )
+        {
+            return attributeTypeVerdicts.get( attributeType );
+        }
+
+
+        /**
+         * Stores the verdict for an attribute type, if the plan is compiled
+         *
+         * @param attributeType the attribute type
+         * @param verdict the verdict
+         */
+        public void setAttributeTypeVerdict( AttributeType attributeType, boolean verdict )
+        {
+            if ( compiled )
+            {
+                attributeTypeVerdicts.put( attributeType, verdict );
+            }
+        }
+
+
+        /**
+         * @param attributeType the attribute type
+         * @return the verdict for all the values of the attribute type, or null if it is not known
+         */
+        public Boolean getValueVerdict( AttributeType attributeType )
+        {
+            return valueVerdicts.get( attributeType );
+        }
+
+
+        /**
+         * Stores the verdict for all the values of an attribute type, if the plan is compiled
+         *
+         * @param attributeType the attribute type
+         * @param verdict the verdict
+         */
+        public void setValueVerdict( AttributeType attributeType, boolean verdict )
+        {
+            if ( compiled )
+            {
+                valueVerdicts.put( attributeType, verdict );
+            }
+        }
+    }
+}
@@ -20,6 +20,10 @@
 package org.apache.directory.server.core.authz;
 
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -57,7 +61,13 @@ import org.slf4j.LoggerFactory;
 
 
 /**
- * A cache for tracking static group membership.
+ * A cache for tracking static group membership. The members of each group, and the groups
+ * of each member, are stored as immutable sets which are replaced on each change : the
+ * readers never lock, and {@link #getGroups(String)} is a lookup. The DNs are interned, so
+ * that a member of many groups is only stored once. Direct membership only is tracked.
+ * <p>
+ * The cache is loaded when it's used for the first time, from the snapshot saved when the
+ * server was stopped if it is still valid, or by searching the DIT otherwise.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -89,11 +99,23 @@ public class GroupCache
     /** The Admin user DN */
     private Dn adminSystemDn;
 
-    private static final Set<String> EMPTY_GROUPS = new HashSet<>();
+    private static final Set<String> EMPTY_GROUPS = Collections.emptySet();
 
-    /** String key for the Dn of a group to a Set (HashSet) for the Strings of member DNs */
+    /** String key for the Dn of a group to an immutable Set for the Strings of member DNs */
     private final Map<String, Set<String>> groups = new ConcurrentHashMap<>();
 
+    /** String key for the Dn of a member to an immutable Set for the Strings of its group DNs */
+    private final Map<String, Set<String>> memberGroups = new ConcurrentHashMap<>();
+
+    /** the file the cache is saved into when the server is stopped, or null */
+    private final File snapshotFile;
+
+    /** the partitions, kept to save the snapshot when the server is stopped */
+    private Map<String, Partition> partitions;
+
+    /** tells if the cache has been loaded */
+    private volatile boolean loaded;
+
 
     /**
      * Creates a static group cache.
@@ -102,16 +124,30 @@ public class GroupCache
      * @throws LdapException if there are failures on initialization
      */
     public GroupCache( DirectoryService dirService ) throws LdapException
+    {
+        this( dirService, null );
+    }
+
+
+    /**
+     * Creates a static group cache, which is saved into a snapshot file when the server
+     * is stopped, and loaded from it on startup if no partition has changed since.
+     *
+     * @param dirService the directory service core
+     * @param snapshotFile the snapshot file, or null
+     * @throws LdapException if there are failures on initialization
+     */
+    public GroupCache( DirectoryService dirService, File snapshotFile ) throws LdapException
     {
         this.directoryService = dirService;
+        this.snapshotFile = snapshotFile;
         schemaManager = dirService.getSchemaManager();
         dnFactory = dirService.getDnFactory();
         nexus = dirService.getPartitionNexus();
 
         // stuff for dealing with the admin group
         administratorsGroupDn = parseNormalized( ServerDNConstants.ADMINISTRATORS_GROUP_DN );
-
-        initialize( dirService.getAdminSession() );
+        adminSystemDn = new Dn( schemaManager, ServerDNConstants.ADMIN_SYSTEM_DN_NORMALIZED );
     }
 
 
@@ -121,10 +157,88 @@ public class GroupCache
     }
 
 
+    /**
+     * Loads the cache, if it's not already loaded
+     */
+    private void load() throws LdapException
+    {
+        if ( loaded )
+        {
+            return;
+        }
+
+        synchronized ( this )
+        {
+            if ( loaded )
+            {
+                return;
+            }
+
+            Map<String, List<String>> snapshot = null;
+
+            if ( snapshotFile != null )
+            {
+                partitions = AciCacheSnapshot.getPartitions( nexus, dnFactory );
+                snapshot = AciCacheSnapshot.read( snapshotFile, AciCacheSnapshot.getContextCsns( partitions ) );
+            }
+
+            if ( snapshot != null )
+            {
+                Map<String, Set<String>> allGroups = new HashMap<>( snapshot.size() );
+
+                for ( Map.Entry<String, List<String>> group : snapshot.entrySet() )
+                {
+                    allGroups.put( group.getKey(), new HashSet<>( group.getValue() ) );
+                }
+
+                loadGroups( allGroups );
+                LOG.info( "Loaded {} groups from the snapshot {}", allGroups.size(), snapshotFile );
+            }
+            else
+            {
+                initialize( directoryService.getAdminSession() );
+            }
+
+            loaded = true;
+        }
+
+        if ( IS_DEBUG )
+        {
+            LOG.debug( "group cache contents on startup:\n {}", groups );
+        }
+    }
+
+
+    /**
+     * Saves the cache into the snapshot file, if there is one. Nothing is done if the
+     * cache has not been loaded : the previous snapshot is then still valid, unless a
+     * partition has changed.
+     *
+     * @throws LdapException if the contextCSNs can't be read
+     */
+    public synchronized void saveSnapshot() throws LdapException
+    {
+        if ( partitions == null )
+        {
+            return;
+        }
+
+        try
+        {
+            AciCacheSnapshot.write( snapshotFile, AciCacheSnapshot.getContextCsns( partitions ), groups );
+        }
+        catch ( IOException ioe )
+        {
+            LOG.warn( "Cannot save the group cache into {}", snapshotFile, ioe );
+        }
+    }
+
+
     private void initialize( CoreSession session ) throws LdapException
     {
         // search all naming contexts for static groups and generate
         // normalized sets of members to cache within the map
+        Map<String, Set<String>> allGroups = new HashMap<>();
 
         Set<String> suffixes = nexus.listSuffixes();
 
@@ -174,7 +288,7 @@ public class GroupCache
                         Set<String> memberSet = new HashSet<>( members.size() );
                         addMembers( memberSet, members );
 
-                        groups.put( groupDn.getNormName(), memberSet );
+                        allGroups.put( groupDn.getNormName(), memberSet );
                     }
                     else
                     {
@@ -190,12 +304,138 @@ public class GroupCache
                 throw new LdapOperationException( e.getMessage(), e );
             }
         }
-        
-        adminSystemDn = new Dn( schemaManager, ServerDNConstants.ADMIN_SYSTEM_DN_NORMALIZED );
 
-        if ( IS_DEBUG )
+        loadGroups( allGroups );
+    }
+
+
+    /**
+     * Stores all the groups at once, building the members sets before freezing them
+     */
+    private void loadGroups( Map<String, Set<String>> allGroups )
+    {
+        Map<String, Set<String>> allMemberGroups = new HashMap<>();
+
+        for ( Map.Entry<String, Set<String>> group : allGroups.entrySet() )
         {
-            LOG.debug( "group cache contents on startup:\n {}", groups );
+            String groupName = group.getKey().intern();
+            Set<String> members = new HashSet<>( group.getValue().size() );
+
+            for ( String member : group.getValue() )
+            {
+                member = member.intern();
+                members.add( member );
+                allMemberGroups.computeIfAbsent( member, m -> new HashSet<>() ).add( groupName );
+            }
+
+            groups.put( groupName, freeze( members ) );
+        }
+
+        for ( Map.Entry<String, Set<String>> member : allMemberGroups.entrySet() )
+        {
+            memberGroups.put( member.getKey(), freeze( member.getValue() ) );
+        }
+    }
+
+
+    /**
+     * @return an immutable set with the given names, which must not be modified afterward
+     */
+    private static Set<String> freeze( Set<String> names )
+    {
+        switch ( names.size() )
+        {
+            case 0:
+                return Collections.emptySet();
+
+            case 1:
+                return Collections.singleton( names.iterator().next() );
+
+            default:
+                return Collections.unmodifiableSet( names );
+        }
+    }
+
+
+    /**
+     * Replaces the members of a group, and updates the groups of the added and removed
+     * members. Must be called with the cache lock held.
+     */
+    private void putGroup( String group, Set<String> members )
+    {
+        String groupName = group.intern();
+        Set<String> newMembers = freeze( members );
+        Set<String> oldMembers = groups.put( groupName, newMembers );
+
+        if ( oldMembers != null )
+        {
+            for ( String member : oldMembers )
+            {
+                if ( !newMembers.contains( member ) )
+                {
+                    unlinkMember( member, groupName );
+                }
+            }
+        }
+
+        for ( String member : newMembers )
+        {
+            if ( ( oldMembers == null ) || !oldMembers.contains( member ) )
+            {
+                linkMember( member, groupName );
+            }
+        }
+    }
+
+
+    /**
+     * Removes a group, and updates the groups of its members. Must be called with the
+     * cache lock held.
+     */
+    private Set<String> removeGroup( String group )
+    {
+        Set<String> oldMembers = groups.remove( group );
+
+        if ( oldMembers != null )
+        {
+            for ( String member : oldMembers )
+            {
+                unlinkMember( member, group );
+            }
+        }
+
+        return oldMembers;
+    }
+
+
+    private void linkMember( String member, String group )
+    {
+        Set<String> current = memberGroups.get( member );
+        Set<String> updated = ( current == null ) ? new HashSet<>() : new HashSet<>( current );
+        updated.add( group );
+        memberGroups.put( member, freeze( updated ) );
+    }
+
+
+    private void unlinkMember( String member, String group )
+    {
+        Set<String> current = memberGroups.get( member );
+
+        if ( ( current == null ) || !current.contains( group ) )
+        {
+            return;
+        }
+
+        Set<String> updated = new HashSet<>( current );
+        updated.remove( group );
+
+        if ( updated.isEmpty() )
+        {
+            memberGroups.remove( member );
+        }
+        else
+        {
+            memberGroups.put( member, freeze( updated ) );
         }
     }
 
@@ -253,7 +493,7 @@ public class GroupCache
                 continue;
             }
 
-            memberSet.add( memberDn.getNormName() );
+            memberSet.add( memberDn.getNormName().intern() );
         }
     }
 
@@ -296,11 +536,12 @@ public class GroupCache
      * @param entry the group entry's attributes
      * @throws LdapException if there are problems accessing the attr values
      */
-    public void groupAdded( String name, Entry entry ) throws LdapException
+    public synchronized void groupAdded( String name, Entry entry ) throws LdapException
     {
         Attribute members = getMemberAttribute( entry );
 
-        if ( members == null )
+        // Nothing to do if the cache has not been loaded yet : the loading will see the group
+        if ( ( members == null ) || !loaded )
         {
             return;
         }
@@ -308,7 +549,7 @@ public class GroupCache
         Set<String> memberSet = new HashSet<>( members.size() );
         addMembers( memberSet, members );
 
-        groups.put( name, memberSet );
+        putGroup( name, memberSet );
 
         if ( IS_DEBUG )
         {
@@ -325,16 +566,16 @@ public class GroupCache
      * @param entry the attributes of entry being deleted
      * @throws LdapException If we wasn't able to delete the entry from the cache
      */
-    public void groupDeleted( Dn name, Entry entry ) throws LdapException
+    public synchronized void groupDeleted( Dn name, Entry entry ) throws LdapException
     {
         Attribute members = getMemberAttribute( entry );
 
-        if ( members == null )
+        if ( ( members == null ) || !loaded )
         {
             return;
         }
 
-        groups.remove( name.getNormName() );
+        removeGroup( name.getNormName() );
 
         if ( IS_DEBUG )
         {
@@ -391,9 +632,14 @@ public class GroupCache
      * @param schemaManager The SchemaManager instance
      * @throws LdapException if there are problems accessing attribute  values
      */
-    public void groupModified( Dn name, List<Modification> mods, Entry entry, SchemaManager schemaManager )
-        throws LdapException
+    public synchronized void groupModified( Dn name, List<Modification> mods, Entry entry,
+        SchemaManager schemaManager ) throws LdapException
     {
+        if ( !loaded )
+        {
+            return;
+        }
+
         Attribute members = null;
         AttributeType memberAttr = null;
         Attribute oc = entry.get( directoryService.getAtProvider().getObjectClass() );
@@ -423,7 +669,10 @@ public class GroupCache
                 
                 if ( memberSet != null )
                 {
-                    modify( memberSet, modification.getOperation(), modification.getAttribute() );
+                    // The sets are immutable : modify a copy
+                    Set<String> newMemberSet = new HashSet<>( memberSet );
+                    modify( newMemberSet, modification.getOperation(), modification.getAttribute() );
+                    putGroup( name.getNormName(), newMemberSet );
                 }
 
                 break;
@@ -446,11 +695,11 @@ public class GroupCache
      * @param mods the modifications being performed
      * @throws LdapException if there are problems accessing attribute  values
      */
-    public void groupModified( Dn name, ModificationOperation modOp, Entry mods ) throws LdapException
+    public synchronized void groupModified( Dn name, ModificationOperation modOp, Entry mods ) throws LdapException
     {
         Attribute members = getMemberAttribute( mods );
 
-        if ( members == null )
+        if ( ( members == null ) || !loaded )
         {
             return;
         }
@@ -459,7 +708,9 @@ public class GroupCache
 
         if ( memberSet != null )
         {
-            modify( memberSet, modOp, members );
+            Set<String> newMemberSet = new HashSet<>( memberSet );
+            modify( newMemberSet, modOp, members );
+            putGroup( name.getNormName(), newMemberSet );
         }
 
         if ( IS_DEBUG )
@@ -483,6 +734,17 @@ public class GroupCache
             return true;
         }
 
+        try
+        {
+            load();
+        }
+        catch ( LdapException le )
+        {
+            LOG.error( "Cannot load the group cache", le );
+
+            return false;
+        }
+
         Set<String> members = groups.get( administratorsGroupDn.getNormName() );
         
         if ( members == null )
@@ -499,7 +761,7 @@ public class GroupCache
 
     /**
      * Gets the set of groups a user is a member of.  The groups are returned
-     * as normalized Name objects within the set.
+     * as normalized Name objects within the set, which must not be modified.
      *
      * @param memberDn the member (user) to get the groups for
      * @return a Set of Name objects representing the groups
@@ -507,47 +769,31 @@ public class GroupCache
      */
     public Set<String> getGroups( String memberDn ) throws LdapException
     {
-        Set<String> memberGroups = null;
+        load();
 
-        for ( Map.Entry<String, Set<String>> entry : groups.entrySet() )
-        {
-            String group = entry.getKey();
-            Set<String> members = entry.getValue();
+        Set<String> groupsOfMember = memberGroups.get( memberDn );
 
-            if ( members == null )
-            {
-                continue;
-            }
-
-            if ( members.contains( memberDn ) )
-            {
-                if ( memberGroups == null )
-                {
-                    memberGroups = new HashSet<>();
-                }
-
-                memberGroups.add( group );
-            }
-        }
-
-        if ( memberGroups == null )
+        if ( groupsOfMember == null )
         {
             return EMPTY_GROUPS;
         }
 
-        return memberGroups;
+        return groupsOfMember;
     }
 
 
-    public boolean groupRenamed( Dn oldName, Dn newName )
+    public synchronized boolean groupRenamed( Dn oldName, Dn newName )
     {
-        Set<String> members = groups.get( oldName.getNormName() );
+        if ( !loaded )
+        {
+            return false;
+        }
+
+        Set<String> members = removeGroup( oldName.getNormName() );
 
         if ( members != null )
         {
-            groups.remove( oldName.getNormName() );
-
-            groups.put( newName.getNormName(), members );
+            putGroup( newName.getNormName(), new HashSet<>( members ) );
 
             if ( IS_DEBUG )
             {
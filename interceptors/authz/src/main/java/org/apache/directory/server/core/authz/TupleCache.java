@@ -20,13 +20,16 @@
 package org.apache.directory.server.core.authz;
 
 
+import java.io.File;
+import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.naming.directory.SearchControls;
 
@@ -65,7 +68,13 @@ import org.slf4j.LoggerFactory;
 /**
  * A cache for tuple sets which responds to specific events to perform
  * cache house keeping as access control subentries are added, deleted
- * and modified.
+ * and modified. The prescriptiveACI values are stored as they are, and
+ * parsed the first time the tuples of a subentry are requested. The
+ * readers never lock.
+ * <p>
+ * The cache is loaded when it's used for the first time, from the snapshot
+ * saved when the server was stopped if it is still valid, or by searching
+ * the DIT otherwise.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -74,8 +83,11 @@ public class TupleCache
     /** the logger for this class */
     private static final Logger LOG = LoggerFactory.getLogger( TupleCache.class );
 
-    /** a map of strings to ACITuple collections */
-    private final Map<String, List<ACITuple>> tuples = new HashMap<>();
+    /** a map of subentry DNs to their prescriptiveACI values */
+    private final Map<String, List<String>> acis = new ConcurrentHashMap<>();
+
+    /** a map of subentry DNs to the ACITuple collections parsed from their prescriptiveACI */
+    private final Map<String, List<ACITuple>> tuples = new ConcurrentHashMap<>();
 
     /** the directory service */
     private final DirectoryService directoryService;
@@ -89,6 +101,21 @@ public class TupleCache
     /** a normalizing ACIItem parser */
     private final ACIItemParser aciParser;
 
+    /** incremented each time the cached tuples change */
+    private final AtomicLong version = new AtomicLong();
+
+    /** the session used to load the cache */
+    private final CoreSession session;
+
+    /** the file the cache is saved into when the server is stopped, or null */
+    private final File snapshotFile;
+
+    /** the partitions, kept to save the snapshot when the server is stopped */
+    private Map<String, Partition> partitions;
+
+    /** tells if the cache has been loaded */
+    private volatile boolean loaded;
+
 
     /**
      * Creates a ACITuple cache.
@@ -98,13 +125,97 @@ public class TupleCache
      */
     public TupleCache( CoreSession session ) throws LdapException
     {
+        this( session, null );
+    }
+
+
+    /**
+     * Creates a ACITuple cache, which is saved into a snapshot file when the server
+     * is stopped, and loaded from it on startup if no partition has changed since.
+     *
+     * @param session the session with the directory core services
+     * @param snapshotFile the snapshot file, or null
+     * @throws LdapException if initialization fails
+     */
+    public TupleCache( CoreSession session, File snapshotFile ) throws LdapException
+    {
+        this.session = session;
+        this.snapshotFile = snapshotFile;
         this.directoryService = session.getDirectoryService();
         SchemaManager schemaManager = directoryService.getSchemaManager();
         this.dnFactory = directoryService.getDnFactory();
         this.nexus = directoryService.getPartitionNexus();
         NameComponentNormalizer ncn = new ConcreteNameComponentNormalizer( schemaManager );
         aciParser = new ACIItemParser( ncn, schemaManager );
-        initialize( session );
+    }
+
+
+    /**
+     * Loads the cache, if it's not already loaded
+     */
+    private void load() throws LdapException
+    {
+        if ( loaded )
+        {
+            return;
+        }
+
+        synchronized ( this )
+        {
+            if ( loaded )
+            {
+                return;
+            }
+
+            Map<String, List<String>> snapshot = null;
+
+            if ( snapshotFile != null )
+            {
+                partitions = AciCacheSnapshot.getPartitions( nexus, dnFactory );
+                snapshot = AciCacheSnapshot.read( snapshotFile, AciCacheSnapshot.getContextCsns( partitions ) );
+            }
+
+            if ( snapshot != null )
+            {
+                for ( Map.Entry<String, List<String>> subentry : snapshot.entrySet() )
+                {
+                    acis.put( subentry.getKey(), Collections.unmodifiableList( subentry.getValue() ) );
+                }
+
+                LOG.info( "Loaded {} access control subentries from the snapshot {}", acis.size(), snapshotFile );
+            }
+            else
+            {
+                initialize( session );
+            }
+
+            loaded = true;
+        }
+    }
+
+
+    /**
+     * Saves the cache into the snapshot file, if there is one. Nothing is done if the
+     * cache has not been loaded : the previous snapshot is then still valid, unless a
+     * partition has changed.
+     *
+     * @throws LdapException if the contextCSNs can't be read
+     */
+    public synchronized void saveSnapshot() throws LdapException
+    {
+        if ( partitions == null )
+        {
+            return;
+        }
+
+        try
+        {
+            AciCacheSnapshot.write( snapshotFile, AciCacheSnapshot.getContextCsns( partitions ), acis );
+        }
+        catch ( IOException ioe )
+        {
+            LOG.warn( "Cannot save the tuple cache into {}", snapshotFile, ioe );
+        }
     }
 
 
@@ -158,7 +269,7 @@ public class TupleCache
                         continue;
                     }
 
-                    subentryAdded( subentryDn, result );
+                    putAcis( subentryDn, result );
                 }
 
                 results.close();
@@ -199,24 +310,35 @@ public class TupleCache
     }
 
 
-    public void subentryAdded( Dn dn, Entry entry ) throws LdapException
+    /**
+     * Stores the prescriptiveACI values of a subentry, and discards its tuples
+     */
+    private void putAcis( Dn dn, Entry entry )
     {
-        // only do something if the entry contains a prescriptiveACI
-        if ( !hasPrescriptiveACI( entry ) )
+        Attribute prescriptiveAci = entry.get( directoryService.getAtProvider().getPrescriptiveACI() );
+        List<String> entryAcis = new ArrayList<>( prescriptiveAci.size() );
+
+        for ( Value value : prescriptiveAci )
         {
-            return;
+            entryAcis.add( value.getString() );
         }
 
-        // Get the prescriptiveACI
-        Attribute prescriptiveAci = entry.get( directoryService.getAtProvider().getPrescriptiveACI() );
+        acis.put( dn.getNormName(), Collections.unmodifiableList( entryAcis ) );
+        tuples.remove( dn.getNormName() );
+    }
+
 
+    /**
+     * Parses the prescriptiveACI values of a subentry
+     */
+    private List<ACITuple> parse( List<String> entryAcis )
+    {
         List<ACITuple> entryTuples = new ArrayList<>();
 
         // Loop on all the ACI, parse each of them and
         // store the associated tuples into the cache
-        for ( Value value : prescriptiveAci )
+        for ( String aci : entryAcis )
         {
-            String aci = value.getString();
             ACIItem item = null;
 
             try
@@ -234,22 +356,39 @@ public class TupleCache
             }
         }
 
-        tuples.put( dn.getNormName(), entryTuples );
+        return Collections.unmodifiableList( entryTuples );
     }
 
 
-    public void subentryDeleted( Dn dn, Entry entry ) throws LdapException
+    public synchronized void subentryAdded( Dn dn, Entry entry ) throws LdapException
     {
-        if ( !hasPrescriptiveACI( entry ) )
+        // only do something if the entry contains a prescriptiveACI, and if the
+        // cache has been loaded : otherwise the loading will see the subentry
+        if ( !hasPrescriptiveACI( entry ) || !loaded )
         {
             return;
         }
 
+        putAcis( dn, entry );
+        version.incrementAndGet();
+    }
+
+
+    public synchronized void subentryDeleted( Dn dn, Entry entry ) throws LdapException
+    {
+        if ( !hasPrescriptiveACI( entry ) || !loaded )
+        {
+            return;
+        }
+
+        acis.remove( dn.getNormName() );
         tuples.remove( dn.getNormName() );
+        version.incrementAndGet();
     }
 
 
-    public void subentryModified( Dn normName, List<Modification> mods, Entry entry ) throws LdapException
+    public synchronized void subentryModified( Dn normName, List<Modification> mods, Entry entry )
+        throws LdapException
     {
         if ( !hasPrescriptiveACI( entry ) )
         {
@@ -267,7 +406,7 @@ public class TupleCache
     }
 
 
-    public void subentryModified( Dn normName, Entry mods, Entry entry ) throws LdapException
+    public synchronized void subentryModified( Dn normName, Entry mods, Entry entry ) throws LdapException
     {
         if ( !hasPrescriptiveACI( entry ) )
         {
@@ -282,21 +421,65 @@ public class TupleCache
     }
 
 
-    public List<ACITuple> getACITuples( String subentryDn )
+    public List<ACITuple> getACITuples( String subentryDn ) throws LdapException
     {
+        load();
+
         List<ACITuple> aciTuples = tuples.get( subentryDn );
 
-        if ( aciTuples == null )
+        if ( aciTuples != null )
+        {
+            return aciTuples;
+        }
+
+        synchronized ( this )
+        {
+            // Parse the values with the lock held, so that a concurrent modification
+            // of the subentry can't be overwritten with the old tuples
+            aciTuples = tuples.get( subentryDn );
+
+            if ( aciTuples == null )
+            {
+                List<String> entryAcis = acis.get( subentryDn );
+
+                if ( entryAcis == null )
+                {
+                    return Collections.emptyList();
+                }
+
+                aciTuples = parse( entryAcis );
+                tuples.put( subentryDn, aciTuples );
+            }
+
+            return aciTuples;
+        }
+    }
+
+
+    public synchronized void subentryRenamed( Dn oldName, Dn newName )
+    {
+        List<String> entryAcis = acis.remove( oldName.getNormName() );
+        List<ACITuple> entryTuples = tuples.remove( oldName.getNormName() );
+
+        if ( entryAcis != null )
         {
-            return Collections.emptyList();
+            acis.put( newName.getNormName(), entryAcis );
+
+            if ( entryTuples != null )
+            {
+                tuples.put( newName.getNormName(), entryTuples );
+            }
         }
 
-        return Collections.unmodifiableList( aciTuples );
+        version.incrementAndGet();
     }
 
 
-    public void subentryRenamed( Dn oldName, Dn newName )
+    /**
+     * @return a number which changes each time the cached tuples change
+     */
+    public long getVersion()
     {
-        tuples.put( newName.getNormName(), tuples.remove( oldName.getNormName() ) );
+        return version.get();
     }
 }
@@ -0,0 +1,96 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authz;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+/**
+ * Tests {@link AciCacheSnapshot}.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class AciCacheSnapshotTest
+{
+    @TempDir
+    public File tmpDir;
+
+
+    private static Map<String, String> getContextCsns( String systemCsn )
+    {
+        Map<String, String> contextCsns = new TreeMap<>();
+        contextCsns.put( "2.5.4.11=system", systemCsn );
+        contextCsns.put( "2.5.4.11=schema", null );
+
+        return contextCsns;
+    }
+
+
+    private static Map<String, List<String>> getContent()
+    {
+        Map<String, List<String>> content = new HashMap<>();
+        content.put( "2.5.4.3=administrators,2.5.4.11=groups,2.5.4.11=system",
+            Arrays.asList( "0.9.2342.19200300.100.1.1=admin,2.5.4.11=system", "2.5.4.3=élève" ) );
+        content.put( "2.5.4.3=empty,2.5.4.11=groups,2.5.4.11=system", Arrays.<String> asList() );
+
+        return content;
+    }
+
+
+    @Test
+    public void testWriteRead() throws Exception
+    {
+        File file = new File( tmpDir, "groups.snapshot" );
+        String csn = "20261016120000.000000Z#000000#000#000000";
+
+        AciCacheSnapshot.write( file, getContextCsns( csn ), getContent() );
+
+        assertEquals( getContent(), AciCacheSnapshot.read( file, getContextCsns( csn ) ) );
+
+        // The snapshot can only be read once
+        assertFalse( file.exists() );
+        assertNull( AciCacheSnapshot.read( file, getContextCsns( csn ) ) );
+    }
+
+
+    @Test
+    public void testChangedPartition() throws Exception
+    {
+        File file = new File( tmpDir, "groups.snapshot" );
+
+        AciCacheSnapshot.write( file, getContextCsns( "20261016120000.000000Z#000000#000#000000" ), getContent() );
+
+        assertNull( AciCacheSnapshot.read( file, getContextCsns( "20261016120001.000000Z#000000#000#000000" ) ) );
+        assertFalse( file.exists() );
+    }
+}
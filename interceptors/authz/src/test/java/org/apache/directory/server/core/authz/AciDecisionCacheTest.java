@@ -0,0 +1,134 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authz;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.directory.api.ldap.aci.ACITuple;
+import org.apache.directory.api.ldap.aci.MicroOperation;
+import org.apache.directory.api.ldap.aci.ProtectedItem;
+import org.apache.directory.api.ldap.aci.UserClass;
+import org.apache.directory.api.ldap.aci.protectedItem.AllAttributeValuesItem;
+import org.apache.directory.api.ldap.aci.protectedItem.AttributeTypeItem;
+import org.apache.directory.api.ldap.aci.protectedItem.RangeOfValuesItem;
+import org.apache.directory.api.ldap.aci.protectedItem.SelfValueItem;
+import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
+import org.apache.directory.api.ldap.model.filter.PresenceNode;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+
+
+/**
+ * Tests {@link AciDecisionCache}.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@Execution(ExecutionMode.CONCURRENT)
+public class AciDecisionCacheTest
+{
+    private static final Set<AttributeType> EMPTY_ATTRIBUTE_TYPE_SET = Collections
+        .unmodifiableSet( new HashSet<AttributeType>() );
+
+    private static final Collection<UserClass> USER_CLASSES = Collections
+        .singletonList( UserClass.ALL_USERS );
+
+    private static final Set<MicroOperation> MICRO_OPERATIONS = Collections
+        .singleton( MicroOperation.BROWSE );
+
+
+    private static Collection<ACITuple> getTuples( ProtectedItem... protectedItems )
+    {
+        Collection<ACITuple> tuples = new ArrayList<ACITuple>();
+        tuples.add( new ACITuple( USER_CLASSES, AuthenticationLevel.NONE, Arrays.asList( protectedItems ),
+            MICRO_OPERATIONS, true, 0 ) );
+
+        return tuples;
+    }
+
+
+    @Test
+    public void testCompilableTuples()
+    {
+        assertTrue( AciDecisionCache.isCompilable( new ArrayList<ACITuple>() ) );
+        assertTrue( AciDecisionCache.isCompilable( getTuples( ProtectedItem.ENTRY ) ) );
+        assertTrue( AciDecisionCache.isCompilable( getTuples( ProtectedItem.ALL_USER_ATTRIBUTE_TYPES,
+            ProtectedItem.ALL_USER_ATTRIBUTE_TYPES_AND_VALUES ) ) );
+        assertTrue( AciDecisionCache.isCompilable( getTuples( new AttributeTypeItem( EMPTY_ATTRIBUTE_TYPE_SET ),
+            new AllAttributeValuesItem( EMPTY_ATTRIBUTE_TYPE_SET ) ) ) );
+    }
+
+
+    @Test
+    public void testValueDependentTuples()
+    {
+        assertFalse( AciDecisionCache.isCompilable( getTuples( ProtectedItem.ENTRY,
+            new SelfValueItem( EMPTY_ATTRIBUTE_TYPE_SET ) ) ) );
+        assertFalse( AciDecisionCache.isCompilable( getTuples(
+            new RangeOfValuesItem( new PresenceNode( ( String ) null ) ) ) ) );
+    }
+
+
+    @Test
+    public void testUncompiledPlanDoesNotStoreVerdicts()
+    {
+        AciDecisionCache.Plan plan = AciDecisionCache.uncompiledPlan( getTuples( ProtectedItem.ENTRY ) );
+
+        assertFalse( plan.isCompiled() );
+        plan.setEntryVerdict( true );
+        plan.setAttributeTypeVerdict( null, true );
+        assertNull( plan.getEntryVerdict() );
+        assertEquals( 1, plan.getTuples().size() );
+    }
+
+
+    @Test
+    public void testKeyEquality()
+    {
+        Set<String> groups = new HashSet<String>();
+        List<String> subentries = Collections.singletonList( "2.5.4.3=acsubentry,2.5.4.11=system" );
+        List<String> noAci = Collections.emptyList();
+
+        AciDecisionCache.Key key1 = new AciDecisionCache.Key( "uid=admin", groups, AuthenticationLevel.SIMPLE,
+            false, false, subentries, noAci );
+        AciDecisionCache.Key key2 = new AciDecisionCache.Key( "uid=admin", new HashSet<String>(),
+            AuthenticationLevel.SIMPLE, false, false, new ArrayList<String>( subentries ), noAci );
+        AciDecisionCache.Key key3 = new AciDecisionCache.Key( "uid=admin", groups, AuthenticationLevel.SIMPLE,
+            true, false, subentries, noAci );
+
+        assertEquals( key1, key2 );
+        assertEquals( key1.hashCode(), key2.hashCode() );
+        assertNotEquals( key1, key3 );
+    }
+}
@@ -31,6 +31,7 @@ import org.apache.directory.api.ldap.model.schema.normalizers.ConcreteNameCompon
 import org.apache.directory.api.ldap.model.schema.normalizers.NameComponentNormalizer;
 import org.apache.directory.server.core.api.DirectoryService;
 import org.apache.directory.server.core.api.event.DirectoryListener;
+import org.apache.directory.server.core.api.event.EventDeliveryStats;
 import org.apache.directory.server.core.api.event.EventService;
 import org.apache.directory.server.core.api.event.NotificationCriteria;
 import org.apache.directory.server.core.api.event.RegistrationEntry;
@@ -48,21 +49,28 @@ class DefaultEventService implements EventService
     /** The list of RegistrationEntries being registered */
     private List<RegistrationEntry> registrations = new CopyOnWriteArrayList<>();
 
+    /** The registrations, indexed by base Dn and filter attributes */
+    private final ListenerRegistry registry = new ListenerRegistry();
+
     /** The DirectoryService instance */
     private DirectoryService directoryService;
 
     /** A normalizer used for filters */
     private FilterNormalizingVisitor filterNormalizer;
 
+    /** The dispatcher delivering the events to the asynchronous listeners */
+    private final EventDispatcher dispatcher;
+
 
     /**
      * Create an instance of EventService
      * @param directoryService The associated DirectoryService
-     * @param registrations The list of Registrations
+     * @param dispatcher The dispatcher delivering the events to the asynchronous listeners
      */
-    DefaultEventService( DirectoryService directoryService )
+    DefaultEventService( DirectoryService directoryService, EventDispatcher dispatcher )
     {
         this.directoryService = directoryService;
+        this.dispatcher = dispatcher;
         SchemaManager schemaManager = directoryService.getSchemaManager();
         NameComponentNormalizer ncn = new ConcreteNameComponentNormalizer( schemaManager );
         filterNormalizer = new FilterNormalizingVisitor( ncn, schemaManager );
@@ -82,7 +90,15 @@ class DefaultEventService implements EventService
 
         ExprNode result = ( ExprNode ) criteria.getFilter().accept( filterNormalizer );
         criteria.setFilter( result );
-        registrations.add( new RegistrationEntry( listener, criteria ) );
+        RegistrationEntry registration = new RegistrationEntry( listener, criteria );
+
+        if ( !listener.isSynchronous() )
+        {
+            dispatcher.add( listener );
+        }
+
+        registrations.add( registration );
+        registry.add( registration );
     }
 
 
@@ -97,8 +113,11 @@ class DefaultEventService implements EventService
             if ( entry.getListener() == listener )
             {
                 registrations.remove( entry );
+                registry.remove( entry );
             }
         }
+
+        dispatcher.remove( listener );
     }
 
 
@@ -110,4 +129,23 @@ class DefaultEventService implements EventService
     {
         return Collections.unmodifiableList( registrations );
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<EventDeliveryStats> getDeliveryStats()
+    {
+        return dispatcher.getStats();
+    }
+
+
+    /**
+     * @return The registrations, indexed by base Dn and filter attributes
+     */
+    ListenerRegistry getRegistry()
+    {
+        return registry;
+    }
 }
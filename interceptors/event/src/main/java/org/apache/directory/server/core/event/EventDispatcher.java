@@ -0,0 +1,452 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.event;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.apache.directory.server.core.api.event.DirectoryListener;
+import org.apache.directory.server.core.api.event.DisconnectableListener;
+import org.apache.directory.server.core.api.event.EventDeliveryStats;
+import org.apache.directory.server.core.api.event.EventOverflowPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Delivers the events to the asynchronous listeners.
+ * <p>
+ * Each listener has its own bounded queue, and the events are delivered to a listener
+ * in the order they were generated, by a shared pool of threads. A listener is handled
+ * by at most one thread at a time, and a thread gives up a listener after a batch of
+ * events, so that a slow listener only delays its own events. When the queue of a
+ * listener is full, the {@link EventOverflowPolicy} tells what to do with the new event.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class EventDispatcher
+{
+    /** A logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( EventDispatcher.class );
+
+    /** The maximum number of events delivered to a listener before the thread handles another listener */
+    private static final int MAX_BATCH = 100;
+
+    /** The delay after which a blocked operation checks if the listener is still there */
+    private static final long BLOCK_CHECK_DELAY = 100L;
+
+    /** The default time an operation waits for room in a queue with the BLOCK policy, in milliseconds */
+    static final long DEFAULT_BLOCK_TIMEOUT = 5000L;
+
+    /** The threads delivering the events */
+    private final ExecutorService executor;
+
+    /** The maximum number of events waiting for each listener */
+    private final int queueSize;
+
+    /** What to do when a queue is full */
+    private final EventOverflowPolicy overflowPolicy;
+
+    /** The time an operation waits for room in a queue with the BLOCK policy, in milliseconds */
+    private final long blockTimeout;
+
+    /** Called when a listener is disconnected because its queue is full */
+    private final Consumer<DirectoryListener> disconnector;
+
+    /** The queues, per listener */
+    private final ConcurrentMap<DirectoryListener, ListenerQueue> queues = new ConcurrentHashMap<>();
+
+
+    /**
+     * An event waiting to be delivered
+     */
+    private static final class PendingEvent
+    {
+        /** The notification of the listener */
+        private final Runnable notification;
+
+        /** The time the event has been queued */
+        private final long queuedTime;
+
+
+        private PendingEvent( Runnable notification )
+        {
+            this.notification = notification;
+            queuedTime = System.nanoTime();
+        }
+    }
+
+
+    /**
+     * The events waiting to be delivered to a listener, and the listener statistics
+     */
+    private final class ListenerQueue implements Runnable
+    {
+        /** The listener */
+        private final DirectoryListener listener;
+
+        /** The pending events */
+        private final BlockingQueue<PendingEvent> events;
+
+        /** Tells if a thread is delivering the events, or is about to */
+        private final AtomicBoolean scheduled = new AtomicBoolean( false );
+
+        /** The number of delivered events */
+        private final AtomicLong delivered = new AtomicLong();
+
+        /** The number of dropped events */
+        private final AtomicLong dropped = new AtomicLong();
+
+        /** The total time the delivered events have waited, in nanoseconds */
+        private final AtomicLong totalLatency = new AtomicLong();
+
+        /** The longest time a delivered event has waited, in nanoseconds */
+        private final AtomicLong maxLatency = new AtomicLong();
+
+        /** Set when the listener has been removed */
+        private volatile boolean closed;
+
+
+        private ListenerQueue( DirectoryListener listener )
+        {
+            this.listener = listener;
+            events = new ArrayBlockingQueue<>( queueSize );
+        }
+
+
+        /**
+         * Adds an event to the queue, applying the overflow policy if it's full
+         */
+        private void add( PendingEvent event )
+        {
+            if ( !events.offer( event ) )
+            {
+                switch ( overflowPolicy )
+                {
+                    case DROP_OLDEST:
+                        do
+                        {
+                            if ( events.poll() != null )
+                            {
+                                dropped.incrementAndGet();
+                            }
+                        }
+                        while ( !events.offer( event ) );
+
+                        break;
+
+                    case DISCONNECT:
+                        disconnect();
+
+                        return;
+
+                    default:
+                        if ( !waitForRoom( event ) )
+                        {
+                            return;
+                        }
+                }
+            }
+
+            schedule();
+        }
+
+
+        /**
+         * Waits until the event can be added to the queue. We stop waiting if the listener is removed,
+         * and we disconnect it if it does not make room before the block timeout.
+         */
+        private boolean waitForRoom( PendingEvent event )
+        {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( blockTimeout );
+
+            try
+            {
+                while ( !events.offer( event, BLOCK_CHECK_DELAY, TimeUnit.MILLISECONDS ) )
+                {
+                    if ( closed )
+                    {
+                        dropped.incrementAndGet();
+
+                        return false;
+                    }
+
+                    if ( System.nanoTime() - deadline >= 0 )
+                    {
+                        disconnect();
+
+                        return false;
+                    }
+                }
+
+                return true;
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+                dropped.incrementAndGet();
+
+                return false;
+            }
+        }
+
+
+        /**
+         * Removes the listener, as it can't keep up with the events
+         */
+        private void disconnect()
+        {
+            // Only the first thread to get there disconnects the listener
+            if ( !queues.remove( listener, this ) )
+            {
+                dropped.incrementAndGet();
+
+                return;
+            }
+
+            close();
+            LOG.warn( "The queue of the listener {} is full, disconnecting it. {} events have been dropped",
+                listener, dropped.get() );
+
+            disconnector.accept( listener );
+
+            if ( listener instanceof DisconnectableListener )
+            {
+                try
+                {
+                    executor.execute( ( ( DisconnectableListener ) listener )::disconnected );
+                }
+                catch ( RejectedExecutionException ree )
+                {
+                    LOG.debug( "The dispatcher has been shut down, can't tell {} it's disconnected", listener );
+                }
+            }
+        }
+
+
+        /**
+         * Drops the pending events, and stops the delivery
+         */
+        private void close()
+        {
+            closed = true;
+            dropped.addAndGet( events.size() );
+            events.clear();
+        }
+
+
+        /**
+         * Asks a thread to deliver the events, if none is already doing it
+         */
+        private void schedule()
+        {
+            if ( scheduled.compareAndSet( false, true ) )
+            {
+                try
+                {
+                    executor.execute( this );
+                }
+                catch ( RejectedExecutionException ree )
+                {
+                    scheduled.set( false );
+                    LOG.debug( "The dispatcher has been shut down, the events for {} won't be delivered", listener );
+                }
+            }
+        }
+
+
+        /**
+         * Delivers a batch of events
+         */
+        @Override
+        public void run()
+        {
+            try
+            {
+                for ( int i = 0; ( i < MAX_BATCH ) && !closed; i++ )
+                {
+                    PendingEvent event = events.poll();
+
+                    if ( event == null )
+                    {
+                        break;
+                    }
+
+                    long latency = System.nanoTime() - event.queuedTime;
+                    totalLatency.addAndGet( latency );
+                    maxLatency.accumulateAndGet( latency, Math::max );
+
+                    try
+                    {
+                        event.notification.run();
+                    }
+                    catch ( RuntimeException re )
+                    {
+                        LOG.error( "The listener {} failed to process an event", listener, re );
+                    }
+
+                    delivered.incrementAndGet();
+                }
+            }
+            finally
+            {
+                scheduled.set( false );
+
+                // Some events may have been added after we stopped reading the queue
+                if ( !closed && !events.isEmpty() )
+                {
+                    schedule();
+                }
+            }
+        }
+
+
+        private EventDeliveryStats getStats()
+        {
+            return new EventDeliveryStats( listener, events.size(), delivered.get(), dropped.get(),
+                totalLatency.get(), maxLatency.get() );
+        }
+    }
+
+
+    /**
+     * Creates a new instance of EventDispatcher, with the default block timeout.
+     *
+     * @param threads The number of threads delivering the events
+     * @param queueSize The maximum number of events waiting for each listener
+     * @param overflowPolicy What to do when the queue of a listener is full
+     * @param disconnector Called to remove a listener which is disconnected
+     */
+    EventDispatcher( int threads, int queueSize, EventOverflowPolicy overflowPolicy,
+        Consumer<DirectoryListener> disconnector )
+    {
+        this( threads, queueSize, overflowPolicy, DEFAULT_BLOCK_TIMEOUT, disconnector );
+    }
+
+
+    /**
+     * Creates a new instance of EventDispatcher.
+     *
+     * @param threads The number of threads delivering the events
+     * @param queueSize The maximum number of events waiting for each listener
+     * @param overflowPolicy What to do when the queue of a listener is full
+     * @param blockTimeout The time an operation waits for room in a queue with the BLOCK policy,
+     * in milliseconds, before the listener is disconnected
+     * @param disconnector Called to remove a listener which is disconnected
+     */
+    EventDispatcher( int threads, int queueSize, EventOverflowPolicy overflowPolicy, long blockTimeout,
+        Consumer<DirectoryListener> disconnector )
+    {
+        this.queueSize = Math.max( queueSize, 1 );
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeout = Math.max( blockTimeout, 0L );
+        this.disconnector = disconnector;
+
+        executor = Executors.newFixedThreadPool( Math.max( threads, 1 ), runnable ->
+        {
+            Thread thread = Executors.defaultThreadFactory().newThread( runnable );
+            thread.setName( "event-dispatcher-" + thread.getId() );
+            thread.setDaemon( true );
+
+            return thread;
+        } );
+    }
+
+
+    /**
+     * Creates the queue of an asynchronous listener.
+     *
+     * @param listener The added listener
+     */
+    void add( DirectoryListener listener )
+    {
+        queues.computeIfAbsent( listener, ListenerQueue::new );
+    }
+
+
+    /**
+     * Queues an event for a listener. The event is ignored if the listener has been removed.
+     *
+     * @param listener The listener
+     * @param notification The call to the listener
+     */
+    void dispatch( DirectoryListener listener, Runnable notification )
+    {
+        ListenerQueue queue = queues.get( listener );
+
+        if ( queue != null )
+        {
+            queue.add( new PendingEvent( notification ) );
+        }
+    }
+
+
+    /**
+     * Drops the pending events of a listener which has been removed.
+     *
+     * @param listener The removed listener
+     */
+    void remove( DirectoryListener listener )
+    {
+        ListenerQueue queue = queues.remove( listener );
+
+        if ( queue != null )
+        {
+            queue.close();
+        }
+    }
+
+
+    /**
+     * @return The delivery statistics of each listener
+     */
+    List<EventDeliveryStats> getStats()
+    {
+        List<EventDeliveryStats> stats = new ArrayList<>( queues.size() );
+
+        for ( ListenerQueue queue : queues.values() )
+        {
+            stats.add( queue.getStats() );
+        }
+
+        return stats;
+    }
+
+
+    /**
+     * Stops the threads. The pending events are not delivered.
+     */
+    void shutdown()
+    {
+        executor.shutdown();
+    }
+}
@@ -27,12 +27,6 @@ import static org.apache.directory.api.ldap.model.message.SearchScope.SUBTREE;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Entry;
@@ -45,6 +39,8 @@ import org.apache.directory.server.core.api.InterceptorEnum;
 import org.apache.directory.server.core.api.entry.ClonedServerEntry;
 import org.apache.directory.server.core.api.event.DirectoryListener;
 import org.apache.directory.server.core.api.event.Evaluator;
+import org.apache.directory.server.core.api.event.EventOverflowPolicy;
+import org.apache.directory.server.core.api.event.EventService;
 import org.apache.directory.server.core.api.event.EventType;
 import org.apache.directory.server.core.api.event.ExpressionEvaluator;
 import org.apache.directory.server.core.api.event.NotificationCriteria;
@@ -72,8 +68,31 @@ public class EventInterceptor extends BaseInterceptor
     /** A logger for this class */
     private static final Logger LOG = LoggerFactory.getLogger( EventInterceptor.class );
 
+    /** The default number of threads delivering the events to the asynchronous listeners */
+    public static final int DEFAULT_DISPATCHER_THREADS = 10;
+
+    /** The default maximum number of events waiting to be delivered to an asynchronous listener */
+    public static final int DEFAULT_LISTENER_QUEUE_SIZE = 1000;
+
+    /** The default time an operation waits for room in a listener queue with the BLOCK policy, in milliseconds */
+    public static final long DEFAULT_BLOCK_TIMEOUT = EventDispatcher.DEFAULT_BLOCK_TIMEOUT;
+
     private Evaluator evaluator;
-    private ExecutorService executor;
+
+    /** The dispatcher delivering the events to the asynchronous listeners */
+    private EventDispatcher dispatcher;
+
+    /** The number of threads delivering the events to the asynchronous listeners */
+    private int dispatcherThreads = DEFAULT_DISPATCHER_THREADS;
+
+    /** The maximum number of events waiting to be delivered to an asynchronous listener */
+    private int listenerQueueSize = DEFAULT_LISTENER_QUEUE_SIZE;
+
+    /** What to do when the queue of an asynchronous listener is full */
+    private EventOverflowPolicy overflowPolicy = EventOverflowPolicy.DISCONNECT;
+
+    /** The time an operation waits for room in a listener queue with the BLOCK policy, in milliseconds */
+    private long blockTimeout = DEFAULT_BLOCK_TIMEOUT;
 
 
     /**
@@ -86,8 +105,8 @@ public class EventInterceptor extends BaseInterceptor
 
 
     /**
-     * Initialize the event interceptor. It creates a pool of executor which will be used
-     * to call the listeners in separate threads.
+     * Initialize the event interceptor. It creates the dispatcher which will be used
+     * to call the asynchronous listeners in separate threads.
      */
     @Override
     public void init( DirectoryService directoryService ) throws LdapException
@@ -96,152 +115,60 @@ public class EventInterceptor extends BaseInterceptor
         super.init( directoryService );
 
         evaluator = new ExpressionEvaluator( schemaManager );
-        executor = new ThreadPoolExecutor( 1, 10, 1000, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>( 100 ) );
-        
-        ThreadFactory threadFactory = new ThreadFactory() 
-        {
-            @Override
-            public Thread newThread( Runnable runnable ) 
-            {
-                Thread newThread = Executors.defaultThreadFactory().newThread( runnable );
-                newThread.setDaemon( true );
-                
-                return newThread;
-            }
-        };
-        
-        executor = new ThreadPoolExecutor( 1, 10, 1000, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>( 100 ),
-            threadFactory );
+        dispatcher = new EventDispatcher( dispatcherThreads, listenerQueueSize, overflowPolicy, blockTimeout,
+            listener -> this.directoryService.getEventService().removeListener( listener ) );
 
-        this.directoryService.setEventService( new DefaultEventService( directoryService ) );
+        this.directoryService.setEventService( new DefaultEventService( directoryService, dispatcher ) );
         LOG.info( "Initialization complete." );
     }
 
 
     /**
-     * Call the listener passing it the context.
+     * Call the listener passing it the context. Asynchronous listeners are called
+     * by the dispatcher threads.
      */
     private void fire( final OperationContext opContext, EventType type, final DirectoryListener listener )
     {
+        Runnable notification;
+
         switch ( type )
         {
             case ADD:
-                if ( listener.isSynchronous() )
-                {
-                    listener.entryAdded( ( AddOperationContext ) opContext );
-                }
-                else
-                {
-                    executor.execute( new Runnable()
-                    {
-                        @Override
-                        public void run()
-                        {
-                            listener.entryAdded( ( AddOperationContext ) opContext );
-                        }
-                    } );
-                }
-
+                notification = () -> listener.entryAdded( ( AddOperationContext ) opContext );
                 break;
 
             case DELETE:
-                if ( listener.isSynchronous() )
-                {
-                    listener.entryDeleted( ( DeleteOperationContext ) opContext );
-                }
-                else
-                {
-                    executor.execute( new Runnable()
-                    {
-                        @Override
-                        public void run()
-                        {
-                            listener.entryDeleted( ( DeleteOperationContext ) opContext );
-                        }
-                    } );
-                }
-
+                notification = () -> listener.entryDeleted( ( DeleteOperationContext ) opContext );
                 break;
 
             case MODIFY:
-                if ( listener.isSynchronous() )
-                {
-                    listener.entryModified( ( ModifyOperationContext ) opContext );
-                }
-                else
-                {
-                    executor.execute( new Runnable()
-                    {
-                        @Override
-                        public void run()
-                        {
-                            listener.entryModified( ( ModifyOperationContext ) opContext );
-                        }
-                    } );
-                }
-
+                notification = () -> listener.entryModified( ( ModifyOperationContext ) opContext );
                 break;
 
             case MOVE:
-                if ( listener.isSynchronous() )
-                {
-                    listener.entryMoved( ( MoveOperationContext ) opContext );
-                }
-                else
-                {
-                    executor.execute( new Runnable()
-                    {
-                        @Override
-                        public void run()
-                        {
-                            listener.entryMoved( ( MoveOperationContext ) opContext );
-                        }
-                    } );
-                }
-
+                notification = () -> listener.entryMoved( ( MoveOperationContext ) opContext );
                 break;
 
             case RENAME:
-                if ( listener.isSynchronous() )
-                {
-                    listener.entryRenamed( ( RenameOperationContext ) opContext );
-                }
-                else
-                {
-                    executor.execute( new Runnable()
-                    {
-                        @Override
-                        public void run()
-                        {
-                            listener.entryRenamed( ( RenameOperationContext ) opContext );
-                        }
-                    } );
-                }
-
+                notification = () -> listener.entryRenamed( ( RenameOperationContext ) opContext );
                 break;
 
             case MOVE_AND_RENAME:
-                if ( listener.isSynchronous() )
-                {
-                    listener.entryMovedAndRenamed( ( MoveAndRenameOperationContext ) opContext );
-                }
-                else
-                {
-                    executor.execute( new Runnable()
-                    {
-                        @Override
-                        public void run()
-                        {
-                            listener.entryMovedAndRenamed( ( MoveAndRenameOperationContext ) opContext );
-                        }
-                    } );
-                }
-
+                notification = () -> listener.entryMovedAndRenamed( ( MoveAndRenameOperationContext ) opContext );
                 break;
 
             default:
                 throw new IllegalArgumentException( "Unexpected event type " + type );
         }
+
+        if ( listener.isSynchronous() )
+        {
+            notification.run();
+        }
+        else
+        {
+            dispatcher.dispatch( listener, notification );
+        }
     }
 
 
@@ -432,7 +359,36 @@ public class EventInterceptor extends BaseInterceptor
      */
     private List<RegistrationEntry> getSelectingRegistrations( Dn name, Entry entry ) throws LdapException
     {
-        List<RegistrationEntry> registrations = directoryService.getEventService().getRegistrationEntries();
+        EventService eventService = directoryService.getEventService();
+
+        if ( eventService instanceof DefaultEventService )
+        {
+            // Only evaluate the registrations which have the entry in their scope, and
+            // which may match it
+            List<RegistrationEntry> candidates = ( ( DefaultEventService ) eventService ).getRegistry()
+                .getCandidates( name, entry );
+
+            if ( candidates.isEmpty() )
+            {
+                return candidates;
+            }
+
+            List<RegistrationEntry> selecting = new ArrayList<>( candidates.size() );
+
+            for ( RegistrationEntry registration : candidates )
+            {
+                NotificationCriteria criteria = registration.getCriteria();
+
+                if ( evaluator.evaluate( criteria.getFilter(), criteria.getBase(), entry ) )
+                {
+                    selecting.add( registration );
+                }
+            }
+
+            return selecting;
+        }
+
+        List<RegistrationEntry> registrations = eventService.getRegistrationEntries();
 
         if ( registrations.isEmpty() )
         {
@@ -471,6 +427,91 @@ public class EventInterceptor extends BaseInterceptor
     @Override
     public void destroy()
     {
-       executor.shutdown();
+        dispatcher.shutdown();
+    }
+
+
+    /**
+     * @return The number of threads delivering the events to the asynchronous listeners
+     */
+    public int getDispatcherThreads()
+    {
+        return dispatcherThreads;
+    }
+
+
+    /**
+     * Sets the number of threads delivering the events to the asynchronous listeners.
+     * This must be set before the interceptor is initialized.
+     *
+     * @param dispatcherThreads The number of threads
+     */
+    public void setDispatcherThreads( int dispatcherThreads )
+    {
+        this.dispatcherThreads = dispatcherThreads;
+    }
+
+
+    /**
+     * @return The maximum number of events waiting to be delivered to an asynchronous listener
+     */
+    public int getListenerQueueSize()
+    {
+        return listenerQueueSize;
+    }
+
+
+    /**
+     * Sets the maximum number of events waiting to be delivered to an asynchronous listener.
+     * This must be set before the interceptor is initialized.
+     *
+     * @param listenerQueueSize The maximum number of events
+     */
+    public void setListenerQueueSize( int listenerQueueSize )
+    {
+        this.listenerQueueSize = listenerQueueSize;
+    }
+
+
+    /**
+     * @return What to do when the queue of an asynchronous listener is full
+     */
+    public EventOverflowPolicy getOverflowPolicy()
+    {
+        return overflowPolicy;
+    }
+
+
+    /**
+     * Sets what to do when the queue of an asynchronous listener is full.
+     * This must be set before the interceptor is initialized.
+     *
+     * @param overflowPolicy The overflow policy
+     */
+    public void setOverflowPolicy( EventOverflowPolicy overflowPolicy )
+    {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+
+    /**
+     * @return The time an operation waits for room in a listener queue with the BLOCK policy, in milliseconds
+     */
+    public long getBlockTimeout()
+    {
+        return blockTimeout;
+    }
+
+
+    /**
+     * Sets the time an operation waits for room in the queue of an asynchronous listener
+     * with the BLOCK policy. The listener is disconnected after this delay, as the operation
+     * holds its write lock while it waits. This must be set before the interceptor is initialized.
+     *
+     * @param blockTimeout The timeout, in milliseconds
+     */
+    public void setBlockTimeout( long blockTimeout )
+    {
+        this.blockTimeout = blockTimeout;
     }
 }
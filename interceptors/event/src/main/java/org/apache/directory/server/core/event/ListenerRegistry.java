@@ -0,0 +1,504 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.event;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.filter.AndNode;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.ExtensibleNode;
+import org.apache.directory.api.ldap.model.filter.LeafNode;
+import org.apache.directory.api.ldap.model.filter.OrNode;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.name.Rdn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.server.core.api.event.RegistrationEntry;
+
+
+/**
+ * An index of the registered listeners, used to quickly find the listeners which may be
+ * interested by a change.
+ * <p>
+ * The registrations are stored in a tree mirroring the DIT, on the node associated with
+ * their base Dn, so that we only have to walk the ancestors of a modified entry to find
+ * the registrations having this entry in scope. On each node, the registrations are
+ * grouped by the attribute types their filter requires : a registration which filter
+ * can only match an entry containing one of these attribute types is only selected
+ * when the entry contains one of them. The filters of the selected registrations still
+ * have to be evaluated.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class ListenerRegistry
+{
+    /** The lock protecting the tree */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** The root of the tree, associated with the empty Dn */
+    private final Node root = new Node();
+
+    /** The sequence used to keep the registrations in the order they were added */
+    private long sequence;
+
+    /** The number of registrations */
+    private int size;
+
+
+    /**
+     * A registration, with the attribute types its filter requires
+     */
+    private static final class Registration
+    {
+        /** The registered entry */
+        private final RegistrationEntry entry;
+
+        /** The registration order */
+        private final long order;
+
+        /** The OIDs of the attribute types required by the filter, or null if the filter has no requirement */
+        private final Set<String> attributes;
+
+
+        private Registration( RegistrationEntry entry, long order, Set<String> attributes )
+        {
+            this.entry = entry;
+            this.order = order;
+            this.attributes = attributes;
+        }
+    }
+
+
+    /**
+     * The registrations sharing the same base and scope, grouped by the attribute
+     * types their filter requires
+     */
+    private static final class Group
+    {
+        /** The registrations which filter has no requirement */
+        private final List<Registration> unconstrained = new ArrayList<>();
+
+        /** The registrations, by required attribute type OID */
+        private final Map<String, List<Registration>> byAttribute = new HashMap<>();
+
+
+        private void add( Registration registration )
+        {
+            if ( registration.attributes == null )
+            {
+                unconstrained.add( registration );
+
+                return;
+            }
+
+            for ( String oid : registration.attributes )
+            {
+                byAttribute.computeIfAbsent( oid, key -> new ArrayList<>() ).add( registration );
+            }
+        }
+
+
+        private boolean remove( RegistrationEntry entry )
+        {
+            boolean removed = removeFrom( unconstrained, entry );
+            Iterator<List<Registration>> lists = byAttribute.values().iterator();
+
+            while ( lists.hasNext() )
+            {
+                List<Registration> registrations = lists.next();
+                removed |= removeFrom( registrations, entry );
+
+                if ( registrations.isEmpty() )
+                {
+                    lists.remove();
+                }
+            }
+
+            return removed;
+        }
+
+
+        private void collect( Set<String> entryAttributes, List<Registration> selected )
+        {
+            selected.addAll( unconstrained );
+
+            if ( byAttribute.isEmpty() )
+            {
+                return;
+            }
+
+            if ( entryAttributes == null )
+            {
+                // We don't know which attributes the entry has
+                for ( List<Registration> registrations : byAttribute.values() )
+                {
+                    selected.addAll( registrations );
+                }
+
+                return;
+            }
+
+            for ( String oid : entryAttributes )
+            {
+                List<Registration> registrations = byAttribute.get( oid );
+
+                if ( registrations != null )
+                {
+                    selected.addAll( registrations );
+                }
+            }
+        }
+
+
+        private boolean isEmpty()
+        {
+            return unconstrained.isEmpty() && byAttribute.isEmpty();
+        }
+
+
+        private static boolean removeFrom( List<Registration> registrations, RegistrationEntry entry )
+        {
+            return registrations.removeIf( registration -> registration.entry == entry );
+        }
+    }
+
+
+    /**
+     * A node in the tree, associated with a Dn
+     */
+    private static final class Node
+    {
+        /** The children, by normalized Rdn */
+        private final Map<String, Node> children = new HashMap<>();
+
+        /** The registrations with an OBJECT scope on this node */
+        private final Group object = new Group();
+
+        /** The registrations with a ONELEVEL scope on this node */
+        private final Group oneLevel = new Group();
+
+        /** The registrations with a SUBTREE scope on this node */
+        private final Group subtree = new Group();
+
+
+        private Group getGroup( RegistrationEntry entry )
+        {
+            switch ( entry.getCriteria().getScope() )
+            {
+                case OBJECT:
+                    return object;
+
+                case ONELEVEL:
+                    return oneLevel;
+
+                default:
+                    return subtree;
+            }
+        }
+
+
+        private boolean isEmpty()
+        {
+            return children.isEmpty() && object.isEmpty() && oneLevel.isEmpty() && subtree.isEmpty();
+        }
+    }
+
+
+    /**
+     * Adds a registration. Its criteria base must be schema aware, and its filter normalized.
+     *
+     * @param entry The registration to add
+     */
+    void add( RegistrationEntry entry )
+    {
+        Set<String> attributes = getRequiredAttributes( entry.getCriteria().getFilter() );
+
+        lock.writeLock().lock();
+
+        try
+        {
+            Node node = root;
+            List<Rdn> rdns = entry.getCriteria().getBase().getRdns();
+
+            // The Rdns are stored from the leaf to the root
+            for ( int i = rdns.size() - 1; i >= 0; i-- )
+            {
+                node = node.children.computeIfAbsent( rdns.get( i ).getNormName(), key -> new Node() );
+            }
+
+            node.getGroup( entry ).add( new Registration( entry, sequence++, attributes ) );
+            size++;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Removes a registration.
+     *
+     * @param entry The registration to remove
+     */
+    void remove( RegistrationEntry entry )
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            List<Rdn> rdns = entry.getCriteria().getBase().getRdns();
+            Node[] path = new Node[rdns.size() + 1];
+            path[0] = root;
+
+            for ( int i = rdns.size() - 1, depth = 1; i >= 0; i--, depth++ )
+            {
+                path[depth] = path[depth - 1].children.get( rdns.get( i ).getNormName() );
+
+                if ( path[depth] == null )
+                {
+                    return;
+                }
+            }
+
+            if ( !path[rdns.size()].getGroup( entry ).remove( entry ) )
+            {
+                return;
+            }
+
+            size--;
+
+            // Remove the nodes which are now useless
+            for ( int depth = rdns.size(); depth > 0; depth-- )
+            {
+                if ( !path[depth].isEmpty() )
+                {
+                    break;
+                }
+
+                path[depth - 1].children.remove( rdns.get( rdns.size() - depth ).getNormName() );
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * @return The number of registrations
+     */
+    int size()
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            return size;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Gets the registrations which have the given Dn in their scope, and which filter
+     * may match the given entry. The returned registrations are in the order they
+     * were added.
+     *
+     * @param name The Dn of the modified entry
+     * @param entry The modified entry
+     * @return The candidate registrations
+     */
+    List<RegistrationEntry> getCandidates( Dn name, Entry entry )
+    {
+        Set<String> entryAttributes = getEntryAttributes( entry );
+        List<Registration> selected = new ArrayList<>();
+        List<Rdn> rdns = name.getRdns();
+        int nameSize = rdns.size();
+
+        lock.readLock().lock();
+
+        try
+        {
+            Node node = root;
+            int depth = 0;
+
+            while ( node != null )
+            {
+                node.subtree.collect( entryAttributes, selected );
+
+                if ( depth == nameSize - 1 )
+                {
+                    node.oneLevel.collect( entryAttributes, selected );
+                }
+                else if ( depth == nameSize )
+                {
+                    node.object.collect( entryAttributes, selected );
+
+                    break;
+                }
+
+                node = node.children.get( rdns.get( nameSize - 1 - depth ).getNormName() );
+                depth++;
+            }
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+
+        if ( selected.isEmpty() )
+        {
+            return Collections.emptyList();
+        }
+
+        // A registration requiring more than one attribute may have been selected many times
+        selected.sort( ( r1, r2 ) -> Long.compare( r1.order, r2.order ) );
+        List<RegistrationEntry> candidates = new ArrayList<>( selected.size() );
+        Registration previous = null;
+
+        for ( Registration registration : selected )
+        {
+            if ( registration != previous )
+            {
+                candidates.add( registration.entry );
+                previous = registration;
+            }
+        }
+
+        return candidates;
+    }
+
+
+    /**
+     * Gets the OIDs of the attribute types an entry must contain, at least one of them,
+     * to be matched by a filter.
+     *
+     * @param filter The filter
+     * @return The attribute type OIDs, or null if we can't tell
+     */
+    static Set<String> getRequiredAttributes( ExprNode filter )
+    {
+        if ( filter instanceof LeafNode )
+        {
+            AttributeType attributeType = ( ( LeafNode ) filter ).getAttributeType();
+
+            if ( ( attributeType == null )
+                || ( ( filter instanceof ExtensibleNode ) && ( ( ExtensibleNode ) filter ).hasDnAttributes() ) )
+            {
+                return null;
+            }
+
+            Set<String> attributes = new HashSet<>();
+            attributes.add( attributeType.getOid() );
+
+            return attributes;
+        }
+        else if ( filter instanceof AndNode )
+        {
+            // All the children must match, the most selective one is enough
+            Set<String> required = null;
+
+            for ( ExprNode child : ( ( AndNode ) filter ).getChildren() )
+            {
+                Set<String> attributes = getRequiredAttributes( child );
+
+                if ( ( attributes != null ) && ( ( required == null ) || ( attributes.size() < required.size() ) ) )
+                {
+                    required = attributes;
+                }
+            }
+
+            return required;
+        }
+        else if ( filter instanceof OrNode )
+        {
+            // One of the children must match, we need all their attributes
+            Set<String> required = new HashSet<>();
+
+            for ( ExprNode child : ( ( OrNode ) filter ).getChildren() )
+            {
+                Set<String> attributes = getRequiredAttributes( child );
+
+                if ( attributes == null )
+                {
+                    return null;
+                }
+
+                required.addAll( attributes );
+            }
+
+            return required.isEmpty() ? null : required;
+        }
+
+        // NOT filters, and the specific nodes, may match any entry
+        return null;
+    }
+
+
+    /**
+     * Gets the OIDs of the attribute types an entry contains, including their
+     * superior attribute types, which may be used in a filter.
+     */
+    private static Set<String> getEntryAttributes( Entry entry )
+    {
+        if ( entry == null )
+        {
+            return null;
+        }
+
+        Collection<Attribute> attributes = entry.getAttributes();
+        Set<String> oids = new HashSet<>( attributes.size() * 2 );
+
+        for ( Attribute attribute : attributes )
+        {
+            AttributeType attributeType = attribute.getAttributeType();
+
+            if ( attributeType == null )
+            {
+                // The entry is not schema aware
+                return null;
+            }
+
+            while ( ( attributeType != null ) && oids.add( attributeType.getOid() ) )
+            {
+                attributeType = attributeType.getSuperior();
+            }
+        }
+
+        return oids;
+    }
+}
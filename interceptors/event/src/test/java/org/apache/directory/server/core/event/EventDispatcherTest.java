@@ -0,0 +1,291 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.event;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.server.core.api.event.DirectoryListener;
+import org.apache.directory.server.core.api.event.DirectoryListenerAdapter;
+import org.apache.directory.server.core.api.event.DisconnectableListener;
+import org.apache.directory.server.core.api.event.EventDeliveryStats;
+import org.apache.directory.server.core.api.event.EventOverflowPolicy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Tests for the EventDispatcher.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class EventDispatcherTest
+{
+    /** The listeners disconnected by the dispatcher */
+    private final List<DirectoryListener> disconnected = Collections.synchronizedList( new ArrayList<>() );
+
+    private EventDispatcher dispatcher;
+
+
+    /**
+     * A listener which can't be notified while the gate is closed
+     */
+    private static class SlowListener extends DirectoryListenerAdapter implements DisconnectableListener
+    {
+        private final CountDownLatch gate = new CountDownLatch( 1 );
+        private final CountDownLatch entered = new CountDownLatch( 1 );
+        private final CountDownLatch disconnection = new CountDownLatch( 1 );
+        private final List<Integer> received = Collections.synchronizedList( new ArrayList<>() );
+
+
+        private void receive( int event )
+        {
+            try
+            {
+                entered.countDown();
+                gate.await();
+                received.add( event );
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+
+        @Override
+        public void disconnected()
+        {
+            disconnection.countDown();
+        }
+    }
+
+
+    @AfterEach
+    public void shutdown()
+    {
+        dispatcher.shutdown();
+    }
+
+
+    private static void waitFor( SlowListener listener, int nbEvents ) throws InterruptedException
+    {
+        long end = System.currentTimeMillis() + 5000L;
+
+        while ( ( listener.received.size() < nbEvents ) && ( System.currentTimeMillis() < end ) )
+        {
+            Thread.sleep( 10L );
+        }
+    }
+
+
+    private void add( DirectoryListener... listeners )
+    {
+        for ( DirectoryListener listener : listeners )
+        {
+            dispatcher.add( listener );
+        }
+    }
+
+
+    private EventDeliveryStats stats( DirectoryListener listener )
+    {
+        for ( EventDeliveryStats stats : dispatcher.getStats() )
+        {
+            if ( stats.getListener() == listener )
+            {
+                return stats;
+            }
+        }
+
+        return null;
+    }
+
+
+    @Test
+    public void testOrderedDelivery() throws Exception
+    {
+        dispatcher = new EventDispatcher( 4, 1000, EventOverflowPolicy.BLOCK, disconnected::add );
+        SlowListener listener = new SlowListener();
+        listener.gate.countDown();
+        add( listener );
+
+        for ( int i = 0; i < 500; i++ )
+        {
+            int event = i;
+            dispatcher.dispatch( listener, () -> listener.receive( event ) );
+        }
+
+        waitFor( listener, 500 );
+
+        for ( int i = 0; i < 500; i++ )
+        {
+            assertEquals( i, listener.received.get( i ).intValue() );
+        }
+
+        EventDeliveryStats stats = stats( listener );
+        assertEquals( 500L, stats.getDeliveredEvents() );
+        assertEquals( 0L, stats.getDroppedEvents() );
+        assertEquals( 0, stats.getQueueDepth() );
+    }
+
+
+    @Test
+    public void testSlowListenerDoesNotDelayOthers() throws Exception
+    {
+        dispatcher = new EventDispatcher( 2, 10, EventOverflowPolicy.DROP_OLDEST, disconnected::add );
+        SlowListener slow = new SlowListener();
+        SlowListener fast = new SlowListener();
+        fast.gate.countDown();
+        add( slow, fast );
+
+        // Wait for the slow listener to block on its first event
+        dispatcher.dispatch( slow, () -> slow.receive( 0 ) );
+        assertTrue( slow.entered.await( 5, TimeUnit.SECONDS ) );
+
+        for ( int i = 1; i < 20; i++ )
+        {
+            int event = i;
+            dispatcher.dispatch( slow, () -> slow.receive( event ) );
+        }
+
+        for ( int i = 0; i < 5; i++ )
+        {
+            int event = i;
+            dispatcher.dispatch( fast, () -> fast.receive( event ) );
+        }
+
+        waitFor( fast, 5 );
+        assertEquals( 5, fast.received.size() );
+
+        // The slow listener is blocked on its first event, and only the last ones are kept
+        EventDeliveryStats stats = stats( slow );
+        assertEquals( 10, stats.getQueueDepth() );
+        assertEquals( 9L, stats.getDroppedEvents() );
+
+        slow.gate.countDown();
+        waitFor( slow, 11 );
+
+        assertEquals( 0, slow.received.get( 0 ).intValue() );
+        assertEquals( 10, slow.received.get( 1 ).intValue() );
+        assertEquals( 19, slow.received.get( 10 ).intValue() );
+    }
+
+
+    @Test
+    public void testDisconnectListener() throws Exception
+    {
+        dispatcher = new EventDispatcher( 1, 5, EventOverflowPolicy.DISCONNECT, disconnected::add );
+        SlowListener slow = new SlowListener();
+        add( slow );
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            int event = i;
+            dispatcher.dispatch( slow, () -> slow.receive( event ) );
+        }
+
+        assertEquals( 1, disconnected.size() );
+        assertSame( slow, disconnected.get( 0 ) );
+
+        slow.gate.countDown();
+        assertTrue( slow.disconnection.await( 5, TimeUnit.SECONDS ) );
+
+        // The listener is not known anymore
+        assertEquals( 0, dispatcher.getStats().size() );
+        assertTrue( slow.received.size() <= 1 );
+    }
+
+
+    @Test
+    public void testBlockUntilRemoved() throws Exception
+    {
+        dispatcher = new EventDispatcher( 1, 2, EventOverflowPolicy.BLOCK, disconnected::add );
+        SlowListener slow = new SlowListener();
+        add( slow );
+        CountDownLatch done = new CountDownLatch( 1 );
+
+        Thread producer = new Thread( () ->
+        {
+            for ( int i = 0; i < 10; i++ )
+            {
+                int event = i;
+                dispatcher.dispatch( slow, () -> slow.receive( event ) );
+            }
+
+            done.countDown();
+        } );
+
+        producer.setDaemon( true );
+        producer.start();
+
+        // The producer is blocked, as the listener does not process the events
+        assertFalse( done.await( 300, TimeUnit.MILLISECONDS ) );
+
+        // Removing the listener releases the producer
+        dispatcher.remove( slow );
+        assertTrue( done.await( 5, TimeUnit.SECONDS ) );
+        assertTrue( disconnected.isEmpty() );
+        assertEquals( 0, dispatcher.getStats().size() );
+        slow.gate.countDown();
+    }
+
+
+    @Test
+    public void testBlockTimeoutDisconnectsListener() throws Exception
+    {
+        dispatcher = new EventDispatcher( 1, 2, EventOverflowPolicy.BLOCK, 200L, disconnected::add );
+        SlowListener slow = new SlowListener();
+        add( slow );
+        CountDownLatch done = new CountDownLatch( 1 );
+
+        Thread producer = new Thread( () ->
+        {
+            for ( int i = 0; i < 10; i++ )
+            {
+                int event = i;
+                dispatcher.dispatch( slow, () -> slow.receive( event ) );
+            }
+
+            done.countDown();
+        } );
+
+        producer.setDaemon( true );
+        producer.start();
+
+        // The stalled listener is disconnected instead of blocking the producer forever
+        assertTrue( done.await( 5, TimeUnit.SECONDS ) );
+        assertEquals( 1, disconnected.size() );
+        assertSame( slow, disconnected.get( 0 ) );
+        assertEquals( 0, dispatcher.getStats().size() );
+
+        slow.gate.countDown();
+        assertTrue( slow.disconnection.await( 5, TimeUnit.SECONDS ) );
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.event;
+
+
+import static org.apache.directory.api.ldap.model.message.SearchScope.OBJECT;
+import static org.apache.directory.api.ldap.model.message.SearchScope.ONELEVEL;
+import static org.apache.directory.api.ldap.model.message.SearchScope.SUBTREE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.FilterParser;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.model.schema.normalizers.ConcreteNameComponentNormalizer;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.server.core.api.event.DirectoryListenerAdapter;
+import org.apache.directory.server.core.api.event.Evaluator;
+import org.apache.directory.server.core.api.event.ExpressionEvaluator;
+import org.apache.directory.server.core.api.event.NotificationCriteria;
+import org.apache.directory.server.core.api.event.RegistrationEntry;
+import org.apache.directory.server.core.api.normalization.FilterNormalizingVisitor;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Tests for the ListenerRegistry.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ListenerRegistryTest
+{
+    private static SchemaManager schemaManager;
+    private static FilterNormalizingVisitor filterNormalizer;
+    private static Evaluator evaluator;
+
+
+    @BeforeAll
+    public static void init() throws Exception
+    {
+        schemaManager = new DefaultSchemaManager();
+        filterNormalizer = new FilterNormalizingVisitor( new ConcreteNameComponentNormalizer( schemaManager ),
+            schemaManager );
+        evaluator = new ExpressionEvaluator( schemaManager );
+    }
+
+
+    private static ExprNode filter( String filter ) throws Exception
+    {
+        return ( ExprNode ) FilterParser.parse( schemaManager, filter ).accept( filterNormalizer );
+    }
+
+
+    private static RegistrationEntry registration( String base, SearchScope scope, String filter ) throws Exception
+    {
+        NotificationCriteria criteria = new NotificationCriteria( schemaManager );
+        criteria.setBase( new Dn( schemaManager, base ) );
+        criteria.setScope( scope );
+        criteria.setFilter( filter( filter ) );
+
+        return new RegistrationEntry( new DirectoryListenerAdapter()
+        {
+        }, criteria );
+    }
+
+
+    private static Entry person( String dn, String cn ) throws Exception
+    {
+        return new DefaultEntry( schemaManager, dn,
+            "objectClass: person",
+            "cn", cn,
+            "sn: test" );
+    }
+
+
+    /**
+     * The registrations selected by the previous implementation : a scope check and a filter
+     * evaluation for each registration
+     */
+    private static List<RegistrationEntry> select( List<RegistrationEntry> registrations, Dn name, Entry entry )
+        throws Exception
+    {
+        List<RegistrationEntry> selecting = new ArrayList<>();
+
+        for ( RegistrationEntry registration : registrations )
+        {
+            NotificationCriteria criteria = registration.getCriteria();
+            Dn base = criteria.getBase();
+            SearchScope scope = criteria.getScope();
+
+            boolean inscope =
+                ( ( ( scope == OBJECT ) && name.equals( base ) )
+                || ( ( scope == ONELEVEL ) && name.getParent().equals( base ) )
+                || ( ( scope == SUBTREE ) && ( name.isDescendantOf( base ) || name.equals( base ) ) ) );
+
+            if ( inscope && evaluator.evaluate( criteria.getFilter(), base, entry ) )
+            {
+                selecting.add( registration );
+            }
+        }
+
+        return selecting;
+    }
+
+
+    /**
+     * The registrations selected using the registry
+     */
+    private static List<RegistrationEntry> select( ListenerRegistry registry, Dn name, Entry entry ) throws Exception
+    {
+        List<RegistrationEntry> selecting = new ArrayList<>();
+
+        for ( RegistrationEntry registration : registry.getCandidates( name, entry ) )
+        {
+            NotificationCriteria criteria = registration.getCriteria();
+
+            if ( evaluator.evaluate( criteria.getFilter(), criteria.getBase(), entry ) )
+            {
+                selecting.add( registration );
+            }
+        }
+
+        return selecting;
+    }
+
+
+    @Test
+    public void testRequiredAttributes() throws Exception
+    {
+        String cnOid = schemaManager.getAttributeType( "cn" ).getOid();
+        String snOid = schemaManager.getAttributeType( "sn" ).getOid();
+
+        assertEquals( Set.of( cnOid ), ListenerRegistry.getRequiredAttributes( filter( "(cn=test)" ) ) );
+        assertEquals( Set.of( cnOid ), ListenerRegistry.getRequiredAttributes( filter( "(cn=*)" ) ) );
+        assertEquals( Set.of( cnOid ),
+            ListenerRegistry.getRequiredAttributes( filter( "(&(cn=test)(!(sn=test)))" ) ) );
+        assertEquals( Set.of( cnOid, snOid ),
+            ListenerRegistry.getRequiredAttributes( filter( "(|(cn=test)(sn=te*))" ) ) );
+        assertNull( ListenerRegistry.getRequiredAttributes( filter( "(!(cn=test))" ) ) );
+        assertNull( ListenerRegistry.getRequiredAttributes( filter( "(|(cn=test)(!(sn=test)))" ) ) );
+    }
+
+
+    @Test
+    public void testScopes() throws Exception
+    {
+        ListenerRegistry registry = new ListenerRegistry();
+        RegistrationEntry object = registration( "ou=system", OBJECT, "(objectClass=*)" );
+        RegistrationEntry oneLevel = registration( "ou=system", ONELEVEL, "(objectClass=*)" );
+        RegistrationEntry subtree = registration( "ou=system", SUBTREE, "(objectClass=*)" );
+        RegistrationEntry other = registration( "ou=schema", SUBTREE, "(objectClass=*)" );
+        RegistrationEntry root = registration( "", SUBTREE, "(objectClass=*)" );
+
+        for ( RegistrationEntry registration : Arrays.asList( object, oneLevel, subtree, other, root ) )
+        {
+            registry.add( registration );
+        }
+
+        Dn system = new Dn( schemaManager, "ou=system" );
+        Dn child = new Dn( schemaManager, "cn=child,ou=system" );
+        Dn grandChild = new Dn( schemaManager, "cn=grandchild,cn=child,ou=system" );
+
+        assertEquals( Arrays.asList( object, subtree, root ),
+            registry.getCandidates( system, person( "ou=system", "system" ) ) );
+        assertEquals( Arrays.asList( oneLevel, subtree, root ),
+            registry.getCandidates( child, person( "cn=child,ou=system", "child" ) ) );
+        assertEquals( Arrays.asList( subtree, root ),
+            registry.getCandidates( grandChild, person( "cn=grandchild,cn=child,ou=system", "grandchild" ) ) );
+
+        registry.remove( subtree );
+        registry.remove( root );
+
+        assertEquals( 3, registry.size() );
+        assertEquals( Arrays.asList( oneLevel ),
+            registry.getCandidates( child, person( "cn=child,ou=system", "child" ) ) );
+        assertTrue( registry.getCandidates( grandChild, null ).isEmpty() );
+    }
+
+
+    @Test
+    public void testFilterAttributes() throws Exception
+    {
+        ListenerRegistry registry = new ListenerRegistry();
+        RegistrationEntry mail = registration( "ou=system", SUBTREE, "(mail=*)" );
+        RegistrationEntry cn = registration( "ou=system", SUBTREE, "(cn=test)" );
+
+        // name is a superior of cn
+        RegistrationEntry name = registration( "ou=system", SUBTREE, "(name=test)" );
+        RegistrationEntry either = registration( "ou=system", SUBTREE, "(|(mail=*)(cn=test))" );
+
+        for ( RegistrationEntry registration : Arrays.asList( mail, cn, name, either ) )
+        {
+            registry.add( registration );
+        }
+
+        Dn dn = new Dn( schemaManager, "cn=test,ou=system" );
+        Entry entry = person( "cn=test,ou=system", "test" );
+
+        assertEquals( Arrays.asList( cn, name, either ), registry.getCandidates( dn, entry ) );
+        assertEquals( select( Arrays.asList( mail, cn, name, either ), dn, entry ), select( registry, dn, entry ) );
+
+        // When we don't know the entry, all the registrations in scope are candidates
+        assertEquals( Arrays.asList( mail, cn, name, either ), registry.getCandidates( dn, null ) );
+    }
+
+
+    /**
+     * Compares the registry with a linear evaluation of all the registrations, with 10k
+     * registrations spread over 1000 branches.
+     */
+    @Test
+    public void testTenThousandRegistrations() throws Exception
+    {
+        ListenerRegistry registry = new ListenerRegistry();
+        List<RegistrationEntry> registrations = new ArrayList<>();
+        String[] filters =
+            {
+                "(cn=user%d)",
+                "(&(objectClass=person)(sn=%d))",
+                "(|(mail=user%d@example.com)(telephoneNumber=%d))",
+                "(uid=user%d)",
+                "(objectClass=*)"
+            };
+
+        for ( int i = 0; i < 10000; i++ )
+        {
+            String base = ( i % 10 == 0 ) ? "ou=system" : "ou=branch" + ( i % 1000 ) + ",ou=system";
+            SearchScope scope = ( i % 3 == 0 ) ? ONELEVEL : SUBTREE;
+            String filter = filters[i % filters.length].replace( "%d", Integer.toString( i % 100 ) );
+
+            RegistrationEntry registration = registration( base, scope, filter );
+            registrations.add( registration );
+            registry.add( registration );
+        }
+
+        List<Dn> names = new ArrayList<>();
+        List<Entry> entries = new ArrayList<>();
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            String dn = "cn=user" + i + ",ou=branch" + ( i * 7 % 1000 ) + ",ou=system";
+            names.add( new Dn( schemaManager, dn ) );
+            entries.add( new DefaultEntry( schemaManager, dn,
+                "objectClass: person",
+                "cn: user" + i,
+                "sn", Integer.toString( i ) ) );
+        }
+
+        // Check that we select the same registrations
+        for ( int i = 0; i < names.size(); i++ )
+        {
+            assertEquals( select( registrations, names.get( i ), entries.get( i ) ),
+                select( registry, names.get( i ), entries.get( i ) ) );
+        }
+    }
+}
@@ -20,6 +20,7 @@
 package org.apache.directory.server.core.subtree;
 
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -43,6 +44,7 @@ import org.apache.directory.api.ldap.model.exception.LdapOperationErrorException
 import org.apache.directory.api.ldap.model.exception.LdapOperationException;
 import org.apache.directory.api.ldap.model.exception.LdapOtherException;
 import org.apache.directory.api.ldap.model.exception.LdapSchemaViolationException;
+import org.apache.directory.api.ldap.model.exception.LdapServiceUnavailableException;
 import org.apache.directory.api.ldap.model.filter.EqualityNode;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
 import org.apache.directory.api.ldap.model.filter.ObjectClassNode;
@@ -113,6 +115,15 @@ public class SubentryInterceptor extends BaseInterceptor
         REPLACE
     }
 
+    /** Tells if the operational attributes of an added or deleted subentry are propagated in the background */
+    private boolean asynchronousPropagation;
+
+    /** The number of entries updated in a transaction by the background propagation */
+    private int propagationBatchSize = SubentryPropagator.DEFAULT_BATCH_SIZE;
+
+    /** The background propagation engine, null if the propagation is synchronous */
+    private SubentryPropagator propagator;
+
 
     /**
      * Creates a new instance of SubentryInterceptor
@@ -122,6 +133,79 @@ public class SubentryInterceptor extends BaseInterceptor
         super( InterceptorEnum.SUBENTRY_INTERCEPTOR );
     }
 
+
+    /**
+     * Sets whether the operational attributes of an added or deleted subentry are
+     * propagated to the selected entries in the background, in batches, instead of
+     * in the operation itself. The operation then returns immediately, and the
+     * entries are updated while the other operations are processed. Defaults to false.
+     * <p>
+     * <b>The access control subentries are always propagated in the operation.</b> The
+     * accessControlSubentries attribute is what the ACI interceptor reads to find the
+     * prescriptive ACIs of an entry : until it is propagated, the entries selected by
+     * an added ACI subentry would not be protected by it, and the entries selected by a
+     * deleted one would still be granted its permissions.
+     *
+     * @param asynchronousPropagation true to propagate the subentries in the background
+     */
+    public void setAsynchronousPropagation( boolean asynchronousPropagation )
+    {
+        this.asynchronousPropagation = asynchronousPropagation;
+    }
+
+
+    /**
+     * @return true if the subentries are propagated in the background
+     */
+    public boolean isAsynchronousPropagation()
+    {
+        return asynchronousPropagation;
+    }
+
+
+    /**
+     * Sets the number of entries updated in a transaction by the background propagation.
+     *
+     * @param propagationBatchSize The number of entries updated in a transaction
+     */
+    public void setPropagationBatchSize( int propagationBatchSize )
+    {
+        this.propagationBatchSize = propagationBatchSize;
+    }
+
+
+    /**
+     * @return The number of entries updated in a transaction by the background propagation
+     */
+    public int getPropagationBatchSize()
+    {
+        return propagationBatchSize;
+    }
+
+
+    /**
+     * Tells if the operational attributes of a subentry are still being propagated
+     * to the entries it selects.
+     *
+     * @param subentryDn The subentry Dn
+     * @return true if the subentry is being propagated
+     */
+    public boolean isPropagating( Dn subentryDn )
+    {
+        return ( propagator != null ) && propagator.isPropagating( subentryDn );
+    }
+
+
+    /**
+     * Replaces the background propagation engine. Used by the tests.
+     *
+     * @param propagator The propagation engine, or null to propagate the subentries in the operations
+     */
+    void setPropagator( SubentryPropagator propagator )
+    {
+        this.propagator = propagator;
+    }
+
     //-------------------------------------------------------------------------------------------
     // Search filter methods
     //-------------------------------------------------------------------------------------------
@@ -282,6 +366,32 @@ public class SubentryInterceptor extends BaseInterceptor
                 }
             }
         }
+
+        // Start the background propagation if it's enabled, or if some propagations
+        // have not been completed before the last shutdown
+        File checkpointFile = new File( directoryService.getInstanceLayout().getPartitionsDirectory(),
+            SubentryPropagator.CHECKPOINT_FILE );
+
+        if ( asynchronousPropagation || checkpointFile.exists() )
+        {
+            propagator = new SubentryPropagator( this, directoryService, checkpointFile, propagationBatchSize );
+            propagator.start();
+        }
+    }
+
+
+    /**
+     * Stops the background propagation. The pending propagations are resumed
+     * when the server is restarted.
+     */
+    @Override
+    public void destroy()
+    {
+        if ( propagator != null )
+        {
+            propagator.stop();
+            propagator = null;
+        }
     }
 
 
@@ -430,6 +540,21 @@ public class SubentryInterceptor extends BaseInterceptor
     }
 
 
+    /**
+     * Rejects an operation on a subentry while its operational attributes are being
+     * propagated in the background.
+     */
+    private void checkNotPropagating( Dn subentryDn ) throws LdapException
+    {
+        if ( isPropagating( subentryDn ) )
+        {
+            String msg = "The subentry " + subentryDn + " is being propagated, try again later";
+            LOG.info( msg );
+            throw new LdapServiceUnavailableException( ResultCodeEnum.BUSY, msg );
+        }
+    }
+
+
     /**
      * Checks if the given Dn is a namingContext
      */
@@ -715,7 +840,7 @@ public class SubentryInterceptor extends BaseInterceptor
      * Gets the subschema operational attributes to be added to or removed from
      * an entry selected by a subentry's subtreeSpecification.
      */
-    private List<Attribute> getSubentryOperationalAttributes( Dn dn, Subentry subentry ) throws LdapException
+    List<Attribute> getSubentryOperationalAttributes( Dn dn, Subentry subentry ) throws LdapException
     {
         List<Attribute> attributes = new ArrayList<>();
 
@@ -764,7 +889,7 @@ public class SubentryInterceptor extends BaseInterceptor
      * @return the set of modifications required to remove an entry's reference to
      * a subentry
      */
-    private List<Modification> getOperationalModsForRemove( Dn subentryDn, Entry candidate ) throws LdapException
+    List<Modification> getOperationalModsForRemove( Dn subentryDn, Entry candidate ) throws LdapException
     {
         List<Modification> modifications = new ArrayList<>();
         String dn = subentryDn.getName();
@@ -793,7 +918,7 @@ public class SubentryInterceptor extends BaseInterceptor
      * selected by the subtree specification.  This method calculates the
      * modify operation to be performed on the entry.
      */
-    private List<Modification> getOperationalModsForAdd( Entry entry, List<Attribute> operationalAttributes )
+    List<Modification> getOperationalModsForAdd( Entry entry, List<Attribute> operationalAttributes )
         throws LdapException
     {
         List<Modification> modifications = new ArrayList<>();
@@ -932,6 +1057,7 @@ public class SubentryInterceptor extends BaseInterceptor
             // upper
             Dn apDn = dn.getParent();
             checkAdministrativeRole( addContext, apDn );
+            checkNotPropagating( dn );
 
             /* ----------------------------------------------------------------
              * Build the set of operational attributes to be injected into
@@ -964,13 +1090,24 @@ public class SubentryInterceptor extends BaseInterceptor
              * subtree of the subentry's subtreeSpecification.  All included
              * entries will have their operational attributes merged with the
              * operational attributes calculated above.
+             *
+             * An access control subentry is always propagated here : in the
+             * background, the selected entries would not be protected by its
+             * ACIs until the propagation reaches them.
              * ----------------------------------------------------------------
              */
-            Dn baseDn = apDn;
-            baseDn = baseDn.add( subentry.getSubtreeSpecification().getBase() );
+            if ( ( propagator != null ) && !subentry.isAccessControlAdminRole() )
+            {
+                propagator.propagate( SubentryPropagator.Operation.ADD, dn );
+            }
+            else
+            {
+                Dn baseDn = apDn;
+                baseDn = baseDn.add( subentry.getSubtreeSpecification().getBase() );
 
-            updateEntries( addContext, OperationEnum.ADD, apDn, subentry.getSubtreeSpecification(),
-                baseDn, operationalAttributes );
+                updateEntries( addContext, OperationEnum.ADD, apDn, subentry.getSubtreeSpecification(),
+                    baseDn, operationalAttributes );
+            }
 
             // Store the newly modified entry into the context for later use in interceptor
             // just in case
@@ -1049,6 +1186,7 @@ public class SubentryInterceptor extends BaseInterceptor
         // We first remove the re
         if ( entry.contains( directoryService.getAtProvider().getObjectClass(), SchemaConstants.SUBENTRY_OC ) )
         {
+            checkNotPropagating( dn );
             Subentry removedSubentry = directoryService.getSubentryCache().getSubentry( dn );
 
             /* ----------------------------------------------------------------
@@ -1064,8 +1202,15 @@ public class SubentryInterceptor extends BaseInterceptor
             baseDn = baseDn.add( removedSubentry.getSubtreeSpecification().getBase() );
 
             // Remove all the references to this removed subentry from all the selected entries
-            updateEntries( deleteContext, OperationEnum.REMOVE, apDn,
-                removedSubentry.getSubtreeSpecification(), baseDn, null );
+            if ( ( propagator != null ) && !removedSubentry.isAccessControlAdminRole() )
+            {
+                propagator.propagate( SubentryPropagator.Operation.REMOVE, dn );
+            }
+            else
+            {
+                updateEntries( deleteContext, OperationEnum.REMOVE, apDn,
+                    removedSubentry.getSubtreeSpecification(), baseDn, null );
+            }
 
             // Update the cache
             directoryService.getSubentryCache().removeSubentry( dn );
@@ -1120,6 +1265,7 @@ public class SubentryInterceptor extends BaseInterceptor
         // Check if we have a modified subentry attribute in a Subentry entry
         if ( containsSubentryOC && isSubtreeSpecificationModification )
         {
+            checkNotPropagating( dn );
             Subentry subentry = directoryService.getSubentryCache().removeSubentry( dn );
             SubtreeSpecification ssOld = subentry.getSubtreeSpecification();
             SubtreeSpecification ssNew;
@@ -1302,6 +1448,8 @@ public class SubentryInterceptor extends BaseInterceptor
 
         if ( entry.contains( directoryService.getAtProvider().getObjectClass(), SchemaConstants.SUBENTRY_OC ) )
         {
+            checkNotPropagating( oldDn );
+
             // This is a subentry. Moving a subentry means we have to:
             // o Check that there is a new AP where we move the subentry
             // o Remove the op Attr from all the entry selected by the subentry
@@ -1432,6 +1580,7 @@ public class SubentryInterceptor extends BaseInterceptor
 
         if ( entry.contains( directoryService.getAtProvider().getObjectClass(), SchemaConstants.SUBENTRY_OC ) )
         {
+            checkNotPropagating( oldDn );
             Subentry subentry = directoryService.getSubentryCache().removeSubentry( oldDn );
             SubtreeSpecification ss = subentry.getSubtreeSpecification();
             Dn apName = oldDn.getParent();
@@ -1543,6 +1692,8 @@ public class SubentryInterceptor extends BaseInterceptor
 
         if ( entry.contains( directoryService.getAtProvider().getObjectClass(), SchemaConstants.SUBENTRY_OC ) )
         {
+            checkNotPropagating( oldDn );
+
             // @Todo To be reviewed !!!
             Subentry subentry = directoryService.getSubentryCache().removeSubentry( oldDn );
             SubtreeSpecification ss = subentry.getSubtreeSpecification();
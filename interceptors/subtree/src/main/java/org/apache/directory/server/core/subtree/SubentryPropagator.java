@@ -0,0 +1,754 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.subtree;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.naming.directory.SearchControls;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.filter.ObjectClassNode;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.subtree.Subentry;
+import org.apache.directory.api.ldap.model.subtree.SubtreeSpecification;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.OperationManager;
+import org.apache.directory.server.core.api.changelog.LogChange;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionNexus;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.shared.DefaultCoreSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Propagates the subentry operational attributes (accessControlSubentries,
+ * collectiveAttributeSubentries, ...) to the entries selected by an added or a
+ * deleted subentry, in a background thread, instead of updating them in the
+ * transaction of the operation on the subentry.
+ * <p>
+ * The entries are updated in batches. Each batch is a set of modify operations
+ * going through the interceptor chain, applied in a session transaction with the
+ * partition write lock held, so that it's atomic : the other operations are
+ * processed between two batches. The modifications are not logged in the change
+ * log, and are flagged as internal updates, so that the schema checks allow them
+ * on the NO-USER-MODIFICATION subentry attributes.
+ * <p>
+ * The pending propagations are stored in a checkpoint file, updated after each
+ * batch, so that they are resumed when the server is restarted. As the updates are idempotent, a resumed propagation
+ * starts from the beginning of the subtree, and skips the entries which are
+ * already up to date.
+ * <p>
+ * The checkpoint file contains one line per pending propagation, with the
+ * operation, the number of entries already processed, and the subentry Dn. As the
+ * schema has no attribute to flag a subentry as being propagated, this file is what
+ * records it : {@link #getPropagatingSubentries()} exposes it.
+ * <p>
+ * Until a propagation is completed, some of the selected entries don't have the
+ * operational attribute of the subentry yet : a collective attribute may be missing
+ * from them, for instance. This is why the access control subentries are never
+ * propagated here : the entries selected by an added accessControlSubentry would not
+ * be protected by it until they are updated. The SubentryInterceptor propagates them
+ * in the operation.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SubentryPropagator implements Runnable
+{
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( SubentryPropagator.class );
+
+    /** The default number of entries updated in a transaction */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /** The checkpoint file name, in the partitions directory */
+    public static final String CHECKPOINT_FILE = "subentry-propagation.txt";
+
+    /** The number of times a failed propagation is tried */
+    private static final int MAX_ATTEMPTS = 3;
+
+    /** The delay before trying again a failed propagation, in ms */
+    private static final long RETRY_DELAY = 5000L;
+
+    /** The propagated operations */
+    enum Operation
+    {
+        ADD,
+        REMOVE
+    }
+
+    /** A pending propagation */
+    private static final class Task
+    {
+        private final Operation operation;
+        private final Dn subentryDn;
+        private long processed;
+        private int attempts;
+
+
+        private Task( Operation operation, Dn subentryDn, long processed )
+        {
+            this.operation = operation;
+            this.subentryDn = subentryDn;
+            this.processed = processed;
+        }
+    }
+
+    /** The interceptor computing the modifications */
+    private final SubentryInterceptor interceptor;
+
+    /** The directory service */
+    private final DirectoryService directoryService;
+
+    /** A reference to the nexus for direct backend operations */
+    private final PartitionNexus nexus;
+
+    /** The checkpoint file */
+    private final File checkpointFile;
+
+    /** The number of entries updated in a transaction */
+    private final int batchSize;
+
+    /** The pending propagations, in order */
+    private final LinkedList<Task> tasks = new LinkedList<>();
+
+    /** The propagation thread */
+    private Thread thread;
+
+    /** Set when the server is stopping */
+    private volatile boolean stopped;
+
+
+    /**
+     * Creates a SubentryPropagator, reading the propagations not completed before
+     * the last shutdown from the checkpoint file.
+     *
+     * @param interceptor The subentry interceptor
+     * @param directoryService The directory service
+     * @param checkpointFile The checkpoint file
+     * @param batchSize The number of entries updated in a transaction
+     * @throws LdapException If the checkpoint file can't be read
+     */
+    SubentryPropagator( SubentryInterceptor interceptor, DirectoryService directoryService, File checkpointFile,
+        int batchSize ) throws LdapException
+    {
+        this.interceptor = interceptor;
+        this.directoryService = directoryService;
+        this.nexus = directoryService.getPartitionNexus();
+        this.checkpointFile = checkpointFile;
+        this.batchSize = batchSize;
+
+        readCheckpoint();
+    }
+
+
+    /**
+     * Starts the propagation thread
+     */
+    public synchronized void start()
+    {
+        if ( !tasks.isEmpty() )
+        {
+            LOG.info( "Resuming the propagation of {} subentries", tasks.size() );
+        }
+
+        thread = new Thread( this, "subentry-propagator" );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+
+    /**
+     * Stops the propagation thread. The current batch is completed, and the
+     * pending propagations will be resumed on the next startup.
+     */
+    public void stop()
+    {
+        stopped = true;
+
+        synchronized ( this )
+        {
+            notifyAll();
+        }
+
+        if ( thread != null )
+        {
+            try
+            {
+                thread.join( RETRY_DELAY );
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    /**
+     * Queues the propagation of an added or a deleted subentry.
+     *
+     * @param operation The operation on the subentry
+     * @param subentryDn The subentry Dn
+     */
+    public synchronized void propagate( Operation operation, Dn subentryDn )
+    {
+        tasks.add( new Task( operation, subentryDn, 0L ) );
+        saveCheckpoint();
+        notifyAll();
+    }
+
+
+    /**
+     * @return true if some propagations are not completed
+     */
+    public synchronized boolean isBusy()
+    {
+        return !tasks.isEmpty();
+    }
+
+
+    /**
+     * Tells if the propagation of a subentry is not completed
+     *
+     * @param subentryDn The subentry Dn
+     * @return true if the subentry is being propagated
+     */
+    public synchronized boolean isPropagating( Dn subentryDn )
+    {
+        for ( Task task : tasks )
+        {
+            if ( task.subentryDn.equals( subentryDn ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * @return The Dn of the subentries being propagated
+     */
+    public synchronized List<Dn> getPropagatingSubentries()
+    {
+        List<Dn> subentries = new ArrayList<>( tasks.size() );
+
+        for ( Task task : tasks )
+        {
+            subentries.add( task.subentryDn );
+        }
+
+        return Collections.unmodifiableList( subentries );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run()
+    {
+        while ( !stopped )
+        {
+            Task task;
+
+            synchronized ( this )
+            {
+                while ( tasks.isEmpty() && !stopped )
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch ( InterruptedException ie )
+                    {
+                        Thread.currentThread().interrupt();
+
+                        return;
+                    }
+                }
+
+                if ( stopped )
+                {
+                    return;
+                }
+
+                task = tasks.getFirst();
+            }
+
+            boolean completed;
+
+            try
+            {
+                completed = propagate( task );
+            }
+            catch ( Exception e )
+            {
+                task.attempts++;
+
+                if ( task.attempts < MAX_ATTEMPTS )
+                {
+                    LOG.warn( "Failed to propagate the subentry {}, will try again", task.subentryDn, e );
+                    pause();
+                    completed = false;
+                }
+                else
+                {
+                    LOG.error( "Failed to propagate the subentry {} after {} attempts, giving up : "
+                        + "the entries below it may have to be fixed", task.subentryDn, MAX_ATTEMPTS, e );
+                    completed = true;
+                }
+            }
+
+            if ( completed )
+            {
+                synchronized ( this )
+                {
+                    tasks.remove( task );
+                    saveCheckpoint();
+                }
+
+                LOG.info( "Propagation of the {} of the subentry {} done, {} entries processed",
+                    task.operation, task.subentryDn, task.processed );
+            }
+        }
+    }
+
+
+    /**
+     * Waits before trying again a failed propagation, or until the server is stopped
+     */
+    private synchronized void pause()
+    {
+        try
+        {
+            if ( !stopped )
+            {
+                wait( RETRY_DELAY );
+            }
+        }
+        catch ( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+            stopped = true;
+        }
+    }
+
+
+    /**
+     * Propagates an operation on a subentry
+     *
+     * @return true if the propagation is completed, false if it has been interrupted
+     */
+    private boolean propagate( Task task ) throws Exception
+    {
+        Dn subentryDn = task.subentryDn;
+        Dn apDn = subentryDn.getParent();
+        Dn baseDn = apDn;
+        SubtreeSpecification ss = null;
+        List<Attribute> operationalAttributes = null;
+
+        if ( task.operation == Operation.ADD )
+        {
+            Subentry subentry = directoryService.getSubentryCache().getSubentry( subentryDn );
+
+            if ( subentry == null )
+            {
+                // The subentry has been deleted since, nothing to propagate
+                return true;
+            }
+
+            ss = subentry.getSubtreeSpecification();
+            baseDn = baseDn.add( ss.getBase() );
+            operationalAttributes = interceptor.getSubentryOperationalAttributes( subentryDn, subentry );
+        }
+
+        Partition partition = nexus.getPartition( baseDn );
+        CoreSession session = directoryService.getAdminSession();
+
+        if ( ( task.operation == Operation.ADD ) != subentryExists( session, partition, subentryDn ) )
+        {
+            // The subentry addition or deletion has failed
+            return true;
+        }
+
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope( SearchControls.SUBTREE_SCOPE );
+        controls.setReturningAttributes( new String[]
+            { SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES, SchemaConstants.ALL_USER_ATTRIBUTES } );
+
+        SearchOperationContext searchOperationContext = new SearchOperationContext( session, baseDn,
+            ObjectClassNode.OBJECT_CLASS_NODE, controls );
+        searchOperationContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
+        searchOperationContext.setPartition( partition );
+
+        List<Dn> batch = new ArrayList<>( batchSize );
+
+        try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
+        {
+            searchOperationContext.setTransaction( partitionTxn );
+            EntryFilteringCursor candidates;
+
+            // Like a search operation, only hold the lock while the cursor is created
+            OperationManager operationManager = directoryService.getOperationManager();
+            operationManager.lockRead( partition );
+
+            try
+            {
+                candidates = nexus.search( searchOperationContext );
+            }
+            finally
+            {
+                operationManager.unlockRead( partition );
+            }
+
+            try
+            {
+                while ( candidates.next() )
+                {
+                    Entry candidate = candidates.get();
+
+                    // Only keep the entries which have to be updated, the modifications
+                    // will be computed again from the current entry when applied
+                    if ( getModifications( task, ss, apDn, candidate, operationalAttributes ).isEmpty() )
+                    {
+                        continue;
+                    }
+
+                    batch.add( candidate.getDn() );
+
+                    if ( ( batch.size() >= batchSize )
+                        && !applyBatch( task, session, partition, batch, ss, apDn, operationalAttributes ) )
+                    {
+                        return false;
+                    }
+                }
+            }
+            finally
+            {
+                candidates.close();
+            }
+        }
+
+        return batch.isEmpty() || applyBatch( task, session, partition, batch, ss, apDn, operationalAttributes );
+    }
+
+
+    /**
+     * Computes the modifications to apply on an entry, or an empty list if the entry is up to date
+     */
+    private List<Modification> getModifications( Task task, SubtreeSpecification ss, Dn apDn, Entry entry,
+        List<Attribute> operationalAttributes ) throws LdapException
+    {
+        if ( task.operation == Operation.REMOVE )
+        {
+            return interceptor.getOperationalModsForRemove( task.subentryDn, entry );
+        }
+
+        if ( !directoryService.getEvaluator().evaluate( ss, apDn, entry.getDn(), entry ) )
+        {
+            return Collections.emptyList();
+        }
+
+        for ( Attribute operationalAttribute : operationalAttributes )
+        {
+            Attribute opAttrInEntry = entry.get( operationalAttribute.getAttributeType() );
+
+            if ( ( opAttrInEntry == null ) || !opAttrInEntry.contains( operationalAttribute.get() ) )
+            {
+                return interceptor.getOperationalModsForAdd( entry, operationalAttributes );
+            }
+        }
+
+        return Collections.emptyList();
+    }
+
+
+    /**
+     * Applies a batch of updates in a session transaction, with the partition write lock held.
+     *
+     * @return false if the server is stopping
+     */
+    private boolean applyBatch( Task task, CoreSession session, Partition partition, List<Dn> batch,
+        SubtreeSpecification ss, Dn apDn, List<Attribute> operationalAttributes ) throws LdapException
+    {
+        if ( stopped )
+        {
+            return false;
+        }
+
+        OperationManager operationManager = directoryService.getOperationManager();
+
+        // A dedicated session, as its transaction is shared by all its operations
+        CoreSession batchSession = new DefaultCoreSession( session.getAuthenticatedPrincipal(), directoryService );
+
+        // The modify operations acquire the partition lock again, they don't wait for it
+        operationManager.lockWrite( partition );
+
+        try
+        {
+            if ( !partition.isInitialized() )
+            {
+                // The partition has been removed
+                return false;
+            }
+
+            batchSession.beginSessionTransaction();
+            boolean committed = false;
+
+            try
+            {
+                for ( Dn dn : batch )
+                {
+                    // Read the entry in the batch transaction, once it has been started
+                    PartitionTxn batchTxn = batchSession.getTransaction( partition );
+                    Entry entry;
+
+                    if ( batchTxn != null )
+                    {
+                        entry = lookup( session, partition, batchTxn, dn );
+                    }
+                    else
+                    {
+                        try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
+                        {
+                            entry = lookup( session, partition, partitionTxn, dn );
+                        }
+                    }
+
+                    if ( entry == null )
+                    {
+                        // Deleted, or moved since : the move has computed its attributes
+                        continue;
+                    }
+
+                    List<Modification> modifications = getModifications( task, ss, apDn, entry,
+                        operationalAttributes );
+
+                    if ( !modifications.isEmpty() )
+                    {
+                        ModifyOperationContext modifyContext = new ModifyOperationContext( batchSession, dn,
+                            modifications );
+                        modifyContext.setReplEvent( true );
+                        modifyContext.setLogChange( LogChange.FALSE );
+
+                        operationManager.modify( modifyContext );
+                    }
+                }
+
+                batchSession.endSessionTransaction( true );
+                committed = true;
+            }
+            finally
+            {
+                if ( !committed )
+                {
+                    abort( batchSession );
+                }
+            }
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+        finally
+        {
+            operationManager.unlockWrite( partition );
+        }
+
+        synchronized ( this )
+        {
+            task.processed += batch.size();
+            saveCheckpoint();
+        }
+
+        LOG.debug( "Propagation of the subentry {} : {} entries processed", task.subentryDn, task.processed );
+        batch.clear();
+
+        return !stopped;
+    }
+
+
+    /**
+     * Aborts the transaction of a batch which has failed. The failed operation may have
+     * aborted it already.
+     */
+    private void abort( CoreSession batchSession )
+    {
+        try
+        {
+            batchSession.endSessionTransaction( false );
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            LOG.warn( "Cannot abort the subentry propagation transaction", e );
+        }
+    }
+
+
+    /**
+     * Checks that a subentry exists. The check is done with the partition lock held, so
+     * that the operation which has added the subentry is completed.
+     */
+    private boolean subentryExists( CoreSession session, Partition partition, Dn subentryDn ) throws LdapException
+    {
+        OperationManager operationManager = directoryService.getOperationManager();
+        operationManager.lockWrite( partition );
+
+        try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
+        {
+            return lookup( session, partition, partitionTxn, subentryDn ) != null;
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+        finally
+        {
+            operationManager.unlockWrite( partition );
+        }
+    }
+
+
+    private Entry lookup( CoreSession session, Partition partition, PartitionTxn partitionTxn, Dn dn )
+        throws LdapException
+    {
+        LookupOperationContext lookupContext = new LookupOperationContext( session, dn,
+            SchemaConstants.ALL_ATTRIBUTES_ARRAY );
+        lookupContext.setPartition( partition );
+        lookupContext.setTransaction( partitionTxn );
+
+        try
+        {
+            return nexus.lookup( lookupContext );
+        }
+        catch ( LdapNoSuchObjectException lnsoe )
+        {
+            return null;
+        }
+    }
+
+
+    /**
+     * Reads the pending propagations
+     */
+    private void readCheckpoint() throws LdapException
+    {
+        if ( !checkpointFile.exists() )
+        {
+            return;
+        }
+
+        try ( BufferedReader reader = new BufferedReader( new InputStreamReader(
+            new FileInputStream( checkpointFile ), StandardCharsets.UTF_8 ) ) )
+        {
+            String line;
+
+            while ( ( line = reader.readLine() ) != null )
+            {
+                String[] fields = line.split( " ", 3 );
+
+                if ( fields.length != 3 )
+                {
+                    continue;
+                }
+
+                tasks.add( new Task( Operation.valueOf( fields[0] ),
+                    directoryService.getDnFactory().create( fields[2] ), Long.parseLong( fields[1] ) ) );
+            }
+        }
+        catch ( IOException | IllegalArgumentException e )
+        {
+            throw new LdapOtherException( "Cannot read the subentry propagation checkpoint " + checkpointFile, e );
+        }
+    }
+
+
+    /**
+     * Writes the pending propagations. Must be called with the lock held.
+     */
+    private void saveCheckpoint()
+    {
+        try
+        {
+            if ( tasks.isEmpty() )
+            {
+                if ( checkpointFile.exists() && !checkpointFile.delete() )
+                {
+                    LOG.warn( "Cannot delete the subentry propagation checkpoint {}", checkpointFile );
+                }
+
+                return;
+            }
+
+            File tmpFile = new File( checkpointFile.getParentFile(), checkpointFile.getName() + ".tmp" );
+
+            try ( Writer writer = new OutputStreamWriter( new FileOutputStream( tmpFile ), StandardCharsets.UTF_8 ) )
+            {
+                for ( Task task : tasks )
+                {
+                    writer.write( task.operation + " " + task.processed + " " + task.subentryDn.getName() + "\n" );
+                }
+            }
+
+            if ( checkpointFile.exists() && !checkpointFile.delete() )
+            {
+                throw new IOException( "Cannot delete " + checkpointFile );
+            }
+
+            if ( !tmpFile.renameTo( checkpointFile ) )
+            {
+                throw new IOException( "Cannot rename " + tmpFile + " to " + checkpointFile );
+            }
+        }
+        catch ( IOException ioe )
+        {
+            LOG.error( "Cannot save the subentry propagation checkpoint {}", checkpointFile, ioe );
+        }
+    }
+}
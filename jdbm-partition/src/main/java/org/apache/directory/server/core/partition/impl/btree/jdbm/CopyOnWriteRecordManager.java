@@ -0,0 +1,960 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import jdbm.RecordManager;
+import jdbm.btree.BTree;
+import jdbm.helper.ByteArraySerializer;
+import jdbm.helper.DefaultSerializer;
+import jdbm.helper.Serializer;
+import jdbm.recman.BaseRecordManager;
+
+
+/**
+ * A record manager caching the records, which lets many threads read the B-trees
+ * concurrently while a single writer modifies them.
+ * <p>
+ * The readers get the records from a concurrent cache, without any lock. On a cache miss,
+ * the record is read from the underlying {@link BaseRecordManager}, but it is deserialized
+ * outside of its lock. The cached records are never modified : a thread which has started
+ * a write gets its own copy of the records it reads, and the records it modifies or creates
+ * are published in the cache when the write is completed, or when the changes are committed.
+ * The records of a write are published at once : a reader never sees some of them only.
+ * The readers thus see a stable version of each cached B-tree page while a writer is
+ * modifying it.
+ * <p>
+ * Each published write creates a new version of the records. A cursor browsing a B-tree
+ * reads many pages, possibly across several published writes : it opens a snapshot (see
+ * {@link ReadSnapshot}), and reads all the pages and the B-tree header as they were in the
+ * version it has started with. While a snapshot is open, the content a published write
+ * replaces is retained, and the records it deletes are only freed once all the snapshots
+ * older than this write are closed, so that their record IDs can't be reused while a cursor
+ * may still read them. The reads done outside of a snapshot, like the point lookups, see the
+ * latest published version of each page.
+ * <p>
+ * The modifications are still written in the JDBM transaction as soon as they are done, so
+ * that they are never lost. The writer keeps the content a record had before its first
+ * modification, until the write is published : a reader which does not find a page in the
+ * cache reads this content, and not the version being modified. Only one thread can write
+ * at a time, the partition write lock serializes the writers : a thread starting a write
+ * while another one has not ended its own is an error.
+ * <p>
+ * The records the writer deletes are only removed from the JDBM transaction when its changes
+ * are published. A write can thus be undone on its own with {@link #undoWrite()}, without
+ * rolling back the JDBM transaction, which may contain the changes of other completed writes.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class CopyOnWriteRecordManager implements RecordManager
+{
+    /** The underlying record manager */
+    private final BaseRecordManager recordManager;
+
+    /** The published records */
+    private final Cache<Long, Object> cache;
+
+    /** The thread currently writing, if any */
+    private volatile Thread writer;
+
+    /** The number of nested writes done by the writer */
+    private int writeDepth;
+
+    /** The private copies of the records read or modified by the writer */
+    private final Map<Long, Object> copies = new HashMap<>();
+
+    /** The records modified or created by the writer */
+    private final Set<Long> modified = new HashSet<>();
+
+    /** The records deleted by the writer, removed from the JDBM transaction when published */
+    private final Set<Long> deleted = new HashSet<>();
+
+    /** The records created by the writer */
+    private final Set<Long> inserted = new HashSet<>();
+
+    /**
+     * The serialized content of the records updated by the writer, before its first
+     * modification. It is read and written while holding the underlying record manager lock.
+     */
+    private final Map<Long, byte[]> preImages = new ConcurrentHashMap<>();
+
+    /** Lets the readers see all the records of a write published at once */
+    private final StampedLock publishLock = new StampedLock();
+
+    /**
+     * The version of the published records, incremented by each published write. It is
+     * modified while holding the publish write lock and the snapshots lock.
+     */
+    private long version;
+
+    /** The number of open snapshots, per version. It is also the lock of the snapshots */
+    private final TreeMap<Long, Integer> snapshots = new TreeMap<>();
+
+    /** The contents replaced by the published writes, kept for the older snapshots */
+    private final Map<Long, Retained> retained = new ConcurrentHashMap<>();
+
+    /** The records deleted by the published writes, per version, freed when no older snapshot is open */
+    private final TreeMap<Long, List<Long>> pendingFrees = new TreeMap<>();
+
+    /** The version of the snapshot the current thread is reading, if any */
+    private final ThreadLocal<Long> readVersion = new ThreadLocal<>();
+
+
+    /**
+     * The content a record had before a published write has replaced it.
+     */
+    private static final class Retained
+    {
+        /** The version which has replaced this content */
+        private final long replacedIn;
+
+        /** The serialized content */
+        private final byte[] data;
+
+        /** The content the record had before, if it is still needed */
+        private volatile Retained older;
+
+        /** The deserialized content, once read */
+        private volatile Object record;
+
+
+        private Retained( long replacedIn, byte[] data, Retained older, Object record )
+        {
+            this.replacedIn = replacedIn;
+            this.data = data;
+            this.older = older;
+            this.record = record;
+        }
+
+
+        /**
+         * Deserializes the content once. A B-tree header is modified when it is loaded, so each
+         * reader gets its own instance.
+         */
+        private Object getRecord( Serializer serializer ) throws IOException
+        {
+            Object current = record;
+
+            if ( current == null )
+            {
+                current = serializer.deserialize( data );
+
+                if ( !( current instanceof BTree ) )
+                {
+                    record = current;
+                }
+            }
+
+            return current;
+        }
+    }
+
+
+    /**
+     * Creates a new instance of CopyOnWriteRecordManager.
+     *
+     * @param recordManager The underlying record manager
+     * @param cacheSize The maximum number of cached records
+     */
+    CopyOnWriteRecordManager( BaseRecordManager recordManager, int cacheSize )
+    {
+        this.recordManager = recordManager;
+        cache = Caffeine.newBuilder().maximumSize( Math.max( cacheSize, 1 ) ).build();
+    }
+
+
+    /**
+     * @return The underlying record manager
+     */
+    BaseRecordManager getRecordManager()
+    {
+        return recordManager;
+    }
+
+
+    /**
+     * Starts a write in the current thread. The records modified from now are only visible to
+     * this thread, until the write is ended or committed.
+     */
+    synchronized void beginWrite()
+    {
+        Thread current = Thread.currentThread();
+
+        if ( writer == null )
+        {
+            writer = current;
+            writeDepth = 0;
+        }
+        else if ( writer != current )
+        {
+            // The writes are serialized by the partition write lock : the previous writer
+            // is still writing, or has not ended its write
+            throw new IllegalStateException( "The thread " + writer.getName() + " is already writing" );
+        }
+
+        writeDepth++;
+    }
+
+
+    /**
+     * Ends a write started by the current thread, and publishes its changes when the outermost
+     * write is ended.
+     *
+     * @throws IOException If the records deleted by the writer can't be removed
+     */
+    synchronized void endWrite() throws IOException
+    {
+        if ( writer != Thread.currentThread() )
+        {
+            return;
+        }
+
+        writeDepth--;
+
+        if ( writeDepth <= 0 )
+        {
+            try
+            {
+                publish();
+            }
+            finally
+            {
+                writer = null;
+                writeDepth = 0;
+            }
+        }
+    }
+
+
+    /**
+     * Undoes the changes done by the current thread since it has started writing : the
+     * records it has updated get back their previous content, and the records it has
+     * created are deleted. The changes done by the previous writes, even if they have not
+     * been committed yet, are kept.
+     *
+     * @throws IOException If the records can't be restored
+     */
+    synchronized void undoWrite() throws IOException
+    {
+        if ( !isWriter() )
+        {
+            return;
+        }
+
+        long stamp = publishLock.writeLock();
+
+        try
+        {
+            synchronized ( recordManager )
+            {
+                for ( Long recid : inserted )
+                {
+                    recordManager.delete( recid );
+                }
+
+                for ( Map.Entry<Long, byte[]> preImage : preImages.entrySet() )
+                {
+                    recordManager.update( preImage.getKey(), preImage.getValue(), ByteArraySerializer.INSTANCE );
+
+                    // The cached record may be an object the writer has modified in place, like
+                    // a B-tree header : it will be read again
+                    cache.invalidate( preImage.getKey() );
+                }
+            }
+        }
+        finally
+        {
+            discard();
+            publishLock.unlockWrite( stamp );
+        }
+    }
+
+
+    /**
+     * @return <code>true</code> if the current thread has modified some records since it
+     * has started writing
+     */
+    synchronized boolean hasChanges()
+    {
+        return isWriter() && ( !preImages.isEmpty() || !inserted.isEmpty() || !deleted.isEmpty() );
+    }
+
+
+    /**
+     * Makes the changes of the writer visible to the readers, as a new version. The content
+     * the write replaces is retained if an older snapshot is open, and the records it deletes
+     * are removed once no older snapshot is open.
+     */
+    private void publish() throws IOException
+    {
+        long stamp = publishLock.writeLock();
+
+        try
+        {
+            long oldest;
+
+            if ( !modified.isEmpty() || !deleted.isEmpty() )
+            {
+                synchronized ( snapshots )
+                {
+                    version++;
+                    oldest = snapshots.isEmpty() ? version : snapshots.firstKey();
+                }
+
+                if ( oldest < version )
+                {
+                    for ( Map.Entry<Long, byte[]> preImage : preImages.entrySet() )
+                    {
+                        Long recid = preImage.getKey();
+                        Object published = cache.getIfPresent( recid );
+
+                        if ( published instanceof BTree )
+                        {
+                            // The writer may have modified the cached header in place
+                            published = null;
+                        }
+
+                        retained.put( recid, new Retained( version, preImage.getValue(), retained.get( recid ),
+                            published ) );
+                    }
+                }
+
+                for ( Long recid : modified )
+                {
+                    cache.put( recid, copies.get( recid ) );
+                }
+
+                if ( !deleted.isEmpty() )
+                {
+                    for ( Long recid : deleted )
+                    {
+                        cache.invalidate( recid );
+                    }
+
+                    pendingFrees.put( version, new ArrayList<>( deleted ) );
+                }
+            }
+            else
+            {
+                synchronized ( snapshots )
+                {
+                    oldest = snapshots.isEmpty() ? version : snapshots.firstKey();
+                }
+            }
+
+            purge( oldest );
+        }
+        finally
+        {
+            discard();
+            publishLock.unlockWrite( stamp );
+        }
+    }
+
+
+    /**
+     * Drops the retained contents no open snapshot needs anymore, and frees the records
+     * deleted by the writes no open snapshot predates. This must be called while holding
+     * the publish write lock.
+     *
+     * @param oldest The version of the oldest open snapshot, or the current version
+     */
+    private void purge( long oldest ) throws IOException
+    {
+        Iterator<Retained> replaced = retained.values().iterator();
+
+        while ( replaced.hasNext() )
+        {
+            Retained content = replaced.next();
+
+            if ( content.replacedIn <= oldest )
+            {
+                replaced.remove();
+
+                continue;
+            }
+
+            while ( content.older != null )
+            {
+                if ( content.older.replacedIn <= oldest )
+                {
+                    content.older = null;
+                }
+                else
+                {
+                    content = content.older;
+                }
+            }
+        }
+
+        while ( !pendingFrees.isEmpty() && ( pendingFrees.firstKey() <= oldest ) )
+        {
+            for ( Long recid : pendingFrees.pollFirstEntry().getValue() )
+            {
+                recordManager.delete( recid );
+            }
+        }
+    }
+
+
+    /**
+     * Drops the changes of the writer
+     */
+    private void discard()
+    {
+        copies.clear();
+        modified.clear();
+        deleted.clear();
+        preImages.clear();
+        inserted.clear();
+    }
+
+
+    /**
+     * @return <code>true</code> if the current thread is the writer
+     */
+    private boolean isWriter()
+    {
+        return writer == Thread.currentThread();
+    }
+
+
+    /**
+     * @return <code>true</code> if the current thread is the writer, and is not reading a
+     * snapshot
+     */
+    boolean isWriting()
+    {
+        return isWriter() && ( readVersion.get() == null );
+    }
+
+
+    /**
+     * Opens a snapshot of the published records. The records read while the snapshot is
+     * entered are the ones of this version, until it is closed.
+     *
+     * @return The version of the snapshot
+     */
+    long openSnapshot()
+    {
+        synchronized ( snapshots )
+        {
+            snapshots.merge( version, 1, Integer::sum );
+
+            return version;
+        }
+    }
+
+
+    /**
+     * Closes a snapshot. The contents retained for it are dropped by the next published write,
+     * or at once if it was the last open snapshot.
+     *
+     * @param snapshotVersion The version of the snapshot
+     */
+    void closeSnapshot( long snapshotVersion )
+    {
+        synchronized ( snapshots )
+        {
+            snapshots.computeIfPresent( snapshotVersion, ( v, count ) -> ( count > 1 ) ? count - 1 : null );
+
+            if ( snapshots.isEmpty() )
+            {
+                retained.clear();
+            }
+        }
+    }
+
+
+    /**
+     * Makes the current thread read the records of a snapshot.
+     *
+     * @param snapshotVersion The version of the snapshot
+     * @return The snapshot the thread was reading before, if any
+     */
+    Long enterSnapshot( long snapshotVersion )
+    {
+        Long previous = readVersion.get();
+        readVersion.set( snapshotVersion );
+
+        return previous;
+    }
+
+
+    /**
+     * Makes the current thread read the snapshot it was reading before entering a snapshot.
+     *
+     * @param previous The value returned by {@link #enterSnapshot(long)}
+     */
+    void exitSnapshot( Long previous )
+    {
+        if ( previous == null )
+        {
+            readVersion.remove();
+        }
+        else
+        {
+            readVersion.set( previous );
+        }
+    }
+
+
+    /**
+     * Reads a record from the underlying record manager, and deserializes it outside of its lock
+     */
+    private Object load( long recid, Serializer serializer ) throws IOException
+    {
+        byte[] data = ( byte[] ) recordManager.fetch( recid, ByteArraySerializer.INSTANCE );
+
+        if ( data == null )
+        {
+            return null;
+        }
+
+        return serializer.deserialize( data );
+    }
+
+
+    /**
+     * Reads the published version of a record : if the writer has updated it, we get its
+     * content before the first modification, otherwise the content stored by the underlying
+     * record manager, where the records deleted by the writer are still present.
+     */
+    private Object loadPublished( long recid, Serializer serializer ) throws IOException
+    {
+        byte[] data;
+
+        synchronized ( recordManager )
+        {
+            data = preImages.get( recid );
+
+            if ( data == null )
+            {
+                data = ( byte[] ) recordManager.fetch( recid, ByteArraySerializer.INSTANCE );
+            }
+        }
+
+        if ( data == null )
+        {
+            return null;
+        }
+
+        return serializer.deserialize( data );
+    }
+
+
+    /**
+     * Keeps the content of a record the writer is about to update, if it is the
+     * first modification. This must be called while holding the underlying record manager
+     * lock.
+     */
+    private void keepPreImage( long recid ) throws IOException
+    {
+        if ( isWriter() && !modified.contains( recid ) && !preImages.containsKey( recid ) )
+        {
+            byte[] data = ( byte[] ) recordManager.fetch( recid, ByteArraySerializer.INSTANCE );
+
+            if ( data != null )
+            {
+                preImages.put( recid, data );
+            }
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long insert( Object obj ) throws IOException
+    {
+        return insert( obj, DefaultSerializer.INSTANCE );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long insert( Object obj, Serializer serializer ) throws IOException
+    {
+        long recid = recordManager.insert( obj, serializer );
+
+        if ( isWriter() )
+        {
+            copies.put( recid, obj );
+            modified.add( recid );
+            inserted.add( recid );
+        }
+        else
+        {
+            cache.put( recid, obj );
+        }
+
+        return recid;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void delete( long recid ) throws IOException
+    {
+        if ( !isWriter() )
+        {
+            recordManager.delete( recid );
+            cache.invalidate( recid );
+
+            return;
+        }
+
+        copies.remove( recid );
+        modified.remove( recid );
+
+        if ( inserted.remove( recid ) )
+        {
+            // Never published, nothing to undo
+            recordManager.delete( recid );
+        }
+        else
+        {
+            // Kept until the write is published, so that it can be undone
+            deleted.add( recid );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void update( long recid, Object obj ) throws IOException
+    {
+        update( recid, obj, DefaultSerializer.INSTANCE );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void update( long recid, Object obj, Serializer serializer ) throws IOException
+    {
+        synchronized ( recordManager )
+        {
+            keepPreImage( recid );
+            recordManager.update( recid, obj, serializer );
+        }
+
+        if ( isWriter() )
+        {
+            copies.put( recid, obj );
+            modified.add( recid );
+            deleted.remove( recid );
+        }
+        else
+        {
+            cache.put( recid, obj );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object fetch( long recid ) throws IOException
+    {
+        return fetch( recid, DefaultSerializer.INSTANCE );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object fetch( long recid, Serializer serializer ) throws IOException
+    {
+        Long snapshotVersion = readVersion.get();
+
+        if ( snapshotVersion != null )
+        {
+            return fetchSnapshot( recid, serializer, snapshotVersion );
+        }
+
+        if ( isWriter() )
+        {
+            return fetchCopy( recid, serializer );
+        }
+
+        // Most of the time, the record is cached and no write is being published
+        long stamp = publishLock.tryOptimisticRead();
+        Object record = cache.getIfPresent( recid );
+
+        if ( ( record != null ) && publishLock.validate( stamp ) )
+        {
+            return record;
+        }
+
+        stamp = publishLock.readLock();
+
+        try
+        {
+            return cache.get( recid, id ->
+            {
+                try
+                {
+                    return loadPublished( id, serializer );
+                }
+                catch ( IOException ioe )
+                {
+                    throw new UncheckedIOException( ioe );
+                }
+            } );
+        }
+        catch ( UncheckedIOException uioe )
+        {
+            throw uioe.getCause();
+        }
+        finally
+        {
+            publishLock.unlockRead( stamp );
+        }
+    }
+
+
+    /**
+     * Reads a record as it was in the version of a snapshot : the content retained for this
+     * version if a later write has replaced it, otherwise the published content. The cached
+     * B-tree headers are never returned, as the writer modifies them in place.
+     */
+    private Object fetchSnapshot( long recid, Serializer serializer, long snapshotVersion ) throws IOException
+    {
+        long stamp = publishLock.tryOptimisticRead();
+        Retained replaced = getRetained( recid, snapshotVersion );
+        Object record = ( replaced != null ) ? replaced.record : cache.getIfPresent( recid );
+
+        if ( ( record != null ) && !( record instanceof BTree ) && publishLock.validate( stamp ) )
+        {
+            return record;
+        }
+
+        stamp = publishLock.readLock();
+
+        try
+        {
+            replaced = getRetained( recid, snapshotVersion );
+
+            if ( replaced != null )
+            {
+                return replaced.getRecord( serializer );
+            }
+
+            record = cache.getIfPresent( recid );
+
+            if ( ( record != null ) && !( record instanceof BTree ) )
+            {
+                return record;
+            }
+
+            record = loadPublished( recid, serializer );
+
+            // The records deleted since the snapshot are still readable, but must not be cached
+            if ( ( record != null ) && !( record instanceof BTree ) && ( snapshotVersion == version ) )
+            {
+                cache.put( recid, record );
+            }
+
+            return record;
+        }
+        finally
+        {
+            publishLock.unlockRead( stamp );
+        }
+    }
+
+
+    /**
+     * @return The content of a record retained for a snapshot, or null if the record has
+     * not been replaced since this snapshot
+     */
+    private Retained getRetained( long recid, long snapshotVersion )
+    {
+        Retained match = null;
+
+        for ( Retained content = retained.get( recid ); ( content != null )
+            && ( content.replacedIn > snapshotVersion ); content = content.older )
+        {
+            match = content;
+        }
+
+        return match;
+    }
+
+
+    /**
+     * Gives the writer its own copy of a record, so that the version seen by the readers
+     * is never modified.
+     */
+    private synchronized Object fetchCopy( long recid, Serializer serializer ) throws IOException
+    {
+        Object copy = copies.get( recid );
+
+        if ( ( copy != null ) || deleted.contains( recid ) )
+        {
+            return copy;
+        }
+
+        Object published = cache.getIfPresent( recid );
+
+        if ( published != null )
+        {
+            copy = serializer.deserialize( serializer.serialize( published ) );
+        }
+        else
+        {
+            copy = load( recid, serializer );
+        }
+
+        if ( copy != null )
+        {
+            copies.put( recid, copy );
+        }
+
+        return copy;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        writer = null;
+
+        try
+        {
+            publish();
+
+            // No cursor can read the records anymore
+            purge( Long.MAX_VALUE );
+        }
+        finally
+        {
+            recordManager.close();
+            cache.invalidateAll();
+            retained.clear();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getRootCount()
+    {
+        return recordManager.getRootCount();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getRoot( int id ) throws IOException
+    {
+        return recordManager.getRoot( id );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setRoot( int id, long rowid ) throws IOException
+    {
+        recordManager.setRoot( id, rowid );
+    }
+
+
+    /**
+     * Publishes the changes of the writer, and commits the JDBM transaction
+     */
+    @Override
+    public synchronized void commit() throws IOException
+    {
+        publish();
+        recordManager.commit();
+    }
+
+
+    /**
+     * Drops the changes of the writer, rolls back the JDBM transaction and clears the cache,
+     * which may contain rolled back changes. The records waiting to be freed are not freed
+     * anymore : the rolled back B-trees may reference them again.
+     */
+    @Override
+    public synchronized void rollback() throws IOException
+    {
+        discard();
+        pendingFrees.clear();
+        recordManager.rollback();
+        cache.invalidateAll();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getNamedObject( String name ) throws IOException
+    {
+        return recordManager.getNamedObject( name );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setNamedObject( String name, long recid ) throws IOException
+    {
+        recordManager.setNamedObject( name, recid );
+    }
+}
@@ -22,7 +22,6 @@ package org.apache.directory.server.core.partition.impl.btree.jdbm;
 
 import java.io.IOException;
 
-import jdbm.btree.BTree;
 import jdbm.helper.TupleBrowser;
 
 import org.apache.directory.api.ldap.model.constants.Loggers;
@@ -55,6 +54,9 @@ public class DupsContainerCursor<K, V> extends AbstractCursor<Tuple<K, DupsConta
     /** The JDBM table we are building a cursor over */
     private final JdbmTable<K, V> table;
 
+    /** The snapshot the B-tree is browsed in */
+    private final ReadSnapshot snapshot;
+
     /** A container to pass to the underlying JDBM to get back a tuple */
     private jdbm.helper.Tuple<K, V> jdbmTuple = new jdbm.helper.Tuple<>();
 
@@ -71,11 +73,24 @@ public class DupsContainerCursor<K, V> extends AbstractCursor<Tuple<K, DupsConta
 
 
     /**
-     * Creates a Cursor over the tuples of a JDBM table.
+     * Creates a Cursor over the tuples of a JDBM table. The cursor browses the table as it is
+     * now, even if some writes modify it later.
      *
      * @param table the JDBM Table to build a Cursor over
      */
     public DupsContainerCursor( JdbmTable<K, V> table )
+    {
+        this( table, ReadSnapshot.open( table.getRecordManager() ) );
+    }
+
+
+    /**
+     * Creates a Cursor over the tuples of a JDBM table, browsed in a snapshot.
+     *
+     * @param table the JDBM Table to build a Cursor over
+     * @param snapshot the snapshot the table is browsed in, closed with this cursor
+     */
+    DupsContainerCursor( JdbmTable<K, V> table, ReadSnapshot snapshot )
     {
         if ( IS_DEBUG )
         {
@@ -84,10 +99,13 @@ public class DupsContainerCursor<K, V> extends AbstractCursor<Tuple<K, DupsConta
 
         if ( !table.isDupsEnabled() )
         {
+            snapshot.close();
+
             throw new IllegalStateException( I18n.err( I18n.ERR_572 ) );
         }
 
         this.table = table;
+        this.snapshot = snapshot;
     }
 
 
@@ -122,7 +140,7 @@ public class DupsContainerCursor<K, V> extends AbstractCursor<Tuple<K, DupsConta
         checkNotClosed();
         try
         {
-            browser = ( ( BTree<K, V> ) table.getBTree() ).browse( key );
+            browser = snapshot.browse( table.getBTree( snapshot ), key );
             forwardDirection = null;
             clearValue();
         }
@@ -143,7 +161,7 @@ public class DupsContainerCursor<K, V> extends AbstractCursor<Tuple<K, DupsConta
 
         try
         {
-            browser = ( ( BTree<K, V> ) table.getBTree() ).browse( key );
+            browser = snapshot.browse( table.getBTree( snapshot ), key );
             forwardDirection = null;
 
             /*
@@ -233,7 +251,7 @@ public class DupsContainerCursor<K, V> extends AbstractCursor<Tuple<K, DupsConta
         checkNotClosed();
         try
         {
-            browser = table.getBTree().browse();
+            browser = snapshot.browse( table.getBTree( snapshot ) );
             forwardDirection = null;
             clearValue();
         }
@@ -253,7 +271,7 @@ public class DupsContainerCursor<K, V> extends AbstractCursor<Tuple<K, DupsConta
         checkNotClosed();
         try
         {
-            browser = table.getBTree().browse( null );
+            browser = snapshot.browse( table.getBTree( snapshot ), null );
             forwardDirection = null;
             clearValue();
         }
@@ -431,7 +449,12 @@ public class DupsContainerCursor<K, V> extends AbstractCursor<Tuple<K, DupsConta
     {
         if ( IS_DEBUG )
         {
-            LOG_CURSOR.debug( "Closing DupsContainerCursor {}", this );
+            LOG_CURSOR.debug( "Closing %s {}", this );
+        }
+
+        if ( !isClosed() )
+        {
+            snapshot.close();
         }
 
         super.close();
@@ -446,7 +469,12 @@ public class DupsContainerCursor<K, V> extends AbstractCursor<Tuple<K, DupsConta
     {
         if ( IS_DEBUG )
         {
-            LOG_CURSOR.debug( "Closing DupsContainerCursor {}", this );
+            LOG_CURSOR.debug( "Closing %s {}", this );
+        }
+
+        if ( !isClosed() )
+        {
+            snapshot.close();
         }
 
         super.close( cause );
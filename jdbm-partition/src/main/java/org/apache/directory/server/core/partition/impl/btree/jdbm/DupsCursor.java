@@ -31,7 +31,6 @@ import org.apache.directory.api.ldap.model.cursor.CursorException;
 import org.apache.directory.api.ldap.model.cursor.InvalidCursorPositionException;
 import org.apache.directory.api.ldap.model.cursor.Tuple;
 import org.apache.directory.api.ldap.model.exception.LdapException;
-import org.apache.directory.server.core.avltree.ArrayTree;
 import org.apache.directory.server.core.avltree.ArrayTreeCursor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -65,6 +64,12 @@ class DupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
      */
     private final DupsContainerCursor<K, V> containerCursor;
 
+    /**
+     * The snapshot the table and the BTrees of values are browsed in, shared
+     * with the containerCursor and the dupsCursor.
+     */
+    private final ReadSnapshot snapshot;
+
     /**
      * The current Tuple returned from the wrappedCursor DupsContainerCursor.
      */
@@ -100,7 +105,8 @@ class DupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
         }
 
         this.table = table;
-        this.containerCursor = new DupsContainerCursor<>( table );
+        this.snapshot = ReadSnapshot.open( table.getRecordManager() );
+        this.containerCursor = new DupsContainerCursor<>( table, snapshot.share() );
         LOG.debug( "Created on table {}", table );
     }
 
@@ -127,23 +133,7 @@ class DupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
             containerTuple.setBoth( containerCursor.get() );
             DupsContainer<V> values = containerTuple.getValue();
 
-            if ( values.isArrayTree() )
-            {
-                ArrayTree<V> set = values.getArrayTree();
-                dupsCursor = new ArrayTreeCursor<>( set );
-            }
-            else
-            {
-                try
-                {
-                    BTree tree = table.getBTree( values.getBTreeRedirect() );
-                    dupsCursor = new KeyBTreeCursor<>( tree, table.getValueComparator() );
-                }
-                catch ( IOException e )
-                {
-                    throw new CursorException( e );
-                }
-            }
+            openDupsCursor( values );
 
             if ( value == null )
             {
@@ -209,23 +199,7 @@ class DupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
             containerTuple.setBoth( containerCursor.get() );
             DupsContainer<V> values = containerTuple.getValue();
 
-            if ( values.isArrayTree() )
-            {
-                ArrayTree<V> set = values.getArrayTree();
-                dupsCursor = new ArrayTreeCursor<>( set );
-            }
-            else
-            {
-                try
-                {
-                    BTree tree = table.getBTree( values.getBTreeRedirect() );
-                    dupsCursor = new KeyBTreeCursor<>( tree, table.getValueComparator() );
-                }
-                catch ( IOException e )
-                {
-                    throw new CursorException( e );
-                }
-            }
+            openDupsCursor( values );
 
             if ( value == null )
             {
@@ -275,7 +249,7 @@ class DupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
         containerCursor.beforeFirst();
         containerTuple.setKey( null );
         containerTuple.setValue( null );
-        dupsCursor = null;
+        closeDupsCursor();
     }
 
 
@@ -289,7 +263,7 @@ class DupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
         containerCursor.afterLast();
         containerTuple.setKey( null );
         containerTuple.setValue( null );
-        dupsCursor = null;
+        closeDupsCursor();
     }
 
 
@@ -300,29 +274,14 @@ class DupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
     {
         checkNotClosed();
         clearValue();
-        dupsCursor = null;
+        closeDupsCursor();
 
         if ( containerCursor.first() )
         {
             containerTuple.setBoth( containerCursor.get() );
             DupsContainer<V> values = containerTuple.getValue();
 
-            if ( containerTuple.getValue().isArrayTree() )
-            {
-                dupsCursor = new ArrayTreeCursor<>( values.getArrayTree() );
-            }
-            else
-            {
-                try
-                {
-                    BTree bt = table.getBTree( values.getBTreeRedirect() );
-                    dupsCursor = new KeyBTreeCursor<>( bt, table.getValueComparator() );
-                }
-                catch ( IOException e )
-                {
-                    throw new CursorException( e );
-                }
-            }
+            openDupsCursor( values );
 
             /*
              * Since only tables with duplicate keys enabled use this
@@ -348,30 +307,14 @@ class DupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
     {
         checkNotClosed();
         clearValue();
-        dupsCursor = null;
+        closeDupsCursor();
 
         if ( containerCursor.last() )
         {
             containerTuple.setBoth( containerCursor.get() );
             DupsContainer<V> values = containerTuple.getValue();
 
-            if ( values.isArrayTree() )
-            {
-                ArrayTree<V> set = values.getArrayTree();
-                dupsCursor = new ArrayTreeCursor<>( set );
-            }
-            else
-            {
-                try
-                {
-                    BTree tree = table.getBTree( values.getBTreeRedirect() );
-                    dupsCursor = new KeyBTreeCursor<>( tree, table.getValueComparator() );
-                }
-                catch ( IOException e )
-                {
-                    throw new CursorException( e );
-                }
-            }
+            openDupsCursor( values );
 
             /*
              * Since only tables with duplicate keys enabled use this
@@ -398,6 +341,54 @@ class DupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
     }
 
 
+    /**
+     * Creates the Cursor over the values of the current key, closing the
+     * previous one.
+     */
+    private void openDupsCursor( DupsContainer<V> values ) throws CursorException
+    {
+        closeDupsCursor();
+
+        if ( values.isArrayTree() )
+        {
+            dupsCursor = new ArrayTreeCursor<>( values.getArrayTree() );
+        }
+        else
+        {
+            try
+            {
+                BTree tree = table.getBTree( snapshot, values.getBTreeRedirect() );
+                dupsCursor = new KeyBTreeCursor<>( snapshot.share(), tree, table.getValueComparator() );
+            }
+            catch ( IOException e )
+            {
+                throw new CursorException( e );
+            }
+        }
+    }
+
+
+    /**
+     * Closes the Cursor over the values of the current key, if any.
+     */
+    private void closeDupsCursor() throws CursorException
+    {
+        if ( dupsCursor != null )
+        {
+            try
+            {
+                dupsCursor.close();
+            }
+            catch ( IOException ioe )
+            {
+                throw new CursorException( ioe );
+            }
+
+            dupsCursor = null;
+        }
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -410,17 +401,7 @@ class DupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
          */
         if ( null == dupsCursor || !dupsCursor.previous() )
         {
-            if ( dupsCursor != null )
-            {
-                try
-                {
-                    dupsCursor.close();
-                }
-                catch ( IOException ioe )
-                {
-                    throw new LdapException( ioe.getMessage(), ioe );
-                }
-            }
+            closeDupsCursor();
 
             /*
              * If the wrappedCursor cursor has more elements we get the previous
@@ -432,23 +413,7 @@ class DupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
                 containerTuple.setBoth( containerCursor.get() );
                 DupsContainer<V> values = containerTuple.getValue();
 
-                if ( values.isArrayTree() )
-                {
-                    ArrayTree<V> set = values.getArrayTree();
-                    dupsCursor = new ArrayTreeCursor<>( set );
-                }
-                else
-                {
-                    try
-                    {
-                        BTree tree = table.getBTree( values.getBTreeRedirect() );
-                        dupsCursor = new KeyBTreeCursor<>( tree, table.getValueComparator() );
-                    }
-                    catch ( IOException e )
-                    {
-                        throw new CursorException( e );
-                    }
-                }
+                openDupsCursor( values );
 
                 /*
                  * Since only tables with duplicate keys enabled use this
@@ -486,17 +451,7 @@ class DupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
          */
         if ( ( null == dupsCursor ) || !dupsCursor.next() )
         {
-            if ( dupsCursor != null )
-            {
-                try
-                {
-                    dupsCursor.close();
-                }
-                catch ( IOException ioe )
-                {
-                    throw new LdapException( ioe.getMessage(), ioe );
-                }
-            }
+            closeDupsCursor();
 
             /*
              * If the wrappedCursor cursor has more elements we get the next
@@ -507,23 +462,7 @@ class DupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
                 containerTuple.setBoth( containerCursor.get() );
                 DupsContainer<V> values = containerTuple.getValue();
 
-                if ( values.isArrayTree() )
-                {
-                    ArrayTree<V> set = values.getArrayTree();
-                    dupsCursor = new ArrayTreeCursor<>( set );
-                }
-                else
-                {
-                    try
-                    {
-                        BTree tree = table.getBTree( values.getBTreeRedirect() );
-                        dupsCursor = new KeyBTreeCursor<>( tree, table.getValueComparator() );
-                    }
-                    catch ( IOException e )
-                    {
-                        throw new CursorException( e );
-                    }
-                }
+                openDupsCursor( values );
 
                 /*
                  * Since only tables with duplicate keys enabled use this
@@ -583,6 +522,11 @@ class DupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
             LOG_CURSOR.debug( "Closing DupsCursor {}", this );
         }
 
+        if ( !isClosed() )
+        {
+            snapshot.close();
+        }
+
         super.close();
         containerCursor.close();
 
@@ -604,6 +548,11 @@ class DupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
             LOG_CURSOR.debug( "Closing DupsCursor {}", this );
         }
 
+        if ( !isClosed() )
+        {
+            snapshot.close();
+        }
+
         super.close( cause );
         containerCursor.close( cause );
 
@@ -0,0 +1,559 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import jdbm.RecordManager;
+import jdbm.recman.BaseRecordManager;
+import jdbm.recman.CacheRecordManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Commits the JDBM transaction of a partition on behalf of many writers.
+ * <p>
+ * The writers add their changes to the current JDBM transaction, and register
+ * in the current group of operations when they commit. A dedicated thread commits
+ * the JDBM transaction, and synchronizes the log, when the first operation of the
+ * group has waited for the maximum delay, or when the group has reached its maximum
+ * size : all the writers of the group are then acknowledged at once. A commit waits for
+ * the write transactions in progress to be over, and the new ones wait for the commit to
+ * be done, so that we never commit the changes of an operation which is not completed.
+ * The operation locks are not held while committing : only the writers of this partition
+ * wait for the commit.
+ * <p>
+ * As all the writers share the same JDBM transaction, a writer which fails does not roll
+ * it back : it only undoes its own changes (see {@link CopyOnWriteRecordManager#undoWrite()}),
+ * and the operations waiting for the next commit are kept.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class JdbmGroupCommitter implements Runnable
+{
+    /** A logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( JdbmGroupCommitter.class );
+
+    /** The record manager to commit */
+    private final RecordManager recordManager;
+
+    /** Tells if we also have to write the log into the database file after each commit */
+    private final boolean synchronizeLog;
+
+    /** The maximum time an operation waits for the commit, in nanoseconds */
+    private final long maxDelay;
+
+    /** The maximum number of operations in a group */
+    private final int maxOperations;
+
+    /** The lock protecting the groups */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Signaled when the current group should be committed */
+    private final Condition commitNeeded = lock.newCondition();
+
+    /** Signaled when a group has been committed */
+    private final Condition groupCompleted = lock.newCondition();
+
+    /** Signaled when the last write transaction in progress is over */
+    private final Condition writersDone = lock.newCondition();
+
+    /** Signaled when a commit is over */
+    private final Condition commitDone = lock.newCondition();
+
+    /** The number of write transactions in progress */
+    private int activeWriters;
+
+    /** Tells if a commit is in progress */
+    private boolean committing;
+
+    /** The group the writers are registering in */
+    private Group current = new Group();
+
+    /** The time the first operation of the current group has registered */
+    private long firstOperationTime;
+
+    /** The number of JDBM commits */
+    private final AtomicLong commits = new AtomicLong();
+
+    /** The number of committed operations */
+    private final AtomicLong operations = new AtomicLong();
+
+    /** Tells if the current thread is in the middle of a write transaction */
+    private final ThreadLocal<int[]> writing = ThreadLocal.withInitial( () -> new int[1] );
+
+    /** The thread committing the groups */
+    private Thread committer;
+
+    /** Tells if the committer thread must keep running */
+    private volatile boolean running;
+
+
+    /**
+     * The operations committed together
+     */
+    static final class Group
+    {
+        /** The number of operations in the group */
+        private int size;
+
+        /** Tells if the group has been committed */
+        private boolean done;
+
+        /** The commit failure, if any */
+        private IOException failure;
+    }
+
+
+    /**
+     * Creates a new instance of JdbmGroupCommitter.
+     *
+     * @param recordManager The record manager to commit
+     * @param synchronizeLog If the log must be written into the database file after each commit
+     * @param maxDelay The maximum time an operation waits for the commit, in milliseconds
+     * @param maxOperations The maximum number of operations committed together
+     */
+    JdbmGroupCommitter( RecordManager recordManager, boolean synchronizeLog, long maxDelay, int maxOperations )
+    {
+        this.recordManager = recordManager;
+        this.synchronizeLog = synchronizeLog;
+        this.maxDelay = TimeUnit.MILLISECONDS.toNanos( Math.max( maxDelay, 1L ) );
+        this.maxOperations = Math.max( maxOperations, 1 );
+    }
+
+
+    /**
+     * Starts the committer thread.
+     *
+     * @param name The thread name
+     */
+    void start( String name )
+    {
+        running = true;
+        committer = new Thread( this, name );
+        committer.setDaemon( true );
+        committer.start();
+    }
+
+
+    /**
+     * Stops the committer thread, and commits the pending operations.
+     *
+     * @throws IOException If the last commit failed
+     */
+    void stop() throws IOException
+    {
+        running = false;
+
+        if ( committer != null )
+        {
+            lock.lock();
+
+            try
+            {
+                commitNeeded.signalAll();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            try
+            {
+                committer.join();
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            committer = null;
+        }
+
+        flush();
+    }
+
+
+    /**
+     * Tells the committer that the current thread starts a write transaction. We wait for
+     * the commit in progress, if any, to be done.
+     */
+    void beginWrite()
+    {
+        int[] depth = writing.get();
+
+        if ( depth[0] == 0 )
+        {
+            lock.lock();
+
+            try
+            {
+                while ( committing )
+                {
+                    commitDone.awaitUninterruptibly();
+                }
+
+                activeWriters++;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        depth[0]++;
+    }
+
+
+    /**
+     * Tells the committer that the current thread has ended a write transaction.
+     */
+    void endWrite()
+    {
+        int[] depth = writing.get();
+
+        if ( depth[0] > 0 )
+        {
+            depth[0]--;
+
+            if ( depth[0] == 0 )
+            {
+                lock.lock();
+
+                try
+                {
+                    activeWriters--;
+
+                    if ( activeWriters == 0 )
+                    {
+                        writersDone.signalAll();
+                    }
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @return <code>true</code> if the current thread is in the middle of a write transaction
+     */
+    boolean isWriting()
+    {
+        return writing.get()[0] > 0;
+    }
+
+
+    /**
+     * Adds a completed operation to the current group. This must be called before the end of
+     * the write transaction.
+     *
+     * @return The group the operation belongs to
+     */
+    Group register()
+    {
+        lock.lock();
+
+        try
+        {
+            Group group = current;
+
+            if ( group.size == 0 )
+            {
+                firstOperationTime = System.nanoTime();
+                commitNeeded.signalAll();
+            }
+
+            group.size++;
+
+            if ( group.size >= maxOperations )
+            {
+                commitNeeded.signalAll();
+            }
+
+            return group;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Waits until the given group has been committed.
+     *
+     * @param group The group
+     * @throws IOException If the group has not been committed
+     */
+    void await( Group group ) throws IOException
+    {
+        lock.lock();
+
+        try
+        {
+            while ( !group.done )
+            {
+                groupCompleted.awaitUninterruptibly();
+            }
+
+            if ( group.failure != null )
+            {
+                throw new IOException( group.failure.getMessage(), group.failure );
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Commits the JDBM transaction, and acknowledges the waiting operations. We first wait
+     * for the write transactions in progress to be over, and the new ones are not started
+     * before the end of the commit. This must not be called by a thread in the middle of a
+     * write transaction.
+     *
+     * @throws IOException If the commit failed
+     */
+    void flush() throws IOException
+    {
+        Group group = startCommit();
+
+        try
+        {
+            IOException failure = null;
+
+            try
+            {
+                recordManager.commit();
+
+                if ( synchronizeLog )
+                {
+                    getBaseRecordManager().getTransactionManager().synchronizeLog();
+                }
+
+                commits.incrementAndGet();
+                operations.addAndGet( group.size );
+            }
+            catch ( IOException ioe )
+            {
+                failure = ioe;
+                LOG.error( "Failed to commit {} operations", group.size, ioe );
+            }
+
+            complete( group, failure );
+
+            if ( failure != null )
+            {
+                throw failure;
+            }
+        }
+        finally
+        {
+            endCommit();
+        }
+    }
+
+
+    /**
+     * Waits for the write transactions in progress to be over, prevents new ones to start,
+     * and replaces the current group with an empty one
+     */
+    private Group startCommit()
+    {
+        lock.lock();
+
+        try
+        {
+            while ( committing )
+            {
+                commitDone.awaitUninterruptibly();
+            }
+
+            committing = true;
+
+            while ( activeWriters > 0 )
+            {
+                writersDone.awaitUninterruptibly();
+            }
+
+            Group group = current;
+            current = new Group();
+
+            return group;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Lets the writers waiting for the end of the commit start
+     */
+    private void endCommit()
+    {
+        lock.lock();
+
+        try
+        {
+            committing = false;
+            commitDone.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Wakes up the writers of a group
+     */
+    private void complete( Group group, IOException failure )
+    {
+        lock.lock();
+
+        try
+        {
+            group.done = true;
+            group.failure = failure;
+            groupCompleted.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    private BaseRecordManager getBaseRecordManager()
+    {
+        if ( recordManager instanceof CopyOnWriteRecordManager )
+        {
+            return ( ( CopyOnWriteRecordManager ) recordManager ).getRecordManager();
+        }
+        else if ( recordManager instanceof CacheRecordManager )
+        {
+            return ( BaseRecordManager ) ( ( CacheRecordManager ) recordManager ).getRecordManager();
+        }
+        else
+        {
+            return ( BaseRecordManager ) recordManager;
+        }
+    }
+
+
+    /**
+     * Waits until the current group has to be committed
+     *
+     * @return <code>false</code> if the committer has been stopped
+     */
+    private boolean awaitGroup() throws InterruptedException
+    {
+        lock.lock();
+
+        try
+        {
+            while ( running )
+            {
+                if ( current.size == 0 )
+                {
+                    commitNeeded.await();
+                }
+                else
+                {
+                    long remaining = firstOperationTime + maxDelay - System.nanoTime();
+
+                    if ( ( current.size >= maxOperations ) || ( remaining <= 0L ) )
+                    {
+                        return true;
+                    }
+
+                    commitNeeded.awaitNanos( remaining );
+                }
+            }
+
+            return false;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Commits the groups, until the committer is stopped
+     */
+    @Override
+    public void run()
+    {
+        try
+        {
+            while ( awaitGroup() )
+            {
+                try
+                {
+                    flush();
+                }
+                catch ( IOException ioe )
+                {
+                    // Already logged, and reported to the writers
+                }
+            }
+        }
+        catch ( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * @return The number of JDBM commits done
+     */
+    long getCommitCount()
+    {
+        return commits.get();
+    }
+
+
+    /**
+     * @return The number of operations committed
+     */
+    long getOperationCount()
+    {
+        return operations.get();
+    }
+}
@@ -546,6 +546,25 @@ public class JdbmIndex<K> extends AbstractIndex<K, String>
         }
     }
 
+
+    /**
+     * Reloads the forward and reverse tables, once the changes of a write have been undone.
+     *
+     * @throws IOException If the tables can't be loaded
+     */
+    synchronized void reload() throws IOException
+    {
+        if ( forward != null )
+        {
+            forward.reload();
+        }
+
+        if ( reverse != null )
+        {
+            reverse.reload();
+        }
+    }
+
     
     /**
      * {@inheritDoc}
@@ -65,6 +65,7 @@ import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartit
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.ParentIdAndRdn;
+import org.apache.directory.server.xdbm.PartitionStatistics;
 import org.apache.directory.server.xdbm.search.impl.CursorBuilder;
 import org.apache.directory.server.xdbm.search.impl.DefaultOptimizer;
 import org.apache.directory.server.xdbm.search.impl.DefaultSearchEngine;
@@ -74,10 +75,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.github.benmanes.caffeine.cache.Cache;
-import com.github.benmanes.caffeine.cache.Caffeine;
 
 import jdbm.RecordManager;
-import jdbm.helper.MRU;
 import jdbm.recman.BaseRecordManager;
 import jdbm.recman.CacheRecordManager;
 import jdbm.recman.TransactionManager;
@@ -112,6 +111,24 @@ public class JdbmPartition extends AbstractBTreePartition
     /** the entry cache */
     private Cache< String, Entry > entryCache;
 
+    /** The default maximum time a write waits for the group commit, in milliseconds */
+    public static final long DEFAULT_GROUP_COMMIT_DELAY = 10L;
+
+    /** The default maximum number of writes committed together */
+    public static final int DEFAULT_GROUP_COMMIT_MAX_OPERATIONS = 100;
+
+    /** Tells if the writes are committed in the background, by groups */
+    private boolean groupCommitEnabled;
+
+    /** The maximum time a write waits for the group commit, in milliseconds */
+    private long groupCommitDelay = DEFAULT_GROUP_COMMIT_DELAY;
+
+    /** The maximum number of writes committed together */
+    private int groupCommitMaxOperations = DEFAULT_GROUP_COMMIT_MAX_OPERATIONS;
+
+    /** The group committer, when the group commit is enabled */
+    private JdbmGroupCommitter groupCommitter;
+
 
     /**
      * Creates a store based on JDBM B+Trees.
@@ -414,7 +431,10 @@ public class JdbmPartition extends AbstractBTreePartition
             EvaluatorBuilder evaluatorBuilder = new EvaluatorBuilder( this, schemaManager );
             CursorBuilder cursorBuilder = new CursorBuilder( this, evaluatorBuilder );
 
-            setSearchEngine( new DefaultSearchEngine( this, cursorBuilder, evaluatorBuilder, getOptimizer() ) );
+            DefaultSearchEngine searchEngine = new DefaultSearchEngine( this, cursorBuilder, evaluatorBuilder,
+                getOptimizer() );
+            searchEngine.setCandidateSetLimit( candidateSetLimit );
+            setSearchEngine( searchEngine );
 
             // Create the underlying directories (only if needed)
             File partitionDir = new File( getPartitionPath() );
@@ -439,9 +459,9 @@ public class JdbmPartition extends AbstractBTreePartition
                 
                 int recCacheSize = Integer.parseInt( cacheSizeVal );
                 
-                LOG.info( "Setting CacheRecondManager's cache size to {}", recCacheSize );
+                LOG.info( "Setting CopyOnWriteRecordManager's cache size to {}", recCacheSize );
                 
-                recMan = new CacheRecordManager( base, new MRU( recCacheSize ) );
+                recMan = new CopyOnWriteRecordManager( base, recCacheSize );
             }
             catch ( IOException ioe )
             {
@@ -535,7 +555,7 @@ public class JdbmPartition extends AbstractBTreePartition
                 buildUserIndex( beginReadTransaction(), indexToBuild );
             }
 
-            entryCache = Caffeine.newBuilder().maximumSize( cacheSize ).build();
+            entryCache = createEntryCache();
 
             // Initialization of the context entry
             if ( ( suffixDn != null ) && ( contextEntry != null ) )
@@ -635,6 +655,13 @@ public class JdbmPartition extends AbstractBTreePartition
                 }
             }
 
+            if ( groupCommitEnabled )
+            {
+                groupCommitter = new JdbmGroupCommitter( recMan, isSyncOnWrite(), groupCommitDelay,
+                    groupCommitMaxOperations );
+                groupCommitter.start( "jdbm-group-commit-" + id );
+            }
+
             // We are done !
             initialized = true;
         }
@@ -661,44 +688,193 @@ public class JdbmPartition extends AbstractBTreePartition
 
     /**
      * This method is called when the synch thread is waking up, to write
-     * the modified data.
+     * the modified data. The index statistics are updated in the background
+     * at the same time, if needed.
+     * <p>
+     * When the group commit is enabled, the pending writes are committed right away,
+     * unless we are called by a write operation : it will be committed with its group.
      * 
      * @throws LdapException on failures to sync database files to disk
      */
     @Override
-    public synchronized void sync() throws LdapException
+    public void sync() throws LdapException
     {
         if ( !initialized )
         {
             return;
         }
+
+        scheduleStatisticsUpdate();
+
+        if ( groupCommitter != null )
+        {
+            if ( !groupCommitter.isWriting() )
+            {
+                try
+                {
+                    groupCommitter.flush();
+                }
+                catch ( IOException ioe )
+                {
+                    throw new LdapOtherException( ioe.getMessage(), ioe );
+                }
+            }
+
+            return;
+        }
+
+        synchronized ( this )
+        {
+            try
+            {
+                // Commit
+                recMan.commit();
+        
+                // And flush the journal
+                BaseRecordManager baseRecordManager = null;
+        
+                if ( recMan instanceof CopyOnWriteRecordManager )
+                {
+                    baseRecordManager = ( ( CopyOnWriteRecordManager ) recMan ).getRecordManager();
+                }
+                else if ( recMan instanceof CacheRecordManager )
+                {
+                    baseRecordManager = ( ( BaseRecordManager ) ( ( CacheRecordManager ) recMan ).getRecordManager() );
+                }
+                else
+                {
+                    baseRecordManager = ( ( BaseRecordManager ) recMan );
+                }
         
+                baseRecordManager.getTransactionManager().synchronizeLog();
+            }
+            catch ( IOException ioe )
+            {
+                throw new LdapOtherException( ioe.getMessage(), ioe );
+            }
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected File getStatisticsFile()
+    {
+        return new File( new File( getPartitionPath() ), PartitionStatistics.STATISTICS_FILE );
+    }
+
+
+    /**
+     * Clears the caches, and reloads the B-trees state, after the changes of a write
+     * have been undone
+     */
+    private void writeUndone()
+    {
+        if ( entryCache != null )
+        {
+            entryCache.invalidateAll();
+        }
+
+        clearIdCaches();
+
         try
         {
-            // Commit
-            recMan.commit();
-    
-            // And flush the journal
-            BaseRecordManager baseRecordManager = null;
-    
-            if ( recMan instanceof CacheRecordManager )
+            ( ( JdbmMasterTable ) master ).reload();
+
+            for ( Index<?, String> index : systemIndices.values() )
             {
-                baseRecordManager = ( ( BaseRecordManager ) ( ( CacheRecordManager ) recMan ).getRecordManager() );
+                ( ( JdbmIndex<?> ) index ).reload();
             }
-            else
+
+            for ( Index<?, String> index : userIndices.values() )
             {
-                baseRecordManager = ( ( BaseRecordManager ) recMan );
+                ( ( JdbmIndex<?> ) index ).reload();
             }
-    
-            baseRecordManager.getTransactionManager().synchronizeLog();
         }
         catch ( IOException ioe )
         {
-            throw new LdapOtherException( ioe.getMessage(), ioe );
+            LOG.error( "Failed to reload the B-trees of the {} partition", id, ioe );
         }
     }
 
 
+    /**
+     * @return <code>true</code> if the writes are committed in the background, by groups
+     */
+    public boolean isGroupCommitEnabled()
+    {
+        return groupCommitEnabled;
+    }
+
+
+    /**
+     * Enables the group commit. The writes are added to the current JDBM transaction, which
+     * is committed by a background thread, at most every {@link #getGroupCommitDelay()} ms
+     * or every {@link #getGroupCommitMaxOperations()} writes. The write operations wait for
+     * the commit before returning, but they don't block the other writers meanwhile, so that
+     * many writes can be stored on disk at once.
+     * <p>
+     * The writes share the same JDBM transaction : a write failing after having modified
+     * the partition only undoes its own changes, the writes waiting for the commit are kept.
+     *
+     * @param groupCommitEnabled <code>true</code> to enable the group commit
+     */
+    public void setGroupCommitEnabled( boolean groupCommitEnabled )
+    {
+        checkInitialized( "groupCommitEnabled" );
+        this.groupCommitEnabled = groupCommitEnabled;
+    }
+
+
+    /**
+     * @return The maximum time a write waits for the group commit, in milliseconds
+     */
+    public long getGroupCommitDelay()
+    {
+        return groupCommitDelay;
+    }
+
+
+    /**
+     * @param groupCommitDelay The maximum time a write waits for the group commit, in milliseconds
+     */
+    public void setGroupCommitDelay( long groupCommitDelay )
+    {
+        checkInitialized( "groupCommitDelay" );
+        this.groupCommitDelay = groupCommitDelay;
+    }
+
+
+    /**
+     * @return The maximum number of writes committed together
+     */
+    public int getGroupCommitMaxOperations()
+    {
+        return groupCommitMaxOperations;
+    }
+
+
+    /**
+     * @param groupCommitMaxOperations The maximum number of writes committed together
+     */
+    public void setGroupCommitMaxOperations( int groupCommitMaxOperations )
+    {
+        checkInitialized( "groupCommitMaxOperations" );
+        this.groupCommitMaxOperations = groupCommitMaxOperations;
+    }
+
+
+    /**
+     * @return The group committer, if the group commit is enabled
+     */
+    JdbmGroupCommitter getGroupCommitter()
+    {
+        return groupCommitter;
+    }
+
+
     /**
      * Builds user defined indexes on a attributes by browsing all the entries present in master db
      * 
@@ -823,6 +999,7 @@ public class JdbmPartition extends AbstractBTreePartition
                 + "Will create new JdbmIndex using copied configuration parameters.", index );
             jdbmIndex = new JdbmIndex( index.getAttributeId(), true );
             jdbmIndex.setCacheSize( index.getCacheSize() );
+            jdbmIndex.setSubstringIndexed( index.isSubstringIndexed() );
             jdbmIndex.setNumDupLimit( JdbmIndex.DEFAULT_DUPLICATE_LIMIT );
         }
 
@@ -861,6 +1038,21 @@ public class JdbmPartition extends AbstractBTreePartition
             errors.addThrowable( e );
         }
 
+        // Commit the pending writes, and stop the group committer
+        if ( groupCommitter != null )
+        {
+            try
+            {
+                groupCommitter.stop();
+            }
+            catch ( IOException ioe )
+            {
+                errors.addThrowable( ioe );
+            }
+
+            groupCommitter = null;
+        }
+
         // This is specific to the JDBM store : close the record manager
         try
         {
@@ -1002,6 +1194,12 @@ public class JdbmPartition extends AbstractBTreePartition
     @Override
     public PartitionWriteTxn beginWriteTransaction()
     {
+        if ( groupCommitter != null )
+        {
+            return new JdbmPartitionWriteTxn( ( CopyOnWriteRecordManager ) recMan, groupCommitter,
+                this::writeUndone );
+        }
+
         return new JdbmPartitionWriteTxn( recMan, isSyncOnWrite() );
     }
 }
@@ -39,7 +39,22 @@ public class JdbmPartitionWriteTxn extends PartitionWriteTxn
     
     /** A flag used to flush data immediately or not */
     private boolean syncOnWrite = false;
-    
+
+    /** The group committer, when the commits are done in the background */
+    private JdbmGroupCommitter groupCommitter;
+
+    /** Called when the changes of the transaction have been undone */
+    private Runnable undoListener;
+
+    /** The group of operations this transaction has been committed with */
+    private JdbmGroupCommitter.Group group;
+
+    /** Tells if the transaction has not yet been committed or aborted */
+    private boolean active;
+
+    /** Tells if the record manager has been told the current thread is writing */
+    private boolean writing;
+
     /**
      * Create an instance of JdbmPartitionWriteTxn
      * 
@@ -50,21 +65,95 @@ public class JdbmPartitionWriteTxn extends PartitionWriteTxn
     {
         this.recordManager = recordManager;
         this.syncOnWrite = syncOnWrite;
+        beginWrite();
     }
-    
-    
+
+
+    /**
+     * Create an instance of JdbmPartitionWriteTxn which changes are committed in the
+     * background, with the changes of other transactions.
+     * 
+     * @param recordManager The RecordManager instance
+     * @param groupCommitter The group committer
+     * @param undoListener Called when the changes of the transaction have been undone
+     */
+    JdbmPartitionWriteTxn( CopyOnWriteRecordManager recordManager, JdbmGroupCommitter groupCommitter,
+        Runnable undoListener )
+    {
+        this.recordManager = recordManager;
+        this.groupCommitter = groupCommitter;
+        this.undoListener = undoListener;
+        groupCommitter.beginWrite();
+        active = true;
+        beginWrite();
+    }
+
+
+    /**
+     * Tells the record manager that the current thread starts modifying the records, which
+     * must not be visible to the other threads until the transaction is committed
+     */
+    private void beginWrite()
+    {
+        if ( recordManager instanceof CopyOnWriteRecordManager )
+        {
+            ( ( CopyOnWriteRecordManager ) recordManager ).beginWrite();
+            writing = true;
+        }
+    }
+
+
+    /**
+     * Publishes the records modified by the current thread
+     */
+    private void endWrite() throws IOException
+    {
+        if ( writing )
+        {
+            writing = false;
+            ( ( CopyOnWriteRecordManager ) recordManager ).endWrite();
+        }
+    }
+
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void commit() throws IOException
     {
+        if ( groupCommitter != null )
+        {
+            // The changes will be committed with the other pending operations
+            try
+            {
+                if ( active )
+                {
+                    endWrite();
+                    group = groupCommitter.register();
+                    committed();
+                }
+            }
+            finally
+            {
+                end();
+            }
+
+            return;
+        }
+
+        endWrite();
         recordManager.commit();
+        committed();
         
         // And flush the journal
         BaseRecordManager baseRecordManager = null;
 
-        if ( recordManager instanceof CacheRecordManager )
+        if ( recordManager instanceof CopyOnWriteRecordManager )
+        {
+            baseRecordManager = ( ( CopyOnWriteRecordManager ) recordManager ).getRecordManager();
+        }
+        else if ( recordManager instanceof CacheRecordManager )
         {
             baseRecordManager = ( ( BaseRecordManager ) ( ( CacheRecordManager ) recordManager ).getRecordManager() );
         }
@@ -81,13 +170,72 @@ public class JdbmPartitionWriteTxn extends PartitionWriteTxn
     }
 
 
+    /**
+     * Tells the group committer the transaction is over
+     */
+    private void end()
+    {
+        if ( active )
+        {
+            active = false;
+            groupCommitter.endWrite();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void awaitDurability() throws IOException
+    {
+        if ( group != null )
+        {
+            groupCommitter.await( group );
+        }
+    }
+
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void abort() throws IOException
     {
-        recordManager.rollback();
+        if ( groupCommitter == null )
+        {
+            try
+            {
+                recordManager.rollback();
+                endWrite();
+            }
+            finally
+            {
+                aborted();
+            }
+
+            return;
+        }
+
+        // Only undo our own changes : the JDBM transaction also contains the changes
+        // of the completed operations waiting for the next commit
+        CopyOnWriteRecordManager copyOnWriteRecordManager = ( CopyOnWriteRecordManager ) recordManager;
+
+        try
+        {
+            if ( writing && copyOnWriteRecordManager.hasChanges() )
+            {
+                copyOnWriteRecordManager.undoWrite();
+                undoListener.run();
+            }
+
+            endWrite();
+        }
+        finally
+        {
+            aborted();
+            end();
+        }
     }
 
 
@@ -816,17 +816,23 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
             return new EmptyCursor<>();
         }
 
+        ReadSnapshot snapshot = ReadSnapshot.open( recMan );
+
         try
         { 
-            V raw = bt.find( key );
+            V raw = snapshot.find( getBTree( snapshot ), key );
     
             if ( null == raw )
             {
+                snapshot.close();
+
                 return new EmptyCursor<>();
             }
     
             if ( !allowsDuplicates )
             {
+                snapshot.close();
+
                 return new SingletonCursor<>(
                     new org.apache.directory.api.ldap.model.cursor.Tuple<K, V>( key, raw ) );
             }
@@ -835,16 +841,20 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
     
             if ( BTreeRedirectMarshaller.isRedirect( serialized ) )
             {
-                BTree tree = getBTree( BTreeRedirectMarshaller.INSTANCE.deserialize( serialized ) );
-                return new KeyTupleBTreeCursor<>( tree, key, valueComparator );
+                // The cursor browses the values in the snapshot, and closes it
+                BTree tree = getBTree( snapshot, BTreeRedirectMarshaller.INSTANCE.deserialize( serialized ) );
+                return new KeyTupleBTreeCursor<>( snapshot, tree, key, valueComparator );
             }
-    
+
+            snapshot.close();
             ArrayTree<V> set = marshaller.deserialize( serialized );
     
             return new KeyTupleArrayCursor<>( set, key );
         }
         catch ( IOException ioe )
         {
+            snapshot.close();
+
             throw new LdapOtherException( ioe.getMessage(), ioe );
         }
     }
@@ -862,17 +872,23 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
             return new EmptyCursor<>();
         }
 
+        ReadSnapshot snapshot = ReadSnapshot.open( recMan );
+
         try
         {
-            V raw = bt.find( key );
+            V raw = snapshot.find( getBTree( snapshot ), key );
     
             if ( null == raw )
             {
+                snapshot.close();
+
                 return new EmptyCursor<>();
             }
     
             if ( !allowsDuplicates )
             {
+                snapshot.close();
+
                 return new SingletonCursor<>( raw );
             }
     
@@ -880,14 +896,19 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
     
             if ( BTreeRedirectMarshaller.isRedirect( serialized ) )
             {
-                BTree tree = getBTree( BTreeRedirectMarshaller.INSTANCE.deserialize( serialized ) );
-                return new KeyBTreeCursor<>( tree, valueComparator );
+                // The cursor browses the values in the snapshot, and closes it
+                BTree tree = getBTree( snapshot, BTreeRedirectMarshaller.INSTANCE.deserialize( serialized ) );
+                return new KeyBTreeCursor<>( snapshot, tree, valueComparator );
             }
-    
+
+            snapshot.close();
+
             return new ArrayTreeCursor<>( marshaller.deserialize( serialized ) );
         }
         catch ( IOException ioe )
         {
+            snapshot.close();
+
             throw new LdapOtherException( ioe.getMessage(), ioe );
         }
     }
@@ -906,6 +927,33 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
     }
 
 
+    /**
+     * Reloads the B-tree from the record manager, once the changes of a write have been undone :
+     * the in-memory state of the B-tree (its root, height and size) may have been modified by
+     * this write.
+     *
+     * @throws IOException If the B-tree can't be loaded
+     */
+    @SuppressWarnings("unchecked")
+    synchronized void reload() throws IOException
+    {
+        BTree<K, V> reloaded = new BTree<K, V>().load( recMan, bt.getRecordId() );
+        ( ( SerializableComparator<K> ) reloaded.getComparator() ).setSchemaManager( schemaManager );
+
+        if ( allowsDuplicates )
+        {
+            duplicateBtrees.clear();
+        }
+        else
+        {
+            reloaded.setValueSerializer( valueSerializer );
+        }
+
+        bt = reloaded;
+        count = bt.size();
+    }
+
+
     public Marshaller<ArrayTree<V>> getMarshaller()
     {
         return marshaller;
@@ -995,6 +1043,64 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
     }
 
 
+    /**
+     * Returns the main BTree as it was when a snapshot was taken.
+     *
+     * @param snapshot The snapshot
+     * @return the main JDBM BTree, or the current one if the snapshot is live
+     * @throws IOException If the BTree can't be loaded
+     */
+    @SuppressWarnings("unchecked")
+    BTree<K, V> getBTree( ReadSnapshot snapshot ) throws IOException
+    {
+        if ( snapshot.isLive() )
+        {
+            return bt;
+        }
+
+        return snapshot.getBTree( bt.getRecordId(), ( BTree<K, V> tree ) ->
+        {
+            ( ( SerializableComparator<K> ) tree.getComparator() ).setSchemaManager( schemaManager );
+
+            if ( !allowsDuplicates )
+            {
+                tree.setValueSerializer( valueSerializer );
+            }
+        } );
+    }
+
+
+    /**
+     * Returns the BTree of the duplicate values a redirect points to, as it was when a
+     * snapshot was taken.
+     *
+     * @param snapshot The snapshot
+     * @param redirect The redirect
+     * @return the JDBM BTree of the values
+     * @throws IOException If the BTree can't be loaded
+     */
+    @SuppressWarnings("unchecked")
+    BTree getBTree( ReadSnapshot snapshot, BTreeRedirect redirect ) throws IOException
+    {
+        if ( snapshot.isLive() )
+        {
+            return getBTree( redirect );
+        }
+
+        return snapshot.getBTree( redirect.getRecId(), ( BTree<K, V> tree ) ->
+            ( ( SerializableComparator<K> ) tree.getComparator() ).setSchemaManager( schemaManager ) );
+    }
+
+
+    /**
+     * @return the record manager of this table
+     */
+    RecordManager getRecordManager()
+    {
+        return recMan;
+    }
+
+
     @SuppressWarnings("unchecked")
     private boolean btreeHas( BTree tree, V key, boolean isGreaterThan ) throws IOException
     {
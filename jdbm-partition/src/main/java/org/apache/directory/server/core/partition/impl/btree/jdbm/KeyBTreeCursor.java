@@ -52,6 +52,9 @@ public class KeyBTreeCursor<E> extends AbstractCursor<E>
     private final Tuple tuple = new Tuple();
 
     private final BTree btree;
+
+    /** The snapshot the BTree is browsed in */
+    private final ReadSnapshot snapshot;
     private final Comparator<E> comparator;
     private boolean valueAvailable;
     private TupleBrowser browser;
@@ -64,6 +67,19 @@ public class KeyBTreeCursor<E> extends AbstractCursor<E>
      * @param comparator the Comparator used to determine key ordering
      */
     public KeyBTreeCursor( BTree btree, Comparator<E> comparator )
+    {
+        this( ReadSnapshot.LIVE, btree, comparator );
+    }
+
+
+    /**
+     * Creates a Cursor over the keys of a JDBM BTree, browsed in a snapshot.
+     *
+     * @param snapshot the snapshot the BTree is browsed in, closed with this cursor
+     * @param btree the JDBM BTree to build a Cursor over, loaded in the snapshot
+     * @param comparator the Comparator used to determine key ordering
+     */
+    KeyBTreeCursor( ReadSnapshot snapshot, BTree btree, Comparator<E> comparator )
     {
         if ( IS_DEBUG )
         {
@@ -71,6 +87,7 @@ public class KeyBTreeCursor<E> extends AbstractCursor<E>
         }
 
         this.btree = btree;
+        this.snapshot = snapshot;
         this.comparator = comparator;
     }
 
@@ -97,7 +114,7 @@ public class KeyBTreeCursor<E> extends AbstractCursor<E>
         checkNotClosed();
         try
         {
-            browser = btree.browse( element );
+            browser = snapshot.browse( btree, element );
         }
         catch ( IOException e )
         {
@@ -115,7 +132,7 @@ public class KeyBTreeCursor<E> extends AbstractCursor<E>
     {
         try
         {
-            browser = btree.browse( element );
+            browser = snapshot.browse( btree, element );
 
             /*
              * While the next value is less than or equal to the element keep
@@ -162,7 +179,7 @@ public class KeyBTreeCursor<E> extends AbstractCursor<E>
         checkNotClosed();
         try
         {
-            browser = btree.browse();
+            browser = snapshot.browse( btree );
             clearValue();
         }
         catch ( IOException e )
@@ -180,7 +197,7 @@ public class KeyBTreeCursor<E> extends AbstractCursor<E>
         checkNotClosed();
         try
         {
-            browser = btree.browse( null );
+            browser = snapshot.browse( btree, null );
         }
         catch ( IOException e )
         {
@@ -220,7 +237,7 @@ public class KeyBTreeCursor<E> extends AbstractCursor<E>
         {
             if ( browser == null )
             {
-                browser = btree.browse( null );
+                browser = snapshot.browse( btree, null );
             }
 
             if ( browser.getPrevious( tuple ) )
@@ -252,7 +269,7 @@ public class KeyBTreeCursor<E> extends AbstractCursor<E>
         {
             if ( browser == null )
             {
-                browser = btree.browse();
+                browser = snapshot.browse( btree );
             }
 
             if ( browser.getNext( tuple ) )
@@ -298,7 +315,12 @@ public class KeyBTreeCursor<E> extends AbstractCursor<E>
     {
         if ( IS_DEBUG )
         {
-            LOG_CURSOR.debug( "Closing KeyBTreeCursor {}", this );
+            LOG_CURSOR.debug( "Closing %s {}", this );
+        }
+
+        if ( !isClosed() )
+        {
+            snapshot.close();
         }
 
         super.close();
@@ -313,7 +335,12 @@ public class KeyBTreeCursor<E> extends AbstractCursor<E>
     {
         if ( IS_DEBUG )
         {
-            LOG_CURSOR.debug( "Closing KeyBTreeCursor {}", this );
+            LOG_CURSOR.debug( "Closing %s {}", this );
+        }
+
+        if ( !isClosed() )
+        {
+            snapshot.close();
         }
 
         super.close( cause );
@@ -53,6 +53,9 @@ public class KeyTupleBTreeCursor<K, V> extends AbstractCursor<Tuple<K, V>>
 
     private final Comparator<V> comparator;
     private final BTree btree;
+
+    /** The snapshot the BTree is browsed in */
+    private final ReadSnapshot snapshot;
     private final K key;
 
     private jdbm.helper.Tuple<K, V> valueTuple = new jdbm.helper.Tuple<>();
@@ -70,6 +73,21 @@ public class KeyTupleBTreeCursor<K, V> extends AbstractCursor<Tuple<K, V>>
      * @throws IOException of there are problems accessing the BTree
      */
     public KeyTupleBTreeCursor( BTree btree, K key, Comparator<V> comparator ) throws IOException
+    {
+        this( ReadSnapshot.LIVE, btree, key, comparator );
+    }
+
+
+    /**
+     * Creates a Cursor over the tuples of a JDBM BTree, browsed in a snapshot.
+     *
+     * @param snapshot the snapshot the BTree is browsed in, closed with this cursor
+     * @param btree the JDBM BTree to build a Cursor over, loaded in the snapshot
+     * @param key the constant key for which values are returned
+     * @param comparator the Comparator used to determine <b>key</b> ordering
+     * @throws IOException of there are problems accessing the BTree
+     */
+    KeyTupleBTreeCursor( ReadSnapshot snapshot, BTree btree, K key, Comparator<V> comparator ) throws IOException
     {
         if ( IS_DEBUG )
         {
@@ -78,8 +96,9 @@ public class KeyTupleBTreeCursor<K, V> extends AbstractCursor<Tuple<K, V>>
 
         this.key = key;
         this.btree = btree;
+        this.snapshot = snapshot;
         this.comparator = comparator;
-        this.browser = btree.browse();
+        this.browser = snapshot.browse( btree );
     }
 
 
@@ -126,7 +145,7 @@ public class KeyTupleBTreeCursor<K, V> extends AbstractCursor<Tuple<K, V>>
             throw new UnsupportedOperationException( I18n.err( I18n.ERR_446 ) );
         }
 
-        browser = btree.browse( value );
+        browser = snapshot.browse( btree, value );
         clearValue();
     }
 
@@ -144,7 +163,7 @@ public class KeyTupleBTreeCursor<K, V> extends AbstractCursor<Tuple<K, V>>
 
         try
         {
-            browser = btree.browse( value );
+            browser = snapshot.browse( btree, value );
 
             /*
              * While the next value is less than or equal to the element keep
@@ -171,7 +190,7 @@ public class KeyTupleBTreeCursor<K, V> extends AbstractCursor<Tuple<K, V>>
                      */
                     if ( !browser.getPrevious( valueTuple ) )
                     {
-                        browser = btree.browse( this.key );
+                        browser = snapshot.browse( btree, this.key );
                     }
 
                     clearValue();
@@ -203,7 +222,7 @@ public class KeyTupleBTreeCursor<K, V> extends AbstractCursor<Tuple<K, V>>
         checkNotClosed();
         try
         {
-            browser = btree.browse( element.getValue() );
+            browser = snapshot.browse( btree, element.getValue() );
             clearValue();
         }
         catch ( IOException e )
@@ -230,7 +249,7 @@ public class KeyTupleBTreeCursor<K, V> extends AbstractCursor<Tuple<K, V>>
         checkNotClosed();
         try
         {
-            browser = btree.browse();
+            browser = snapshot.browse( btree );
             clearValue();
         }
         catch ( IOException e )
@@ -248,7 +267,7 @@ public class KeyTupleBTreeCursor<K, V> extends AbstractCursor<Tuple<K, V>>
         checkNotClosed();
         try
         {
-            browser = btree.browse( null );
+            browser = snapshot.browse( btree, null );
         }
         catch ( IOException e )
         {
@@ -380,7 +399,12 @@ public class KeyTupleBTreeCursor<K, V> extends AbstractCursor<Tuple<K, V>>
     {
         if ( IS_DEBUG )
         {
-            LOG_CURSOR.debug( "Closing KeyTupleBTreeCursor {}", this );
+            LOG_CURSOR.debug( "Closing %s {}", this );
+        }
+
+        if ( !isClosed() )
+        {
+            snapshot.close();
         }
 
         super.close();
@@ -395,7 +419,12 @@ public class KeyTupleBTreeCursor<K, V> extends AbstractCursor<Tuple<K, V>>
     {
         if ( IS_DEBUG )
         {
-            LOG_CURSOR.debug( "Closing KeyTupleBTreeCursor {}", this );
+            LOG_CURSOR.debug( "Closing %s {}", this );
+        }
+
+        if ( !isClosed() )
+        {
+            snapshot.close();
         }
 
         super.close( cause );
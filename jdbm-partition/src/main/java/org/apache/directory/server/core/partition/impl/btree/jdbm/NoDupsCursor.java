@@ -52,6 +52,9 @@ class NoDupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
 
     private final JdbmTable<K, V> table;
 
+    /** The snapshot the B-tree is browsed in */
+    private final ReadSnapshot snapshot;
+
     private jdbm.helper.Tuple jdbmTuple = new jdbm.helper.Tuple();
     private Tuple<K, V> returnedTuple = new Tuple<>();
     private TupleBrowser browser;
@@ -59,7 +62,8 @@ class NoDupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
 
 
     /**
-     * Creates a Cursor over the tuples of a JDBM table.
+     * Creates a Cursor over the tuples of a JDBM table. The cursor browses the table as it is
+     * now, even if some writes modify it later.
      *
      * @param table the JDBM Table to build a Cursor over
      */
@@ -71,6 +75,7 @@ class NoDupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
         }
 
         this.table = table;
+        snapshot = ReadSnapshot.open( table.getRecordManager() );
     }
 
 
@@ -95,7 +100,7 @@ class NoDupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
         checkNotClosed();
         try
         {
-            browser = table.getBTree().browse( key );
+            browser = snapshot.browse( table.getBTree( snapshot ), key );
             clearValue();
         }
         catch ( IOException e )
@@ -110,7 +115,7 @@ class NoDupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
     {
         try
         {
-            browser = table.getBTree().browse( key );
+            browser = snapshot.browse( table.getBTree( snapshot ), key );
 
             /*
              * While the next value is less than or equal to the element keep
@@ -184,7 +189,7 @@ class NoDupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
         checkNotClosed();
         try
         {
-            browser = table.getBTree().browse();
+            browser = snapshot.browse( table.getBTree( snapshot ) );
             clearValue();
         }
         catch ( IOException e )
@@ -202,7 +207,7 @@ class NoDupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
         checkNotClosed();
         try
         {
-            browser = table.getBTree().browse( null );
+            browser = snapshot.browse( table.getBTree( snapshot ), null );
             clearValue();
         }
         catch ( IOException e )
@@ -337,7 +342,12 @@ class NoDupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
     {
         if ( IS_DEBUG )
         {
-            LOG_CURSOR.debug( "Closing NoDupsCursor {}", this );
+            LOG_CURSOR.debug( "Closing %s {}", this );
+        }
+
+        if ( !isClosed() )
+        {
+            snapshot.close();
         }
 
         super.close();
@@ -352,7 +362,12 @@ class NoDupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
     {
         if ( IS_DEBUG )
         {
-            LOG_CURSOR.debug( "Closing NoDupsCursor {}", this );
+            LOG_CURSOR.debug( "Closing %s {}", this );
+        }
+
+        if ( !isClosed() )
+        {
+            snapshot.close();
         }
 
         super.close( cause );
@@ -0,0 +1,305 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import jdbm.RecordManager;
+import jdbm.btree.BTree;
+import jdbm.helper.Tuple;
+import jdbm.helper.TupleBrowser;
+
+
+/**
+ * A snapshot of the B-trees of a {@link CopyOnWriteRecordManager}, used by a cursor to read all
+ * the pages as they were when it has been created, even if some writes are published while it
+ * is browsing them. The B-trees are loaded from their header as it was in this version, and
+ * their browsers read the pages of this version only.
+ * <p>
+ * When the records are not managed by a {@link CopyOnWriteRecordManager}, or when the snapshot
+ * is opened by the writer, which must see its own changes, the snapshot is live : the B-trees
+ * are browsed as they are.
+ * <p>
+ * A snapshot can be shared by the cursors of a same table, like a cursor over the duplicate
+ * values and the cursors over their sub-trees : it is released when all of them are closed.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+final class ReadSnapshot implements Closeable
+{
+    /** A snapshot browsing the B-trees as they are */
+    static final ReadSnapshot LIVE = new ReadSnapshot( null, 0L );
+
+    /** The record manager, or null if the snapshot is live */
+    private final CopyOnWriteRecordManager recordManager;
+
+    /** The version of the records */
+    private final long version;
+
+    /** The number of cursors using this snapshot */
+    private final AtomicInteger users = new AtomicInteger( 1 );
+
+    /** The B-trees loaded in this snapshot, per record ID */
+    private final Map<Long, BTree<?, ?>> trees = new HashMap<>();
+
+
+    private ReadSnapshot( CopyOnWriteRecordManager recordManager, long version )
+    {
+        this.recordManager = recordManager;
+        this.version = version;
+    }
+
+
+    /**
+     * Opens a snapshot of the records of a record manager.
+     *
+     * @param recordManager The record manager
+     * @return A snapshot, which must be closed
+     */
+    static ReadSnapshot open( RecordManager recordManager )
+    {
+        if ( recordManager instanceof CopyOnWriteRecordManager )
+        {
+            CopyOnWriteRecordManager copyOnWrite = ( CopyOnWriteRecordManager ) recordManager;
+
+            if ( !copyOnWrite.isWriting() )
+            {
+                return new ReadSnapshot( copyOnWrite, copyOnWrite.openSnapshot() );
+            }
+        }
+
+        return LIVE;
+    }
+
+
+    /**
+     * @return <code>true</code> if the B-trees are browsed as they are
+     */
+    boolean isLive()
+    {
+        return recordManager == null;
+    }
+
+
+    /**
+     * Adds a cursor using this snapshot.
+     *
+     * @return This snapshot
+     */
+    ReadSnapshot share()
+    {
+        if ( !isLive() )
+        {
+            users.incrementAndGet();
+        }
+
+        return this;
+    }
+
+
+    /**
+     * Loads a B-tree as it was in this snapshot. The B-trees are loaded once per snapshot.
+     *
+     * @param recid The record ID of the B-tree header
+     * @param init Initializes the loaded B-tree, like the table does for its own B-trees
+     * @return The B-tree
+     * @throws IOException If the B-tree can't be loaded
+     */
+    @SuppressWarnings("unchecked")
+    synchronized <K, V> BTree<K, V> getBTree( long recid, Consumer<BTree<K, V>> init ) throws IOException
+    {
+        BTree<K, V> tree = ( BTree<K, V> ) trees.get( recid );
+
+        if ( tree == null )
+        {
+            Long previous = recordManager.enterSnapshot( version );
+
+            try
+            {
+                tree = new BTree<K, V>().load( recordManager, recid );
+            }
+            finally
+            {
+                recordManager.exitSnapshot( previous );
+            }
+
+            init.accept( tree );
+            trees.put( recid, tree );
+        }
+
+        return tree;
+    }
+
+
+    /**
+     * Finds a value in a B-tree of this snapshot.
+     *
+     * @param tree The B-tree
+     * @param key The key
+     * @return The value, or null if the key is not present
+     * @throws IOException If the pages can't be read
+     */
+    <K, V> V find( BTree<K, V> tree, K key ) throws IOException
+    {
+        if ( isLive() )
+        {
+            return tree.find( key );
+        }
+
+        Long previous = recordManager.enterSnapshot( version );
+
+        try
+        {
+            return tree.find( key );
+        }
+        finally
+        {
+            recordManager.exitSnapshot( previous );
+        }
+    }
+
+
+    /**
+     * Browses a B-tree of this snapshot from its beginning.
+     *
+     * @param tree The B-tree
+     * @return A browser reading the pages of this snapshot
+     * @throws IOException If the pages can't be read
+     */
+    <K, V> TupleBrowser<K, V> browse( BTree<K, V> tree ) throws IOException
+    {
+        if ( isLive() )
+        {
+            return tree.browse();
+        }
+
+        Long previous = recordManager.enterSnapshot( version );
+
+        try
+        {
+            return new SnapshotBrowser<>( tree.browse() );
+        }
+        finally
+        {
+            recordManager.exitSnapshot( previous );
+        }
+    }
+
+
+    /**
+     * Browses a B-tree of this snapshot from a key, or from its end if the key is null.
+     *
+     * @param tree The B-tree
+     * @param key The key
+     * @return A browser reading the pages of this snapshot
+     * @throws IOException If the pages can't be read
+     */
+    <K, V> TupleBrowser<K, V> browse( BTree<K, V> tree, K key ) throws IOException
+    {
+        if ( isLive() )
+        {
+            return tree.browse( key );
+        }
+
+        Long previous = recordManager.enterSnapshot( version );
+
+        try
+        {
+            return new SnapshotBrowser<>( tree.browse( key ) );
+        }
+        finally
+        {
+            recordManager.exitSnapshot( previous );
+        }
+    }
+
+
+    /**
+     * Releases the snapshot when the last cursor using it is closed.
+     */
+    @Override
+    public void close()
+    {
+        if ( !isLive() && ( users.decrementAndGet() == 0 ) )
+        {
+            recordManager.closeSnapshot( version );
+        }
+    }
+
+
+    /**
+     * A browser reading the next pages in the snapshot.
+     */
+    private final class SnapshotBrowser<K, V> extends TupleBrowser<K, V>
+    {
+        /** The browser over the B-tree loaded in the snapshot */
+        private final TupleBrowser<K, V> browser;
+
+
+        private SnapshotBrowser( TupleBrowser<K, V> browser )
+        {
+            this.browser = browser;
+        }
+
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean getNext( Tuple<K, V> tuple ) throws IOException
+        {
+            Long previous = recordManager.enterSnapshot( version );
+
+            try
+            {
+                return browser.getNext( tuple );
+            }
+            finally
+            {
+                recordManager.exitSnapshot( previous );
+            }
+        }
+
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean getPrevious( Tuple<K, V> tuple ) throws IOException
+        {
+            Long previous = recordManager.enterSnapshot( version );
+
+            try
+            {
+                return browser.getPrevious( tuple );
+            }
+            finally
+            {
+                recordManager.exitSnapshot( previous );
+            }
+        }
+    }
+}
@@ -0,0 +1,446 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import jdbm.btree.BTree;
+import jdbm.helper.IntegerComparator;
+import jdbm.helper.IntegerSerializer;
+import jdbm.helper.Tuple;
+import jdbm.helper.TupleBrowser;
+import jdbm.recman.BaseRecordManager;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+
+
+/**
+ * Tests the CopyOnWriteRecordManager : the readers must not see the changes of
+ * the writer until they are published.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@Execution(ExecutionMode.SAME_THREAD)
+public class CopyOnWriteRecordManagerTest
+{
+    private static final String TEST_OUTPUT_PATH = "test.output.path";
+    private File dbFile;
+    private CopyOnWriteRecordManager recman;
+    private ExecutorService readers;
+
+
+    @BeforeEach
+    public void createRecordManager() throws Exception
+    {
+        File tmpDir = null;
+
+        if ( System.getProperty( TEST_OUTPUT_PATH, null ) != null )
+        {
+            tmpDir = new File( System.getProperty( TEST_OUTPUT_PATH ) );
+        }
+
+        dbFile = File.createTempFile( getClass().getSimpleName(), "db", tmpDir );
+        recman = new CopyOnWriteRecordManager( new BaseRecordManager( dbFile.getAbsolutePath() ), 1000 );
+        readers = Executors.newFixedThreadPool( 4 );
+    }
+
+
+    @AfterEach
+    public void cleanup() throws IOException
+    {
+        readers.shutdownNow();
+        recman.close();
+
+        String fileToDelete = dbFile.getAbsolutePath();
+        new File( fileToDelete ).delete();
+        new File( fileToDelete + ".db" ).delete();
+        new File( fileToDelete + ".lg" ).delete();
+    }
+
+
+    private Object fetchFromReader( long recid ) throws Exception
+    {
+        return readers.submit( () -> recman.fetch( recid ) ).get();
+    }
+
+
+    @Test
+    public void testWriterChangesArePublishedOnEndWrite() throws Exception
+    {
+        long recid = recman.insert( "v1" );
+        recman.commit();
+
+        assertEquals( "v1", fetchFromReader( recid ) );
+
+        recman.beginWrite();
+        recman.update( recid, "v2" );
+
+        // The writer sees its change, the readers don't
+        assertEquals( "v2", recman.fetch( recid ) );
+        assertEquals( "v1", fetchFromReader( recid ) );
+
+        recman.endWrite();
+
+        assertEquals( "v2", fetchFromReader( recid ) );
+    }
+
+
+    @Test
+    public void testReaderMissGetsThePublishedVersion() throws Exception
+    {
+        // Stored without going through the cache
+        long updated = recman.getRecordManager().insert( "v1" );
+        long deleted = recman.getRecordManager().insert( "deleted" );
+        recman.commit();
+
+        recman.beginWrite();
+        recman.update( updated, "v2" );
+        recman.delete( deleted );
+
+        // The readers don't see the records being modified by the writer
+        assertEquals( "v1", fetchFromReader( updated ) );
+        assertEquals( "deleted", fetchFromReader( deleted ) );
+
+        recman.endWrite();
+
+        assertEquals( "v2", fetchFromReader( updated ) );
+    }
+
+
+    @Test
+    public void testWriterGetsACopy() throws Exception
+    {
+        long recid = recman.insert( new StringBuilder( "v1" ) );
+        recman.commit();
+
+        Object published = fetchFromReader( recid );
+
+        recman.beginWrite();
+        StringBuilder copy = ( StringBuilder ) recman.fetch( recid );
+        assertNotSame( published, copy );
+
+        copy.append( "-modified" );
+        assertEquals( "v1", published.toString() );
+        recman.endWrite();
+    }
+
+
+    @Test
+    public void testDeleteAndRollback() throws Exception
+    {
+        long kept = recman.insert( "kept" );
+        recman.commit();
+
+        recman.beginWrite();
+        recman.delete( kept );
+        assertEquals( "kept", fetchFromReader( kept ) );
+
+        recman.rollback();
+        recman.endWrite();
+
+        assertEquals( "kept", fetchFromReader( kept ) );
+        assertEquals( "kept", recman.fetch( kept ) );
+    }
+
+
+    @Test
+    public void testUndoWrite() throws Exception
+    {
+        long updated = recman.insert( "v1" );
+        long deleted = recman.insert( "deleted" );
+        recman.commit();
+
+        // A completed write, not yet committed
+        recman.beginWrite();
+        recman.update( updated, "v2" );
+        recman.endWrite();
+
+        recman.beginWrite();
+        recman.update( updated, "v3" );
+        recman.delete( deleted );
+        recman.insert( "inserted" );
+        assertTrue( recman.hasChanges() );
+
+        recman.undoWrite();
+        recman.endWrite();
+
+        // Only the changes of the undone write are lost
+        assertEquals( "v2", fetchFromReader( updated ) );
+        assertEquals( "deleted", fetchFromReader( deleted ) );
+
+        recman.commit();
+        assertEquals( "v2", recman.getRecordManager().fetch( updated ) );
+        assertEquals( "deleted", recman.getRecordManager().fetch( deleted ) );
+    }
+
+
+    @Test
+    public void testConcurrentBrowse() throws Exception
+    {
+        BTree<Integer, Integer> tree = new BTree<>( recman, new IntegerComparator(), IntegerSerializer.INSTANCE,
+            IntegerSerializer.INSTANCE );
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            tree.insert( i * 2, i, true );
+        }
+
+        recman.commit();
+
+        AtomicBoolean done = new AtomicBoolean( false );
+        CountDownLatch started = new CountDownLatch( 4 );
+        Future<?>[] futures = new Future<?>[4];
+
+        for ( int r = 0; r < 4; r++ )
+        {
+            futures[r] = readers.submit( () ->
+            {
+                started.countDown();
+
+                while ( !done.get() )
+                {
+                    TupleBrowser<Integer, Integer> browser = tree.browse();
+                    Tuple<Integer, Integer> tuple = new Tuple<>();
+                    int previous = -1;
+                    int count = 0;
+
+                    while ( browser.getNext( tuple ) )
+                    {
+                        // The keys must always be sorted, and the initial keys always present
+                        assertTrue( tuple.getKey() > previous );
+                        previous = tuple.getKey();
+                        count++;
+                    }
+
+                    assertTrue( count >= 1000 );
+                }
+
+                return null;
+            } );
+        }
+
+        started.await( 10, TimeUnit.SECONDS );
+
+        // Insert the odd keys, one write per key
+        for ( int i = 0; i < 1000; i++ )
+        {
+            recman.beginWrite();
+            tree.insert( i * 2 + 1, i, true );
+            recman.endWrite();
+        }
+
+        recman.commit();
+        done.set( true );
+
+        for ( Future<?> future : futures )
+        {
+            future.get();
+        }
+
+        assertEquals( 2000, tree.size() );
+    }
+
+
+    @Test
+    public void testForeignWriterIsRejected() throws Exception
+    {
+        recman.beginWrite();
+
+        try
+        {
+            ExecutionException failure = assertThrows( ExecutionException.class,
+                () -> readers.submit( () -> recman.beginWrite() ).get() );
+            assertTrue( failure.getCause() instanceof IllegalStateException );
+        }
+        finally
+        {
+            recman.endWrite();
+        }
+
+        // Once the write is ended, another thread can write
+        readers.submit( () ->
+        {
+            recman.beginWrite();
+            recman.endWrite();
+
+            return null;
+        } ).get();
+    }
+
+
+    private Object fetchInSnapshot( long snapshotVersion, long recid ) throws IOException
+    {
+        Long previous = recman.enterSnapshot( snapshotVersion );
+
+        try
+        {
+            return recman.fetch( recid );
+        }
+        finally
+        {
+            recman.exitSnapshot( previous );
+        }
+    }
+
+
+    @Test
+    public void testSnapshotReadsItsVersion() throws Exception
+    {
+        long recid = recman.insert( "v1" );
+        recman.commit();
+
+        long first = recman.openSnapshot();
+
+        recman.beginWrite();
+        recman.update( recid, "v2" );
+        recman.endWrite();
+
+        long second = recman.openSnapshot();
+
+        recman.beginWrite();
+        recman.update( recid, "v3" );
+        recman.endWrite();
+
+        assertEquals( "v1", fetchInSnapshot( first, recid ) );
+        assertEquals( "v2", fetchInSnapshot( second, recid ) );
+        assertEquals( "v3", fetchFromReader( recid ) );
+
+        recman.closeSnapshot( first );
+        assertEquals( "v2", fetchInSnapshot( second, recid ) );
+
+        recman.closeSnapshot( second );
+        assertEquals( "v3", fetchFromReader( recid ) );
+    }
+
+
+    @Test
+    public void testDeletedRecordsAreFreedAfterTheSnapshots() throws Exception
+    {
+        long recid = recman.insert( "deleted" );
+        long other = recman.insert( "other" );
+        recman.commit();
+
+        long snapshot = recman.openSnapshot();
+
+        recman.beginWrite();
+        recman.delete( recid );
+        recman.endWrite();
+
+        // The snapshot may still read the record : it is not freed
+        assertEquals( "deleted", fetchInSnapshot( snapshot, recid ) );
+        assertEquals( "deleted", recman.getRecordManager().fetch( recid ) );
+
+        recman.closeSnapshot( snapshot );
+
+        // The next published write frees it
+        recman.beginWrite();
+        recman.update( other, "updated" );
+        recman.endWrite();
+
+        assertThrows( IOException.class, () -> recman.getRecordManager().fetch( recid ) );
+    }
+
+
+    @Test
+    public void testSnapshotBrowsesItsVersionOfTheTree() throws Exception
+    {
+        BTree<Integer, Integer> tree = new BTree<>( recman, new IntegerComparator(), IntegerSerializer.INSTANCE,
+            IntegerSerializer.INSTANCE );
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            tree.insert( i * 2, i, true );
+        }
+
+        recman.commit();
+
+        ReadSnapshot snapshot = ReadSnapshot.open( recman );
+        BTree<Integer, Integer> snapshotTree = snapshot.getBTree( tree.getRecordId(), t ->
+        {
+        } );
+        TupleBrowser<Integer, Integer> browser = snapshot.browse( snapshotTree );
+        Tuple<Integer, Integer> tuple = new Tuple<>();
+        int expected = 0;
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            assertTrue( browser.getNext( tuple ) );
+            assertEquals( expected, tuple.getKey() );
+            expected += 2;
+        }
+
+        // Insert the odd keys and remove the last even keys, splitting and deleting some pages
+        for ( int i = 0; i < 1000; i++ )
+        {
+            recman.beginWrite();
+            tree.insert( i * 2 + 1, i, true );
+
+            if ( i >= 500 )
+            {
+                tree.remove( i * 2 );
+            }
+
+            recman.endWrite();
+        }
+
+        recman.commit();
+
+        // The snapshot still browses the initial keys
+        while ( browser.getNext( tuple ) )
+        {
+            assertEquals( expected, tuple.getKey() );
+            expected += 2;
+        }
+
+        assertEquals( 2000, expected );
+        assertFalse( browser.getNext( tuple ) );
+        assertEquals( 1000, snapshotTree.size() );
+        snapshot.close();
+
+        // The tree has been modified
+        assertEquals( 1500, tree.size() );
+        assertEquals( Integer.valueOf( 0 ), fetchFromReader( tree, 1 ) );
+    }
+
+
+    private Integer fetchFromReader( BTree<Integer, Integer> tree, int key ) throws Exception
+    {
+        return readers.submit( () -> tree.find( key ) ).get();
+    }
+}
@@ -0,0 +1,520 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.csn.CsnFactory;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.FileUtils;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.DnFactory;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.api.partition.PartitionWriteTxn;
+import org.apache.directory.server.core.shared.DefaultDnFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+
+
+/**
+ * Tests the group commit of the JdbmPartition
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@Execution(ExecutionMode.SAME_THREAD)
+public class JdbmGroupCommitTest
+{
+    private static SchemaManager schemaManager;
+    private static DnFactory dnFactory;
+    private static CsnFactory csnFactory = new CsnFactory( 0 );
+
+    /** The temporary directory the files will be created in */
+    private Path tempDir;
+
+    /** Replaces the operation manager lock */
+    private final ReentrantLock operationLock = new ReentrantLock();
+
+
+    @BeforeAll
+    public static void setup() throws Exception
+    {
+        Path schemaDir = Files.createTempDirectory( JdbmGroupCommitTest.class.getSimpleName() + "_schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( schemaDir.toFile() );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaDir.resolve( "schema" ).toFile() );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        if ( !schemaManager.loadAllEnabled() )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        dnFactory = new DefaultDnFactory( schemaManager, 100 );
+    }
+
+
+    @BeforeEach
+    public void createDirectory() throws Exception
+    {
+        tempDir = Files.createTempDirectory( JdbmGroupCommitTest.class.getSimpleName() );
+    }
+
+
+    @AfterEach
+    public void deleteDirectory() throws Exception
+    {
+        FileUtils.deleteDirectory( tempDir.toFile() );
+    }
+
+
+    private JdbmPartition createPartition( boolean groupCommit ) throws Exception
+    {
+        return createPartition( groupCommit, 50L );
+    }
+
+
+    private JdbmPartition createPartition( boolean groupCommit, long groupCommitDelay ) throws Exception
+    {
+        JdbmPartition partition = new JdbmPartition( schemaManager, dnFactory );
+        partition.setId( "example" );
+        partition.setPartitionPath( tempDir.toUri() );
+        partition.setSuffixDn( new Dn( schemaManager, "dc=example,dc=com" ) );
+        partition.setSyncOnWrite( true );
+        partition.setGroupCommitEnabled( groupCommit );
+        partition.setGroupCommitDelay( groupCommitDelay );
+        partition.setGroupCommitMaxOperations( 1000 );
+        partition.initialize();
+
+        return partition;
+    }
+
+
+    private Entry createEntry( String dn ) throws Exception
+    {
+        Dn entryDn = new Dn( schemaManager, dn );
+
+        return new DefaultEntry( schemaManager, entryDn,
+            "objectClass: top",
+            "objectClass: organizationalUnit",
+            "ou", entryDn.getRdn().getValue(),
+            SchemaConstants.ENTRY_CSN_AT, csnFactory.newInstance().toString(),
+            SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString() );
+    }
+
+
+    /**
+     * Adds an entry the way the operation manager does : the entry is added and the
+     * transaction committed while holding the lock, then we wait for the data to be
+     * on disk.
+     */
+    private void add( JdbmPartition partition, String dn ) throws Exception
+    {
+        AddOperationContext addContext = new AddOperationContext( null, createEntry( dn ) );
+        addContext.setPartition( partition );
+        PartitionTxn partitionTxn;
+
+        operationLock.lock();
+
+        try
+        {
+            partitionTxn = partition.beginWriteTransaction();
+            addContext.setTransaction( partitionTxn );
+
+            try
+            {
+                partition.add( addContext );
+                partitionTxn.commit();
+            }
+            catch ( Exception e )
+            {
+                partitionTxn.abort();
+                throw e;
+            }
+        }
+        finally
+        {
+            operationLock.unlock();
+        }
+
+        ( ( PartitionWriteTxn ) partitionTxn ).awaitDurability();
+    }
+
+
+    private void assertExists( JdbmPartition partition, String dn ) throws Exception
+    {
+        PartitionTxn partitionTxn = partition.beginReadTransaction();
+
+        try
+        {
+            assertNotNull( partition.getEntryId( partitionTxn, new Dn( schemaManager, dn ) ), dn );
+        }
+        finally
+        {
+            partitionTxn.close();
+        }
+    }
+
+
+    @Test
+    public void testGroupCommit() throws Exception
+    {
+        JdbmPartition partition = createPartition( true );
+        add( partition, "dc=example,dc=com" );
+
+        AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+
+        for ( int t = 0; t < 8; t++ )
+        {
+            int thread = t;
+
+            threads.add( new Thread( () ->
+            {
+                try
+                {
+                    for ( int i = 0; i < 20; i++ )
+                    {
+                        add( partition, "ou=ou" + thread + "-" + i + ",dc=example,dc=com" );
+                    }
+                }
+                catch ( Exception e )
+                {
+                    failures.incrementAndGet();
+                }
+            } ) );
+        }
+
+        for ( Thread thread : threads )
+        {
+            thread.start();
+        }
+
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+
+        assertEquals( 0, failures.get() );
+
+        JdbmGroupCommitter groupCommitter = partition.getGroupCommitter();
+        assertEquals( 161L, groupCommitter.getOperationCount() );
+
+        // Many writes have been stored at once
+        assertTrue( groupCommitter.getCommitCount() < groupCommitter.getOperationCount() );
+
+        partition.destroy( null );
+
+        // The entries are still present once the partition is reopened
+        JdbmPartition reopened = createPartition( false );
+
+        PartitionTxn partitionTxn = reopened.beginReadTransaction();
+
+        try
+        {
+            assertEquals( 161L, reopened.getMasterTable().count( partitionTxn ) );
+        }
+        finally
+        {
+            partitionTxn.close();
+            reopened.destroy( null );
+        }
+    }
+
+
+    @Test
+    public void testCleanAbortKeepsPendingWrites() throws Exception
+    {
+        JdbmPartition partition = createPartition( true );
+
+        try
+        {
+            add( partition, "dc=example,dc=com" );
+
+            AddOperationContext addContext = new AddOperationContext( null,
+                createEntry( "ou=pending,dc=example,dc=com" ) );
+            addContext.setPartition( partition );
+            PartitionTxn pending = partition.beginWriteTransaction();
+            addContext.setTransaction( pending );
+            partition.add( addContext );
+            pending.commit();
+
+            // A transaction which has not modified anything can be aborted
+            // without losing the writes waiting for the commit
+            partition.beginWriteTransaction().abort();
+
+            ( ( PartitionWriteTxn ) pending ).awaitDurability();
+            assertExists( partition, "ou=pending,dc=example,dc=com" );
+        }
+        finally
+        {
+            partition.destroy( null );
+        }
+    }
+
+
+    @Test
+    public void testFailedWriteKeepsPendingWrites() throws Exception
+    {
+        JdbmPartition partition = createPartition( true );
+
+        try
+        {
+            add( partition, "dc=example,dc=com" );
+
+            AddOperationContext addContext = new AddOperationContext( null,
+                createEntry( "ou=pending,dc=example,dc=com" ) );
+            addContext.setPartition( partition );
+            PartitionTxn pending = partition.beginWriteTransaction();
+            addContext.setTransaction( pending );
+            partition.add( addContext );
+            pending.commit();
+
+            // An operation failing after having modified the partition only undoes its own changes
+            AddOperationContext failedContext = new AddOperationContext( null,
+                createEntry( "ou=failed,dc=example,dc=com" ) );
+            failedContext.setPartition( partition );
+            PartitionTxn failed = partition.beginWriteTransaction();
+            failedContext.setTransaction( failed );
+            partition.add( failedContext );
+            failed.abort();
+
+            ( ( PartitionWriteTxn ) pending ).awaitDurability();
+            assertExists( partition, "ou=pending,dc=example,dc=com" );
+
+            PartitionTxn partitionTxn = partition.beginReadTransaction();
+
+            try
+            {
+                assertNull( partition.getEntryId( partitionTxn, new Dn( schemaManager, "ou=failed,dc=example,dc=com" ) ) );
+                assertEquals( 2L, partition.getMasterTable().count( partitionTxn ) );
+            }
+            finally
+            {
+                partitionTxn.close();
+            }
+
+            // The undone entry can be added again
+            add( partition, "ou=failed,dc=example,dc=com" );
+            assertExists( partition, "ou=failed,dc=example,dc=com" );
+        }
+        finally
+        {
+            partition.destroy( null );
+        }
+
+        // Only the committed entries are stored
+        JdbmPartition reopened = createPartition( false );
+        PartitionTxn partitionTxn = reopened.beginReadTransaction();
+
+        try
+        {
+            assertEquals( 3L, reopened.getMasterTable().count( partitionTxn ) );
+        }
+        finally
+        {
+            partitionTxn.close();
+            reopened.destroy( null );
+        }
+    }
+
+
+    @Test
+    public void testFlushWaitsForTheWriteInProgress() throws Exception
+    {
+        JdbmPartition partition = createPartition( true );
+
+        try
+        {
+            add( partition, "dc=example,dc=com" );
+
+            AddOperationContext addContext = new AddOperationContext( null,
+                createEntry( "ou=inprogress,dc=example,dc=com" ) );
+            addContext.setPartition( partition );
+            PartitionTxn inProgress = partition.beginWriteTransaction();
+            addContext.setTransaction( inProgress );
+            partition.add( addContext );
+
+            // The commit can't be done while a write is in progress
+            JdbmGroupCommitter groupCommitter = partition.getGroupCommitter();
+            long commits = groupCommitter.getCommitCount();
+            Thread flusher = new Thread( () ->
+            {
+                try
+                {
+                    groupCommitter.flush();
+                }
+                catch ( Exception e )
+                {
+                    // Checked below
+                }
+            } );
+            flusher.start();
+            flusher.join( 200L );
+
+            assertTrue( flusher.isAlive() );
+            assertEquals( commits, groupCommitter.getCommitCount() );
+
+            inProgress.commit();
+            flusher.join();
+
+            assertTrue( groupCommitter.getCommitCount() > commits );
+            assertExists( partition, "ou=inprogress,dc=example,dc=com" );
+        }
+        finally
+        {
+            partition.destroy( null );
+        }
+    }
+
+
+    @Test
+    public void testAbortWhileAnotherWriterAwaitsDurability() throws Exception
+    {
+        // A long delay, so that the first writer is still waiting when the second one aborts
+        JdbmPartition partition = createPartition( true, 2000L );
+
+        try
+        {
+            add( partition, "dc=example,dc=com" );
+
+            CountDownLatch committed = new CountDownLatch( 1 );
+            AtomicReference<Exception> failure = new AtomicReference<>();
+            Thread durable = new Thread( () ->
+            {
+                try
+                {
+                    AddOperationContext addContext = new AddOperationContext( null,
+                        createEntry( "ou=durable,dc=example,dc=com" ) );
+                    addContext.setPartition( partition );
+                    PartitionTxn partitionTxn;
+
+                    operationLock.lock();
+
+                    try
+                    {
+                        partitionTxn = partition.beginWriteTransaction();
+                        addContext.setTransaction( partitionTxn );
+                        partition.add( addContext );
+                        partitionTxn.commit();
+                    }
+                    finally
+                    {
+                        operationLock.unlock();
+                    }
+
+                    committed.countDown();
+                    ( ( PartitionWriteTxn ) partitionTxn ).awaitDurability();
+                }
+                catch ( Exception e )
+                {
+                    failure.set( e );
+                    committed.countDown();
+                }
+            } );
+            durable.start();
+
+            assertTrue( committed.await( 10L, TimeUnit.SECONDS ) );
+
+            // Another writer modifies the partition and aborts, while the first one is waiting
+            AddOperationContext abortedContext = new AddOperationContext( null,
+                createEntry( "ou=aborted,dc=example,dc=com" ) );
+            abortedContext.setPartition( partition );
+
+            operationLock.lock();
+
+            try
+            {
+                PartitionTxn aborted = partition.beginWriteTransaction();
+                abortedContext.setTransaction( aborted );
+                partition.add( abortedContext );
+                aborted.abort();
+            }
+            finally
+            {
+                operationLock.unlock();
+            }
+
+            assertTrue( durable.isAlive() );
+
+            // The waiting writer is acknowledged by the next commit, which only contains its changes
+            durable.join();
+            assertNull( failure.get() );
+            assertExists( partition, "ou=durable,dc=example,dc=com" );
+
+            PartitionTxn partitionTxn = partition.beginReadTransaction();
+
+            try
+            {
+                assertNull( partition.getEntryId( partitionTxn, new Dn( schemaManager, "ou=aborted,dc=example,dc=com" ) ) );
+            }
+            finally
+            {
+                partitionTxn.close();
+            }
+        }
+        finally
+        {
+            partition.destroy( null );
+        }
+
+        JdbmPartition reopened = createPartition( false );
+        PartitionTxn partitionTxn = reopened.beginReadTransaction();
+
+        try
+        {
+            // Only the root and the durable entry have been stored
+            assertEquals( 2L, reopened.getMasterTable().count( partitionTxn ) );
+        }
+        finally
+        {
+            partitionTxn.close();
+            reopened.destroy( null );
+        }
+    }
+}
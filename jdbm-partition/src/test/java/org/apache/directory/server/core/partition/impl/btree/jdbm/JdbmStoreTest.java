@@ -70,6 +70,8 @@ import org.apache.directory.server.core.api.MockDirectoryService;
 import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.ModDnAva;
+import org.apache.directory.server.core.api.partition.CacheMemoryBudget;
+import org.apache.directory.server.core.api.partition.PartitionCacheStats;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.core.shared.DefaultDnFactory;
 import org.apache.directory.server.xdbm.Index;
@@ -273,6 +275,55 @@ public class JdbmStoreTest
     }
 
 
+    @Test
+    public void testCacheMemoryBudget() throws Exception
+    {
+        Path wkdir2 = Files.createTempDirectory( JdbmIndexTest.class.getSimpleName() + "_db3" );
+        CacheMemoryBudget budget = new CacheMemoryBudget( 1024L * 1024L );
+
+        JdbmPartition store2 = new JdbmPartition( schemaManager, dnFactory );
+        store2.setId( "example3" );
+        store2.setPartitionPath( wkdir2.toFile().toURI() );
+        store2.setSyncOnWrite( false );
+        store2.setSuffixDn( EXAMPLE_COM );
+        store2.setCacheMemoryBudget( budget );
+        store2.setCacheMemoryFloor( 64L * 1024L );
+        store2.initialize();
+
+        try
+        {
+            Entry entry = new DefaultEntry( schemaManager, EXAMPLE_COM,
+                "objectClass: top",
+                "objectClass: domain",
+                "dc: example",
+                SchemaConstants.ENTRY_CSN_AT, new CsnFactory( 0 ).newInstance().toString(),
+                SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString() );
+
+            AddOperationContext addContext = new AddOperationContext( null, entry );
+            addContext.setPartition( store2 );
+            addContext.setTransaction( store2.beginWriteTransaction() );
+            store2.add( addContext );
+
+            assertEquals( 1, budget.getCacheCount() );
+
+            // The entry cache is bounded by the size of the entries
+            PartitionCacheStats entryStats = store2.getCacheStats().get( 0 );
+            assertEquals( "entry", entryStats.getName() );
+            assertTrue( entryStats.isWeighted() );
+            assertEquals( 1024L * 1024L, entryStats.getMaximum() );
+            assertEquals( 4, store2.getCacheStats().size() );
+        }
+        finally
+        {
+            store2.destroy( partitionTxn );
+            FileUtils.deleteDirectory( wkdir2.toFile() );
+        }
+
+        // The memory has been given back
+        assertEquals( 0, budget.getCacheCount() );
+    }
+
+
     @Test
     public void testSimplePropertiesUnlocked() throws Exception
     {
@@ -26,9 +26,15 @@ import java.io.IOException;
 import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.csn.CsnFactory;
@@ -89,6 +95,12 @@ import org.slf4j.LoggerFactory;
  * <br><br>
  * In this exemple, the partition's suffix is <b>ou=example,ou=system</b>.
  * <br>
+ * The LDIF files are parsed in parallel when the partition is initialized, and the
+ * entries are then added to the underlying AVL partition, the parents first. When the
+ * snapshot is enabled, the parsed entries are also saved in a binary file next to the
+ * suffix directory, and loaded from it instead of parsing the LDIF files as long as
+ * none of them has changed, which is checked on their date, size and checksum.
+ * <br>
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -100,6 +112,18 @@ public class LdifPartition extends AbstractLdifPartition
     /** The directory into which the entries are stored */
     private File suffixDirectory;
 
+    /** The snapshot file extension, appended to the suffix directory name */
+    public static final String SNAPSHOT_EXTN = ".snapshot";
+
+    /** Tells if the loaded entries are saved in a snapshot */
+    private boolean snapshotEnabled;
+
+    /** The snapshot file, if it's enabled */
+    private File snapshotFile;
+
+    /** The number of threads parsing the LDIF files */
+    private int loadParallelism = Runtime.getRuntime().availableProcessors();
+
     /** Flags used for the getFile() method */
     private static final boolean CREATE = Boolean.TRUE;
     private static final boolean DELETE = Boolean.FALSE;
@@ -142,6 +166,49 @@ public class LdifPartition extends AbstractLdifPartition
     }
 
 
+    /**
+     * Enables or disables the snapshot of the loaded entries, used to avoid parsing
+     * the LDIF files on startup when none of them has changed. Must be set before the
+     * partition is initialized. Defaults to false.
+     *
+     * @param snapshotEnabled true to save and reload the entries
+     */
+    public void setSnapshotEnabled( boolean snapshotEnabled )
+    {
+        this.snapshotEnabled = snapshotEnabled;
+    }
+
+
+    /**
+     * @return true if the loaded entries are saved in a snapshot
+     */
+    public boolean isSnapshotEnabled()
+    {
+        return snapshotEnabled;
+    }
+
+
+    /**
+     * Sets the number of threads parsing the LDIF files when the partition is
+     * initialized. Defaults to the number of available processors.
+     *
+     * @param loadParallelism The number of threads
+     */
+    public void setLoadParallelism( int loadParallelism )
+    {
+        this.loadParallelism = loadParallelism;
+    }
+
+
+    /**
+     * @return The number of threads parsing the LDIF files
+     */
+    public int getLoadParallelism()
+    {
+        return loadParallelism;
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -169,6 +236,11 @@ public class LdifPartition extends AbstractLdifPartition
             String suffixDirName = getFileName( suffixDn );
             suffixDirectory = new File( partitionDir, suffixDirName );
 
+            if ( snapshotEnabled )
+            {
+                snapshotFile = new File( partitionDir, suffixDirName + SNAPSHOT_EXTN );
+            }
+
             super.doInit();
 
             // Create the context entry now, if it does not exists, or load the
@@ -315,6 +387,7 @@ public class LdifPartition extends AbstractLdifPartition
     @Override
     public void add( AddOperationContext addContext ) throws LdapException
     {
+        deleteSnapshot();
         super.add( addContext );
 
         addEntry( addContext.getEntry() );
@@ -327,6 +400,7 @@ public class LdifPartition extends AbstractLdifPartition
     @Override
     public Entry delete( PartitionTxn partitionTxn, String id ) throws LdapException
     {
+        deleteSnapshot();
         Entry deletedEntry = super.delete( partitionTxn, id );
 
         if ( deletedEntry != null )
@@ -358,6 +432,7 @@ public class LdifPartition extends AbstractLdifPartition
     @Override
     public void modify( ModifyOperationContext modifyContext ) throws LdapException
     {
+        deleteSnapshot();
         PartitionTxn partitionTxn = modifyContext.getTransaction();
         String id = getEntryId( partitionTxn, modifyContext.getDn() );
 
@@ -400,6 +475,7 @@ public class LdifPartition extends AbstractLdifPartition
     @Override
     public void move( MoveOperationContext moveContext ) throws LdapException
     {
+        deleteSnapshot();
         PartitionTxn partitionTxn = moveContext.getTransaction();
         Dn oldDn = moveContext.getDn();
         String id = getEntryId( partitionTxn, oldDn );
@@ -426,6 +502,7 @@ public class LdifPartition extends AbstractLdifPartition
     @Override
     public void moveAndRename( MoveAndRenameOperationContext moveAndRenameContext ) throws LdapException
     {
+        deleteSnapshot();
         PartitionTxn partitionTxn = moveAndRenameContext.getTransaction(); 
         Dn oldDn = moveAndRenameContext.getDn();
         String id = getEntryId( partitionTxn, oldDn );
@@ -453,6 +530,7 @@ public class LdifPartition extends AbstractLdifPartition
     @Override
     public void rename( RenameOperationContext renameContext ) throws LdapException
     {
+        deleteSnapshot();
         PartitionTxn partitionTxn = renameContext.getTransaction(); 
         Dn oldDn = renameContext.getDn();
         String entryId = getEntryId( partitionTxn, oldDn );
@@ -554,109 +632,281 @@ public class LdifPartition extends AbstractLdifPartition
      * replaced with some kind of bootstrapping the default config from a jar file and
      * write to the FS in LDIF format
      *
+     * The entries are read from the snapshot if it's enabled and still valid, otherwise
+     * the LDIF files are parsed.
+     *
      * @throws Exception
      */
-    private void loadEntries( File entryDir ) throws LdapException
+    private void loadEntries( File partitionDir ) throws LdapException
     {
-        LOG.debug( "Processing dir {}", entryDir.getName() );
+        Map<String, String> fileStates = null;
+        List<Entry> entries = null;
 
-        // First, load the entries
-        File[] entries = entryDir.listFiles( entryFilter );
+        if ( snapshotFile != null )
+        {
+            fileStates = LdifPartitionSnapshot.getFileStates( partitionDir, entryFilter );
+            entries = LdifPartitionSnapshot.read( snapshotFile, schemaManager, fileStates );
+        }
 
-        if ( ( entries != null ) && ( entries.length != 0 ) )
+        if ( entries == null )
         {
-            LdifReader ldifReader = new LdifReader( schemaManager );
+            entries = parseEntries( partitionDir );
 
-            for ( File entry : entries )
+            if ( fileStates != null )
             {
-                LOG.debug( "parsing ldif file {}", entry.getName() );
-                List<LdifEntry> ldifEntries = ldifReader.parseLdifFile( entry.getAbsolutePath() );
-                
                 try
                 {
-                    ldifReader.close();
+                    LdifPartitionSnapshot.write( snapshotFile, fileStates, entries );
                 }
                 catch ( IOException ioe )
                 {
-                    throw new LdapOtherException( ioe.getMessage(), ioe );
+                    LOG.warn( "Cannot write the LDIF partition snapshot {}", snapshotFile, ioe );
                 }
+            }
+        }
+        else
+        {
+            LOG.debug( "Loading {} entries from the snapshot {}", entries.size(), snapshotFile );
+        }
+
+        for ( Entry entry : entries )
+        {
+            loadEntry( entry );
+        }
+    }
 
-                if ( ( ldifEntries != null ) && !ldifEntries.isEmpty() )
+
+    /**
+     * Parses all the LDIF files in parallel.
+     *
+     * @param partitionDir The partition directory
+     * @return The parsed entries, the parents first
+     */
+    private List<Entry> parseEntries( File partitionDir ) throws LdapException
+    {
+        List<Entry> entries;
+        ForkJoinPool pool = new ForkJoinPool( Math.max( 1, loadParallelism ) );
+
+        try
+        {
+            entries = pool.invoke( new ParseDirectoryTask( partitionDir ) );
+        }
+        catch ( RuntimeException re )
+        {
+            // Get back the exception thrown by the parser
+            for ( Throwable cause = re; cause != null; cause = cause.getCause() )
+            {
+                if ( cause instanceof LdapException )
                 {
-                    // this ldif will have only one entry
-                    LdifEntry ldifEntry = ldifEntries.get( 0 );
-                    LOG.debug( "Adding entry {}", ldifEntry );
+                    throw ( LdapException ) cause;
+                }
+            }
 
-                    Entry serverEntry = new DefaultEntry( schemaManager, ldifEntry.getEntry() );
+            throw re;
+        }
+        finally
+        {
+            pool.shutdown();
+        }
 
-                    if ( !serverEntry.containsAttribute( SchemaConstants.ENTRY_CSN_AT ) )
-                    {
-                        serverEntry.put( SchemaConstants.ENTRY_CSN_AT, defaultCSNFactory.newInstance().toString() );
-                    }
+        // The CSN factory is not used concurrently
+        for ( Entry entry : entries )
+        {
+            if ( !entry.containsAttribute( SchemaConstants.ENTRY_CSN_AT ) )
+            {
+                entry.put( SchemaConstants.ENTRY_CSN_AT, defaultCSNFactory.newInstance().toString() );
+            }
 
-                    if ( !serverEntry.containsAttribute( SchemaConstants.ENTRY_UUID_AT ) )
-                    {
-                        serverEntry.put( SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString() );
-                    }
+            if ( !entry.containsAttribute( SchemaConstants.ENTRY_UUID_AT ) )
+            {
+                entry.put( SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString() );
+            }
+        }
 
-                    // call add on the wrapped partition not on the self
-                    AddOperationContext addContext = new AddOperationContext( null, serverEntry );
-                    PartitionTxn partitionTxn = beginWriteTransaction();
-                    
-                    try
-                    {
-                        addContext.setTransaction( partitionTxn );
-                        addContext.setPartition( this );
-                    
-                        super.add( addContext );
-                        
-                        partitionTxn.commit();
-                    }
-                    catch ( LdapException le )
-                    {
-                        try
-                        {
-                            partitionTxn.abort();
-                        }
-                        catch ( IOException ioe )
-                        {
-                            throw new LdapOtherException( ioe.getMessage(), ioe );
-                        }
-                        
-                        throw le;
-                    }
-                    catch ( IOException ioe )
-                    {
-                        try
-                        {
-                            partitionTxn.abort();
-                        }
-                        catch ( IOException ioe2 )
-                        {
-                            throw new LdapOtherException( ioe2.getMessage(), ioe2 );
-                        }
-                        
-                        throw new LdapOtherException( ioe.getMessage(), ioe );
-                    }
+        return entries;
+    }
+
+
+    /**
+     * Parses the LDIF files of a directory, and forks a task for each sub-directory. The
+     * entries of the directory come before the entries of its sub-directories, so the
+     * parents are added before their children.
+     */
+    private class ParseDirectoryTask extends RecursiveTask<List<Entry>>
+    {
+        private static final long serialVersionUID = 1L;
+
+        /** The directory to parse */
+        private final File entryDir;
+
+
+        ParseDirectoryTask( File entryDir )
+        {
+            this.entryDir = entryDir;
+        }
+
+
+        @Override
+        protected List<Entry> compute()
+        {
+            LOG.debug( "Processing dir {}", entryDir.getName() );
+
+            // First, the entries
+            File[] entryFiles = entryDir.listFiles( entryFilter );
+
+            if ( ( entryFiles == null ) || ( entryFiles.length == 0 ) )
+            {
+                // If we don't have ldif files, we won't have sub-directories
+                return Collections.emptyList();
+            }
+
+            List<ForkJoinTask<Entry>> entryTasks = new ArrayList<>( entryFiles.length );
+
+            for ( File entryFile : entryFiles )
+            {
+                entryTasks.add( new ParseFileTask( entryFile ).fork() );
+            }
+
+            // Then the sub-directories
+            File[] dirs = entryDir.listFiles( dirFilter );
+            List<ForkJoinTask<List<Entry>>> dirTasks = new ArrayList<>();
+
+            if ( dirs != null )
+            {
+                for ( File dir : dirs )
+                {
+                    dirTasks.add( new ParseDirectoryTask( dir ).fork() );
+                }
+            }
+
+            List<Entry> entries = new ArrayList<>();
+
+            for ( ForkJoinTask<Entry> entryTask : entryTasks )
+            {
+                Entry entry = entryTask.join();
+
+                if ( entry != null )
+                {
+                    entries.add( entry );
                 }
             }
 
+            for ( ForkJoinTask<List<Entry>> dirTask : dirTasks )
+            {
+                entries.addAll( dirTask.join() );
+            }
+
+            return entries;
         }
-        else
+    }
+
+
+    /**
+     * Parses a LDIF file, which contains a single entry
+     */
+    private class ParseFileTask extends RecursiveTask<Entry>
+    {
+        private static final long serialVersionUID = 1L;
+
+        /** The file to parse */
+        private final File entryFile;
+
+
+        ParseFileTask( File entryFile )
         {
-            // If we don't have ldif files, we won't have sub-directories
-            return;
+            this.entryFile = entryFile;
         }
 
-        // Second, recurse on the sub directories
-        File[] dirs = entryDir.listFiles( dirFilter );
 
-        if ( ( dirs != null ) && ( dirs.length != 0 ) )
+        @Override
+        protected Entry compute()
         {
-            for ( File f : dirs )
+            LOG.debug( "parsing ldif file {}", entryFile.getName() );
+
+            try ( LdifReader ldifReader = new LdifReader( schemaManager ) )
             {
-                loadEntries( f );
+                List<LdifEntry> ldifEntries = ldifReader.parseLdifFile( entryFile.getAbsolutePath() );
+
+                if ( ( ldifEntries == null ) || ldifEntries.isEmpty() )
+                {
+                    return null;
+                }
+
+                // this ldif will have only one entry
+                return new DefaultEntry( schemaManager, ldifEntries.get( 0 ).getEntry() );
+            }
+            catch ( LdapException le )
+            {
+                throw new IllegalStateException( "Cannot parse " + entryFile, le );
             }
+            catch ( IOException ioe )
+            {
+                throw new IllegalStateException( "Cannot parse " + entryFile,
+                    new LdapOtherException( ioe.getMessage(), ioe ) );
+            }
+        }
+    }
+
+
+    /**
+     * Adds a loaded entry to the underlying partition
+     */
+    private void loadEntry( Entry serverEntry ) throws LdapException
+    {
+        LOG.debug( "Adding entry {}", serverEntry.getDn() );
+
+        // call add on the wrapped partition not on the self
+        AddOperationContext addContext = new AddOperationContext( null, serverEntry );
+        PartitionTxn partitionTxn = beginWriteTransaction();
+
+        try
+        {
+            addContext.setTransaction( partitionTxn );
+            addContext.setPartition( this );
+
+            super.add( addContext );
+
+            partitionTxn.commit();
+        }
+        catch ( LdapException le )
+        {
+            try
+            {
+                partitionTxn.abort();
+            }
+            catch ( IOException ioe )
+            {
+                throw new LdapOtherException( ioe.getMessage(), ioe );
+            }
+
+            throw le;
+        }
+        catch ( IOException ioe )
+        {
+            try
+            {
+                partitionTxn.abort();
+            }
+            catch ( IOException ioe2 )
+            {
+                throw new LdapOtherException( ioe2.getMessage(), ioe2 );
+            }
+
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+    }
+
+
+    /**
+     * Deletes the snapshot when the partition is modified
+     */
+    private void deleteSnapshot()
+    {
+        File file = snapshotFile;
+
+        if ( ( file != null ) && file.exists() && !file.delete() )
+        {
+            LOG.warn( "Cannot delete the LDIF partition snapshot {}", file );
         }
     }
 
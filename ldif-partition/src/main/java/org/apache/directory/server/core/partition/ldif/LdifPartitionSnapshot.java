@@ -0,0 +1,302 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+
+package org.apache.directory.server.core.partition.ldif;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A binary snapshot of the entries loaded by a {@link LdifPartition}, used to avoid
+ * parsing the LDIF files when the partition is initialized again. The snapshot stores
+ * the last modification date of every LDIF file and directory of the partition, and the
+ * size and CRC32 of the content of every LDIF file : it's only used if none of them has
+ * changed, been added or been removed. The checksum catches the files rewritten with the
+ * same size within the resolution of the file system timestamps, at the cost of reading
+ * the files once, which is much cheaper than parsing them.
+ * <p>
+ * The snapshot has this format :
+ * <ul>
+ * <li>int : the format version</li>
+ * <li>int : the number of files, followed by their relative path and state</li>
+ * <li>int : the number of entries, followed by each entry, the parents first. An entry
+ * is stored as its Dn, its number of attributes, and each attribute OID and value</li>
+ * </ul>
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+final class LdifPartitionSnapshot
+{
+    /** A logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( LdifPartitionSnapshot.class );
+
+    /** The snapshot format version */
+    private static final int FORMAT_VERSION = 2;
+
+
+    private LdifPartitionSnapshot()
+    {
+    }
+
+
+    /**
+     * Gets the state of all the LDIF files and directories below a directory
+     *
+     * @param dir The partition directory
+     * @param entryFilter The filter selecting the LDIF files
+     * @return The state of each file, sorted by relative path, or null if a file can't be read
+     */
+    static Map<String, String> getFileStates( File dir, FileFilter entryFilter )
+    {
+        Map<String, String> fileStates = new TreeMap<>();
+
+        try
+        {
+            addFileStates( dir, "", entryFilter, fileStates );
+        }
+        catch ( IOException ioe )
+        {
+            LOG.warn( "Cannot compute the state of the LDIF files in {}", dir, ioe );
+
+            return null;
+        }
+
+        return fileStates;
+    }
+
+
+    private static void addFileStates( File dir, String path, FileFilter entryFilter,
+        Map<String, String> fileStates ) throws IOException
+    {
+        File[] files = dir.listFiles();
+
+        if ( files == null )
+        {
+            return;
+        }
+
+        for ( File file : files )
+        {
+            String filePath = path + '/' + file.getName();
+
+            if ( file.isDirectory() )
+            {
+                fileStates.put( filePath, file.lastModified() + ":d" );
+                addFileStates( file, filePath, entryFilter, fileStates );
+            }
+            else if ( entryFilter.accept( file ) )
+            {
+                fileStates.put( filePath, file.lastModified() + ":" + file.length() + ":" + checksum( file ) );
+            }
+        }
+    }
+
+
+    /**
+     * Computes the CRC32 of the content of a file
+     */
+    private static String checksum( File file ) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[8192];
+
+        try ( FileInputStream in = new FileInputStream( file ) )
+        {
+            int nbRead;
+
+            while ( ( nbRead = in.read( buffer ) ) != -1 )
+            {
+                crc.update( buffer, 0, nbRead );
+            }
+        }
+
+        return Long.toHexString( crc.getValue() );
+    }
+
+
+    /**
+     * Reads a snapshot
+     *
+     * @param file The snapshot file
+     * @param schemaManager The SchemaManager instance
+     * @param fileStates The current state of the LDIF files, or null if it's unknown
+     * @return The entries, the parents first, or null if there is no snapshot or if it's not valid anymore
+     */
+    static List<Entry> read( File file, SchemaManager schemaManager, Map<String, String> fileStates )
+    {
+        if ( ( fileStates == null ) || !file.exists() )
+        {
+            return null;
+        }
+
+        try ( ObjectInputStream in = new ObjectInputStream(
+            new BufferedInputStream( new FileInputStream( file ) ) ) )
+        {
+            if ( in.readInt() != FORMAT_VERSION )
+            {
+                LOG.info( "Ignoring the LDIF partition snapshot {} : unknown format", file );
+
+                return null;
+            }
+
+            int nbFiles = in.readInt();
+            Map<String, String> savedStates = new TreeMap<>();
+
+            for ( int i = 0; i < nbFiles; i++ )
+            {
+                String path = in.readUTF();
+                savedStates.put( path, in.readUTF() );
+            }
+
+            if ( !savedStates.equals( fileStates ) )
+            {
+                LOG.info( "Ignoring the LDIF partition snapshot {} : the LDIF files have changed", file );
+
+                return null;
+            }
+
+            int nbEntries = in.readInt();
+            List<Entry> entries = new ArrayList<>( nbEntries );
+
+            for ( int i = 0; i < nbEntries; i++ )
+            {
+                entries.add( readEntry( in, schemaManager ) );
+            }
+
+            return entries;
+        }
+        catch ( IOException | ClassNotFoundException | LdapException e )
+        {
+            LOG.warn( "Cannot read the LDIF partition snapshot {}", file, e );
+
+            return null;
+        }
+    }
+
+
+    /**
+     * Writes a snapshot
+     *
+     * @param file The snapshot file
+     * @param fileStates The state of the LDIF files the entries have been read from
+     * @param entries The entries, the parents first
+     * @throws IOException If the snapshot can't be written
+     */
+    static void write( File file, Map<String, String> fileStates, List<Entry> entries ) throws IOException
+    {
+        File tmpFile = new File( file.getParentFile(), file.getName() + ".tmp" );
+
+        try ( ObjectOutputStream out = new ObjectOutputStream(
+            new BufferedOutputStream( new FileOutputStream( tmpFile ) ) ) )
+        {
+            out.writeInt( FORMAT_VERSION );
+            out.writeInt( fileStates.size() );
+
+            for ( Map.Entry<String, String> fileState : fileStates.entrySet() )
+            {
+                out.writeUTF( fileState.getKey() );
+                out.writeUTF( fileState.getValue() );
+            }
+
+            out.writeInt( entries.size() );
+
+            for ( Entry entry : entries )
+            {
+                writeEntry( out, entry );
+            }
+        }
+
+        if ( file.exists() && !file.delete() )
+        {
+            throw new IOException( "Cannot delete " + file );
+        }
+
+        if ( !tmpFile.renameTo( file ) )
+        {
+            throw new IOException( "Cannot rename " + tmpFile + " to " + file );
+        }
+    }
+
+
+    /**
+     * Writes an entry : its Dn, and each attribute preceded by its OID, so that
+     * the AttributeType can be restored when it's read
+     */
+    private static void writeEntry( ObjectOutputStream out, Entry entry ) throws IOException
+    {
+        entry.getDn().writeExternal( out );
+        out.writeInt( entry.getAttributes().size() );
+
+        for ( Attribute attribute : entry.getAttributes() )
+        {
+            out.writeUTF( attribute.getAttributeType().getOid() );
+            attribute.writeExternal( out );
+        }
+    }
+
+
+    private static Entry readEntry( ObjectInputStream in, SchemaManager schemaManager )
+        throws IOException, ClassNotFoundException, LdapException
+    {
+        Entry entry = new DefaultEntry( schemaManager );
+
+        Dn dn = new Dn( schemaManager );
+        dn.readExternal( in );
+        entry.setDn( dn );
+
+        int nbAttributes = in.readInt();
+
+        for ( int i = 0; i < nbAttributes; i++ )
+        {
+            AttributeType attributeType = schemaManager.lookupAttributeTypeRegistry( in.readUTF() );
+            Attribute attribute = new DefaultAttribute( attributeType );
+            attribute.readExternal( in );
+
+            entry.add( attribute );
+        }
+
+        return entry;
+    }
+}
@@ -25,18 +25,29 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.entry.Attribute;
 import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapInvalidDnException;
 import org.apache.directory.api.ldap.model.exception.LdapOperationException;
 import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.ldif.ChangeType;
 import org.apache.directory.api.ldap.model.ldif.LdifEntry;
 import org.apache.directory.api.ldap.model.ldif.LdifReader;
 import org.apache.directory.api.ldap.model.ldif.LdifUtils;
@@ -60,6 +71,18 @@ import org.slf4j.LoggerFactory;
 
 /**
  * A Partition implementation backed by a single LDIF file.
+ * <p>
+ * By default, the whole file is rewritten after each modification. When the journal is
+ * enabled, the added, modified and deleted entries are instead appended as LDIF change
+ * records to a journal file, next to the LDIF file, and the journal is compacted into the
+ * LDIF file in the background once it contains enough records, and when the partition is
+ * destroyed. The renamed and moved entries are not journaled : they still rewrite the file.
+ * The in-memory entries are the reference : the journal is only read on startup, to
+ * replay the changes not compacted before a crash.
+ * <p>
+ * A compacted LDIF file starts with a <code># generation N</code> comment, and the journal
+ * with a <code># generation N + 1</code> comment : a journal which generation is not greater
+ * than the LDIF file's one has already been compacted, and is ignored.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -77,6 +100,48 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
     /** lock for serializing the operations on the backing LDIF file */
     private Object lock = new Object();
 
+    /** The journal file extension, appended to the LDIF file name */
+    public static final String JOURNAL_EXTN = ".journal";
+
+    /** The default number of journaled changes which triggers a compaction */
+    public static final int DEFAULT_COMPACTION_THRESHOLD = 10000;
+
+    /** The maximum number of doublings of the compaction threshold after failed compactions */
+    private static final int MAX_COMPACTION_BACKOFF = 10;
+
+    /** The comment starting the LDIF file and the journal */
+    private static final String GENERATION_HEADER = "# generation ";
+
+    /** The LDIF file */
+    private File partitionFile;
+
+    /** Tells if the changes are journaled */
+    private boolean journalEnabled;
+
+    /** The number of journaled changes which triggers a compaction */
+    private int compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+    /** The journal file, null if the changes are not journaled */
+    private RandomAccessFile journal;
+
+    /** The journal generation */
+    private long generation;
+
+    /** The number of changes in the journal */
+    private int journalSize;
+
+    /** The thread compacting the journal */
+    private ExecutorService compactionExecutor;
+
+    /** Tells if a compaction is already scheduled */
+    private boolean compactionScheduled;
+
+    /** The number of journaled changes which triggers the next compaction */
+    private long nextCompaction = DEFAULT_COMPACTION_THRESHOLD;
+
+    /** The number of compactions which have failed since the last successful one */
+    private int failedCompactions;
+
     private static final Logger LOG = LoggerFactory.getLogger( SingleFileLdifPartition.class );
 
 
@@ -102,7 +167,7 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
                 throw new IllegalArgumentException( "Partition path cannot be null" );
             }
 
-            File partitionFile = new File( getPartitionPath() );
+            partitionFile = new File( getPartitionPath() );
 
             if ( partitionFile.exists() && !partitionFile.isFile() )
             {
@@ -136,24 +201,39 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
 
             super.doInit();
 
-            loadEntries();
+            long fileGeneration = loadEntries();
+
+            initJournal( fileGeneration );
         }
     }
 
 
     /**
      * load the entries from the LDIF file if present
+     * 
+     * @return The generation of the LDIF file, 0 if it has never been compacted
      * @throws Exception
      */
-    private void loadEntries() throws LdapException
+    private long loadEntries() throws LdapException
     {
+        long fileGeneration = 0L;
+
+        try
+        {
+            fileGeneration = readGeneration( ldifFile );
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+
         try ( RandomAccessLdifReader parser = new RandomAccessLdifReader( schemaManager ) )
         {
             Iterator<LdifEntry> itr = parser.iterator();
     
             if ( !itr.hasNext() )
             {
-                return;
+                return fileGeneration;
             }
     
             LdifEntry ldifEntry = itr.next();
@@ -194,6 +274,378 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
         {
             throw new LdapOtherException( ioe.getMessage(), ioe );
         }
+
+        return fileGeneration;
+    }
+
+
+    /**
+     * Reads the generation comment at the beginning of the LDIF file or of the journal,
+     * and leaves the file positioned on the first entry.
+     *
+     * @param file The file to read
+     * @return The generation, or 0 if the file does not start with a generation comment
+     */
+    private static long readGeneration( RandomAccessFile file ) throws IOException
+    {
+        file.seek( 0L );
+        String line = file.readLine();
+
+        if ( ( line != null ) && line.startsWith( GENERATION_HEADER ) )
+        {
+            try
+            {
+                return Long.parseLong( line.substring( GENERATION_HEADER.length() ).trim() );
+            }
+            catch ( NumberFormatException nfe )
+            {
+                // Not one of our comments, fall through
+            }
+        }
+
+        file.seek( 0L );
+
+        return 0L;
+    }
+
+
+    /**
+     * Replays the journal which has not been compacted before the partition was
+     * destroyed, and opens a new journal if it is enabled.
+     *
+     * @param fileGeneration The generation of the LDIF file
+     */
+    private void initJournal( long fileGeneration ) throws LdapException
+    {
+        File journalFile = getJournalFile();
+        generation = fileGeneration;
+        boolean replayed = false;
+
+        if ( journalFile.exists() )
+        {
+            try ( RandomAccessFile previousJournal = new RandomAccessFile( journalFile, "r" ) )
+            {
+                long journalGeneration = readGeneration( previousJournal );
+
+                if ( journalGeneration > fileGeneration )
+                {
+                    replayed = replayJournal( previousJournal ) > 0;
+                    generation = journalGeneration;
+                }
+            }
+            catch ( IOException ioe )
+            {
+                throw new LdapOtherException( ioe.getMessage(), ioe );
+            }
+        }
+
+        synchronized ( lock )
+        {
+            try ( PartitionTxn partitionTxn = beginReadTransaction() )
+            {
+                if ( journalEnabled )
+                {
+                    compactionExecutor = Executors.newSingleThreadExecutor( runnable ->
+                    {
+                        Thread thread = new Thread( runnable, "ldif-compaction-" + getId() );
+                        thread.setDaemon( true );
+
+                        return thread;
+                    } );
+
+                    if ( replayed )
+                    {
+                        compact( partitionTxn );
+                    }
+                    else
+                    {
+                        openJournal( generation + 1 );
+                    }
+                }
+                else
+                {
+                    if ( replayed )
+                    {
+                        dirty = true;
+                        rewritePartitionData( partitionTxn );
+                    }
+
+                    if ( journalFile.exists() )
+                    {
+                        Files.delete( journalFile.toPath() );
+                    }
+                }
+            }
+            catch ( IOException ioe )
+            {
+                throw new LdapOtherException( ioe.getMessage(), ioe );
+            }
+        }
+    }
+
+
+    /**
+     * Applies the journaled changes on the loaded entries.
+     *
+     * @param journalFile The journal, positioned after its generation comment
+     * @return The number of replayed changes
+     */
+    private int replayJournal( RandomAccessFile journalFile ) throws IOException, LdapException
+    {
+        byte[] data = new byte[( int ) ( journalFile.length() - journalFile.getFilePointer() )];
+        journalFile.readFully( data );
+
+        // The records are separated by an empty line. The last one may be incomplete
+        // if the server has crashed while it was written
+        String[] records = new String( data, StandardCharsets.UTF_8 ).split( "\n\n" );
+        int replayed = 0;
+
+        try ( LdifReader reader = new LdifReader( schemaManager ) )
+        {
+            for ( int i = 0; i < records.length; i++ )
+            {
+                if ( Strings.isEmpty( records[i].trim() ) )
+                {
+                    continue;
+                }
+
+                List<LdifEntry> changes;
+
+                try
+                {
+                    changes = reader.parseLdif( records[i] + "\n" );
+                }
+                catch ( LdapException le )
+                {
+                    if ( i == records.length - 1 )
+                    {
+                        LOG.warn( "Ignoring the incomplete last record of the journal of the partition {}", getId() );
+
+                        break;
+                    }
+
+                    throw le;
+                }
+
+                for ( LdifEntry change : changes )
+                {
+                    replayChange( change );
+                    replayed++;
+                }
+            }
+        }
+
+        LOG.info( "Replayed {} changes from the journal of the partition {}", replayed, getId() );
+
+        return replayed;
+    }
+
+
+    /**
+     * Applies a journaled change on the in-memory entries
+     */
+    private void replayChange( LdifEntry change ) throws LdapException
+    {
+        Dn dn = new Dn( schemaManager, change.getDn() );
+
+        try ( PartitionTxn partitionTxn = beginWriteTransaction() )
+        {
+            if ( change.isChangeAdd() )
+            {
+                Entry entry = new DefaultEntry( schemaManager, change.getEntry() );
+                entry.setDn( dn );
+
+                AddOperationContext addContext = new AddOperationContext( null, entry );
+                addContext.setPartition( this );
+                addContext.setTransaction( partitionTxn );
+
+                super.add( addContext );
+
+                if ( ( contextEntry == null ) && dn.equals( suffixDn ) )
+                {
+                    contextEntry = entry;
+                }
+            }
+            else if ( change.isChangeModify() )
+            {
+                List<Modification> modifications = new ArrayList<>();
+
+                for ( Modification modification : change.getModifications() )
+                {
+                    modifications.add( new DefaultModification( schemaManager, modification ) );
+                }
+
+                super.modify( partitionTxn, dn, modifications.toArray( new Modification[]
+                    {} ) );
+            }
+            else if ( change.isChangeDelete() )
+            {
+                String id = getEntryId( partitionTxn, dn );
+
+                if ( id != null )
+                {
+                    super.delete( partitionTxn, id );
+                }
+            }
+            else
+            {
+                throw new LdapOtherException( "Unexpected change in the journal : " + change );
+            }
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+    }
+
+
+    private File getJournalFile()
+    {
+        return new File( partitionFile.getPath() + JOURNAL_EXTN );
+    }
+
+
+    /**
+     * Creates an empty journal. Must be called with the lock held.
+     *
+     * @param journalGeneration The new journal generation
+     */
+    private void openJournal( long journalGeneration ) throws IOException
+    {
+        if ( journal != null )
+        {
+            journal.close();
+        }
+
+        journal = new RandomAccessFile( getJournalFile(), "rwd" );
+        journal.setLength( 0L );
+        journal.write( Strings.getBytesUtf8( GENERATION_HEADER + journalGeneration + "\n" ) );
+        generation = journalGeneration;
+        journalSize = 0;
+        nextCompaction = compactionThreshold;
+    }
+
+
+    /**
+     * Records a change, either in the journal or by rewriting the whole LDIF file.
+     * Must be called with the lock held.
+     *
+     * @param partitionTxn The transaction to use
+     * @param change The change, or null if it can't be journaled
+     */
+    private void logChange( PartitionTxn partitionTxn, LdifEntry change ) throws LdapException
+    {
+        // If a change has not been journaled yet, the next ones can't be
+        // journaled either until the file has been rewritten
+        if ( ( journal == null ) || ( change == null ) || dirty )
+        {
+            dirty = true;
+            rewritePartitionData( partitionTxn );
+
+            return;
+        }
+
+        try
+        {
+            journal.write( Strings.getBytesUtf8( LdifUtils.convertToLdif( change ) + "\n" ) );
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+
+        journalSize++;
+
+        if ( ( journalSize >= nextCompaction ) && !compactionScheduled )
+        {
+            compactionScheduled = true;
+            compactionExecutor.execute( this::compactInBackground );
+        }
+    }
+
+
+    /**
+     * Compacts the journal, in the compaction thread. When the compaction fails, the
+     * changes are still journaled, and the number of changes which triggers the next
+     * attempt is doubled, so that the writes don't keep scheduling failing compactions.
+     */
+    private void compactInBackground()
+    {
+        synchronized ( lock )
+        {
+            compactionScheduled = false;
+
+            // The journal may have been compacted since by a rename or a move
+            if ( ( journal == null ) || !enableRewriting || ( journalSize < nextCompaction ) )
+            {
+                return;
+            }
+
+            try ( PartitionTxn partitionTxn = beginReadTransaction() )
+            {
+                compact( partitionTxn );
+            }
+            catch ( Exception e )
+            {
+                failedCompactions++;
+                nextCompaction = journalSize
+                    + ( ( long ) compactionThreshold << Math.min( failedCompactions, MAX_COMPACTION_BACKOFF ) );
+
+                LOG.error( "Failed to compact the journal of the partition {} ({} failures), next attempt after {} "
+                    + "journaled changes", getId(), failedCompactions, nextCompaction, e );
+            }
+        }
+    }
+
+
+    /**
+     * Writes all the entries in a new LDIF file, replacing the current one, and
+     * starts a new journal. Must be called with the lock held.
+     *
+     * @param partitionTxn The transaction to use
+     */
+    private void compact( PartitionTxn partitionTxn ) throws LdapException
+    {
+        File tmpFile = new File( partitionFile.getPath() + ".tmp" );
+        RandomAccessFile currentFile = ldifFile;
+
+        try
+        {
+            // Write the entries in a temporary file, with the current journal generation
+            try ( RandomAccessFile compactedFile = new RandomAccessFile( tmpFile, "rw" ) )
+            {
+                compactedFile.setLength( 0L );
+                compactedFile.write( Strings.getBytesUtf8( GENERATION_HEADER + generation + "\n" ) );
+                ldifFile = compactedFile;
+                writePartitionData( partitionTxn );
+                compactedFile.getFD().sync();
+            }
+            finally
+            {
+                ldifFile = currentFile;
+            }
+
+            // Replace the LDIF file : from now on, the journal is ignored on startup
+            ldifFile.close();
+
+            try
+            {
+                Files.move( tmpFile.toPath(), partitionFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE );
+            }
+            finally
+            {
+                ldifFile = new RandomAccessFile( partitionFile, "rws" );
+            }
+
+            openJournal( generation + 1 );
+            dirty = false;
+            failedCompactions = 0;
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
     }
 
 
@@ -220,8 +672,8 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
                 }
             }
 
-            dirty = true;
-            rewritePartitionData( addContext.getTransaction() );
+            logChange( addContext.getTransaction(), getAddChange( addContext.getTransaction(),
+                addContext.getEntry().getDn() ) );
         }
     }
 
@@ -252,8 +704,16 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
                 throw new LdapOperationException( e.getMessage(), e );
             }
 
-            dirty = true;
-            rewritePartitionData( partitionTxn );
+            LdifEntry change = new LdifEntry();
+            change.setChangeType( ChangeType.Modify );
+            change.setDn( modifyContext.getDn() );
+
+            for ( Modification modification : modifyContext.getModItems() )
+            {
+                change.addModification( modification );
+            }
+
+            logChange( partitionTxn, change );
         }
     }
 
@@ -267,8 +727,7 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
         synchronized ( lock )
         {
             super.rename( renameContext );
-            dirty = true;
-            rewritePartitionData( renameContext.getTransaction() );
+            logChange( renameContext.getTransaction(), null );
         }
     }
 
@@ -282,8 +741,7 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
         synchronized ( lock )
         {
             super.move( moveContext );
-            dirty = true;
-            rewritePartitionData( moveContext.getTransaction() );
+            logChange( moveContext.getTransaction(), null );
         }
     }
 
@@ -297,8 +755,7 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
         synchronized ( lock )
         {
             super.moveAndRename( opContext );
-            dirty = true;
-            rewritePartitionData( opContext.getTransaction() );
+            logChange( opContext.getTransaction(), null );
         }
     }
 
@@ -308,18 +765,57 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
     {
         synchronized ( lock )
         {
+            LdifEntry change = null;
+
+            if ( journal != null )
+            {
+                change = new LdifEntry();
+                change.setChangeType( ChangeType.Delete );
+                change.setDn( getEntryDn( partitionTxn, id ) );
+            }
+
             Entry deletedEntry = super.delete( partitionTxn, id );
-            dirty = true;
-            rewritePartitionData( partitionTxn );
+            logChange( partitionTxn, change );
 
             return deletedEntry;
         }
     }
 
 
+    /**
+     * Builds the journal record of an added entry, as stored in the partition
+     *
+     * @return The change, or null if the changes are not journaled
+     */
+    private LdifEntry getAddChange( PartitionTxn partitionTxn, Dn dn ) throws LdapException
+    {
+        if ( journal == null )
+        {
+            return null;
+        }
+
+        Entry entry = fetch( partitionTxn, getEntryId( partitionTxn, dn ) );
+
+        // Don't write the EntryDN attribute
+        entry.removeAttributes( entryDnAT );
+
+        LdifEntry change = new LdifEntry();
+        change.setChangeType( ChangeType.Add );
+        change.setDn( entry.getDn() );
+
+        for ( Attribute attribute : entry )
+        {
+            change.addAttribute( attribute );
+        }
+
+        return change;
+    }
+
+
     /**
      * writes the partition's data to the file if {@link #enableRewriting} is set to true
-     * and partition was modified since the last write or {@link #dirty} data. 
+     * and partition was modified since the last write or {@link #dirty} data. When the
+     * changes are journaled, the journal is compacted.
      * 
      * @throws LdapException
      */
@@ -332,10 +828,37 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
                 return;
             }
 
+            if ( journal != null )
+            {
+                compact( partitionTxn );
+
+                return;
+            }
+
             try
             {
                 ldifFile.setLength( 0 ); // wipe the file clean
+            }
+            catch ( IOException ioe )
+            {
+                throw new LdapOtherException( ioe.getMessage(), ioe );
+            }
+
+            writePartitionData( partitionTxn );
+            dirty = false;
+        }
+    }
+
 
+    /**
+     * writes all the entries of the partition at the current position of the LDIF file
+     */
+    private void writePartitionData( PartitionTxn partitionTxn ) throws LdapException
+    {
+        synchronized ( lock )
+        {
+            try
+            {
                 String suffixId = getEntryId( partitionTxn, suffixDn );
 
                 if ( suffixId == null )
@@ -359,8 +882,6 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
 
                     appendRecursive( partitionTxn, suffixId, suffixEntry.getNbChildren() );
                 }
-
-                dirty = false;
             }
             catch ( LdapException e )
             {
@@ -505,6 +1026,43 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
     @Override
     protected void doDestroy( PartitionTxn partitionTxn ) throws LdapException
     {
+        if ( compactionExecutor != null )
+        {
+            compactionExecutor.shutdown();
+
+            try
+            {
+                compactionExecutor.awaitTermination( 1, TimeUnit.MINUTES );
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Compact the journal, and remove it
+        synchronized ( lock )
+        {
+            if ( journal != null )
+            {
+                if ( ( journalSize > 0 ) || dirty )
+                {
+                    compact( partitionTxn );
+                }
+
+                try
+                {
+                    journal.close();
+                    journal = null;
+                    Files.delete( getJournalFile().toPath() );
+                }
+                catch ( IOException ioe )
+                {
+                    throw new LdapOtherException( ioe.getMessage(), ioe );
+                }
+            }
+        }
+
         super.doDestroy( partitionTxn );
         
         try
@@ -533,4 +1091,61 @@ public class SingleFileLdifPartition extends AbstractLdifPartition
         // save data if found dirty 
         rewritePartitionData( partitionTxn );
     }
+
+
+    /**
+     * Enables or disables the journal. When it's enabled, the added, modified and deleted
+     * entries are appended to a journal instead of rewriting the whole LDIF file, and the
+     * journal is compacted into the LDIF file in the background. Must be set before the
+     * partition is initialized. Defaults to false.
+     *
+     * @param journalEnabled true to journal the changes
+     */
+    public void setJournalEnabled( boolean journalEnabled )
+    {
+        this.journalEnabled = journalEnabled;
+    }
+
+
+    /**
+     * @return true if the changes are journaled
+     */
+    public boolean isJournalEnabled()
+    {
+        return journalEnabled;
+    }
+
+
+    /**
+     * Sets the number of journaled changes which triggers a compaction of the journal
+     * into the LDIF file. Defaults to {@link #DEFAULT_COMPACTION_THRESHOLD}.
+     *
+     * @param compactionThreshold The number of changes
+     */
+    public void setCompactionThreshold( int compactionThreshold )
+    {
+        this.compactionThreshold = compactionThreshold;
+        nextCompaction = compactionThreshold;
+    }
+
+
+    /**
+     * @return The number of journaled changes which triggers a compaction
+     */
+    public int getCompactionThreshold()
+    {
+        return compactionThreshold;
+    }
+
+
+    /**
+     * @return The number of compactions which have failed since the last successful one
+     */
+    public int getFailedCompactions()
+    {
+        synchronized ( lock )
+        {
+            return failedCompactions;
+        }
+    }
 }
@@ -28,6 +28,7 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
@@ -772,6 +773,123 @@ public class LdifPartitionTest
     }
 
 
+    /**
+     * Test that the entries are loaded again, from the LDIF files and then from
+     * the snapshot, and that the snapshot is deleted when the partition is modified
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testReloadWithSnapshot() throws Exception
+    {
+        injectEntries();
+        partition.destroy( partition.beginWriteTransaction() );
+
+        File snapshotFile = new File( wkdir, "ou=test,ou=system" + LdifPartition.SNAPSHOT_EXTN );
+        String[] dns =
+            {
+                "ou=test,ou=system",
+                "dc=child1,ou=test,ou=system",
+                "dc=child2,ou=test,ou=system",
+                "dc=grandChild11,dc=child1,ou=test,ou=system",
+                "dc=grandChild12,dc=child1,ou=test,ou=system",
+                "dc=greatGrandChild111,dc=grandChild11,dc=child1,ou=test,ou=system"
+        };
+
+        // The first time, the LDIF files are parsed and the snapshot is written
+        for ( int i = 0; i < 2; i++ )
+        {
+            partition = new LdifPartition( schemaManager, dnFactory );
+            partition.setId( "test-ldif" );
+            partition.setSuffixDn( new Dn( schemaManager, "ou=test,ou=system" ) );
+            partition.setSchemaManager( schemaManager );
+            partition.setPartitionPath( wkdir.toURI() );
+            partition.setSnapshotEnabled( true );
+            partition.setLoadParallelism( 4 );
+            partition.initialize();
+
+            assertTrue( snapshotFile.exists() );
+
+            for ( String dn : dns )
+            {
+                assertNotNull( partition.getEntryId( partition.beginReadTransaction(), new Dn( schemaManager, dn ) ) );
+            }
+
+            if ( i == 0 )
+            {
+                partition.destroy( partition.beginWriteTransaction() );
+            }
+        }
+
+        Entry entry = createEntry( "dc=child3,ou=test,ou=system" );
+        entry.put( "ObjectClass", "top", "domain" );
+        entry.put( "dc", "child3" );
+
+        AddOperationContext addContext = new AddOperationContext( null, entry );
+        addContext.setPartition( partition );
+        addContext.setTransaction( partition.beginWriteTransaction() );
+
+        partition.add( addContext );
+
+        assertFalse( snapshotFile.exists() );
+    }
+
+
+    /**
+     * Test that the snapshot is not used when a LDIF file has been rewritten with
+     * the same size and the same modification date
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSnapshotIgnoredWhenContentChanges() throws Exception
+    {
+        CoreSession session = injectEntries();
+        partition.destroy( partition.beginWriteTransaction() );
+
+        File snapshotFile = new File( wkdir, "ou=test,ou=system" + LdifPartition.SNAPSHOT_EXTN );
+        partition = createSnapshotPartition();
+        assertTrue( snapshotFile.exists() );
+        partition.destroy( partition.beginWriteTransaction() );
+
+        // Rewrite the entry with the same size, and restore its modification date
+        Path ldifFile = new File( wkdir, "ou=test,ou=system/dc=child1.ldif" ).toPath();
+        long lastModified = ldifFile.toFile().lastModified();
+        String content = new String( Files.readAllBytes( ldifFile ), StandardCharsets.UTF_8 );
+        String newContent = content.replace( "dc: child1", "dc: Child1" );
+        assertFalse( content.equals( newContent ) );
+        Files.write( ldifFile, newContent.getBytes( StandardCharsets.UTF_8 ) );
+        assertTrue( ldifFile.toFile().setLastModified( lastModified ) );
+
+        partition = createSnapshotPartition();
+
+        LookupOperationContext lookupContext = new LookupOperationContext( session,
+            new Dn( schemaManager, "dc=child1,ou=test,ou=system" ) );
+        lookupContext.setPartition( partition );
+
+        try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
+        {
+            lookupContext.setTransaction( partitionTxn );
+
+            assertEquals( "Child1", partition.lookup( lookupContext ).get( "dc" ).getString() );
+        }
+    }
+
+
+    private LdifPartition createSnapshotPartition() throws Exception
+    {
+        LdifPartition snapshotPartition = new LdifPartition( schemaManager, dnFactory );
+        snapshotPartition.setId( "test-ldif" );
+        snapshotPartition.setSuffixDn( new Dn( schemaManager, "ou=test,ou=system" ) );
+        snapshotPartition.setSchemaManager( schemaManager );
+        snapshotPartition.setPartitionPath( wkdir.toURI() );
+        snapshotPartition.setSnapshotEnabled( true );
+        snapshotPartition.initialize();
+
+        return snapshotPartition;
+    }
+
+
     private CoreSession injectEntries() throws Exception
     {
         Dn adminDn = new Dn( schemaManager, "uid=admin,ou=system" );
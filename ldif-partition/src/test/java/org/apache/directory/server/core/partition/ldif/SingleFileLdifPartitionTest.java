@@ -241,6 +241,13 @@ public class SingleFileLdifPartitionTest
      * @throws Exception
      */
     private SingleFileLdifPartition createPartition( String fileName, boolean truncate ) throws Exception
+    {
+        return createPartition( fileName, truncate, false );
+    }
+
+
+    private SingleFileLdifPartition createPartition( String fileName, boolean truncate, boolean journalEnabled )
+        throws Exception
     {
         if ( fileName == null )
         {
@@ -260,6 +267,7 @@ public class SingleFileLdifPartitionTest
         partition.setPartitionPath( new File( fileName ).toURI() );
         partition.setSuffixDn( new Dn( schemaManager, "ou=test,ou=system" ) );
         partition.setSchemaManager( schemaManager );
+        partition.setJournalEnabled( journalEnabled );
         partition.initialize();
 
         return partition;
@@ -1152,6 +1160,162 @@ public class SingleFileLdifPartitionTest
     }
 
 
+    /**
+     * Test that the journaled changes are replayed if the journal has not been
+     * compacted, and that the journal is compacted when the partition is destroyed
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testJournal() throws Exception
+    {
+        partition = createPartition( null, true, true );
+
+        AddOperationContext addCtx = new AddOperationContext( mockSession );
+        addCtx.setEntry( contextEntry );
+        addCtx.setPartition( partition );
+        addCtx.setTransaction( partition.beginWriteTransaction() );
+
+        partition.add( addCtx );
+
+        Entry entry1 = createEntry( "cn=test,ou=test,ou=system" );
+        entry1.put( "ObjectClass", "top", "person" );
+        entry1.put( "cn", "test" );
+        addCtx.setEntry( entry1 );
+
+        partition.add( addCtx );
+
+        Entry entry2 = createEntry( "cn=test1,cn=test,ou=test,ou=system" );
+        entry2.put( "ObjectClass", "top", "person" );
+        entry2.put( "cn", "test1" );
+        addCtx.setEntry( entry2 );
+
+        partition.add( addCtx );
+
+        ModifyOperationContext modOpCtx = new ModifyOperationContext( mockSession );
+        modOpCtx.setEntry( new ClonedServerEntry( entry1 ) );
+        modOpCtx.setDn( entry1.getDn() );
+
+        List<Modification> modItems = new ArrayList<Modification>();
+        Attribute attribute = new DefaultAttribute( schemaManager.lookupAttributeTypeRegistry( "description" ) );
+        attribute.add( "desc of entry1" );
+        modItems.add( new DefaultModification( ModificationOperation.ADD_ATTRIBUTE, attribute ) );
+        modOpCtx.setModItems( modItems );
+
+        partition.modify( modOpCtx );
+        Entry modifiedEntry1 = modOpCtx.getAlteredEntry();
+
+        DeleteOperationContext delCtx = new DeleteOperationContext( mockSession );
+        delCtx.setDn( entry2.getDn() );
+        delCtx.setPartition( partition );
+        delCtx.setTransaction( partition.beginWriteTransaction() );
+
+        partition.delete( delCtx );
+
+        // The LDIF file has not been rewritten
+        assertEquals( 0L, ldifFileInUse.length() );
+
+        File journalFile = new File( ldifFileInUse.getAbsolutePath() + SingleFileLdifPartition.JOURNAL_EXTN );
+        assertTrue( journalFile.exists() );
+
+        // Simulate a crash : load a copy of the files before the journal is compacted
+        File crashedFile = folder.resolve( "crashed.ldif" ).toFile();
+        Files.copy( ldifFileInUse.toPath(), crashedFile.toPath() );
+        Files.copy( journalFile.toPath(),
+            new File( crashedFile.getAbsolutePath() + SingleFileLdifPartition.JOURNAL_EXTN ).toPath() );
+
+        SingleFileLdifPartition crashedPartition = createPartition( crashedFile.getAbsolutePath(), false, true );
+        assertExists( crashedPartition, contextEntry );
+        assertExists( crashedPartition, modifiedEntry1 );
+        assertNotExists( crashedPartition, entry2 );
+        crashedPartition.destroy( crashedPartition.beginWriteTransaction() );
+
+        // A clean shutdown compacts and removes the journal
+        partition = reloadPartition();
+        assertFalse( journalFile.exists() );
+        assertExists( partition, contextEntry );
+        assertExists( partition, modifiedEntry1 );
+        assertNotExists( partition, entry2 );
+    }
+
+
+    /**
+     * Test that a failed compaction is only attempted again after more changes
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testFailedCompactionBackoff() throws Exception
+    {
+        // The compacted file can't be written, as its path is a directory
+        File tmpFile = new File( ldifFileInUse.getAbsolutePath() + ".tmp" );
+        assertTrue( tmpFile.mkdir() );
+
+        RandomAccessFile rf = new RandomAccessFile( ldifFileInUse, "rws" );
+        rf.setLength( 0 );
+        rf.close();
+
+        partition = new SingleFileLdifPartition( schemaManager, dnFactory );
+        partition.setId( "test-ldif" );
+        partition.setPartitionPath( ldifFileInUse.toURI() );
+        partition.setSuffixDn( new Dn( schemaManager, "ou=test,ou=system" ) );
+        partition.setSchemaManager( schemaManager );
+        partition.setJournalEnabled( true );
+        partition.setCompactionThreshold( 2 );
+        partition.initialize();
+
+        AddOperationContext addCtx = new AddOperationContext( mockSession );
+        addCtx.setEntry( contextEntry );
+        addCtx.setPartition( partition );
+        addCtx.setTransaction( partition.beginWriteTransaction() );
+
+        partition.add( addCtx );
+        addChild( addCtx, 1 );
+        waitForFailedCompactions( 1 );
+
+        // The next attempt is after 4 more changes
+        addChild( addCtx, 2 );
+        addChild( addCtx, 3 );
+        addChild( addCtx, 4 );
+        Thread.sleep( 100L );
+        assertEquals( 1, partition.getFailedCompactions() );
+
+        addChild( addCtx, 5 );
+        waitForFailedCompactions( 2 );
+
+        // A clean shutdown compacts the journal once the file can be written
+        assertTrue( tmpFile.delete() );
+        partition = reloadPartition();
+
+        File journalFile = new File( ldifFileInUse.getAbsolutePath() + SingleFileLdifPartition.JOURNAL_EXTN );
+        assertFalse( journalFile.exists() );
+        assertExists( partition, contextEntry );
+        assertExists( partition, "cn=child5,ou=test,ou=system" );
+    }
+
+
+    private void addChild( AddOperationContext addCtx, int i ) throws Exception
+    {
+        Entry entry = createEntry( "cn=child" + i + ",ou=test,ou=system" );
+        entry.put( "ObjectClass", "top", "person" );
+        entry.put( "cn", "child" + i );
+        addCtx.setEntry( entry );
+
+        partition.add( addCtx );
+    }
+
+
+    private void waitForFailedCompactions( int failedCompactions ) throws Exception
+    {
+        for ( int i = 0; ( i < 100 ) && ( partition.getFailedCompactions() < failedCompactions ); i++ )
+        {
+            Thread.sleep( 20L );
+        }
+
+        assertEquals( failedCompactions, partition.getFailedCompactions() );
+    }
+
+
     /**
      * An important test to check the stability of the partition
      * under high concurrency
@@ -67,7 +67,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.github.benmanes.caffeine.cache.Cache;
-import com.github.benmanes.caffeine.cache.Caffeine;
 
 
 /**
@@ -148,7 +147,10 @@ public class MavibotPartition extends AbstractBTreePartition
             EvaluatorBuilder evaluatorBuilder = new EvaluatorBuilder( this, schemaManager );
             CursorBuilder cursorBuilder = new CursorBuilder( this, evaluatorBuilder );
 
-            setSearchEngine( new DefaultSearchEngine( this, cursorBuilder, evaluatorBuilder, getOptimizer() ) );
+            DefaultSearchEngine searchEngine = new DefaultSearchEngine( this, cursorBuilder, evaluatorBuilder,
+                getOptimizer() );
+            searchEngine.setCandidateSetLimit( candidateSetLimit );
+            setSearchEngine( searchEngine );
 
             // Create the underlying directories (only if needed)
             File partitionDir = new File( getPartitionPath() );
@@ -229,7 +231,7 @@ public class MavibotPartition extends AbstractBTreePartition
                         deleteUnusedIndexFiles( allIndices, allIndexDbFiles );
             */
 
-            entryCache = Caffeine.newBuilder().maximumSize( cacheSize ).build();
+            entryCache = createEntryCache();
 
             // We are done !
             initialized = true;
@@ -265,6 +267,7 @@ public class MavibotPartition extends AbstractBTreePartition
                 + "Will create new MavibotIndex using copied configuration parameters.", index );
             mavibotIndex = new MavibotIndex( index.getAttributeId(), true );
             mavibotIndex.setCacheSize( index.getCacheSize() );
+            mavibotIndex.setSubstringIndexed( index.isSubstringIndexed() );
             mavibotIndex.setWkDirPath( index.getWkDirPath() );
         }
 
@@ -258,6 +258,7 @@ public class MavibotPartition extends AbstractBTreePartition
                 + "Will create new MavibotIndex using copied configuration parameters.", index );
             mavibotIndex = new MavibotIndex( index.getAttributeId(), true );
             mavibotIndex.setCacheSize( index.getCacheSize() );
+            mavibotIndex.setSubstringIndexed( index.isSubstringIndexed() );
             mavibotIndex.setWkDirPath( index.getWkDirPath() );
         }
 
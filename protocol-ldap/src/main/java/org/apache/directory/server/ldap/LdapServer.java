@@ -174,6 +174,15 @@ public class LdapServer extends DirectoryBackedService
     /** The maximum size for an incoming PDU */
     private int maxPDUSize = Integer.MAX_VALUE;
 
+    /** The size of a session write queue, in bytes, above which search results are paused. 0 means no limit */
+    private long searchResultsHighWaterMark = 0L;
+
+    /** The size of a session write queue, in bytes, below which paused search results are resumed */
+    private long searchResultsLowWaterMark = 0L;
+
+    /** The number of search results encoded and written in one single buffer */
+    private int searchResultsBatchSize = 1;
+
     /** If LDAPS is activated : the external Keystore file, if defined */
     private String keystoreFile;
 
@@ -1705,6 +1714,83 @@ public class LdapServer extends DirectoryBackedService
     }
 
 
+    /**
+     * @return The size of a session write queue, in bytes, above which search results are paused
+     */
+    public long getSearchResultsHighWaterMark()
+    {
+        return searchResultsHighWaterMark;
+    }
+
+
+    /**
+     * Set the size of a session write queue above which the search results are not
+     * read from the backend anymore, until the client has consumed enough of them.
+     *
+     * @param searchResultsHighWaterMark A number of bytes. A negative or null value
+     * disables the flow control
+     */
+    public void setSearchResultsHighWaterMark( long searchResultsHighWaterMark )
+    {
+        if ( searchResultsHighWaterMark < 0 )
+        {
+            searchResultsHighWaterMark = 0L;
+        }
+
+        this.searchResultsHighWaterMark = searchResultsHighWaterMark;
+    }
+
+
+    /**
+     * @return The size of a session write queue, in bytes, below which paused search results are resumed
+     */
+    public long getSearchResultsLowWaterMark()
+    {
+        return searchResultsLowWaterMark;
+    }
+
+
+    /**
+     * Set the size of a session write queue below which paused search results are resumed.
+     *
+     * @param searchResultsLowWaterMark A number of bytes, lower than the high-water mark
+     */
+    public void setSearchResultsLowWaterMark( long searchResultsLowWaterMark )
+    {
+        if ( searchResultsLowWaterMark < 0 )
+        {
+            searchResultsLowWaterMark = 0L;
+        }
+
+        this.searchResultsLowWaterMark = searchResultsLowWaterMark;
+    }
+
+
+    /**
+     * @return The number of search results encoded and written in one single buffer
+     */
+    public int getSearchResultsBatchSize()
+    {
+        return searchResultsBatchSize;
+    }
+
+
+    /**
+     * Set the number of search results encoded and written in one single buffer.
+     *
+     * @param searchResultsBatchSize A number of entries. A value below 2 disables batching
+     */
+    public void setSearchResultsBatchSize( int searchResultsBatchSize )
+    {
+        if ( searchResultsBatchSize < 1 )
+        {
+            searchResultsBatchSize = 1;
+        }
+
+        this.searchResultsBatchSize = searchResultsBatchSize;
+    }
+
+
     /**
      * @return the number of seconds pinger thread sleeps between subsequent pings
      */
@@ -0,0 +1,246 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.handlers;
+
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.asn1.EncoderException;
+import org.apache.directory.api.asn1.util.Asn1Buffer;
+import org.apache.directory.api.ldap.codec.api.LdapApiService;
+import org.apache.directory.api.ldap.codec.api.LdapEncoder;
+import org.apache.directory.api.ldap.model.message.AbandonableRequest;
+import org.apache.directory.api.ldap.model.message.Response;
+import org.apache.directory.server.ldap.LdapServer;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.session.IoSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Writes the search results to a session, with flow control.
+ * <p>
+ * When the number of bytes waiting in the session write queue is above the
+ * LdapServer search results high-water mark, writing is paused until the queue
+ * has been drained below the low-water mark, so that a slow client does not
+ * make the server buffer the whole result set. As the cursor is not read while
+ * writing is paused, the memory used by a search is bounded.
+ * <p>
+ * When the batch size is above 1, the responses are encoded here and several
+ * of them are written as a single buffer, which reduces the number of writes
+ * on big searches. The pending responses must be written using {@link #flush()}
+ * before the SearchResultDone is sent.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SearchResultWriter
+{
+    /** The logger */
+    private static final Logger LOG = LoggerFactory.getLogger( SearchResultWriter.class );
+
+    /** The delay between two checks of the write queue when writing is paused */
+    private static final long PAUSE_CHECK_DELAY = 10L;
+
+    /** The session the results are written to */
+    private final IoSession ioSession;
+
+    /** The request being processed */
+    private final AbandonableRequest request;
+
+    /** The LDAP codec used to encode the batched responses */
+    private final LdapApiService codec;
+
+    /** The write queue size in bytes above which writing is paused */
+    private final long highWaterMark;
+
+    /** The write queue size in bytes below which writing is resumed */
+    private final long lowWaterMark;
+
+    /** The number of responses written in one buffer */
+    private final int batchSize;
+
+    /** The buffer used to encode the responses */
+    private Asn1Buffer asn1Buffer;
+
+    /** The buffer containing the pending encoded responses */
+    private IoBuffer pending;
+
+    /** The number of responses in the pending buffer */
+    private int pendingCount;
+
+    /** The last write done on the session */
+    private WriteFuture lastWrite;
+
+
+    /**
+     * Creates a new instance of SearchResultWriter, using the LdapServer settings.
+     *
+     * @param ldapServer The LdapServer instance
+     * @param ioSession The session the results are written to
+     * @param request The search request
+     */
+    public SearchResultWriter( LdapServer ldapServer, IoSession ioSession, AbandonableRequest request )
+    {
+        this( ioSession, request, ldapServer.getDirectoryService().getLdapCodecService(),
+            ldapServer.getSearchResultsHighWaterMark(), ldapServer.getSearchResultsLowWaterMark(),
+            ldapServer.getSearchResultsBatchSize() );
+    }
+
+
+    /**
+     * Creates a new instance of SearchResultWriter.
+     *
+     * @param ioSession The session the results are written to
+     * @param request The search request
+     * @param codec The LDAP codec used to encode the batched responses
+     * @param highWaterMark The write queue size in bytes above which writing is paused. 0 disables flow control
+     * @param lowWaterMark The write queue size in bytes below which writing is resumed
+     * @param batchSize The number of responses written in one buffer
+     */
+    public SearchResultWriter( IoSession ioSession, AbandonableRequest request, LdapApiService codec,
+        long highWaterMark, long lowWaterMark, int batchSize )
+    {
+        this.ioSession = ioSession;
+        this.request = request;
+        this.codec = codec;
+        this.highWaterMark = highWaterMark;
+        this.lowWaterMark = Math.min( lowWaterMark, highWaterMark );
+        this.batchSize = Math.max( batchSize, 1 );
+    }
+
+
+    /**
+     * Writes a response, or adds it to the pending batch. This call blocks while
+     * the session write queue is above the high-water mark.
+     *
+     * @param response The response to write
+     * @throws EncoderException If the response can't be encoded
+     * @throws InterruptedException If the thread is interrupted while writing is paused
+     */
+    public void write( Response response ) throws EncoderException, InterruptedException
+    {
+        if ( batchSize == 1 )
+        {
+            waitForWriteQueue();
+            lastWrite = ioSession.write( response );
+
+            return;
+        }
+
+        if ( asn1Buffer == null )
+        {
+            asn1Buffer = new Asn1Buffer();
+        }
+
+        try
+        {
+            ByteBuffer encoded = LdapEncoder.encodeMessage( asn1Buffer, codec, response );
+
+            if ( pending == null )
+            {
+                pending = IoBuffer.allocate( encoded.remaining() * batchSize ).setAutoExpand( true );
+            }
+
+            pending.put( encoded );
+        }
+        finally
+        {
+            asn1Buffer.clear();
+        }
+
+        pendingCount++;
+
+        if ( pendingCount >= batchSize )
+        {
+            flush();
+        }
+    }
+
+
+    /**
+     * Writes the pending responses, if any. The pending responses are discarded if
+     * the request has been abandoned.
+     *
+     * @throws InterruptedException If the thread is interrupted while writing is paused
+     */
+    public void flush() throws InterruptedException
+    {
+        if ( pendingCount == 0 )
+        {
+            return;
+        }
+
+        IoBuffer buffer = pending;
+        int count = pendingCount;
+        pending = null;
+        pendingCount = 0;
+
+        if ( request.isAbandoned() )
+        {
+            return;
+        }
+
+        waitForWriteQueue();
+
+        if ( LOG.isDebugEnabled() )
+        {
+            LOG.debug( "Writing {} search results in {} bytes", count, buffer.position() );
+        }
+
+        buffer.flip();
+        lastWrite = ioSession.write( buffer );
+    }
+
+
+    /**
+     * Waits until the session write queue has been drained below the low-water mark,
+     * if it is above the high-water mark. We also stop waiting if the session is
+     * closed or the request is abandoned.
+     */
+    private void waitForWriteQueue() throws InterruptedException
+    {
+        if ( ( highWaterMark <= 0 ) || ( ioSession.getScheduledWriteBytes() < highWaterMark ) )
+        {
+            return;
+        }
+
+        if ( LOG.isDebugEnabled() )
+        {
+            LOG.debug( "Pausing the search results for session {}, {} bytes are waiting to be written",
+                ioSession.getId(), ioSession.getScheduledWriteBytes() );
+        }
+
+        while ( ( ioSession.getScheduledWriteBytes() > lowWaterMark ) && ioSession.isConnected()
+            && !ioSession.isClosing() && !request.isAbandoned() )
+        {
+            if ( lastWrite != null )
+            {
+                lastWrite.await( PAUSE_CHECK_DELAY, TimeUnit.MILLISECONDS );
+            }
+            else
+            {
+                Thread.sleep( PAUSE_CHECK_DELAY );
+            }
+        }
+    }
+}
@@ -79,6 +79,7 @@ import org.apache.directory.server.ldap.LdapSession;
 import org.apache.directory.server.ldap.handlers.LdapRequestHandler;
 import org.apache.directory.server.ldap.handlers.PersistentSearchListener;
 import org.apache.directory.server.ldap.handlers.SearchAbandonListener;
+import org.apache.directory.server.ldap.handlers.SearchResultWriter;
 import org.apache.directory.server.ldap.handlers.SearchTimeLimitingMonitor;
 import org.apache.directory.server.ldap.handlers.controls.PagedSearchContext;
 import org.apache.directory.server.ldap.replication.provider.ReplicationRequestHandler;
@@ -375,44 +376,53 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
         Cursor<Entry> cursor, long sizeLimit ) throws Exception
     {
         long count = 0;
+        SearchResultWriter writer = new SearchResultWriter( ldapServer, session.getIoSession(), req );
 
-        while ( ( count < sizeLimit ) && cursor.next() )
+        try
         {
-            // Handle closed session
-            if ( session.getIoSession().isClosing() )
+            while ( ( count < sizeLimit ) && cursor.next() )
             {
-                // The client has closed the connection
-                if ( IS_DEBUG )
+                // Handle closed session
+                if ( session.getIoSession().isClosing() )
                 {
-                    LOG.debug( "Request terminated for message {}, the client has closed the session",
-                        req.getMessageId() );
+                    // The client has closed the connection
+                    if ( IS_DEBUG )
+                    {
+                        LOG.debug( "Request terminated for message {}, the client has closed the session",
+                            req.getMessageId() );
+                    }
+
+                    break;
                 }
 
-                break;
-            }
+                if ( req.isAbandoned() )
+                {
+                    cursor.close( new OperationAbandonedException() );
 
-            if ( req.isAbandoned() )
-            {
-                cursor.close( new OperationAbandonedException() );
+                    // The cursor has been closed by an abandon request.
+                    if ( IS_DEBUG )
+                    {
+                        LOG.debug( "Request terminated by an AbandonRequest for message {}", req.getMessageId() );
+                    }
 
-                // The cursor has been closed by an abandon request.
-                if ( IS_DEBUG )
-                {
-                    LOG.debug( "Request terminated by an AbandonRequest for message {}", req.getMessageId() );
+                    break;
                 }
 
-                break;
-            }
+                Entry entry = cursor.get();
+                writer.write( generateResponse( session, req, entry ) );
 
-            Entry entry = cursor.get();
-            session.getIoSession().write( generateResponse( session, req, entry ) );
+                if ( IS_DEBUG )
+                {
+                    LOG.debug( "Sending {}", entry.getDn() );
+                }
 
-            if ( IS_DEBUG )
-            {
-                LOG.debug( "Sending {}", entry.getDn() );
+                count++;
             }
-
-            count++;
+        }
+        finally
+        {
+            // Write the pending results before the SearchResultDone
+            writer.flush();
         }
 
         // check if the result code is not already set
@@ -452,17 +462,27 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
         int count = pagedContext.getCurrentPosition();
         int pageCount = 0;
 
-        while ( ( count < sizeLimit ) && ( pageCount < pagedLimit ) && cursor.next() )
+        SearchResultWriter writer = new SearchResultWriter( ldapServer, session.getIoSession(), req );
+
+        try
         {
-            if ( session.getIoSession().isClosing() )
+            while ( ( count < sizeLimit ) && ( pageCount < pagedLimit ) && cursor.next() )
             {
-                break;
-            }
+                if ( session.getIoSession().isClosing() )
+                {
+                    break;
+                }
 
-            Entry entry = cursor.get();
-            session.getIoSession().write( generateResponse( session, req, entry ) );
-            count++;
-            pageCount++;
+                Entry entry = cursor.get();
+                writer.write( generateResponse( session, req, entry ) );
+                count++;
+                pageCount++;
+            }
+        }
+        finally
+        {
+            // Write the pending results before the SearchResultDone
+            writer.flush();
         }
 
         // DO NOT WRITE THE RESPONSE - JUST RETURN IT
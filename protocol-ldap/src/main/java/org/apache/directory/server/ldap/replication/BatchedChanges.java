@@ -0,0 +1,313 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateTypeEnum;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+
+
+/**
+ * The batched replication transport. A consumer may ask for it by adding a control with
+ * the {@link #OID} to its syncrepl request. The provider then sends the changes read from
+ * the replication log, and the changes pushed in real time, in compressed batches, each
+ * batch being the value of an IntermediateResponse which name is the same OID. In real time,
+ * the changes are gathered while the previous batch is being written, so a batch is only
+ * bigger than one change when the changes come faster than they can be sent. A provider
+ * which does not know this control ignores it.
+ * <p>
+ * A batch is compressed with Deflate. Once decompressed, it follows this format :
+ * <ul>
+ * <li>for each change : a boolean set to true, the sync state type, the entryUUID, the cookie
+ * length and the cookie (or -1 if there is no cookie), the serialized DN, the serialized entry,
+ * the serialized modifications (see {@link DeltaModifications})</li>
+ * <li>a boolean set to false</li>
+ * </ul>
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public final class BatchedChanges
+{
+    /** The OID of the control and of the intermediate responses */
+    public static final String OID = "1.3.6.1.4.1.18060.0.0.11";
+
+    /** The maximum number of changes in a batch */
+    public static final int MAX_CHANGES = 1000;
+
+    /** The compressed size above which a batch is sent */
+    public static final int MAX_SIZE = 1024 * 1024;
+
+    /** The sync state types, indexed by their ordinal */
+    private static final SyncStateTypeEnum[] TYPES = SyncStateTypeEnum.values();
+
+
+    private BatchedChanges()
+    {
+    }
+
+
+    /**
+     * A change read from a batch
+     */
+    public static final class Change
+    {
+        private final SyncStateTypeEnum type;
+        private final byte[] entryUuid;
+        private final byte[] cookie;
+        private final Entry entry;
+        private final List<Modification> modifications;
+
+
+        Change( SyncStateTypeEnum type, byte[] entryUuid, byte[] cookie, Entry entry,
+            List<Modification> modifications )
+        {
+            this.type = type;
+            this.entryUuid = entryUuid;
+            this.cookie = cookie;
+            this.entry = entry;
+            this.modifications = modifications;
+        }
+
+
+        /**
+         * @return The sync state type
+         */
+        public SyncStateTypeEnum getType()
+        {
+            return type;
+        }
+
+
+        /**
+         * @return The entryUUID, as 16 bytes
+         */
+        public byte[] getEntryUuid()
+        {
+            return entryUuid;
+        }
+
+
+        /**
+         * @return The cookie sent with the change, or null
+         */
+        public byte[] getCookie()
+        {
+            return cookie;
+        }
+
+
+        /**
+         * @return The entry
+         */
+        public Entry getEntry()
+        {
+            return entry;
+        }
+
+
+        /**
+         * @return The modifications to apply on the entry, or null if the whole entry has been sent
+         */
+        public List<Modification> getModifications()
+        {
+            return modifications;
+        }
+    }
+
+
+    /**
+     * A batch of changes being serialized
+     */
+    public static final class Batch
+    {
+        private final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        private final ObjectOutputStream out;
+        private int nbChanges;
+
+
+        /**
+         * Creates an empty batch
+         *
+         * @throws IOException If the batch can't be initialized
+         */
+        public Batch() throws IOException
+        {
+            out = new ObjectOutputStream( new DeflaterOutputStream( baos, new Deflater( Deflater.BEST_SPEED ) ) );
+        }
+
+
+        /**
+         * Adds a change to the batch
+         *
+         * @param type The sync state type
+         * @param entryUuid The entryUUID, as 16 bytes
+         * @param cookie The cookie, or null
+         * @param entry The entry
+         * @throws IOException If the change can't be serialized
+         */
+        public void add( SyncStateTypeEnum type, byte[] entryUuid, byte[] cookie, Entry entry ) throws IOException
+        {
+            add( type, entryUuid, cookie, entry, null );
+        }
+
+
+        /**
+         * Adds a change to the batch
+         *
+         * @param type The sync state type
+         * @param entryUuid The entryUUID, as 16 bytes
+         * @param cookie The cookie, or null
+         * @param entry The entry
+         * @param modifications The modifications to apply on the entry, or null to send the whole entry
+         * @throws IOException If the change can't be serialized
+         */
+        public void add( SyncStateTypeEnum type, byte[] entryUuid, byte[] cookie, Entry entry,
+            List<Modification> modifications ) throws IOException
+        {
+            out.writeBoolean( true );
+            out.writeByte( type.ordinal() );
+            out.write( entryUuid );
+
+            if ( cookie == null )
+            {
+                out.writeInt( -1 );
+            }
+            else
+            {
+                out.writeInt( cookie.length );
+                out.write( cookie );
+            }
+
+            entry.getDn().writeExternal( out );
+            entry.writeExternal( out );
+            DeltaModifications.writeModifications( out, modifications );
+            nbChanges++;
+        }
+
+
+        /**
+         * @return true if the batch must be sent before adding more changes
+         */
+        public boolean isFull()
+        {
+            return ( nbChanges >= MAX_CHANGES ) || ( baos.size() >= MAX_SIZE );
+        }
+
+
+        /**
+         * @return true if the batch contains no change
+         */
+        public boolean isEmpty()
+        {
+            return nbChanges == 0;
+        }
+
+
+        /**
+         * @return The number of changes in the batch
+         */
+        public int getNbChanges()
+        {
+            return nbChanges;
+        }
+
+
+        /**
+         * Ends the batch. No change can be added once this method has been called.
+         *
+         * @return The compressed batch
+         * @throws IOException If the batch can't be serialized
+         */
+        public byte[] toBytes() throws IOException
+        {
+            out.writeBoolean( false );
+            out.close();
+
+            return baos.toByteArray();
+        }
+    }
+
+
+    /**
+     * Reads the changes of a batch
+     *
+     * @param schemaManager The SchemaManager
+     * @param bytes The compressed batch
+     * @return The changes, in the order they have been added to the batch
+     * @throws IOException If the batch can't be read
+     */
+    public static List<Change> decode( SchemaManager schemaManager, byte[] bytes ) throws IOException
+    {
+        List<Change> changes = new ArrayList<>();
+
+        try ( ObjectInputStream in = new ObjectInputStream(
+            new InflaterInputStream( new ByteArrayInputStream( bytes ) ) ) )
+        {
+            while ( in.readBoolean() )
+            {
+                SyncStateTypeEnum type = TYPES[in.readByte()];
+
+                byte[] entryUuid = new byte[16];
+                in.readFully( entryUuid );
+
+                byte[] cookie = null;
+                int cookieLength = in.readInt();
+
+                if ( cookieLength >= 0 )
+                {
+                    cookie = new byte[cookieLength];
+                    in.readFully( cookie );
+                }
+
+                Dn dn = new Dn( schemaManager );
+                dn.readExternal( in );
+
+                Entry entry = new DefaultEntry( schemaManager );
+                entry.readExternal( in );
+                entry.setDn( dn );
+
+                List<Modification> modifications = DeltaModifications.readModifications( schemaManager, in );
+
+                changes.add( new Change( type, entryUuid, cookie, entry, modifications ) );
+            }
+        }
+        catch ( ClassNotFoundException cnfe )
+        {
+            throw new IOException( cnfe.getMessage(), cnfe );
+        }
+
+        return changes;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+
+
+/**
+ * The bulk initial refresh. A consumer without cookie may ask for it by adding a control
+ * with the {@link #OID} to its syncrepl request. The provider then sends the initial content
+ * in batches of entries, each batch being the value of an IntermediateResponse which name
+ * is the same OID. The entries are sent in the same order as in a normal initial refresh,
+ * and the refresh ends the same way, with the cookie containing the CSN up to which the
+ * content has been sent. A provider which does not know this control ignores it.
+ * <p>
+ * A batch is serialized following this format :
+ * <ul>
+ * <li>for each entry : a boolean set to true, the serialized DN, the serialized entry</li>
+ * <li>a boolean set to false</li>
+ * </ul>
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public final class BulkRefresh
+{
+    /** The OID of the control and of the intermediate responses */
+    public static final String OID = "1.3.6.1.4.1.18060.0.0.10";
+
+    /** The maximum number of entries in a batch */
+    public static final int MAX_ENTRIES = 1000;
+
+    /** The size above which a batch is sent */
+    public static final int MAX_SIZE = 1024 * 1024;
+
+
+    private BulkRefresh()
+    {
+    }
+
+
+    /**
+     * A batch of entries being serialized
+     */
+    public static final class Batch
+    {
+        private final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        private final ObjectOutputStream out;
+        private int nbEntries;
+
+
+        /**
+         * Creates an empty batch
+         *
+         * @throws IOException If the batch can't be initialized
+         */
+        public Batch() throws IOException
+        {
+            out = new ObjectOutputStream( baos );
+        }
+
+
+        /**
+         * Adds an entry to the batch
+         *
+         * @param entry The entry
+         * @throws IOException If the entry can't be serialized
+         */
+        public void add( Entry entry ) throws IOException
+        {
+            out.writeBoolean( true );
+            entry.getDn().writeExternal( out );
+            entry.writeExternal( out );
+            nbEntries++;
+        }
+
+
+        /**
+         * @return true if the batch must be sent before adding more entries
+         */
+        public boolean isFull()
+        {
+            return ( nbEntries >= MAX_ENTRIES ) || ( baos.size() >= MAX_SIZE );
+        }
+
+
+        /**
+         * @return true if the batch contains no entry
+         */
+        public boolean isEmpty()
+        {
+            return nbEntries == 0;
+        }
+
+
+        /**
+         * @return The number of entries in the batch
+         */
+        public int getNbEntries()
+        {
+            return nbEntries;
+        }
+
+
+        /**
+         * Ends the batch. No entry can be added once this method has been called.
+         *
+         * @return The serialized batch
+         * @throws IOException If the batch can't be serialized
+         */
+        public byte[] toBytes() throws IOException
+        {
+            out.writeBoolean( false );
+            out.close();
+
+            return baos.toByteArray();
+        }
+    }
+
+
+    /**
+     * Reads the entries of a batch
+     *
+     * @param schemaManager The SchemaManager
+     * @param bytes The serialized batch
+     * @return The entries, in the order they have been added to the batch
+     * @throws IOException If the batch can't be read
+     */
+    public static List<Entry> decode( SchemaManager schemaManager, byte[] bytes ) throws IOException
+    {
+        List<Entry> entries = new ArrayList<>();
+
+        try ( ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( bytes ) ) )
+        {
+            while ( in.readBoolean() )
+            {
+                Dn dn = new Dn( schemaManager );
+                dn.readExternal( in );
+
+                Entry entry = new DefaultEntry( schemaManager );
+                entry.readExternal( in );
+                entry.setDn( dn );
+
+                entries.add( entry );
+            }
+        }
+        catch ( ClassNotFoundException cnfe )
+        {
+            throw new IOException( cnfe.getMessage(), cnfe );
+        }
+
+        return entries;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+
+
+/**
+ * The delta modifications propagation. The replication log stores a Modify operation as
+ * the list of its modifications, with an entry only containing its entryUUID and entryCSN.
+ * A consumer may ask for the modifications by adding a control with the {@link #OID} to its
+ * syncrepl request. The provider then sends them in {@link BatchedChanges} batches, one
+ * change per batch unless the consumer has also asked for the batched transport. The other
+ * consumers receive the whole entry, as read when the change is sent. A provider which does
+ * not know this control ignores it.
+ * <p>
+ * When the modifications can't be applied on the consumer entry, the consumer reads the
+ * whole entry from the provider, and applies it as if it had been sent instead.
+ * <p>
+ * A list of modifications is serialized following this format :
+ * <ul>
+ * <li>int : the number of modifications, or -1 if there is no list</li>
+ * <li>for each modification : the serialized modification</li>
+ * </ul>
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public final class DeltaModifications
+{
+    /** The OID of the control */
+    public static final String OID = "1.3.6.1.4.1.18060.0.0.12";
+
+
+    private DeltaModifications()
+    {
+    }
+
+
+    /**
+     * Creates the entry stored with the modifications : it only contains the DN, the
+     * entryUUID and the entryCSN of the modified entry
+     *
+     * @param schemaManager The SchemaManager
+     * @param entry The modified entry
+     * @return The entry to store with the modifications
+     * @throws LdapException If the entry can't be created
+     */
+    public static Entry toDeltaEntry( SchemaManager schemaManager, Entry entry ) throws LdapException
+    {
+        Entry deltaEntry = new DefaultEntry( schemaManager, entry.getDn() );
+        deltaEntry.add( entry.get( SchemaConstants.ENTRY_UUID_AT ).clone() );
+        deltaEntry.add( entry.get( SchemaConstants.ENTRY_CSN_AT ).clone() );
+
+        return deltaEntry;
+    }
+
+
+    /**
+     * Writes a list of modifications
+     *
+     * @param out The stream to write to
+     * @param modifications The modifications, or null
+     * @throws IOException If the modifications can't be written
+     */
+    public static void writeModifications( ObjectOutput out, List<Modification> modifications ) throws IOException
+    {
+        if ( modifications == null )
+        {
+            out.writeInt( -1 );
+
+            return;
+        }
+
+        out.writeInt( modifications.size() );
+
+        for ( Modification modification : modifications )
+        {
+            modification.writeExternal( out );
+        }
+    }
+
+
+    /**
+     * Reads a list of modifications
+     *
+     * @param schemaManager The SchemaManager
+     * @param in The stream to read from
+     * @return The modifications, or null if no list was written
+     * @throws IOException If the modifications can't be read
+     * @throws ClassNotFoundException If a modification can't be read
+     */
+    public static List<Modification> readModifications( SchemaManager schemaManager, ObjectInput in )
+        throws IOException, ClassNotFoundException
+    {
+        int nbModifications = in.readInt();
+
+        if ( nbModifications < 0 )
+        {
+            return null;
+        }
+
+        List<Modification> modifications = new ArrayList<>( nbModifications );
+
+        for ( int i = 0; i < nbModifications; i++ )
+        {
+            DefaultModification modification = new DefaultModification();
+            modification.readExternal( in );
+
+            // Make the attribute schema aware
+            modifications.add( new DefaultModification( schemaManager, modification ) );
+        }
+
+        return modifications;
+    }
+}
@@ -21,15 +21,20 @@
 package org.apache.directory.server.ldap.replication;
 
 
+import java.util.List;
+
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.message.controls.ChangeType;
 import org.apache.directory.server.core.api.entry.ClonedServerEntry;
 
 
 /**
- * A place holder storing an Entry and the operation applied on it
+ * A place holder storing an Entry and the operation applied on it. A Modify operation
+ * may be stored as the list of its modifications, the entry then only containing the
+ * attributes identifying the change : its entryUUID and its entryCSN.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -41,6 +46,9 @@ public class ReplicaEventMessage
     /** The entry */
     private Entry entry;
 
+    /** The modifications applied on the entry, or null if the message contains the whole entry */
+    private List<Modification> modifications;
+
     /**
      * Create a new ReplicaEvent instance for a Add/Delete+Modify operation
      * @param changeType The change type
@@ -61,6 +69,18 @@ public class ReplicaEventMessage
     }
 
 
+    /**
+     * Create a new ReplicaEvent instance for a Modify operation, storing only the modifications
+     * @param entry The entry, containing at least the entryUUID and the entryCSN attributes
+     * @param modifications The modifications applied on the entry
+     */
+    public ReplicaEventMessage( Entry entry, List<Modification> modifications )
+    {
+        this( ChangeType.MODIFY, entry );
+        this.modifications = modifications;
+    }
+
+
     /**
      * @return The changeType
      */
@@ -79,6 +99,24 @@ public class ReplicaEventMessage
     }
 
 
+    /**
+     * @return The modifications applied on the entry, or null if the message contains the whole entry
+     */
+    public List<Modification> getModifications()
+    {
+        return modifications;
+    }
+
+
+    /**
+     * @return true if the message only contains the modifications applied on the entry
+     */
+    public boolean isDelta()
+    {
+        return modifications != null;
+    }
+
+
     /**
      * checks if the event's CSN is older than the given CSN
      *
@@ -26,11 +26,13 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
+import java.util.List;
 
 import jdbm.helper.Serializer;
 
 import org.apache.directory.api.ldap.model.entry.DefaultEntry;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.message.controls.ChangeType;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
@@ -44,6 +46,7 @@ import org.apache.directory.api.ldap.model.schema.SchemaManager;
  * <li>byte : EventType</li>
  * <li>byte[] : the serialized DN</li>
  * <li>byte[] : the serialized entry</li>
+ * <li>byte[] : the serialized modifications (see {@link DeltaModifications})</li>
  * </ul>
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
@@ -91,6 +94,9 @@ public class ReplicaEventMessageSerializer implements Serializer
             // The entry
             entry.writeExternal( out );
 
+            // The modifications, if any
+            DeltaModifications.writeModifications( out, replicaEventMessage.getModifications() );
+
             out.flush();
 
             return baos.toByteArray();
@@ -126,8 +132,18 @@ public class ReplicaEventMessageSerializer implements Serializer
             entry.readExternal( in );
             entry.setDn( entryDn );
 
+            // The modifications
+            List<Modification> modifications = DeltaModifications.readModifications( schemaManager, in );
+
             // And create a ReplicaEventMessage
-            replicaEventMessage = new ReplicaEventMessage( changeType, entry );
+            if ( modifications != null )
+            {
+                replicaEventMessage = new ReplicaEventMessage( entry, modifications );
+            }
+            else
+            {
+                replicaEventMessage = new ReplicaEventMessage( changeType, entry );
+            }
         }
         catch ( ClassNotFoundException cnfe )
         {
@@ -133,6 +133,18 @@ public class SyncReplConfiguration implements ReplicationConsumerConfig
     /** flag to indicate if this node is part of a MMR setup, default value is true */
     private boolean mmrMode = true;
 
+    /** the number of threads applying the received changes, default is the number of processors */
+    private int applyThreads = Runtime.getRuntime().availableProcessors();
+
+    /** flag to indicate if the initial content is requested in batches, default is false */
+    private boolean bulkInitialRefresh = false;
+
+    /** flag to indicate if the changes are requested in compressed batches, default is false */
+    private boolean batchedTransport = false;
+
+    /** flag to indicate if the modifications are requested instead of the modified entries, default is false */
+    private boolean deltaModifications = false;
+
 
     /**
      * Creates a new instance of SyncreplConfiguration
@@ -580,6 +592,90 @@ public class SyncReplConfiguration implements ReplicationConsumerConfig
     }
 
 
+    /**
+     * @return the number of threads applying the changes received from the provider
+     */
+    public int getApplyThreads()
+    {
+        return applyThreads;
+    }
+
+
+    /**
+     * Sets the number of threads applying the changes received from the provider. With
+     * a single thread, the changes are applied by the thread reading them.
+     *
+     * @param applyThreads the number of threads
+     */
+    public void setApplyThreads( int applyThreads )
+    {
+        this.applyThreads = Math.max( 1, applyThreads );
+    }
+
+
+    /**
+     * @return true if the initial content is requested in batches of entries
+     */
+    public boolean isBulkInitialRefresh()
+    {
+        return bulkInitialRefresh;
+    }
+
+
+    /**
+     * enable/disable the bulk initial refresh. The provider then sends the initial content
+     * in batches of entries, which are added locally with one transaction per batch.
+     *
+     * @param bulkInitialRefresh If the initial content is requested in batches
+     */
+    public void setBulkInitialRefresh( boolean bulkInitialRefresh )
+    {
+        this.bulkInitialRefresh = bulkInitialRefresh;
+    }
+
+
+    /**
+     * @return true if the changes are requested in compressed batches
+     */
+    public boolean isBatchedTransport()
+    {
+        return batchedTransport;
+    }
+
+
+    /**
+     * enable/disable the batched transport. The provider then sends several changes in
+     * each message, compressed, when they come faster than they can be sent.
+     *
+     * @param batchedTransport If the changes are requested in compressed batches
+     */
+    public void setBatchedTransport( boolean batchedTransport )
+    {
+        this.batchedTransport = batchedTransport;
+    }
+
+
+    /**
+     * @return true if the modifications are requested instead of the modified entries
+     */
+    public boolean isDeltaModifications()
+    {
+        return deltaModifications;
+    }
+
+
+    /**
+     * enable/disable the delta modifications. The provider then sends the modifications
+     * applied on an entry instead of the whole modified entry.
+     *
+     * @param deltaModifications If the modifications are requested instead of the modified entries
+     */
+    public void setDeltaModifications( boolean deltaModifications )
+    {
+        this.deltaModifications = deltaModifications;
+    }
+
+
     public String toString()
     {
         StringBuilder sb = new StringBuilder();
@@ -633,6 +729,23 @@ public class SyncReplConfiguration implements ReplicationConsumerConfig
             sb.append( "MS, " );
         }
 
+        sb.append( "apply threads:" ).append( applyThreads ).append( ", " );
+
+        if ( bulkInitialRefresh )
+        {
+            sb.append( "bulk" ).append( ", " );
+        }
+
+        if ( batchedTransport )
+        {
+            sb.append( "batched" ).append( ", " );
+        }
+
+        if ( deltaModifications )
+        {
+            sb.append( "delta" ).append( ", " );
+        }
+
         sb.append( "provider:" ).append( producer ).append( ", " );
         sb.append( "user:'" ).append( replUserDn ).append( "', " );
 
@@ -0,0 +1,121 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.consumer;
+
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.OperationManager;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionWriteTxn;
+import org.apache.directory.server.ldap.replication.BulkRefresh;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Adds the new entries of a {@link BulkRefresh} batch on a consumer.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+final class BulkAdder
+{
+    /** Logger for this class */
+    private static final Logger CONSUMER_LOG = LoggerFactory.getLogger( Loggers.CONSUMER_LOG.getName() );
+
+
+    private BulkAdder()
+    {
+    }
+
+
+    /**
+     * Adds some entries using a single transaction on the replicated partition, instead of
+     * one transaction per entry.
+     *
+     * @param directoryService The DirectoryService
+     * @param session The consumer session
+     * @param entries The entries to add, parents first
+     * @return true if the entries have been added, false if the transaction has been rolled back
+     */
+    static boolean add( DirectoryService directoryService, CoreSession session, List<Entry> entries )
+    {
+        CoreSession bulkSession;
+        PartitionWriteTxn transaction;
+
+        try
+        {
+            bulkSession = directoryService.getSession( session.getAuthenticatedPrincipal() );
+            Partition partition = directoryService.getPartitionNexus().getPartition( entries.get( 0 ).getDn() );
+            transaction = partition.beginWriteTransaction();
+            bulkSession.addTransaction( partition, transaction );
+            bulkSession.beginSessionTransaction();
+        }
+        catch ( LdapException le )
+        {
+            CONSUMER_LOG.error( "Failed to start a transaction for a batch of entries", le );
+
+            return false;
+        }
+
+        try
+        {
+            OperationManager operationManager = directoryService.getOperationManager();
+
+            for ( Entry entry : entries )
+            {
+                AddOperationContext addContext = new AddOperationContext( bulkSession, entry );
+                addContext.setReplEvent( true );
+                addContext.setRid( -1 );
+
+                operationManager.add( addContext );
+            }
+
+            bulkSession.endSessionTransaction( true );
+
+            // Don't store a cookie covering entries which could be lost
+            transaction.awaitDurability();
+
+            return true;
+        }
+        catch ( Exception e )
+        {
+            CONSUMER_LOG.warn( "Failed to add a batch of {} entries, adding them one by one", entries.size(), e );
+
+            try
+            {
+                bulkSession.endSessionTransaction( false );
+            }
+            catch ( IOException ioe )
+            {
+                CONSUMER_LOG.error( "Failed to rollback the transaction", ioe );
+            }
+
+            return false;
+        }
+    }
+}
@@ -0,0 +1,424 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.consumer;
+
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.directory.api.ldap.model.name.Dn;
+
+
+/**
+ * Applies the changes received by a consumer with a pool of threads. Two changes which
+ * depend on each other are applied in the order they have been received, the other ones
+ * may be applied in parallel. Two changes depend on each other if :
+ * <ul>
+ * <li>they are about the same entry (same entryUUID)</li>
+ * <li>the DN of one of them is the DN of the other one, or one of its ancestors : a
+ * parent is added before its children, and deleted after them</li>
+ * <li>one of them has no DN, like a MODDN operation, for which we don't know all the
+ * impacted DNs : it is applied alone</li>
+ * </ul>
+ * Each change may come with a cookie. The cookie is given to the {@link CookieListener}
+ * once the change and all the changes received before it have been applied, so that
+ * a stored cookie never covers a change which has not been applied yet.
+ * <p>
+ * The changes are submitted by a single thread. The number of changes waiting to be
+ * applied is limited : the submitting thread blocks when the limit is reached.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ParallelApplier
+{
+    /**
+     * A change to apply
+     */
+    public interface Change
+    {
+        /**
+         * Applies the change
+         *
+         * @return true if the change has been applied, false if it has failed
+         */
+        boolean apply();
+    }
+
+
+    /**
+     * The listener called when a cookie can be stored
+     */
+    public interface CookieListener
+    {
+        /**
+         * Stores a cookie. This method is never called concurrently.
+         *
+         * @param cookie The cookie of the last applied change
+         */
+        void commit( byte[] cookie );
+    }
+
+
+    /**
+     * A submitted change, and its state
+     */
+    private static final class Task
+    {
+        private final long sequence;
+        private final String uuid;
+        private final Dn dn;
+        private final Change change;
+        private final byte[] cookie;
+        private boolean running;
+        private boolean done;
+        private boolean applied;
+
+
+        Task( long sequence, String uuid, Dn dn, Change change, byte[] cookie )
+        {
+            this.sequence = sequence;
+            this.uuid = uuid;
+            this.dn = dn;
+            this.change = change;
+            this.cookie = cookie;
+        }
+
+
+        /**
+         * Tells if this change must be applied after the given one
+         */
+        boolean dependsOn( Task previous )
+        {
+            if ( ( dn == null ) || ( previous.dn == null ) )
+            {
+                return true;
+            }
+
+            if ( ( uuid != null ) && uuid.equals( previous.uuid ) )
+            {
+                return true;
+            }
+
+            return dn.isDescendantOf( previous.dn ) || previous.dn.isDescendantOf( dn );
+        }
+    }
+
+    /** The threads applying the changes */
+    private final ExecutorService executor;
+
+    /** The number of threads */
+    private final int nbThreads;
+
+    /** The maximum number of changes waiting to be applied */
+    private final int maxPending;
+
+    /** The listener storing the cookies */
+    private final CookieListener cookieListener;
+
+    /** The changes not applied yet, in the order they have been received */
+    private final Deque<Task> pending = new ArrayDeque<>();
+
+    /** The number of changes being applied */
+    private int nbRunning;
+
+    /** The sequence of the next submitted change */
+    private long nextSequence;
+
+    /** The lock protecting the pending changes */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Signaled when some changes have been applied */
+    private final Condition applied = lock.newCondition();
+
+    /** The number of cookies being stored */
+    private int nbCommitting;
+
+    /** The lock serializing the cookie commits */
+    private final Object commitLock = new Object();
+
+    /** The sequence of the last committed cookie */
+    private long committedSequence = -1L;
+
+
+    /**
+     * Creates a new ParallelApplier
+     *
+     * @param name The name used for the threads
+     * @param nbThreads The number of threads applying the changes
+     * @param cookieListener The listener storing the cookies
+     */
+    public ParallelApplier( final String name, int nbThreads, CookieListener cookieListener )
+    {
+        this.nbThreads = Math.max( 1, nbThreads );
+        this.maxPending = this.nbThreads * 16;
+        this.cookieListener = cookieListener;
+
+        executor = Executors.newFixedThreadPool( this.nbThreads, new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+
+            @Override
+            public Thread newThread( Runnable runnable )
+            {
+                Thread thread = new Thread( runnable, name + "-" + count.incrementAndGet() );
+                thread.setDaemon( true );
+
+                return thread;
+            }
+        } );
+    }
+
+
+    /**
+     * Submits a change. It will be applied once the changes it depends on have been applied.
+     *
+     * @param uuid The entryUUID of the modified entry, or null
+     * @param dn The DN of the modified entry, or null if the change must be applied alone
+     * @param change The change
+     * @param cookie The cookie to store once the change is applied, or null
+     * @throws InterruptedException If the thread is interrupted while waiting for some room
+     */
+    public void submit( String uuid, Dn dn, Change change, byte[] cookie ) throws InterruptedException
+    {
+        lock.lock();
+
+        try
+        {
+            while ( pending.size() >= maxPending )
+            {
+                applied.await();
+            }
+
+            pending.addLast( new Task( nextSequence++, uuid, dn, change, cookie ) );
+            schedule();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Waits until all the submitted changes have been applied, and their cookies stored.
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public void drain() throws InterruptedException
+    {
+        lock.lock();
+
+        try
+        {
+            while ( !pending.isEmpty() || ( nbCommitting > 0 ) )
+            {
+                applied.await();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @return The number of changes not applied yet
+     */
+    public int getNbPending()
+    {
+        lock.lock();
+
+        try
+        {
+            return pending.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Stops the threads. The changes not applied yet are lost.
+     */
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+
+    /**
+     * Starts the changes which don't depend on a change not applied yet. Must be called
+     * with the lock held.
+     */
+    private void schedule()
+    {
+        Task[] previous = new Task[pending.size()];
+        int nbPrevious = 0;
+
+        for ( Task task : pending )
+        {
+            if ( nbRunning >= nbThreads )
+            {
+                return;
+            }
+
+            if ( !task.running && !task.done )
+            {
+                boolean ready = true;
+
+                for ( int i = 0; i < nbPrevious; i++ )
+                {
+                    if ( !previous[i].done && task.dependsOn( previous[i] ) )
+                    {
+                        ready = false;
+                        break;
+                    }
+                }
+
+                if ( ready )
+                {
+                    start( task );
+                }
+            }
+
+            previous[nbPrevious++] = task;
+        }
+    }
+
+
+    /**
+     * Applies a change in one of the threads
+     */
+    private void start( final Task task )
+    {
+        task.running = true;
+        nbRunning++;
+
+        executor.execute( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                boolean success = false;
+
+                try
+                {
+                    success = task.change.apply();
+                }
+                finally
+                {
+                    done( task, success );
+                }
+            }
+        } );
+    }
+
+
+    /**
+     * Marks a change as applied, and stores the cookie of the last change applied with
+     * all the changes received before it.
+     */
+    private void done( Task task, boolean success )
+    {
+        Task committed = null;
+
+        lock.lock();
+
+        try
+        {
+            task.running = false;
+            task.done = true;
+            task.applied = success;
+            nbRunning--;
+
+            // Remove the applied changes at the head of the queue
+            while ( !pending.isEmpty() && pending.peekFirst().done )
+            {
+                Task head = pending.removeFirst();
+
+                if ( head.applied && ( head.cookie != null ) )
+                {
+                    committed = head;
+                }
+            }
+
+            // A drain() must not return before the cookie is stored
+            if ( committed != null )
+            {
+                nbCommitting++;
+            }
+
+            schedule();
+            applied.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        if ( committed != null )
+        {
+            try
+            {
+                commit( committed );
+            }
+            finally
+            {
+                lock.lock();
+
+                try
+                {
+                    nbCommitting--;
+                    applied.signalAll();
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Stores the cookie of a change, unless a more recent one has already been stored
+     */
+    private void commit( Task task )
+    {
+        synchronized ( commitLock )
+        {
+            if ( task.sequence > committedSequence )
+            {
+                committedSequence = task.sequence;
+                cookieListener.commit( task.cookie );
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.consumer;
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.filter.PresenceNode;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.server.core.api.CoreSession;
+
+
+/**
+ * The UUIDs of the entries a producer has sent or listed during a refresh. At the end of
+ * a present phase, the local entries which UUID is not in this set are missing on the
+ * producer. The local UUIDs are read with a search on the replicated base, sorted as the
+ * present UUIDs, and the two sorted lists are merged : a local UUID which isn't in the
+ * present list is missing. Both lists are spilled to disk when they are too big.
+ * <p>
+ * This class is not thread safe. It must be closed to delete the temporary files.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+final class PresentEntries implements Closeable
+{
+    /** The (entrtyUuid=*) filter */
+    private static final PresenceNode ENTRY_UUID_PRESENCE_FILTER = new PresenceNode( SchemaConstants.ENTRY_UUID_AT );
+
+    /** The UUIDs of the present entries */
+    private final UuidSorter uuids = new UuidSorter();
+
+
+    /**
+     * Records a present entry, its UUID being given as 16 bytes, as in the syncrepl messages
+     *
+     * @param uuid The entry UUID
+     * @throws IOException If the UUIDs can't be written on disk
+     */
+    void add( byte[] uuid ) throws IOException
+    {
+        uuids.add( uuid );
+    }
+
+
+    /**
+     * Records a present entry
+     *
+     * @param uuid The entry UUID, as a String
+     * @throws IOException If the UUIDs can't be written on disk
+     */
+    void add( String uuid ) throws IOException
+    {
+        uuids.add( UUID.fromString( uuid ), null );
+    }
+
+
+    /**
+     * Finds the local entries which haven't been sent or listed by the producer. The DNs
+     * are grouped per depth, the deepest first, so that the children can be deleted before
+     * their parent.
+     *
+     * @param session The session used to read the local entries
+     * @param baseDn The replicated base
+     * @return The DNs of the missing entries
+     * @throws Exception If the local entries can't be read
+     */
+    Map<Integer, List<Dn>> findMissing( CoreSession session, Dn baseDn ) throws Exception
+    {
+        Map<Integer, List<Dn>> missingDns = new TreeMap<>( Collections.reverseOrder() );
+        AttributeType entryUuidAT = session.getDirectoryService().getAtProvider().getEntryUUID();
+
+        try ( UuidSorter localUuids = new UuidSorter() )
+        {
+            SearchRequest req = new SearchRequestImpl();
+            req.setBase( baseDn );
+            req.setFilter( ENTRY_UUID_PRESENCE_FILTER );
+            req.setScope( SearchScope.SUBTREE );
+            req.setDerefAliases( AliasDerefMode.NEVER_DEREF_ALIASES );
+            req.addAttributes( SchemaConstants.ENTRY_UUID_AT );
+
+            try ( Cursor<Entry> cursor = session.search( req ) )
+            {
+                cursor.beforeFirst();
+
+                while ( cursor.next() )
+                {
+                    Entry entry = cursor.get();
+
+                    localUuids.add( UUID.fromString( entry.get( entryUuidAT ).getString() ), entry.getDn().getName() );
+                }
+            }
+
+            try ( UuidSorter.SortedUuids local = localUuids.sorted();
+                UuidSorter.SortedUuids present = uuids.sorted() )
+            {
+                while ( local.next() )
+                {
+                    if ( !present.skipTo( local.getUuid() ) )
+                    {
+                        Dn dn = new Dn( session.getDirectoryService().getSchemaManager(), local.getValue() );
+
+                        missingDns.computeIfAbsent( dn.size(), d -> new ArrayList<>() ).add( dn );
+                    }
+                }
+            }
+        }
+
+        return missingDns;
+    }
+
+
+    /**
+     * Deletes the temporary files.
+     */
+    @Override
+    public void close()
+    {
+        uuids.close();
+    }
+}
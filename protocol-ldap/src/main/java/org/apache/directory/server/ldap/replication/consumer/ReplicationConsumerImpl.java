@@ -20,6 +20,7 @@
 package org.apache.directory.server.ldap.replication.consumer;
 
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -33,8 +34,10 @@ import org.apache.directory.api.ldap.extras.controls.syncrepl.syncRequest.SyncRe
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncRequest.SyncRequestValueImpl;
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateTypeEnum;
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateValue;
+import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateValueImpl;
 import org.apache.directory.api.ldap.extras.intermediate.syncrepl.SyncInfoValue;
 import org.apache.directory.api.ldap.extras.intermediate.syncrepl.SyncInfoValueImpl;
+import org.apache.directory.api.ldap.extras.intermediate.syncrepl.SynchronizationInfoEnum;
 import org.apache.directory.api.ldap.model.constants.Loggers;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.csn.Csn;
@@ -48,13 +51,12 @@ import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.entry.ModificationOperation;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
-import org.apache.directory.api.ldap.model.filter.AndNode;
 import org.apache.directory.api.ldap.model.filter.EqualityNode;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
-import org.apache.directory.api.ldap.model.filter.NotNode;
 import org.apache.directory.api.ldap.model.filter.OrNode;
 import org.apache.directory.api.ldap.model.filter.PresenceNode;
 import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.message.Control;
 import org.apache.directory.api.ldap.model.message.IntermediateResponse;
 import org.apache.directory.api.ldap.model.message.Response;
 import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
@@ -65,6 +67,7 @@ import org.apache.directory.api.ldap.model.message.SearchResultEntry;
 import org.apache.directory.api.ldap.model.message.SearchResultReference;
 import org.apache.directory.api.ldap.model.message.SearchScope;
 import org.apache.directory.api.ldap.model.message.controls.ManageDsaITImpl;
+import org.apache.directory.api.ldap.model.message.controls.OpaqueControl;
 import org.apache.directory.api.ldap.model.message.controls.SortKey;
 import org.apache.directory.api.ldap.model.message.controls.SortRequest;
 import org.apache.directory.api.ldap.model.message.controls.SortRequestImpl;
@@ -91,6 +94,9 @@ import org.apache.directory.server.core.api.interceptor.context.RenameOperationC
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.ldap.LdapProtocolUtils;
+import org.apache.directory.server.ldap.replication.BatchedChanges;
+import org.apache.directory.server.ldap.replication.BulkRefresh;
+import org.apache.directory.server.ldap.replication.DeltaModifications;
 import org.apache.directory.server.ldap.replication.ReplicationConsumerConfig;
 import org.apache.directory.server.ldap.replication.SyncReplConfiguration;
 import org.slf4j.Logger;
@@ -166,6 +172,15 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
 
     private static final Map<String, Object> UUID_LOCK_MAP = new LRUMap( 1000 );
 
+    /** The UUIDs of the entries sent by the producer during the current refresh, or null */
+    private PresentEntries presentUuids;
+
+    /** Tells if the producer has started a present phase during the current refresh */
+    private boolean presentPhase;
+
+    /** The pool of threads applying the received changes, or null if they are applied by the sync thread */
+    private ParallelApplier applier;
+
 
     /**
      * @return the config
@@ -316,6 +331,33 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         {
             syncCookie = ctrl.getCookie();
             CONSUMER_LOG.debug( "assigning cookie from sync done value control: {}", Strings.utf8ToString( syncCookie ) );
+        }
+
+        // The refresh is done : if it was a present phase, delete the entries which
+        // haven't been listed by the producer before storing the cookie
+        if ( presentPhase && ( ( ctrl == null ) || !ctrl.isRefreshDeletes() ) )
+        {
+            try
+            {
+                int replicaId = -1;
+
+                if ( syncCookie != null )
+                {
+                    replicaId = LdapProtocolUtils.getReplicaId( Strings.utf8ToString( syncCookie ) );
+                }
+
+                deleteMissingEntries( replicaId );
+            }
+            catch ( Exception e )
+            {
+                CONSUMER_LOG.error( "Failed to delete the entries not present on the producer", e );
+            }
+        }
+
+        stopRecordingPresent();
+
+        if ( ( ctrl != null ) && ( ctrl.getCookie() != null ) )
+        {
             storeCookie();
         }
 
@@ -344,7 +386,7 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
      * - Present
      * @param syncResult
      */
-    private void handleSearchResultEntry( SearchResultEntry syncResult )
+    private void handleSearchResultEntry( SearchResultEntry syncResult ) throws InterruptedException
     {
         CONSUMER_LOG.debug( "------------- starting handleSearchResult ------------" );
 
@@ -352,74 +394,180 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
 
         try
         {
-            Entry remoteEntry = new DefaultEntry( schemaManager, syncResult.getEntry() );
-            String uuid = remoteEntry.get( directoryService.getAtProvider().getEntryUUID() ).getString();
-            // lock on UUID to serialize the updates when there are multiple consumers
-            // connected to several producers and to the *same* base/partition
-            Object lock = getLockFor( uuid );
+            handleChange( new DefaultEntry( schemaManager, syncResult.getEntry() ), syncStateCtrl, null );
+        }
+        catch ( InterruptedException ie )
+        {
+            throw ie;
+        }
+        catch ( Exception e )
+        {
+            CONSUMER_LOG.error( e.getMessage(), e );
+        }
+
+        CONSUMER_LOG.debug( "------------- Ending handleSearchResult ------------" );
+    }
+
+
+    /**
+     * Process the changes sent in a compressed batch. Each change is processed as if it
+     * had been sent in a SearchResultEntry.
+     *
+     * @param batchResp The IntermediateResponse containing the batch
+     * @return <code>false</code> if the batch can't be decoded
+     */
+    private boolean handleBatchedChanges( IntermediateResponse batchResp ) throws InterruptedException
+    {
+        List<BatchedChanges.Change> changes;
+
+        try
+        {
+            changes = BatchedChanges.decode( schemaManager, batchResp.getResponseValue() );
+        }
+        catch ( IOException ioe )
+        {
+            CONSUMER_LOG.error( "Failed to read a batch of changes from {}", config.getProducer(), ioe );
+
+            return false;
+        }
+
+        CONSUMER_LOG.debug( "Received a batch of {} changes from {}", changes.size(), config.getProducer() );
+
+        for ( BatchedChanges.Change change : changes )
+        {
+            SyncStateValue syncStateCtrl = new SyncStateValueImpl();
+            syncStateCtrl.setSyncStateType( change.getType() );
+            syncStateCtrl.setEntryUUID( change.getEntryUuid() );
+            syncStateCtrl.setCookie( change.getCookie() );
+
+            try
+            {
+                handleChange( change.getEntry(), syncStateCtrl, change.getModifications() );
+            }
+            catch ( InterruptedException ie )
+            {
+                throw ie;
+            }
+            catch ( Exception e )
+            {
+                CONSUMER_LOG.error( e.getMessage(), e );
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Applies a change, or gives it to the applier, and records the entries present on
+     * the producer.
+     *
+     * @param remoteEntry The received entry
+     * @param syncStateCtrl The sync state control sent with the entry
+     * @param modifications The modifications to apply on the entry, or null if the whole entry has been sent
+     * @throws Exception If the change can't be processed
+     */
+    private void handleChange( final Entry remoteEntry, final SyncStateValue syncStateCtrl,
+        final List<Modification> modifications ) throws Exception
+    {
+        final String uuid = remoteEntry.get( directoryService.getAtProvider().getEntryUUID() ).getString();
+        final byte[] cookie = syncStateCtrl.getCookie();
+        int rid = -1;
+
+        if ( cookie != null )
+        {
+            rid = LdapProtocolUtils.getReplicaId( Strings.utf8ToString( cookie ) );
+            CONSUMER_LOG.debug( "assigning the cookie from sync state value control: {}",
+                Strings.utf8ToString( cookie ) );
+        }
+
+        SyncStateTypeEnum state = syncStateCtrl.getSyncStateType();
+
+        // check to avoid conversion of UUID from byte[] to String
+        if ( CONSUMER_LOG.isDebugEnabled() )
+        {
+            CONSUMER_LOG.debug( "state name {}", state.name() );
+            CONSUMER_LOG.debug( "entryUUID = {}", Strings.uuidToString( syncStateCtrl.getEntryUUID() ) );
+        }
+
+        if ( state == SyncStateTypeEnum.PRESENT )
+        {
+            presentPhase = true;
+        }
 
-            synchronized ( lock )
+        // The entry is present on the producer, it must not be deleted at the end
+        // of a present phase
+        if ( ( state != SyncStateTypeEnum.DELETE ) && ( presentUuids != null ) )
+        {
+            presentUuids.add( syncStateCtrl.getEntryUUID() );
+        }
+
+        if ( applier == null )
+        {
+            // store the cookie only if the operation was successful
+            if ( applyEntry( remoteEntry, uuid, syncStateCtrl, modifications, rid ) && ( cookie != null ) )
             {
-                int rid = -1;
+                commitCookie( cookie );
+            }
+        }
+        else
+        {
+            // A MODDN moves a whole subtree which DNs we don't know : it is applied alone
+            Dn dn = ( state == SyncStateTypeEnum.MODDN ) ? null : remoteEntry.getDn();
+            final int replicaId = rid;
 
-                if ( syncStateCtrl.getCookie() != null )
-                {
-                    syncCookie = syncStateCtrl.getCookie();
-                    rid = LdapProtocolUtils.getReplicaId( Strings.utf8ToString( syncCookie ) );
-                    CONSUMER_LOG.debug( "assigning the cookie from sync state value control: {}",
-                        Strings.utf8ToString( syncCookie ) );
-                }
+            applier.submit( uuid, dn, () -> applyEntry( remoteEntry, uuid, syncStateCtrl, modifications, replicaId ),
+                cookie );
+        }
+    }
 
-                SyncStateTypeEnum state = syncStateCtrl.getSyncStateType();
 
-                // check to avoid conversion of UUID from byte[] to String
-                if ( CONSUMER_LOG.isDebugEnabled() )
-                {
-                    CONSUMER_LOG.debug( "state name {}", state.name() );
-                    CONSUMER_LOG.debug( "entryUUID = {}", Strings.uuidToString( syncStateCtrl.getEntryUUID() ) );
-                }
+    /**
+     * Applies a change received from the producer. This method may be called by several
+     * threads at the same time, for changes which don't depend on each other.
+     *
+     * @param remoteEntry The received entry
+     * @param uuid The entry UUID
+     * @param syncStateCtrl The sync state control sent with the entry
+     * @param modifications The modifications to apply on the entry, or null if the whole entry has been sent
+     * @param rid The replica ID of the producer
+     * @return true if the change has been applied
+     */
+    private boolean applyEntry( Entry remoteEntry, String uuid, SyncStateValue syncStateCtrl,
+        List<Modification> modifications, int rid )
+    {
+        // lock on UUID to serialize the updates when there are multiple consumers
+        // connected to several producers and to the *same* base/partition
+        Object lock = getLockFor( uuid );
 
+        synchronized ( lock )
+        {
+            try
+            {
+                SyncStateTypeEnum state = syncStateCtrl.getSyncStateType();
                 Dn remoteDn = remoteEntry.getDn();
 
                 switch ( state )
                 {
                     case ADD:
-                        boolean remoteDnExist = false;
+                        add( remoteEntry, rid );
 
-                        try
-                        {
-                            remoteDnExist = session.exists( remoteDn );
-                        }
-                        catch ( LdapNoSuchObjectException lnsoe )
-                        {
-                            CONSUMER_LOG.error( lnsoe.getMessage() );
-                        }
+                        break;
+
+                    case MODIFY:
+                        CONSUMER_LOG.debug( "modifying entry with dn {}", remoteEntry.getDn().getName() );
 
-                        if ( !remoteDnExist )
+                        if ( modifications != null )
                         {
-                            CONSUMER_LOG.debug( "adding entry with dn {}", remoteDn );
-                            CONSUMER_LOG.debug( remoteEntry.toString() );
-                            AddOperationContext addContext = new AddOperationContext( session, remoteEntry );
-                            addContext.setReplEvent( true );
-                            addContext.setRid( rid );
-
-                            OperationManager operationManager = directoryService.getOperationManager();
-                            operationManager.add( addContext );
+                            modify( remoteEntry, modifications, rid );
                         }
                         else
                         {
-                            CONSUMER_LOG.debug( "updating entry in refreshOnly mode {}", remoteDn );
                             modify( remoteEntry, rid );
                         }
 
                         break;
 
-                    case MODIFY:
-                        CONSUMER_LOG.debug( "modifying entry with dn {}", remoteEntry.getDn().getName() );
-                        modify( remoteEntry, rid );
-
-                        break;
-
                     case MODDN:
                         String entryUuid = Strings.uuidToString( syncStateCtrl.getEntryUUID() );
                         applyModDnOperation( remoteEntry, entryUuid, rid );
@@ -454,19 +602,71 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
                         throw new IllegalArgumentException( "Unexpected sync state " + state );
                 }
 
-                // store the cookie only if the above operation was successful
-                if ( syncStateCtrl.getCookie() != null )
+                return true;
+            }
+            catch ( Exception e )
+            {
+                CONSUMER_LOG.error( e.getMessage(), e );
+
+                return false;
+            }
+        }
+    }
+
+
+    /**
+     * Adds the entries of a batch sent during a bulk initial refresh. The entries which
+     * don't exist locally are added with a single transaction, the other ones are updated
+     * as during a normal refresh. If the transaction fails, the entries are added one by one.
+     *
+     * @param bulkResp The IntermediateResponse containing the batch
+     */
+    private void handleBulkEntries( IntermediateResponse bulkResp )
+    {
+        try
+        {
+            List<Entry> entries = BulkRefresh.decode( schemaManager, bulkResp.getResponseValue() );
+            CONSUMER_LOG.debug( "Received a batch of {} entries from {}", entries.size(), config.getProducer() );
+
+            List<Entry> newEntries = new ArrayList<>( entries.size() );
+            List<Entry> oneByOne = new ArrayList<>();
+
+            for ( Entry entry : entries )
+            {
+                if ( presentUuids != null )
                 {
-                    storeCookie();
+                    presentUuids.add( entry.get( directoryService.getAtProvider().getEntryUUID() ).getString() );
+                }
+
+                if ( session.exists( entry.getDn() ) )
+                {
+                    oneByOne.add( entry );
+                }
+                else
+                {
+                    newEntries.add( entry );
                 }
             }
+
+            if ( !newEntries.isEmpty() && !BulkAdder.add( directoryService, session, newEntries ) )
+            {
+                oneByOne.addAll( 0, newEntries );
+            }
+
+            for ( Entry entry : oneByOne )
+            {
+                String uuid = entry.get( directoryService.getAtProvider().getEntryUUID() ).getString();
+                SyncStateValue syncStateCtrl = new SyncStateValueImpl();
+                syncStateCtrl.setSyncStateType( SyncStateTypeEnum.ADD );
+                syncStateCtrl.setEntryUUID( Strings.uuidToBytes( uuid ) );
+
+                applyEntry( entry, uuid, syncStateCtrl, null, -1 );
+            }
         }
         catch ( Exception e )
         {
-            CONSUMER_LOG.error( e.getMessage(), e );
+            CONSUMER_LOG.error( "Failed to process a batch of entries from {}", config.getProducer(), e );
         }
-
-        CONSUMER_LOG.debug( "------------- Ending handleSearchResult ------------" );
     }
 
 
@@ -486,7 +686,16 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
                 return;
             }
 
-            SyncInfoValue syncInfoValue = new SyncInfoValueImpl();
+            SyncInfoValue syncInfoValue;
+
+            if ( syncInfoResp instanceof SyncInfoValue )
+            {
+                syncInfoValue = ( SyncInfoValue ) syncInfoResp;
+            }
+            else
+            {
+                syncInfoValue = new SyncInfoValueImpl();
+            }
 
             byte[] cookie = syncInfoValue.getCookie();
 
@@ -515,16 +724,33 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
             CONSUMER_LOG.info( "refreshDeletes: {}", syncInfoValue.isRefreshDeletes() );
 
             List<byte[]> uuidList = syncInfoValue.getSyncUUIDs();
+            SynchronizationInfoEnum syncInfoType = syncInfoValue.getSyncInfoValueType();
 
-            // if refreshDeletes set to true then delete all the entries with entryUUID
-            // present in the syncIdSet
-            if ( syncInfoValue.isRefreshDeletes() )
+            if ( syncInfoType == SynchronizationInfoEnum.SYNC_ID_SET )
             {
-                deleteEntries( uuidList, false, replicaId );
+                if ( syncInfoValue.isRefreshDeletes() )
+                {
+                    // delete all the entries with entryUUID present in the syncIdSet
+                    deleteEntries( uuidList, replicaId );
+                }
+                else
+                {
+                    // Those entries are present on the producer. The other ones will be
+                    // deleted at the end of the present phase
+                    recordPresent( uuidList );
+                }
             }
-            else
+            else if ( syncInfoType == SynchronizationInfoEnum.REFRESH_PRESENT )
+            {
+                // The end of the present phase
+                presentPhase = true;
+                deleteMissingEntries( replicaId );
+                stopRecordingPresent();
+            }
+            else if ( ( syncInfoType == SynchronizationInfoEnum.REFRESH_DELETE ) || !presentPhase )
             {
-                deleteEntries( uuidList, true, replicaId );
+                // The refresh is done, or the producer does not use a present phase
+                stopRecordingPresent();
             }
 
             CONSUMER_LOG.info( "refreshDone: {}", syncInfoValue.isRefreshDone() );
@@ -716,6 +942,12 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         {
             disconnect();
         }
+
+        if ( applier != null )
+        {
+            applier.shutdown();
+            applier = null;
+        }
     }
 
 
@@ -767,6 +999,40 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
 
         searchRequest.addControl( syncReq );
 
+        // Without cookie, the initial content may be requested in batches
+        Control bulkControl = searchRequest.getControl( BulkRefresh.OID );
+
+        if ( bulkControl != null )
+        {
+            searchRequest.removeControl( bulkControl );
+        }
+
+        if ( ( syncCookie == null ) && config.isBulkInitialRefresh() )
+        {
+            searchRequest.addControl( new OpaqueControl( BulkRefresh.OID ) );
+        }
+
+        if ( config.isBatchedTransport() && ( searchRequest.getControl( BatchedChanges.OID ) == null ) )
+        {
+            searchRequest.addControl( new OpaqueControl( BatchedChanges.OID ) );
+        }
+
+        if ( config.isDeltaModifications() && ( searchRequest.getControl( DeltaModifications.OID ) == null ) )
+        {
+            searchRequest.addControl( new OpaqueControl( DeltaModifications.OID ) );
+        }
+
+        if ( ( applier == null ) && ( config.getApplyThreads() > 1 ) )
+        {
+            applier = new ParallelApplier( "syncrepl-" + config.getReplicaId(), config.getApplyThreads(),
+                this::commitCookie );
+        }
+
+        // Keep the UUIDs of the entries sent during the refresh, in case the producer
+        // uses a present phase
+        stopRecordingPresent();
+        presentUuids = new PresentEntries();
+
         // Do the search. We use a searchAsync because we want to get SearchResultDone responses
         SearchFuture sf = connection.searchAsync( searchRequest );
 
@@ -790,7 +1056,35 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
             }
             else if ( resp instanceof IntermediateResponse )
             {
-                handleSyncInfo( ( IntermediateResponse ) resp );
+                String responseName = ( ( IntermediateResponse ) resp ).getResponseName();
+
+                if ( BatchedChanges.OID.equals( responseName ) )
+                {
+                    if ( !handleBatchedChanges( ( IntermediateResponse ) resp ) )
+                    {
+                        // The changes of this batch are lost : don't store the cookies of the next
+                        // ones, and restart from the last applied change
+                        drainApplier();
+                        sf.cancel( true );
+                        disconnect();
+
+                        return ReplicationStatusEnum.DISCONNECTED;
+                    }
+                }
+                else
+                {
+                    // The other messages are about all the changes sent before them
+                    drainApplier();
+
+                    if ( BulkRefresh.OID.equals( responseName ) )
+                    {
+                        handleBulkEntries( ( IntermediateResponse ) resp );
+                    }
+                    else
+                    {
+                        handleSyncInfo( ( IntermediateResponse ) resp );
+                    }
+                }
             }
 
             // Next entry
@@ -798,6 +1092,9 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
             CONSUMER_LOG.debug( "Response from {} : {}", config.getProducer(), resp );
         }
 
+        // Wait for the received changes to be applied, and their cookie stored
+        drainApplier();
+
         if ( sf.isCancelled() )
         {
 
@@ -902,19 +1199,47 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         }
         finally
         {
-            // persist the cookie
-            storeCookie();
+            synchronized ( this )
+            {
+                // persist the cookie
+                storeCookie();
 
-            // reset the cookie
-            syncCookie = null;
+                // reset the cookie
+                syncCookie = null;
+            }
+        }
+    }
+
+
+    /**
+     * Waits until all the changes given to the applier have been applied
+     */
+    private void drainApplier() throws InterruptedException
+    {
+        if ( applier != null )
+        {
+            applier.drain();
         }
     }
 
 
+    /**
+     * Stores the cookie of a change once it has been applied, with all the changes
+     * received before it.
+     *
+     * @param cookie The cookie to store
+     */
+    private synchronized void commitCookie( byte[] cookie )
+    {
+        syncCookie = cookie;
+        storeCookie();
+    }
+
+
     /**
      * stores the cookie.
      */
-    private void storeCookie()
+    private synchronized void storeCookie()
     {
         CONSUMER_LOG.debug( "Storing the cookie '{}'", Strings.utf8ToString( syncCookie ) );
 
@@ -1125,34 +1450,14 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     private void modify( Entry remoteEntry, int rid ) throws Exception
     {
         String[] attributes = computeAttributes( config.getAttributes(), SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES );
+        Entry localEntry = lookupLocal( remoteEntry.getDn(), attributes );
 
-        LookupOperationContext lookupCtx =
-            new LookupOperationContext( session, remoteEntry.getDn(), attributes );
-
-        lookupCtx.setSyncreplLookup( true );
-
-        Entry localEntry;
-
-        Partition partition = session.getDirectoryService().getPartitionNexus().getPartition( remoteEntry.getDn() );
-
-        try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
-        {
-            lookupCtx.setTransaction( partitionTxn );
-            localEntry = session.getDirectoryService().getOperationManager().lookup( lookupCtx );
-        }
-
-        if ( config.isMmrMode() )
+        if ( config.isMmrMode() && isUpToDate( localEntry, remoteEntry ) )
         {
-            Csn localCsn = new Csn( localEntry.get( SchemaConstants.ENTRY_CSN_AT ).getString() );
-            Csn remoteCsn = new Csn( remoteEntry.get( SchemaConstants.ENTRY_CSN_AT ).getString() );
-
-            if ( localCsn.compareTo( remoteCsn ) >= 0 )
-            {
-                // just discard the received modified entry, that is old
-                CONSUMER_LOG.debug( "local modification is latest, discarding the modification of dn {}",
-                    remoteEntry.getDn() );
-                return;
-            }
+            // just discard the received modified entry, that is old
+            CONSUMER_LOG.debug( "local modification is latest, discarding the modification of dn {}",
+                remoteEntry.getDn() );
+            return;
         }
 
         remoteEntry.removeAttributes( MOD_IGNORE_AT );
@@ -1208,6 +1513,166 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     }
 
 
+    /**
+     * Adds an entry received from the producer, or updates it if it already exists
+     */
+    private void add( Entry remoteEntry, int rid ) throws Exception
+    {
+        Dn remoteDn = remoteEntry.getDn();
+        boolean remoteDnExist = false;
+
+        try
+        {
+            remoteDnExist = session.exists( remoteDn );
+        }
+        catch ( LdapNoSuchObjectException lnsoe )
+        {
+            CONSUMER_LOG.error( lnsoe.getMessage() );
+        }
+
+        if ( !remoteDnExist )
+        {
+            CONSUMER_LOG.debug( "adding entry with dn {}", remoteDn );
+            CONSUMER_LOG.debug( remoteEntry.toString() );
+            AddOperationContext addContext = new AddOperationContext( session, remoteEntry );
+            addContext.setReplEvent( true );
+            addContext.setRid( rid );
+
+            OperationManager operationManager = directoryService.getOperationManager();
+            operationManager.add( addContext );
+        }
+        else
+        {
+            CONSUMER_LOG.debug( "updating entry in refreshOnly mode {}", remoteDn );
+            modify( remoteEntry, rid );
+        }
+    }
+
+
+    /**
+     * Applies the modifications sent by the producer instead of the modified entry. The
+     * modifications are skipped if the local entry is as recent as the received change. If
+     * they can't be applied, because the local entry is missing or differs from the producer's
+     * one, the whole entry is read from the producer and applied as if it had been sent.
+     *
+     * @param remoteEntry The received entry, containing the DN, the entryUUID and the entryCSN
+     * @param modifications The modifications applied on the producer
+     * @param rid The replica ID of the producer
+     */
+    private void modify( Entry remoteEntry, List<Modification> modifications, int rid ) throws Exception
+    {
+        Dn dn = remoteEntry.getDn();
+        Entry localEntry = null;
+
+        try
+        {
+            localEntry = lookupLocal( dn, SchemaConstants.ENTRY_CSN_AT );
+        }
+        catch ( LdapNoSuchObjectException lnsoe )
+        {
+            CONSUMER_LOG.debug( "the entry {} does not exist locally", dn );
+        }
+
+        if ( localEntry != null )
+        {
+            if ( isUpToDate( localEntry, remoteEntry ) )
+            {
+                // The modifications have already been applied, or the local entry is more recent
+                CONSUMER_LOG.debug( "local entry is up to date, discarding the modifications of dn {}", dn );
+                return;
+            }
+
+            List<Modification> serverModifications = new ArrayList<>( modifications.size() );
+
+            for ( Modification modification : modifications )
+            {
+                if ( !isModIgnored( modification.getAttribute().getAttributeType() ) )
+                {
+                    serverModifications.add( modification );
+                }
+            }
+
+            ModifyOperationContext modifyContext = new ModifyOperationContext( session, dn, serverModifications );
+            modifyContext.setReplEvent( true );
+            modifyContext.setRid( rid );
+
+            try
+            {
+                directoryService.getOperationManager().modify( modifyContext );
+
+                return;
+            }
+            catch ( LdapException le )
+            {
+                CONSUMER_LOG.info( "Failed to apply the modifications of dn {}, reading the entry from {} : {}", dn,
+                    config.getProducer(), le.getMessage() );
+            }
+        }
+
+        // Fall back to the whole entry
+        String[] attributes = computeAttributes( config.getAttributes(), SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES );
+        Entry producerEntry = connection.lookup( dn, new Control[]
+            { new ManageDsaITImpl() }, attributes );
+
+        if ( producerEntry == null )
+        {
+            // The entry has been renamed or deleted on the producer since : we will get that change later
+            CONSUMER_LOG.debug( "the entry {} does not exist anymore on {}", dn, config.getProducer() );
+            return;
+        }
+
+        add( new DefaultEntry( schemaManager, producerEntry ), rid );
+    }
+
+
+    /**
+     * Reads a local entry, as a replication lookup
+     */
+    private Entry lookupLocal( Dn dn, String... attributes ) throws Exception
+    {
+        LookupOperationContext lookupCtx = new LookupOperationContext( session, dn, attributes );
+        lookupCtx.setSyncreplLookup( true );
+
+        Partition partition = session.getDirectoryService().getPartitionNexus().getPartition( dn );
+
+        try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
+        {
+            lookupCtx.setTransaction( partitionTxn );
+
+            return session.getDirectoryService().getOperationManager().lookup( lookupCtx );
+        }
+    }
+
+
+    /**
+     * Tells if the local entry is at least as recent as the received one
+     */
+    private boolean isUpToDate( Entry localEntry, Entry remoteEntry ) throws LdapException
+    {
+        Csn localCsn = new Csn( localEntry.get( SchemaConstants.ENTRY_CSN_AT ).getString() );
+        Csn remoteCsn = new Csn( remoteEntry.get( SchemaConstants.ENTRY_CSN_AT ).getString() );
+
+        return localCsn.compareTo( remoteCsn ) >= 0;
+    }
+
+
+    /**
+     * Tells if the modifications of an attribute are never replicated
+     */
+    private boolean isModIgnored( AttributeType attributeType )
+    {
+        for ( String ignored : MOD_IGNORE_AT )
+        {
+            if ( attributeType.equals( schemaManager.getAttributeType( ignored ) ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
     /**
      * Create a new list combining a list and a newly added attribute
      */
@@ -1245,26 +1710,95 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
 
 
     /**
-     * deletes the entries having the UUID given in the list
+     * Records the UUIDs of entries which are present on the producer.
      *
      * @param uuidList the list of UUIDs
-     * @param replicaId TODO
-     * @throws Exception in case of any problems while deleting the entries
+     * @throws IOException If the UUIDs can't be written on disk
      */
-    private void deleteEntries( List<byte[]> uuidList, boolean isRefreshPresent, int replicaId ) throws Exception
+    private void recordPresent( List<byte[]> uuidList ) throws IOException
     {
-        if ( uuidList == null || uuidList.isEmpty() )
+        presentPhase = true;
+
+        if ( ( uuidList == null ) || ( presentUuids == null ) )
         {
             return;
         }
 
-        // if it is refreshPresent list then send all the UUIDs for
-        // filtering, otherwise breaking the list will cause the
-        // other present entries to be deleted from DIT
-        if ( isRefreshPresent )
+        CONSUMER_LOG.debug( "refresh present syncinfo list has {} UUIDs", uuidList.size() );
+
+        for ( byte[] uuid : uuidList )
+        {
+            presentUuids.add( uuid );
+        }
+    }
+
+
+    /**
+     * Stops recording the UUIDs of the present entries, and deletes the temporary files.
+     */
+    private void stopRecordingPresent()
+    {
+        if ( presentUuids != null )
+        {
+            presentUuids.close();
+            presentUuids = null;
+        }
+
+        presentPhase = false;
+    }
+
+
+    /**
+     * Deletes the local entries which haven't been sent or listed by the producer during the
+     * present phase, from the deepest ones up to the base, so that the children are deleted
+     * before their parent.
+     *
+     * @param replicaId The replica ID
+     * @throws Exception If the entries can't be read or deleted
+     */
+    private void deleteMissingEntries( int replicaId ) throws Exception
+    {
+        if ( presentUuids == null )
+        {
+            CONSUMER_LOG.warn( "The present phase has not been recorded from its start, no entry will be deleted" );
+
+            return;
+        }
+
+        Map<Integer, List<Dn>> missingDns = presentUuids.findMissing( session,
+            new Dn( schemaManager, config.getBaseDn() ) );
+
+        CONSUMER_LOG.info( "{} local entries are not present on the producer, deleting them",
+            missingDns.values().stream().mapToInt( List::size ).sum() );
+
+        for ( List<Dn> dns : missingDns.values() )
+        {
+            for ( Dn dn : dns )
+            {
+                try
+                {
+                    deleteEntry( dn, replicaId );
+                }
+                catch ( LdapNoSuchObjectException lnsoe )
+                {
+                    CONSUMER_LOG.debug( "The entry {} has already been deleted", dn );
+                }
+            }
+        }
+    }
+
+
+    /**
+     * deletes the entries having the UUID given in the list
+     *
+     * @param uuidList the list of UUIDs
+     * @param replicaId The replica ID
+     * @throws Exception in case of any problems while deleting the entries
+     */
+    private void deleteEntries( List<byte[]> uuidList, int replicaId ) throws Exception
+    {
+        if ( uuidList == null || uuidList.isEmpty() )
         {
-            CONSUMER_LOG.debug( "refresh present syncinfo list has {} UUIDs", uuidList.size() );
-            processDelete( uuidList, isRefreshPresent, replicaId );
             return;
         }
 
@@ -1277,7 +1811,7 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         for ( ; i < count; i++ )
         {
             startIndex = i * nodeLimit;
-            processDelete( uuidList.subList( startIndex, startIndex + nodeLimit ), isRefreshPresent, replicaId );
+            processDelete( uuidList.subList( startIndex, startIndex + nodeLimit ), replicaId );
         }
 
         if ( ( uuidList.size() % nodeLimit ) != 0 )
@@ -1288,7 +1822,7 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
                 startIndex = i * nodeLimit;
             }
 
-            processDelete( uuidList.subList( startIndex, uuidList.size() ), isRefreshPresent, replicaId );
+            processDelete( uuidList.subList( startIndex, uuidList.size() ), replicaId );
         }
     }
 
@@ -1296,12 +1830,10 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     /**
      * do not call this method directly, instead call deleteEntries()
      *
-     * @param limitedUuidList a list of UUIDs whose size is less than or equal to #NODE_LIMIT (node limit applies only for refreshDeletes list)
-     * @param isRefreshPresent a flag indicating the type of entries present in the UUID list
-     * @param replicaId TODO
+     * @param limitedUuidList a list of UUIDs whose size is less than or equal to #NODE_LIMIT
+     * @param replicaId The replica ID
      */
-    private void processDelete( List<byte[]> limitedUuidList, boolean isRefreshPresent, int replicaId )
-        throws Exception
+    private void processDelete( List<byte[]> limitedUuidList, int replicaId ) throws Exception
     {
         ExprNode filter = null;
         int size = limitedUuidList.size();
@@ -1310,36 +1842,17 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
             String uuid = Strings.uuidToString( limitedUuidList.get( 0 ) );
 
             filter = new EqualityNode<String>( SchemaConstants.ENTRY_UUID_AT, uuid );
-            if ( isRefreshPresent )
-            {
-                filter = new NotNode( filter );
-            }
         }
         else
         {
-            if ( isRefreshPresent )
-            {
-                filter = new AndNode();
-            }
-            else
-            {
-                filter = new OrNode();
-            }
+            filter = new OrNode();
 
             for ( int i = 0; i < size; i++ )
             {
                 String uuid = Strings.uuidToString( limitedUuidList.get( i ) );
                 ExprNode uuidEqNode = new EqualityNode<String>( SchemaConstants.ENTRY_UUID_AT, uuid );
 
-                if ( isRefreshPresent )
-                {
-                    uuidEqNode = new NotNode( uuidEqNode );
-                    ( ( AndNode ) filter ).addNode( uuidEqNode );
-                }
-                else
-                {
-                    ( ( OrNode ) filter ).addNode( uuidEqNode );
-                }
+                ( ( OrNode ) filter ).addNode( uuidEqNode );
             }
         }
 
@@ -1363,8 +1876,6 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         ctrl.addSortKey( sk );
         req.addControl( ctrl );
 
-        OperationManager operationManager = directoryService.getOperationManager();
-
         Cursor<Entry> cursor = session.search( req );
         cursor.beforeFirst();
 
@@ -1372,22 +1883,35 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         {
             Entry entry = cursor.get();
 
-            DeleteOperationContext ctx = new DeleteOperationContext( session );
-            ctx.setReplEvent( true );
-            ctx.setRid( replicaId );
+            deleteEntry( entry.getDn(), replicaId );
+        }
 
-            // DO NOT generate replication event if this is being deleted as part of
-            // e_sync_refresh_required
-            if ( reload )
-            {
-                ctx.setGenerateNoReplEvt( true );
-            }
+        cursor.close();
+    }
 
-            ctx.setDn( entry.getDn() );
-            operationManager.delete( ctx );
+
+    /**
+     * Deletes an entry as a replication operation
+     *
+     * @param dn The entry DN
+     * @param replicaId The replica ID
+     * @throws LdapException If the entry can't be deleted
+     */
+    private void deleteEntry( Dn dn, int replicaId ) throws LdapException
+    {
+        DeleteOperationContext ctx = new DeleteOperationContext( session );
+        ctx.setReplEvent( true );
+        ctx.setRid( replicaId );
+
+        // DO NOT generate replication event if this is being deleted as part of
+        // e_sync_refresh_required
+        if ( reload )
+        {
+            ctx.setGenerateNoReplEvt( true );
         }
 
-        cursor.close();
+        ctx.setDn( dn );
+        directoryService.getOperationManager().delete( ctx );
     }
 
 
@@ -1436,26 +1960,11 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
             cursor = session.search( req );
             cursor.beforeFirst();
 
-            OperationManager operationManager = directoryService.getOperationManager();
-
             while ( cursor.next() )
             {
                 Entry e = cursor.get();
 
-                DeleteOperationContext ctx = new DeleteOperationContext( session );
-                ctx.setReplEvent( true );
-                ctx.setRid( rid );
-
-                // DO NOT generate replication event if this is being deleted as part of
-                // e_sync_refresh_required
-                if ( reload )
-                {
-                    ctx.setGenerateNoReplEvt( true );
-                }
-
-                ctx.setDn( e.getDn() );
-
-                operationManager.delete( ctx );
+                deleteEntry( e.getDn(), rid );
             }
         }
         catch ( Exception e )
@@ -0,0 +1,399 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.consumer;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.UUID;
+
+
+/**
+ * Sorts a set of entry UUIDs, each one with an optional String (typically the entry DN),
+ * without keeping more than a given number of them in memory : when the limit is reached,
+ * the UUIDs are sorted and written in a temporary file. The sorted UUIDs are then read by
+ * merging those files. A UUID added more than once is only returned once.
+ * <p>
+ * This class is not thread safe. It must be closed to delete the temporary files.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class UuidSorter implements Closeable
+{
+    /** The default maximum number of UUIDs kept in memory */
+    public static final int DEFAULT_MAX_IN_MEMORY = 500_000;
+
+    /** The order of the UUIDs */
+    private static final Comparator<Element> ORDER = ( e1, e2 ) -> e1.uuid.compareTo( e2.uuid );
+
+    /** The maximum number of UUIDs kept in memory */
+    private final int maxInMemory;
+
+    /** The UUIDs not yet written on disk */
+    private List<Element> buffer = new ArrayList<>();
+
+    /** The sorted files */
+    private final List<File> runs = new ArrayList<>();
+
+    /** The number of added UUIDs, including duplicates */
+    private long size;
+
+
+    /**
+     * A UUID and its associated value
+     */
+    private static final class Element
+    {
+        private final UUID uuid;
+        private final String value;
+
+
+        Element( UUID uuid, String value )
+        {
+            this.uuid = uuid;
+            this.value = value;
+        }
+    }
+
+
+    /**
+     * Creates a UuidSorter keeping at most DEFAULT_MAX_IN_MEMORY UUIDs in memory
+     */
+    public UuidSorter()
+    {
+        this( DEFAULT_MAX_IN_MEMORY );
+    }
+
+
+    /**
+     * Creates a UuidSorter
+     *
+     * @param maxInMemory The maximum number of UUIDs kept in memory
+     */
+    public UuidSorter( int maxInMemory )
+    {
+        this.maxInMemory = Math.max( 1, maxInMemory );
+    }
+
+
+    /**
+     * Adds a UUID given as 16 bytes, as in the syncrepl messages
+     *
+     * @param uuid The UUID bytes
+     * @throws IOException If the UUIDs can't be written on disk
+     */
+    public void add( byte[] uuid ) throws IOException
+    {
+        ByteBuffer bytes = ByteBuffer.wrap( uuid );
+
+        add( new UUID( bytes.getLong(), bytes.getLong() ), null );
+    }
+
+
+    /**
+     * Adds a UUID
+     *
+     * @param uuid The UUID
+     * @param value The associated value, or null
+     * @throws IOException If the UUIDs can't be written on disk
+     */
+    public void add( UUID uuid, String value ) throws IOException
+    {
+        buffer.add( new Element( uuid, value ) );
+        size++;
+
+        if ( buffer.size() >= maxInMemory )
+        {
+            spill();
+        }
+    }
+
+
+    /**
+     * @return The number of added UUIDs, including the duplicates
+     */
+    public long size()
+    {
+        return size;
+    }
+
+
+    /**
+     * @return The number of temporary files written so far
+     */
+    public int getNbRuns()
+    {
+        return runs.size();
+    }
+
+
+    /**
+     * Sorts the buffered UUIDs and writes them in a temporary file
+     */
+    private void spill() throws IOException
+    {
+        buffer.sort( ORDER );
+
+        File run = Files.createTempFile( "uuids-", ".run" ).toFile();
+        run.deleteOnExit();
+        runs.add( run );
+
+        try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream(
+            Files.newOutputStream( run.toPath() ) ) ) )
+        {
+            for ( Element element : buffer )
+            {
+                out.writeLong( element.uuid.getMostSignificantBits() );
+                out.writeLong( element.uuid.getLeastSignificantBits() );
+                out.writeBoolean( element.value != null );
+
+                if ( element.value != null )
+                {
+                    out.writeUTF( element.value );
+                }
+            }
+        }
+
+        buffer = new ArrayList<>();
+    }
+
+
+    /**
+     * Gets the sorted UUIDs. No UUID can be added once this method has been called.
+     *
+     * @return An iterator over the sorted and deduplicated UUIDs
+     * @throws IOException If the temporary files can't be read
+     */
+    public SortedUuids sorted() throws IOException
+    {
+        buffer.sort( ORDER );
+
+        return new SortedUuids();
+    }
+
+
+    /**
+     * Deletes the temporary files.
+     */
+    @Override
+    public void close()
+    {
+        for ( File run : runs )
+        {
+            if ( !run.delete() )
+            {
+                run.deleteOnExit();
+            }
+        }
+
+        runs.clear();
+        buffer = new ArrayList<>();
+    }
+
+
+    /**
+     * A source of sorted elements : the memory buffer or a run
+     */
+    private abstract static class Source
+    {
+        Element head;
+
+
+        /**
+         * Reads the next element in head, or sets it to null at the end
+         */
+        abstract void advance() throws IOException;
+
+
+        void close() throws IOException
+        {
+        }
+    }
+
+
+    /**
+     * An iterator over the sorted UUIDs, merging the runs and the memory buffer.
+     */
+    public final class SortedUuids implements Closeable
+    {
+        private final PriorityQueue<Source> queue = new PriorityQueue<>(
+            ( s1, s2 ) -> ORDER.compare( s1.head, s2.head ) );
+        private final List<Source> sources = new ArrayList<>();
+        private Element current;
+
+
+        private SortedUuids() throws IOException
+        {
+            for ( File run : runs )
+            {
+                DataInputStream in = new DataInputStream( new BufferedInputStream(
+                    Files.newInputStream( run.toPath() ) ) );
+
+                sources.add( new Source()
+                {
+                    @Override
+                    void advance() throws IOException
+                    {
+                        try
+                        {
+                            UUID uuid = new UUID( in.readLong(), in.readLong() );
+                            head = new Element( uuid, in.readBoolean() ? in.readUTF() : null );
+                        }
+                        catch ( EOFException eofe )
+                        {
+                            head = null;
+                        }
+                    }
+
+
+                    @Override
+                    void close() throws IOException
+                    {
+                        in.close();
+                    }
+                } );
+            }
+
+            List<Element> memory = buffer;
+
+            sources.add( new Source()
+            {
+                private int pos = 0;
+
+
+                @Override
+                void advance()
+                {
+                    head = pos < memory.size() ? memory.get( pos++ ) : null;
+                }
+            } );
+
+            for ( Source source : sources )
+            {
+                source.advance();
+
+                if ( source.head != null )
+                {
+                    queue.add( source );
+                }
+            }
+        }
+
+
+        /**
+         * Moves to the next UUID
+         *
+         * @return <code>true</code> if there is one
+         * @throws IOException If a temporary file can't be read
+         */
+        public boolean next() throws IOException
+        {
+            UUID previous = current == null ? null : current.uuid;
+
+            while ( !queue.isEmpty() )
+            {
+                Source source = queue.poll();
+                Element element = source.head;
+                source.advance();
+
+                if ( source.head != null )
+                {
+                    queue.add( source );
+                }
+
+                if ( ( previous == null ) || !previous.equals( element.uuid ) )
+                {
+                    current = element;
+
+                    return true;
+                }
+            }
+
+            current = null;
+
+            return false;
+        }
+
+
+        /**
+         * @return The current UUID
+         */
+        public UUID getUuid()
+        {
+            return current.uuid;
+        }
+
+
+        /**
+         * @return The value associated with the current UUID, or null
+         */
+        public String getValue()
+        {
+            return current.value;
+        }
+
+
+        /**
+         * Tells if a UUID is present, the UUIDs being looked for in ascending order.
+         * The iterator is moved to the first UUID greater or equal to the given one.
+         *
+         * @param uuid The UUID to look for
+         * @return <code>true</code> if the UUID is present
+         * @throws IOException If a temporary file can't be read
+         */
+        public boolean skipTo( UUID uuid ) throws IOException
+        {
+            while ( ( current == null ) || ( current.uuid.compareTo( uuid ) < 0 ) )
+            {
+                if ( !next() )
+                {
+                    return false;
+                }
+            }
+
+            return current.uuid.equals( uuid );
+        }
+
+
+        /**
+         * Closes the temporary files
+         */
+        @Override
+        public void close() throws IOException
+        {
+            for ( Source source : sources )
+            {
+                source.close();
+            }
+        }
+    }
+}
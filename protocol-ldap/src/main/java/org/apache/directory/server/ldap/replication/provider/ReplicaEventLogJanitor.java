@@ -20,20 +20,18 @@
 package org.apache.directory.server.ldap.replication.provider;
 
 
-import java.io.File;
 import java.util.Map;
 
-import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.csn.Csn;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.server.core.api.DirectoryService;
-import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 /**
- * Deletes old entries from the replication event logs that are configured in refreshNPersist mode.
+ * Deletes the replication event logs which have been idle for too long, and the segments of the
+ * replication journal which have been sent to all the consumers.
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -55,14 +53,18 @@ public class ReplicaEventLogJanitor extends Thread
 
     private long thresholdTime = 2 * 60 * 60 * 1000L;
 
+    /** The journal shared by the consumers */
+    private ReplicaJournal journal;
+
 
     public ReplicaEventLogJanitor( final DirectoryService directoryService,
-        final Map<Integer, ReplicaEventLog> replicaLogMap )
+        final Map<Integer, ReplicaEventLog> replicaLogMap, final ReplicaJournal journal )
     {
-        // if log is in refreshNpersist mode, has more entries than the log's threshold count then 
-        // all the entries before the last sent CSN and older than 2 hours will be purged
+        // if the journal has more entries than the logs' threshold count then the segments
+        // sent to all the consumers and older than 2 hours will be purged
         this.directoryService = directoryService;
         this.replicaLogMap = replicaLogMap;
+        this.journal = journal;
         setDaemon( true );
     }
 
@@ -72,6 +74,11 @@ public class ReplicaEventLogJanitor extends Thread
     {
         while ( !stop )
         {
+            // The oldest CSN received by all the consumers
+            String purgeCsn = null;
+            boolean purge = true;
+            long thresholdCount = Long.MAX_VALUE;
+
             for ( ReplicaEventLog log : replicaLogMap.values() )
             {
                 synchronized ( log ) // lock the log and clean
@@ -83,7 +90,8 @@ public class ReplicaEventLogJanitor extends Thread
                         if ( lastSentCsn == null )
                         {
                             LOG.debug( "last sent CSN is null for the replica {}, skipping cleanup", log.getName() );
-                            return;
+                            purge = false;
+                            continue;
                         }
 
                         long now = directoryService.getTimeProvider().currentIimeMillis();
@@ -119,52 +127,26 @@ public class ReplicaEventLogJanitor extends Thread
                             continue;
                         }
 
-                        long thresholdCount = log.getPurgeThresholdCount();
-
-                        if ( log.count() < thresholdCount )
-                        {
-                            continue;
-                        }
-
-                        LOG.debug( "starting to purge the log entries that are older than {} milliseconds",
-                            thresholdTime );
-
-                        long deleteCount = 0;
-
-                        ReplicaJournalCursor cursor = log.getCursor( null ); // pass no CSN
-                        cursor.skipQualifyingWhileFetching();
-
-                        while ( cursor.next() )
+                        if ( ( purgeCsn == null ) || ( lastSentCsn.compareTo( purgeCsn ) < 0 ) )
                         {
-                            ReplicaEventMessage message = cursor.get();
-                            String csnVal = message.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString();
-
-                            // skip if we reach the lastSentCsn or got past it
-                            if ( csnVal.compareTo( lastSentCsn ) >= 0 )
-                            {
-                                break;
-                            }
-
-                            Csn csn = new Csn( csnVal );
-
-                            if ( ( now - csn.getTimestamp() ) >= thresholdTime )
-                            {
-                                cursor.delete();
-                                deleteCount++;
-                            }
+                            purgeCsn = lastSentCsn;
                         }
 
-                        cursor.close();
-
-                        LOG.debug( "purged {} messages from the log {}", deleteCount, log.getName() );
+                        thresholdCount = Math.min( thresholdCount, log.getPurgeThresholdCount() );
                     }
                     catch ( Exception e )
                     {
-                        LOG.warn( "Failed to purge old entries from the log {}", log.getName(), e );
+                        LOG.warn( "Failed to check the log {}", log.getName(), e );
+                        purge = false;
                     }
                 }
             }
 
+            if ( purge && ( purgeCsn != null ) && ( journal.getNbRecords() >= thresholdCount ) )
+            {
+                purgeJournal( purgeCsn );
+            }
+
             try
             {
                 synchronized ( lock )
@@ -180,6 +162,35 @@ public class ReplicaEventLogJanitor extends Thread
     }
 
 
+    /**
+     * Deletes the journal segments which only contain messages received by all the consumers,
+     * and older than the threshold time.
+     */
+    private void purgeJournal( String purgeCsn )
+    {
+        try
+        {
+            long now = directoryService.getTimeProvider().currentIimeMillis();
+            Csn thresholdCsn = new Csn( now - thresholdTime, 0, 0, 0 );
+
+            if ( thresholdCsn.toString().compareTo( purgeCsn ) < 0 )
+            {
+                purgeCsn = thresholdCsn.toString();
+            }
+
+            LOG.debug( "starting to purge the journal segments older than {}", purgeCsn );
+
+            int deleteCount = journal.truncate( purgeCsn );
+
+            LOG.debug( "purged {} segments from the journal {}", deleteCount, journal );
+        }
+        catch ( Exception e )
+        {
+            LOG.warn( "Failed to purge old segments from the journal {}", journal, e );
+        }
+    }
+
+
     public synchronized void removeEventLog( ReplicaEventLog replicaEventLog )
     {
         directoryService.getEventService().removeListener( replicaEventLog.getPersistentListener() );
@@ -190,10 +201,8 @@ public class ReplicaEventLogJanitor extends Thread
 
         try
         {
+            // The messages of this log will be deleted with the journal segments
             replicaEventLog.stop();
-
-            new File( directoryService.getInstanceLayout().getReplDirectory(), name + ".db" ).delete();
-            new File( directoryService.getInstanceLayout().getReplDirectory(), name + ".lg" ).delete();
             LOG.info( "successfully removed replication event log {}", name );
         }
         catch ( Exception e )
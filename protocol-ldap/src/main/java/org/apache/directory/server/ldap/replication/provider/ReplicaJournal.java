@@ -0,0 +1,967 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessageSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The journal of the modifications to send to the consumers, shared by all of them. Each
+ * modification is stored once, in an append-only log split in memory mapped segments, with
+ * the list of the replicas it has to be sent to. The consumers read it with their own
+ * {@link ReplicaJournalCursor}, starting after the last CSN they have received.
+ * <p>
+ * As the listeners of all the consumers are called one after the other for a modification,
+ * the journal remembers the last written records : when another consumer logs the same
+ * modification, a small record referencing the message is appended instead of writing the
+ * entry again. A record is never modified once written, so a cursor which has already read
+ * past the message still gets the reference.
+ * <p>
+ * A record is written as :
+ * <pre>
+ * [length (int)][CRC32 (int)][replica ID (int)][message position (int), 0 if it follows][CSN length (short)][CSN][message]
+ * </pre>
+ * The checksum covers the record after it. The length is written last, and as the mapped pages
+ * may be written on disk in any order, a record partially written before a crash is detected by
+ * its checksum : the segment ends before it when it is opened again. A reference is always in
+ * the same segment as the message. The segments are deleted as a whole, once all the consumers
+ * have received their content.
+ * <p>
+ * The current segment is written on disk when it is sealed, when the journal is closed, and
+ * every time a given number of records have been appended, or a given time has elapsed since
+ * an append, so that a crash loses a bounded number of records.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaJournal
+{
+    /** A logger for the replication provider */
+    private static final Logger PROVIDER_LOG = LoggerFactory.getLogger( Loggers.PROVIDER_LOG.getName() );
+
+    /** The prefix of the segment files */
+    public static final String SEGMENT_NAME_PREFIX = "REPL_JOURNAL.";
+
+    /** The default segment size, 16Mb */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /** The magic number at the beginning of the segments */
+    private static final int MAGIC = 0x52504C4A;
+
+    /** The segment format version */
+    private static final int VERSION = 3;
+
+    /** The size of the segment header : magic and version */
+    static final int HEADER_SIZE = 8;
+
+    /** The default number of records appended before the current segment is written on disk */
+    public static final int DEFAULT_SYNC_RECORDS = 1000;
+
+    /** The default time after which the appended records are written on disk, in milliseconds */
+    public static final long DEFAULT_SYNC_INTERVAL = 1000L;
+
+    /** The number of records remembered to merge the messages logged by several consumers */
+    private static final int MAX_RECENT_RECORDS = 1024;
+
+    /** The directory containing the segments */
+    private final File directory;
+
+    /** The size of a new segment */
+    private final int segmentSize;
+
+    /** The message serializer */
+    private final ReplicaEventMessageSerializer serializer;
+
+    /** The segments, the oldest first. The last one is the one we append to */
+    private final List<Segment> segments = new ArrayList<>();
+
+    /** The size of the fixed part of a record : length, checksum, replica ID, message position and CSN length */
+    private static final int RECORD_HEADER_SIZE = 18;
+
+    /** The last written messages, in the current segment */
+    private final Map<String, RecentRecord> recentRecords = new LinkedHashMap<String, RecentRecord>( 16, 0.75f,
+        false )
+    {
+        private static final long serialVersionUID = 1L;
+
+
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<String, RecentRecord> eldest )
+        {
+            return size() > MAX_RECENT_RECORDS;
+        }
+    };
+
+    /** The number of the next segment */
+    private long nextNumber;
+
+    /** The lock protecting the writes and the list of segments */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Signaled when a record is appended to a synced segment, or when the journal is closed */
+    private final Condition appended = lock.newCondition();
+
+    /** The number of records appended before the current segment is written on disk */
+    private final int syncRecords;
+
+    /** The time after which the appended records are written on disk, in nanoseconds */
+    private final long syncInterval;
+
+    /** The number of records appended since the current segment has been written on disk */
+    private int unsyncedRecords;
+
+    /** The thread writing the current segment on disk when records have been appended for a while */
+    private final Thread syncThread;
+
+    /** Tells if the journal has been closed */
+    private boolean closed;
+
+
+    /**
+     * A segment of the journal, mapped in memory.
+     */
+    static final class Segment
+    {
+        /** The segment number */
+        private final long number;
+
+        /** The segment file */
+        private final File file;
+
+        /** The mapped file content */
+        private final MappedByteBuffer buffer;
+
+        /** The position after the last record. The records before it can be read */
+        private volatile int limit;
+
+        /** The greatest CSN stored in this segment */
+        private volatile String maxCsn;
+
+        /** The number of stored messages, not counting the references */
+        private volatile int nbRecords;
+
+
+        private Segment( long number, File file, MappedByteBuffer buffer )
+        {
+            this.number = number;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+
+        /**
+         * @return A view on the segment content, to be used by a single thread
+         */
+        ByteBuffer view()
+        {
+            return buffer.duplicate();
+        }
+
+
+        int getLimit()
+        {
+            return limit;
+        }
+
+
+        String getMaxCsn()
+        {
+            return maxCsn;
+        }
+
+
+        long getNumber()
+        {
+            return number;
+        }
+
+
+        private void updateMaxCsn( String csn )
+        {
+            if ( ( maxCsn == null ) || ( csn.compareTo( maxCsn ) > 0 ) )
+            {
+                maxCsn = csn;
+            }
+        }
+
+
+        @Override
+        public String toString()
+        {
+            return "Segment[" + file.getName() + ", " + nbRecords + " records, " + limit + " bytes, maxCsn="
+                + maxCsn + "]";
+        }
+    }
+
+
+    /**
+     * A message recently written in the current segment
+     */
+    private static final class RecentRecord
+    {
+        /** The position of the record holding the message */
+        private final int position;
+
+        /** The replicas the message has been logged for */
+        private final Set<Integer> replicaIds = new HashSet<>();
+
+
+        private RecentRecord( int position, int replicaId )
+        {
+            this.position = position;
+            replicaIds.add( replicaId );
+        }
+    }
+
+
+    /**
+     * Creates or opens a journal, using the default segment size.
+     *
+     * @param directory The directory containing the segments
+     * @param schemaManager The schema manager
+     * @throws IOException If the existing segments can't be read
+     */
+    public ReplicaJournal( File directory, SchemaManager schemaManager ) throws IOException
+    {
+        this( directory, schemaManager, DEFAULT_SEGMENT_SIZE );
+    }
+
+
+    /**
+     * Creates or opens a journal, writing the appended records on disk after the default
+     * number of records or time.
+     *
+     * @param directory The directory containing the segments
+     * @param schemaManager The schema manager
+     * @param segmentSize The size of the segments
+     * @throws IOException If the existing segments can't be read
+     */
+    public ReplicaJournal( File directory, SchemaManager schemaManager, int segmentSize ) throws IOException
+    {
+        this( directory, schemaManager, segmentSize, DEFAULT_SYNC_RECORDS, DEFAULT_SYNC_INTERVAL );
+    }
+
+
+    /**
+     * Creates or opens a journal.
+     *
+     * @param directory The directory containing the segments
+     * @param schemaManager The schema manager
+     * @param segmentSize The size of the segments
+     * @param syncRecords The number of records appended before they are written on disk
+     * @param syncInterval The time after which the appended records are written on disk, in milliseconds
+     * @throws IOException If the existing segments can't be read
+     */
+    public ReplicaJournal( File directory, SchemaManager schemaManager, int segmentSize, int syncRecords,
+        long syncInterval ) throws IOException
+    {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.serializer = new ReplicaEventMessageSerializer( schemaManager );
+        this.syncRecords = Math.max( syncRecords, 1 );
+        this.syncInterval = TimeUnit.MILLISECONDS.toNanos( Math.max( syncInterval, 1L ) );
+
+        open();
+
+        syncThread = new Thread( this::syncPeriodically, "ReplicaJournalSync" );
+        syncThread.setDaemon( true );
+        syncThread.start();
+    }
+
+
+    /**
+     * Opens the existing segments, in order
+     */
+    private void open() throws IOException
+    {
+        File[] files = directory.listFiles( new FilenameFilter()
+        {
+            @Override
+            public boolean accept( File dir, String name )
+            {
+                return name.startsWith( SEGMENT_NAME_PREFIX );
+            }
+        } );
+
+        if ( files == null )
+        {
+            return;
+        }
+
+        List<Long> numbers = new ArrayList<>();
+
+        for ( File file : files )
+        {
+            try
+            {
+                numbers.add( Long.parseLong( file.getName().substring( SEGMENT_NAME_PREFIX.length() ) ) );
+            }
+            catch ( NumberFormatException nfe )
+            {
+                PROVIDER_LOG.warn( "Ignoring the unexpected file {} in the replication journal", file );
+            }
+        }
+
+        Collections.sort( numbers );
+
+        for ( long number : numbers )
+        {
+            nextNumber = number + 1;
+            Segment segment = mapSegment( number, 0 );
+
+            if ( segment != null )
+            {
+                recover( segment );
+                segments.add( segment );
+                PROVIDER_LOG.debug( "Opened the replication journal {}", segment );
+            }
+        }
+    }
+
+
+    /**
+     * Reads the records of a segment to find where it ends and its greatest CSN
+     */
+    private void recover( Segment segment )
+    {
+        ByteBuffer view = segment.view();
+        int position = HEADER_SIZE;
+
+        while ( position + 4 <= view.capacity() )
+        {
+            int length = view.getInt( position );
+
+            if ( ( length < RECORD_HEADER_SIZE - 4 ) || ( position + 4 + length > view.capacity() ) )
+            {
+                break;
+            }
+
+            if ( view.getInt( position + 4 ) != checksum( view, position, length ) )
+            {
+                PROVIDER_LOG.warn( "The replication journal segment {} has an invalid record at {}, ignoring the "
+                    + "records after it", segment.file, position );
+
+                break;
+            }
+
+            segment.updateMaxCsn( readCsn( view, position ) );
+
+            if ( view.getInt( position + 12 ) == 0 )
+            {
+                segment.nbRecords++;
+            }
+
+            position += 4 + length;
+        }
+
+        segment.limit = position;
+    }
+
+
+    /**
+     * Maps a segment file, creating it if needed.
+     *
+     * @param number The segment number
+     * @param minSize The minimal size of a new segment
+     * @return The mapped segment, or null if the file is not a valid segment
+     */
+    private Segment mapSegment( long number, int minSize ) throws IOException
+    {
+        File file = new File( directory, SEGMENT_NAME_PREFIX + number );
+        boolean exists = file.exists();
+
+        try ( RandomAccessFile raf = new RandomAccessFile( file, "rw" ) )
+        {
+            long size = exists ? raf.length() : Math.max( segmentSize, minSize );
+
+            if ( exists && ( size < HEADER_SIZE ) )
+            {
+                PROVIDER_LOG.warn( "Ignoring the truncated replication journal segment {}", file );
+
+                return null;
+            }
+
+            MappedByteBuffer buffer = raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, size );
+
+            if ( exists )
+            {
+                if ( ( buffer.getInt( 0 ) != MAGIC ) || ( buffer.getInt( 4 ) != VERSION ) )
+                {
+                    PROVIDER_LOG.warn( "Ignoring the invalid replication journal segment {}", file );
+
+                    return null;
+                }
+            }
+            else
+            {
+                buffer.putInt( 0, MAGIC );
+                buffer.putInt( 4, VERSION );
+            }
+
+            Segment segment = new Segment( number, file, buffer );
+            segment.limit = HEADER_SIZE;
+
+            return segment;
+        }
+    }
+
+
+    /**
+     * Logs a message for a replica. If the same message has just been logged for another
+     * replica, a reference to its record is appended instead of the message.
+     *
+     * @param replicaId The replica ID
+     * @param message The message
+     * @throws IOException If the message can't be written
+     * @throws LdapException If the message entry has no CSN
+     */
+    public void append( int replicaId, ReplicaEventMessage message ) throws IOException, LdapException
+    {
+        String csn = message.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString();
+        String key = csn + ' ' + message.getChangeType() + ' ' + message.getEntry().getDn().getNormName();
+        byte[] csnBytes = csn.getBytes( StandardCharsets.UTF_8 );
+
+        lock.lock();
+
+        try
+        {
+            Segment current = segments.isEmpty() ? null : segments.get( segments.size() - 1 );
+            RecentRecord recent = recentRecords.get( key );
+
+            if ( recent != null )
+            {
+                if ( recent.replicaIds.contains( replicaId ) )
+                {
+                    return;
+                }
+
+                if ( current.limit + RECORD_HEADER_SIZE + csnBytes.length > current.buffer.capacity() )
+                {
+                    // The reference would be in the next segment : write the message again
+                    recent = null;
+                }
+            }
+
+            byte[] messageBytes = ( recent == null ) ? serializer.serialize( message ) : new byte[0];
+            int length = RECORD_HEADER_SIZE - 4 + csnBytes.length + messageBytes.length;
+
+            if ( ( current == null ) || ( current.limit + 4 + length > current.buffer.capacity() ) )
+            {
+                current = roll( current, HEADER_SIZE + 4 + length );
+            }
+
+            // Write the record content, its checksum, then its length
+            int start = current.limit;
+            ByteBuffer view = current.view();
+            view.position( start + 8 );
+            view.putInt( replicaId );
+            view.putInt( ( recent == null ) ? 0 : recent.position );
+            view.putShort( ( short ) csnBytes.length );
+            view.put( csnBytes );
+            view.put( messageBytes );
+            view.putInt( start + 4, checksum( view, start, length ) );
+            view.putInt( start, length );
+
+            current.updateMaxCsn( csn );
+            current.limit = start + 4 + length;
+
+            if ( recent == null )
+            {
+                current.nbRecords++;
+                recentRecords.put( key, new RecentRecord( start, replicaId ) );
+            }
+            else
+            {
+                recent.replicaIds.add( replicaId );
+            }
+
+            unsyncedRecords++;
+
+            if ( unsyncedRecords >= syncRecords )
+            {
+                syncCurrent();
+            }
+            else if ( unsyncedRecords == 1 )
+            {
+                // Start counting the time the record may stay in memory
+                appended.signal();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Computes the checksum of a record, from the replica ID to its end
+     */
+    private static int checksum( ByteBuffer view, int position, int length )
+    {
+        ByteBuffer content = view.duplicate();
+        content.limit( position + 4 + length );
+        content.position( position + 8 );
+
+        CRC32 crc = new CRC32();
+        crc.update( content );
+
+        return ( int ) crc.getValue();
+    }
+
+
+    /**
+     * Writes the current segment on disk. Must be called while holding the lock.
+     */
+    private void syncCurrent()
+    {
+        if ( !segments.isEmpty() )
+        {
+            segments.get( segments.size() - 1 ).buffer.force();
+        }
+
+        unsyncedRecords = 0;
+    }
+
+
+    /**
+     * Writes the appended records on disk when they have not been for the sync interval
+     */
+    private void syncPeriodically()
+    {
+        lock.lock();
+
+        try
+        {
+            while ( !closed )
+            {
+                if ( unsyncedRecords == 0 )
+                {
+                    appended.await();
+                }
+                else
+                {
+                    long remaining = appended.awaitNanos( syncInterval );
+
+                    // Only sync if the interval has elapsed, not on the next appends
+                    while ( ( remaining > 0L ) && !closed )
+                    {
+                        remaining = appended.awaitNanos( remaining );
+                    }
+
+                    if ( unsyncedRecords > 0 )
+                    {
+                        syncCurrent();
+                    }
+                }
+            }
+        }
+        catch ( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Seals the current segment and creates a new one
+     */
+    private Segment roll( Segment current, int minSize ) throws IOException
+    {
+        if ( current != null )
+        {
+            current.buffer.force();
+            unsyncedRecords = 0;
+        }
+
+        long number = nextNumber++;
+        Segment segment = mapSegment( number, minSize );
+
+        if ( segment == null )
+        {
+            throw new IOException( "Cannot create the replication journal segment " + number );
+        }
+
+        segments.add( segment );
+        recentRecords.clear();
+        PROVIDER_LOG.debug( "Created the replication journal segment {}", segment.file );
+
+        return segment;
+    }
+
+
+    /**
+     * Gets a cursor on the messages of a replica.
+     *
+     * @param replicaId The replica ID
+     * @param consumerCsn The last CSN received by the consumer, or null
+     * @return The cursor
+     */
+    public ReplicaJournalCursor cursor( int replicaId, String consumerCsn )
+    {
+        return new ReplicaJournalCursor( this, replicaId, consumerCsn );
+    }
+
+
+    /**
+     * Gets the first segment which may contain a message more recent than a CSN
+     *
+     * @param csn The CSN, or null to get the first segment
+     * @return The segment, or null if there is none
+     */
+    Segment firstSegmentAfter( String csn )
+    {
+        lock.lock();
+
+        try
+        {
+            for ( Segment segment : segments )
+            {
+                if ( ( csn == null ) || ( segment.maxCsn == null ) || ( segment.maxCsn.compareTo( csn ) > 0 ) )
+                {
+                    return segment;
+                }
+            }
+
+            return null;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Gets the segment following a segment
+     *
+     * @param segment The segment
+     * @return The next segment, or null if the given segment is the current one
+     */
+    Segment nextSegment( Segment segment )
+    {
+        lock.lock();
+
+        try
+        {
+            for ( Segment next : segments )
+            {
+                if ( next.number > segment.number )
+                {
+                    return next;
+                }
+            }
+
+            return null;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Tells if a record has to be sent to a replica
+     *
+     * @param view The segment content
+     * @param position The record position
+     * @param replicaId The replica ID
+     * @return true if the record has been logged for this replica
+     */
+    static boolean isFor( ByteBuffer view, int position, int replicaId )
+    {
+        return view.getInt( position + 8 ) == replicaId;
+    }
+
+
+    /**
+     * Reads the CSN of a record
+     *
+     * @param view The segment content
+     * @param position The record position
+     * @return The record CSN
+     */
+    static String readCsn( ByteBuffer view, int position )
+    {
+        int csnPosition = position + RECORD_HEADER_SIZE - 2;
+        int csnLength = view.getShort( csnPosition );
+        byte[] csnBytes = new byte[csnLength];
+        ByteBuffer csnView = view.duplicate();
+        csnView.position( csnPosition + 2 );
+        csnView.get( csnBytes );
+
+        return new String( csnBytes, StandardCharsets.UTF_8 );
+    }
+
+
+    /**
+     * Reads the message of a record, following the reference if the record has no message
+     *
+     * @param view The segment content
+     * @param position The record position
+     * @return The message
+     * @throws IOException If the message can't be read
+     */
+    ReplicaEventMessage readMessage( ByteBuffer view, int position ) throws IOException
+    {
+        int messageRecord = view.getInt( position + 12 );
+
+        if ( messageRecord != 0 )
+        {
+            return readMessage( view, messageRecord );
+        }
+
+        int length = view.getInt( position );
+        int csnPosition = position + RECORD_HEADER_SIZE - 2;
+        int messagePosition = csnPosition + 2 + view.getShort( csnPosition );
+        byte[] messageBytes = new byte[position + 4 + length - messagePosition];
+        ByteBuffer messageView = view.duplicate();
+        messageView.position( messagePosition );
+        messageView.get( messageBytes );
+
+        return ( ReplicaEventMessage ) serializer.deserialize( messageBytes );
+    }
+
+
+    /**
+     * Counts the messages to send to a replica, after a CSN
+     *
+     * @param replicaId The replica ID
+     * @param csn The CSN, or null to count all the messages
+     * @return The number of messages
+     */
+    public long count( int replicaId, String csn )
+    {
+        long count = 0L;
+
+        for ( Segment segment = firstSegmentAfter( csn ); segment != null; segment = nextSegment( segment ) )
+        {
+            ByteBuffer view = segment.view();
+            int limit = segment.limit;
+
+            for ( int position = HEADER_SIZE; position < limit; position += 4 + view.getInt( position ) )
+            {
+                if ( isFor( view, position, replicaId )
+                    && ( ( csn == null ) || ( readCsn( view, position ).compareTo( csn ) > 0 ) ) )
+                {
+                    count++;
+                }
+            }
+        }
+
+        return count;
+    }
+
+
+    /**
+     * @return The number of messages stored in the journal, not counting the references
+     */
+    public long getNbRecords()
+    {
+        lock.lock();
+
+        try
+        {
+            long nbRecords = 0L;
+
+            for ( Segment segment : segments )
+            {
+                nbRecords += segment.nbRecords;
+            }
+
+            return nbRecords;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @return The number of records appended since the current segment has been written on disk
+     */
+    int getUnsyncedRecords()
+    {
+        lock.lock();
+
+        try
+        {
+            return unsyncedRecords;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @return The number of segments
+     */
+    public int getNbSegments()
+    {
+        lock.lock();
+
+        try
+        {
+            return segments.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Deletes the segments which only contain messages older or equal to a CSN. The current
+     * segment is never deleted.
+     *
+     * @param csn The CSN all the consumers have received
+     * @return The number of deleted segments
+     */
+    public int truncate( String csn )
+    {
+        int nbDeleted = 0;
+
+        lock.lock();
+
+        try
+        {
+            while ( segments.size() > 1 )
+            {
+                Segment segment = segments.get( 0 );
+
+                if ( ( segment.maxCsn != null ) && ( segment.maxCsn.compareTo( csn ) > 0 ) )
+                {
+                    break;
+                }
+
+                segments.remove( 0 );
+                nbDeleted++;
+
+                if ( !segment.file.delete() )
+                {
+                    PROVIDER_LOG.warn( "Cannot delete the replication journal segment {}", segment.file );
+                }
+                else
+                {
+                    PROVIDER_LOG.debug( "Deleted the replication journal segment {}", segment );
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        return nbDeleted;
+    }
+
+
+    /**
+     * Writes the current segment on disk
+     */
+    public void sync()
+    {
+        lock.lock();
+
+        try
+        {
+            syncCurrent();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Writes the current segment on disk, and releases the segments
+     */
+    public void close()
+    {
+        lock.lock();
+
+        try
+        {
+            syncCurrent();
+            closed = true;
+            appended.signalAll();
+            segments.clear();
+            recentRecords.clear();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        try
+        {
+            syncThread.join();
+        }
+        catch ( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return "ReplicaJournal[" + directory + ", " + getNbSegments() + " segments, " + getNbRecords() + " records]";
+    }
+}
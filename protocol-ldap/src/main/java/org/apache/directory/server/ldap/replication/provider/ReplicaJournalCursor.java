@@ -22,25 +22,22 @@ package org.apache.directory.server.ldap.replication.provider;
 
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 
 import org.apache.directory.api.ldap.model.constants.Loggers;
-import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.cursor.AbstractCursor;
-import org.apache.directory.api.ldap.model.cursor.Cursor;
 import org.apache.directory.api.ldap.model.cursor.CursorException;
-import org.apache.directory.api.ldap.model.cursor.Tuple;
 import org.apache.directory.api.ldap.model.exception.LdapException;
-import org.apache.directory.api.ldap.model.message.controls.ChangeType;
-import org.apache.directory.server.core.api.partition.PartitionTxn;
-import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmTable;
 import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 /**
- * Define a cursor on top of a replication journal.
+ * Define a cursor on top of a replication journal. It reads the messages of one replica,
+ * in the journal order, skipping the segments which only contain messages older than the
+ * consumer's CSN. The messages appended while the cursor is read are also returned.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -55,35 +52,35 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
     /** Speedup for logs */
     private static final boolean IS_DEBUG = LOG_CURSOR.isDebugEnabled();
 
-    /** the underlying journal's cursor */
-    private Cursor<Tuple<String, ReplicaEventMessage>> tupleCursor;
+    /** the shared journal */
+    private ReplicaJournal journal;
 
-    /** the event log journal */
-    private JdbmTable<String, ReplicaEventMessage> journal;
+    /** The replica ID */
+    private int replicaId;
 
     /** the consumer's CSN based on which messages will be qualified for sending */
     private String consumerCsn;
 
-    private ReplicaEventMessage qualifiedEvtMsg;
+    /** The segment being read */
+    private ReplicaJournal.Segment segment;
+
+    /** The segment content */
+    private ByteBuffer view;
+
+    /** The position of the next record in the segment */
+    private int position;
 
-    /** used while cleaning up the log */
-    private boolean skipQualifying;
-    
-    /** The partition transaction */
-    private PartitionTxn partitionTxn;
-    
+    private ReplicaEventMessage qualifiedEvtMsg;
 
 
     /**
      * Creates a cursor on top of the given journal
-     * 
-     * @param partitionTxn The Transaction to use
+     *
      * @param journal the log journal
+     * @param replicaId The replica ID
      * @param consumerCsn the consumer's CSN taken from cookie
-     * @throws Exception If the cursor creation failed
      */
-    public ReplicaJournalCursor( PartitionTxn partitionTxn, JdbmTable<String, ReplicaEventMessage> journal, 
-            String consumerCsn ) throws Exception
+    public ReplicaJournalCursor( ReplicaJournal journal, int replicaId, String consumerCsn )
     {
         if ( IS_DEBUG )
         {
@@ -91,9 +88,8 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
         }
 
         this.journal = journal;
-        this.tupleCursor = journal.cursor();
+        this.replicaId = replicaId;
         this.consumerCsn = consumerCsn;
-        this.partitionTxn = partitionTxn;
     }
 
 
@@ -160,29 +156,26 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
 
 
     /**
-     * selects the current queue entry if qualified for sending to the consumer
-     * 
-     * @throws Exception
+     * selects the current record if qualified for sending to the consumer : it must be
+     * for this replica, and more recent than the consumer CSN.
      */
-    private boolean isQualified( String csn, ReplicaEventMessage evtMsg ) throws LdapException
+    private boolean isQualified()
     {
-        LOG.debug( "ReplicaEventMessage: {}", evtMsg );
-
-        if ( evtMsg.isEventOlderThan( consumerCsn ) )
+        if ( !ReplicaJournal.isFor( view, position, replicaId ) )
         {
-            if ( LOG.isDebugEnabled() )
-            {
-                String evt = "MODDN"; // take this as default cause the event type for MODDN is null
+            return false;
+        }
 
-                ChangeType changeType = evtMsg.getChangeType();
+        if ( consumerCsn == null )
+        {
+            return true;
+        }
 
-                if ( changeType != null )
-                {
-                    evt = changeType.name();
-                }
+        String csn = ReplicaJournal.readCsn( view, position );
 
-                LOG.debug( "event {} for dn {} is not qualified for sending", evt, evtMsg.getEntry().getDn() );
-            }
+        if ( csn.compareTo( consumerCsn ) <= 0 )
+        {
+            LOG.debug( "event with CSN {} is not qualified for sending", csn );
 
             return false;
         }
@@ -205,35 +198,64 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
      */
     public boolean next() throws LdapException, CursorException
     {
-        while ( tupleCursor.next() )
+        if ( segment == null )
         {
-            Tuple<String, ReplicaEventMessage> tuple = tupleCursor.get();
-
-            String csn = tuple.getKey();
-            ReplicaEventMessage message = tuple.getValue();
+            segment = journal.firstSegmentAfter( consumerCsn );
 
-            if ( skipQualifying )
+            if ( segment == null )
             {
-                qualifiedEvtMsg = message;
-                return true;
+                qualifiedEvtMsg = null;
+
+                return false;
             }
 
-            boolean qualified = isQualified( csn, message );
+            view = segment.view();
+            position = ReplicaJournal.HEADER_SIZE;
+        }
 
-            if ( qualified )
+        while ( true )
+        {
+            while ( position < segment.getLimit() )
             {
-                qualifiedEvtMsg = message;
-                return true;
+                boolean qualified = isQualified();
+                int recordPosition = position;
+                position += 4 + view.getInt( position );
+
+                if ( qualified )
+                {
+                    try
+                    {
+                        qualifiedEvtMsg = journal.readMessage( view, recordPosition );
+                    }
+                    catch ( IOException ioe )
+                    {
+                        throw new CursorException( ioe.getMessage(), ioe );
+                    }
+
+                    return true;
+                }
             }
-            else
+
+            // Move to the next segment, if the current one is sealed
+            ReplicaJournal.Segment next = journal.nextSegment( segment );
+
+            if ( next == null )
             {
-                journal.remove( partitionTxn, csn );
+                qualifiedEvtMsg = null;
+
+                return false;
             }
-        }
 
-        qualifiedEvtMsg = null;
+            if ( position < segment.getLimit() )
+            {
+                // Some records have been appended before the segment was sealed
+                continue;
+            }
 
-        return false;
+            segment = next;
+            view = segment.view();
+            position = ReplicaJournal.HEADER_SIZE;
+        }
     }
 
 
@@ -257,7 +279,8 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
             LOG_CURSOR.debug( "Closing ReplicaJournalCursor {}", this );
         }
 
-        tupleCursor.close();
+        segment = null;
+        view = null;
         super.close();
     }
 
@@ -273,40 +296,12 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
             LOG_CURSOR.debug( "Closing ReplicaJournalCursor {}", this );
         }
 
-        tupleCursor.close();
+        segment = null;
+        view = null;
         super.close( cause );
     }
 
 
-    /**
-     * sets the flag to skip CSN based checking while traversing
-     * used for internal log cleanup ONLY 
-     */
-    protected void skipQualifyingWhileFetching()
-    {
-        skipQualifying = true;
-    }
-
-
-    /**
-     * delete the current message
-     * used for internal log cleanup ONLY
-     */
-    protected void delete()
-    {
-        try
-        {
-            if ( qualifiedEvtMsg != null )
-            {
-                journal.remove( partitionTxn, qualifiedEvtMsg.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString() );
-            }
-        }
-        catch ( Exception e )
-        {
-        }
-    }
-
-
     /**
      * {@inheritDoc}
      */
@@ -57,6 +57,7 @@ import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapInvalidAttributeValueException;
+import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
 import org.apache.directory.api.ldap.model.exception.LdapURLEncodingException;
 import org.apache.directory.api.ldap.model.filter.AndNode;
 import org.apache.directory.api.ldap.model.filter.EqualityNode;
@@ -65,6 +66,8 @@ import org.apache.directory.api.ldap.model.filter.GreaterEqNode;
 import org.apache.directory.api.ldap.model.filter.LessEqNode;
 import org.apache.directory.api.ldap.model.filter.OrNode;
 import org.apache.directory.api.ldap.model.filter.PresenceNode;
+import org.apache.directory.api.ldap.model.message.IntermediateResponse;
+import org.apache.directory.api.ldap.model.message.IntermediateResponseImpl;
 import org.apache.directory.api.ldap.model.message.LdapResult;
 import org.apache.directory.api.ldap.model.message.ReferralImpl;
 import org.apache.directory.api.ldap.model.message.Response;
@@ -87,6 +90,7 @@ import org.apache.directory.api.ldap.model.url.LdapUrl;
 import org.apache.directory.api.util.Strings;
 import org.apache.directory.server.constants.ServerDNConstants;
 import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.entry.ClonedServerEntry;
 import org.apache.directory.server.core.api.event.DirectoryListenerAdapter;
 import org.apache.directory.server.core.api.event.EventService;
 import org.apache.directory.server.core.api.event.EventType;
@@ -102,6 +106,9 @@ import org.apache.directory.server.ldap.LdapServer;
 import org.apache.directory.server.ldap.LdapSession;
 import org.apache.directory.server.ldap.handlers.SearchAbandonListener;
 import org.apache.directory.server.ldap.handlers.SearchTimeLimitingMonitor;
+import org.apache.directory.server.ldap.replication.BatchedChanges;
+import org.apache.directory.server.ldap.replication.BulkRefresh;
+import org.apache.directory.server.ldap.replication.DeltaModifications;
 import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -144,6 +151,9 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
 
     private ReplicaEventLogJanitor logJanitor;
 
+    /** The journal storing the modifications to send to the consumers */
+    private ReplicaJournal journal;
+
     private AttributeType replLogMaxIdleAT;
 
     private AttributeType replLogPurgeThresholdCountAT;
@@ -199,12 +209,15 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                 throw new IOException( I18n.err( I18n.ERR_112_COULD_NOT_CREATE_DIRECTORY, syncReplData ) );
             }
 
+            // Open the journal shared by all the consumers
+            journal = new ReplicaJournal( syncReplData, dirService.getSchemaManager() );
+
             // Create the replication manager
-            replicaUtil = new ReplConsumerManager( dirService );
+            replicaUtil = new ReplConsumerManager( dirService, journal );
 
             loadReplicaInfo();
 
-            logJanitor = new ReplicaEventLogJanitor( dirService, replicaLogMap );
+            logJanitor = new ReplicaEventLogJanitor( dirService, replicaLogMap, journal );
             logJanitor.start();
 
             registerPersistentSearches();
@@ -277,6 +290,8 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
         // flush the dirty repos
         storeReplicaInfo();
 
+        journal.close();
+
         initialized = false;
     }
 
@@ -367,6 +382,9 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
 
         PROVIDER_LOG.debug( "Processing the log for replica {}", clientMsgLog.getId() );
 
+        // The changes are sent in batches if the consumer has asked for it
+        BatchedChanges.Batch batch = isBatchedTransport( req ) ? new BatchedChanges.Batch() : null;
+
         try
         {
             while ( cursor.next() )
@@ -375,7 +393,14 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                 Entry entry = replicaEventMessage.getEntry();
                 PROVIDER_LOG.debug( "Read message from the queue {}", entry );
 
-                lastSentCsn = entry.get( csnAT ).getString();
+                // The journal is written in the order of the operations, which may slightly differ
+                // from the CSN order : never move the last sent CSN backward
+                String entryCsn = entry.get( csnAT ).getString();
+
+                if ( ( lastSentCsn == null ) || ( entryCsn.compareTo( lastSentCsn ) > 0 ) )
+                {
+                    lastSentCsn = entryCsn;
+                }
 
                 ChangeType changeType = replicaEventMessage.getChangeType();
 
@@ -403,7 +428,43 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                         throw new IllegalStateException( I18n.err( I18n.ERR_686 ) );
                 }
 
-                sendSearchResultEntry( session, req, entry, syncStateType );
+                // Only the modifications of a Modify operation are logged
+                List<Modification> modifications = replicaEventMessage.getModifications();
+
+                if ( ( modifications != null ) && !isDeltaModifications( req ) )
+                {
+                    entry = lookupModifiedEntry( session, entry );
+                    modifications = null;
+                }
+
+                if ( entry == null )
+                {
+                    // The entry has been renamed or deleted since : the change which has done it is
+                    // further in the log, and it will be sent with the modified entry, or deleted
+                    PROVIDER_LOG.debug( "The modified entry {} is gone, skipping its modification",
+                        replicaEventMessage.getEntry().getDn() );
+                }
+                else if ( batch != null )
+                {
+                    addToBatch( batch, entry, syncStateType, modifications );
+
+                    if ( batch.isFull() )
+                    {
+                        sendBatch( session, req, batch );
+                        batch = new BatchedChanges.Batch();
+                    }
+                }
+                else if ( modifications != null )
+                {
+                    // The modifications can only be sent in a batch
+                    BatchedChanges.Batch deltaBatch = new BatchedChanges.Batch();
+                    addToBatch( deltaBatch, entry, syncStateType, modifications );
+                    sendBatch( session, req, deltaBatch );
+                }
+                else
+                {
+                    sendSearchResultEntry( session, req, entry, syncStateType );
+                }
 
                 clientMsgLog.setLastSentCsn( lastSentCsn );
 
@@ -411,6 +472,11 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                     lastSentCsn );
             }
 
+            if ( ( batch != null ) && !batch.isEmpty() )
+            {
+                sendBatch( session, req, batch );
+            }
+
             PROVIDER_LOG.debug( "All pending modifciations for replica {} processed", clientMsgLog.getId() );
         }
         finally
@@ -523,12 +589,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
 
         // first register a ReplicaEventLog before starting the initial content refresh
         // this is to log all the operations happen on DIT during initial content refresh
-        ReplicaEventLog replicaLog = null;
-        
-        try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
-        {
-            replicaLog = createReplicaEventLog( partitionTxn, hostName, originalFilter );
-        }
+        ReplicaEventLog replicaLog = createReplicaEventLog( hostName, originalFilter );
 
         replicaLog.setRefreshNPersist( refreshNPersist );
         Value contexCsnValue = new Value( dirService.getAtProvider().getEntryCSN(), contextCsn );
@@ -706,6 +767,15 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     {
         long count = 0;
 
+        // The entries are sent in batches if the consumer has asked for a bulk refresh
+        BulkRefresh.Batch batch = null;
+
+        if ( isBulkRefresh( req ) )
+        {
+            PROVIDER_LOG.debug( "Bulk refresh requested by {}", replicaLog );
+            batch = new BulkRefresh.Batch();
+        }
+
         while ( ( count < sizeLimit ) && cursor.next() )
         {
             // Handle closed session
@@ -726,7 +796,27 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
 
             Entry entry = cursor.get();
 
-            sendSearchResultEntry( session, req, entry, SyncStateTypeEnum.ADD );
+            if ( ( batch != null ) && !isReferral( req, entry ) )
+            {
+                batch.add( entry );
+
+                if ( batch.isFull() )
+                {
+                    sendBatch( session, req, batch );
+                    batch = new BulkRefresh.Batch();
+                }
+            }
+            else
+            {
+                // A referral is sent as a SearchResultReference, after the previous entries
+                if ( ( batch != null ) && !batch.isEmpty() )
+                {
+                    sendBatch( session, req, batch );
+                    batch = new BulkRefresh.Batch();
+                }
+
+                sendSearchResultEntry( session, req, entry, SyncStateTypeEnum.ADD );
+            }
 
             String lastSentCsn = entry.get( csnAT ).getString();
             replicaLog.setLastSentCsn( lastSentCsn );
@@ -734,6 +824,11 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
             count++;
         }
 
+        if ( ( batch != null ) && !batch.isEmpty() )
+        {
+            sendBatch( session, req, batch );
+        }
+
         PROVIDER_LOG.debug( "Sent {} entries for {}", count, replicaLog );
 
         // DO NOT WRITE THE RESPONSE - JUST RETURN IT
@@ -780,6 +875,106 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     }
 
 
+    /**
+     * Send a batch of entries in an IntermediateResponse, during a bulk refresh
+     */
+    private void sendBatch( LdapSession session, SearchRequest req, BulkRefresh.Batch batch ) throws IOException
+    {
+        IntermediateResponse resp = new IntermediateResponseImpl( req.getMessageId() );
+        resp.setResponseName( BulkRefresh.OID );
+        resp.setResponseValue( batch.toBytes() );
+
+        PROVIDER_LOG.debug( "Sending a batch of {} entries", batch.getNbEntries() );
+        session.getIoSession().write( resp );
+    }
+
+
+    /**
+     * Read the current state of an entry which modifications have been logged, to send it
+     * to a consumer which has not asked for the modifications.
+     *
+     * @return The entry, or null if it has been renamed or deleted since it was modified
+     */
+    private Entry lookupModifiedEntry( LdapSession session, Entry deltaEntry ) throws Exception
+    {
+        Entry entry;
+
+        try
+        {
+            entry = session.getCoreSession().lookup( deltaEntry.getDn(), SchemaConstants.ALL_USER_ATTRIBUTES,
+                SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES );
+        }
+        catch ( LdapNoSuchObjectException lnsoe )
+        {
+            return null;
+        }
+
+        if ( entry == null )
+        {
+            return null;
+        }
+
+        // Another entry may have been added with the same DN
+        String uuid = deltaEntry.get( SchemaConstants.ENTRY_UUID_AT ).getString();
+        Attribute currentUuid = entry.get( SchemaConstants.ENTRY_UUID_AT );
+
+        if ( ( currentUuid == null ) || !uuid.equals( currentUuid.getString() ) )
+        {
+            return null;
+        }
+
+        if ( entry instanceof ClonedServerEntry )
+        {
+            return ( ( ClonedServerEntry ) entry ).getClonedEntry();
+        }
+
+        return entry;
+    }
+
+
+    /**
+     * Add a change to a batch, with the same content as the SearchResultEntry which would
+     * have been sent otherwise, or with the modifications applied on the entry
+     */
+    private void addToBatch( BatchedChanges.Batch batch, Entry entry, SyncStateTypeEnum syncStateType,
+        List<Modification> modifications ) throws Exception
+    {
+        Attribute uuid = entry.get( SchemaConstants.ENTRY_UUID_AT );
+
+        if ( syncStateType == SyncStateTypeEnum.DELETE )
+        {
+            // clear the entry's all attributes except the Dn and entryUUID
+            entry.clear();
+            entry.add( uuid );
+        }
+
+        batch.add( syncStateType, Strings.uuidToBytes( uuid.getString() ), null, entry, modifications );
+    }
+
+
+    /**
+     * Send a batch of changes in an IntermediateResponse
+     */
+    private void sendBatch( LdapSession session, SearchRequest req, BatchedChanges.Batch batch ) throws IOException
+    {
+        IntermediateResponse resp = new IntermediateResponseImpl( req.getMessageId() );
+        resp.setResponseName( BatchedChanges.OID );
+        resp.setResponseValue( batch.toBytes() );
+
+        PROVIDER_LOG.debug( "Sending a batch of {} changes", batch.getNbChanges() );
+        session.getIoSession().write( resp );
+    }
+
+
+    /**
+     * Tells if an entry is sent as a SearchResultReference
+     */
+    private boolean isReferral( SearchRequest req, Entry entry )
+    {
+        return ( entry.get( SchemaConstants.REF_AT ) != null ) && !req.getControls().containsKey( ManageDsaIT.OID );
+    }
+
+
     /**
      * Build the response to be sent to the client
      */
@@ -1133,13 +1328,13 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     /**
      * Create a new ReplicaEventLog. Each replica will have a unique ID, created by the provider.
      */
-    private ReplicaEventLog createReplicaEventLog( PartitionTxn partitionTxn, String hostName, String filter ) throws Exception
+    private ReplicaEventLog createReplicaEventLog( String hostName, String filter ) throws Exception
     {
         int replicaId = replicaCount.incrementAndGet();
 
         PROVIDER_LOG.debug( "creating a new event log for the replica with id {}", replicaId );
 
-        ReplicaEventLog replicaLog = new ReplicaEventLog( partitionTxn, dirService, replicaId );
+        ReplicaEventLog replicaLog = new ReplicaEventLog( journal, dirService, replicaId );
         replicaLog.setHostName( hostName );
         replicaLog.setSearchFilter( filter );
 
@@ -1172,6 +1367,33 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     }
 
 
+    /**
+     * Tells if the consumer has asked for the changes to be sent in compressed batches
+     */
+    static boolean isBatchedTransport( SearchRequest req )
+    {
+        return req.getControls().containsKey( BatchedChanges.OID );
+    }
+
+
+    /**
+     * Tells if the consumer has asked for the modifications instead of the modified entries
+     */
+    static boolean isDeltaModifications( SearchRequest req )
+    {
+        return req.getControls().containsKey( DeltaModifications.OID );
+    }
+
+
+    /**
+     * Tells if the consumer has asked for the initial content to be sent in batches
+     */
+    private boolean isBulkRefresh( SearchRequest req )
+    {
+        return req.getControls().containsKey( BulkRefresh.OID );
+    }
+
+
     private File[] getAllReplJournalNames()
     {
         File replDir = dirService.getInstanceLayout().getReplDirectory();
@@ -20,18 +20,27 @@
 package org.apache.directory.server.ldap.replication.provider;
 
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateTypeEnum;
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateValue;
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateValueImpl;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.exception.LdapInvalidAttributeValueException;
 import org.apache.directory.api.ldap.model.message.AbandonListener;
 import org.apache.directory.api.ldap.model.message.AbandonableRequest;
+import org.apache.directory.api.ldap.model.message.IntermediateResponse;
+import org.apache.directory.api.ldap.model.message.IntermediateResponseImpl;
 import org.apache.directory.api.ldap.model.message.SearchRequest;
 import org.apache.directory.api.ldap.model.message.SearchResultEntry;
 import org.apache.directory.api.ldap.model.message.SearchResultEntryImpl;
 import org.apache.directory.api.ldap.model.message.controls.ChangeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.util.Strings;
 import org.apache.directory.server.constants.ServerDNConstants;
 import org.apache.directory.server.core.api.DirectoryService;
@@ -48,7 +57,10 @@ import org.apache.directory.server.core.api.interceptor.context.RenameOperationC
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.ldap.LdapProtocolUtils;
 import org.apache.directory.server.ldap.LdapSession;
+import org.apache.directory.server.ldap.replication.BatchedChanges;
+import org.apache.directory.server.ldap.replication.DeltaModifications;
 import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.apache.mina.core.future.IoFutureListener;
 import org.apache.mina.core.future.WriteFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -78,6 +90,15 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
 
     /** The consumer configuration */
     private final ReplicaEventLog consumerMsgLog;
+
+    /** The batches waiting to be sent, when the consumer has asked for batched changes */
+    private final Deque<BatchedChanges.Batch> pendingBatches = new ArrayDeque<>();
+
+    /** The CSN of the last change added to the pending batches */
+    private String pendingCsn;
+
+    /** Tells if a thread is sending the pending batches */
+    private boolean sendingBatches;
     
     private static String replConsumerConfigDn = Strings.toLowerCaseAscii( ServerDNConstants.REPL_CONSUMER_CONFIG_DN );
     private static String schemaDn = Strings.toLowerCaseAscii( SchemaConstants.OU_SCHEMA );
@@ -192,6 +213,13 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
     private void sendResult( SearchResultEntry searchResultEntry, Entry entry, EventType eventType, 
         SyncStateValue syncStateValue )
     {
+        if ( SyncReplRequestHandler.isBatchedTransport( searchRequest ) )
+        {
+            sendBatched( entry, eventType, syncStateValue, null );
+            
+            return;
+        }
+
         searchResultEntry.addControl( syncStateValue );
 
         LOG.debug( "sending event {} of entry {}", eventType, entry.getDn() );
@@ -202,6 +230,173 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
     }
     
 
+    /**
+     * Send the modifications applied on an entry to the consumer, in a batch. If the consumer
+     * has disconnected, we fail back to the queue.
+     */
+    private void sendModifications( Entry deltaEntry, SyncStateValue syncStateValue,
+        List<Modification> modifications )
+    {
+        if ( SyncReplRequestHandler.isBatchedTransport( searchRequest ) )
+        {
+            sendBatched( deltaEntry, EventType.MODIFY, syncStateValue, modifications );
+
+            return;
+        }
+
+        try
+        {
+            BatchedChanges.Batch batch = new BatchedChanges.Batch();
+            batch.add( syncStateValue.getSyncStateType(), syncStateValue.getEntryUUID(), syncStateValue.getCookie(),
+                deltaEntry, modifications );
+
+            IntermediateResponse resp = new IntermediateResponseImpl( searchRequest.getMessageId() );
+            resp.setResponseName( BatchedChanges.OID );
+            resp.setResponseValue( batch.toBytes() );
+
+            LOG.debug( "sending {} modifications of entry {}", modifications.size(), deltaEntry.getDn() );
+            WriteFuture future = session.getIoSession().write( resp );
+
+            handleWriteFuture( future, deltaEntry, EventType.MODIFY );
+        }
+        catch ( Exception e )
+        {
+            // The change is in the log, it will be sent when the consumer reconnects
+            LOG.error( "Failed to send the modifications of entry {}", deltaEntry.getDn(), e );
+            pushInRealTime = false;
+        }
+    }
+
+
+    /**
+     * Add the change to the pending batches. If no batch is being written, the first pending
+     * batch is written : the changes coming while a batch is written are sent together in the
+     * next batch.
+     */
+    private void sendBatched( Entry entry, EventType eventType, SyncStateValue syncStateValue,
+        List<Modification> modifications )
+    {
+        synchronized ( pendingBatches )
+        {
+            try
+            {
+                BatchedChanges.Batch batch = pendingBatches.peekLast();
+
+                if ( ( batch == null ) || batch.isFull() )
+                {
+                    batch = new BatchedChanges.Batch();
+                    pendingBatches.addLast( batch );
+                }
+
+                batch.add( syncStateValue.getSyncStateType(), syncStateValue.getEntryUUID(), syncStateValue.getCookie(),
+                    entry, modifications );
+                pendingCsn = entry.get( SchemaConstants.ENTRY_CSN_AT ).getString();
+            }
+            catch ( Exception e )
+            {
+                // The change is in the log, it will be sent when the consumer reconnects
+                LOG.error( "Failed to add the event {} of entry {} to a batch", eventType, entry.getDn(), e );
+                pendingBatches.clear();
+                pushInRealTime = false;
+
+                return;
+            }
+
+            if ( sendingBatches )
+            {
+                return;
+            }
+
+            sendingBatches = true;
+        }
+
+        sendNextBatch();
+    }
+
+
+    /**
+     * Writes the first pending batch, without waiting for it to be sent : the next batch is
+     * written by the MINA thread which completes the write. The thread which has made the
+     * change is never blocked by a slow consumer, and there is at most one batch in the
+     * session write queue.
+     */
+    private void sendNextBatch()
+    {
+        BatchedChanges.Batch batch;
+        String lastCsn;
+
+        synchronized ( pendingBatches )
+        {
+            batch = pendingBatches.pollFirst();
+
+            if ( batch == null )
+            {
+                sendingBatches = false;
+
+                return;
+            }
+
+            // The CSN of the last change is only known for the last batch
+            lastCsn = pendingBatches.isEmpty() ? pendingCsn : null;
+        }
+
+        try
+        {
+            IntermediateResponse resp = new IntermediateResponseImpl( searchRequest.getMessageId() );
+            resp.setResponseName( BatchedChanges.OID );
+            resp.setResponseValue( batch.toBytes() );
+
+            LOG.debug( "sending a batch of {} changes", batch.getNbChanges() );
+            IoFutureListener<WriteFuture> listener = future -> batchWritten( future, batch, lastCsn );
+            session.getIoSession().write( resp ).addListener( listener );
+        }
+        catch ( Exception e )
+        {
+            LOG.error( "Failed to write a batch of {} changes to the consumer {}", batch.getNbChanges(),
+                consumerMsgLog.getId(), e );
+            stopSendingBatches();
+        }
+    }
+
+
+    /**
+     * Called once a batch has been written, or has failed to be written.
+     */
+    private void batchWritten( WriteFuture future, BatchedChanges.Batch batch, String lastCsn )
+    {
+        if ( !future.isWritten() )
+        {
+            LOG.error( "Failed to write a batch of {} changes to the consumer {}", batch.getNbChanges(),
+                consumerMsgLog.getId(), future.getException() );
+            stopSendingBatches();
+
+            return;
+        }
+
+        if ( lastCsn != null )
+        {
+            consumerMsgLog.setLastSentCsn( lastCsn );
+        }
+
+        sendNextBatch();
+    }
+
+
+    /**
+     * Drops the pending batches after a failed write. The changes are in the log, they
+     * will be sent when the consumer reconnects.
+     */
+    private void stopSendingBatches()
+    {
+        synchronized ( pendingBatches )
+        {
+            pendingBatches.clear();
+            pushInRealTime = false;
+            sendingBatches = false;
+        }
+    }
+
+
     /**
      * Process a ADD operation. The added entry is pushed to the consumer if it's connected,
      * or stored in the consumer's queue if it's not.
@@ -311,9 +506,20 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
         try
         {
             //System.out.println( "MODIFY Listener : log " + alteredEntry.getDn() );
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.MODIFY, alteredEntry ) );
+            // Only the modifications are logged : a consumer which wants the whole entry
+            // will get it from the DIT when the log is replayed
+            SchemaManager schemaManager = modifyContext.getSession().getDirectoryService().getSchemaManager();
+            Entry deltaEntry = DeltaModifications.toDeltaEntry( schemaManager, alteredEntry );
+            List<Modification> modifications = new ArrayList<>( modifyContext.getModItems() );
+            consumerMsgLog.log( new ReplicaEventMessage( deltaEntry, modifications ) );
             
-            if ( pushInRealTime )
+            if ( pushInRealTime && SyncReplRequestHandler.isDeltaModifications( searchRequest ) )
+            {
+                SyncStateValue syncModify = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.MODIFY, deltaEntry );
+
+                sendModifications( deltaEntry, syncModify, modifications );
+            }
+            else if ( pushInRealTime )
             {
 
                 SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
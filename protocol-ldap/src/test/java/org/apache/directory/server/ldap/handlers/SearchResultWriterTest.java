@@ -0,0 +1,197 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.handlers;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.directory.api.ldap.codec.api.LdapApiService;
+import org.apache.directory.api.ldap.codec.api.LdapApiServiceFactory;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
+import org.apache.directory.api.ldap.model.message.SearchResultEntry;
+import org.apache.directory.api.ldap.model.message.SearchResultEntryImpl;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.WriteRequest;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Tests for the SearchResultWriter.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SearchResultWriterTest
+{
+    private static final LdapApiService CODEC = LdapApiServiceFactory.getSingleton();
+
+    /** The messages written on the session */
+    private List<Object> written;
+
+    /** The session, with a simulated write queue */
+    private DummySession session;
+
+    private SearchRequest request;
+
+
+    @BeforeEach
+    public void init()
+    {
+        written = new ArrayList<>();
+        session = new DummySession();
+
+        session.getFilterChain().addLast( "recorder", new IoFilterAdapter()
+        {
+            @Override
+            public void filterWrite( NextFilter nextFilter, IoSession session, WriteRequest writeRequest )
+                throws Exception
+            {
+                written.add( writeRequest.getOriginalMessage() );
+                super.filterWrite( nextFilter, session, writeRequest );
+            }
+        } );
+
+        request = new SearchRequestImpl();
+        request.setMessageId( 1 );
+    }
+
+
+    private SearchResultEntry entry( int i ) throws Exception
+    {
+        SearchResultEntry response = new SearchResultEntryImpl( 1 );
+        response.setEntry( new DefaultEntry( "cn=entry" + i + ",dc=example,dc=com",
+            "objectClass: person",
+            "cn: entry" + i,
+            "sn: entry" + i ) );
+
+        return response;
+    }
+
+
+    private void setScheduledWriteBytes( int bytes )
+    {
+        session.increaseScheduledWriteBytes( bytes - ( int ) session.getScheduledWriteBytes() );
+    }
+
+
+    @Test
+    public void testUnbatchedWrites() throws Exception
+    {
+        SearchResultWriter writer = new SearchResultWriter( session, request, CODEC, 0L, 0L, 1 );
+
+        for ( int i = 0; i < 5; i++ )
+        {
+            writer.write( entry( i ) );
+        }
+
+        writer.flush();
+
+        assertEquals( 5, written.size() );
+        assertTrue( written.get( 0 ) instanceof SearchResultEntry );
+    }
+
+
+    @Test
+    public void testBatchedWrites() throws Exception
+    {
+        SearchResultWriter writer = new SearchResultWriter( session, request, CODEC, 0L, 0L, 2 );
+
+        for ( int i = 0; i < 5; i++ )
+        {
+            writer.write( entry( i ) );
+        }
+
+        // Two full batches have been written, the last entry is pending
+        assertEquals( 2, written.size() );
+
+        writer.flush();
+
+        assertEquals( 3, written.size() );
+
+        for ( Object message : written )
+        {
+            assertTrue( message instanceof IoBuffer );
+        }
+
+        // The batches contain the concatenated PDUs
+        int singleSize = ( ( IoBuffer ) written.get( 2 ) ).remaining();
+        assertEquals( 2 * singleSize, ( ( IoBuffer ) written.get( 0 ) ).remaining() );
+    }
+
+
+    @Test
+    public void testAbandonedBatchIsDiscarded() throws Exception
+    {
+        SearchResultWriter writer = new SearchResultWriter( session, request, CODEC, 0L, 0L, 10 );
+
+        writer.write( entry( 0 ) );
+        request.abandon();
+        writer.flush();
+
+        assertEquals( 0, written.size() );
+    }
+
+
+    @Test
+    public void testPauseAboveHighWaterMark() throws Exception
+    {
+        SearchResultWriter writer = new SearchResultWriter( session, request, CODEC, 1000L, 100L, 1 );
+        setScheduledWriteBytes( 2000 );
+
+        Thread drainer = new Thread( () ->
+        {
+            try
+            {
+                Thread.sleep( 100L );
+                setScheduledWriteBytes( 500 );
+                Thread.sleep( 100L );
+                setScheduledWriteBytes( 50 );
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+            }
+        } );
+
+        long start = System.currentTimeMillis();
+        drainer.start();
+        writer.write( entry( 0 ) );
+        long elapsed = System.currentTimeMillis() - start;
+        drainer.join();
+
+        // We must have waited until the queue went below the low-water mark
+        assertTrue( elapsed >= 200L, "writer did not wait for the queue to drain" );
+        assertEquals( 1, written.size() );
+
+        // Between the two marks, we don't pause
+        setScheduledWriteBytes( 500 );
+        writer.write( entry( 1 ) );
+        assertEquals( 2, written.size() );
+    }
+}
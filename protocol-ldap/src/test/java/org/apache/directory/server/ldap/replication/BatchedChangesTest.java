@@ -0,0 +1,177 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateTypeEnum;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+
+
+/**
+ * Tests the serialization of the {@link BatchedChanges} batches.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@Execution(ExecutionMode.SAME_THREAD)
+public class BatchedChangesTest
+{
+    /** The SchemaManager instance */
+    private static SchemaManager schemaManager;
+
+
+    @BeforeAll
+    public static void init() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = BatchedChangesTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+    }
+
+
+    @Test
+    public void testBatch() throws Exception
+    {
+        BatchedChanges.Batch batch = new BatchedChanges.Batch();
+        List<Entry> expected = new ArrayList<>();
+
+        assertTrue( batch.isEmpty() );
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            Entry entry = new DefaultEntry( schemaManager, "ou=test" + i + ",ou=system",
+                "ObjectClass: top",
+                "ObjectClass: organizationalUnit",
+                "ou", "test" + i,
+                "description: entry " + i );
+
+            byte[] cookie = ( i % 2 == 0 ) ? null : Strings.getBytesUtf8( "rid=001,csn=" + i );
+            batch.add( SyncStateTypeEnum.MODIFY, Strings.uuidToBytes( UUID.randomUUID().toString() ), cookie, entry );
+            expected.add( entry );
+        }
+
+        batch.add( SyncStateTypeEnum.DELETE, new byte[16], null, expected.get( 0 ) );
+
+        assertFalse( batch.isFull() );
+        assertEquals( 11, batch.getNbChanges() );
+
+        List<BatchedChanges.Change> changes = BatchedChanges.decode( schemaManager, batch.toBytes() );
+
+        assertEquals( 11, changes.size() );
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            BatchedChanges.Change change = changes.get( i );
+
+            assertEquals( SyncStateTypeEnum.MODIFY, change.getType() );
+            assertEquals( expected.get( i ), change.getEntry() );
+            assertEquals( 16, change.getEntryUuid().length );
+
+            if ( i % 2 == 0 )
+            {
+                assertNull( change.getCookie() );
+            }
+            else
+            {
+                assertEquals( "rid=001,csn=" + i, Strings.utf8ToString( change.getCookie() ) );
+            }
+        }
+
+        assertEquals( SyncStateTypeEnum.DELETE, changes.get( 10 ).getType() );
+        assertNull( changes.get( 10 ).getModifications() );
+    }
+
+
+    @Test
+    public void testBatchWithModifications() throws Exception
+    {
+        Entry entry = new DefaultEntry( schemaManager, "cn=group,ou=system",
+            "ObjectClass: top",
+            "ObjectClass: groupOfNames",
+            "cn: group",
+            "member: uid=user0,ou=system",
+            "entryUUID", UUID.randomUUID().toString(),
+            "entryCsn: 20261016120000.000000Z#000000#001#000000" );
+
+        List<Modification> modifications = new ArrayList<>();
+        modifications.add( new DefaultModification( ModificationOperation.ADD_ATTRIBUTE,
+            schemaManager.getAttributeType( "member" ), "uid=user1,ou=system" ) );
+        modifications.add( new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE,
+            schemaManager.getAttributeType( "description" ), "a group" ) );
+
+        Entry deltaEntry = DeltaModifications.toDeltaEntry( schemaManager, entry );
+
+        BatchedChanges.Batch batch = new BatchedChanges.Batch();
+        batch.add( SyncStateTypeEnum.MODIFY, new byte[16], null, deltaEntry, modifications );
+
+        List<BatchedChanges.Change> changes = BatchedChanges.decode( schemaManager, batch.toBytes() );
+
+        assertEquals( 1, changes.size() );
+
+        BatchedChanges.Change change = changes.get( 0 );
+
+        assertEquals( deltaEntry, change.getEntry() );
+        assertEquals( 2, change.getEntry().size() );
+        assertEquals( modifications, change.getModifications() );
+    }
+}
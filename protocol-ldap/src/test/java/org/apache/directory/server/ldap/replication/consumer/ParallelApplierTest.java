@@ -0,0 +1,186 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.consumer;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.util.Strings;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+
+
+/**
+ * Tests the {@link ParallelApplier} class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@Execution(ExecutionMode.SAME_THREAD)
+public class ParallelApplierTest
+{
+    /** The applied changes, in order */
+    private final List<String> applied = Collections.synchronizedList( new ArrayList<String>() );
+
+    /** The stored cookies, in order */
+    private final List<String> cookies = Collections.synchronizedList( new ArrayList<String>() );
+
+
+    private ParallelApplier newApplier()
+    {
+        return new ParallelApplier( "test", 4, cookie -> cookies.add( Strings.utf8ToString( cookie ) ) );
+    }
+
+
+    private ParallelApplier.Change change( final String name, final CountDownLatch waitFor )
+    {
+        return () ->
+        {
+            try
+            {
+                if ( ( waitFor != null ) && !waitFor.await( 10, TimeUnit.SECONDS ) )
+                {
+                    return false;
+                }
+            }
+            catch ( InterruptedException ie )
+            {
+                return false;
+            }
+
+            applied.add( name );
+
+            return true;
+        };
+    }
+
+
+    /**
+     * Independent changes are applied in parallel, a child is added after its parent
+     */
+    @Test
+    public void testParentBeforeChild() throws Exception
+    {
+        ParallelApplier applier = newApplier();
+        CountDownLatch latch = new CountDownLatch( 1 );
+
+        try
+        {
+            // The parent waits for the other entry, which can only be added in parallel
+            applier.submit( "1", new Dn( "ou=parent,dc=test" ), change( "parent", latch ), null );
+            applier.submit( "2", new Dn( "ou=child,ou=parent,dc=test" ), change( "child", null ), null );
+            applier.submit( "3", new Dn( "ou=other,dc=test" ), () ->
+            {
+                applied.add( "other" );
+                latch.countDown();
+
+                return true;
+            }, null );
+
+            applier.drain();
+
+            assertEquals( 0, applier.getNbPending() );
+            assertEquals( "other", applied.get( 0 ) );
+            assertTrue( applied.indexOf( "parent" ) < applied.indexOf( "child" ) );
+        }
+        finally
+        {
+            applier.shutdown();
+        }
+    }
+
+
+    /**
+     * A MODDN, without DN, is applied alone
+     */
+    @Test
+    public void testBarrier() throws Exception
+    {
+        ParallelApplier applier = newApplier();
+        CountDownLatch latch = new CountDownLatch( 1 );
+
+        try
+        {
+            applier.submit( "1", new Dn( "ou=a,dc=test" ), change( "a", latch ), null );
+            applier.submit( "2", null, change( "moddn", null ), null );
+            applier.submit( "3", new Dn( "ou=b,dc=test" ), change( "b", null ), null );
+
+            // Nothing can be applied before the first change
+            Thread.sleep( 100L );
+            assertTrue( applied.isEmpty() );
+
+            latch.countDown();
+            applier.drain();
+
+            assertEquals( Arrays.asList( "a", "moddn", "b" ), applied );
+        }
+        finally
+        {
+            applier.shutdown();
+        }
+    }
+
+
+    /**
+     * A cookie is only stored once all the changes received before it are applied
+     */
+    @Test
+    public void testCookieOrder() throws Exception
+    {
+        ParallelApplier applier = newApplier();
+        CountDownLatch latch = new CountDownLatch( 1 );
+
+        try
+        {
+            applier.submit( "1", new Dn( "ou=a,dc=test" ), change( "a", latch ), Strings.getBytesUtf8( "c1" ) );
+            applier.submit( "2", new Dn( "ou=b,dc=test" ), change( "b", null ), Strings.getBytesUtf8( "c2" ) );
+
+            // Wait for the second change to be applied
+            long end = System.currentTimeMillis() + 10000L;
+
+            while ( !applied.contains( "b" ) && ( System.currentTimeMillis() < end ) )
+            {
+                Thread.sleep( 10L );
+            }
+
+            assertTrue( applied.contains( "b" ) );
+            assertTrue( cookies.isEmpty() );
+
+            latch.countDown();
+            applier.drain();
+
+            assertEquals( "c2", cookies.get( cookies.size() - 1 ) );
+            assertEquals( 1, cookies.size() );
+        }
+        finally
+        {
+            applier.shutdown();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.consumer;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+
+
+/**
+ * Tests the {@link UuidSorter} class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@Execution(ExecutionMode.SAME_THREAD)
+public class UuidSorterTest
+{
+    @Test
+    public void testSortedWithRuns() throws Exception
+    {
+        Random random = new Random( 42L );
+        TreeMap<UUID, String> expected = new TreeMap<>();
+
+        try ( UuidSorter sorter = new UuidSorter( 10 ) )
+        {
+            for ( int i = 0; i < 100; i++ )
+            {
+                UUID uuid = new UUID( random.nextLong(), random.nextLong() );
+                sorter.add( uuid, "cn=" + i );
+                expected.put( uuid, "cn=" + i );
+
+                // Add some duplicates, in different runs
+                if ( i % 7 == 0 )
+                {
+                    sorter.add( uuid, "cn=" + i );
+                }
+            }
+
+            assertTrue( sorter.getNbRuns() > 1 );
+
+            List<UUID> uuids = new ArrayList<>();
+
+            try ( UuidSorter.SortedUuids sorted = sorter.sorted() )
+            {
+                while ( sorted.next() )
+                {
+                    uuids.add( sorted.getUuid() );
+                    assertEquals( expected.get( sorted.getUuid() ), sorted.getValue() );
+                }
+            }
+
+            assertEquals( new ArrayList<>( expected.keySet() ), uuids );
+        }
+    }
+
+
+    @Test
+    public void testSkipTo() throws Exception
+    {
+        Random random = new Random( 7L );
+        TreeSet<UUID> present = new TreeSet<>();
+        TreeSet<UUID> all = new TreeSet<>();
+
+        try ( UuidSorter sorter = new UuidSorter( 8 ) )
+        {
+            for ( int i = 0; i < 50; i++ )
+            {
+                UUID uuid = new UUID( random.nextLong(), random.nextLong() );
+                all.add( uuid );
+
+                if ( i % 3 != 0 )
+                {
+                    present.add( uuid );
+                    byte[] bytes = ByteBuffer.allocate( 16 ).putLong( uuid.getMostSignificantBits() )
+                        .putLong( uuid.getLeastSignificantBits() ).array();
+                    sorter.add( bytes );
+                }
+            }
+
+            try ( UuidSorter.SortedUuids sorted = sorter.sorted() )
+            {
+                // The UUIDs are looked for in ascending order
+                for ( UUID uuid : all )
+                {
+                    assertEquals( present.contains( uuid ), sorted.skipTo( uuid ) );
+                }
+
+                assertFalse( sorted.skipTo( new UUID( Long.MAX_VALUE, Long.MAX_VALUE ) ) );
+            }
+        }
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.directory.api.ldap.model.csn.CsnFactory;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.message.controls.ChangeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.ldap.replication.DeltaModifications;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+
+
+/**
+ * Tests the {@link ReplicaJournal} shared by the consumers.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@Execution(ExecutionMode.SAME_THREAD)
+public class ReplicaJournalTest
+{
+    /** The SchemaManager instance */
+    private static SchemaManager schemaManager;
+
+    /** The CsnFactory */
+    private static CsnFactory csnFactory;
+
+    /** The directory containing the segments */
+    private File journalDir;
+
+    /** The journal */
+    private ReplicaJournal journal;
+
+
+    @BeforeAll
+    public static void init() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = ReplicaJournalTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        csnFactory = new CsnFactory( 0 );
+    }
+
+
+    @BeforeEach
+    public void createJournal() throws Exception
+    {
+        journalDir = Files.createTempDirectory( "replica-journal" ).toFile();
+        journal = new ReplicaJournal( journalDir, schemaManager, 4096 );
+    }
+
+
+    @AfterEach
+    public void deleteJournal() throws Exception
+    {
+        journal.close();
+
+        for ( File file : journalDir.listFiles() )
+        {
+            file.delete();
+        }
+
+        journalDir.delete();
+    }
+
+
+    private ReplicaEventMessage createMessage( int i ) throws Exception
+    {
+        Entry entry = new DefaultEntry( schemaManager, "ou=test" + i + ",ou=system",
+            "ObjectClass: top",
+            "ObjectClass: organizationalUnit",
+            "ou", "test" + i,
+            "entryCsn", csnFactory.newInstance().toString() );
+
+        return new ReplicaEventMessage( ChangeType.ADD, entry );
+    }
+
+
+    private List<String> read( int replicaId, String csn ) throws Exception
+    {
+        List<String> ous = new ArrayList<>();
+
+        try ( ReplicaJournalCursor cursor = journal.cursor( replicaId, csn ) )
+        {
+            while ( cursor.next() )
+            {
+                ous.add( cursor.get().getEntry().get( "ou" ).getString() );
+            }
+        }
+
+        return ous;
+    }
+
+
+    /**
+     * A message logged for two replicas is only written once
+     */
+    @Test
+    public void testSharedMessages() throws Exception
+    {
+        ReplicaEventMessage message0 = createMessage( 0 );
+        ReplicaEventMessage message1 = createMessage( 1 );
+        ReplicaEventMessage message2 = createMessage( 2 );
+
+        journal.append( 1, message0 );
+        journal.append( 2, message0 );
+        journal.append( 1, message1 );
+        journal.append( 2, message2 );
+        journal.append( 1, message2 );
+
+        assertEquals( 3L, journal.getNbRecords() );
+        assertEquals( Arrays.asList( "test0", "test1", "test2" ), read( 1, null ) );
+        assertEquals( Arrays.asList( "test0", "test2" ), read( 2, null ) );
+        assertTrue( read( 3, null ).isEmpty() );
+        assertEquals( 3L, journal.count( 1, null ) );
+
+        // Start after the first message
+        String csn0 = message0.getEntry().get( "entryCsn" ).getString();
+        assertEquals( Arrays.asList( "test1", "test2" ), read( 1, csn0 ) );
+        assertEquals( 2L, journal.count( 1, csn0 ) );
+    }
+
+
+    /**
+     * The cursor reads the messages appended after its creation
+     */
+    @Test
+    public void testAppendWhileReading() throws Exception
+    {
+        journal.append( 1, createMessage( 0 ) );
+
+        try ( ReplicaJournalCursor cursor = journal.cursor( 1, null ) )
+        {
+            assertTrue( cursor.next() );
+            assertFalse( cursor.next() );
+
+            journal.append( 1, createMessage( 1 ) );
+
+            assertTrue( cursor.next() );
+            assertEquals( "test1", cursor.get().getEntry().get( "ou" ).getString() );
+        }
+    }
+
+
+    /**
+     * A cursor which has read past a message gets it when the message is logged for its replica
+     */
+    @Test
+    public void testSharedMessageWhileReading() throws Exception
+    {
+        ReplicaEventMessage message = createMessage( 0 );
+
+        try ( ReplicaJournalCursor cursor = journal.cursor( 2, null ) )
+        {
+            journal.append( 1, message );
+
+            assertFalse( cursor.next() );
+
+            journal.append( 2, message );
+
+            assertTrue( cursor.next() );
+            assertEquals( "test0", cursor.get().getEntry().get( "ou" ).getString() );
+            assertFalse( cursor.next() );
+        }
+
+        assertEquals( 1L, journal.getNbRecords() );
+    }
+
+
+    /**
+     * A Modify operation is logged as its modifications, without the modified entry
+     */
+    @Test
+    public void testDeltaMessage() throws Exception
+    {
+        Entry entry = new DefaultEntry( schemaManager, "cn=group,ou=system",
+            "ObjectClass: top",
+            "ObjectClass: groupOfNames",
+            "cn: group",
+            "member: uid=user0,ou=system",
+            "member: uid=user1,ou=system",
+            "entryUUID", UUID.randomUUID().toString(),
+            "entryCsn", csnFactory.newInstance().toString() );
+
+        List<Modification> modifications = new ArrayList<>();
+        modifications.add( new DefaultModification( ModificationOperation.ADD_ATTRIBUTE,
+            schemaManager.getAttributeType( "member" ), "uid=user2,ou=system" ) );
+        modifications.add( new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE,
+            schemaManager.getAttributeType( "member" ), "uid=user0,ou=system" ) );
+
+        journal.append( 1, new ReplicaEventMessage( DeltaModifications.toDeltaEntry( schemaManager, entry ),
+            modifications ) );
+
+        try ( ReplicaJournalCursor cursor = journal.cursor( 1, null ) )
+        {
+            assertTrue( cursor.next() );
+
+            ReplicaEventMessage message = cursor.get();
+
+            assertEquals( ChangeType.MODIFY, message.getChangeType() );
+            assertTrue( message.isDelta() );
+            assertEquals( modifications, message.getModifications() );
+            assertEquals( entry.getDn(), message.getEntry().getDn() );
+            assertEquals( entry.get( "entryUUID" ), message.getEntry().get( "entryUUID" ) );
+            assertEquals( entry.get( "entryCsn" ), message.getEntry().get( "entryCsn" ) );
+            assertNull( message.getEntry().get( "member" ) );
+        }
+    }
+
+
+    /**
+     * The messages are spread over several segments, which are deleted once read
+     */
+    @Test
+    public void testSegmentsAndTruncate() throws Exception
+    {
+        List<String> expected = new ArrayList<>();
+        String csn50 = null;
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            ReplicaEventMessage message = createMessage( i );
+            journal.append( 1, message );
+            expected.add( "test" + i );
+
+            if ( i == 50 )
+            {
+                csn50 = message.getEntry().get( "entryCsn" ).getString();
+            }
+        }
+
+        int nbSegments = journal.getNbSegments();
+        assertTrue( nbSegments > 2 );
+        assertEquals( expected, read( 1, null ) );
+        assertEquals( expected.subList( 51, 100 ), read( 1, csn50 ) );
+
+        // Delete the segments sent up to the 50th message
+        int nbDeleted = journal.truncate( csn50 );
+
+        assertTrue( nbDeleted > 0 );
+        assertEquals( nbSegments - nbDeleted, journal.getNbSegments() );
+        assertEquals( expected.subList( 51, 100 ), read( 1, csn50 ) );
+
+        // The current segment is never deleted
+        journal.truncate( csnFactory.newInstance().toString() );
+        assertEquals( 1, journal.getNbSegments() );
+    }
+
+
+    /**
+     * The segments are read back when the journal is opened again
+     */
+    @Test
+    public void testReopen() throws Exception
+    {
+        for ( int i = 0; i < 30; i++ )
+        {
+            ReplicaEventMessage message = createMessage( i );
+            journal.append( 1, message );
+            journal.append( 2, message );
+        }
+
+        long nbRecords = journal.getNbRecords();
+        journal.close();
+
+        journal = new ReplicaJournal( journalDir, schemaManager, 4096 );
+
+        assertEquals( nbRecords, journal.getNbRecords() );
+        assertEquals( 30, read( 2, null ).size() );
+
+        // We can append after the recovered records
+        journal.append( 1, createMessage( 30 ) );
+        assertEquals( 31, read( 1, null ).size() );
+        assertEquals( 30, read( 2, null ).size() );
+    }
+
+
+    /**
+     * A record which has not been completely written on disk is detected by its checksum
+     * when the journal is opened again, and the segment ends before it
+     */
+    @Test
+    public void testCorruptedRecord() throws Exception
+    {
+        journal.close();
+        journal = new ReplicaJournal( journalDir, schemaManager, 65536 );
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            journal.append( 1, createMessage( i ) );
+        }
+
+        journal.close();
+
+        // Damage the message of the last record
+        File segmentFile = journalDir.listFiles()[0];
+
+        try ( RandomAccessFile raf = new RandomAccessFile( segmentFile, "rw" ) )
+        {
+            long position = ReplicaJournal.HEADER_SIZE;
+            long last = position;
+
+            for ( int length = readInt( raf, position ); length > 0; length = readInt( raf, position ) )
+            {
+                last = position;
+                position += 4 + length;
+            }
+
+            raf.seek( last + 30 );
+            int b = raf.read();
+            raf.seek( last + 30 );
+            raf.write( b ^ 0xFF );
+        }
+
+        journal = new ReplicaJournal( journalDir, schemaManager, 65536 );
+
+        assertEquals( Arrays.asList( "test0", "test1", "test2", "test3", "test4", "test5", "test6", "test7",
+            "test8" ), read( 1, null ) );
+
+        // The next record overwrites the damaged one
+        journal.append( 1, createMessage( 10 ) );
+        assertEquals( 10, read( 1, null ).size() );
+        assertEquals( "test10", read( 1, null ).get( 9 ) );
+    }
+
+
+    private static int readInt( RandomAccessFile raf, long position ) throws Exception
+    {
+        raf.seek( position );
+
+        return raf.readInt();
+    }
+
+
+    /**
+     * The appended records are written on disk after a number of records, or after the
+     * sync interval
+     */
+    @Test
+    public void testSync() throws Exception
+    {
+        journal.close();
+        journal = new ReplicaJournal( journalDir, schemaManager, 65536, 3, 60000L );
+
+        journal.append( 1, createMessage( 0 ) );
+        journal.append( 1, createMessage( 1 ) );
+        assertEquals( 2, journal.getUnsyncedRecords() );
+
+        journal.append( 1, createMessage( 2 ) );
+        assertEquals( 0, journal.getUnsyncedRecords() );
+
+        journal.close();
+        journal = new ReplicaJournal( journalDir, schemaManager, 65536, 1000, 10L );
+
+        journal.append( 1, createMessage( 3 ) );
+
+        for ( int i = 0; ( i < 100 ) && ( journal.getUnsyncedRecords() > 0 ); i++ )
+        {
+            Thread.sleep( 10L );
+        }
+
+        assertEquals( 0, journal.getUnsyncedRecords() );
+        assertEquals( 4, read( 1, null ).size() );
+    }
+}
@@ -131,6 +131,12 @@ public final class ServiceBuilder
     /** The logger for this class */
     private static final Logger LOG = LoggerFactory.getLogger( ServiceBuilder.class );
 
+    /**
+     * The system property enabling per-partition locking. It has no attribute in the
+     * configuration schema, so it can't be set in the configuration partition.
+     */
+    public static final String PARTITION_LOCKING_PROPERTY = "apacheds.partitionLocking";
+
     /** LDIF file filter */
     private static FilenameFilter ldifFilter = new FilenameFilter()
     {
@@ -1344,6 +1350,9 @@ public final class ServiceBuilder
         // SyncPeriodMillis
         directoryService.setSyncPeriodMillis( directoryServiceBean.getDsSyncPeriodMillis() );
 
+        // PartitionLocking
+        directoryService.setPartitionLockingEnabled( Boolean.getBoolean( PARTITION_LOCKING_PROPERTY ) );
+
         // testEntries
         String entryFilePath = directoryServiceBean.getDsTestEntries();
 
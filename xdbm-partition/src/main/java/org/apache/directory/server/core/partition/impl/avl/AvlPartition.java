@@ -109,7 +109,10 @@ public class AvlPartition extends AbstractBTreePartition
                 setOptimizer( new DefaultOptimizer( this ) );
             }
 
-            setSearchEngine( new DefaultSearchEngine( this, cursorBuilder, evaluatorBuilder, getOptimizer() ) );
+            DefaultSearchEngine searchEngine = new DefaultSearchEngine( this, cursorBuilder, evaluatorBuilder,
+                getOptimizer() );
+            searchEngine.setCandidateSetLimit( candidateSetLimit );
+            setSearchEngine( searchEngine );
 
             if ( isInitialized() )
             {
@@ -180,6 +183,7 @@ public class AvlPartition extends AbstractBTreePartition
             LOG.debug( "Supplied index {} is not a AvlIndex. "
                 + "Will create new AvlIndex using copied configuration parameters.", index );
             avlIndex = new AvlIndex( index.getAttributeId(), true );
+            avlIndex.setSubstringIndexed( index.isSubstringIndexed() );
         }
 
         avlIndex.init( schemaManager, schemaManager.lookupAttributeTypeRegistry( index.getAttributeId() ) );
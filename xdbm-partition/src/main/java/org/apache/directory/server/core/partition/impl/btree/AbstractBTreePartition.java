@@ -20,10 +20,12 @@
 package org.apache.directory.server.core.partition.impl.btree;
 
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URI;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -54,6 +56,7 @@ import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
 import org.apache.directory.api.ldap.model.exception.LdapOperationErrorException;
 import org.apache.directory.api.ldap.model.exception.LdapOtherException;
 import org.apache.directory.api.ldap.model.exception.LdapSchemaViolationException;
+import org.apache.directory.api.ldap.model.exception.LdapServiceUnavailableException;
 import org.apache.directory.api.ldap.model.exception.LdapUnwillingToPerformException;
 import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
 import org.apache.directory.api.ldap.model.name.Ava;
@@ -83,20 +86,29 @@ import org.apache.directory.server.core.api.interceptor.context.RenameOperationC
 import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.UnbindOperationContext;
 import org.apache.directory.server.core.api.partition.AbstractPartition;
+import org.apache.directory.server.core.api.partition.CacheMemoryBudget;
+import org.apache.directory.server.core.api.partition.EntryWeigher;
 import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionCacheStats;
+import org.apache.directory.server.core.api.partition.PartitionLockTimeoutException;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.core.api.partition.PartitionWriteTxn;
 import org.apache.directory.server.core.api.partition.Subordinates;
 import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.EntryIdMap;
 import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.IndexEntry;
 import org.apache.directory.server.xdbm.IndexNotFoundException;
+import org.apache.directory.server.xdbm.IndexStatistics;
 import org.apache.directory.server.xdbm.MasterTable;
 import org.apache.directory.server.xdbm.ParentIdAndRdn;
+import org.apache.directory.server.xdbm.PartitionStatistics;
 import org.apache.directory.server.xdbm.Store;
+import org.apache.directory.server.xdbm.SubstringIndex;
 import org.apache.directory.server.xdbm.search.Optimizer;
 import org.apache.directory.server.xdbm.search.PartitionSearchResult;
 import org.apache.directory.server.xdbm.search.SearchEngine;
+import org.apache.directory.server.xdbm.search.impl.DefaultSearchEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -123,6 +135,27 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     /** Tells if the Optimizer is enabled */
     protected boolean optimizerEnabled = true;
 
+    /** The estimated number of candidates above which a search streams them instead of collecting them */
+    protected long candidateSetLimit = DefaultSearchEngine.DEFAULT_CANDIDATE_SET_LIMIT;
+
+    /** The default minimal delay between two updates of the index statistics, in ms */
+    public static final long DEFAULT_STATISTICS_UPDATE_PERIOD = 60000L;
+
+    /** The minimal delay between two updates of the index statistics, in ms */
+    protected long statisticsUpdatePeriod = DEFAULT_STATISTICS_UPDATE_PERIOD;
+
+    /** The statistics of the indexes, used by the optimizer */
+    private final PartitionStatistics statistics = new PartitionStatistics();
+
+    /** Tells if the index statistics are being updated */
+    private final AtomicBoolean statisticsUpdating = new AtomicBoolean();
+
+    /** The thread updating the index statistics, if any */
+    private volatile Thread statisticsUpdater;
+
+    /** The last time the index statistics were updated */
+    private volatile long lastStatisticsUpdate;
+
     /** The default cache size is set to 10 000 objects */
     public static final int DEFAULT_CACHE_SIZE = 10000;
 
@@ -135,6 +168,18 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     /** The ParentIdAndRdn cache */
     protected Cache<String, ParentIdAndRdn> piarCache;
 
+    /** The default time an unused Dn stays in the caches : 20 minutes */
+    public static final long DEFAULT_CACHE_EXPIRATION = 20L * 60L * 1000L;
+
+    /** The time an unused Dn stays in the caches, in milliseconds */
+    protected long cacheExpiration = DEFAULT_CACHE_EXPIRATION;
+
+    /** The minimal amount of memory given to the entry cache when the memory budget is shared */
+    protected long cacheMemoryFloor = CacheMemoryBudget.DEFAULT_FLOOR;
+
+    /** The entry cache, created by the concrete partition */
+    private Cache<String, Entry> entryCache;
+
     /** true if we sync disks on every write operation */
     protected AtomicBoolean isSyncOnWrite = new AtomicBoolean( true );
 
@@ -156,6 +201,9 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     /** a map of attributeType numeric UUID to system userIndices */
     protected Map<String, Index<?, String>> systemIndices = new HashMap<>();
 
+    /** The substring indexes of the user indexes which have one, per attribute OID */
+    private Map<String, SubstringIndex> substringIndices = new HashMap<>();
+
     /** the relative distinguished name index */
     protected Index<ParentIdAndRdn, String> rdnIdx;
 
@@ -209,6 +257,9 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
     /** a cache to hold <entryUUID, Dn> pairs, this is used for speeding up the buildEntryDn() method */
     private Cache<String, Dn> entryDnCache;
+
+    /** The dense int IDs given to the entries, used by the searches */
+    private final EntryIdMap entryIdMap = new EntryIdMap();
     
     /** a semaphore to serialize the writes on context entry while updating contextCSN attribute */
     private Semaphore ctxCsnSemaphore = new Semaphore( 1 );
@@ -308,6 +359,92 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * @return The time an unused Dn stays in the caches, in milliseconds
+     */
+    public long getCacheExpiration()
+    {
+        return cacheExpiration;
+    }
+
+
+    /**
+     * @param cacheExpiration The time an unused Dn stays in the caches, in milliseconds
+     */
+    public void setCacheExpiration( long cacheExpiration )
+    {
+        checkInitialized( "cacheExpiration" );
+        this.cacheExpiration = cacheExpiration;
+    }
+
+
+    /**
+     * @return The minimal amount of memory given to the entry cache when the memory
+     * budget is shared with the other partitions, in bytes
+     */
+    public long getCacheMemoryFloor()
+    {
+        return cacheMemoryFloor;
+    }
+
+
+    /**
+     * @param cacheMemoryFloor The minimal amount of memory given to the entry cache when
+     * the memory budget is shared with the other partitions, in bytes
+     */
+    public void setCacheMemoryFloor( long cacheMemoryFloor )
+    {
+        checkInitialized( "cacheMemoryFloor" );
+        this.cacheMemoryFloor = cacheMemoryFloor;
+    }
+
+
+    /**
+     * Creates the entry cache. If a memory budget is shared by the partitions, the cache is
+     * bounded by the estimated size of the entries, and its share of the budget follows the
+     * partition needs. Otherwise, the cache holds at most {@link #getCacheSize()} entries.
+     *
+     * @return The entry cache
+     */
+    protected Cache<String, Entry> createEntryCache()
+    {
+        if ( cacheMemoryBudget != null )
+        {
+            entryCache = cacheMemoryBudget.createCache( id, cacheMemoryFloor, new EntryWeigher() );
+        }
+        else
+        {
+            entryCache = Caffeine.newBuilder().maximumSize( cacheSize ).recordStats().build();
+        }
+
+        return entryCache;
+    }
+
+
+    /**
+     * @return The statistics of the partition caches : the entry cache, if any, the alias cache,
+     * the ParentIdAndRdn cache and the entry Dn cache
+     */
+    public List<PartitionCacheStats> getCacheStats()
+    {
+        List<PartitionCacheStats> stats = new ArrayList<>();
+
+        if ( entryCache != null )
+        {
+            stats.add( new PartitionCacheStats( "entry", entryCache ) );
+        }
+
+        if ( aliasCache != null )
+        {
+            stats.add( new PartitionCacheStats( "alias", aliasCache ) );
+            stats.add( new PartitionCacheStats( "parentIdAndRdn", piarCache ) );
+            stats.add( new PartitionCacheStats( "entryDn", entryDnCache ) );
+        }
+
+        return stats;
+    }
+
+
     /**
      * Tells if the Optimizer is enabled or not
      * @return true if the optimizer is enabled
@@ -328,6 +465,51 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * @return The estimated number of candidates above which a search streams them
+     */
+    public long getCandidateSetLimit()
+    {
+        return candidateSetLimit;
+    }
+
+
+    /**
+     * Sets the estimated number of candidates above which a search reads them from an
+     * index cursor while returning the entries, instead of collecting them first. It
+     * has to be set before the partition is initialized.
+     *
+     * @param candidateSetLimit The limit, Long.MAX_VALUE to always collect the candidates
+     * @see DefaultSearchEngine#setCandidateSetLimit(long)
+     */
+    public void setCandidateSetLimit( long candidateSetLimit )
+    {
+        this.candidateSetLimit = candidateSetLimit;
+    }
+
+
+    /**
+     * @return The minimal delay between two updates of the index statistics, in ms
+     */
+    public long getStatisticsUpdatePeriod()
+    {
+        return statisticsUpdatePeriod;
+    }
+
+
+    /**
+     * Sets the minimal delay between two updates of the index statistics. The update
+     * is triggered by the partition sync, and only computes the statistics of the
+     * indexes which have changed too much since their last computation.
+     *
+     * @param statisticsUpdatePeriod The delay, in ms
+     */
+    public void setStatisticsUpdatePeriod( long statisticsUpdatePeriod )
+    {
+        this.statisticsUpdatePeriod = statisticsUpdatePeriod;
+    }
+
+
     /**
      * Sets the path in which this Partition stores data. This may be an URL to
      * a file or directory, or an JDBC URL.
@@ -543,10 +725,33 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         // don't reset initialized flag
         initialized = false;
 
+        // Wait for the statistics update, it's reading the indexes
+        Thread updater = statisticsUpdater;
+
+        if ( updater != null )
+        {
+            try
+            {
+                updater.join();
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        saveStatistics();
+
         aliasCache.invalidateAll();
         piarCache.invalidateAll();
         entryDnCache.invalidateAll();
 
+        // Give the entry cache memory back to the other partitions
+        if ( ( cacheMemoryBudget != null ) && ( entryCache != null ) )
+        {
+            cacheMemoryBudget.release( entryCache );
+        }
+
         MultiException errors = new MultiException( I18n.err( I18n.ERR_577 ) );
 
         for ( Index<?, String> index : userIndices.values() )
@@ -629,14 +834,26 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         setupSystemIndices();
         setupUserIndices();
 
-        aliasCache = Caffeine.newBuilder().maximumSize( cacheSize ).expireAfterAccess( Duration.ofMinutes( 20 ) )
-            .build();
+        Duration expiration = Duration.ofMillis( cacheExpiration );
+
+        aliasCache = Caffeine.newBuilder().maximumSize( cacheSize ).expireAfterAccess( expiration )
+            .recordStats().build();
 
         piarCache = Caffeine.newBuilder().maximumSize( cacheSize * 3L )
-            .expireAfterAccess( Duration.ofMinutes( 20 ) ).build();
+            .expireAfterAccess( expiration ).recordStats().build();
+
+        entryDnCache = Caffeine.newBuilder().maximumSize( cacheSize ).expireAfterAccess( expiration )
+            .recordStats().build();
 
-        entryDnCache = Caffeine.newBuilder().maximumSize( cacheSize ).expireAfterAccess( Duration.ofMinutes( 20 ) )
-            .build();
+        // Get back the index statistics computed before the last shutdown
+        File statisticsFile = getStatisticsFile();
+
+        if ( statisticsFile != null )
+        {
+            statistics.load( statisticsFile );
+        }
+
+        buildSubstringIndices();
     }
 
 
@@ -929,6 +1146,8 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
                 // And finally add the entry into the master table
                 master.put( partitionTxn, id, entry );
+                statistics.recordWrite();
+                updateSubstringIndices( partitionTxn, id, null, getSubstringGrams( entry ) );
             }
             finally
             {
@@ -1161,6 +1380,9 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 }
 
                 master.remove( partitionTxn, id );
+                statistics.recordWrite();
+                updateSubstringIndices( partitionTxn, id, getSubstringGrams( entry ), null );
+                entryIdMap.release( id );
             }
             finally
             {
@@ -1216,9 +1438,23 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 }
             }
             
-            PartitionSearchResult searchResult = searchEngine.computeResult( partitionTxn, schemaManager, searchContext );
+            // The int IDs of the candidates must not be given to other entries before the cursor is closed
+            long entryIdReader = entryIdMap.openReader();
+            PartitionSearchResult searchResult = null;
+
+            try
+            {
+                searchResult = searchEngine.computeResult( partitionTxn, schemaManager, searchContext );
+            }
+            finally
+            {
+                if ( searchResult == null )
+                {
+                    entryIdMap.closeReader( entryIdReader );
+                }
+            }
 
-            Cursor<Entry> result = new EntryCursorAdaptor( partitionTxn, this, searchResult );
+            Cursor<Entry> result = new EntryCursorAdaptor( partitionTxn, this, searchResult, entryIdMap, entryIdReader );
 
             return new EntryFilteringCursorImpl( result, searchContext, schemaManager );
         }
@@ -1294,10 +1530,10 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     @Override
     public Entry fetch( PartitionTxn partitionTxn, String id ) throws LdapException
     {
+        lockRead();
+
         try
         {
-            rwLock.readLock().lock();
-
             if ( id == null )
             {
                 id = "";
@@ -1313,7 +1549,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         }
         finally
         {
-            rwLock.readLock().unlock();
+            unlockRead();
         }
     }
 
@@ -1356,14 +1592,15 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 return entry;
             }
 
+            lockRead();
+
             try
             {
-                rwLock.readLock().lock();
                 entry = master.get( partitionTxn, id );
             }
             finally
             {
-                rwLock.readLock().unlock();
+                unlockRead();
             }
 
             if ( entry != null )
@@ -1386,6 +1623,10 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
             return null;
         }
+        catch ( LdapServiceUnavailableException lsue )
+        {
+            throw lsue;
+        }
         catch ( Exception e )
         {
             throw new LdapOperationErrorException( e.getMessage(), e );
@@ -1434,6 +1675,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     {
         String id = getEntryId( partitionTxn, dn );
         Entry entry = master.get( partitionTxn, id );
+        Map<String, Set<String>> oldGrams = getSubstringGrams( entry );
 
         for ( Modification mod : mods )
         {
@@ -1477,6 +1719,8 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         setContextCsn( entry.get( entryCsnAT ).getString() );
         
         master.put( partitionTxn, id, entry );
+        statistics.recordWrite();
+        updateSubstringIndices( partitionTxn, id, oldGrams, getSubstringGrams( entry ) );
 
         return entry;
     }
@@ -2268,6 +2512,8 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     public void moveAndRename( PartitionTxn partitionTxn, Dn oldDn, Dn newSuperiorDn, Rdn newRdn, Map<String, 
             List<ModDnAva>> modAvas, Entry modifiedEntry ) throws LdapException
     {
+        statistics.recordWrite();
+
         // Get the child and the new parent to be entries and Ids
         Attribute entryIdAt = modifiedEntry.get( SchemaConstants.ENTRY_UUID_AT );
         String entryId;
@@ -2374,8 +2620,13 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
         setContextCsn( modifiedEntry.get( entryCsnAT ).getString() );
 
+        // Read the old values before they are replaced, to update the substring indexes
+        Map<String, Set<String>> oldGrams = substringIndices.isEmpty() ? null
+            : getSubstringGrams( master.get( partitionTxn, entryId ) );
+
         // save the modified entry at the new place
         master.put( partitionTxn, entryId, modifiedEntry );
+        updateSubstringIndices( partitionTxn, entryId, oldGrams, getSubstringGrams( modifiedEntry ) );
     }
     
     
@@ -2499,6 +2750,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             entry = master.get( partitionTxn, oldId );
         }
 
+        Map<String, Set<String>> oldGrams = getSubstringGrams( entry );
         Dn updn = entry.getDn();
 
         if ( !newRdn.isSchemaAware() )
@@ -2647,6 +2899,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
         // And save the modified entry
         master.put( partitionTxn, oldId, entry );
+        updateSubstringIndices( partitionTxn, oldId, oldGrams, getSubstringGrams( entry ) );
     }
 
 
@@ -2659,6 +2912,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         throws LdapException
     {
         String oldId = getEntryId( partitionTxn, dn );
+        statistics.recordWrite();
 
         try
         {
@@ -2801,10 +3055,10 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
         Dn dn = null;
         
+        lockRead();
+
         try
         {
-            rwLock.readLock().lock();
-
             if ( entryDnCache != null )
             {
                 Dn cachedDn = entryDnCache.getIfPresent( id );
@@ -2871,7 +3125,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         }
         finally
         {
-            rwLock.readLock().unlock();
+            unlockRead();
         }
     }
 
@@ -2931,9 +3185,10 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             ParentIdAndRdn suffixKey = new ParentIdAndRdn( Partition.ROOT_ID, suffixDn.getRdns() );
 
             // Check into the Rdn index, starting with the partition Suffix
+            lockRead();
+
             try
             {
-                rwLock.readLock().lock();
                 String currentId = rdnIdx.forwardLookup( partitionTxn, suffixKey );
 
                 for ( int i = dn.size() - suffixDn.size(); i > 0; i-- )
@@ -2953,9 +3208,13 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             }
             finally
             {
-                rwLock.readLock().unlock();
+                unlockRead();
             }
         }
+        catch ( LdapServiceUnavailableException lsue )
+        {
+            throw lsue;
+        }
         catch ( Exception e )
         {
             throw new LdapException( e.getMessage(), e );
@@ -2969,9 +3228,10 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     @Override
     public String getParentId( PartitionTxn partitionTxn, String childId ) throws LdapException
     {
+        lockRead();
+
         try
         {
-            rwLock.readLock().lock();
             ParentIdAndRdn key = rdnIdx.reverseLookup( partitionTxn, childId );
 
             if ( key == null )
@@ -2983,7 +3243,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         }
         finally
         {
-            rwLock.readLock().unlock();
+            unlockRead();
         }
     }
 
@@ -3001,14 +3261,15 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         {
             ParentIdAndRdn key = new ParentIdAndRdn( Partition.ROOT_ID, suffixDn.getRdns() );
 
+            lockRead();
+
             try
             {
-                rwLock.readLock().lock();
                 suffixId = rdnIdx.forwardLookup( partitionTxn, key );
             }
             finally
             {
-                rwLock.readLock().unlock();
+                unlockRead();
             }
         }
 
@@ -3244,6 +3505,281 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public EntryIdMap getEntryIdMap()
+    {
+        return entryIdMap;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public IndexStatistics getIndexStatistics( String attributeId )
+    {
+        return statistics.get( attributeId );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SubstringIndex getSubstringIndex( AttributeType attributeType )
+    {
+        return substringIndices.get( attributeType.getOid() );
+    }
+
+
+    /**
+     * Builds the substring indexes of the user indexes flagged as substring indexed,
+     * reading their keys.
+     *
+     * @throws LdapException If an index can't be read
+     */
+    private void buildSubstringIndices() throws LdapException
+    {
+        Map<String, SubstringIndex> tmp = new HashMap<>();
+
+        try ( PartitionTxn partitionTxn = beginReadTransaction() )
+        {
+            for ( Index<?, String> index : userIndices.values() )
+            {
+                if ( index.isSubstringIndexed() )
+                {
+                    SubstringIndex substringIndex = new SubstringIndex( index.getAttributeId() );
+                    substringIndex.build( partitionTxn, index, entryIdMap );
+                    tmp.put( index.getAttributeId(), substringIndex );
+
+                    LOG.debug( "Built {} for {} partition", substringIndex, suffixDn );
+                }
+            }
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+
+        substringIndices = tmp;
+    }
+
+
+    /**
+     * Gets the grams of the values of an entry, for each substring index
+     *
+     * @param entry The entry
+     * @return The grams, per attribute OID
+     */
+    private Map<String, Set<String>> getSubstringGrams( Entry entry )
+    {
+        if ( substringIndices.isEmpty() )
+        {
+            return null;
+        }
+
+        Map<String, Set<String>> grams = new HashMap<>();
+
+        for ( String oid : substringIndices.keySet() )
+        {
+            grams.put( oid, SubstringIndex.getGrams( entry.get( userIndices.get( oid ).getAttribute() ) ) );
+        }
+
+        return grams;
+    }
+
+
+    /**
+     * Updates the substring indexes after an entry has been written. The substring indexes
+     * are in memory only, so the update is undone by the transaction if it's aborted, as
+     * the changes done in the B-trees.
+     *
+     * @param partitionTxn The transaction the entry has been written with
+     * @param id The entry ID
+     * @param oldGrams The grams of the entry before the write, or null if it has been added
+     * @param newGrams The grams of the entry after the write, or null if it has been deleted
+     */
+    private void updateSubstringIndices( PartitionTxn partitionTxn, String id, Map<String, Set<String>> oldGrams,
+        Map<String, Set<String>> newGrams )
+    {
+        if ( substringIndices.isEmpty() )
+        {
+            return;
+        }
+
+        applySubstringGrams( id, oldGrams, newGrams );
+
+        if ( partitionTxn instanceof PartitionWriteTxn )
+        {
+            ( ( PartitionWriteTxn ) partitionTxn ).addUndoAction( () -> applySubstringGrams( id, newGrams, oldGrams ) );
+        }
+    }
+
+
+    /**
+     * Replaces the grams of an entry in the substring indexes.
+     *
+     * @param id The entry ID
+     * @param oldGrams The grams to remove, or null if the entry has been added
+     * @param newGrams The grams to add, or null if the entry has been deleted
+     */
+    private void applySubstringGrams( String id, Map<String, Set<String>> oldGrams,
+        Map<String, Set<String>> newGrams )
+    {
+        int entryId = entryIdMap.getId( id );
+
+        for ( Map.Entry<String, SubstringIndex> substringIndex : substringIndices.entrySet() )
+        {
+            String oid = substringIndex.getKey();
+
+            if ( oldGrams == null )
+            {
+                substringIndex.getValue().add( entryId, newGrams.get( oid ) );
+            }
+            else if ( newGrams == null )
+            {
+                substringIndex.getValue().remove( entryId, oldGrams.get( oid ) );
+            }
+            else
+            {
+                substringIndex.getValue().update( entryId, oldGrams.get( oid ), newGrams.get( oid ) );
+            }
+        }
+    }
+
+
+    /**
+     * Computes again the statistics of the user indexes and of the ObjectClass index
+     * which have changed too much since they were computed, and saves them.
+     *
+     * @throws LdapException If the indexes can't be read
+     */
+    public void updateStatistics() throws LdapException
+    {
+        if ( !initialized )
+        {
+            return;
+        }
+
+        List<Index<?, String>> indexes = new ArrayList<>( userIndices.values() );
+        indexes.add( objectClassIdx );
+        boolean updated = false;
+
+        try ( PartitionTxn partitionTxn = beginReadTransaction() )
+        {
+            for ( Index<?, String> index : indexes )
+            {
+                if ( statistics.isStale( partitionTxn, index ) )
+                {
+                    statistics.refresh( partitionTxn, index );
+                    updated = true;
+                }
+            }
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+
+        lastStatisticsUpdate = System.currentTimeMillis();
+
+        if ( updated )
+        {
+            saveStatistics();
+        }
+    }
+
+
+    /**
+     * Starts a thread updating the index statistics, unless they have been updated less
+     * than statisticsUpdatePeriod ms ago, or are being updated.
+     */
+    protected void scheduleStatisticsUpdate()
+    {
+        if ( !initialized || ( System.currentTimeMillis() - lastStatisticsUpdate < statisticsUpdatePeriod ) )
+        {
+            return;
+        }
+
+        if ( !statisticsUpdating.compareAndSet( false, true ) )
+        {
+            return;
+        }
+
+        Thread updater = new Thread( () ->
+        {
+            try
+            {
+                updateStatistics();
+            }
+            catch ( Exception e )
+            {
+                LOG.warn( "Failed to update the index statistics of the {} partition : {}", id, e.getMessage() );
+            }
+            finally
+            {
+                statisticsUpdater = null;
+                statisticsUpdating.set( false );
+            }
+        }, "IndexStatistics-" + id );
+
+        updater.setDaemon( true );
+        statisticsUpdater = updater;
+        updater.start();
+    }
+
+
+    /**
+     * Updates the index statistics in the background. The partitions which have some data to
+     * flush must call this method from their own sync() method.
+     *
+     * @throws LdapException never thrown here
+     */
+    @Override
+    public void sync() throws LdapException
+    {
+        scheduleStatisticsUpdate();
+    }
+
+
+    /**
+     * Gets the file in which the index statistics are saved. The partitions which are
+     * rebuilt at startup don't need to save them, and return null, which is the default.
+     *
+     * @return The file storing the index statistics, or null
+     */
+    protected File getStatisticsFile()
+    {
+        return null;
+    }
+
+
+    /**
+     * Saves the index statistics, if the partition stores them
+     */
+    private void saveStatistics()
+    {
+        File statisticsFile = getStatisticsFile();
+
+        if ( statisticsFile == null )
+        {
+            return;
+        }
+
+        try
+        {
+            statistics.save( statisticsFile );
+        }
+        catch ( IOException ioe )
+        {
+            LOG.warn( "Cannot save the index statistics in {} : {}", statisticsFile, ioe.getMessage() );
+        }
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -3638,10 +4174,20 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
     /**
      * Acquire a Read lock
+     *
+     * @throws LdapServiceUnavailableException If the lock is requested out of the partition lock order,
+     * and can't be acquired in time
      */
-    private void lockRead()
+    private void lockRead() throws LdapServiceUnavailableException
     {
-        rwLock.readLock().lock();
+        try
+        {
+            rwLock.readLock().lock();
+        }
+        catch ( PartitionLockTimeoutException plte )
+        {
+            throw new LdapServiceUnavailableException( ResultCodeEnum.BUSY, plte.getMessage() );
+        }
     }
 
 
@@ -3656,10 +4202,20 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
     /**
      * Acquire a Write lock
+     *
+     * @throws LdapServiceUnavailableException If the lock is requested out of the partition lock order,
+     * and can't be acquired in time
      */
-    private void lockWrite()
+    private void lockWrite() throws LdapServiceUnavailableException
     {
-        rwLock.writeLock().lock();
+        try
+        {
+            rwLock.writeLock().lock();
+        }
+        catch ( PartitionLockTimeoutException plte )
+        {
+            throw new LdapServiceUnavailableException( ResultCodeEnum.BUSY, plte.getMessage() );
+        }
     }
 
 
@@ -3736,6 +4292,29 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * Clears the caches which map the entry IDs to their Dn, their parent or their alias target.
+     * This is needed when some changes have been undone.
+     */
+    protected void clearIdCaches()
+    {
+        if ( aliasCache != null )
+        {
+            aliasCache.invalidateAll();
+        }
+
+        if ( piarCache != null )
+        {
+            piarCache.invalidateAll();
+        }
+
+        if ( entryDnCache != null )
+        {
+            entryDnCache.invalidateAll();
+        }
+    }
+
+
     /**
      * Set and return the ReadWrite lock we use to protect the backend against concurrent modifications
      * 
@@ -3745,7 +4324,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     {
         if ( operationContext.getSession() != null )
         {
-            rwLock = operationContext.getSession().getDirectoryService().getOperationManager().getRWLock();
+            rwLock = operationContext.getSession().getDirectoryService().getOperationManager().getRWLock( this );
         }
         else
         {
@@ -3898,9 +4477,10 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         try
         {
             // Check into the Rdn index, starting with the partition Suffix
+            lockRead();
+
             try
             {
-                rwLock.readLock().lock();
                 ParentIdAndRdn parentIdAndRdn = rdnIdx.reverseLookup( partitionTxn, entry.get( SchemaConstants.ENTRY_UUID_AT ).getString() );
 
                 subordinates.setNbChildren( parentIdAndRdn.getNbChildren() );
@@ -3908,9 +4488,13 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             }
             finally
             {
-                rwLock.readLock().unlock();
+                unlockRead();
             }
         }
+        catch ( LdapServiceUnavailableException lsue )
+        {
+            throw lsue;
+        }
         catch ( Exception e )
         {
             throw new LdapException( e.getMessage(), e );
@@ -31,6 +31,7 @@ import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.xdbm.EntryIdMap;
 import org.apache.directory.server.xdbm.IndexEntry;
 import org.apache.directory.server.xdbm.search.Evaluator;
 import org.apache.directory.server.xdbm.search.PartitionSearchResult;
@@ -57,8 +58,31 @@ public class EntryCursorAdaptor extends AbstractCursor<Entry>
     private final Cursor<IndexEntry<String, String>> indexCursor;
     private final Evaluator<? extends ExprNode> evaluator;
 
+    /** The map the search has got the int IDs of its candidates from, if it is registered as a reader */
+    private EntryIdMap entryIdMap;
+
+    /** The reader registration, released when the cursor is closed */
+    private final long entryIdReader;
+
 
     public EntryCursorAdaptor( PartitionTxn partitionTxn, AbstractBTreePartition db, PartitionSearchResult searchResult )
+    {
+        this( partitionTxn, db, searchResult, null, 0L );
+    }
+
+
+    /**
+     * Creates a new EntryCursorAdaptor, which closes the reader the search has registered
+     * in the EntryIdMap when it is closed.
+     *
+     * @param partitionTxn The transaction in use
+     * @param db The partition
+     * @param searchResult The search result
+     * @param entryIdMap The map the search has got the int IDs of its candidates from
+     * @param entryIdReader The reader the search has registered before getting any int ID
+     */
+    public EntryCursorAdaptor( PartitionTxn partitionTxn, AbstractBTreePartition db, PartitionSearchResult searchResult,
+        EntryIdMap entryIdMap, long entryIdReader )
     {
         if ( IS_DEBUG )
         {
@@ -68,6 +92,8 @@ public class EntryCursorAdaptor extends AbstractCursor<Entry>
         indexCursor = searchResult.getResultSet();
         evaluator = searchResult.getEvaluator();
         this.partitionTxn = partitionTxn;
+        this.entryIdMap = entryIdMap;
+        this.entryIdReader = entryIdReader;
     }
 
 
@@ -137,7 +163,14 @@ public class EntryCursorAdaptor extends AbstractCursor<Entry>
             LOG_CURSOR.debug( "Closing EntryCursorAdaptor {}", this );
         }
 
-        indexCursor.close();
+        try
+        {
+            indexCursor.close();
+        }
+        finally
+        {
+            closeReader();
+        }
     }
 
 
@@ -152,7 +185,27 @@ public class EntryCursorAdaptor extends AbstractCursor<Entry>
             LOG_CURSOR.debug( "Closing EntryCursorAdaptor {}", this );
         }
 
-        indexCursor.close( cause );
+        try
+        {
+            indexCursor.close( cause );
+        }
+        finally
+        {
+            closeReader();
+        }
+    }
+
+
+    /**
+     * Lets the int IDs of the candidates be given to other entries
+     */
+    private void closeReader()
+    {
+        if ( entryIdMap != null )
+        {
+            entryIdMap.closeReader( entryIdReader );
+            entryIdMap = null;
+        }
     }
 
 
@@ -52,6 +52,9 @@ public abstract class AbstractIndex<K, E> implements Index<K, E>
     /** A counter used to differ the commit on disk after N operations */
     protected AtomicInteger commitNumber;
 
+    /** Tells if the partition keeps a substring index on the attribute */
+    protected boolean substringIndexed;
+
 
     /**
      * Creates a new instance of AbstractIndex.
@@ -162,4 +165,23 @@ public abstract class AbstractIndex<K, E> implements Index<K, E>
     {
         return withReverse;
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isSubstringIndexed()
+    {
+        return substringIndexed;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setSubstringIndexed( boolean substringIndexed )
+    {
+        protect( "substringIndexed" );
+        this.substringIndexed = substringIndexed;
+    }
 }
@@ -0,0 +1,871 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+
+/**
+ * A compressed set of the dense entry IDs given by an {@link EntryIdMap}, used to store
+ * the candidates of a search. As in a Roaring bitmap, the IDs are split in chunks of
+ * 65536 values sharing the same 16 upper bits. A chunk holding a few IDs stores them
+ * in a sorted char array, a chunk holding more than 4096 IDs uses a 8kB bitmap, so an
+ * ID never costs more than 2 bytes, and the AND and OR operations are done chunk per
+ * chunk, on 64 bits words when both chunks are bitmaps.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class EntryIdBitmap
+{
+    /** The maximum number of IDs stored in an array chunk */
+    private static final int ARRAY_MAX_SIZE = 4096;
+
+    /** The number of longs in a bitmap chunk */
+    private static final int BITMAP_SIZE = 1024;
+
+    /** The chunk keys (the 16 upper bits of the IDs), sorted */
+    private char[] keys = new char[4];
+
+    /** The chunks, in the keys order */
+    private Chunk[] chunks = new Chunk[4];
+
+    /** The number of chunks */
+    private int size;
+
+
+    /**
+     * Creates an empty EntryIdBitmap
+     */
+    public EntryIdBitmap()
+    {
+    }
+
+
+    /**
+     * Adds an ID to the set.
+     *
+     * @param id The ID to add, which must be positive
+     * @return <code>true</code> if the ID was not already present
+     */
+    public boolean add( int id )
+    {
+        char key = ( char ) ( id >>> 16 );
+        int pos = Arrays.binarySearch( keys, 0, size, key );
+
+        if ( pos < 0 )
+        {
+            pos = -pos - 1;
+            insertChunk( pos, key, new ArrayChunk() );
+        }
+
+        Chunk chunk = chunks[pos];
+        boolean added = chunk.add( ( char ) id );
+
+        if ( added && ( chunk instanceof ArrayChunk ) && ( chunk.cardinality() > ARRAY_MAX_SIZE ) )
+        {
+            chunks[pos] = ( ( ArrayChunk ) chunk ).toBitmap();
+        }
+
+        return added;
+    }
+
+
+    /**
+     * Removes an ID from the set.
+     *
+     * @param id The ID to remove
+     * @return <code>true</code> if the ID was present
+     */
+    public boolean remove( int id )
+    {
+        int pos = Arrays.binarySearch( keys, 0, size, ( char ) ( id >>> 16 ) );
+
+        if ( ( pos < 0 ) || !chunks[pos].remove( ( char ) id ) )
+        {
+            return false;
+        }
+
+        Chunk chunk = chunks[pos];
+
+        if ( chunk.cardinality() == 0 )
+        {
+            System.arraycopy( keys, pos + 1, keys, pos, size - pos - 1 );
+            System.arraycopy( chunks, pos + 1, chunks, pos, size - pos - 1 );
+            size--;
+            chunks[size] = null;
+        }
+        else if ( ( chunk instanceof BitmapChunk ) && ( chunk.cardinality() <= ARRAY_MAX_SIZE / 2 ) )
+        {
+            // Don't switch back as soon as we are under the limit, to avoid converting
+            // the chunk again and again when IDs are added and removed
+            chunks[pos] = ( ( BitmapChunk ) chunk ).toArray();
+        }
+
+        return true;
+    }
+
+
+    /**
+     * @param id The ID to look for
+     * @return <code>true</code> if the ID is present in the set
+     */
+    public boolean contains( int id )
+    {
+        int pos = Arrays.binarySearch( keys, 0, size, ( char ) ( id >>> 16 ) );
+
+        return ( pos >= 0 ) && chunks[pos].contains( ( char ) id );
+    }
+
+
+    /**
+     * @return The number of IDs in the set
+     */
+    public long cardinality()
+    {
+        long cardinality = 0L;
+
+        for ( int i = 0; i < size; i++ )
+        {
+            cardinality += chunks[i].cardinality();
+        }
+
+        return cardinality;
+    }
+
+
+    /**
+     * @return <code>true</code> if the set does not contain any ID
+     */
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+
+    /**
+     * Adds all the IDs of another set to this set.
+     *
+     * @param other The other set
+     */
+    public void or( EntryIdBitmap other )
+    {
+        for ( int i = 0; i < other.size; i++ )
+        {
+            char key = other.keys[i];
+            int pos = Arrays.binarySearch( keys, 0, size, key );
+
+            if ( pos < 0 )
+            {
+                insertChunk( -pos - 1, key, other.chunks[i].copy() );
+            }
+            else
+            {
+                chunks[pos] = chunks[pos].or( other.chunks[i] );
+            }
+        }
+    }
+
+
+    /**
+     * Removes from this set the IDs which are not present in another set.
+     *
+     * @param other The other set
+     */
+    public void and( EntryIdBitmap other )
+    {
+        int newSize = 0;
+
+        for ( int i = 0; i < size; i++ )
+        {
+            int pos = Arrays.binarySearch( other.keys, 0, other.size, keys[i] );
+
+            if ( pos < 0 )
+            {
+                continue;
+            }
+
+            Chunk chunk = chunks[i].and( other.chunks[pos] );
+
+            if ( chunk.cardinality() > 0 )
+            {
+                keys[newSize] = keys[i];
+                chunks[newSize] = chunk;
+                newSize++;
+            }
+        }
+
+        Arrays.fill( chunks, newSize, size, null );
+        size = newSize;
+    }
+
+
+    /**
+     * @return An iterator over the IDs, in ascending order
+     */
+    public PrimitiveIterator.OfInt iterator()
+    {
+        return new PrimitiveIterator.OfInt()
+        {
+            private int chunkPos = 0;
+            private PrimitiveIterator.OfInt current = size > 0 ? chunks[0].iterator() : null;
+
+
+            @Override
+            public boolean hasNext()
+            {
+                while ( current != null )
+                {
+                    if ( current.hasNext() )
+                    {
+                        return true;
+                    }
+
+                    chunkPos++;
+                    current = chunkPos < size ? chunks[chunkPos].iterator() : null;
+                }
+
+                return false;
+            }
+
+
+            @Override
+            public int nextInt()
+            {
+                if ( !hasNext() )
+                {
+                    throw new NoSuchElementException();
+                }
+
+                return ( keys[chunkPos] << 16 ) | current.nextInt();
+            }
+        };
+    }
+
+
+    /**
+     * Gets the smallest ID of the set which is greater than or equal to a given ID.
+     *
+     * @param from The ID to start from
+     * @return The found ID, or -1 if there is no such ID
+     */
+    public int nextId( int from )
+    {
+        if ( from < 0 )
+        {
+            from = 0;
+        }
+
+        int pos = Arrays.binarySearch( keys, 0, size, ( char ) ( from >>> 16 ) );
+
+        if ( pos >= 0 )
+        {
+            int value = chunks[pos].next( from & 0xFFFF );
+
+            if ( value >= 0 )
+            {
+                return ( keys[pos] << 16 ) | value;
+            }
+
+            pos++;
+        }
+        else
+        {
+            pos = -pos - 1;
+        }
+
+        // The chunks are never empty
+        return pos < size ? ( keys[pos] << 16 ) | chunks[pos].next( 0 ) : -1;
+    }
+
+
+    /**
+     * Gets the greatest ID of the set which is lower than or equal to a given ID.
+     *
+     * @param from The ID to start from
+     * @return The found ID, or -1 if there is no such ID
+     */
+    public int previousId( int from )
+    {
+        if ( from < 0 )
+        {
+            return -1;
+        }
+
+        int pos = Arrays.binarySearch( keys, 0, size, ( char ) ( from >>> 16 ) );
+
+        if ( pos >= 0 )
+        {
+            int value = chunks[pos].previous( from & 0xFFFF );
+
+            if ( value >= 0 )
+            {
+                return ( keys[pos] << 16 ) | value;
+            }
+
+            pos--;
+        }
+        else
+        {
+            pos = -pos - 2;
+        }
+
+        return pos >= 0 ? ( keys[pos] << 16 ) | chunks[pos].previous( 0xFFFF ) : -1;
+    }
+
+
+    private void insertChunk( int pos, char key, Chunk chunk )
+    {
+        if ( size == keys.length )
+        {
+            keys = Arrays.copyOf( keys, size * 2 );
+            chunks = Arrays.copyOf( chunks, size * 2 );
+        }
+
+        System.arraycopy( keys, pos, keys, pos + 1, size - pos );
+        System.arraycopy( chunks, pos, chunks, pos + 1, size - pos );
+        keys[pos] = key;
+        chunks[pos] = chunk;
+        size++;
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return "EntryIdBitmap[" + cardinality() + " IDs in " + size + " chunks]";
+    }
+
+
+    /**
+     * The 16 lower bits of the IDs sharing the same 16 upper bits
+     */
+    private abstract static class Chunk
+    {
+        abstract boolean add( char value );
+
+
+        abstract boolean remove( char value );
+
+
+        abstract boolean contains( char value );
+
+
+        abstract int cardinality();
+
+
+        abstract Chunk or( Chunk other );
+
+
+        abstract Chunk and( Chunk other );
+
+
+        abstract Chunk copy();
+
+
+        abstract PrimitiveIterator.OfInt iterator();
+
+
+        /** @return The smallest value greater than or equal to from, or -1 */
+        abstract int next( int from );
+
+
+        /** @return The greatest value lower than or equal to from, or -1 */
+        abstract int previous( int from );
+    }
+
+
+    /**
+     * A chunk storing up to 4096 values in a sorted array
+     */
+    private static final class ArrayChunk extends Chunk
+    {
+        private char[] values;
+        private int cardinality;
+
+
+        ArrayChunk()
+        {
+            values = new char[8];
+        }
+
+
+        ArrayChunk( char[] values, int cardinality )
+        {
+            this.values = values;
+            this.cardinality = cardinality;
+        }
+
+
+        @Override
+        boolean add( char value )
+        {
+            int pos = Arrays.binarySearch( values, 0, cardinality, value );
+
+            if ( pos >= 0 )
+            {
+                return false;
+            }
+
+            pos = -pos - 1;
+
+            if ( cardinality == values.length )
+            {
+                values = Arrays.copyOf( values, Math.max( 8, cardinality * 2 ) );
+            }
+
+            System.arraycopy( values, pos, values, pos + 1, cardinality - pos );
+            values[pos] = value;
+            cardinality++;
+
+            return true;
+        }
+
+
+        @Override
+        boolean remove( char value )
+        {
+            int pos = Arrays.binarySearch( values, 0, cardinality, value );
+
+            if ( pos < 0 )
+            {
+                return false;
+            }
+
+            System.arraycopy( values, pos + 1, values, pos, cardinality - pos - 1 );
+            cardinality--;
+
+            return true;
+        }
+
+
+        @Override
+        boolean contains( char value )
+        {
+            return Arrays.binarySearch( values, 0, cardinality, value ) >= 0;
+        }
+
+
+        @Override
+        int cardinality()
+        {
+            return cardinality;
+        }
+
+
+        @Override
+        Chunk or( Chunk other )
+        {
+            if ( other instanceof BitmapChunk )
+            {
+                // Don't modify the other set
+                return other.copy().or( this );
+            }
+
+            ArrayChunk array = ( ArrayChunk ) other;
+            char[] merged = new char[cardinality + array.cardinality];
+            int i = 0;
+            int j = 0;
+            int n = 0;
+
+            while ( ( i < cardinality ) && ( j < array.cardinality ) )
+            {
+                char a = values[i];
+                char b = array.values[j];
+
+                if ( a < b )
+                {
+                    merged[n++] = a;
+                    i++;
+                }
+                else if ( a > b )
+                {
+                    merged[n++] = b;
+                    j++;
+                }
+                else
+                {
+                    merged[n++] = a;
+                    i++;
+                    j++;
+                }
+            }
+
+            while ( i < cardinality )
+            {
+                merged[n++] = values[i++];
+            }
+
+            while ( j < array.cardinality )
+            {
+                merged[n++] = array.values[j++];
+            }
+
+            ArrayChunk result = new ArrayChunk( merged, n );
+
+            return n > ARRAY_MAX_SIZE ? result.toBitmap() : result;
+        }
+
+
+        @Override
+        Chunk and( Chunk other )
+        {
+            char[] kept = new char[cardinality];
+            int n = 0;
+
+            for ( int i = 0; i < cardinality; i++ )
+            {
+                if ( other.contains( values[i] ) )
+                {
+                    kept[n++] = values[i];
+                }
+            }
+
+            return new ArrayChunk( kept, n );
+        }
+
+
+        @Override
+        Chunk copy()
+        {
+            return new ArrayChunk( Arrays.copyOf( values, Math.max( cardinality, 1 ) ), cardinality );
+        }
+
+
+        @Override
+        PrimitiveIterator.OfInt iterator()
+        {
+            return new PrimitiveIterator.OfInt()
+            {
+                private int pos = 0;
+
+
+                @Override
+                public boolean hasNext()
+                {
+                    return pos < cardinality;
+                }
+
+
+                @Override
+                public int nextInt()
+                {
+                    if ( pos >= cardinality )
+                    {
+                        throw new NoSuchElementException();
+                    }
+
+                    return values[pos++];
+                }
+            };
+        }
+
+
+        @Override
+        int next( int from )
+        {
+            int pos = Arrays.binarySearch( values, 0, cardinality, ( char ) from );
+
+            if ( pos < 0 )
+            {
+                pos = -pos - 1;
+            }
+
+            return pos < cardinality ? values[pos] : -1;
+        }
+
+
+        @Override
+        int previous( int from )
+        {
+            int pos = Arrays.binarySearch( values, 0, cardinality, ( char ) from );
+
+            if ( pos < 0 )
+            {
+                pos = -pos - 2;
+            }
+
+            return pos >= 0 ? values[pos] : -1;
+        }
+
+
+        BitmapChunk toBitmap()
+        {
+            BitmapChunk bitmap = new BitmapChunk();
+
+            for ( int i = 0; i < cardinality; i++ )
+            {
+                bitmap.add( values[i] );
+            }
+
+            return bitmap;
+        }
+    }
+
+
+    /**
+     * A chunk storing the values in a 65536 bits bitmap
+     */
+    private static final class BitmapChunk extends Chunk
+    {
+        private final long[] words;
+        private int cardinality;
+
+
+        BitmapChunk()
+        {
+            words = new long[BITMAP_SIZE];
+        }
+
+
+        BitmapChunk( long[] words, int cardinality )
+        {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+
+        @Override
+        boolean add( char value )
+        {
+            int index = value >>> 6;
+            long mask = 1L << value;
+
+            if ( ( words[index] & mask ) != 0 )
+            {
+                return false;
+            }
+
+            words[index] |= mask;
+            cardinality++;
+
+            return true;
+        }
+
+
+        @Override
+        boolean remove( char value )
+        {
+            int index = value >>> 6;
+            long mask = 1L << value;
+
+            if ( ( words[index] & mask ) == 0 )
+            {
+                return false;
+            }
+
+            words[index] &= ~mask;
+            cardinality--;
+
+            return true;
+        }
+
+
+        @Override
+        boolean contains( char value )
+        {
+            return ( words[value >>> 6] & ( 1L << value ) ) != 0;
+        }
+
+
+        @Override
+        int cardinality()
+        {
+            return cardinality;
+        }
+
+
+        @Override
+        Chunk or( Chunk other )
+        {
+            if ( other instanceof ArrayChunk )
+            {
+                ArrayChunk array = ( ArrayChunk ) other;
+
+                for ( int i = 0; i < array.cardinality; i++ )
+                {
+                    add( array.values[i] );
+                }
+
+                return this;
+            }
+
+            long[] otherWords = ( ( BitmapChunk ) other ).words;
+            int newCardinality = 0;
+
+            for ( int i = 0; i < BITMAP_SIZE; i++ )
+            {
+                words[i] |= otherWords[i];
+                newCardinality += Long.bitCount( words[i] );
+            }
+
+            cardinality = newCardinality;
+
+            return this;
+        }
+
+
+        @Override
+        Chunk and( Chunk other )
+        {
+            if ( other instanceof ArrayChunk )
+            {
+                return other.and( this );
+            }
+
+            long[] otherWords = ( ( BitmapChunk ) other ).words;
+            long[] result = new long[BITMAP_SIZE];
+            int newCardinality = 0;
+
+            for ( int i = 0; i < BITMAP_SIZE; i++ )
+            {
+                result[i] = words[i] & otherWords[i];
+                newCardinality += Long.bitCount( result[i] );
+            }
+
+            BitmapChunk chunk = new BitmapChunk( result, newCardinality );
+
+            // Not worth a bitmap anymore if it's too sparse
+            return newCardinality > ARRAY_MAX_SIZE ? chunk : chunk.toArray();
+        }
+
+
+        @Override
+        Chunk copy()
+        {
+            return new BitmapChunk( words.clone(), cardinality );
+        }
+
+
+        @Override
+        PrimitiveIterator.OfInt iterator()
+        {
+            return new PrimitiveIterator.OfInt()
+            {
+                private int index = 0;
+                private long word = words[0];
+
+
+                @Override
+                public boolean hasNext()
+                {
+                    while ( word == 0 )
+                    {
+                        if ( index + 1 >= BITMAP_SIZE )
+                        {
+                            return false;
+                        }
+
+                        index++;
+                        word = words[index];
+                    }
+
+                    return true;
+                }
+
+
+                @Override
+                public int nextInt()
+                {
+                    if ( !hasNext() )
+                    {
+                        throw new NoSuchElementException();
+                    }
+
+                    int value = ( index << 6 ) + Long.numberOfTrailingZeros( word );
+                    word &= word - 1;
+
+                    return value;
+                }
+            };
+        }
+
+
+        @Override
+        int next( int from )
+        {
+            int index = from >>> 6;
+            long word = words[index] & ( -1L << from );
+
+            while ( word == 0 )
+            {
+                index++;
+
+                if ( index == BITMAP_SIZE )
+                {
+                    return -1;
+                }
+
+                word = words[index];
+            }
+
+            return ( index << 6 ) + Long.numberOfTrailingZeros( word );
+        }
+
+
+        @Override
+        int previous( int from )
+        {
+            int index = from >>> 6;
+            long word = words[index] & ( -1L >>> ( 63 - ( from & 63 ) ) );
+
+            while ( word == 0 )
+            {
+                index--;
+
+                if ( index < 0 )
+                {
+                    return -1;
+                }
+
+                word = words[index];
+            }
+
+            return ( index << 6 ) + 63 - Long.numberOfLeadingZeros( word );
+        }
+
+
+        ArrayChunk toArray()
+        {
+            char[] values = new char[Math.max( cardinality, 1 )];
+            int n = 0;
+
+            for ( int i = 0; i < BITMAP_SIZE; i++ )
+            {
+                long word = words[i];
+
+                while ( word != 0 )
+                {
+                    values[n++] = ( char ) ( ( i << 6 ) + Long.numberOfTrailingZeros( word ) );
+                    word &= word - 1;
+                }
+            }
+
+            return new ArrayChunk( values, n );
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.io.IOException;
+
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.cursor.InvalidCursorPositionException;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.i18n.I18n;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A Cursor over the candidates stored in an EntryIdBitmap, in the int IDs order. The
+ * int IDs are converted back to entry IDs while the cursor is read, so the candidates
+ * only cost the bitmap memory.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class EntryIdBitmapCursor extends AbstractIndexCursor<String>
+{
+    /** A dedicated log for cursors */
+    private static final Logger LOG_CURSOR = LoggerFactory.getLogger( Loggers.CURSOR_LOG.getName() );
+
+    /** Speedup for logs */
+    private static final boolean IS_DEBUG = LOG_CURSOR.isDebugEnabled();
+
+    /** The candidates */
+    private final EntryIdBitmap candidates;
+
+    /** The mapping between the int IDs and the entry IDs */
+    private final EntryIdMap entryIdMap;
+
+    /** The int ID the cursor is on, -1 before the first one, Integer.MAX_VALUE after the last one */
+    private int position = -1;
+
+    /** The current element */
+    private IndexEntry<String, String> current;
+
+
+    /**
+     * Creates a new EntryIdBitmapCursor
+     *
+     * @param partitionTxn The transaction to use
+     * @param candidates The candidates
+     * @param entryIdMap The mapping between the int IDs and the entry IDs
+     */
+    public EntryIdBitmapCursor( PartitionTxn partitionTxn, EntryIdBitmap candidates, EntryIdMap entryIdMap )
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Creating EntryIdBitmapCursor {}", this );
+        }
+
+        this.partitionTxn = partitionTxn;
+        this.candidates = candidates;
+        this.entryIdMap = entryIdMap;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    protected String getUnsupportedMessage()
+    {
+        return UNSUPPORTED_MSG;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void beforeFirst() throws LdapException, CursorException
+    {
+        checkNotClosed();
+        position = -1;
+        current = null;
+        setAvailable( false );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterLast() throws LdapException, CursorException
+    {
+        checkNotClosed();
+        position = Integer.MAX_VALUE;
+        current = null;
+        setAvailable( false );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean first() throws LdapException, CursorException
+    {
+        beforeFirst();
+
+        return next();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean last() throws LdapException, CursorException
+    {
+        afterLast();
+
+        return previous();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean previous() throws LdapException, CursorException
+    {
+        checkNotClosed();
+
+        while ( position >= 0 )
+        {
+            position = candidates.previousId( position - 1 );
+
+            if ( moveTo( position ) )
+            {
+                return setAvailable( true );
+            }
+        }
+
+        current = null;
+
+        return setAvailable( false );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean next() throws LdapException, CursorException
+    {
+        checkNotClosed();
+
+        while ( position < Integer.MAX_VALUE )
+        {
+            position = candidates.nextId( position + 1 );
+
+            if ( position < 0 )
+            {
+                position = Integer.MAX_VALUE;
+            }
+            else if ( moveTo( position ) )
+            {
+                return setAvailable( true );
+            }
+        }
+
+        current = null;
+
+        return setAvailable( false );
+    }
+
+
+    /**
+     * Sets the current element to the entry of an int ID. An int ID which has been
+     * released since the candidates have been gathered is skipped.
+     *
+     * @param id The int ID, or -1
+     * @return <code>true</code> if the int ID has an entry
+     */
+    private boolean moveTo( int id )
+    {
+        String uuid = id < 0 ? null : entryIdMap.getUuid( id );
+
+        if ( uuid == null )
+        {
+            return false;
+        }
+
+        current = new IndexEntry<>();
+        current.setId( uuid );
+
+        return true;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public IndexEntry<String, String> get() throws CursorException
+    {
+        checkNotClosed();
+
+        if ( available() )
+        {
+            return current;
+        }
+
+        throw new InvalidCursorPositionException( I18n.err( I18n.ERR_708 ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Closing EntryIdBitmapCursor {}", this );
+        }
+
+        super.close();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close( Exception cause ) throws IOException
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Closing EntryIdBitmapCursor {}", this );
+        }
+
+        super.close( cause );
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString( String tabs )
+    {
+        return tabs + "EntryIdBitmapCursor (" + candidates + ")\n";
+    }
+}
@@ -0,0 +1,614 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+
+/**
+ * Maps the entry IDs (the entryUUID of the entries) of a partition to dense int IDs,
+ * so that a set of candidates can be stored in an {@link EntryIdBitmap}. An int ID is
+ * given to an entry the first time it is needed, and is released when the entry is
+ * deleted : the lowest released int ID is given to the next new entry, so the map
+ * never holds much more than the partition entries, and the tables shrink when the
+ * highest int IDs are released.
+ * <p>
+ * A search holds int IDs in its candidates until its cursor is closed : it registers as a
+ * reader (see {@link #openReader()}) before getting any int ID. A released int ID is not
+ * given to another entry until all the readers registered before the release are closed,
+ * so a search never mistakes a new entry for one of its candidates : it just does not
+ * find the deleted entry anymore. A search which reads the ID of an entry being deleted
+ * may give it a new int ID, which is kept until the entry ID is released again.
+ * <p>
+ * The entryUUIDs are stored as two longs, in an open addressing hash table, which
+ * costs around 24 bytes per entry. The few IDs which aren't in the canonical UUID
+ * format are kept in a plain map. The tables are read without locking, with an
+ * optimistic read which is validated afterward : only the creation and the release
+ * of int IDs take a lock.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class EntryIdMap
+{
+    /** The initial number of IDs we can store */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** The most significant bits of the UUIDs, per int ID */
+    private long[] msbs = new long[INITIAL_CAPACITY];
+
+    /** The least significant bits of the UUIDs, per int ID */
+    private long[] lsbs = new long[INITIAL_CAPACITY];
+
+    /** The hash table, containing the int ID + 1 of the UUIDs, 0 for an empty slot */
+    private int[] slots = new int[INITIAL_CAPACITY * 2];
+
+    /** The IDs which aren't canonical UUIDs */
+    private final Map<String, Integer> otherIds = new ConcurrentHashMap<>();
+
+    /** The reverse of otherIds */
+    private final Map<Integer, String> otherUuids = new ConcurrentHashMap<>();
+
+    /** The released int IDs, below the limit */
+    private final BitSet released = new BitSet();
+
+    /** The highest given int ID + 1 */
+    private int limit;
+
+    /** The number of int IDs in use */
+    private int size;
+
+    /** Protects the tables */
+    private final StampedLock lock = new StampedLock();
+
+    /** The number of releases done so far. It's also the lock of the readers */
+    private long epoch;
+
+    /** The number of open readers, per epoch they have been opened in */
+    private final TreeMap<Long, Integer> readers = new TreeMap<>();
+
+    /** The released int IDs not yet reusable, per epoch they have been released in */
+    private final TreeMap<Long, Integer> pending = new TreeMap<>();
+
+
+    /**
+     * Creates an empty EntryIdMap
+     */
+    public EntryIdMap()
+    {
+    }
+
+
+    /**
+     * Gets the int ID of an entry, creating it if the entry does not have one yet.
+     *
+     * @param uuid The entry ID
+     * @return The int ID
+     */
+    public int getId( String uuid )
+    {
+        UUID parsed = parse( uuid );
+
+        if ( parsed == null )
+        {
+            Integer id = otherIds.get( uuid );
+
+            if ( id != null )
+            {
+                return id;
+            }
+        }
+        else
+        {
+            long stamp = lock.tryOptimisticRead();
+            int id = lookup( parsed.getMostSignificantBits(), parsed.getLeastSignificantBits() );
+
+            if ( ( id >= 0 ) && lock.validate( stamp ) )
+            {
+                return id;
+            }
+        }
+
+        long stamp = lock.writeLock();
+
+        try
+        {
+            // Check again, another thread may have created it
+            int id = parsed == null ? otherIds.getOrDefault( uuid, -1 )
+                : lookup( parsed.getMostSignificantBits(), parsed.getLeastSignificantBits() );
+
+            if ( id >= 0 )
+            {
+                return id;
+            }
+
+            id = released.nextSetBit( 0 );
+
+            if ( id < 0 )
+            {
+                id = limit;
+                limit++;
+                ensureCapacity( limit );
+            }
+            else
+            {
+                released.clear( id );
+            }
+
+            if ( parsed == null )
+            {
+                otherUuids.put( id, uuid );
+                otherIds.put( uuid, id );
+            }
+            else
+            {
+                msbs[id] = parsed.getMostSignificantBits();
+                lsbs[id] = parsed.getLeastSignificantBits();
+                insert( slots, id );
+            }
+
+            size++;
+
+            return id;
+        }
+        finally
+        {
+            lock.unlockWrite( stamp );
+        }
+    }
+
+
+    /**
+     * Gets the entry ID associated with an int ID.
+     *
+     * @param id The int ID
+     * @return The entry ID, or null if the int ID is unknown or has been released
+     */
+    public String getUuid( int id )
+    {
+        if ( id < 0 )
+        {
+            return null;
+        }
+
+        String uuid = otherUuids.isEmpty() ? null : otherUuids.get( id );
+
+        if ( uuid != null )
+        {
+            return uuid;
+        }
+
+        long stamp = lock.tryOptimisticRead();
+        uuid = toUuid( id );
+
+        if ( lock.validate( stamp ) )
+        {
+            return uuid;
+        }
+
+        stamp = lock.readLock();
+
+        try
+        {
+            return toUuid( id );
+        }
+        finally
+        {
+            lock.unlockRead( stamp );
+        }
+    }
+
+
+    /**
+     * Releases the int ID of an entry, which has been deleted. The int ID will be
+     * given to another entry.
+     *
+     * @param uuid The entry ID
+     */
+    public void release( String uuid )
+    {
+        UUID parsed = parse( uuid );
+        long stamp = lock.writeLock();
+
+        try
+        {
+            int id;
+
+            if ( parsed == null )
+            {
+                Integer otherId = otherIds.remove( uuid );
+
+                if ( otherId == null )
+                {
+                    return;
+                }
+
+                id = otherId;
+                otherUuids.remove( id );
+            }
+            else
+            {
+                id = delete( parsed.getMostSignificantBits(), parsed.getLeastSignificantBits() );
+
+                if ( id < 0 )
+                {
+                    return;
+                }
+
+                msbs[id] = 0L;
+                lsbs[id] = 0L;
+            }
+
+            size--;
+
+            synchronized ( readers )
+            {
+                epoch++;
+
+                if ( !readers.isEmpty() )
+                {
+                    // The older readers may hold this int ID
+                    pending.put( epoch, id );
+
+                    return;
+                }
+            }
+
+            free( id );
+        }
+        finally
+        {
+            lock.unlockWrite( stamp );
+        }
+    }
+
+
+    /**
+     * Makes a released int ID available to the new entries. This must be called while
+     * holding the write lock.
+     */
+    private void free( int id )
+    {
+        released.set( id );
+
+        // Lower the limit as much as possible, so that the tables can shrink
+        while ( ( limit > 0 ) && released.get( limit - 1 ) )
+        {
+            limit--;
+            released.clear( limit );
+        }
+
+        shrink();
+    }
+
+
+    /**
+     * Registers a reader, which will hold some int IDs : they won't be given to
+     * another entry until the reader is closed, even if they are released.
+     *
+     * @return The reader, to close with {@link #closeReader(long)}
+     */
+    public long openReader()
+    {
+        synchronized ( readers )
+        {
+            readers.merge( epoch, 1, Integer::sum );
+
+            return epoch;
+        }
+    }
+
+
+    /**
+     * Unregisters a reader. The int IDs released since it has been opened can be given
+     * to the new entries, if no older reader is open.
+     *
+     * @param reader The value returned by {@link #openReader()}
+     */
+    public void closeReader( long reader )
+    {
+        List<Integer> reusable = new ArrayList<>();
+
+        synchronized ( readers )
+        {
+            readers.computeIfPresent( reader, ( e, count ) -> ( count > 1 ) ? count - 1 : null );
+
+            // An int ID released in an epoch is reusable when no reader opened before is open
+            long oldest = readers.isEmpty() ? Long.MAX_VALUE : readers.firstKey();
+
+            while ( !pending.isEmpty() && ( pending.firstKey() <= oldest ) )
+            {
+                reusable.add( pending.pollFirstEntry().getValue() );
+            }
+        }
+
+        if ( !reusable.isEmpty() )
+        {
+            long stamp = lock.writeLock();
+
+            try
+            {
+                for ( int id : reusable )
+                {
+                    free( id );
+                }
+            }
+            finally
+            {
+                lock.unlockWrite( stamp );
+            }
+        }
+    }
+
+
+    /**
+     * @return The number of int IDs in use
+     */
+    public int size()
+    {
+        long stamp = lock.readLock();
+
+        try
+        {
+            return size;
+        }
+        finally
+        {
+            lock.unlockRead( stamp );
+        }
+    }
+
+
+    /**
+     * Forgets all the int IDs. Must not be called while a search is using them.
+     */
+    public void clear()
+    {
+        long stamp = lock.writeLock();
+
+        try
+        {
+            msbs = new long[INITIAL_CAPACITY];
+            lsbs = new long[INITIAL_CAPACITY];
+            slots = new int[INITIAL_CAPACITY * 2];
+            otherIds.clear();
+            otherUuids.clear();
+            released.clear();
+            limit = 0;
+            size = 0;
+
+            synchronized ( readers )
+            {
+                pending.clear();
+            }
+        }
+        finally
+        {
+            lock.unlockWrite( stamp );
+        }
+    }
+
+
+    /**
+     * Parses an entry ID, returning null if it's not a canonical UUID which toString()
+     * gives back unchanged.
+     */
+    private static UUID parse( String uuid )
+    {
+        if ( ( uuid == null ) || ( uuid.length() != 36 ) )
+        {
+            return null;
+        }
+
+        try
+        {
+            UUID parsed = UUID.fromString( uuid );
+
+            return parsed.toString().equals( uuid ) ? parsed : null;
+        }
+        catch ( IllegalArgumentException iae )
+        {
+            return null;
+        }
+    }
+
+
+    /**
+     * @return The int ID of the UUID, or -1 if it has none. May be called during an
+     * optimistic read, so the tables are checked as if they could be inconsistent
+     */
+    private int lookup( long msb, long lsb )
+    {
+        long[] currentMsbs = msbs;
+        long[] currentLsbs = lsbs;
+        int[] currentSlots = slots;
+        int mask = currentSlots.length - 1;
+        int pos = hash( msb, lsb ) & mask;
+
+        for ( int i = 0; i < currentSlots.length; i++ )
+        {
+            int id = currentSlots[pos] - 1;
+
+            if ( ( id < 0 ) || ( id >= currentMsbs.length ) || ( id >= currentLsbs.length ) )
+            {
+                return -1;
+            }
+
+            if ( ( currentMsbs[id] == msb ) && ( currentLsbs[id] == lsb ) )
+            {
+                return id;
+            }
+
+            pos = ( pos + 1 ) & mask;
+        }
+
+        return -1;
+    }
+
+
+    /**
+     * @return The UUID of an int ID, or null if it's not in use. May be called during
+     * an optimistic read
+     */
+    private String toUuid( int id )
+    {
+        long[] currentMsbs = msbs;
+        long[] currentLsbs = lsbs;
+
+        if ( ( id >= limit ) || ( id >= currentMsbs.length ) || ( id >= currentLsbs.length ) )
+        {
+            return null;
+        }
+
+        long msb = currentMsbs[id];
+        long lsb = currentLsbs[id];
+
+        // A released int ID is not in the hash table
+        return lookup( msb, lsb ) == id ? new UUID( msb, lsb ).toString() : null;
+    }
+
+
+    /**
+     * Adds an int ID in a hash table, using linear probing
+     */
+    private void insert( int[] table, int id )
+    {
+        int mask = table.length - 1;
+        int pos = hash( msbs[id], lsbs[id] ) & mask;
+
+        while ( table[pos] != 0 )
+        {
+            pos = ( pos + 1 ) & mask;
+        }
+
+        table[pos] = id + 1;
+    }
+
+
+    /**
+     * Removes a UUID from the hash table, moving back the following slots which
+     * would not be found anymore.
+     *
+     * @return The int ID of the removed UUID, or -1 if it was not present
+     */
+    private int delete( long msb, long lsb )
+    {
+        int mask = slots.length - 1;
+        int hole = hash( msb, lsb ) & mask;
+        int id;
+
+        while ( true )
+        {
+            id = slots[hole] - 1;
+
+            if ( id < 0 )
+            {
+                return -1;
+            }
+
+            if ( ( msbs[id] == msb ) && ( lsbs[id] == lsb ) )
+            {
+                break;
+            }
+
+            hole = ( hole + 1 ) & mask;
+        }
+
+        slots[hole] = 0;
+
+        for ( int pos = ( hole + 1 ) & mask; slots[pos] != 0; pos = ( pos + 1 ) & mask )
+        {
+            int other = slots[pos] - 1;
+            int home = hash( msbs[other], lsbs[other] ) & mask;
+
+            // The slot can move back if the hole is between its home and its position
+            if ( ( ( pos - home ) & mask ) >= ( ( pos - hole ) & mask ) )
+            {
+                slots[hole] = slots[pos];
+                slots[pos] = 0;
+                hole = pos;
+            }
+        }
+
+        return id;
+    }
+
+
+    /**
+     * Grows the tables so that they can store a given number of IDs. The hash table is
+     * kept at most half full.
+     */
+    private void ensureCapacity( int capacity )
+    {
+        if ( capacity > msbs.length )
+        {
+            resize( msbs.length * 2 );
+        }
+    }
+
+
+    /**
+     * Halves the tables when the int IDs in use only fill a quarter of them.
+     */
+    private void shrink()
+    {
+        if ( ( msbs.length > INITIAL_CAPACITY ) && ( limit <= msbs.length / 4 ) )
+        {
+            resize( msbs.length / 2 );
+        }
+    }
+
+
+    private void resize( int newCapacity )
+    {
+        long[] newMsbs = Arrays.copyOf( msbs, newCapacity );
+        long[] newLsbs = Arrays.copyOf( lsbs, newCapacity );
+        int[] newSlots = new int[newCapacity * 2];
+
+        msbs = newMsbs;
+        lsbs = newLsbs;
+
+        for ( int id = 0; id < limit; id++ )
+        {
+            if ( !released.get( id ) && !otherUuids.containsKey( id ) )
+            {
+                insert( newSlots, id );
+            }
+        }
+
+        slots = newSlots;
+    }
+
+
+    private static int hash( long msb, long lsb )
+    {
+        long hash = ( msb ^ lsb ) * 0x9E3779B97F4A7C15L;
+
+        return ( int ) ( hash >>> 32 );
+    }
+}
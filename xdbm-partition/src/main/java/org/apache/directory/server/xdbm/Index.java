@@ -345,4 +345,22 @@ public interface Index<K, E>
      * @return true if the index has a reverse table
      */
     boolean hasReverse();
+
+
+    /**
+     * Tells if the partition also keeps a {@link SubstringIndex} on the indexed attribute,
+     * used to answer the substring filters without an initial component.
+     *
+     * @return true if the attribute is also indexed for the substring filters
+     */
+    boolean isSubstringIndexed();
+
+
+    /**
+     * Sets the flag telling if the partition also keeps a {@link SubstringIndex} on the
+     * indexed attribute.
+     *
+     * @param substringIndexed true if the attribute is also indexed for the substring filters
+     */
+    void setSubstringIndexed( boolean substringIndexed );
 }
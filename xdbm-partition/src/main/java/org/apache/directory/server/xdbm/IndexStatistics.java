@@ -0,0 +1,418 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+
+
+/**
+ * The statistics of an index, used by the optimizer to estimate the number of
+ * candidates of a filter without reading the index. We store :
+ * <ul>
+ *   <li>the number of &lt;key, entry ID&gt; tuples</li>
+ *   <li>the number of distinct keys</li>
+ *   <li>an equi-depth histogram of the keys, when they are Strings : the keys
+ *   found every count/HISTOGRAM_SIZE tuples. A key which is present more than
+ *   once in the histogram is a frequent key.</li>
+ * </ul>
+ * The statistics are computed by a full scan of the index, and are immutable : they
+ * are replaced by new ones when they are too old.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class IndexStatistics
+{
+    /** The number of buckets in the histogram */
+    public static final int HISTOGRAM_SIZE = 64;
+
+    /** The maximum length of a key stored in the histogram */
+    private static final int MAX_KEY_LENGTH = 256;
+
+    /** The OID of the indexed attribute */
+    private final String attributeId;
+
+    /** The number of tuples */
+    private final long count;
+
+    /** The number of distinct keys */
+    private final long distinctKeys;
+
+    /** The histogram boundaries, in the index order, or null if the keys aren't Strings */
+    private final String[] boundaries;
+
+    /** The number of partition writes when the statistics were computed */
+    private final long writes;
+
+
+    /**
+     * Creates a new IndexStatistics instance
+     *
+     * @param attributeId The OID of the indexed attribute
+     * @param count The number of tuples
+     * @param distinctKeys The number of distinct keys
+     * @param boundaries The histogram boundaries, or null
+     * @param writes The number of partition writes when the statistics were computed
+     */
+    public IndexStatistics( String attributeId, long count, long distinctKeys, String[] boundaries, long writes )
+    {
+        this.attributeId = attributeId;
+        this.count = count;
+        this.distinctKeys = distinctKeys;
+        this.boundaries = boundaries;
+        this.writes = writes;
+    }
+
+
+    /**
+     * Computes the statistics of an index, reading all its tuples.
+     *
+     * @param partitionTxn The transaction to use
+     * @param index The index
+     * @param writes The current number of partition writes
+     * @return The index statistics
+     * @throws LdapException If the index can't be read
+     */
+    public static IndexStatistics compute( PartitionTxn partitionTxn, Index<?, String> index, long writes )
+        throws LdapException
+    {
+        long expected = index.count( partitionTxn );
+        long step = Math.max( 1L, expected / HISTOGRAM_SIZE );
+        List<String> boundaries = new ArrayList<>( HISTOGRAM_SIZE + 1 );
+        boolean stringKeys = true;
+        long count = 0L;
+        long distinctKeys = 0L;
+        Object previous = null;
+        Object key = null;
+        boolean lastAdded = false;
+
+        try ( Cursor<? extends IndexEntry<?, String>> cursor = index.forwardCursor( partitionTxn ) )
+        {
+            while ( cursor.next() )
+            {
+                key = cursor.get().getKey();
+
+                if ( ( count == 0L ) || !Objects.equals( key, previous ) )
+                {
+                    distinctKeys++;
+                    previous = key;
+                }
+
+                lastAdded = false;
+
+                if ( stringKeys && ( count % step == 0L ) && ( boundaries.size() < HISTOGRAM_SIZE ) )
+                {
+                    if ( key instanceof String )
+                    {
+                        boundaries.add( truncate( ( String ) key ) );
+                        lastAdded = true;
+                    }
+                    else if ( key != null )
+                    {
+                        stringKeys = false;
+                    }
+                }
+
+                count++;
+            }
+        }
+        catch ( CursorException | IOException e )
+        {
+            throw new LdapOtherException( e.getMessage(), e );
+        }
+
+        // The last key closes the last bucket
+        if ( stringKeys && !lastAdded && ( key instanceof String ) )
+        {
+            boundaries.add( truncate( ( String ) key ) );
+        }
+
+        String[] histogram = null;
+
+        if ( stringKeys && ( boundaries.size() > 1 ) )
+        {
+            histogram = boundaries.toArray( new String[0] );
+        }
+
+        return new IndexStatistics( index.getAttributeId(), count, distinctKeys, histogram, writes );
+    }
+
+
+    private static String truncate( String key )
+    {
+        return key.length() > MAX_KEY_LENGTH ? key.substring( 0, MAX_KEY_LENGTH ) : key;
+    }
+
+
+    /**
+     * @return The OID of the indexed attribute
+     */
+    public String getAttributeId()
+    {
+        return attributeId;
+    }
+
+
+    /**
+     * @return The number of tuples in the index
+     */
+    public long getCount()
+    {
+        return count;
+    }
+
+
+    /**
+     * @return The number of distinct keys in the index
+     */
+    public long getDistinctKeys()
+    {
+        return distinctKeys;
+    }
+
+
+    /**
+     * @return The number of partition writes when the statistics were computed
+     */
+    public long getWrites()
+    {
+        return writes;
+    }
+
+
+    /**
+     * @return <code>true</code> if we have a histogram of the keys
+     */
+    public boolean hasHistogram()
+    {
+        return boundaries != null;
+    }
+
+
+    /**
+     * Estimates the number of tuples having a given key. We use the histogram for the
+     * frequent keys, and the average number of tuples per key for the others.
+     *
+     * @param key The normalized key
+     * @param comparator The index keys comparator, or null if the histogram can't be used
+     * @return The estimated number of tuples, at least 1
+     */
+    public long estimateEquality( String key, Comparator<String> comparator )
+    {
+        long estimate = distinctKeys == 0L ? 1L : ( count + distinctKeys - 1L ) / distinctKeys;
+
+        if ( ( boundaries != null ) && ( comparator != null ) )
+        {
+            int occurrences = countLower( key, comparator, true ) - countLower( key, comparator, false );
+
+            if ( occurrences > 1 )
+            {
+                estimate = Math.max( estimate, ( occurrences - 1L ) * getDepth() );
+            }
+        }
+
+        return Math.max( 1L, estimate );
+    }
+
+
+    /**
+     * Estimates the number of tuples having a key greater or equal to a given key.
+     *
+     * @param key The normalized key
+     * @param comparator The index keys comparator
+     * @return The estimated number of tuples, at least 1
+     */
+    public long estimateGreaterOrEqual( String key, Comparator<String> comparator )
+    {
+        return Math.max( 1L, count - estimateBefore( key, comparator, false ) );
+    }
+
+
+    /**
+     * Estimates the number of tuples having a key lower or equal to a given key.
+     *
+     * @param key The normalized key
+     * @param comparator The index keys comparator
+     * @return The estimated number of tuples, at least 1
+     */
+    public long estimateLessOrEqual( String key, Comparator<String> comparator )
+    {
+        return Math.max( 1L, estimateBefore( key, comparator, true ) );
+    }
+
+
+    /**
+     * Estimates the number of tuples having a key in [from, to].
+     *
+     * @param from The lower bound
+     * @param to The upper bound
+     * @param comparator The index keys comparator
+     * @return The estimated number of tuples, at least 1
+     */
+    public long estimateRange( String from, String to, Comparator<String> comparator )
+    {
+        return Math.max( 1L, estimateBefore( to, comparator, true ) - estimateBefore( from, comparator, false ) );
+    }
+
+
+    /**
+     * Estimates the number of tuples whose key is lower than (or equal to, if inclusive is set)
+     * a key, interpolating in the bucket containing it.
+     */
+    private long estimateBefore( String key, Comparator<String> comparator, boolean inclusive )
+    {
+        if ( ( boundaries == null ) || ( comparator == null ) )
+        {
+            // No histogram : we can't tell
+            return count / 2L;
+        }
+
+        int lower = countLower( key, comparator, inclusive );
+
+        if ( lower == 0 )
+        {
+            return 0L;
+        }
+
+        if ( lower == boundaries.length )
+        {
+            return count;
+        }
+
+        // The key is in the bucket [lower - 1, lower] : assume it's in the middle
+        return Math.min( count, ( long ) ( ( lower - 0.5d ) * getDepth() ) );
+    }
+
+
+    /**
+     * @return the number of boundaries lower than (or equal to) a key
+     */
+    private int countLower( String key, Comparator<String> comparator, boolean inclusive )
+    {
+        int low = 0;
+        int high = boundaries.length;
+
+        while ( low < high )
+        {
+            int mid = ( low + high ) >>> 1;
+            int cmp = comparator.compare( boundaries[mid], key );
+
+            if ( ( cmp < 0 ) || ( inclusive && ( cmp == 0 ) ) )
+            {
+                low = mid + 1;
+            }
+            else
+            {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+
+    /**
+     * @return The number of tuples in a bucket
+     */
+    private long getDepth()
+    {
+        return Math.max( 1L, count / ( boundaries.length - 1L ) );
+    }
+
+
+    /**
+     * Writes the statistics.
+     *
+     * @param out The output to write to
+     * @throws IOException If the write failed
+     */
+    public void write( DataOutput out ) throws IOException
+    {
+        out.writeUTF( attributeId );
+        out.writeLong( count );
+        out.writeLong( distinctKeys );
+
+        if ( boundaries == null )
+        {
+            out.writeInt( -1 );
+        }
+        else
+        {
+            out.writeInt( boundaries.length );
+
+            for ( String boundary : boundaries )
+            {
+                out.writeUTF( boundary );
+            }
+        }
+    }
+
+
+    /**
+     * Reads statistics written by {@link #write(DataOutput)}.
+     *
+     * @param in The input to read from
+     * @return The read statistics, with a writes counter set to 0
+     * @throws IOException If the read failed
+     */
+    public static IndexStatistics read( DataInput in ) throws IOException
+    {
+        String attributeId = in.readUTF();
+        long count = in.readLong();
+        long distinctKeys = in.readLong();
+        int nbBoundaries = in.readInt();
+        String[] boundaries = null;
+
+        if ( nbBoundaries >= 0 )
+        {
+            boundaries = new String[nbBoundaries];
+
+            for ( int i = 0; i < nbBoundaries; i++ )
+            {
+                boundaries[i] = in.readUTF();
+            }
+        }
+
+        return new IndexStatistics( attributeId, count, distinctKeys, boundaries, 0L );
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return "IndexStatistics[" + attributeId + ", " + count + " tuples, " + distinctKeys + " keys, "
+            + ( boundaries == null ? 0 : boundaries.length ) + " boundaries]";
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The statistics of the indexes of a partition. The number of write operations
+ * applied to the partition is counted, and an index statistics is considered as
+ * too old when the partition has seen more writes since it has been computed than
+ * STALE_RATIO times the index size, or when the index size has drifted as much.
+ * <p>
+ * The persistent partitions save the statistics in a file, so that they are available
+ * as soon as the partition is started.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PartitionStatistics
+{
+    /** A logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( PartitionStatistics.class );
+
+    /** The name of the file storing the statistics */
+    public static final String STATISTICS_FILE = "index-statistics.dat";
+
+    /** The file format version */
+    private static final int VERSION = 1;
+
+    /** The ratio of changes which makes the statistics of an index too old */
+    private static final double STALE_RATIO = 0.2d;
+
+    /** The minimal number of changes before the statistics of an index are too old */
+    private static final long MIN_CHANGES = 16L;
+
+    /** The statistics, per attribute OID */
+    private final Map<String, IndexStatistics> statistics = new ConcurrentHashMap<>();
+
+    /** The number of writes applied to the partition */
+    private final AtomicLong writes = new AtomicLong();
+
+
+    /**
+     * Creates an empty PartitionStatistics
+     */
+    public PartitionStatistics()
+    {
+    }
+
+
+    /**
+     * Records a write operation on the partition.
+     */
+    public void recordWrite()
+    {
+        writes.incrementAndGet();
+    }
+
+
+    /**
+     * @param attributeId The indexed attribute OID
+     * @return The statistics of the index, or null if we don't have any
+     */
+    public IndexStatistics get( String attributeId )
+    {
+        return statistics.get( attributeId );
+    }
+
+
+    /**
+     * Tells if the statistics of an index have to be computed again.
+     *
+     * @param partitionTxn The transaction to use
+     * @param index The index
+     * @return <code>true</code> if the index has no statistics, or if they are too old
+     * @throws LdapException If the index can't be read
+     */
+    public boolean isStale( PartitionTxn partitionTxn, Index<?, String> index ) throws LdapException
+    {
+        IndexStatistics indexStatistics = statistics.get( index.getAttributeId() );
+
+        if ( indexStatistics == null )
+        {
+            return true;
+        }
+
+        long count = indexStatistics.getCount();
+        long changes = Math.max( writes.get() - indexStatistics.getWrites(),
+            Math.abs( index.count( partitionTxn ) - count ) );
+
+        return changes > Math.max( MIN_CHANGES, ( long ) ( count * STALE_RATIO ) );
+    }
+
+
+    /**
+     * Computes the statistics of an index again.
+     *
+     * @param partitionTxn The transaction to use
+     * @param index The index
+     * @return The new statistics
+     * @throws LdapException If the index can't be read
+     */
+    public IndexStatistics refresh( PartitionTxn partitionTxn, Index<?, String> index ) throws LdapException
+    {
+        IndexStatistics indexStatistics = IndexStatistics.compute( partitionTxn, index, writes.get() );
+        statistics.put( index.getAttributeId(), indexStatistics );
+
+        LOG.debug( "Computed {}", indexStatistics );
+
+        return indexStatistics;
+    }
+
+
+    /**
+     * Removes all the statistics.
+     */
+    public void clear()
+    {
+        statistics.clear();
+    }
+
+
+    /**
+     * Loads the statistics from a file. A missing or unreadable file is ignored : the
+     * statistics will be computed again.
+     *
+     * @param file The file to read
+     */
+    public void load( File file )
+    {
+        if ( !file.exists() )
+        {
+            return;
+        }
+
+        try ( InputStream is = Files.newInputStream( file.toPath() );
+            DataInputStream in = new DataInputStream( new BufferedInputStream( is ) ) )
+        {
+            if ( in.readInt() != VERSION )
+            {
+                LOG.info( "Ignoring the index statistics in {}, written with another version", file );
+
+                return;
+            }
+
+            int nbStatistics = in.readInt();
+
+            for ( int i = 0; i < nbStatistics; i++ )
+            {
+                IndexStatistics indexStatistics = IndexStatistics.read( in );
+                statistics.put( indexStatistics.getAttributeId(), indexStatistics );
+            }
+        }
+        catch ( IOException ioe )
+        {
+            LOG.warn( "Cannot read the index statistics in {} : {}", file, ioe.getMessage() );
+            statistics.clear();
+        }
+    }
+
+
+    /**
+     * Saves the statistics in a file. The file is first written under a temporary name,
+     * then renamed.
+     *
+     * @param file The file to write
+     * @throws IOException If the file can't be written
+     */
+    public synchronized void save( File file ) throws IOException
+    {
+        File tmpFile = new File( file.getParentFile(), file.getName() + ".tmp" );
+
+        try ( OutputStream os = Files.newOutputStream( tmpFile.toPath() );
+            DataOutputStream out = new DataOutputStream( new BufferedOutputStream( os ) ) )
+        {
+            // Copy the values, the map may be modified while we write it
+            IndexStatistics[] values = statistics.values().toArray( new IndexStatistics[0] );
+
+            out.writeInt( VERSION );
+            out.writeInt( values.length );
+
+            for ( IndexStatistics indexStatistics : values )
+            {
+                indexStatistics.write( out );
+            }
+        }
+
+        Files.move( tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+    }
+}
@@ -330,6 +330,33 @@ public interface Store
     String getParentId( PartitionTxn partitionTxn, String childId ) throws LdapException;
 
 
+    /**
+     * @return The mapping between the entry IDs and the dense int IDs used to store the
+     * search candidates
+     */
+    EntryIdMap getEntryIdMap();
+
+
+    /**
+     * Gets the last computed statistics of an index. They may not be exact anymore,
+     * and are only used to estimate the cost of a search.
+     *
+     * @param attributeId The OID of the indexed attribute
+     * @return The index statistics, or null if they haven't been computed yet
+     */
+    IndexStatistics getIndexStatistics( String attributeId );
+
+
+    /**
+     * Gets the substring index of an attribute, if its user index is flagged as
+     * substring indexed.
+     *
+     * @param attributeType The indexed attribute
+     * @return The substring index, or null if there is none
+     */
+    SubstringIndex getSubstringIndex( AttributeType attributeType );
+
+
     /**
      * Gets the total count of entries within this store.
      *
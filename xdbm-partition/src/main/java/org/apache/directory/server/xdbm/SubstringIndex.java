@@ -0,0 +1,498 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.filter.SubstringNode;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.MatchingRule;
+import org.apache.directory.api.ldap.model.schema.Normalizer;
+import org.apache.directory.api.ldap.model.schema.PrepareString;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+
+
+/**
+ * An in-memory trigram index on the normalized values of an attribute, used to answer
+ * the substring filters which have no initial component, like (cn=*smith*), without
+ * reading all the keys of the attribute index. For each sequence of 3 characters
+ * found in the values, we keep the set of the entries having a value containing it,
+ * as an {@link EntryIdBitmap}.
+ * <p>
+ * The grams are computed on the parts of the values which don't contain any space,
+ * so that the way the spaces are normalized in the filter and in the values does
+ * not matter. A filter component is then found in the entries having all its grams,
+ * which is a superset of the matching entries : the candidates must be checked by the
+ * substring evaluator.
+ * <p>
+ * The index is built when the partition is started, from the attribute index, and is
+ * updated when the entries are written. This class is thread safe.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SubstringIndex
+{
+    /** The number of characters in a gram */
+    public static final int GRAM_SIZE = 3;
+
+    /** The OID of the indexed attribute */
+    private final String attributeId;
+
+    /** The entries containing each gram */
+    private final Map<String, EntryIdBitmap> postings = new HashMap<>();
+
+    /** The lock protecting the postings */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+
+    /**
+     * Creates a new SubstringIndex instance
+     *
+     * @param attributeId The OID of the indexed attribute
+     */
+    public SubstringIndex( String attributeId )
+    {
+        this.attributeId = attributeId;
+    }
+
+
+    /**
+     * @return The OID of the indexed attribute
+     */
+    public String getAttributeId()
+    {
+        return attributeId;
+    }
+
+
+    /**
+     * Builds the index from the keys of an attribute index.
+     *
+     * @param partitionTxn The transaction to use
+     * @param index The attribute index
+     * @param entryIdMap The mapping between the entry IDs and the dense IDs
+     * @throws LdapException If the index can't be read
+     */
+    public void build( PartitionTxn partitionTxn, Index<?, String> index, EntryIdMap entryIdMap )
+        throws LdapException
+    {
+        Set<String> grams = new HashSet<>();
+
+        lock.writeLock().lock();
+
+        try ( Cursor<? extends IndexEntry<?, String>> cursor = index.forwardCursor( partitionTxn ) )
+        {
+            postings.clear();
+
+            while ( cursor.next() )
+            {
+                IndexEntry<?, String> indexEntry = cursor.get();
+
+                if ( indexEntry.getKey() instanceof String )
+                {
+                    grams.clear();
+                    addGrams( ( String ) indexEntry.getKey(), grams );
+                    addAll( entryIdMap.getId( indexEntry.getId() ), grams );
+                }
+            }
+        }
+        catch ( CursorException | IOException e )
+        {
+            throw new LdapOtherException( e.getMessage(), e );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Adds the grams of an entry.
+     *
+     * @param id The entry dense ID
+     * @param grams The grams of the entry values
+     */
+    public void add( int id, Set<String> grams )
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            addAll( id, grams );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Removes the grams of an entry.
+     *
+     * @param id The entry dense ID
+     * @param grams The grams of the entry values
+     */
+    public void remove( int id, Set<String> grams )
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            removeAll( id, grams, null );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Updates the grams of a modified entry : the grams which are not present anymore
+     * are removed, the new ones are added.
+     *
+     * @param id The entry dense ID
+     * @param oldGrams The grams of the values before the modification
+     * @param newGrams The grams of the values after the modification
+     */
+    public void update( int id, Set<String> oldGrams, Set<String> newGrams )
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            removeAll( id, oldGrams, newGrams );
+            addAll( id, newGrams );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Gets the entries having all the given grams.
+     *
+     * @param grams The grams to look for
+     * @return The candidate entries, or null if no gram was given
+     */
+    public EntryIdBitmap lookup( Collection<String> grams )
+    {
+        if ( grams.isEmpty() )
+        {
+            return null;
+        }
+
+        lock.readLock().lock();
+
+        try
+        {
+            EntryIdBitmap[] lists = getPostings( grams );
+            EntryIdBitmap candidates = new EntryIdBitmap();
+
+            if ( lists == null )
+            {
+                // One of the grams isn't present in any value
+                return candidates;
+            }
+
+            // Start with the smallest list, so that the intersection is cheap
+            int smallest = 0;
+
+            for ( int i = 1; i < lists.length; i++ )
+            {
+                if ( lists[i].cardinality() < lists[smallest].cardinality() )
+                {
+                    smallest = i;
+                }
+            }
+
+            candidates.or( lists[smallest] );
+
+            for ( int i = 0; ( i < lists.length ) && !candidates.isEmpty(); i++ )
+            {
+                if ( i != smallest )
+                {
+                    candidates.and( lists[i] );
+                }
+            }
+
+            return candidates;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Estimates the number of entries having all the given grams, using the size of
+     * the smallest postings list.
+     *
+     * @param grams The grams to look for
+     * @return The estimated number of candidates, or -1 if no gram was given
+     */
+    public long estimate( Collection<String> grams )
+    {
+        if ( grams.isEmpty() )
+        {
+            return -1L;
+        }
+
+        lock.readLock().lock();
+
+        try
+        {
+            EntryIdBitmap[] lists = getPostings( grams );
+
+            if ( lists == null )
+            {
+                return 0L;
+            }
+
+            long estimate = Long.MAX_VALUE;
+
+            for ( EntryIdBitmap list : lists )
+            {
+                estimate = Math.min( estimate, list.cardinality() );
+            }
+
+            return estimate;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * @return The number of distinct grams
+     */
+    public int size()
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            return postings.size();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * @return The postings lists of the grams, or null if one of them is missing
+     */
+    private EntryIdBitmap[] getPostings( Collection<String> grams )
+    {
+        EntryIdBitmap[] lists = new EntryIdBitmap[grams.size()];
+        int i = 0;
+
+        for ( String gram : grams )
+        {
+            EntryIdBitmap list = postings.get( gram );
+
+            if ( list == null )
+            {
+                return null;
+            }
+
+            lists[i++] = list;
+        }
+
+        return lists;
+    }
+
+
+    private void addAll( int id, Set<String> grams )
+    {
+        for ( String gram : grams )
+        {
+            postings.computeIfAbsent( gram, g -> new EntryIdBitmap() ).add( id );
+        }
+    }
+
+
+    private void removeAll( int id, Set<String> grams, Set<String> kept )
+    {
+        for ( String gram : grams )
+        {
+            if ( ( kept != null ) && kept.contains( gram ) )
+            {
+                continue;
+            }
+
+            EntryIdBitmap list = postings.get( gram );
+
+            if ( ( list != null ) && list.remove( id ) && list.isEmpty() )
+            {
+                postings.remove( gram );
+            }
+        }
+    }
+
+
+    /**
+     * Adds the grams of a normalized value to a set. The value is split on the spaces,
+     * and each part gives the sequences of GRAM_SIZE characters it contains.
+     *
+     * @param value The normalized value
+     * @param grams The set to add the grams to
+     */
+    public static void addGrams( String value, Set<String> grams )
+    {
+        int length = value.length();
+        int start = 0;
+
+        while ( start < length )
+        {
+            // Skip the spaces
+            while ( ( start < length ) && Character.isWhitespace( value.charAt( start ) ) )
+            {
+                start++;
+            }
+
+            int end = start;
+
+            while ( ( end < length ) && !Character.isWhitespace( value.charAt( end ) ) )
+            {
+                end++;
+            }
+
+            for ( int i = start; i + GRAM_SIZE <= end; i++ )
+            {
+                grams.add( value.substring( i, i + GRAM_SIZE ) );
+            }
+
+            start = end;
+        }
+    }
+
+
+    /**
+     * Gets the grams of the normalized values of an attribute
+     *
+     * @param attribute The attribute, or null
+     * @return The grams of its values
+     */
+    public static Set<String> getGrams( Attribute attribute )
+    {
+        Set<String> grams = new HashSet<>();
+
+        if ( attribute != null )
+        {
+            for ( Value value : attribute )
+            {
+                String normalized = value.getNormalized();
+
+                if ( normalized != null )
+                {
+                    addGrams( normalized, grams );
+                }
+            }
+        }
+
+        return grams;
+    }
+
+
+    /**
+     * Gets the grams which must be present in a value matching a substring filter. The
+     * filter components are normalized with the attribute equality normalizer, as the
+     * indexed values. If the substring normalizer is not the equality one, we can't
+     * compare them and we return an empty set.
+     *
+     * @param node The substring filter
+     * @return The grams of the filter components
+     * @throws LdapException If a component can't be normalized
+     */
+    public static Set<String> getGrams( SubstringNode node ) throws LdapException
+    {
+        Set<String> grams = new HashSet<>();
+        AttributeType attributeType = node.getAttributeType();
+        MatchingRule equality = attributeType.getEquality();
+        MatchingRule substring = attributeType.getSubstring();
+
+        if ( ( equality == null ) || ( substring == null ) || ( equality.getNormalizer() == null )
+            || ( substring.getNormalizer() == null )
+            || ( equality.getNormalizer().getClass() != substring.getNormalizer().getClass() ) )
+        {
+            return grams;
+        }
+
+        Normalizer normalizer = equality.getNormalizer();
+
+        if ( node.getInitial() != null )
+        {
+            addGrams( normalizer.normalize( node.getInitial(), PrepareString.AssertionType.SUBSTRING_INITIAL ),
+                grams );
+        }
+
+        List<String> anys = node.getAny();
+
+        if ( anys != null )
+        {
+            for ( String any : anys )
+            {
+                addGrams( normalizer.normalize( any, PrepareString.AssertionType.SUBSTRING_ANY ), grams );
+            }
+        }
+
+        if ( node.getFinal() != null )
+        {
+            addGrams( normalizer.normalize( node.getFinal(), PrepareString.AssertionType.SUBSTRING_FINAL ), grams );
+        }
+
+        return grams;
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return "SubstringIndex[" + attributeId + ", " + size() + " grams]";
+    }
+}
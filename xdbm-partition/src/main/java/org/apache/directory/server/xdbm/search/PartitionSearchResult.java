@@ -22,17 +22,19 @@ package org.apache.directory.server.xdbm.search;
 
 import java.util.Set;
 
+import org.apache.directory.api.ldap.model.cursor.Cursor;
 import org.apache.directory.api.ldap.model.cursor.SetCursor;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
 import org.apache.directory.api.ldap.model.message.AliasDerefMode;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.xdbm.EntryIdBitmap;
 import org.apache.directory.server.xdbm.IndexEntry;
 
 
 /**
  * A class containing the result of a search :
  * <ul>
- * <li>A set of candidate UUIDs</li>
+ * <li>A set of candidate UUIDs, or a cursor streaming them when the set would be too big</li>
  * <li>A set of aliased entry if we have any</li>
  * <li>A flag telling if we are dereferencing aliases or not</li>
  * <li>A hierarchy of evaluators to use to validate the candidates</li>
@@ -41,11 +43,14 @@ import org.apache.directory.server.xdbm.IndexEntry;
  */
 public class PartitionSearchResult
 {
-    /** The set of candidate UUIDs selected by the search */
-    private SetCursor<IndexEntry<String, String>> resultSet;
+    /** The candidate UUIDs selected by the search */
+    private Cursor<IndexEntry<String, String>> resultSet;
 
-    /** The set of candidate UUIDs */
-    private Set<String> candidateSet;
+    /** Tells if the candidates are streamed from an index cursor */
+    private boolean streamed;
+
+    /** The set of candidates, as int IDs given by the partition's EntryIdMap */
+    private EntryIdBitmap candidateSet;
 
     /** The flag indicating if we are dereferencing the aliases. Default to Never. */
     private AliasDerefMode aliasDerefMode = AliasDerefMode.NEVER_DEREF_ALIASES;
@@ -71,7 +76,7 @@ public class PartitionSearchResult
     /**
      * @return the resultSet
      */
-    public SetCursor<IndexEntry<String, String>> getResultSet()
+    public Cursor<IndexEntry<String, String>> getResultSet()
     {
         return resultSet;
     }
@@ -83,13 +88,48 @@ public class PartitionSearchResult
     public void setResultSet( Set<IndexEntry<String, String>> set )
     {
         resultSet = new SetCursor<>( set );
+        streamed = false;
+    }
+
+
+    /**
+     * Sets a cursor over the candidates which have been collected before the search starts.
+     *
+     * @param cursor the cursor over the collected candidates
+     */
+    public void setResultSet( Cursor<IndexEntry<String, String>> cursor )
+    {
+        resultSet = cursor;
+        streamed = false;
+    }
+
+
+    /**
+     * Sets a cursor which will produce the candidates while they are read, instead
+     * of a set of candidates built beforehand.
+     *
+     * @param cursor the cursor over the candidates
+     */
+    public void setResultCursor( Cursor<IndexEntry<String, String>> cursor )
+    {
+        resultSet = cursor;
+        streamed = true;
+    }
+
+
+    /**
+     * @return <code>true</code> if the candidates are streamed from a cursor
+     */
+    public boolean isStreamed()
+    {
+        return streamed;
     }
 
 
     /**
      * @return the candidateSet
      */
-    public Set<String> getCandidateSet()
+    public EntryIdBitmap getCandidateSet()
     {
         return candidateSet;
     }
@@ -98,7 +138,7 @@ public class PartitionSearchResult
     /**
      * @param set the candidateSet to set
      */
-    public void setCandidateSet( Set<String> set )
+    public void setCandidateSet( EntryIdBitmap set )
     {
         candidateSet = set;
     }
@@ -200,6 +240,11 @@ public class PartitionSearchResult
         {
             sb.append( "No UUID found" );
         }
+        else if ( streamed )
+        {
+            // Don't consume the cursor, it may not be able to rewind
+            sb.append( resultSet.toString( "    " ) );
+        }
         else
         {
             sb.append( '{' );
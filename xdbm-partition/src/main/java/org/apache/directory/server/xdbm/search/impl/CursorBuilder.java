@@ -22,9 +22,9 @@ package org.apache.directory.server.xdbm.search.impl;
 
 import java.io.IOException;
 import java.util.List;
-import java.util.Set;
 import java.util.regex.Pattern;
 
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.cursor.Cursor;
 import org.apache.directory.api.ldap.model.cursor.CursorException;
 import org.apache.directory.api.ldap.model.entry.Value;
@@ -53,13 +53,18 @@ import org.apache.directory.api.util.exception.NotImplementedException;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.EntryIdBitmap;
+import org.apache.directory.server.xdbm.EntryIdBitmapCursor;
+import org.apache.directory.server.xdbm.EntryIdMap;
 import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.IndexEntry;
 import org.apache.directory.server.xdbm.IndexNotFoundException;
 import org.apache.directory.server.xdbm.ParentIdAndRdn;
 import org.apache.directory.server.xdbm.SingletonIndexCursor;
 import org.apache.directory.server.xdbm.Store;
+import org.apache.directory.server.xdbm.SubstringIndex;
 import org.apache.directory.server.xdbm.search.PartitionSearchResult;
+import org.apache.directory.server.xdbm.search.cursor.AllEntriesCursor;
 import org.apache.directory.server.xdbm.search.cursor.ApproximateCursor;
 import org.apache.directory.server.xdbm.search.cursor.ChildrenCursor;
 import org.apache.directory.server.xdbm.search.cursor.DescendantCursor;
@@ -79,6 +84,12 @@ public class CursorBuilder
     /** Evaluator dependency on a EvaluatorBuilder */
     private EvaluatorBuilder evaluatorBuilder;
 
+    /**
+     * The maximum ratio between the count of an AND child and the count of the smallest
+     * child for its candidates to be intersected with the smallest child ones
+     */
+    private static final long AND_INTERSECTION_RATIO = 16L;
+
 
     /**
      * Creates an expression tree enumerator.
@@ -167,6 +178,153 @@ public class CursorBuilder
     }
 
 
+    /**
+     * Creates a Cursor producing the candidates of a filter while they are read, instead
+     * of collecting them in the candidate set. Only the nodes whose index cursor can't
+     * return the same candidate twice are streamed : an equality or a presence on an
+     * indexed attribute, a scope without alias dereferencing, or the whole MasterTable
+     * when a full scan is needed. The few candidates the optimizer may have already
+     * fetched for an equality are returned as is. An AND node is streamed using its child with the
+     * smallest count, as done by {@link #build(PartitionTxn, ExprNode, PartitionSearchResult)}.
+     * The returned candidates must still be checked by the filter's evaluator.
+     *
+     * @param partitionTxn The transaction to use
+     * @param node The annotated filter
+     * @param searchResult The search result, used to know if aliases are dereferenced
+     * @return A Cursor over the candidates, or null if the node can't be streamed
+     * @throws LdapException If the cursor can't be created
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public Cursor<IndexEntry<String, String>> buildStream( PartitionTxn partitionTxn, ExprNode node,
+        PartitionSearchResult searchResult ) throws LdapException
+    {
+        try
+        {
+            switch ( node.getAssertionType() )
+            {
+                case EQUALITY:
+                    EntryIdBitmap candidates = ( EntryIdBitmap ) node.get( DefaultOptimizer.CANDIDATES_ANNOTATION_KEY );
+
+                    if ( candidates != null )
+                    {
+                        // The optimizer has already fetched the few candidates
+                        return new EntryIdBitmapCursor( partitionTxn, candidates, db.getEntryIdMap() );
+                    }
+
+                    EqualityNode<?> equalityNode = ( EqualityNode<?> ) node;
+
+                    if ( !db.hasIndexOn( equalityNode.getAttributeType() ) )
+                    {
+                        return new AllEntriesCursor( partitionTxn, db );
+                    }
+
+                    Index<Object, String> userIndex = ( Index<Object, String> ) db.getIndex( equalityNode
+                        .getAttributeType() );
+
+                    return ( Cursor ) userIndex.forwardCursor( partitionTxn, equalityNode.getValue().getNormalized() );
+
+                case PRESENCE:
+                    AttributeType attributeType = ( ( PresenceNode ) node ).getAttributeType();
+
+                    if ( !isInPresenceIndex( attributeType ) )
+                    {
+                        return new AllEntriesCursor( partitionTxn, db );
+                    }
+
+                    return db.getPresenceIndex().forwardCursor( partitionTxn, attributeType.getOid() );
+
+                case SCOPE:
+                    return buildScopeStream( partitionTxn, ( ScopeNode ) node, searchResult );
+
+                case AND:
+                    return buildAndStream( partitionTxn, ( AndNode ) node, searchResult );
+
+                default:
+                    // Those nodes may select the same candidate more than once, or are
+                    // not worth a dedicated cursor : use the candidate set
+                    return null;
+            }
+        }
+        catch ( IndexNotFoundException | CursorException | IOException e )
+        {
+            throw new LdapOtherException( e.getMessage(), e );
+        }
+    }
+
+
+    /**
+     * Creates a cursor over the entries in the scope of a ScopeNode. We return null if
+     * the aliases have to be dereferenced while searching, as an aliased entry may then
+     * be met more than once.
+     */
+    private Cursor<IndexEntry<String, String>> buildScopeStream( PartitionTxn partitionTxn, ScopeNode node,
+        PartitionSearchResult searchResult ) throws LdapException, CursorException, IOException
+    {
+        if ( searchResult.isDerefAlways() || searchResult.isDerefInSearching() )
+        {
+            return null;
+        }
+
+        String baseId = node.getBaseId();
+
+        if ( node.getScope() == SearchScope.ONELEVEL )
+        {
+            Cursor<IndexEntry<ParentIdAndRdn, String>> rdnCursor = db.getRdnIndex().forwardCursor( partitionTxn );
+
+            IndexEntry<ParentIdAndRdn, String> startingPos = new IndexEntry<>();
+            startingPos.setKey( new ParentIdAndRdn( baseId, ( Rdn[] ) null ) );
+            rdnCursor.before( startingPos );
+
+            return new ChildrenCursor( partitionTxn, db, baseId, rdnCursor );
+        }
+
+        // A subtree search from the context entry covers the whole partition
+        String contextEntryId = db.getEntryId( partitionTxn, ( ( Partition ) db ).getSuffixDn() );
+
+        if ( baseId.equals( contextEntryId ) )
+        {
+            return new AllEntriesCursor( partitionTxn, db );
+        }
+
+        ParentIdAndRdn parentIdAndRdn = db.getRdnIndex().reverseLookup( partitionTxn, baseId );
+        IndexEntry<ParentIdAndRdn, String> startingPos = new IndexEntry<>();
+
+        startingPos.setKey( parentIdAndRdn );
+        startingPos.setId( baseId );
+
+        Cursor<IndexEntry<ParentIdAndRdn, String>> rdnCursor = new SingletonIndexCursor<>( partitionTxn,
+            startingPos );
+
+        return new DescendantCursor( partitionTxn, db, baseId, parentIdAndRdn.getParentId(), rdnCursor );
+    }
+
+
+    /**
+     * Streams the child of an AND node which has the smallest count. The other children
+     * are checked by the AND evaluator.
+     */
+    private Cursor<IndexEntry<String, String>> buildAndStream( PartitionTxn partitionTxn, AndNode node,
+        PartitionSearchResult searchResult ) throws LdapException
+    {
+        int minIndex = 0;
+        long minCost = Long.MAX_VALUE;
+        List<ExprNode> children = node.getChildren();
+
+        for ( int i = 0; i < children.size(); i++ )
+        {
+            Long cost = getCost( children.get( i ) );
+
+            if ( ( cost != null ) && ( cost < minCost ) )
+            {
+                minCost = cost;
+                minIndex = i;
+            }
+        }
+
+        return buildStream( partitionTxn, children.get( minIndex ), searchResult );
+    }
+
+
     /**
      * Computes the set of candidates for an Approximate filter. We will feed the set only if
      * we have an index for the AT.
@@ -180,14 +338,15 @@ public class CursorBuilder
                 .build( partitionTxn, node ) );
 
         int nbResults = 0;
-        Set<String> uuidSet = searchResult.getCandidateSet();
+        EntryIdBitmap uuidSet = searchResult.getCandidateSet();
+        EntryIdMap entryIdMap = db.getEntryIdMap();
 
         while ( cursor.next() )
         {
             IndexEntry<T, String> indexEntry = cursor.get();
 
             String uuid = indexEntry.getId();
-            boolean added = uuidSet.add( uuid );
+            boolean added = uuidSet.add( entryIdMap.getId( uuid ) );
 
             // if the UUID was added increment the result count
             if ( added )
@@ -209,18 +368,13 @@ public class CursorBuilder
     private <T> long computeEquality( PartitionTxn partitionTxn, EqualityNode<T> node, PartitionSearchResult searchResult )
         throws LdapException, IndexNotFoundException, CursorException, IOException
     {
-        Set<String> thisCandidates = ( Set<String> ) node.get( DefaultOptimizer.CANDIDATES_ANNOTATION_KEY );
+        EntryIdBitmap thisCandidates = ( EntryIdBitmap ) node.get( DefaultOptimizer.CANDIDATES_ANNOTATION_KEY );
 
         if ( thisCandidates != null )
         {
-            Set<String> candidates = searchResult.getCandidateSet();
-
-            for ( String candidate : thisCandidates )
-            {
-                candidates.add( candidate );
-            }
+            searchResult.getCandidateSet().or( thisCandidates );
 
-            return thisCandidates.size();
+            return thisCandidates.cardinality();
         }
 
         AttributeType attributeType = node.getAttributeType();
@@ -233,7 +387,8 @@ public class CursorBuilder
             // Get the cursor using the index
             Index<T, String> userIndex = ( Index<T, String> ) db.getIndex( attributeType );
             Cursor<IndexEntry<T, String>> userIdxCursor = userIndex.forwardCursor( partitionTxn, ( T ) value.getNormalized() );
-            Set<String> uuidSet = searchResult.getCandidateSet();
+            EntryIdBitmap uuidSet = searchResult.getCandidateSet();
+            EntryIdMap entryIdMap = db.getEntryIdMap();
 
             // And loop on it
             while ( userIdxCursor.next() )
@@ -241,7 +396,7 @@ public class CursorBuilder
                 IndexEntry<T, String> indexEntry = userIdxCursor.get();
 
                 String uuid = indexEntry.getId();
-                boolean added = uuidSet.add( uuid );
+                boolean added = uuidSet.add( entryIdMap.getId( uuid ) );
                 
                 // if the UUID was added increment the result count
                 if ( added )
@@ -285,7 +440,8 @@ public class CursorBuilder
             indexEntry.setKey( ( T ) value.getString() );
 
             userIdxCursor.before( indexEntry );
-            Set<String> uuidSet = searchResult.getCandidateSet();
+            EntryIdBitmap uuidSet = searchResult.getCandidateSet();
+            EntryIdMap entryIdMap = db.getEntryIdMap();
 
             // And loop on it
             while ( userIdxCursor.next() )
@@ -293,7 +449,7 @@ public class CursorBuilder
                 indexEntry = userIdxCursor.get();
 
                 String uuid = indexEntry.getId();
-                boolean added = uuidSet.add( uuid );
+                boolean added = uuidSet.add( entryIdMap.getId( uuid ) );
 
                 // if the UUID was added increment the result count
                 if ( added )
@@ -337,7 +493,8 @@ public class CursorBuilder
             indexEntry.setKey( ( T ) value.getString() );
 
             userIdxCursor.after( indexEntry );
-            Set<String> uuidSet = searchResult.getCandidateSet();
+            EntryIdBitmap uuidSet = searchResult.getCandidateSet();
+            EntryIdMap entryIdMap = db.getEntryIdMap();
 
             // And loop on it
             while ( userIdxCursor.previous() )
@@ -345,7 +502,7 @@ public class CursorBuilder
                 indexEntry = userIdxCursor.get();
 
                 String uuid = indexEntry.getId();
-                boolean added = uuidSet.add( uuid );
+                boolean added = uuidSet.add( entryIdMap.getId( uuid ) );
 
                 // if the UUID was added increment the result count
                 if ( added )
@@ -366,6 +523,18 @@ public class CursorBuilder
     }
 
 
+    /**
+     * Tells if the presence index contains the entries having an attribute : only the user
+     * indexed attributes and the administrativeRole are stored there. The system indexed
+     * attributes, like objectClass, entryUUID or entryCSN, are present in every entry.
+     */
+    private boolean isInPresenceIndex( AttributeType attributeType ) throws LdapException
+    {
+        return db.hasUserIndexOn( attributeType )
+            || attributeType.getOid().equals( SchemaConstants.ADMINISTRATIVE_ROLE_AT_OID );
+    }
+
+
     /**
      * Computes the set of candidates for a Presence filter. We will feed the set only if
      * we have an index for the AT.
@@ -377,14 +546,15 @@ public class CursorBuilder
         int nbResults = 0;
 
         // Fetch all the UUIDs if we have an index
-        if ( db.hasIndexOn( attributeType ) )
+        if ( isInPresenceIndex( attributeType ) )
         {
             // Get the cursor using the index
             Cursor<IndexEntry<String, String>> presenceCursor = db.getPresenceIndex().forwardCursor(
                 partitionTxn, attributeType.getOid() );
 
             // Position the index on the element we should start from
-            Set<String> uuidSet = searchResult.getCandidateSet();
+            EntryIdBitmap uuidSet = searchResult.getCandidateSet();
+            EntryIdMap entryIdMap = db.getEntryIdMap();
 
             // And loop on it
             while ( presenceCursor.next() )
@@ -392,7 +562,7 @@ public class CursorBuilder
                 IndexEntry<String, String> indexEntry = presenceCursor.get();
 
                 String uuid = indexEntry.getId();
-                boolean added = uuidSet.add( uuid );
+                boolean added = uuidSet.add( entryIdMap.getId( uuid ) );
 
                 // if the UUID was added increment the result count
                 if ( added )
@@ -431,7 +601,8 @@ public class CursorBuilder
         rdnCursor.before( startingPos );
 
         Cursor<IndexEntry<String, String>> scopeCursor = new ChildrenCursor( partitionTxn, db, node.getBaseId(), rdnCursor );
-        Set<String> candidateSet = searchResult.getCandidateSet();
+        EntryIdBitmap candidateSet = searchResult.getCandidateSet();
+        EntryIdMap entryIdMap = db.getEntryIdMap();
 
         // Fetch all the UUIDs if we have an index
         // And loop on it
@@ -458,7 +629,7 @@ public class CursorBuilder
 
                     // This is an alias. Add it to the set of candidates to process, if it's not already
                     // present in the candidate set 
-                    boolean added = candidateSet.add( aliasedId );
+                    boolean added = candidateSet.add( entryIdMap.getId( aliasedId ) );
                     
                     if ( added )
                     {
@@ -468,7 +639,7 @@ public class CursorBuilder
                 else
                 {
                     // The UUID is not present in the Set, we add it
-                    boolean added = candidateSet.add( uuid );
+                    boolean added = candidateSet.add( entryIdMap.getId( uuid ) );
                     
                     // This is not an alias
                     if ( added )
@@ -480,7 +651,7 @@ public class CursorBuilder
             else
             {
                 // The UUID is not present in the Set, we add it
-                boolean added = candidateSet.add( uuid );
+                boolean added = candidateSet.add( entryIdMap.getId( uuid ) );
                 
                 // This is not an alias
                 if ( added )
@@ -527,7 +698,8 @@ public class CursorBuilder
         String parentId = parentIdAndRdn.getParentId();
 
         Cursor<IndexEntry<String, String>> scopeCursor = new DescendantCursor( partitionTxn, db, baseId, parentId, rdnCursor );
-        Set<String> candidateSet = searchResult.getCandidateSet();
+        EntryIdBitmap candidateSet = searchResult.getCandidateSet();
+        EntryIdMap entryIdMap = db.getEntryIdMap();
 
         // Fetch all the UUIDs if we have an index
         // And loop on it
@@ -554,7 +726,7 @@ public class CursorBuilder
 
                     // This is an alias. Add it to the set of candidates to process, if it's not already
                     // present in the candidate set 
-                    boolean added = candidateSet.add( aliasedId );
+                    boolean added = candidateSet.add( entryIdMap.getId( aliasedId ) );
                     
                     if ( added )
                     {
@@ -573,7 +745,7 @@ public class CursorBuilder
                 {
                     // This is not an alias
                     // The UUID is not present in the Set, we add it
-                    boolean added = candidateSet.add( uuid );
+                    boolean added = candidateSet.add( entryIdMap.getId( uuid ) );
                     
                     if ( added )
                     {
@@ -584,7 +756,7 @@ public class CursorBuilder
             else
             {
                 // The UUID is not present in the Set, we add it
-                boolean added = candidateSet.add( uuid );
+                boolean added = candidateSet.add( entryIdMap.getId( uuid ) );
                 
                 if ( added )
                 {
@@ -618,6 +790,26 @@ public class CursorBuilder
         // Fetch all the UUIDs if we have an index
         if ( db.hasIndexOn( attributeType ) )
         {
+            // Use the substring index if the optimizer has selected it, or if we would
+            // have to read the whole attribute index
+            SubstringIndex substringIndex = db.getSubstringIndex( attributeType );
+
+            if ( ( substringIndex != null ) && attributeType.getSyntax().isHumanReadable()
+                && ( ( node.getInitial() == null )
+                || Boolean.TRUE.equals( node.get( DefaultOptimizer.SUBSTRING_INDEX_ANNOTATION ) ) ) )
+            {
+                EntryIdBitmap candidates = substringIndex.lookup( SubstringIndex.getGrams( node ) );
+
+                if ( candidates != null )
+                {
+                    // Those entries contain all the grams of the filter, but may not match
+                    // it : they will be checked by the substring evaluator
+                    searchResult.getCandidateSet().or( candidates );
+
+                    return candidates.cardinality();
+                }
+            }
+
             Index<String, String> userIndex = ( Index<String, String> ) db.getIndex( attributeType );
             Cursor<IndexEntry<String, String>> cursor = userIndex.forwardCursor( partitionTxn );
 
@@ -671,7 +863,8 @@ public class CursorBuilder
                 regexp = null;
             }
 
-            Set<String> uuidSet = searchResult.getCandidateSet();
+            EntryIdBitmap uuidSet = searchResult.getCandidateSet();
+            EntryIdMap entryIdMap = db.getEntryIdMap();
 
             if ( regexp == null )
             {
@@ -701,7 +894,7 @@ public class CursorBuilder
                 
                 String uuid = indexEntry.getId();
 
-                boolean added = uuidSet.add( uuid );
+                boolean added = uuidSet.add( entryIdMap.getId( uuid ) );
                 
                 // if the UUID was added increment the result count
                 if ( added )
@@ -786,12 +979,14 @@ public class CursorBuilder
     {
         int minIndex = 0;
         long minValue = Long.MAX_VALUE;
+        long minCost = Long.MAX_VALUE;
         long value;
 
         /*
          * We scan the child nodes of a branch node searching for the child
-         * expression node with the smallest scan count.  This is the child
-         * we will use for iteration
+         * expression node with the smallest cost, which is its scan count
+         * weighted by the cursor it uses.  This is the child we will use
+         * for iteration
          */
         final List<ExprNode> children = node.getChildren();
 
@@ -813,8 +1008,11 @@ public class CursorBuilder
                 return 0L;
             }
 
-            if ( value < minValue )
+            long cost = getCost( child );
+
+            if ( cost < minCost )
             {
+                minCost = cost;
                 minValue = value;
                 minIndex = i;
             }
@@ -823,7 +1021,104 @@ public class CursorBuilder
         // Once found we return the number of candidates for this child
         ExprNode minChild = children.get( minIndex );
 
-        return build( partitionTxn, minChild, searchResult );
+        if ( minValue == Long.MAX_VALUE )
+        {
+            return build( partitionTxn, minChild, searchResult );
+        }
+
+        // Collect the candidates of this child, and intersect them with the candidates
+        // of the other children which are cheap enough to fetch
+        EntryIdBitmap candidates = searchResult.getCandidateSet();
+        EntryIdBitmap intersection = new EntryIdBitmap();
+
+        try
+        {
+            searchResult.setCandidateSet( intersection );
+
+            long nbResults = build( partitionTxn, minChild, searchResult );
+
+            if ( nbResults == Long.MAX_VALUE )
+            {
+                return nbResults;
+            }
+
+            for ( int i = 0; ( i < children.size() ) && !intersection.isEmpty(); i++ )
+            {
+                ExprNode child = children.get( i );
+
+                if ( ( i == minIndex ) || !isIntersectable( child, minValue, searchResult ) )
+                {
+                    continue;
+                }
+
+                EntryIdBitmap childCandidates = new EntryIdBitmap();
+                searchResult.setCandidateSet( childCandidates );
+
+                if ( build( partitionTxn, child, searchResult ) != Long.MAX_VALUE )
+                {
+                    intersection.and( childCandidates );
+                }
+            }
+        }
+        finally
+        {
+            searchResult.setCandidateSet( candidates );
+        }
+
+        long before = candidates.cardinality();
+        candidates.or( intersection );
+
+        return candidates.cardinality() - before;
+    }
+
+
+    /**
+     * Gets the cost of reading the candidates of an AND child, as annotated by the
+     * optimizer, defaulting to its scan count.
+     *
+     * @param child The AND child
+     * @return The cost, or null if the child hasn't been annotated
+     */
+    private static Long getCost( ExprNode child )
+    {
+        Object cost = child.get( DefaultOptimizer.COST_ANNOTATION );
+
+        if ( cost == null )
+        {
+            cost = child.get( DefaultOptimizer.COUNT_ANNOTATION );
+        }
+
+        return ( Long ) cost;
+    }
+
+
+    /**
+     * Tells if the candidates of an AND child can be used to reduce the candidates of
+     * the smallest child. The child must select a superset of the matching entries, and
+     * must not select more than AND_INTERSECTION_RATIO times the smallest child count.
+     */
+    private boolean isIntersectable( ExprNode child, long minValue, PartitionSearchResult searchResult )
+    {
+        Object count = child.get( DefaultOptimizer.COUNT_ANNOTATION );
+
+        if ( ( count == null ) || ( ( Long ) count / AND_INTERSECTION_RATIO > minValue ) )
+        {
+            return false;
+        }
+
+        switch ( child.getAssertionType() )
+        {
+            case EQUALITY:
+            case PRESENCE:
+                return true;
+
+            case SCOPE:
+                // An aliased entry is added instead of the alias
+                return searchResult.isNeverDeref() || searchResult.isDerefFinding();
+
+            default:
+                return false;
+        }
     }
 
 
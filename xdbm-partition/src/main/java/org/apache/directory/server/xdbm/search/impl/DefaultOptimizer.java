@@ -21,9 +21,8 @@ package org.apache.directory.server.xdbm.search.impl;
 
 
 import java.io.IOException;
-import java.util.HashSet;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Set;
 
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.cursor.Cursor;
@@ -45,18 +44,27 @@ import org.apache.directory.api.ldap.model.filter.PresenceNode;
 import org.apache.directory.api.ldap.model.filter.ScopeNode;
 import org.apache.directory.api.ldap.model.filter.SimpleNode;
 import org.apache.directory.api.ldap.model.filter.SubstringNode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.MatchingRule;
 import org.apache.directory.api.util.Strings;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.EntryIdBitmap;
+import org.apache.directory.server.xdbm.EntryIdMap;
 import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.IndexNotFoundException;
+import org.apache.directory.server.xdbm.IndexStatistics;
 import org.apache.directory.server.xdbm.Store;
+import org.apache.directory.server.xdbm.SubstringIndex;
 import org.apache.directory.server.xdbm.search.Optimizer;
 
 
 /**
- * Optimizer that annotates the filter using scan counts.
+ * Optimizer that annotates the filter using scan counts. When the partition has
+ * computed the statistics of an index, the counts are estimated from them instead
+ * of reading the index.
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -66,6 +74,19 @@ public class DefaultOptimizer implements Optimizer
     
     /* Package protected*/ static final String COUNT_ANNOTATION = "count"; 
 
+    /* Package protected*/ static final String COST_ANNOTATION = "cost";
+
+    /* Package protected*/ static final String SUBSTRING_INDEX_ANNOTATION = "substringIndex";
+
+    /** The maximum number of candidates fetched while annotating an equality node */
+    private static final int MAX_EQUALITY_CANDIDATES = 100;
+
+    /**
+     * The cost of a candidate read from a DescendantCursor, compared to a candidate read
+     * from an index cursor : the RDN index has to be read again for each parent entry
+     */
+    private static final long DESCENDANT_SCAN_COST = 2L;
+
     /** the database this optimizer operates on */
     private final Store db;
     private String contextEntryId;
@@ -262,7 +283,9 @@ public class DefaultOptimizer implements Optimizer
             }
 
             annotate( partitionTxn, child );
-            count = Math.min( ( ( Long ) child.get( COUNT_ANNOTATION ) ), count );
+            long childCount = ( Long ) child.get( COUNT_ANNOTATION );
+            child.set( COST_ANNOTATION, getCost( partitionTxn, child, childCount ) );
+            count = Math.min( childCount, count );
 
             if ( count == 0 )
             {
@@ -275,6 +298,28 @@ public class DefaultOptimizer implements Optimizer
     }
 
 
+    /**
+     * Gets the cost of iterating over the candidates of an AND child. The AND node uses
+     * the child with the lowest cost to get its candidates, so this is where we choose
+     * between an index driven and a scope driven evaluation.
+     *
+     * @param node the AND child
+     * @param count the child scan count
+     * @return the cost of reading the child candidates
+     */
+    private long getCost( PartitionTxn partitionTxn, ExprNode node, long count ) throws LdapException
+    {
+        if ( ( node instanceof ScopeNode ) && ( ( ( ScopeNode ) node ).getScope() == SearchScope.SUBTREE )
+            && !( ( ScopeNode ) node ).getBaseId().equals( getContextEntryId( partitionTxn ) ) )
+        {
+            // A subtree which is not the whole partition has to be walked down
+            return count > Long.MAX_VALUE / DESCENDANT_SCAN_COST ? Long.MAX_VALUE : count * DESCENDANT_SCAN_COST;
+        }
+
+        return count;
+    }
+
+
     /**
      * Disjunctions (OR) are the union of candidates across all subexpressions 
      * so we add all the counts of the child nodes. Notice that we annotate the 
@@ -331,17 +376,33 @@ public class DefaultOptimizer implements Optimizer
                 normalizedKey = node.getAttributeType().getEquality().getNormalizer().normalize( node.getValue().getString() );
             }
             
+            IndexStatistics statistics = db.getIndexStatistics( node.getAttributeType().getOid() );
+
+            if ( statistics != null )
+            {
+                long estimate = statistics.estimateEquality( normalizedKey, getComparator( node.getAttributeType() ) );
+
+                if ( estimate >= MAX_EQUALITY_CANDIDATES )
+                {
+                    // Too many candidates to fetch them now
+                    node.set( CANDIDATES_ANNOTATION_KEY, null );
+
+                    return estimate;
+                }
+            }
+
             Cursor<String> result = idx.forwardValueCursor( partitionTxn, ( V ) normalizedKey );
-            Set<String> values = new HashSet<>();
+            EntryIdBitmap values = new EntryIdBitmap();
+            EntryIdMap entryIdMap = db.getEntryIdMap();
             int nbFound = 0;
 
             for ( String value : result )
             {
-                values.add( value );
+                values.add( entryIdMap.getId( value ) );
                 nbFound++;
 
                 // Arbitrary stop gathering the candidates if we have more than 100
-                if ( nbFound == 100 )
+                if ( nbFound == MAX_EQUALITY_CANDIDATES )
                 {
                     break;
                 }
@@ -349,12 +410,12 @@ public class DefaultOptimizer implements Optimizer
 
             result.close();
 
-            if ( nbFound < 100 )
+            if ( nbFound < MAX_EQUALITY_CANDIDATES )
             {
                 // Store the found candidates in the node
                 node.set( CANDIDATES_ANNOTATION_KEY, values );
 
-                return values.size();
+                return values.cardinality();
             }
             else
             {
@@ -385,6 +446,27 @@ public class DefaultOptimizer implements Optimizer
         if ( db.hasIndexOn( node.getAttributeType() ) )
         {
             Index<V, String> idx = ( Index<V, String> ) db.getIndex( node.getAttributeType() );
+            IndexStatistics statistics = db.getIndexStatistics( node.getAttributeType().getOid() );
+            Comparator<String> comparator = getComparator( node.getAttributeType() );
+
+            if ( ( statistics != null ) && statistics.hasHistogram() && ( comparator != null ) )
+            {
+                String key = node.getValue().getNormalized();
+
+                if ( key == null )
+                {
+                    key = node.getValue().getString();
+                }
+
+                if ( isGreaterThan )
+                {
+                    return statistics.estimateGreaterOrEqual( key, comparator );
+                }
+                else
+                {
+                    return statistics.estimateLessOrEqual( key, comparator );
+                }
+            }
 
             if ( isGreaterThan )
             {
@@ -403,9 +485,10 @@ public class DefaultOptimizer implements Optimizer
 
     /**
      * Get a scan count based on a Substring node : we will count the entries that are greater
-     * than ABC where the filter is (attr=ABC*). Any other filter won't be evaluated (for instance,
-     * a filter like (attr=*ABC) will resolve to a full scan atm - we could have created a reverted
-     * index for such a case -, and filters like (attr=*ABC*) also esolve to a full scan).
+     * than ABC where the filter is (attr=ABC*). Without initial component, the filter resolves
+     * to a full index scan, unless the attribute has a substring index : we then use the
+     * number of entries containing the rarest gram of the filter. When this is less than the
+     * initial range, the node is annotated so that the substring index is used.
      * 
      * @param node The substring node
      * @return The number of candidates
@@ -416,18 +499,46 @@ public class DefaultOptimizer implements Optimizer
         if ( db.hasIndexOn( node.getAttributeType() ) )
         {
             Index<String, String> idx = ( Index<String, String> ) db.getIndex( node.getAttributeType() );
+            IndexStatistics statistics = db.getIndexStatistics( node.getAttributeType().getOid() );
 
             String initial = node.getInitial();
+            long count;
 
             if ( Strings.isEmpty( initial ) )
             {
                 // Not a (attr=ABC*) filter : full index scan
-                return idx.count( partitionTxn );
+                count = idx.count( partitionTxn );
             }
             else
             {
-                return idx.greaterThanCount( partitionTxn, initial );
+                Comparator<String> comparator = getComparator( node.getAttributeType() );
+
+                if ( ( statistics != null ) && statistics.hasHistogram() && ( comparator != null ) )
+                {
+                    // The keys starting with the initial are in [initial, initial + \uFFFF]
+                    count = statistics.estimateRange( initial, initial + Character.MAX_VALUE, comparator );
+                }
+                else
+                {
+                    count = idx.greaterThanCount( partitionTxn, initial );
+                }
+            }
+
+            SubstringIndex substringIndex = db.getSubstringIndex( node.getAttributeType() );
+
+            if ( substringIndex != null )
+            {
+                long gramCount = substringIndex.estimate( SubstringIndex.getGrams( node ) );
+
+                if ( ( gramCount >= 0L ) && ( gramCount < count ) )
+                {
+                    node.set( SUBSTRING_INDEX_ANNOTATION, Boolean.TRUE );
+
+                    return gramCount;
+                }
             }
+
+            return count;
         }
         else
         {
@@ -437,6 +548,31 @@ public class DefaultOptimizer implements Optimizer
     }
 
 
+    /**
+     * Gets the comparator used to order the keys of an index on an attribute
+     *
+     * @param attributeType The indexed attribute
+     * @return The comparator, or null if the attribute has no equality matching rule
+     */
+    @SuppressWarnings("unchecked")
+    private Comparator<String> getComparator( AttributeType attributeType )
+    {
+        MatchingRule mr = attributeType.getEquality();
+
+        if ( mr == null )
+        {
+            mr = attributeType.getSubstring();
+        }
+
+        if ( ( mr == null ) || ( mr.getLdapComparator() == null ) )
+        {
+            return null;
+        }
+
+        return ( Comparator<String> ) ( Comparator<?> ) mr.getLdapComparator();
+    }
+
+
     /**
      * Gets the total number of entries within the database index if one is 
      * available otherwise the count of all the entries within the database is
@@ -20,6 +20,7 @@
 package org.apache.directory.server.xdbm.search.impl;
 
 
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -42,6 +43,9 @@ import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.core.partition.impl.btree.IndexCursorAdaptor;
 import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.EntryIdBitmap;
+import org.apache.directory.server.xdbm.EntryIdBitmapCursor;
+import org.apache.directory.server.xdbm.EntryIdMap;
 import org.apache.directory.server.xdbm.IndexEntry;
 import org.apache.directory.server.xdbm.Store;
 import org.apache.directory.server.xdbm.search.Evaluator;
@@ -64,6 +68,9 @@ public class DefaultSearchEngine implements SearchEngine
     /** The logger */
     private static final Logger LOG = LoggerFactory.getLogger( DefaultSearchEngine.class );
 
+    /** The default maximum estimated number of candidates collected in a candidate set */
+    public static final long DEFAULT_CANDIDATE_SET_LIMIT = 10000L;
+
     /** the Optimizer used by this DefaultSearchEngine */
     private final Optimizer optimizer;
 
@@ -76,6 +83,12 @@ public class DefaultSearchEngine implements SearchEngine
     /** creates evaluators which check to see if candidates satisfy a filter expression */
     private final EvaluatorBuilder evaluatorBuilder;
 
+    /**
+     * The maximum estimated number of candidates for which we build a candidate set. Above,
+     * the candidates are streamed from an index cursor. Long.MAX_VALUE disables the streaming
+     */
+    private long candidateSetLimit = DEFAULT_CANDIDATE_SET_LIMIT;
+
 
     // ------------------------------------------------------------------------
     // C O N S T R U C T O R S
@@ -111,6 +124,30 @@ public class DefaultSearchEngine implements SearchEngine
     }
 
 
+    /**
+     * @return The maximum estimated number of candidates for which a candidate set is built
+     */
+    public long getCandidateSetLimit()
+    {
+        return candidateSetLimit;
+    }
+
+
+    /**
+     * Sets the maximum estimated number of candidates for which a candidate set is built
+     * before returning the first entry. When the optimizer can't prove that a search
+     * selects fewer candidates, they are read from an index cursor while the entries are
+     * returned, which keeps the memory usage low and returns the first entries immediately.
+     *
+     * @param candidateSetLimit The limit. 0 always streams the candidates when possible,
+     * Long.MAX_VALUE never does.
+     */
+    public void setCandidateSetLimit( long candidateSetLimit )
+    {
+        this.candidateSetLimit = candidateSetLimit;
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -245,56 +282,82 @@ public class DefaultSearchEngine implements SearchEngine
         optimizer.annotate( partitionTxn, root );
         Evaluator<? extends ExprNode> evaluator = evaluatorBuilder.build( partitionTxn, root );
 
-        Set<String> uuidSet = new HashSet<>();
         searchResult.setAliasDerefMode( aliasDerefMode );
-        searchResult.setCandidateSet( uuidSet );
-
-        long nbResults = cursorBuilder.build( partitionTxn, root, searchResult );
-
-        LOG.debug( "Nb results : {} for filter : {}", nbResults, root );
+        searchResult.setEvaluator( evaluator );
 
-        if ( nbResults < Long.MAX_VALUE )
+        // Stream the candidates if the optimizer can't tell they are few
+        if ( candidateSetLimit < Long.MAX_VALUE )
         {
-            for ( String uuid : uuidSet )
+            Object count = root.get( DefaultOptimizer.COUNT_ANNOTATION );
+
+            if ( ( count == null ) || ( ( Long ) count > candidateSetLimit ) )
             {
-                IndexEntry<String, String> indexEntry = new IndexEntry<>();
-                indexEntry.setId( uuid );
-                resultSet.add( indexEntry );
+                Cursor<IndexEntry<String, String>> candidates = cursorBuilder.buildStream( partitionTxn, root,
+                    searchResult );
+
+                if ( candidates != null )
+                {
+                    LOG.debug( "Streaming the candidates for filter : {}", root );
+                    searchResult.setResultCursor( candidates );
+
+                    return searchResult;
+                }
             }
         }
-        else
+
+        EntryIdBitmap candidates = new EntryIdBitmap();
+        searchResult.setCandidateSet( candidates );
+
+        long nbResults = cursorBuilder.build( partitionTxn, root, searchResult );
+
+        LOG.debug( "Nb results : {} for filter : {}", nbResults, root );
+
+        if ( nbResults == Long.MAX_VALUE )
         {
             // Full scan : use the MasterTable
             Cursor<IndexEntry<String, String>> cursor = new IndexCursorAdaptor( partitionTxn, db.getMasterTable().cursor(), true );
+            EntryIdMap entryIdMap = db.getEntryIdMap();
 
             try
             {
                 while ( cursor.next() )
                 {
-                    IndexEntry<String, String> indexEntry = cursor.get();
-    
-                    // Here, the indexEntry contains a <UUID, Entry> tuple. Convert it to <UUID, UUID>
-                    IndexEntry<String, String> forwardIndexEntry = new IndexEntry<>();
-                    forwardIndexEntry.setKey( indexEntry.getKey() );
-                    forwardIndexEntry.setId( indexEntry.getKey() );
-                    forwardIndexEntry.setEntry( null );
-    
-                    resultSet.add( forwardIndexEntry );
+                    // Here, the indexEntry contains a <UUID, Entry> tuple : we only keep the UUID
+                    candidates.add( entryIdMap.getId( cursor.get().getKey() ) );
                 }
             }
             catch ( CursorException ce )
             {
                 throw new LdapOtherException( ce.getMessage(), ce );
             }
+            finally
+            {
+                closeQuietly( cursor );
+            }
         }
 
-        searchResult.setEvaluator( evaluator );
-        searchResult.setResultSet( resultSet );
+        searchResult.setResultSet( new EntryIdBitmapCursor( partitionTxn, candidates, db.getEntryIdMap() ) );
 
         return searchResult;
     }
 
 
+    /**
+     * Closes a cursor, logging the failure if any
+     */
+    private void closeQuietly( Cursor<?> cursor )
+    {
+        try
+        {
+            cursor.close();
+        }
+        catch ( IOException ioe )
+        {
+            LOG.warn( "Failed to close the MasterTable cursor : {}", ioe.getMessage() );
+        }
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,374 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.UUID;
+
+import org.apache.directory.api.util.Strings;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+
+
+/**
+ * Tests the {@link EntryIdBitmap}, {@link EntryIdMap} and {@link EntryIdBitmapCursor} classes.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@Execution(ExecutionMode.SAME_THREAD)
+public class EntryIdBitmapTest
+{
+    /**
+     * Fills a bitmap and a BitSet with the same random IDs
+     */
+    private static EntryIdBitmap fill( Random random, BitSet expected, int count, int range )
+    {
+        EntryIdBitmap bitmap = new EntryIdBitmap();
+
+        for ( int i = 0; i < count; i++ )
+        {
+            int id = random.nextInt( range );
+
+            assertEquals( !expected.get( id ), bitmap.add( id ) );
+            expected.set( id );
+        }
+
+        return bitmap;
+    }
+
+
+    private static void assertSame( BitSet expected, EntryIdBitmap bitmap )
+    {
+        assertEquals( expected.cardinality(), bitmap.cardinality() );
+
+        PrimitiveIterator.OfInt iterator = bitmap.iterator();
+
+        for ( int id = expected.nextSetBit( 0 ); id >= 0; id = expected.nextSetBit( id + 1 ) )
+        {
+            assertTrue( iterator.hasNext() );
+            assertEquals( id, iterator.nextInt() );
+            assertTrue( bitmap.contains( id ) );
+        }
+
+        assertFalse( iterator.hasNext() );
+    }
+
+
+    @Test
+    public void testAddSparseAndDense()
+    {
+        Random random = new Random( 42L );
+
+        // Sparse IDs use array chunks, dense ones switch to bitmap chunks
+        BitSet sparse = new BitSet();
+        assertSame( sparse, fill( random, sparse, 1000, 10_000_000 ) );
+
+        BitSet dense = new BitSet();
+        assertSame( dense, fill( random, dense, 100_000, 200_000 ) );
+
+        EntryIdBitmap empty = new EntryIdBitmap();
+        assertTrue( empty.isEmpty() );
+        assertFalse( empty.iterator().hasNext() );
+    }
+
+
+    @Test
+    public void testOrAnd()
+    {
+        Random random = new Random( 7L );
+
+        for ( int[] sizes : new int[][] { { 100, 200 }, { 50_000, 300 }, { 60_000, 70_000 } } )
+        {
+            BitSet left = new BitSet();
+            BitSet right = new BitSet();
+            EntryIdBitmap leftBitmap = fill( random, left, sizes[0], 150_000 );
+            EntryIdBitmap rightBitmap = fill( random, right, sizes[1], 150_000 );
+
+            EntryIdBitmap union = new EntryIdBitmap();
+            union.or( leftBitmap );
+            union.or( rightBitmap );
+            BitSet expectedUnion = ( BitSet ) left.clone();
+            expectedUnion.or( right );
+            assertSame( expectedUnion, union );
+
+            EntryIdBitmap intersection = new EntryIdBitmap();
+            intersection.or( leftBitmap );
+            intersection.and( rightBitmap );
+            BitSet expectedIntersection = ( BitSet ) left.clone();
+            expectedIntersection.and( right );
+            assertSame( expectedIntersection, intersection );
+
+            // The operands must not be modified
+            assertSame( left, leftBitmap );
+            assertSame( right, rightBitmap );
+        }
+    }
+
+
+    @Test
+    public void testRemove()
+    {
+        Random random = new Random( 11L );
+        BitSet expected = new BitSet();
+        EntryIdBitmap bitmap = fill( random, expected, 20_000, 100_000 );
+
+        // Remove most of the IDs, so that the bitmap chunks become array chunks again
+        for ( int i = 0; i < 150_000; i++ )
+        {
+            int id = random.nextInt( 100_000 );
+
+            assertEquals( expected.get( id ), bitmap.remove( id ) );
+            expected.clear( id );
+        }
+
+        assertSame( expected, bitmap );
+
+        for ( int id = expected.nextSetBit( 0 ); id >= 0; id = expected.nextSetBit( id + 1 ) )
+        {
+            assertTrue( bitmap.remove( id ) );
+        }
+
+        assertTrue( bitmap.isEmpty() );
+        assertFalse( bitmap.remove( 42 ) );
+    }
+
+
+    @Test
+    public void testNextAndPreviousId()
+    {
+        Random random = new Random( 13L );
+
+        for ( int count : new int[] { 0, 1000, 100_000 } )
+        {
+            BitSet expected = new BitSet();
+            EntryIdBitmap bitmap = fill( random, expected, count, 200_000 );
+
+            for ( int i = 0; i < 10_000; i++ )
+            {
+                int from = random.nextInt( 250_000 );
+
+                assertEquals( expected.nextSetBit( from ), bitmap.nextId( from ) );
+                assertEquals( expected.previousSetBit( from ), bitmap.previousId( from ) );
+            }
+
+            assertEquals( expected.nextSetBit( 0 ), bitmap.nextId( -1 ) );
+            assertEquals( -1, bitmap.previousId( -1 ) );
+            assertEquals( expected.previousSetBit( Integer.MAX_VALUE - 1 ), bitmap.previousId( Integer.MAX_VALUE - 1 ) );
+        }
+    }
+
+
+    @Test
+    public void testEntryIdMap()
+    {
+        EntryIdMap entryIdMap = new EntryIdMap();
+        String[] uuids = new String[5000];
+
+        for ( int i = 0; i < uuids.length; i++ )
+        {
+            uuids[i] = UUID.randomUUID().toString();
+            assertEquals( i, entryIdMap.getId( uuids[i] ) );
+        }
+
+        for ( int i = 0; i < uuids.length; i++ )
+        {
+            assertEquals( i, entryIdMap.getId( uuids[i] ) );
+            assertEquals( uuids[i], entryIdMap.getUuid( i ) );
+        }
+
+        // IDs which are not canonical UUIDs are kept as is
+        String upperCase = Strings.toUpperCaseAscii( UUID.randomUUID().toString() );
+        int id = entryIdMap.getId( upperCase );
+        assertEquals( id, entryIdMap.getId( upperCase ) );
+        assertEquals( upperCase, entryIdMap.getUuid( id ) );
+        assertEquals( id + 1, entryIdMap.getId( "not an uuid" ) );
+        assertEquals( "not an uuid", entryIdMap.getUuid( id + 1 ) );
+
+        assertNull( entryIdMap.getUuid( entryIdMap.size() ) );
+    }
+
+
+    @Test
+    public void testEntryIdMapRelease()
+    {
+        EntryIdMap entryIdMap = new EntryIdMap();
+        String[] uuids = new String[100_000];
+
+        for ( int i = 0; i < uuids.length; i++ )
+        {
+            uuids[i] = UUID.randomUUID().toString();
+            assertEquals( i, entryIdMap.getId( uuids[i] ) );
+        }
+
+        // The released int IDs are reused, the lowest first
+        entryIdMap.release( uuids[10] );
+        entryIdMap.release( uuids[5] );
+        entryIdMap.release( "unknown" );
+        assertEquals( uuids.length - 2, entryIdMap.size() );
+        assertNull( entryIdMap.getUuid( 5 ) );
+        assertNull( entryIdMap.getUuid( 10 ) );
+
+        String newUuid = UUID.randomUUID().toString();
+        assertEquals( 5, entryIdMap.getId( newUuid ) );
+        assertEquals( newUuid, entryIdMap.getUuid( 5 ) );
+        assertEquals( 10, entryIdMap.getId( uuids[10] ) );
+
+        // Release all the UUIDs but a few, in any order : the others must still be found
+        Random random = new Random( 17L );
+        List<Integer> kept = new ArrayList<>();
+
+        for ( int i = 0; i < uuids.length; i++ )
+        {
+            if ( ( i != 5 ) && ( random.nextInt( 1000 ) != 0 ) )
+            {
+                entryIdMap.release( uuids[i] );
+            }
+            else if ( i != 5 )
+            {
+                kept.add( i );
+            }
+        }
+
+        assertEquals( kept.size() + 1, entryIdMap.size() );
+
+        for ( int i : kept )
+        {
+            assertEquals( i, entryIdMap.getId( uuids[i] ) );
+            assertEquals( uuids[i], entryIdMap.getUuid( i ) );
+        }
+
+        assertEquals( 5, entryIdMap.getId( newUuid ) );
+
+        // The non canonical IDs are released too
+        int id = entryIdMap.getId( "not an uuid" );
+        entryIdMap.release( "not an uuid" );
+        assertNull( entryIdMap.getUuid( id ) );
+        assertEquals( id, entryIdMap.getId( "another one" ) );
+        assertEquals( "another one", entryIdMap.getUuid( id ) );
+    }
+
+
+    @Test
+    public void testEntryIdMapReleaseWithReaders()
+    {
+        EntryIdMap entryIdMap = new EntryIdMap();
+        String[] uuids = new String[10];
+
+        for ( int i = 0; i < uuids.length; i++ )
+        {
+            uuids[i] = UUID.randomUUID().toString();
+            entryIdMap.getId( uuids[i] );
+        }
+
+        // A reader opened before the release may hold the int ID : it's not reused
+        long older = entryIdMap.openReader();
+        entryIdMap.release( uuids[3] );
+        long newer = entryIdMap.openReader();
+        assertNull( entryIdMap.getUuid( 3 ) );
+        assertEquals( 10, entryIdMap.getId( UUID.randomUUID().toString() ) );
+
+        // A reader opened after the release does not prevent the reuse
+        entryIdMap.closeReader( older );
+        String newUuid = UUID.randomUUID().toString();
+        assertEquals( 3, entryIdMap.getId( newUuid ) );
+        assertEquals( newUuid, entryIdMap.getUuid( 3 ) );
+
+        // The int IDs released while a reader is open are reused once it's closed
+        entryIdMap.release( uuids[1] );
+        entryIdMap.release( uuids[2] );
+        assertEquals( 11, entryIdMap.getId( UUID.randomUUID().toString() ) );
+        entryIdMap.closeReader( newer );
+        assertEquals( 1, entryIdMap.getId( UUID.randomUUID().toString() ) );
+        assertEquals( 2, entryIdMap.getId( UUID.randomUUID().toString() ) );
+    }
+
+
+    @Test
+    public void testCursor() throws Exception
+    {
+        EntryIdMap entryIdMap = new EntryIdMap();
+        EntryIdBitmap candidates = new EntryIdBitmap();
+        List<String> expected = new ArrayList<>();
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            String uuid = UUID.randomUUID().toString();
+            int id = entryIdMap.getId( uuid );
+
+            if ( i % 3 != 0 )
+            {
+                candidates.add( id );
+                expected.add( uuid );
+            }
+        }
+
+        // A released candidate is skipped
+        entryIdMap.release( expected.remove( 2 ) );
+
+        try ( EntryIdBitmapCursor cursor = new EntryIdBitmapCursor( null, candidates, entryIdMap ) )
+        {
+            List<String> next = new ArrayList<>();
+
+            while ( cursor.next() )
+            {
+                next.add( cursor.get().getId() );
+            }
+
+            assertEquals( expected, next );
+
+            // Going back from after the last candidate
+            List<String> previous = new ArrayList<>();
+
+            while ( cursor.previous() )
+            {
+                previous.add( 0, cursor.get().getId() );
+            }
+
+            assertEquals( expected, previous );
+
+            assertTrue( cursor.last() );
+            assertEquals( expected.get( expected.size() - 1 ), cursor.get().getId() );
+            assertTrue( cursor.previous() );
+            assertEquals( expected.get( expected.size() - 2 ), cursor.get().getId() );
+            assertTrue( cursor.next() );
+            assertEquals( expected.get( expected.size() - 1 ), cursor.get().getId() );
+            assertFalse( cursor.next() );
+
+            assertTrue( cursor.first() );
+            assertEquals( expected.get( 0 ), cursor.get().getId() );
+            assertFalse( cursor.previous() );
+
+            cursor.afterLast();
+            assertFalse( cursor.next() );
+            assertTrue( cursor.previous() );
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Comparator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+
+
+/**
+ * Tests the {@link IndexStatistics} estimations.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@Execution(ExecutionMode.SAME_THREAD)
+public class IndexStatisticsTest
+{
+    private static final Comparator<String> COMPARATOR = Comparator.naturalOrder();
+
+    /** 600 tuples, 50 keys, 6 buckets of 100 tuples, "e" being a frequent key */
+    private static final IndexStatistics STATISTICS = new IndexStatistics( "2.5.4.11", 600L, 50L,
+        new String[] { "a", "c", "e", "e", "e", "g", "i" }, 0L );
+
+
+    @Test
+    public void testEstimateEquality()
+    {
+        // A frequent key spans two buckets
+        assertEquals( 200L, STATISTICS.estimateEquality( "e", COMPARATOR ) );
+
+        // Other keys get the average
+        assertEquals( 12L, STATISTICS.estimateEquality( "b", COMPARATOR ) );
+        assertEquals( 12L, STATISTICS.estimateEquality( "e", null ) );
+    }
+
+
+    @Test
+    public void testEstimateRanges()
+    {
+        assertEquals( 600L, STATISTICS.estimateGreaterOrEqual( "a", COMPARATOR ) );
+        assertEquals( 600L, STATISTICS.estimateLessOrEqual( "z", COMPARATOR ) );
+        assertEquals( 150L, STATISTICS.estimateLessOrEqual( "d", COMPARATOR ) );
+        assertEquals( 450L, STATISTICS.estimateGreaterOrEqual( "d", COMPARATOR ) );
+        assertEquals( 100L, STATISTICS.estimateRange( "c", "c" + Character.MAX_VALUE, COMPARATOR ) );
+
+        // Never estimate 0 : the key may have been added since the statistics were computed
+        assertEquals( 1L, STATISTICS.estimateGreaterOrEqual( "z", COMPARATOR ) );
+        assertEquals( 1L, STATISTICS.estimateLessOrEqual( "0", COMPARATOR ) );
+    }
+
+
+    @Test
+    public void testNoHistogram()
+    {
+        IndexStatistics statistics = new IndexStatistics( "2.5.4.3", 600L, 600L, null, 0L );
+
+        assertFalse( statistics.hasHistogram() );
+        assertEquals( 1L, statistics.estimateEquality( "e", COMPARATOR ) );
+        assertEquals( 300L, statistics.estimateGreaterOrEqual( "e", COMPARATOR ) );
+    }
+
+
+    @Test
+    public void testWriteRead() throws Exception
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        try ( DataOutputStream out = new DataOutputStream( baos ) )
+        {
+            STATISTICS.write( out );
+        }
+
+        IndexStatistics read = IndexStatistics.read( new DataInputStream(
+            new ByteArrayInputStream( baos.toByteArray() ) ) );
+
+        assertEquals( "2.5.4.11", read.getAttributeId() );
+        assertEquals( 600L, read.getCount() );
+        assertEquals( 50L, read.getDistinctKeys() );
+        assertTrue( read.hasHistogram() );
+        assertEquals( 200L, read.estimateEquality( "e", COMPARATOR ) );
+        assertEquals( 150L, read.estimateLessOrEqual( "d", COMPARATOR ) );
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.PrimitiveIterator;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+
+
+/**
+ * Tests the {@link SubstringIndex} class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@Execution(ExecutionMode.SAME_THREAD)
+public class SubstringIndexTest
+{
+    private static Set<String> grams( String... values )
+    {
+        Set<String> grams = new HashSet<>();
+
+        for ( String value : values )
+        {
+            SubstringIndex.addGrams( value, grams );
+        }
+
+        return grams;
+    }
+
+
+    private static int[] ids( EntryIdBitmap bitmap )
+    {
+        int[] ids = new int[( int ) bitmap.cardinality()];
+        PrimitiveIterator.OfInt iterator = bitmap.iterator();
+
+        for ( int i = 0; i < ids.length; i++ )
+        {
+            ids[i] = iterator.nextInt();
+        }
+
+        return ids;
+    }
+
+
+    @Test
+    public void testAddGrams()
+    {
+        // The spaces split the value
+        assertEquals( new HashSet<>( Arrays.asList( "joh", "ohn", "smi", "mit", "ith" ) ), grams( " john  smith " ) );
+
+        // Too short
+        assertTrue( grams( "ab cd" ).isEmpty() );
+    }
+
+
+    @Test
+    public void testLookup()
+    {
+        SubstringIndex substringIndex = new SubstringIndex( "2.5.4.3" );
+        substringIndex.add( 1, grams( "john smith" ) );
+        substringIndex.add( 2, grams( "jane smithers" ) );
+        substringIndex.add( 3, grams( "bob marley" ) );
+
+        assertArrayEquals( new int[] { 1, 2 }, ids( substringIndex.lookup( grams( "smith" ) ) ) );
+        assertArrayEquals( new int[] { 2 }, ids( substringIndex.lookup( grams( "thers" ) ) ) );
+        assertTrue( substringIndex.lookup( grams( "xyz" ) ).isEmpty() );
+        assertEquals( 2L, substringIndex.estimate( grams( "smith" ) ) );
+        assertEquals( 0L, substringIndex.estimate( grams( "smithy" ) ) );
+
+        // No gram, the index can't be used
+        assertNull( substringIndex.lookup( grams( "sm" ) ) );
+        assertEquals( -1L, substringIndex.estimate( grams( "sm" ) ) );
+    }
+
+
+    @Test
+    public void testUpdateRemove()
+    {
+        SubstringIndex substringIndex = new SubstringIndex( "2.5.4.3" );
+        substringIndex.add( 1, grams( "john smith" ) );
+        substringIndex.add( 2, grams( "jane smith" ) );
+
+        substringIndex.update( 1, grams( "john smith" ), grams( "john smyth" ) );
+
+        assertArrayEquals( new int[] { 2 }, ids( substringIndex.lookup( grams( "smith" ) ) ) );
+        assertArrayEquals( new int[] { 1 }, ids( substringIndex.lookup( grams( "smyth" ) ) ) );
+
+        substringIndex.remove( 2, grams( "jane smith" ) );
+
+        assertTrue( substringIndex.lookup( grams( "smith" ) ).isEmpty() );
+        assertEquals( grams( "john smyth" ).size(), substringIndex.size() );
+    }
+}
@@ -21,6 +21,7 @@ package org.apache.directory.server.xdbm.search.impl;
 
 
 import java.util.HashSet;
+import java.util.PrimitiveIterator;
 import java.util.Set;
 
 import org.apache.directory.api.ldap.model.cursor.Cursor;
@@ -37,6 +38,7 @@ import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartition;
 import org.apache.directory.server.core.partition.impl.btree.EntryCursorAdaptor;
 import org.apache.directory.server.core.partition.impl.btree.IndexCursorAdaptor;
+import org.apache.directory.server.xdbm.EntryIdBitmap;
 import org.apache.directory.server.xdbm.IndexEntry;
 import org.apache.directory.server.xdbm.Store;
 import org.apache.directory.server.xdbm.search.Evaluator;
@@ -72,17 +74,19 @@ public class AbstractCursorTest
         PartitionSearchResult searchResult = new PartitionSearchResult( schemaManager );
         Set<IndexEntry<String, String>> resultSet = new HashSet<IndexEntry<String, String>>();
 
-        Set<String> uuids = new HashSet<String>();
-        searchResult.setCandidateSet( uuids );
+        EntryIdBitmap candidateSet = new EntryIdBitmap();
+        searchResult.setCandidateSet( candidateSet );
 
         long candidates = cursorBuilder.build( partitionTxn, root, searchResult );
 
         if ( candidates < Long.MAX_VALUE )
         {
-            for ( String uuid : uuids )
+            PrimitiveIterator.OfInt ids = candidateSet.iterator();
+
+            while ( ids.hasNext() )
             {
                 IndexEntry<String, String> indexEntry = new IndexEntry<String, String>();
-                indexEntry.setId( uuid );
+                indexEntry.setId( store.getEntryIdMap().getUuid( ids.nextInt() ) );
                 resultSet.add( indexEntry );
             }
         }
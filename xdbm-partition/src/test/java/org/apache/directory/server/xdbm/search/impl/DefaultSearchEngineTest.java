@@ -0,0 +1,415 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm.search.impl;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.filter.AndNode;
+import org.apache.directory.api.ldap.model.filter.EqualityNode;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.ObjectClassNode;
+import org.apache.directory.api.ldap.model.filter.PresenceNode;
+import org.apache.directory.api.ldap.model.filter.SubstringNode;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.FileUtils;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.DnFactory;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.partition.impl.avl.AvlPartition;
+import org.apache.directory.server.core.partition.impl.btree.EntryCursorAdaptor;
+import org.apache.directory.server.core.shared.DefaultDnFactory;
+import org.apache.directory.server.xdbm.IndexStatistics;
+import org.apache.directory.server.xdbm.StoreUtils;
+import org.apache.directory.server.xdbm.SubstringIndex;
+import org.apache.directory.server.xdbm.impl.avl.AvlIndex;
+import org.apache.directory.server.xdbm.search.PartitionSearchResult;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+
+
+/**
+ * Tests that the DefaultSearchEngine returns the same entries when the candidates
+ * are streamed from an index cursor and when they are collected in a set.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@Execution(ExecutionMode.SAME_THREAD)
+public class DefaultSearchEngineTest
+{
+    private static SchemaManager schemaManager;
+    private static DnFactory dnFactory;
+
+    private File wkdir;
+    private AvlPartition store;
+    private DefaultSearchEngine searchEngine;
+
+
+    @BeforeAll
+    public static void setup() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = DefaultSearchEngineTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        loaded = schemaManager.loadWithDeps( loader.getSchema( "collective" ) );
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        dnFactory = new DefaultDnFactory( schemaManager, 100 );
+    }
+
+
+    @BeforeEach
+    public void createStore() throws Exception
+    {
+        // setup the working directory for the store
+        wkdir = File.createTempFile( getClass().getSimpleName(), "db" );
+        wkdir.delete();
+        wkdir = new File( wkdir.getParentFile(), getClass().getSimpleName() );
+        wkdir.mkdirs();
+
+        StoreUtils.createdExtraAttributes( schemaManager );
+
+        // initialize the store
+        store = new AvlPartition( schemaManager, dnFactory );
+        store.setId( "example" );
+        store.setCacheSize( 10 );
+        store.setPartitionPath( wkdir.toURI() );
+        store.setSyncOnWrite( false );
+
+        store.addIndex( new AvlIndex<String>( SchemaConstants.OU_AT_OID, false ) );
+
+        AvlIndex<String> cnIndex = new AvlIndex<>( SchemaConstants.CN_AT_OID, false );
+        cnIndex.setSubstringIndexed( true );
+        store.addIndex( cnIndex );
+        store.setSuffixDn( new Dn( schemaManager, "o=Good Times Co." ) );
+        store.initialize();
+
+        StoreUtils.loadExampleData( store, schemaManager );
+
+        searchEngine = ( DefaultSearchEngine ) store.getSearchEngine();
+    }
+
+
+    @AfterEach
+    public void destroyStore() throws Exception
+    {
+        if ( store != null )
+        {
+            ( ( Partition ) store ).destroy( null );
+        }
+
+        store = null;
+
+        if ( wkdir != null )
+        {
+            FileUtils.deleteDirectory( wkdir );
+        }
+
+        wkdir = null;
+    }
+
+
+    /**
+     * Runs the search with a given candidate set limit, and returns the Dn of the entries
+     */
+    private Set<Dn> search( long candidateSetLimit, boolean streamed, String base, SearchScope scope,
+        ExprNode filter ) throws Exception
+    {
+        searchEngine.setCandidateSetLimit( candidateSetLimit );
+
+        SearchOperationContext searchContext = new SearchOperationContext( null );
+        searchContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
+        searchContext.setDn( new Dn( schemaManager, base ) );
+        searchContext.setFilter( filter );
+        searchContext.setScope( scope );
+
+        Set<Dn> dns = new HashSet<>();
+
+        try ( PartitionTxn partitionTxn = store.beginReadTransaction() )
+        {
+            PartitionSearchResult searchResult = searchEngine.computeResult( partitionTxn, schemaManager,
+                searchContext );
+
+            assertEquals( streamed, searchResult.isStreamed() );
+
+            try ( Cursor<Entry> cursor = new EntryCursorAdaptor( partitionTxn, store, searchResult ) )
+            {
+                while ( cursor.next() )
+                {
+                    Entry entry = cursor.get();
+
+                    if ( entry != null )
+                    {
+                        dns.add( entry.getDn() );
+                    }
+                }
+            }
+        }
+
+        return dns;
+    }
+
+
+    /**
+     * Checks that streaming the candidates and collecting them give the same entries
+     */
+    private Set<Dn> assertSameResult( String base, SearchScope scope, ExprNode filter ) throws Exception
+    {
+        Set<Dn> collected = search( Long.MAX_VALUE, false, base, scope, filter );
+        Set<Dn> streamed = search( 0L, true, base, scope, filter );
+
+        assertEquals( collected, streamed );
+
+        return streamed;
+    }
+
+
+    @Test
+    public void testSubtreeFromContextEntry() throws Exception
+    {
+        Set<Dn> dns = assertSameResult( "o=Good Times Co.", SearchScope.SUBTREE, ObjectClassNode.OBJECT_CLASS_NODE );
+
+        // All the entries, aliases included
+        assertEquals( 11, dns.size() );
+    }
+
+
+    @Test
+    public void testSystemAttributePresence() throws Exception
+    {
+        // Those attributes are not in the presence index : the candidates must be read from
+        // the MasterTable when they are streamed
+        String[] oids = { SchemaConstants.OBJECT_CLASS_AT_OID, SchemaConstants.ENTRY_UUID_AT_OID,
+            SchemaConstants.ENTRY_CSN_AT_OID };
+
+        for ( String oid : oids )
+        {
+            PresenceNode presence = new PresenceNode( schemaManager.getAttributeType( oid ) );
+
+            Set<Dn> dns = assertSameResult( "o=Good Times Co.", SearchScope.SUBTREE, presence );
+
+            assertEquals( 11, dns.size(), oid );
+        }
+    }
+
+
+    @Test
+    public void testSubtree() throws Exception
+    {
+        AttributeType cn = schemaManager.getAttributeType( SchemaConstants.CN_AT_OID );
+
+        Set<Dn> dns = assertSameResult( "ou=Sales,o=Good Times Co.", SearchScope.SUBTREE, new PresenceNode( cn ) );
+
+        assertEquals( 2, dns.size() );
+        assertTrue( dns.contains( new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." ) ) );
+        assertTrue( dns.contains( new Dn( schemaManager, "cn=JIM BEAN,ou=Sales,o=Good Times Co." ) ) );
+    }
+
+
+    @Test
+    public void testOneLevel() throws Exception
+    {
+        Set<Dn> dns = assertSameResult( "o=Good Times Co.", SearchScope.ONELEVEL, ObjectClassNode.OBJECT_CLASS_NODE );
+
+        assertEquals( 3, dns.size() );
+        assertFalse( dns.contains( new Dn( schemaManager, "o=Good Times Co." ) ) );
+    }
+
+
+    @Test
+    public void testIndexedEquality() throws Exception
+    {
+        AttributeType ou = schemaManager.getAttributeType( SchemaConstants.OU_AT_OID );
+        AttributeType cn = schemaManager.getAttributeType( SchemaConstants.CN_AT_OID );
+
+        AndNode filter = new AndNode();
+        filter.addNode( new EqualityNode<String>( ou, new Value( ou, "sales" ) ) );
+        filter.addNode( new PresenceNode( cn ) );
+
+        Set<Dn> dns = assertSameResult( "o=Good Times Co.", SearchScope.SUBTREE, filter );
+
+        assertEquals( 2, dns.size() );
+    }
+
+
+    @Test
+    public void testWithIndexStatistics() throws Exception
+    {
+        AttributeType ou = schemaManager.getAttributeType( SchemaConstants.OU_AT_OID );
+        AttributeType cn = schemaManager.getAttributeType( SchemaConstants.CN_AT_OID );
+
+        store.updateStatistics();
+
+        IndexStatistics statistics = store.getIndexStatistics( SchemaConstants.OU_AT_OID );
+        assertNotNull( statistics );
+
+        try ( PartitionTxn partitionTxn = store.beginReadTransaction() )
+        {
+            assertEquals( store.getIndex( ou ).count( partitionTxn ), statistics.getCount() );
+        }
+
+        // The estimations don't change the result
+
+        AndNode filter = new AndNode();
+        filter.addNode( new EqualityNode<String>( ou, new Value( ou, "sales" ) ) );
+        filter.addNode( new PresenceNode( cn ) );
+
+        assertEquals( 2, assertSameResult( "o=Good Times Co.", SearchScope.SUBTREE, filter ).size() );
+        assertEquals( 2, assertSameResult( "ou=Sales,o=Good Times Co.", SearchScope.SUBTREE,
+            new PresenceNode( cn ) ).size() );
+    }
+
+
+    @Test
+    public void testSubstringIndex() throws Exception
+    {
+        AttributeType cn = schemaManager.getAttributeType( SchemaConstants.CN_AT_OID );
+        SubstringIndex substringIndex = store.getSubstringIndex( cn );
+        assertNotNull( substringIndex );
+
+        SubstringNode any = new SubstringNode( cn, null, null );
+        any.addAny( "lker" );
+        Set<Dn> dns = search( Long.MAX_VALUE, false, "o=Good Times Co.", SearchScope.SUBTREE, any );
+
+        // The entry and its alias
+        assertEquals( 2, dns.size() );
+        assertTrue( dns.contains( new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." ) ) );
+
+        // The grams are only candidates : "bea" and "ean" are present, but not "bean j"
+        SubstringNode last = new SubstringNode( cn, null, "bean j" );
+        assertEquals( 3, substringIndex.lookup( SubstringIndex.getGrams( last ) ).cardinality() );
+        assertTrue( search( Long.MAX_VALUE, false, "o=Good Times Co.", SearchScope.SUBTREE, last ).isEmpty() );
+
+        // The index follows the modifications
+        Dn dn = new Dn( schemaManager, "cn=JIM BEAN,ou=Sales,o=Good Times Co." );
+        SubstringNode beam = new SubstringNode( cn, null, "beam" );
+
+        try ( PartitionTxn partitionTxn = store.beginWriteTransaction() )
+        {
+            store.modify( partitionTxn, dn, new DefaultModification( ModificationOperation.ADD_ATTRIBUTE, cn,
+                "Jim Beam" ) );
+        }
+
+        assertEquals( 1, search( Long.MAX_VALUE, false, "o=Good Times Co.", SearchScope.SUBTREE, beam ).size() );
+
+        try ( PartitionTxn partitionTxn = store.beginWriteTransaction() )
+        {
+            store.modify( partitionTxn, dn, new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE, cn,
+                "Jim Beam" ) );
+        }
+
+        assertTrue( substringIndex.lookup( SubstringIndex.getGrams( beam ) ).isEmpty() );
+    }
+
+
+    @Test
+    public void testSubstringIndexUndoneOnAbort() throws Exception
+    {
+        AttributeType cn = schemaManager.getAttributeType( SchemaConstants.CN_AT_OID );
+        SubstringIndex substringIndex = store.getSubstringIndex( cn );
+        Dn dn = new Dn( schemaManager, "cn=JIM BEAN,ou=Sales,o=Good Times Co." );
+        SubstringNode beam = new SubstringNode( cn, null, "beam" );
+        SubstringNode bean = new SubstringNode( cn, null, "bean" );
+        long nbBeans = substringIndex.lookup( SubstringIndex.getGrams( bean ) ).cardinality();
+
+        PartitionTxn partitionTxn = store.beginWriteTransaction();
+        store.modify( partitionTxn, dn, new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, cn,
+            "Jim Beam" ) );
+        assertFalse( substringIndex.lookup( SubstringIndex.getGrams( beam ) ).isEmpty() );
+
+        // The grams of an aborted modification are removed, and the removed ones are back
+        partitionTxn.abort();
+
+        assertTrue( substringIndex.lookup( SubstringIndex.getGrams( beam ) ).isEmpty() );
+        assertEquals( nbBeans, substringIndex.lookup( SubstringIndex.getGrams( bean ) ).cardinality() );
+
+        // Nothing is undone once the transaction has been committed
+        partitionTxn = store.beginWriteTransaction();
+        store.modify( partitionTxn, dn, new DefaultModification( ModificationOperation.ADD_ATTRIBUTE, cn,
+            "Jim Beam" ) );
+        partitionTxn.commit();
+        partitionTxn.abort();
+
+        assertFalse( substringIndex.lookup( SubstringIndex.getGrams( beam ) ).isEmpty() );
+    }
+
+
+    @Test
+    public void testUnindexedEquality() throws Exception
+    {
+        AttributeType sn = schemaManager.getAttributeType( SchemaConstants.SN_AT_OID );
+
+        Set<Dn> dns = assertSameResult( "o=Good Times Co.", SearchScope.SUBTREE,
+            new EqualityNode<String>( sn, new Value( sn, "walker" ) ) );
+
+        assertEquals( 1, dns.size() );
+    }
+}